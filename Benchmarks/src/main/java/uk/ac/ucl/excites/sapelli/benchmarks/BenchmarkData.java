@@ -0,0 +1,217 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import uk.ac.ucl.excites.sapelli.storage.StorageClient;
+import uk.ac.ucl.excites.sapelli.storage.model.Column;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.BooleanColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.ByteArrayColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.FloatColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.IntegerColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.LosslessFlagColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.StringColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.indexes.PrimaryKey;
+import uk.ac.ucl.excites.sapelli.storage.types.Location;
+import uk.ac.ucl.excites.sapelli.storage.types.LocationColumn;
+import uk.ac.ucl.excites.sapelli.storage.types.TimeStamp;
+import uk.ac.ucl.excites.sapelli.storage.types.TimeStampColumn;
+import uk.ac.ucl.excites.sapelli.transmission.TransmissionClient;
+
+/**
+ * Generates the synthetic schemata and records used by the benchmarks.
+ * 
+ * All data is derived from a fixed seed so that every run (and every fork) works on exactly the same values.
+ */
+public final class BenchmarkData
+{
+
+	static public final long SEED = 0x5A9E111L;
+	
+	static public final int SCHEMA_FLAGS = StorageClient.SCHEMA_FLAG_EXPORTABLE | TransmissionClient.SCHEMA_FLAG_TRANSMITTABLE;
+	
+	static public final String ID_COLUMN_NAME = "ID";
+	
+	static private final int MAX_STRING_LENGTH = 24; // chars
+	static private final int MAX_STRING_LENGTH_BYTES = 64;
+	static private final int MAX_BYTES_LENGTH = 32;
+	static private final char[] STRING_CHARS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 .,-".toCharArray();
+	static private final long TIME_RANGE_START_MS = 1262304000000L; // 2010-01-01T00:00:00Z
+	static private final long TIME_RANGE_MS = 10L * 365 * 24 * 60 * 60 * 1000; // ~10 years
+	
+	/**
+	 * Schema shapes, from few small columns to many columns of all common types.
+	 */
+	static public enum Shape
+	{
+		/**
+		 * ID + 3 small columns
+		 */
+		NARROW,
+		
+		/**
+		 * ID + 1 column of every supported type
+		 */
+		MIXED,
+		
+		/**
+		 * ID + 8 columns of each of the integer, float, boolean & string types
+		 */
+		WIDE
+	}
+	
+	/**
+	 * Creates a (sealed) model with a single schema of the given shape.
+	 * 
+	 * @param shape
+	 * @return
+	 */
+	static public Model CreateModel(Shape shape)
+	{
+		Model model = new Model(1000 + shape.ordinal(), "Benchmark_" + shape.name(), SCHEMA_FLAGS);
+		Schema schema = new Schema(model, shape.name());
+		IntegerColumn idColumn = schema.addColumn(new IntegerColumn(ID_COLUMN_NAME, false, false, 32));
+		switch(shape)
+		{
+			case NARROW :
+				schema.addColumn(new IntegerColumn("Value", false, true, 32));
+				schema.addColumn(new BooleanColumn("Flag", false));
+				schema.addColumn(new StringColumn("Name", false, MAX_STRING_LENGTH_BYTES));
+				break;
+			case MIXED :
+				for(Column<?> column : CreateColumnOfEveryType())
+					schema.addColumn(column);
+				break;
+			case WIDE :
+				for(int c = 0; c < 8; c++)
+				{
+					schema.addColumn(new IntegerColumn("Integer" + c, false, true, 32));
+					schema.addColumn(new FloatColumn("Float" + c, false, true, true));
+					schema.addColumn(new BooleanColumn("Boolean" + c, false));
+					schema.addColumn(new StringColumn("String" + c, false, MAX_STRING_LENGTH_BYTES));
+				}
+				break;
+		}
+		schema.setPrimaryKey(PrimaryKey.WithColumnNames(idColumn), true);
+		model.seal();
+		return model;
+	}
+	
+	/**
+	 * @return new (unsealed) columns, one of every supported type
+	 */
+	static public List<Column<?>> CreateColumnOfEveryType()
+	{
+		List<Column<?>> columns = new ArrayList<Column<?>>();
+		columns.add(new IntegerColumn("Integer", false, true, 32));
+		columns.add(new FloatColumn("Float", false, true, true));
+		columns.add(new BooleanColumn("Boolean", false));
+		columns.add(new StringColumn("String", false, MAX_STRING_LENGTH_BYTES));
+		columns.add(new ByteArrayColumn("Bytes", false));
+		columns.add(TimeStampColumn.Century21("TimeStamp", false, true, false));
+		columns.add(new LocationColumn("Location", false, true, true, false, false, true, false, true));
+		return columns;
+	}
+	
+	/**
+	 * @param schema a schema created by {@link #CreateModel(Shape)}
+	 * @param count number of records to create
+	 * @return records with consecutive IDs (starting at 0) and random values
+	 */
+	static public List<Record> CreateRecords(Schema schema, int count)
+	{
+		Random random = new Random(SEED);
+		List<Record> records = new ArrayList<Record>(count);
+		for(int r = 0; r < count; r++)
+			records.add(CreateRecord(schema, r, random));
+		return records;
+	}
+	
+	/**
+	 * @param schema a schema created by {@link #CreateModel(Shape)}
+	 * @param id
+	 * @param random
+	 * @return a record with the given ID and random values
+	 */
+	@SuppressWarnings("unchecked")
+	static public Record CreateRecord(Schema schema, long id, Random random)
+	{
+		Record record = schema.createRecord();
+		for(Column<?> column : schema.getColumns(false))
+		{
+			if(column instanceof LosslessFlagColumn)
+				continue; // has a default value
+			if(ID_COLUMN_NAME.equals(column.name))
+				((IntegerColumn) column).storeValue(record, id);
+			else
+				((Column<Object>) column).storeValue(record, CreateValue(column, random));
+		}
+		return record;
+	}
+	
+	/**
+	 * @param column a column created by {@link #CreateColumnOfEveryType()} or {@link #CreateModel(Shape)}
+	 * @param random
+	 * @return a random value for the given column
+	 */
+	static public Object CreateValue(Column<?> column, Random random)
+	{
+		if(column instanceof IntegerColumn)
+			return Long.valueOf(random.nextInt());
+		if(column instanceof FloatColumn)
+			return Double.valueOf((random.nextDouble() - 0.5d) * 1000000d);
+		if(column instanceof BooleanColumn)
+			return Boolean.valueOf(random.nextBoolean());
+		if(column instanceof StringColumn)
+		{
+			char[] chars = new char[random.nextInt(MAX_STRING_LENGTH + 1)];
+			for(int c = 0; c < chars.length; c++)
+				chars[c] = STRING_CHARS[random.nextInt(STRING_CHARS.length)];
+			return new String(chars);
+		}
+		if(column instanceof ByteArrayColumn)
+		{
+			byte[] bytes = new byte[random.nextInt(MAX_BYTES_LENGTH + 1)];
+			random.nextBytes(bytes);
+			return bytes;
+		}
+		if(column instanceof TimeStampColumn)
+			return new TimeStamp(TIME_RANGE_START_MS + (long) (random.nextDouble() * TIME_RANGE_MS));
+		if(column instanceof LocationColumn)
+			return new Location(
+				(random.nextDouble() - 0.5d) * 180d,
+				(random.nextDouble() - 0.5d) * 360d,
+				Double.valueOf(random.nextDouble() * 1000d),
+				null,
+				null,
+				Float.valueOf(random.nextFloat() * 50f),
+				(Long) null,
+				Location.PROVIDER_GPS);
+		throw new IllegalArgumentException("Unsupported column type: " + column.getClass().getSimpleName());
+	}
+	
+	private BenchmarkData() {}
+	
+}
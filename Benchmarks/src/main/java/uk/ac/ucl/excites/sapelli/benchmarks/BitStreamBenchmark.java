@@ -0,0 +1,132 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import uk.ac.ucl.excites.sapelli.shared.io.BitArray;
+import uk.ac.ucl.excites.sapelli.shared.io.BitArrayInputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.BitArrayOutputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.BitInputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.BitOutputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.BitWrapInputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.BitWrapOutputStream;
+
+/**
+ * Throughput of {@link BitOutputStream} and {@link BitInputStream} implementations, writing/reading integers of various bit sizes.
+ * 
+ * Scores are per integer written/read.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class BitStreamBenchmark
+{
+
+	static private final int VALUES = 8192;
+	
+	@Param({ "1", "7", "13", "32", "64" })
+	public int bits;
+	
+	private long[] values;
+	private BitArray bitArray;
+	private byte[] bytes;
+	
+	@Setup
+	public void setup() throws IOException
+	{
+		Random random = new Random(BenchmarkData.SEED);
+		values = new long[VALUES];
+		for(int v = 0; v < VALUES; v++)
+			values[v] = bits == Long.SIZE ? random.nextLong() : random.nextLong() >> (Long.SIZE - bits); // fits in given number of bits (signed)
+		BitArrayOutputStream out = new BitArrayOutputStream();
+		writeValues(out);
+		bitArray = out.toBitArray();
+		bytes = bitArray.toByteArray();
+	}
+	
+	private void writeValues(BitOutputStream out) throws IOException
+	{
+		for(long value : values)
+			out.write(value, bits, true);
+		out.close();
+	}
+	
+	private long readValues(BitInputStream in) throws IOException
+	{
+		long sum = 0;
+		for(int v = 0; v < VALUES; v++)
+			sum += in.readInteger(bits, true);
+		in.close();
+		return sum;
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public BitArray writeBitArray() throws IOException
+	{
+		BitArrayOutputStream out = new BitArrayOutputStream();
+		writeValues(out);
+		return out.toBitArray();
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public byte[] writeWrapped() throws IOException
+	{
+		ByteArrayOutputStream bytesOut = new ByteArrayOutputStream(bytes.length);
+		writeValues(new BitWrapOutputStream(bytesOut));
+		return bytesOut.toByteArray();
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public void readBitArray(Blackhole blackhole) throws IOException
+	{
+		blackhole.consume(readValues(new BitArrayInputStream(bitArray)));
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public void readWrapped(Blackhole blackhole) throws IOException
+	{
+		blackhole.consume(readValues(new BitWrapInputStream(bytes)));
+	}
+	
+}
@@ -0,0 +1,93 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.benchmarks;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.ucl.excites.sapelli.shared.io.BitArray;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.text.BodyCodec;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.text.TextMessage;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.text.TextSMSTransmission;
+import uk.ac.ucl.excites.sapelli.transmission.util.TransmissionCapacityExceededException;
+
+/**
+ * Throughput of the GSM 03.38 {@link BodyCodec} used by {@link TextSMSTransmission}, encoding and decoding random body bits
+ * filling the given number of {@link TextMessage}s.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class BodyCodecBenchmark
+{
+
+	@Param({ "1", "4", "15" }) // stay below the maximum to leave room for escaping
+	public int parts;
+	
+	private BitArray bodyBits;
+	private String body;
+	
+	@Setup
+	public void setup() throws Exception
+	{
+		Random random = new Random(BenchmarkData.SEED);
+		bodyBits = CreateBits(random, parts * TextMessage.MAX_BODY_CHARS * TextSMSTransmission.BITS_PER_CHAR);
+		body = BodyCodec.Encode(bodyBits, TextSMSTransmission.MAX_BODY_CHARS);
+	}
+	
+	static private BitArray CreateBits(Random random, int length)
+	{
+		long[] words = new long[(length + Long.SIZE - 1) / Long.SIZE];
+		for(int w = 0; w < words.length; w++)
+			words[w] = random.nextLong();
+		BitSet bits = BitSet.valueOf(words);
+		bits.clear(length, words.length * Long.SIZE);
+		return new BitArray(bits, length);
+	}
+	
+	@Benchmark
+	public String encode() throws TransmissionCapacityExceededException
+	{
+		return BodyCodec.Encode(bodyBits, TextSMSTransmission.MAX_BODY_CHARS);
+	}
+	
+	@Benchmark
+	public BitArray decode() throws IOException
+	{
+		return BodyCodec.Decode(body);
+	}
+	
+}
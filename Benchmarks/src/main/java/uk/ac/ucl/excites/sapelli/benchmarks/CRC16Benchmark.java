@@ -0,0 +1,143 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.ucl.excites.sapelli.shared.crypto.CRC16;
+import uk.ac.ucl.excites.sapelli.shared.crypto.CRC16Digest;
+import uk.ac.ucl.excites.sapelli.shared.io.BitArray;
+import uk.ac.ucl.excites.sapelli.shared.io.BitArrayOutputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.StreamHelpers;
+import uk.ac.ucl.excites.sapelli.transmission.model.Transmission;
+
+/**
+ * Throughput of the payload hash (see {@link Transmission#computePayloadHash(BitArray)}): the byte-at-a-time
+ * {@link CRC16Digest} over {@link BitArray#toByteArray()} (as it was computed before), versus the slice-by-8 {@link CRC16}
+ * over a byte array, straight over a {@link BitArray}, and as a tap on a {@link BitArrayOutputStream} (including the cost
+ * of writing to the stream, which dominates).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CRC16Benchmark
+{
+
+	@Param({ "10", "1000", "100000", "1000000" })
+	public int bytes;
+	
+	private byte[] data;
+	private BitArray bits;
+	
+	@Setup
+	public void setup() throws Exception
+	{
+		Random random = new Random(BenchmarkData.SEED);
+		data = new byte[bytes];
+		random.nextBytes(data);
+		bits = BitArray.FromBytes(data);
+	}
+	
+	static private int Legacy(BitArray bits)
+	{
+		CRC16Digest digest = new CRC16Digest();
+		digest.update(bits.toByteArray());
+		byte[] hash = digest.digest();
+		return (hash[0] & 0xFF) << 8 | (hash[1] & 0xFF);
+	}
+	
+	static private int Tap(BitArray bits) throws IOException
+	{
+		CRC16 crc = new CRC16();
+		BitArrayOutputStream out = new BitArrayOutputStream();
+		try
+		{
+			out.setCRC16Tap(crc);
+			out.write(bits);
+			return crc.getValue();
+		}
+		finally
+		{
+			StreamHelpers.SilentClose(out);
+		}
+	}
+	
+	@Benchmark
+	public int legacy()
+	{
+		return Legacy(bits);
+	}
+	
+	@Benchmark
+	public int sliceBy8Bytes()
+	{
+		return CRC16.Compute(data);
+	}
+	
+	@Benchmark
+	public int sliceBy8BitArray()
+	{
+		return CRC16.Compute(bits);
+	}
+	
+	/**
+	 * Writes the bits to a stream and hashes the result afterwards (as {@link Transmission} used to do).
+	 */
+	@Benchmark
+	public int writeThenLegacy() throws IOException
+	{
+		BitArrayOutputStream out = new BitArrayOutputStream();
+		try
+		{
+			out.write(bits);
+			return Legacy(out.toBitArray());
+		}
+		finally
+		{
+			StreamHelpers.SilentClose(out);
+		}
+	}
+	
+	/**
+	 * Writes the bits to a stream which hashes them along the way (as {@link Transmission} now does).
+	 */
+	@Benchmark
+	public int writeWithTap() throws IOException
+	{
+		return Tap(bits);
+	}
+	
+}
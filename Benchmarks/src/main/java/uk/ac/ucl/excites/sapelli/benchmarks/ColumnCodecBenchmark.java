@@ -0,0 +1,111 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import uk.ac.ucl.excites.sapelli.shared.io.BitArray;
+import uk.ac.ucl.excites.sapelli.shared.io.BitArrayInputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.BitArrayOutputStream;
+import uk.ac.ucl.excites.sapelli.storage.model.Column;
+
+/**
+ * Binary encoding ({@link Column#writeValue(Object, uk.ac.ucl.excites.sapelli.shared.io.BitOutputStream, boolean)}) and decoding
+ * ({@link Column#readValue(uk.ac.ucl.excites.sapelli.shared.io.BitInputStream, boolean)}) of values, per column type.
+ * 
+ * Scores are per value encoded/decoded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ColumnCodecBenchmark
+{
+
+	static private final int VALUES = 1024;
+	
+	/**
+	 * Name of one of the columns created by {@link BenchmarkData#CreateColumnOfEveryType()}.
+	 */
+	@Param({ "Integer", "Float", "Boolean", "String", "Bytes", "TimeStamp", "Location" })
+	public String columnType;
+	
+	@Param({ "true", "false" })
+	public boolean lossless;
+	
+	private Column<Object> column;
+	private Object[] values;
+	private BitArray encoded;
+	
+	@SuppressWarnings("unchecked")
+	@Setup
+	public void setup() throws IOException
+	{
+		for(Column<?> col : BenchmarkData.CreateColumnOfEveryType())
+			if(col.name.equals(columnType))
+				column = (Column<Object>) col;
+		if(column == null)
+			throw new IllegalArgumentException("Unknown column type: " + columnType);
+		Random random = new Random(BenchmarkData.SEED);
+		values = new Object[VALUES];
+		for(int v = 0; v < VALUES; v++)
+			values[v] = BenchmarkData.CreateValue(column, random);
+		encoded = encode();
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public BitArray encode() throws IOException
+	{
+		BitArrayOutputStream out = new BitArrayOutputStream();
+		for(Object value : values)
+			column.writeValue(value, out, lossless);
+		out.close();
+		return out.toBitArray();
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public void decode(Blackhole blackhole) throws IOException
+	{
+		BitArrayInputStream in = new BitArrayInputStream(encoded);
+		for(int v = 0; v < VALUES; v++)
+			blackhole.consume(column.readValue(in, lossless));
+		in.close();
+	}
+	
+}
@@ -0,0 +1,145 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.ucl.excites.sapelli.shared.io.FileHelpers;
+import uk.ac.ucl.excites.sapelli.storage.eximport.ExportResult;
+import uk.ac.ucl.excites.sapelli.storage.eximport.Exporter;
+import uk.ac.ucl.excites.sapelli.storage.eximport.Importer;
+import uk.ac.ucl.excites.sapelli.storage.eximport.binary.BinaryRecordsExporter;
+import uk.ac.ucl.excites.sapelli.storage.eximport.binary.BinaryRecordsImporter;
+import uk.ac.ucl.excites.sapelli.storage.eximport.csv.CSVRecordsExporter;
+import uk.ac.ucl.excites.sapelli.storage.eximport.csv.CSVRecordsImporter;
+import uk.ac.ucl.excites.sapelli.storage.eximport.xml.XMLRecordsExporter;
+import uk.ac.ucl.excites.sapelli.storage.eximport.xml.XMLRecordsImporter;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+
+/**
+ * Export of records to, and import of records from, CSV, XML and binary files.
+ * 
+ * Files are written to (and read from) a temporary folder, which is deleted at the end of the trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ExImportBenchmark
+{
+
+	@Param({ "CSV", "XML", "BINARY" })
+	public Exporter.Format format;
+	
+	@Param({ "NARROW", "MIXED", "WIDE" })
+	public BenchmarkData.Shape shape;
+	
+	@Param({ "100", "1000", "10000" })
+	public int records;
+	
+	private BenchmarkClient client;
+	private List<Record> recordList;
+	private File tempFolder;
+	private File exportFolder;
+	private File importFile;
+	
+	@Setup
+	public void setup() throws Exception
+	{
+		client = new BenchmarkClient();
+		Model model = client.addModel(BenchmarkData.CreateModel(shape));
+		recordList = BenchmarkData.CreateRecords(model.getSchema(0), records);
+		tempFolder = FileHelpers.getSubDirectory(FileUtils.getTempDirectory(), "sapelli-benchmark-" + System.nanoTime(), true);
+		exportFolder = FileHelpers.getSubDirectory(tempFolder, "export", true);
+		
+		// Export once to have a file to import:
+		ExportResult result = createExporter(FileHelpers.getSubDirectory(tempFolder, "import", true)).export(recordList, "Benchmark");
+		if(!result.wasSuccessful() || result.getFiles().size() != 1)
+			throw new IllegalStateException("Export failed", result.getFailureReason());
+		importFile = result.getFiles().get(0);
+	}
+	
+	private Exporter createExporter(File folder)
+	{
+		switch(format)
+		{
+			case CSV : return new CSVRecordsExporter(folder);
+			case XML : return new XMLRecordsExporter(folder);
+			case BINARY : return new BinaryRecordsExporter(folder, null); // the models are known to the importing client
+			default : throw new IllegalArgumentException("Unsupported format: " + format);
+		}
+	}
+	
+	private Importer createImporter()
+	{
+		switch(format)
+		{
+			case CSV : return new CSVRecordsImporter(client);
+			case XML : return new XMLRecordsImporter(client);
+			case BINARY : return new BinaryRecordsImporter(client);
+			default : throw new IllegalArgumentException("Unsupported format: " + format);
+		}
+	}
+	
+	@Benchmark
+	public ExportResult export() throws Exception
+	{
+		return createExporter(exportFolder).export(recordList, "Benchmark");
+	}
+	
+	@Benchmark
+	public List<Record> importFile() throws Exception
+	{
+		return createImporter().importFrom(importFile);
+	}
+	
+	@TearDown(Level.Iteration)
+	public void cleanExportFolder() throws IOException
+	{
+		FileUtils.cleanDirectory(exportFolder);
+	}
+	
+	@TearDown
+	public void tearDown()
+	{
+		FileUtils.deleteQuietly(tempFolder);
+	}
+	
+}
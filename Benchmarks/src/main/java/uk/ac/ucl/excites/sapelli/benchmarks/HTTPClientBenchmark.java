@@ -0,0 +1,269 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import uk.ac.ucl.excites.sapelli.transmission.protocol.http.HTTPClient;
+import uk.ac.ucl.excites.sapelli.transmission.protocol.http.HTTPRequest;
+import uk.ac.ucl.excites.sapelli.transmission.protocol.http.HTTPResponse;
+import uk.ac.ucl.excites.sapelli.transmission.protocol.http.PooledHTTPClient;
+
+/**
+ * Cost of sending {@link #TRANSMISSIONS} small transmissions (PUT requests, one per transmission ID, which are idempotent and
+ * can therefore be pipelined) to a local HTTP server with
+ * {@link PooledHTTPClient#executeAll(List, HTTPClient.Callback)}, using:
+ * <ul>
+ * <li>a new connection per request ({@link #sequential()});</li>
+ * <li>a single kept-alive connection ({@link #keepAlive()});</li>
+ * <li>{@link #CONNECTIONS} pooled connections ({@link #pooled()});</li>
+ * <li>{@link #CONNECTIONS} pooled connections with {@link #PIPELINE_DEPTH} requests pipelined on each ({@link #pipelined()}).</li>
+ * </ul>
+ * 
+ * The server answers every request with a short acknowledgement which contains the request body. Before measuring, the set-up
+ * sends all transmissions with every configuration and checks that each one is acknowledged exactly once (and fails the
+ * benchmark otherwise). As the server runs on the loopback interface, the round trip time (and the cost of TLS handshakes)
+ * which connection reuse saves on real networks is not included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class HTTPClientBenchmark
+{
+
+	static public final int TRANSMISSIONS = 1000;
+	static public final int BODY_BYTES = 160;
+	static public final int CONNECTIONS = 4;
+	static public final int PIPELINE_DEPTH = 8;
+	static private final int SERVER_THREADS = 8;
+	
+	private HttpServer server;
+	private ExecutorService serverExecutor;
+	private List<HTTPRequest> requests;
+	private PooledHTTPClient sequentialClient;
+	private PooledHTTPClient keepAliveClient;
+	private PooledHTTPClient pooledClient;
+	private PooledHTTPClient pipelinedClient;
+	
+	@Setup
+	public void setup() throws Exception
+	{
+		// Server:
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/transmissions/", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				byte[] body = readFully(exchange.getRequestBody());
+				byte[] ack = ("ACK " + new String(body, "UTF-8")).getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, ack.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(ack);
+				out.close();
+			}
+		});
+		serverExecutor = Executors.newFixedThreadPool(SERVER_THREADS);
+		server.setExecutor(serverExecutor);
+		server.start();
+		
+		// Transmissions:
+		Random random = new Random(BenchmarkData.SEED);
+		requests = new ArrayList<HTTPRequest>(TRANSMISSIONS);
+		for(int t = 0; t < TRANSMISSIONS; t++)
+		{
+			char[] payload = new char[BODY_BYTES];
+			Arrays.fill(payload, (char) ('a' + random.nextInt(26)));
+			String id = String.format("%05d", t);
+			System.arraycopy(id.toCharArray(), 0, payload, 0, id.length());
+			URL url = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), server.getAddress().getPort(), "/transmissions/" + id);
+			requests.add(HTTPRequest.Put(url, new String(payload).getBytes("UTF-8"), "text/plain"));
+		}
+		
+		// Clients:
+		sequentialClient = createClient(0, 1, 1);
+		keepAliveClient = createClient(1, 1, 1);
+		pooledClient = createClient(CONNECTIONS, CONNECTIONS, 1);
+		pipelinedClient = createClient(CONNECTIONS, CONNECTIONS, PIPELINE_DEPTH);
+		for(PooledHTTPClient client : Arrays.asList(sequentialClient, keepAliveClient, pooledClient, pipelinedClient))
+			check(client);
+	}
+	
+	private PooledHTTPClient createClient(int poolSize, int maxConnectionsPerHost, int pipelineDepth)
+	{
+		PooledHTTPClient client = new PooledHTTPClient();
+		client.setPoolSize(poolSize);
+		client.setMaxConnectionsPerHost(maxConnectionsPerHost);
+		client.setPipelineDepth(pipelineDepth);
+		return client;
+	}
+	
+	/**
+	 * @param client
+	 * @throws Exception when a transmission fails, is not acknowledged exactly once, or is acknowledged with the wrong body
+	 */
+	private void check(PooledHTTPClient client) throws Exception
+	{
+		final int[] acknowledged = new int[TRANSMISSIONS];
+		final List<String> errors = new ArrayList<String>();
+		client.executeAll(requests, new HTTPClient.Callback()
+		{
+			@Override
+			public void onResponse(HTTPRequest request, HTTPResponse response)
+			{
+				try
+				{
+					String body = new String(request.getBody(), "UTF-8");
+					if(response.getStatus() != 200 || !response.getBodyAsString().equals("ACK " + body))
+						errors.add("Unexpected response to " + body.substring(0, 5) + ": " + response);
+					acknowledged[requests.indexOf(request)]++;
+				}
+				catch(IOException e)
+				{
+					errors.add(e.toString());
+				}
+			}
+			
+			@Override
+			public void onFailure(HTTPRequest request, IOException cause)
+			{
+				errors.add("Failed to send " + requests.indexOf(request) + ": " + cause);
+			}
+		});
+		for(int t = 0; t < TRANSMISSIONS; t++)
+			if(acknowledged[t] != 1)
+				errors.add("Transmission " + t + " acknowledged " + acknowledged[t] + " times");
+		if(!errors.isEmpty())
+			throw new IllegalStateException(errors.size() + " error(s), first: " + errors.get(0));
+	}
+	
+	static private byte[] readFully(InputStream in) throws IOException
+	{
+		byte[] buffer = new byte[BODY_BYTES * 2];
+		int length = 0, read;
+		while((read = in.read(buffer, length, buffer.length - length)) != -1)
+			if((length += read) == buffer.length)
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		in.close();
+		return Arrays.copyOf(buffer, length);
+	}
+	
+	private int send(PooledHTTPClient client) throws InterruptedException
+	{
+		final AtomicInteger acknowledged = new AtomicInteger();
+		client.executeAll(requests, new HTTPClient.Callback()
+		{
+			@Override
+			public void onResponse(HTTPRequest request, HTTPResponse response)
+			{
+				if(response.isSuccessful())
+					acknowledged.incrementAndGet();
+			}
+			
+			@Override
+			public void onFailure(HTTPRequest request, IOException cause)
+			{
+				throw new IllegalStateException(cause);
+			}
+		});
+		return acknowledged.get();
+	}
+	
+	/**
+	 * Opens a new connection for every transmission.
+	 */
+	@Benchmark
+	public int sequential() throws InterruptedException
+	{
+		return send(sequentialClient);
+	}
+	
+	/**
+	 * Sends all transmissions, one at a time, over a single kept-alive connection.
+	 */
+	@Benchmark
+	public int keepAlive() throws InterruptedException
+	{
+		return send(keepAliveClient);
+	}
+	
+	/**
+	 * Sends transmissions over {@link #CONNECTIONS} kept-alive connections concurrently.
+	 */
+	@Benchmark
+	public int pooled() throws InterruptedException
+	{
+		return send(pooledClient);
+	}
+	
+	/**
+	 * Sends transmissions over {@link #CONNECTIONS} kept-alive connections concurrently, pipelining {@link #PIPELINE_DEPTH} per connection.
+	 */
+	@Benchmark
+	public int pipelined() throws InterruptedException
+	{
+		return send(pipelinedClient);
+	}
+	
+	@TearDown
+	public void tearDown()
+	{
+		for(PooledHTTPClient client : Arrays.asList(sequentialClient, keepAliveClient, pooledClient, pipelinedClient))
+			if(client != null)
+				client.close();
+		if(server != null)
+			server.stop(0);
+		if(serverExecutor != null)
+			serverExecutor.shutdownNow();
+	}
+
+}
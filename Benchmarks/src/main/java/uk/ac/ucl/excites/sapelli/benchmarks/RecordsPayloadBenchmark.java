@@ -0,0 +1,139 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.ucl.excites.sapelli.shared.compression.CompressorFactory.Compression;
+import uk.ac.ucl.excites.sapelli.shared.io.BitArray;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.transmission.model.content.RecordsPayload;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.geokey.GeoKeyServer;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.geokey.GeoKeyTransmission;
+
+/**
+ * Packing (encoding & compressing) and unpacking of {@link RecordsPayload}s, for each {@link Compression} mode.
+ * 
+ * Because {@link RecordsPayload#serialise()} always tries all compression modes and keeps the smallest result, the per-mode
+ * benchmarks use the same encoding and compression steps but with a single mode (see {@link PackingRecordsPayload}).
+ * 
+ * Payloads are attached to {@link GeoKeyTransmission}s because those have no capacity limit.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class RecordsPayloadBenchmark
+{
+
+	@Param({ "NARROW", "MIXED", "WIDE" })
+	public BenchmarkData.Shape shape;
+	
+	@Param({ "10", "100", "1000" })
+	public int records;
+	
+	@Param({ "NONE", "DEFLATE", "LZMA" })
+	public Compression compression;
+	
+	private BenchmarkClient client;
+	private GeoKeyServer server;
+	private PackingRecordsPayload payload;
+	private byte[] packed;
+	
+	@Setup
+	public void setup() throws Exception
+	{
+		client = new BenchmarkClient();
+		server = GeoKeyServer.CreateNew("Benchmark", "https://geokey.example.org", null, null);
+		Model model = client.addModel(BenchmarkData.CreateModel(shape));
+		payload = new PackingRecordsPayload();
+		new GeoKeyTransmission(client, server, payload);
+		for(Record record : BenchmarkData.CreateRecords(model.getSchema(0), records))
+			payload.addRecord(record);
+		packed = pack();
+	}
+	
+	@Benchmark
+	public byte[] pack() throws Exception
+	{
+		return payload.pack(compression);
+	}
+	
+	@Benchmark
+	public List<Record> unpack() throws Exception
+	{
+		PackingRecordsPayload receivedPayload = new PackingRecordsPayload();
+		new GeoKeyTransmission(client, server, receivedPayload);
+		receivedPayload.unpack(payload, packed, compression);
+		return receivedPayload.getRecords();
+	}
+	
+	/**
+	 * {@link RecordsPayload} subclass which exposes the encoding and compression steps of (de)serialisation with a given {@link Compression} mode.
+	 */
+	static public class PackingRecordsPayload extends RecordsPayload
+	{
+		
+		/**
+		 * @param compression
+		 * @return the records, encoded and compressed using the given mode
+		 * @throws Exception
+		 */
+		public byte[] pack(Compression compression) throws Exception
+		{
+			BitArray recordsBits = encodeRecords(getSchemata().toArray(new Schema[getSchemata().size()]));
+			return Compress(recordsBits, new Compression[] { compression })[0];
+		}
+		
+		/**
+		 * @param sent the payload which produced the packed records
+		 * @param packed the result of {@link #pack(Compression)}
+		 * @param compression
+		 * @throws Exception
+		 */
+		public void unpack(RecordsPayload sent, byte[] packed, Compression compression) throws Exception
+		{
+			this.model = sent.getModel();
+			this.lossless = sent.isUsingLosslessEncoding();
+			List<Schema> schemata = new ArrayList<Schema>(model.getSchemata()); // (all models used here have only 1 schema)
+			decodeRecords(schemata, BitArray.FromBytes(Decompress(packed, compression)));
+		}
+		
+	}
+	
+}
@@ -0,0 +1,163 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.ucl.excites.sapelli.shared.io.FileHelpers;
+import uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite.java.JavaSQLiteRecordStore;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.IntegerColumn;
+import uk.ac.ucl.excites.sapelli.storage.queries.RecordsQuery;
+import uk.ac.ucl.excites.sapelli.storage.queries.constraints.RuleConstraint;
+import uk.ac.ucl.excites.sapelli.storage.queries.constraints.RuleConstraint.Comparison;
+import uk.ac.ucl.excites.sapelli.storage.util.ColumnPointer;
+
+/**
+ * Inserting, storing (inserting or updating) and querying of records in a {@link JavaSQLiteRecordStore}.
+ * 
+ * Each iteration starts from a new database which is populated with the given number of records. Because SQLite4Java
+ * connections are confined to the thread which opened them the database is also opened (and closed) per iteration,
+ * which guarantees this happens on the benchmark thread.
+ * 
+ * The native SQLite4Java library must be found in the folder given by the {@code sqlite4java.library.path} system property.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SQLiteRecordStoreBenchmark
+{
+
+	/**
+	 * Silences the (INFO-level) logging of SQLite4Java, a strong reference is kept so the setting is not lost upon garbage collection.
+	 */
+	static private final Logger SQLITE4JAVA_LOGGER = Logger.getLogger("com.almworks.sqlite4java");
+	static
+	{
+		SQLITE4JAVA_LOGGER.setLevel(java.util.logging.Level.WARNING);
+	}
+	
+	@Param({ "NARROW", "MIXED", "WIDE" })
+	public BenchmarkData.Shape shape;
+	
+	@Param({ "100", "1000", "10000" })
+	public int records;
+	
+	private BenchmarkClient client;
+	private Schema schema;
+	private List<Record> recordList;
+	private RecordsQuery allQuery;
+	private RecordsQuery rangeQuery;
+	private File dbFolder;
+	private JavaSQLiteRecordStore store;
+	private Random random;
+	private long nextID;
+	
+	@Setup
+	public void setup()
+	{
+		client = new BenchmarkClient();
+		Model model = client.addModel(BenchmarkData.CreateModel(shape));
+		schema = model.getSchema(0);
+		recordList = BenchmarkData.CreateRecords(schema, records);
+		allQuery = new RecordsQuery(schema);
+		rangeQuery = new RecordsQuery(schema, new RuleConstraint(
+			new ColumnPointer<IntegerColumn>((IntegerColumn) schema.getColumn(BenchmarkData.ID_COLUMN_NAME, false)),
+			Comparison.SMALLER,
+			Long.valueOf(records / 10))); // ~10% of records
+	}
+	
+	@Setup(Level.Iteration)
+	public void openDatabase() throws Exception
+	{
+		dbFolder = FileHelpers.getSubDirectory(FileUtils.getTempDirectory(), "sapelli-benchmark-" + System.nanoTime(), true);
+		store = new JavaSQLiteRecordStore(client, dbFolder, "Benchmark", 1, null);
+		store.initialise();
+		store.store(recordList);
+		random = new Random(BenchmarkData.SEED);
+		nextID = records;
+	}
+	
+	/**
+	 * Inserts a single new record.
+	 * 
+	 * @throws Exception
+	 */
+	@Benchmark
+	public void insert() throws Exception
+	{
+		store.insert(BenchmarkData.CreateRecord(schema, nextID++, random));
+	}
+	
+	/**
+	 * Stores all records (which already exist, so they will be checked for changes).
+	 * 
+	 * @throws Exception
+	 */
+	@Benchmark
+	public void storeAll() throws Exception
+	{
+		store.store(recordList);
+	}
+	
+	@Benchmark
+	public List<Record> queryAll()
+	{
+		return store.retrieveRecords(allQuery);
+	}
+	
+	@Benchmark
+	public List<Record> queryRange()
+	{
+		return store.retrieveRecords(rangeQuery);
+	}
+	
+	@TearDown(Level.Iteration)
+	public void closeDatabase() throws IOException
+	{
+		store.close();
+		FileUtils.deleteQuietly(dbFolder);
+	}
+	
+}
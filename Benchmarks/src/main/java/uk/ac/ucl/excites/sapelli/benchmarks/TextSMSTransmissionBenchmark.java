@@ -0,0 +1,214 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.ucl.excites.sapelli.shared.io.BitArray;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.transmission.TransmissionClient;
+import uk.ac.ucl.excites.sapelli.transmission.model.Payload;
+import uk.ac.ucl.excites.sapelli.transmission.model.content.RecordsPayload;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.InvalidMessageException;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.SMSCorrespondent;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.binary.BinaryMessage;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.text.TextMessage;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.text.TextSMSTransmission;
+import uk.ac.ucl.excites.sapelli.transmission.protocol.sms.SMSClient;
+import uk.ac.ucl.excites.sapelli.transmission.util.TransmissionCapacityExceededException;
+import uk.ac.ucl.excites.sapelli.transmission.util.TransmissionSendingException;
+
+/**
+ * Wrapping (splitting the body bits over GSM 03.38-encoded {@link TextMessage}s) and unwrapping (reassembling and decoding)
+ * of {@link TextSMSTransmission}s, and the complete sending-side preparation and receiving-side decoding of a transmission.
+ * 
+ * The number of records is kept small enough for the transmission to fit in {@value TextSMSTransmission#MAX_TRANSMISSION_PARTS} messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TextSMSTransmissionBenchmark
+{
+
+	static private final int SENDING_SIDE_ID = 1;
+	
+	@Param({ "1", "10", "40" })
+	public int records;
+	
+	private BenchmarkClient client;
+	private final CapturingSMSClient smsClient = new CapturingSMSClient();
+	private SMSCorrespondent correspondent;
+	private RecordsPayload payload;
+	private WrappingTextSMSTransmission sent;
+	private WrappingTextSMSTransmission received;
+	private BitArray bodyBits;
+	
+	@Setup
+	public void setup() throws Exception
+	{
+		client = new BenchmarkClient();
+		correspondent = new SMSCorrespondent("Benchmark", "+447700900000", false);
+		Model model = client.addModel(BenchmarkData.CreateModel(BenchmarkData.Shape.NARROW));
+		
+		// Sending side:
+		payload = new RecordsPayload();
+		sent = new WrappingTextSMSTransmission(client, correspondent, payload);
+		sent.setLocalID(SENDING_SIDE_ID);
+		for(Record record : BenchmarkData.CreateRecords(model.getSchema(0), records))
+			payload.addRecord(record);
+		sent.prepare();
+		
+		// Receiving side:
+		received = receive(sent);
+		bodyBits = received.unwrap();
+	}
+	
+	/**
+	 * @param transmission a prepared transmission
+	 * @return a receiving-side transmission holding copies of all parts of the given one
+	 * @throws Exception
+	 */
+	private WrappingTextSMSTransmission receive(TextSMSTransmission transmission) throws Exception
+	{
+		WrappingTextSMSTransmission receivedTransmission = null;
+		for(TextMessage part : transmission.getParts())
+		{
+			part.send(smsClient); // sets header values & captures content
+			TextMessage receivedPart = new TextMessage(correspondent, smsClient.lastContent);
+			if(receivedTransmission == null)
+				receivedTransmission = new WrappingTextSMSTransmission(client, receivedPart);
+			else
+				receivedTransmission.addPart(receivedPart);
+		}
+		return receivedTransmission;
+	}
+	
+	@Benchmark
+	public TextSMSTransmission wrap() throws Exception
+	{
+		sent.wrap(bodyBits);
+		return sent;
+	}
+	
+	@Benchmark
+	public BitArray unwrap() throws Exception
+	{
+		return received.unwrap();
+	}
+	
+	/**
+	 * Complete round trip: payload serialisation & wrapping, followed by unwrapping & payload deserialisation.
+	 * 
+	 * @return
+	 * @throws Exception
+	 */
+	@Benchmark
+	public Payload roundTrip() throws Exception
+	{
+		sent.clearPreparation();
+		sent.prepare();
+		TextSMSTransmission receivedTransmission = receive(sent);
+		receivedTransmission.receive();
+		return receivedTransmission.getPayload();
+	}
+	
+	/**
+	 * {@link TextSMSTransmission} subclass which exposes {@link #wrap(BitArray)} and {@link #unwrap()}.
+	 */
+	static public class WrappingTextSMSTransmission extends TextSMSTransmission
+	{
+		
+		public WrappingTextSMSTransmission(TransmissionClient client, SMSCorrespondent receiver, Payload payload)
+		{
+			super(client, receiver, payload);
+		}
+		
+		public WrappingTextSMSTransmission(TransmissionClient client, TextMessage firstReceivedPart)
+		{
+			super(client, firstReceivedPart);
+		}
+		
+		/* (non-Javadoc)
+		 * @see uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.text.TextSMSTransmission#wrap(uk.ac.ucl.excites.sapelli.shared.io.BitArray)
+		 */
+		@Override
+		public void wrap(BitArray bodyBits) throws TransmissionCapacityExceededException, IOException
+		{
+			super.wrap(bodyBits);
+		}
+		
+		/* (non-Javadoc)
+		 * @see uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.text.TextSMSTransmission#unwrap()
+		 */
+		@Override
+		public BitArray unwrap() throws IOException
+		{
+			return super.unwrap();
+		}
+		
+	}
+	
+	/**
+	 * {@link SMSClient} which, instead of sending messages, keeps the content of the last {@link TextMessage} "sent".
+	 */
+	static private class CapturingSMSClient implements SMSClient
+	{
+		
+		String lastContent;
+		
+		@Override
+		public boolean send(SMSCorrespondent receiver, BinaryMessage binarySMS) throws TransmissionSendingException
+		{
+			throw new UnsupportedOperationException("Only text messages are supported");
+		}
+		
+		@Override
+		public boolean send(SMSCorrespondent receiver, TextMessage textSMS) throws TransmissionSendingException
+		{
+			try
+			{
+				lastContent = textSMS.getContent();
+				return true;
+			}
+			catch(InvalidMessageException ime)
+			{
+				throw new TransmissionSendingException("Invalid message", ime);
+			}
+		}
+		
+	}
+	
+}
@@ -0,0 +1,122 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.ucl.excites.sapelli.transmission.control.TimerWheel;
+import uk.ac.ucl.excites.sapelli.transmission.control.TransmissionController;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.SMSTransmission;
+
+/**
+ * Cost of the {@link TimerWheel} which tracks the resend request and expiry deadlines of incomplete SMS transmissions
+ * (see {@link TransmissionController#enableSMSTimers(long, int, long)}), with the given number of pending transmissions
+ * and a simulated clock.
+ * 
+ * Deadlines are spread over the time span of all resend requests (see {@link SMSTransmission#GetResendDelayMS(int)}).
+ * Correctness is covered by the TimerWheelTest unit test.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TimerWheelBenchmark
+{
+
+	static private final long START_MS = 1451606400000L; // 2016-01-01T00:00Z
+	static private final long STEP_MS = 60 * 1000; // advance the simulated clock per minute
+	static private final long SPAN_MS;
+	static
+	{
+		long span = 0;
+		for(int r = 1; r <= SMSTransmission.MAX_RESEND_REQUESTS; r++)
+			span += SMSTransmission.GetResendDelayMS(r);
+		SPAN_MS = span;
+	}
+	
+	@Param({ "10000", "50000" })
+	public int pending;
+	
+	private long[] deadlines;
+	private TimerWheel<Integer> wheel;
+	private Random random;
+	
+	@Setup
+	public void setup() throws Exception
+	{
+		random = new Random(BenchmarkData.SEED);
+		deadlines = new long[pending];
+		for(int k = 0; k < pending; k++)
+			deadlines[k] = START_MS + (long) (random.nextDouble() * SPAN_MS);
+		wheel = fill();
+	}
+	
+	private TimerWheel<Integer> fill()
+	{
+		TimerWheel<Integer> wheel = new TimerWheel<Integer>(TimerWheel.DEFAULT_TICK_MS, TimerWheel.DEFAULT_NUMBER_OF_SLOTS, START_MS);
+		for(int k = 0; k < pending; k++)
+			wheel.schedule(k, deadlines[k]);
+		return wheel;
+	}
+	
+	/**
+	 * Reschedules one deadline (as happens upon every part reception and resend request).
+	 */
+	@Benchmark
+	public TimerWheel<Integer> reschedule()
+	{
+		wheel.schedule(random.nextInt(pending), START_MS + (long) (random.nextDouble() * SPAN_MS));
+		return wheel;
+	}
+	
+	/**
+	 * Fills a wheel and advances the simulated clock per minute until all deadlines have fired.
+	 */
+	@Benchmark
+	public int fireAll()
+	{
+		TimerWheel<Integer> wheel = fill();
+		List<Integer> expired = new ArrayList<Integer>();
+		int fired = 0;
+		for(long now = START_MS; !wheel.isEmpty(); now += STEP_MS)
+		{
+			fired += wheel.advance(now, expired); // in batches, as TransmissionController#advanceSMSTimers(long) does
+			expired.clear();
+		}
+		return fired;
+	}
+	
+}
@@ -84,6 +84,7 @@ import uk.ac.ucl.excites.sapelli.shared.util.StringUtils;
 import uk.ac.ucl.excites.sapelli.shared.util.TransactionalStringBuilder;
 import uk.ac.ucl.excites.sapelli.shared.util.android.MenuHelpers;
 import uk.ac.ucl.excites.sapelli.storage.eximport.ExportResult;
+import uk.ac.ucl.excites.sapelli.storage.eximport.binary.BinaryRecordsExporter;
 import uk.ac.ucl.excites.sapelli.storage.eximport.csv.CSVRecordsExporter;
 import uk.ac.ucl.excites.sapelli.storage.eximport.xml.XMLRecordsExporter;
 import uk.ac.ucl.excites.sapelli.storage.model.Record;
@@ -886,6 +887,9 @@ public class ProjectManagerActivity extends BaseActivity implements StoreUser, D
 				case CSVRecordsExporter.FILE_EXTENSION :
 					new RecordsTasks.CSVImportTask(this, this).execute(exportedDataFile);
 					break;
+				case BinaryRecordsExporter.FILE_EXTENSION :
+					new RecordsTasks.BinaryImportTask(this, this).execute(exportedDataFile);
+					break;
 				default :
 					showErrorDialog(getString(R.string.unknownExportExtension, extension), false);
 			}
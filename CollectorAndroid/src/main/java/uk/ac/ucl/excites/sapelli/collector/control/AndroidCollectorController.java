@@ -42,6 +42,7 @@ import uk.ac.ucl.excites.sapelli.collector.util.DeviceID;
 import uk.ac.ucl.excites.sapelli.collector.util.LocationUtils;
 import uk.ac.ucl.excites.sapelli.shared.io.FileStorageException;
 import uk.ac.ucl.excites.sapelli.shared.util.Logger;
+import uk.ac.ucl.excites.sapelli.shared.util.Logger.OverflowPolicy;
 import uk.ac.ucl.excites.sapelli.shared.util.android.AndroidLogger;
 import uk.ac.ucl.excites.sapelli.shared.util.android.DeviceControl;
 import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
@@ -342,7 +343,7 @@ public class AndroidCollectorController extends CollectorController<CollectorVie
 	@Override
 	protected Logger createLogger() throws FileStorageException, IOException
 	{
-		return new AndroidLogger(fileStorageProvider.getProjectLogsFolder(project, true).getAbsolutePath(), LOG_PREFIX, true);
+		return new AndroidLogger(fileStorageProvider.getProjectLogsFolder(project, true).getAbsolutePath(), LOG_PREFIX, true, true, Logger.DEFAULT_ASYNC_BUFFER_CAPACITY, OverflowPolicy.BLOCK); // async: keep disk I/O off the UI thread
 	}
 
 }
@@ -217,19 +217,9 @@ public class ExportFragment extends ProjectManagerFragment implements OnClickLis
 		spinOutputFormat.setOnItemSelectedListener(new OnItemSelectedListener() {
 			@Override
 			public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
-				boolean xml = formatAdapter.getItem(position) == Format.XML; // while
-																				// there
-																				// are
-																				// only
-																				// 2
-																				// formats
-																				// we
-																				// don't
-																				// need
-																				// a
-																				// switch/case
-				xmlOptions.setVisibility(xml ? View.VISIBLE : View.GONE);
-				csvOptions.setVisibility(xml ? View.GONE : View.VISIBLE);
+				Format format = formatAdapter.getItem(position);
+				xmlOptions.setVisibility(format == Format.XML ? View.VISIBLE : View.GONE);
+				csvOptions.setVisibility(format == Format.CSV ? View.VISIBLE : View.GONE);
 			}
 
 			@Override
@@ -18,6 +18,10 @@
 
 package uk.ac.ucl.excites.sapelli.collector.load;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import uk.ac.ucl.excites.sapelli.collector.io.FileStorageProvider;
 import uk.ac.ucl.excites.sapelli.collector.load.process.PostProcessor;
 import uk.ac.ucl.excites.sapelli.collector.load.process.TTVSynthesisTask;
@@ -37,8 +41,14 @@ public class AndroidPostProcessor implements PostProcessor
 	
 	private Context context;
 	private FileStorageProvider fileStorageProvider;
-	private TextToVoice ttv;
-	private boolean warnedAboutLanguage = false;
+	
+	/**
+	 * A {@link TextToVoice} instance is not thread-safe, so each thread executing tasks gets its own one.
+	 * A new ThreadLocal is used for each project, so threads never get hold of an instance destroyed by {@link #freeResources()}.
+	 */
+	private ThreadLocal<TextToVoice> threadTTV = new ThreadLocal<TextToVoice>();
+	private final List<TextToVoice> allTTVs = new ArrayList<TextToVoice>();
+	private final AtomicBoolean warnedAboutLanguage = new AtomicBoolean(false);
 
 	public AndroidPostProcessor(Context context, FileStorageProvider fileStorageProvider)
 	{
@@ -50,17 +60,41 @@ public class AndroidPostProcessor implements PostProcessor
     public void initialise(Project project)
 	{
 		// Reset "already warned" flags:
-		warnedAboutLanguage = false;
+		warnedAboutLanguage.set(false);
+		threadTTV = new ThreadLocal<TextToVoice>();
     }
 	
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.collector.load.process.PostProcessor#getMaxConcurrentTasks()
+	 */
+	@Override
+	public int getMaxConcurrentTasks()
+	{
+		return Runtime.getRuntime().availableProcessors();
+	}
+	
+	private TextToVoice getTTV()
+	{
+		TextToVoice ttv = threadTTV.get();
+		if(ttv == null)
+		{
+			ttv = new TextToVoice(context);
+			threadTTV.set(ttv);
+			synchronized(allTTVs)
+			{
+				allTTVs.add(ttv);
+			}
+		}
+		return ttv;
+	}
+	
 	/* (non-Javadoc)
 	 * @see uk.ac.ucl.excites.sapelli.collector.load.process.PostProcessor#execute(uk.ac.ucl.excites.sapelli.collector.load.process.TTSSynthesisTask, uk.ac.ucl.excites.sapelli.collector.model.Project, uk.ac.ucl.excites.sapelli.shared.util.WarningKeeper)
 	 */
 	@Override
 	public void execute(TTVSynthesisTask ttsTask, Project project, WarningKeeper warningKeeper) throws Exception
 	{
-		if (ttv == null)
-			ttv = new TextToVoice(context);
+		TextToVoice ttv = getTTV();
 		
 		String filepath = (fileStorageProvider.getProjectSoundFile(project, ttsTask.getAudioFileRelativePath())).getAbsolutePath();
 		
@@ -75,10 +109,9 @@ public class AndroidPostProcessor implements PostProcessor
 	    }
 	    catch (TTVUnsupportedLanguageException e)
 	    {
-	    	if (!warnedAboutLanguage)
+	    	if (warnedAboutLanguage.compareAndSet(false, true))
 	    	{
 	    		warningKeeper.addWarning("Text-to-speech synthesis: specified language code not supported for synthesis. Make sure the provided language code is valid, but know that Android will not support all valid language codes for speech synthesis.");
-	    		warnedAboutLanguage = true;
 	    	}
 	    }
 	}
@@ -89,11 +122,12 @@ public class AndroidPostProcessor implements PostProcessor
 	@Override
 	public void freeResources()
 	{
-		// destroy TTS engine:
-		if(ttv != null)
+		// destroy TTS engine(s):
+		synchronized(allTTVs)
 		{
-			ttv.destroy();
-			ttv = null;
+			for(TextToVoice ttv : allTTVs)
+				ttv.destroy();
+			allTTVs.clear();
 		}
 	}
 
@@ -38,6 +38,9 @@ import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
 import uk.ac.ucl.excites.sapelli.storage.eximport.ExportResult;
 import uk.ac.ucl.excites.sapelli.storage.eximport.Exporter;
 import uk.ac.ucl.excites.sapelli.storage.eximport.Importer;
+import uk.ac.ucl.excites.sapelli.storage.eximport.SimpleExporter;
+import uk.ac.ucl.excites.sapelli.storage.eximport.binary.BinaryRecordsExporter;
+import uk.ac.ucl.excites.sapelli.storage.eximport.binary.BinaryRecordsImporter;
 import uk.ac.ucl.excites.sapelli.storage.eximport.csv.CSVRecordsExporter;
 import uk.ac.ucl.excites.sapelli.storage.eximport.csv.CSVRecordsExporter.Separator;
 import uk.ac.ucl.excites.sapelli.storage.eximport.csv.CSVRecordsImporter;
@@ -157,6 +160,9 @@ public final class RecordsTasks
 			case XML:
 				new RecordsTasks.XMLExportTask(activity, exportFolder, exportFragment.getXMLCompositeMode(), exportDesc, callback).execute(records);
 				break;
+			case BINARY:
+				new RecordsTasks.BinaryExportTask(activity, exportFolder, exportDesc, callback).execute(records);
+				break;
 			default:
 				throw new IllegalStateException("Unknown export format: " + exportFragment.getSelectedFormat().toString());
 		}
@@ -265,6 +271,8 @@ public final class RecordsTasks
 		{
 			super(owner);
 			this.exporter = exporter;
+			if(exporter instanceof SimpleExporter) // (BinaryRecordsExporter gets metrics registry from client)
+				((SimpleExporter) exporter).setMetrics(owner.getCollectorClient().getMetrics());
 			this.selectionDescr = selectionDescr;
 			this.callback = callback;
 		}
@@ -307,6 +315,16 @@ public final class RecordsTasks
 		
 	}
 	
+	static public class BinaryExportTask extends ExportTask
+	{
+		
+		public BinaryExportTask(BaseActivity owner, File exportFolder, String selectionDescr, ExportCallback callback)
+		{
+			super(owner, new BinaryRecordsExporter(exportFolder, owner.getCollectorClient()), selectionDescr, callback);
+		}
+		
+	}
+	
 	public interface ExportCallback
 	{
 		
@@ -380,6 +398,16 @@ public final class RecordsTasks
 		
 	}
 	
+	static public class BinaryImportTask extends ImportTask
+	{
+		
+		public BinaryImportTask(BaseActivity owner, ImportCallback callback)
+		{
+			super(owner, new BinaryRecordsImporter(owner.getCollectorClient()), callback);
+		}
+		
+	}
+	
 	public interface ImportCallback
 	{
 		
@@ -31,6 +31,7 @@ import uk.ac.ucl.excites.sapelli.collector.transmission.protocol.sms.out.Android
 import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
 import uk.ac.ucl.excites.sapelli.shared.io.FileStorageException;
 import uk.ac.ucl.excites.sapelli.shared.util.Logger;
+import uk.ac.ucl.excites.sapelli.shared.util.Logger.OverflowPolicy;
 import uk.ac.ucl.excites.sapelli.shared.util.android.AndroidLogger;
 import uk.ac.ucl.excites.sapelli.storage.types.TimeStamp;
 import uk.ac.ucl.excites.sapelli.transmission.control.TransmissionController;
@@ -67,7 +68,7 @@ public class AndroidTransmissionController extends TransmissionController
 	@Override
 	protected Logger createLogger(File logsFolder) throws FileStorageException, IOException
 	{
-		return new AndroidLogger(logsFolder.getAbsolutePath(), LOG_FILENAME_PREFIX + DateTime.now().toString("yyyy-MM-dd"), false, true);
+		return new AndroidLogger(logsFolder.getAbsolutePath(), LOG_FILENAME_PREFIX + DateTime.now().toString("yyyy-MM-dd"), false, true, Logger.DEFAULT_ASYNC_BUFFER_CAPACITY, OverflowPolicy.BLOCK); // async: keep disk I/O off the SMS receiving path
 	}
 
 	@Override
@@ -109,6 +110,26 @@ public class AndroidTransmissionController extends TransmissionController
 		IncomingSMSReceiverService.CancelResendRequest(app, localID);
 	}
 	
+	/**
+	 * Uses an alarm, rather than a thread, because the process may be killed while waiting.
+	 * 
+	 * @see uk.ac.ucl.excites.sapelli.transmission.control.TransmissionController#scheduleSMSTimersWakeUp(uk.ac.ucl.excites.sapelli.storage.types.TimeStamp)
+	 */
+	@Override
+	protected synchronized void scheduleSMSTimersWakeUp(TimeStamp time)
+	{
+		IncomingSMSReceiverService.ScheduleSMSTimersWakeUp(app, time.toDateTime());
+	}
+	
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.transmission.control.TransmissionController#cancelSMSTimersWakeUp()
+	 */
+	@Override
+	protected synchronized void cancelSMSTimersWakeUp()
+	{
+		IncomingSMSReceiverService.CancelSMSTimersWakeUp(app);
+	}
+	
 	static public boolean isValidPhoneNumber(String number)
 	{
 		return PhoneNumberUtils.isWellFormedSmsAddress(number);
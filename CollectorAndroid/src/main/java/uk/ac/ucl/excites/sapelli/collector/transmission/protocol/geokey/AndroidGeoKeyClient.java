@@ -19,10 +19,20 @@
 package uk.ac.ucl.excites.sapelli.collector.transmission.protocol.geokey;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.io.FileUtils;
 import org.json.JSONArray;
@@ -34,6 +44,7 @@ import com.loopj.android.http.SyncHttpClient;
 
 import android.util.Log;
 import cz.msebera.android.httpclient.Header;
+import cz.msebera.android.httpclient.entity.AbstractHttpEntity;
 import cz.msebera.android.httpclient.message.BasicHeader;
 import uk.ac.ucl.excites.sapelli.collector.CollectorApp;
 import uk.ac.ucl.excites.sapelli.collector.R;
@@ -46,11 +57,13 @@ import uk.ac.ucl.excites.sapelli.shared.util.android.http.ChainableRequestParams
 import uk.ac.ucl.excites.sapelli.shared.util.android.http.ResponseHandler;
 import uk.ac.ucl.excites.sapelli.storage.model.Attachment;
 import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.RecordReference;
 import uk.ac.ucl.excites.sapelli.storage.types.TimeStamp;
 import uk.ac.ucl.excites.sapelli.storage.util.TimeStampUtils;
 import uk.ac.ucl.excites.sapelli.storage.util.UnknownModelException;
 import uk.ac.ucl.excites.sapelli.transmission.model.transport.geokey.GeoKeyServer;
 import uk.ac.ucl.excites.sapelli.transmission.protocol.geokey.GeoKeyClient;
+import uk.ac.ucl.excites.sapelli.transmission.protocol.http.MultipartFormWriter;
 
 /**
  * @author mstevens
@@ -73,6 +86,8 @@ public class AndroidGeoKeyClient extends GeoKeyClient
 	
 	static private final String TAG = AndroidGeoKeyClient.class.getSimpleName();
 	
+	static private final Charset UTF8 = Charset.forName("UTF-8");
+	
 	// DYNAMIC ----------------------------------------------------------------
 	private final CollectorApp app;
 	
@@ -318,6 +333,9 @@ public class AndroidGeoKeyClient extends GeoKeyClient
 	}
 	
 	/**
+	 * Records are uploaded as CSV data which is generated straight into the (chunked) request body, and attachments are uploaded
+	 * one file at a time, possibly by several threads concurrently (see {@link GeoKeyClient.StreamingModelSession}).
+	 * 
 	 * Example of project description JSON:
 	 * 
 	 * <pre><code>
@@ -343,7 +361,7 @@ public class AndroidGeoKeyClient extends GeoKeyClient
 	 * 
 	 * @author mstevens
 	 */
-	public class ProjectSession implements ModelSession
+	public class ProjectSession implements StreamingModelSession
 	{
 		
 		public final Project project;
@@ -351,6 +369,12 @@ public class AndroidGeoKeyClient extends GeoKeyClient
 		protected final int geokeyProjectID;
 		protected final Map<Form, Integer> form2gkCategoryID;
 		
+		/**
+		 * Media of the contributions for which attachments have been (or are being) uploaded in this session, such that
+		 * they only need to be looked up once per record.
+		 */
+		private final Map<RecordReference, ContributionMedia> contributionMedia = new ConcurrentHashMap<RecordReference, ContributionMedia>();
+		
 		/**
 		 * @param project
 		 * @param gksProjectInfo
@@ -399,6 +423,42 @@ public class AndroidGeoKeyClient extends GeoKeyClient
 					getAbsoluteUrl(server, getSapelliProjectURL() + "csv_upload/"),
 					getNewHeaders(token),
 					getNewRequestParams(token).putt(PARAMETER_KEY_CVS_FILE, csvFile, "text/csv"));
+			boolean success = checkCSVUploadResponse(handler);
+			if(success ? deleteUponSuccess : deleteUponFailure)
+				FileUtils.deleteQuietly(csvFile);
+			return success;
+		}
+		
+		/* (non-Javadoc)
+		 * @see uk.ac.ucl.excites.sapelli.transmission.protocol.geokey.GeoKeyClient.StreamingModelSession#uploadCSV(java.lang.String, uk.ac.ucl.excites.sapelli.transmission.protocol.geokey.GeoKeyClient.CSVBody)
+		 */
+		@Override
+		public boolean uploadCSV(final String fileName, final CSVBody body)
+		{
+			ResponseHandler handler = postWithJSONResponse(
+					getAbsoluteUrl(server, getSapelliProjectURL() + "csv_upload/"),
+					getNewHeaders(token),
+					new MultipartEntity()
+					{
+						@Override
+						protected void writeParts(MultipartFormWriter form) throws IOException
+						{
+							writeRequestParams(form, token);
+							form.startFilePart(PARAMETER_KEY_CVS_FILE, fileName, "text/csv");
+							Writer writer = new OutputStreamWriter(form.getOutputStream(), UTF8);
+							body.writeTo(writer);
+							writer.flush(); // (not closed, the form continues)
+						}
+					});
+			return checkCSVUploadResponse(handler);
+		}
+		
+		/**
+		 * @param handler
+		 * @return whether or not the CSV data was accepted
+		 */
+		private boolean checkCSVUploadResponse(ResponseHandler handler)
+		{
 			if(checkResponseObject(handler, JSON_KEY_ADDED))
 			{
 				JSONObject json = handler.getResponseObject();
@@ -409,14 +469,10 @@ public class AndroidGeoKeyClient extends GeoKeyClient
 							json.optInt(JSON_KEY_UPDATED),
 							json.optInt(JSON_KEY_IGNORED_DUPS),
 							json.optInt(JSON_KEY_IGNORED_NO_LOC)));
-				if(deleteUponSuccess)
-					FileUtils.deleteQuietly(csvFile);
 				return true;
 			}
 			else
 			{
-				if(deleteUponFailure)
-					FileUtils.deleteQuietly(csvFile);
 				logError(handler, "Could not upload CSV file");
 				return false;
 			}
@@ -434,12 +490,54 @@ public class AndroidGeoKeyClient extends GeoKeyClient
 			if(record == null || attachments == null)
 				return false;
 			
+			// Get contribution media:
+			ContributionMedia media = getContributionMedia(record);
+			if(media == null)
+				return false;
+			
+			// Upload files that don't exist on the server:
+			boolean failure = false;
+			for(Attachment attachment : attachments)
+				failure |= !uploadAttachment(media, attachment);
+			
+			// Return success indicator:
+			return !failure;
+		}
+		
+		/**
+		 * May be called by multiple threads concurrently.
+		 * 
+		 * @see uk.ac.ucl.excites.sapelli.transmission.protocol.geokey.GeoKeyClient.StreamingModelSession#uploadAttachment(uk.ac.ucl.excites.sapelli.storage.model.Record, uk.ac.ucl.excites.sapelli.storage.model.Attachment)
+		 */
+		@Override
+		public boolean uploadAttachment(Record record, Attachment attachment)
+		{
+			// Arguments check:
+			if(record == null || attachment == null)
+				return false;
+			
+			// Get contribution media:
+			ContributionMedia media = getContributionMedia(record);
+			return media != null && uploadAttachment(media, attachment);
+		}
+		
+		/**
+		 * @param record
+		 * @return the media of the contribution for the given record (looked up once per session), or {@code null} if it could not be determined
+		 */
+		private ContributionMedia getContributionMedia(Record record)
+		{
+			RecordReference recordRef = record.getReference();
+			ContributionMedia media = contributionMedia.get(recordRef);
+			if(media != null)
+				return media;
+			
 			// Get Form:
 			Form form = project.getForm(record.getSchema());
 			if(form == null)
 			{
 				Log.e(TAG, "No Form with " + record.getSchema().toString() + " found in project " + project.toString(false));
-				return false;
+				return null;
 			}
 			
 			// Get contribution id:
@@ -447,7 +545,7 @@ public class AndroidGeoKeyClient extends GeoKeyClient
 			if(gkCategoryID == null)
 			{
 				Log.e(TAG, "Server has no GeoKey category for form " + form.id);
-				return false;
+				return null;
 			}
 			ResponseHandler handler = postWithJSONResponse(
 					getAbsoluteUrl(server, getSapelliProjectURL() + "find_observation/" + gkCategoryID.toString() + "/"),
@@ -457,8 +555,8 @@ public class AndroidGeoKeyClient extends GeoKeyClient
 						.putt("sap_rec_DeviceID", Long.toString(Form.GetDeviceID(record))));
 			if(!checkResponseObject(handler, JSON_KEY_OBSERVATION_ID))
 			{
-				logError(handler, "Could not get contribution ID for record (PK: " + record.getReference().toString() + ")"); // no such Project or observation
-				return false;
+				logError(handler, "Could not get contribution ID for record (PK: " + recordRef.toString() + ")"); // no such Project or observation
+				return null;
 			}
 			//else:
 			int contribution_id = handler.getResponseObject().optInt(JSON_KEY_OBSERVATION_ID);
@@ -469,48 +567,127 @@ public class AndroidGeoKeyClient extends GeoKeyClient
 			if(!checkResponseArray(handler))
 			{
 				logError(handler, "Could not get documents list for contribution with ID " + contribution_id);
-				return false;
+				return null;
 			}
 			//else:
 			JSONArray existingDocuments = handler.getResponseArray();
-			List<String> existingDocumentNames = new ArrayList<String>(existingDocuments.length());
+			media = new ContributionMedia(contributionMediaURL);
 			for(int i = 0; i < existingDocuments.length(); i++)
 			{
 				JSONObject document = existingDocuments.optJSONObject(i);
 				if(document != null && document.has(JSON_KEY_NAME))
-					existingDocumentNames.add(document.optString(JSON_KEY_NAME));
+					media.existingDocumentNames.add(document.optString(JSON_KEY_NAME));
 			}
-			
-			// Upload files that don't exist on the server:
-			boolean failure = false;
-			for(Attachment attachment : attachments)
+			contributionMedia.put(recordRef, media); // (if several threads got here for the same record the media are equivalent)
+			return media;
+		}
+		
+		/**
+		 * @param media
+		 * @param attachment
+		 * @return whether or not the attachment was uploaded (or did not need to be)
+		 */
+		private boolean uploadAttachment(ContributionMedia media, Attachment attachment)
+		{
+			if(!FileHelpers.isReadableFile(attachment.file))
+				return true; // file does not exist or is not readable
+			String name = FileHelpers.trimFileExtensionAndDot(attachment.file.getName());
+			if(media.existingDocumentNames.contains(name))
 			{
-				if(!FileHelpers.isReadableFile(attachment.file))
-					continue; // file does not exist or is not readable
-				String name = FileHelpers.trimFileExtensionAndDot(attachment.file.getName());
-				if(existingDocumentNames.contains(name))
-				{
-					client.logInfo("File \"" + name + "\" already exists on the server, no uploading needed.");
-					continue; // file already exists on server
-				}				
-				// Upload file:
-				client.logInfo("Attempting to uploading file \"" + name + "\"...");
-				handler = postWithJSONResponse(
-					contributionMediaURL,
-					getNewHeaders(token),
-					getNewRequestParams(token)
-						.putt(PARAMETER_KEY_FILE, attachment.file, attachment.getMimeType())
-						.putt(PARAMETER_KEY_NAME, name)
-						.putt(PARAMETER_KEY_DESC, app.getString(R.string.uploadedFromAt, app.getBuildInfo().getNameAndVersion(), TimeStampUtils.getISOTimestamp(TimeStamp.now(), true))));
-				if(!checkResponseObject(handler, JSON_KEY_NAME))
-				{
-					logError(handler, "Could not upload media file: " + attachment.file.getName());
-					failure = true;
-				}
+				client.logInfo("File \"" + name + "\" already exists on the server, no uploading needed.");
+				return true; // file already exists on server
 			}
-			
-			// Return success indicator:
-			return !failure;
+			// Upload file:
+			client.logInfo("Attempting to uploading file \"" + name + "\"...");
+			ResponseHandler handler = postWithJSONResponse(
+				media.url,
+				getNewHeaders(token),
+				getNewRequestParams(token)
+					.putt(PARAMETER_KEY_FILE, attachment.file, attachment.getMimeType())
+					.putt(PARAMETER_KEY_NAME, name)
+					.putt(PARAMETER_KEY_DESC, app.getString(R.string.uploadedFromAt, app.getBuildInfo().getNameAndVersion(), TimeStampUtils.getISOTimestamp(TimeStamp.now(), true))));
+			if(!checkResponseObject(handler, JSON_KEY_NAME))
+			{
+				logError(handler, "Could not upload media file: " + attachment.file.getName());
+				return false;
+			}
+			media.existingDocumentNames.add(name);
+			return true;
+		}
+		
+	}
+	
+	/**
+	 * The media (documents) of a GeoKey contribution.
+	 */
+	static private class ContributionMedia
+	{
+		
+		final String url;
+		final Set<String> existingDocumentNames = Collections.synchronizedSet(new HashSet<String>());
+		
+		public ContributionMedia(String url)
+		{
+			this.url = url;
+		}
+		
+	}
+	
+	/**
+	 * A multipart/form-data request body which is written straight to the connection, in chunks, as it is being sent.
+	 * It can only be sent once, so requests with this entity are not retried.
+	 */
+	static private abstract class MultipartEntity extends AbstractHttpEntity
+	{
+		
+		private final String boundary = MultipartFormWriter.CreateBoundary();
+		private boolean written = false;
+		
+		public MultipartEntity()
+		{
+			setChunked(true);
+			setContentType(MultipartFormWriter.GetContentType(boundary));
+		}
+		
+		/**
+		 * @param form the form to write the parts to (it is finished afterwards)
+		 * @throws IOException
+		 */
+		protected abstract void writeParts(MultipartFormWriter form) throws IOException;
+		
+		@Override
+		public boolean isRepeatable()
+		{
+			return false;
+		}
+		
+		@Override
+		public long getContentLength()
+		{
+			return -1; // unknown
+		}
+		
+		@Override
+		public InputStream getContent() throws IOException
+		{
+			throw new UnsupportedOperationException("Body is only available by writing it");
+		}
+		
+		@Override
+		public void writeTo(OutputStream out) throws IOException
+		{
+			if(written)
+				throw new IllegalStateException("Body can only be written once");
+			written = true;
+			MultipartFormWriter form = new MultipartFormWriter(out, boundary);
+			writeParts(form);
+			form.finish();
+		}
+		
+		@Override
+		public boolean isStreaming()
+		{
+			return !written;
 		}
 		
 	}
@@ -558,6 +735,19 @@ public class AndroidGeoKeyClient extends GeoKeyClient
 		return params;
 	}
 	
+	/**
+	 * Writes the same parameters as {@link #getNewRequestParams(JSONObject)} adds, to a streamed form.
+	 * 
+	 * @param form
+	 * @param token
+	 * @throws IOException
+	 */
+	private void writeRequestParams(MultipartFormWriter form, JSONObject token) throws IOException
+	{
+		if(token != null && (AUTH_MODE == AuthMode.RequestParam || AUTH_MODE == AuthMode.Both))
+			form.writeField(JSON_KEY_ACCESS_TOKEN, token.optString(JSON_KEY_ACCESS_TOKEN));
+	}
+	
 	private List<Header> getNewHeaders(JSONObject token)
 	{
 		List<Header> headerList = new ArrayList<Header>();
@@ -586,6 +776,16 @@ public class AndroidGeoKeyClient extends GeoKeyClient
 		return handler;
 	}
 	
+	private ResponseHandler postWithJSONResponse(String absoluteUrl, List<Header> headers, MultipartEntity entity)
+	{
+		ResponseHandler handler = new ResponseHandler(absoluteUrl);
+		
+		// Blocking!:
+		HttpClient.post(app, absoluteUrl, toArray(headers), entity, entity.getContentType().getValue(), handler);
+		
+		return handler;
+	}
+	
 	private Header[] toArray(List<Header> headers)
 	{
 		if(headers == null)
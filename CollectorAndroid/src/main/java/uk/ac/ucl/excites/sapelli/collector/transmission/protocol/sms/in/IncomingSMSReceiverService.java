@@ -61,6 +61,13 @@ public class IncomingSMSReceiverService extends SignalMonitoringService
 	public static final int TASK_RECEIVE_MESSAGE = 0;
 	public static final int TASK_REQUEST_RESEND = 1;
 	public static final int TASK_SCHEDULE_RESEND_REQUESTS = 2;
+	public static final int TASK_HANDLE_SMS_TIMERS = 3;
+	
+	/**
+	 * Intent action for the SMS timers wake-up alarm, it distinguishes its PendingIntent from those of the resend request alarms
+	 * (which are distinguished from one another by request code).
+	 */
+	private static final String ACTION_SMS_TIMERS_WAKE_UP = IncomingSMSReceiverService.class.getName() + ".SMS_TIMERS_WAKE_UP";
 	
 	/**
 	 * Intent extra key for specifying task
@@ -158,6 +165,49 @@ public class IncomingSMSReceiverService extends SignalMonitoringService
 		}
 	}
 	
+	/**
+	 * Sets the (single) alarm upon which the SMS timers of the {@link AndroidTransmissionController} are handled (see
+	 * {@link AndroidTransmissionController#startSMSTimers()}), replacing any earlier one.
+	 * 
+	 * @param context
+	 * @param time at which the next SMS timer deadline is due (may have passed already)
+	 */
+	public static void ScheduleSMSTimersWakeUp(Context context, DateTime time)
+	{
+		SetOrCancelSMSTimersWakeUpAlarm(context, time);
+	}
+	
+	/**
+	 * @param context
+	 */
+	public static void CancelSMSTimersWakeUp(Context context)
+	{
+		SetOrCancelSMSTimersWakeUpAlarm(context, null /*cancel*/);
+	}
+	
+	/**
+	 * @param context
+	 * @param alarmTime the DateTime at which the alarm goes off, or {@code null} if the existing alarm must be cancelled
+	 */
+	private static void SetOrCancelSMSTimersWakeUpAlarm(Context context, DateTime alarmTime)
+	{
+		AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+		
+		Intent serviceIntent = new Intent(context, IncomingSMSReceiverService.class);
+		serviceIntent.setAction(ACTION_SMS_TIMERS_WAKE_UP);
+		serviceIntent.putExtra(EXTRA_TASK, TASK_HANDLE_SMS_TIMERS);
+		PendingIntent pi = PendingIntent.getService(context, 0, serviceIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+		
+		if(alarmTime != null)
+		{	// (replaces any previously set alarm for the same PendingIntent)
+			am.set(AlarmManager.RTC, alarmTime.getMillis(), pi);
+			// make sure the timers are rebuilt and the alarm is set again after device reboot:
+			SetupBootReceiver(context, true);
+		}
+		else
+			am.cancel(pi);
+	}
+	
 	/**
 	 * Starts the SMSReceiverService to schedule resend requests.
 	 * Called from BootListener.
@@ -187,6 +237,7 @@ public class IncomingSMSReceiverService extends SignalMonitoringService
 	// DYNAMIC ------------------------------------------------------
 	private CollectorApp app;
 	private AndroidTransmissionController transmissionController;
+	private boolean smsTimersStarted = false;
 	private Handler mainHandler; // only used in order to display Toasts
 
 	public IncomingSMSReceiverService()
@@ -219,12 +270,30 @@ public class IncomingSMSReceiverService extends SignalMonitoringService
 	{
 		if(!intent.hasExtra(EXTRA_TASK))
 			Log.e(TAG, "No service task specified!");
+		// Rebuild SMS timers from the store (once per service instance, on the worker thread):
+		startSMSTimers();
 		// Decide which task to execute:
 		switch(intent.getIntExtra(EXTRA_TASK, -1))
 		{
 			case TASK_RECEIVE_MESSAGE : receiveMessage(intent); break;
 			case TASK_REQUEST_RESEND : requestResend(intent); break;
 			case TASK_SCHEDULE_RESEND_REQUESTS : scheduleAllResendRequests(); break;
+			case TASK_HANDLE_SMS_TIMERS : handleSMSTimers(); break;
+		}
+	}
+	
+	private void startSMSTimers()
+	{
+		if(smsTimersStarted || transmissionController == null)
+			return;
+		try
+		{
+			transmissionController.startSMSTimers();
+			smsTimersStarted = true;
+		}
+		catch(Exception e)
+		{
+			Log.e(TAG, "Error upon starting SMS timers.", e);
 		}
 	}
 	
@@ -329,6 +398,28 @@ public class IncomingSMSReceiverService extends SignalMonitoringService
 		}
 	}
 	
+	private void handleSMSTimers()
+	{
+		if(!smsTimersStarted)
+			return;
+		Log.d(TAG, "Woken by alarm for handling SMS timers");
+		try
+		{
+			if(signalMonitor.isInService())
+			{	// Send out due resend requests & expire transmissions:
+				transmissionController.onSMSTimersWakeUp();
+			}
+			else
+			{	// Try again in 6 minutes:
+				ScheduleSMSTimersWakeUp(getApplicationContext(), TimeStamp.now().shift(RESEND_REQUEST_RETRY_DELAY_MS).toDateTime());
+			}
+		}
+		catch(Exception e)
+		{
+			Log.e(TAG, "Error upon handling SMS timers.", e);
+		}
+	}
+	
 	private void scheduleAllResendRequests()
 	{
 		try
@@ -43,6 +43,11 @@ public class AndroidLogger extends Logger
 		super(folderPath, baseFileName, timestampFilename, printToOutputStream);
 	}
 	
+	public AndroidLogger(String folderPath, String baseFileName, boolean timestampFilename, boolean printToOutputStream, int asyncBufferCapacity, OverflowPolicy overflowPolicy) throws IOException
+	{
+		super(folderPath, baseFileName, timestampFilename, printToOutputStream, asyncBufferCapacity, overflowPolicy);
+	}
+	
 	@Override
 	protected void printToOutputStream(String line)
 	{
@@ -32,12 +32,16 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.joda.time.DateTime;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Map;
 
 import uk.ac.ucl.excites.sapelli.collector.io.FileStorageProvider;
 import uk.ac.ucl.excites.sapelli.collector.load.ProjectLoader;
+import uk.ac.ucl.excites.sapelli.collector.loadtest.LoadTest;
+import uk.ac.ucl.excites.sapelli.collector.loadtest.PhaseStats;
 import uk.ac.ucl.excites.sapelli.collector.model.Form;
 import uk.ac.ucl.excites.sapelli.collector.model.Project;
 import uk.ac.ucl.excites.sapelli.collector.transmission.protocol.geokey.GeoKeyFormDescriber;
@@ -59,6 +63,37 @@ public class SapColCmdLn
 		options.addOption(loadFile);
 		options.addOption("json", false, "Produce JSON output");
 		options.addOption("geokey", false, "Produce 'sapelli_project_info' (JSON) for geokey_sapelli");
+		Option loadTest = Option.builder("loadtest").hasArg().argName("records_per_form").desc("Run a synthetic load test (generate, store, send, receive & export) with the loaded project").build();
+		options.addOption(loadTest);
+		Option sms = Option.builder("sms").hasArg().argName("text|binary").desc("SMS mode used by the load test (default: text)").build();
+		options.addOption(sms);
+		Option smsDisorder = Option.builder("smsdisorder").hasArg().argName("duplicate_probability").desc("Let the load test deliver SMS messages in random order, and deliver parts of multi-part transmissions twice with the given probability").build();
+		options.addOption(smsDisorder);
+		Option receivers = Option.builder("receivers").hasArg().argName("n").desc("Number of receivers the load test sends the records to, all but the first of which never respond (default: 1)").build();
+		options.addOption(receivers);
+		options.addOption("fanout", false, "Let the load test send the records to all receivers at once, rather than one receiver at a time");
+		Option replay = Option.builder("replay").hasArg().argName("duplicate_fraction").desc("Let the load test run a replay round, in which a second batch of records is sent together with resent records from the first batch, making up the given fraction (at most 0.5) of the records sent").build();
+		options.addOption(replay);
+		options.addOption("receiptfilter", false, "Let the load test's receiving device skip received records which are already stored, using a Bloom filter of received record keys");
+		Option upload = Option.builder("upload").hasArg().argName("latency_ms").desc("Let the load test upload the (first batch of) records, with synthetic attachments, to an in-process GeoKey stand-in which responds after the given latency").build();
+		options.addOption(upload);
+		options.addOption("uploadlegacy", false, "Let the load test upload via temporary CSV files and upload attachments one at a time, rather than streaming CSV rows and uploading attachments in parallel");
+		Option attachments = Option.builder("attachments").hasArg().argName("n").desc("Number of synthetic attachments per record uploaded by the load test (default: 1)").build();
+		options.addOption(attachments);
+		Option uploadFailures = Option.builder("uploadfailures").hasArg().argName("probability").desc("Let the load test's GeoKey stand-in reject attachment uploads with the given probability").build();
+		options.addOption(uploadFailures);
+		options.addOption("resumable", false, "Let the load test upload attachments in chunks, which are resumed from the last acknowledged chunk after an interruption (not with -uploadlegacy)");
+		Option dropConnections = Option.builder("dropconnections").hasArg().argName("probability").desc("Let the load test's GeoKey stand-in drop connections at random points of attachment uploads (or chunks), with the given probability per MiB received").build();
+		options.addOption(dropConnections);
+		Option attachmentKB = Option.builder("attachmentkb").hasArg().argName("n").desc("Size (in KiB) of the synthetic attachments uploaded by the load test (default: 16)").build();
+		options.addOption(attachmentKB);
+		Option seed = Option.builder("seed").hasArg().argName("n").desc("Seed for the load test's record generator (default: 0)").build();
+		options.addOption(seed);
+		Option slowQueries = Option.builder("slowqueries").hasArg().argName("ms").desc("Include the statements which took at least the given number of milliseconds (with their query plans) in the (non-JSON) load test report").build();
+		options.addOption(slowQueries);
+		Option indexAdvisor = Option.builder("indexadvisor").hasArg().argName("threshold").desc("Let the load test devices create indexes for query shapes which were run the given number of times without being served by an index, and include index usage in the (non-JSON) load test report").build();
+		options.addOption(indexAdvisor);
+		options.addOption("metrics", false, "Include the storage, transmission & export metrics of both load test devices in the (non-JSON) report");
 		options.addOption("help", false, "Print list of arguments");
 	}
 
@@ -115,7 +150,9 @@ public class SapColCmdLn
 			try
 			{
 				project = loader.load(sapFile);
-				if(cmd.hasOption("json"))
+				if(cmd.hasOption("loadtest"))
+					runLoadTest(sapFile, baseFolder, cmd);
+				else if(cmd.hasOption("json"))
 					printProjectInfoJSON(sapFile, project);
 				else if(cmd.hasOption("geokey"))
 					printProjectInfoForGeoKey(sapFile, project);
@@ -242,4 +279,174 @@ public class SapColCmdLn
 		mapper.writeTree(generator, projectJSON);
 	}
 
+	/**
+	 * Runs a {@link LoadTest} in a new folder (inside the base folder) and prints its report.
+	 * 
+	 * @param sapFile
+	 * @param baseFolder
+	 * @param cmd
+	 * @throws Exception
+	 */
+	static public void runLoadTest(File sapFile, File baseFolder, CommandLine cmd) throws Exception
+	{
+		int recordsPerForm = Integer.parseInt(cmd.getOptionValue("loadtest").trim());
+		String smsMode = cmd.getOptionValue("sms", "text").trim();
+		if(!"text".equalsIgnoreCase(smsMode) && !"binary".equalsIgnoreCase(smsMode))
+			throw new IllegalArgumentException("Invalid SMS mode: " + smsMode);
+		long seed = Long.parseLong(cmd.getOptionValue("seed", "0").trim());
+		File runFolder = new File(new File(baseFolder, "LoadTest"), DateTime.now().toString("yyyy-MM-dd_HH-mm-ss"));
+
+		LoadTest loadTest = new LoadTest(sapFile, runFolder, recordsPerForm, "binary".equalsIgnoreCase(smsMode), seed);
+		if(cmd.hasOption("slowqueries"))
+			loadTest.setSlowQueryThresholdMS(Long.parseLong(cmd.getOptionValue("slowqueries").trim()));
+		if(cmd.hasOption("smsdisorder"))
+			loadTest.setSMSDisorder(Double.parseDouble(cmd.getOptionValue("smsdisorder").trim()));
+		if(cmd.hasOption("receivers"))
+			loadTest.setNumberOfReceivers(Integer.parseInt(cmd.getOptionValue("receivers").trim()));
+		loadTest.setFanOut(cmd.hasOption("fanout"));
+		if(cmd.hasOption("replay"))
+			loadTest.setReplayDuplicateFraction(Double.parseDouble(cmd.getOptionValue("replay").trim()));
+		loadTest.setReceivedRecordsFilter(cmd.hasOption("receiptfilter"));
+		if(cmd.hasOption("upload"))
+			loadTest.setUpload(
+				Long.parseLong(cmd.getOptionValue("upload").trim()),
+				!cmd.hasOption("uploadlegacy"),
+				Integer.parseInt(cmd.getOptionValue("attachments", "1").trim()),
+				Double.parseDouble(cmd.getOptionValue("uploadfailures", "0").trim()));
+		loadTest.setUploadInterruptions(cmd.hasOption("resumable"), Double.parseDouble(cmd.getOptionValue("dropconnections", "0").trim()));
+		if(cmd.hasOption("attachmentkb"))
+			loadTest.setAttachmentSize(Integer.parseInt(cmd.getOptionValue("attachmentkb").trim()) * 1024);
+		if(cmd.hasOption("indexadvisor"))
+			loadTest.setIndexAdvisorThreshold(Integer.parseInt(cmd.getOptionValue("indexadvisor").trim()));
+		Project project = loadTest.run();
+		if(cmd.hasOption("json"))
+			printLoadTestReportJSON(project, loadTest);
+		else
+			printLoadTestReport(project, loadTest, cmd.hasOption("metrics"));
+		if(!loadTest.isComplete())
+			throw new IllegalStateException("Not all records were received");
+	}
+
+	static public void printLoadTestReport(Project project, LoadTest loadTest, boolean includeMetrics)
+	{
+		System.out.println("Load test report:");
+		System.out.println(" - project: " + project.toString(false));
+		System.out.println(" - SMS mode: " + (loadTest.isBinarySMS() ? "binary" : "text") + (loadTest.isSMSDisorder() ? " (random order, " + loadTest.getDuplicatesDelivered() + " duplicates)" : ""));
+		System.out.println(" - receivers: " + loadTest.getNumberOfReceivers() + (loadTest.getNumberOfReceivers() > 1 ? (loadTest.isFanOut() ? " (fan-out)" : " (one at a time)") : ""));
+		if(loadTest.isReplay())
+			System.out.println(" - replay: " + loadTest.getReplayDuplicates() + " duplicates, receipt filter " + (loadTest.isReceivedRecordsFilter() ? "on (" + loadTest.getReceiptFilterDuplicates() + " duplicates skipped)" : "off") + ", receiver store calls: " + loadTest.getReceiverStoreCalls());
+		if(loadTest.isUpload())
+			System.out.println(" - upload: " + (loadTest.isStreamingUpload() ? "streaming" : "legacy") + ", " + loadTest.getUploadLatencyMS() + " ms latency, " + loadTest.getUploadRequests() + " requests, rows: " + loadTest.getUploadedRows() + ", attachments: " + loadTest.getUploadedAttachments() + "/" + loadTest.getExpectedAttachments() + " (" + loadTest.getRejectedAttachments() + " rejected), failed payloads: " + loadTest.getUploadFailedPayloads());
+		if(loadTest.isUpload() && loadTest.getExpectedAttachments() > 0)
+			System.out.println(" - attachment bytes: " + (loadTest.isResumableUpload() ? "resumable (" + loadTest.getUploadChunks() + " chunks)" : "whole files") + ", " + loadTest.getAttachmentSize() / 1024 + " KiB per file, " + loadTest.getUploadDroppedConnections() + " dropped connections, " + loadTest.getUploadedAttachmentBytes() + " stored / " + loadTest.getUploadMediaBytesReceived() + " received (" + (loadTest.getUploadMediaBytesReceived() - loadTest.getUploadedAttachmentBytes()) + " wasted)");
+		System.out.println(" - pending SMS timers: " + loadTest.getPendingSMSTimers());
+		System.out.println(" - seed: " + loadTest.getSeed());
+		System.out.println(" - run folder: " + loadTest.getRunFolder().getAbsolutePath());
+		System.out.println(" - Records (generated/received):");
+		for(Map.Entry<String, Integer> generated : loadTest.getGeneratedCounts().entrySet())
+			System.out.println("    * " + generated.getKey() + ": " + generated.getValue() + "/" + loadTest.getReceivedCounts().get(generated.getKey()));
+		System.out.println(" - Phases:");
+		for(PhaseStats stats : loadTest.getPhaseStats())
+			System.out.println("    * " + stats.toString());
+		if(includeMetrics)
+		{
+			System.out.println(" - Sender metrics:");
+			System.out.print(loadTest.getSenderMetrics());
+			System.out.println(" - Receiver metrics:");
+			System.out.print(loadTest.getReceiverMetrics());
+		}
+		if(loadTest.getSenderQueryProfiler() != null)
+		{
+			System.out.println(" - Sender slow queries:");
+			System.out.print(loadTest.getSenderQueryProfiler());
+		}
+		if(loadTest.getReceiverQueryProfiler() != null)
+		{
+			System.out.println(" - Receiver slow queries:");
+			System.out.print(loadTest.getReceiverQueryProfiler());
+		}
+		if(loadTest.getSenderIndexAdvisor() != null)
+		{
+			System.out.println(" - Sender indexes:");
+			System.out.print(loadTest.getSenderIndexAdvisor());
+		}
+		if(loadTest.getReceiverIndexAdvisor() != null)
+		{
+			System.out.println(" - Receiver indexes:");
+			System.out.print(loadTest.getReceiverIndexAdvisor());
+		}
+	}
+
+	static public void printLoadTestReportJSON(Project project, LoadTest loadTest) throws IOException
+	{
+		JsonNodeFactory factory = new JsonNodeFactory(false);
+		JsonFactory jsonFactory = new JsonFactory();
+		JsonGenerator generator = jsonFactory.createGenerator(System.out);
+		ObjectMapper mapper = new ObjectMapper();
+
+		// the root node
+		ObjectNode reportJSON = factory.objectNode();
+
+		// describe test:
+		reportJSON.put("project-id", project.getID());
+		reportJSON.put("project-fingerprint", project.getFingerPrint());
+		reportJSON.put("display-name", project.toString(false));
+		reportJSON.put("sms-mode", loadTest.isBinarySMS() ? "binary" : "text");
+		reportJSON.put("sms-disorder", loadTest.isSMSDisorder());
+		reportJSON.put("sms-duplicates", loadTest.getDuplicatesDelivered());
+		reportJSON.put("receivers", loadTest.getNumberOfReceivers());
+		reportJSON.put("fan-out", loadTest.isFanOut());
+		reportJSON.put("replay-duplicates", loadTest.isReplay() ? loadTest.getReplayDuplicates() : 0);
+		reportJSON.put("receipt-filter", loadTest.isReceivedRecordsFilter());
+		reportJSON.put("receipt-filter-duplicates", loadTest.getReceiptFilterDuplicates());
+		reportJSON.put("receiver-store-calls", loadTest.getReceiverStoreCalls());
+		reportJSON.put("upload", loadTest.isUpload() ? (loadTest.isStreamingUpload() ? "streaming" : "legacy") : null);
+		reportJSON.put("upload-latency-ms", loadTest.getUploadLatencyMS());
+		reportJSON.put("upload-requests", loadTest.getUploadRequests());
+		reportJSON.put("uploaded-rows", loadTest.getUploadedRows());
+		reportJSON.put("uploaded-attachments", loadTest.getUploadedAttachments());
+		reportJSON.put("expected-attachments", loadTest.getExpectedAttachments());
+		reportJSON.put("rejected-attachments", loadTest.getRejectedAttachments());
+		reportJSON.put("upload-failed-payloads", loadTest.getUploadFailedPayloads());
+		reportJSON.put("resumable-upload", loadTest.isResumableUpload());
+		reportJSON.put("attachment-size", loadTest.getAttachmentSize());
+		reportJSON.put("upload-dropped-connections", loadTest.getUploadDroppedConnections());
+		reportJSON.put("upload-chunks", loadTest.getUploadChunks());
+		reportJSON.put("uploaded-attachment-bytes", loadTest.getUploadedAttachmentBytes());
+		reportJSON.put("upload-media-bytes-received", loadTest.getUploadMediaBytesReceived());
+		reportJSON.put("pending-sms-timers", loadTest.getPendingSMSTimers());
+		reportJSON.put("seed", loadTest.getSeed());
+		reportJSON.put("run-folder", loadTest.getRunFolder().getAbsolutePath());
+		reportJSON.put("complete", loadTest.isComplete());
+		ArrayNode formsJSON = factory.arrayNode();
+		for(Map.Entry<String, Integer> generated : loadTest.getGeneratedCounts().entrySet())
+		{
+			ObjectNode formJSON = factory.objectNode();
+			formJSON.put("id", generated.getKey());
+			formJSON.put("generated", generated.getValue());
+			formJSON.put("received", loadTest.getReceivedCounts().get(generated.getKey()));
+			formsJSON.add(formJSON);
+		}
+		reportJSON.set("forms", formsJSON);
+		ArrayNode phasesJSON = factory.arrayNode();
+		for(PhaseStats stats : loadTest.getPhaseStats())
+		{
+			ObjectNode phaseJSON = factory.objectNode();
+			phaseJSON.put("name", stats.name);
+			phaseJSON.put("operation", stats.operation);
+			phaseJSON.put("operations", stats.getNumberOfOperations());
+			phaseJSON.put("items", stats.getNumberOfItems());
+			phaseJSON.put("total-ms", stats.getTotalMS());
+			phaseJSON.put("items-per-second", stats.getItemsPerSecond());
+			for(double p : PhaseStats.PERCENTILES)
+				phaseJSON.put("p" + (int) p + "-ms", stats.getPercentileMS(p));
+			phaseJSON.put("max-ms", stats.getMaxMS());
+			phasesJSON.add(phaseJSON);
+		}
+		reportJSON.set("phases", phasesJSON);
+
+		// Serialise:
+		mapper.writeTree(generator, reportJSON);
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,971 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.collector.loadtest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import uk.ac.ucl.excites.sapelli.collector.JavaCollectorClient;
+import uk.ac.ucl.excites.sapelli.collector.db.ProjectStore;
+import uk.ac.ucl.excites.sapelli.collector.load.ProjectLoader;
+import uk.ac.ucl.excites.sapelli.collector.model.CollectorAttachment;
+import uk.ac.ucl.excites.sapelli.collector.model.Field;
+import uk.ac.ucl.excites.sapelli.collector.model.Form;
+import uk.ac.ucl.excites.sapelli.collector.model.Project;
+import uk.ac.ucl.excites.sapelli.collector.transmission.SendSchedule;
+import uk.ac.ucl.excites.sapelli.shared.db.StoreHandle.StoreUser;
+import uk.ac.ucl.excites.sapelli.shared.util.Metrics;
+import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
+import uk.ac.ucl.excites.sapelli.storage.db.sql.IndexAdvisor;
+import uk.ac.ucl.excites.sapelli.storage.db.sql.SQLRecordStore;
+import uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite.SQLiteQueryProfiler;
+import uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite.SQLiteRecordStore;
+import uk.ac.ucl.excites.sapelli.storage.eximport.ExportResult;
+import uk.ac.ucl.excites.sapelli.storage.eximport.Exporter;
+import uk.ac.ucl.excites.sapelli.storage.eximport.binary.BinaryRecordsExporter;
+import uk.ac.ucl.excites.sapelli.storage.eximport.csv.CSVRecordsExporter;
+import uk.ac.ucl.excites.sapelli.storage.eximport.xml.XMLRecordsExporter;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.transmission.control.ReceivedRecordsFilter;
+import uk.ac.ucl.excites.sapelli.transmission.control.TimerWheel;
+import uk.ac.ucl.excites.sapelli.transmission.db.TransmissionStore;
+import uk.ac.ucl.excites.sapelli.transmission.model.content.RecordsPayload;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.geokey.GeoKeyTransmission;
+import uk.ac.ucl.excites.sapelli.transmission.protocol.geokey.GeoKeyClient;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.SMSCorrespondent;
+
+/**
+ * Synthetic load test for a Collector project: generates records for every form, stores them in a (SQLite) record store,
+ * sends them over a {@link LoopbackSMSNetwork} to a second "device" which receives them and returns acknowledgements, and
+ * finally exports the received records in every {@link Exporter.Format}. Each of these phases is timed by a {@link PhaseStats}.
+ *
+ * The sending and receiving devices are separate {@link JavaCollectorClient}s, each with their own working folder (and
+ * database) inside the given run folder. All work happens on the calling thread.
+ *
+ * Optionally the records are also sent to additional receivers, which are "sinks" on the network (see
+ * {@link LoopbackSMSNetwork#addSink(String)}), either one receiver at a time or in a single fan-out
+ * (see {@link LoopbackTransmissionController#sendRecords(uk.ac.ucl.excites.sapelli.storage.model.Model, java.util.Collection)}).
+ *
+ * Optionally a "replay" round follows, in which a second batch of records is sent together with records from the first batch
+ * which are marked for resending (as happens when acknowledgements get lost), such that the receiver gets a given fraction of
+ * duplicates (see {@link #setReplayDuplicateFraction(double)}).
+ *
+ * Optionally the first batch of records is also uploaded, with synthetic attachments, to a {@link LoopbackGeoKeyServer} with simulated
+ * latency, using either the streaming or the file-based upload path of the {@link GeoKeyClient} (see {@link #setUpload(long, boolean, int, double)}).
+ * The server can be made to drop connections during attachment uploads, which are then either restarted or, when resumable uploads are
+ * enabled, resumed from the last acknowledged chunk (see {@link #setUploadInterruptions(boolean, double)}).
+ */
+public class LoadTest implements StoreUser
+{
+
+	// STATIC -------------------------------------------------------
+	static public final String SENDER_PHONE_NUMBER = "+447700900001";
+	static public final String RECEIVER_PHONE_NUMBER = "+447700900002";
+	static public final String SINK_PHONE_NUMBER_PREFIX = "+4477009001";
+	static public final int MAX_RECEIVERS = 100;
+
+	static public final String SENDER_FOLDER = "Sender";
+	static public final String RECEIVER_FOLDER = "Receiver";
+	static public final String ATTACHMENTS_FOLDER = "Attachments";
+
+	/**
+	 * Maximum number of records uploaded in a single {@link RecordsPayload}.
+	 */
+	static public final int UPLOAD_BATCH_SIZE = 100;
+
+	/**
+	 * Default size (in bytes) of each synthetic attachment file.
+	 */
+	static public final int DEFAULT_ATTACHMENT_SIZE = 16 * 1024;
+
+	/**
+	 * Delay before the first retry of a failed attachment upload (kept short so retries do not dominate the upload phase).
+	 */
+	static public final long UPLOAD_RETRY_DELAY_MS = 50;
+
+	// DYNAMIC ------------------------------------------------------
+	private final File sapFile;
+	private final File runFolder;
+	private final int recordsPerForm;
+	private final boolean binarySMS;
+	private final long seed;
+
+	private final PhaseStats generateStats = new PhaseStats("generate", "record");
+	private final PhaseStats storeStats = new PhaseStats("store", "record");
+	private final PhaseStats sendStats = new PhaseStats("send", "transmission");
+	private final PhaseStats receiveStats = new PhaseStats("receive", "message");
+	private final PhaseStats ackStats = new PhaseStats("ack", "message");
+	private final PhaseStats replayStats = new PhaseStats("replay", "message");
+	private final PhaseStats uploadStats = new PhaseStats("upload", "payload");
+	private final PhaseStats exportStats = new PhaseStats("export", "export");
+
+	private final Map<String, Integer> generatedCounts = new LinkedHashMap<String, Integer>();
+	private final Map<String, Integer> receivedCounts = new LinkedHashMap<String, Integer>();
+
+	private Metrics.Snapshot senderMetrics;
+	private Metrics.Snapshot receiverMetrics;
+
+	private long slowQueryThresholdMS = -1;
+	private SQLiteQueryProfiler senderQueryProfiler;
+	private SQLiteQueryProfiler receiverQueryProfiler;
+
+	private double duplicateProbability = -1.0d;
+	private int duplicatesDelivered = 0;
+	private int pendingSMSTimers = 0;
+
+	private int numberOfReceivers = 1;
+	private boolean fanOut = false;
+
+	private double replayDuplicateFraction = -1.0d;
+	private int replayDuplicates = 0;
+	private boolean receivedRecordsFilter = false;
+
+	private long uploadLatencyMS = -1;
+	private boolean streamingUpload;
+	private int attachmentsPerRecord;
+	private int attachmentSize = DEFAULT_ATTACHMENT_SIZE;
+	private double uploadFailureProbability;
+	private boolean resumableUpload = false;
+	private double uploadDropProbability = 0.0d;
+	private int uploadFailedPayloads = 0;
+	private long uploadedRows = 0;
+	private int expectedAttachments = 0;
+	private int uploadedAttachments = 0;
+	private int rejectedAttachments = 0;
+	private int uploadRequests = 0;
+	private long uploadedAttachmentBytes = 0;
+	private long uploadMediaBytesReceived = 0;
+	private int uploadDroppedConnections = 0;
+	private int uploadChunks = 0;
+
+	private int indexAdvisorThreshold = -1;
+	private IndexAdvisor senderIndexAdvisor;
+	private IndexAdvisor receiverIndexAdvisor;
+
+	/**
+	 * @param sapFile the project to test with
+	 * @param runFolder (non-existing or empty) folder to hold the working folders of both devices
+	 * @param recordsPerForm number of records to generate for each form which produces records
+	 * @param binarySMS whether to use binary (true) or textual (false) SMS
+	 * @param seed seed for the {@link RecordGenerator}
+	 */
+	public LoadTest(File sapFile, File runFolder, int recordsPerForm, boolean binarySMS, long seed)
+	{
+		if(recordsPerForm < 1)
+			throw new IllegalArgumentException("recordsPerForm must be at least 1");
+		this.sapFile = sapFile;
+		this.runFolder = runFolder;
+		this.recordsPerForm = recordsPerForm;
+		this.binarySMS = binarySMS;
+		this.seed = seed;
+	}
+
+	/**
+	 * @param slowQueryThresholdMS when {@code >= 0} query profiling is enabled on the record stores of both devices, with the given threshold for slow queries
+	 * @see SQLiteRecordStore#enableQueryProfiling(long)
+	 */
+	public void setSlowQueryThresholdMS(long slowQueryThresholdMS)
+	{
+		this.slowQueryThresholdMS = slowQueryThresholdMS;
+	}
+
+	/**
+	 * @param duplicateProbability when {@code >= 0} SMS messages are delivered in random order, and parts of multi-part transmissions are delivered twice with the given probability
+	 * @see LoopbackSMSNetwork#setDisorder(long, double)
+	 */
+	public void setSMSDisorder(double duplicateProbability)
+	{
+		this.duplicateProbability = duplicateProbability;
+	}
+
+	/**
+	 * @param numberOfReceivers total number of receivers to send the records to, all but the first are sinks (must be in [1, {@link #MAX_RECEIVERS}])
+	 */
+	public void setNumberOfReceivers(int numberOfReceivers)
+	{
+		if(numberOfReceivers < 1 || numberOfReceivers > MAX_RECEIVERS)
+			throw new IllegalArgumentException("Number of receivers must be in [1, " + MAX_RECEIVERS + "]");
+		this.numberOfReceivers = numberOfReceivers;
+	}
+
+	/**
+	 * @param fanOut whether to send the records to all receivers at once (true), or one receiver at a time (false)
+	 */
+	public void setFanOut(boolean fanOut)
+	{
+		this.fanOut = fanOut;
+	}
+
+	/**
+	 * @param replayDuplicateFraction when {@code >= 0} a replay round is run, in which this fraction of the records sent is made up of duplicates (must be at most 0.5)
+	 */
+	public void setReplayDuplicateFraction(double replayDuplicateFraction)
+	{
+		if(replayDuplicateFraction > 0.5d)
+			throw new IllegalArgumentException("Replay duplicate fraction cannot be more than 0.5");
+		this.replayDuplicateFraction = replayDuplicateFraction;
+	}
+
+	/**
+	 * @param receivedRecordsFilter whether the receiving device skips received records which are already stored
+	 * @see LoopbackTransmissionController#enableReceivedRecordsFilter(int, double)
+	 */
+	public void setReceivedRecordsFilter(boolean receivedRecordsFilter)
+	{
+		this.receivedRecordsFilter = receivedRecordsFilter;
+	}
+
+	/**
+	 * @param latencyMS when {@code >= 0} the first batch of records is uploaded to a {@link LoopbackGeoKeyServer} which responds to each request after this many milliseconds
+	 * @param streaming whether to use the streaming upload path (true) or the file-based one (false)
+	 * @param attachmentsPerRecord number of synthetic attachments per record (must be >= 0)
+	 * @param failureProbability probability with which the server rejects each attachment upload
+	 */
+	public void setUpload(long latencyMS, boolean streaming, int attachmentsPerRecord, double failureProbability)
+	{
+		if(attachmentsPerRecord < 0)
+			throw new IllegalArgumentException("Number of attachments per record cannot be negative");
+		this.uploadLatencyMS = latencyMS;
+		this.streamingUpload = streaming;
+		this.attachmentsPerRecord = attachmentsPerRecord;
+		this.uploadFailureProbability = failureProbability;
+	}
+
+	/**
+	 * @param resumable whether to upload attachments in chunks which are resumed after an interruption (requires the streaming upload path)
+	 * @param dropProbability probability with which the server drops a connection while receiving 1 MiB of attachment data
+	 */
+	public void setUploadInterruptions(boolean resumable, double dropProbability)
+	{
+		this.resumableUpload = resumable;
+		this.uploadDropProbability = dropProbability;
+	}
+
+	/**
+	 * @param attachmentSize size (in bytes) of each synthetic attachment file (must be >= 0)
+	 */
+	public void setAttachmentSize(int attachmentSize)
+	{
+		if(attachmentSize < 0)
+			throw new IllegalArgumentException("Attachment size cannot be negative");
+		this.attachmentSize = attachmentSize;
+	}
+
+	/**
+	 * @param indexAdvisorThreshold when {@code >= 1} the index advisor is enabled (with automatic index creation) on the record stores of both devices, with the given threshold
+	 * @see SQLRecordStore#enableIndexAdvisor(int, boolean)
+	 */
+	public void setIndexAdvisorThreshold(int indexAdvisorThreshold)
+	{
+		this.indexAdvisorThreshold = indexAdvisorThreshold;
+	}
+
+	/**
+	 * Runs all phases.
+	 *
+	 * @return the project used on the sending side
+	 * @throws Exception
+	 */
+	public Project run() throws Exception
+	{
+		File downloadsFolder = new File(System.getProperty("java.io.tmpdir"));
+		QuietCollectorClient sender = new QuietCollectorClient(new File(runFolder, SENDER_FOLDER), downloadsFolder, SENDER_FOLDER);
+		JavaCollectorClient receiver = new QuietCollectorClient(new File(runFolder, RECEIVER_FOLDER), downloadsFolder, RECEIVER_FOLDER);
+		LoopbackTransmissionController senderController = null;
+		LoopbackTransmissionController receiverController = null;
+		TransmissionStore senderTransmissionStore = null;
+		try
+		{
+			// Set-up:
+			sender.enableMetrics();
+			receiver.enableMetrics();
+			Project project = install(sender);
+			Project receiverProject = install(receiver);
+			LoopbackSMSNetwork network = new LoopbackSMSNetwork();
+			if(duplicateProbability >= 0.0d)
+				network.setDisorder(seed, duplicateProbability);
+			senderController = new LoopbackTransmissionController(sender, sender.getFileStorageProvider(), network, SENDER_PHONE_NUMBER);
+			receiverController = new LoopbackTransmissionController(receiver, receiver.getFileStorageProvider(), network, RECEIVER_PHONE_NUMBER);
+			senderController.enableSMSTimers(TimerWheel.DEFAULT_TICK_MS, TimerWheel.DEFAULT_NUMBER_OF_SLOTS, System.currentTimeMillis());
+			receiverController.enableSMSTimers(TimerWheel.DEFAULT_TICK_MS, TimerWheel.DEFAULT_NUMBER_OF_SLOTS, System.currentTimeMillis());
+			if(receivedRecordsFilter)
+				receiverController.enableReceivedRecordsFilter(ReceivedRecordsFilter.DEFAULT_CAPACITY, ReceivedRecordsFilter.DEFAULT_FALSE_POSITIVE_PROBABILITY);
+			List<SMSCorrespondent> receiverCorrespondents = new ArrayList<SMSCorrespondent>(numberOfReceivers);
+			receiverCorrespondents.add(new SMSCorrespondent(RECEIVER_FOLDER, RECEIVER_PHONE_NUMBER, binarySMS));
+			for(int s = 1; s < numberOfReceivers; s++)
+			{
+				String sinkPhoneNumber = SINK_PHONE_NUMBER_PREFIX + String.format("%02d", s);
+				network.addSink(sinkPhoneNumber);
+				receiverCorrespondents.add(new SMSCorrespondent("Sink" + s, sinkPhoneNumber, binarySMS));
+			}
+			// 	Schedule sending of all project records to the receiver(s) (upon storage):
+			for(SMSCorrespondent receiverCorrespondent : receiverCorrespondents)
+				sender.projectStoreHandle.getStore(this).storeSendSchedule(new SendSchedule(project, receiverCorrespondent, true));
+			RecordStore senderRecordStore = sender.recordStoreHandle.getStore(this);
+			RecordStore receiverRecordStore = receiver.recordStoreHandle.getStore(this);
+			if(slowQueryThresholdMS >= 0)
+			{
+				if(senderRecordStore instanceof SQLiteRecordStore)
+					senderQueryProfiler = ((SQLiteRecordStore) senderRecordStore).enableQueryProfiling(slowQueryThresholdMS);
+				if(receiverRecordStore instanceof SQLiteRecordStore)
+					receiverQueryProfiler = ((SQLiteRecordStore) receiverRecordStore).enableQueryProfiling(slowQueryThresholdMS);
+			}
+			if(indexAdvisorThreshold >= 1)
+			{
+				if(senderRecordStore instanceof SQLRecordStore)
+					senderIndexAdvisor = ((SQLRecordStore<?, ?, ?>) senderRecordStore).enableIndexAdvisor(indexAdvisorThreshold, true);
+				if(receiverRecordStore instanceof SQLRecordStore)
+					receiverIndexAdvisor = ((SQLRecordStore<?, ?, ?>) receiverRecordStore).enableIndexAdvisor(indexAdvisorThreshold, true);
+			}
+
+			// Generate & store (which also schedules the records for sending):
+			RecordGenerator generator = new RecordGenerator(seed);
+			List<Record> records = generateAndStore(project, generator, senderRecordStore);
+
+			// Upload to GeoKey:
+			if(uploadLatencyMS >= 0)
+				upload(sender, project, records);
+
+			// Send & deliver:
+			sendAndDeliver(project, senderController, receiverController, receiverCorrespondents, network, records.size(), receiveStats);
+
+			// Replay (a new batch of records plus duplicates of records from the first batch):
+			if(replayDuplicateFraction >= 0.0d)
+			{
+				List<Record> newRecords = generateAndStore(project, generator, senderRecordStore);
+				replayDuplicates = (int) Math.round(newRecords.size() * replayDuplicateFraction / (1.0d - replayDuplicateFraction));
+				List<Record> duplicates = new ArrayList<Record>(records);
+				Collections.shuffle(duplicates, new Random(seed));
+				senderTransmissionStore = sender.transmissionStoreHandle.getStore(this);
+				for(Record duplicate : duplicates.subList(0, replayDuplicates))
+					// Mark as not (successfully) sent to the (real) receiver:
+					senderTransmissionStore.storeTransmittableRecord(receiverCorrespondents.get(0), duplicate.getReference(), null);
+				sendAndDeliver(project, senderController, receiverController, receiverCorrespondents, network, newRecords.size() + replayDuplicates, replayStats);
+			}
+			duplicatesDelivered = network.getDuplicatesDelivered();
+			pendingSMSTimers = 0;
+			for(LoopbackTransmissionController controller : new LoopbackTransmissionController[] { senderController, receiverController })
+				pendingSMSTimers += controller.getNumberOfPendingSMSResendRequests() + controller.getNumberOfPendingSMSExpiries();
+
+			// Check & export received records:
+			List<Exporter> exporters = new ArrayList<Exporter>();
+			File exportFolder = receiver.getFileStorageProvider().getExportFolder(true);
+			CSVRecordsExporter csvExporter = new CSVRecordsExporter(exportFolder);
+			csvExporter.setMetrics(receiver.getMetrics());
+			exporters.add(csvExporter);
+			XMLRecordsExporter xmlExporter = new XMLRecordsExporter(exportFolder);
+			xmlExporter.setMetrics(receiver.getMetrics());
+			exporters.add(xmlExporter);
+			exporters.add(new BinaryRecordsExporter(exportFolder, receiver));
+			for(Form form : receiverProject.getForms())
+				if(form.isProducesRecords())
+				{
+					List<Record> received = receiverRecordStore.retrieveRecords(form.getSchema());
+					receivedCounts.put(form.id, received.size());
+					for(Exporter exporter : exporters)
+					{
+						long start = System.nanoTime();
+						ExportResult result = exporter.export(received, "LoadTest_" + form.id);
+						exportStats.add(System.nanoTime() - start, received.size());
+						if(!result.wasSuccessful() && result.getFailureReason() != null)
+							throw new Exception("Export failed (" + exporter.getClass().getSimpleName() + ")", result.getFailureReason());
+					}
+				}
+
+			senderMetrics = sender.getMetrics().snapshot();
+			receiverMetrics = receiver.getMetrics().snapshot();
+			return project;
+		}
+		finally
+		{
+			if(senderController != null)
+				senderController.discard();
+			if(receiverController != null)
+				receiverController.discard();
+			if(senderTransmissionStore != null)
+				sender.transmissionStoreHandle.doneUsing(this);
+			for(JavaCollectorClient client : new JavaCollectorClient[] { sender, receiver })
+			{
+				client.projectStoreHandle.doneUsing(this);
+				client.recordStoreHandle.doneUsing(this);
+			}
+		}
+	}
+
+	/**
+	 * Generates {@code recordsPerForm} records for each form which produces records, and stores them.
+	 *
+	 * @param project
+	 * @param generator
+	 * @param recordStore
+	 * @return the generated records
+	 * @throws Exception
+	 */
+	private List<Record> generateAndStore(Project project, RecordGenerator generator, RecordStore recordStore) throws Exception
+	{
+		// Generate:
+		List<Record> records = new ArrayList<Record>();
+		for(Form form : project.getForms())
+			if(form.isProducesRecords())
+			{
+				for(int r = 0; r < recordsPerForm; r++)
+				{
+					long start = System.nanoTime();
+					records.add(generator.generate(form));
+					generateStats.add(System.nanoTime() - start, 1);
+				}
+				Integer count = generatedCounts.get(form.id);
+				generatedCounts.put(form.id, (count != null ? count : 0) + recordsPerForm);
+			}
+
+		// Store (which also schedules the records for sending):
+		for(Record record : records)
+		{
+			long start = System.nanoTime();
+			recordStore.store(record);
+			storeStats.add(System.nanoTime() - start, 1);
+		}
+		return records;
+	}
+
+	/**
+	 * Uploads the given records, with synthetic attachments, to a new {@link LoopbackGeoKeyServer}, in payloads of at most {@link #UPLOAD_BATCH_SIZE} records.
+	 *
+	 * @param sender
+	 * @param project
+	 * @param records
+	 * @throws Exception
+	 */
+	private void upload(QuietCollectorClient sender, Project project, List<Record> records) throws Exception
+	{
+		sender.setSyntheticAttachments(new File(runFolder, ATTACHMENTS_FOLDER), attachmentsPerRecord, attachmentSize, seed);
+		LoopbackGeoKeyServer server = new LoopbackGeoKeyServer(uploadLatencyMS);
+		if(uploadFailureProbability > 0.0d)
+			server.setAttachmentFailures(seed, uploadFailureProbability);
+		if(uploadDropProbability > 0.0d)
+			server.setConnectionDrops(seed, uploadDropProbability);
+		server.start();
+		try
+		{
+			LoopbackGeoKeyClient geoKeyClient = new LoopbackGeoKeyClient(sender, project, server.getURL(), new File(runFolder, SENDER_FOLDER), streamingUpload, resumableUpload);
+			geoKeyClient.setAttachmentUploadPolicy(GeoKeyClient.DEFAULT_ATTACHMENT_UPLOAD_THREADS, GeoKeyClient.DEFAULT_ATTACHMENT_UPLOAD_ATTEMPTS, UPLOAD_RETRY_DELAY_MS);
+			for(int from = 0; from < records.size(); from += UPLOAD_BATCH_SIZE)
+			{
+				List<Record> batch = records.subList(from, Math.min(from + UPLOAD_BATCH_SIZE, records.size()));
+				RecordsPayload payload = new RecordsPayload();
+				new GeoKeyTransmission(sender, geoKeyClient.getServer(), payload);
+				for(Record record : batch)
+					payload.addRecord(record);
+				long start = System.nanoTime();
+				try
+				{
+					geoKeyClient.handle(payload);
+				}
+				catch(Exception e)
+				{
+					uploadFailedPayloads++;
+				}
+				uploadStats.add(System.nanoTime() - start, batch.size());
+			}
+		}
+		finally
+		{
+			server.stop();
+			sender.setSyntheticAttachments(null, 0, 0, seed);
+		}
+		uploadedRows = server.getNumberOfCSVRows();
+		expectedAttachments = records.size() * attachmentsPerRecord;
+		uploadedAttachments = server.getNumberOfAttachments();
+		rejectedAttachments = server.getNumberOfRejectedAttachments();
+		uploadRequests = server.getNumberOfRequests();
+		uploadedAttachmentBytes = server.getAttachmentBytes();
+		uploadMediaBytesReceived = server.getMediaBytesReceived();
+		uploadDroppedConnections = server.getNumberOfDroppedConnections();
+		uploadChunks = server.getNumberOfChunks();
+	}
+
+	/**
+	 * Sends the records which are due to the receivers, and delivers all messages (records to the receiver(s), acknowledgements to the sender).
+	 *
+	 * @param project
+	 * @param senderController
+	 * @param receiverController
+	 * @param receiverCorrespondents
+	 * @param network
+	 * @param recordsToSend number of records due to be sent to the (real) receiver
+	 * @param deliveryStats the stats to time deliveries to the receiver with
+	 * @throws Exception
+	 */
+	private void sendAndDeliver(Project project, LoopbackTransmissionController senderController, LoopbackTransmissionController receiverController, List<SMSCorrespondent> receiverCorrespondents, LoopbackSMSNetwork network, int recordsToSend, PhaseStats deliveryStats) throws Exception
+	{
+		// Send:
+		senderController.setOutgoingTransmissionStats(sendStats);
+		sendStats.startLaps();
+		if(fanOut)
+			senderController.sendRecords(project.getModel(), receiverCorrespondents);
+		else
+			for(SMSCorrespondent receiverCorrespondent : receiverCorrespondents)
+				senderController.sendRecords(project.getModel(), receiverCorrespondent);
+		senderController.finishOutgoingTransmissionLaps(recordsToSend * numberOfReceivers);
+		senderController.setOutgoingTransmissionStats(null);
+
+		// Deliver messages:
+		while(network.hasInFlightMessages())
+		{
+			long start = System.nanoTime();
+			LoopbackTransmissionController deliveredTo = network.deliverNext();
+			if(deliveredTo != null) // (not to a sink)
+				(deliveredTo == receiverController ? deliveryStats : ackStats).add(System.nanoTime() - start, 1);
+		}
+	}
+
+	/**
+	 * Loads the project and adds it to the client's {@link ProjectStore}.
+	 *
+	 * @param client
+	 * @return the installed project
+	 * @throws Exception
+	 */
+	private Project install(JavaCollectorClient client) throws Exception
+	{
+		Project project = new ProjectLoader(client.getFileStorageProvider()).load(sapFile);
+		return client.projectStoreHandle.getStore(this).add(project);
+	}
+
+	/**
+	 * @return the stats of all phases, in execution order
+	 */
+	public List<PhaseStats> getPhaseStats()
+	{
+		List<PhaseStats> stats = new ArrayList<PhaseStats>();
+		Collections.addAll(stats, generateStats, storeStats);
+		if(uploadLatencyMS >= 0)
+			stats.add(uploadStats);
+		Collections.addAll(stats, sendStats, receiveStats, ackStats);
+		if(replayDuplicateFraction >= 0.0d)
+			stats.add(replayStats);
+		stats.add(exportStats);
+		return stats;
+	}
+
+	/**
+	 * @return number of records generated (and sent) per form ID
+	 */
+	public Map<String, Integer> getGeneratedCounts()
+	{
+		return Collections.unmodifiableMap(generatedCounts);
+	}
+
+	/**
+	 * @return number of records found in the receiver's record store per form ID
+	 */
+	public Map<String, Integer> getReceivedCounts()
+	{
+		return Collections.unmodifiableMap(receivedCounts);
+	}
+
+	/**
+	 * @return whether or not all generated records have been received
+	 */
+	public boolean isComplete()
+	{
+		return generatedCounts.equals(receivedCounts);
+	}
+
+	/**
+	 * @return the metrics recorded by the sending client (storage & transmission internals), or {@code null} if the test has not (successfully) run
+	 */
+	public Metrics.Snapshot getSenderMetrics()
+	{
+		return senderMetrics;
+	}
+
+	/**
+	 * @return the metrics recorded by the receiving client (storage, transmission & export internals), or {@code null} if the test has not (successfully) run
+	 */
+	public Metrics.Snapshot getReceiverMetrics()
+	{
+		return receiverMetrics;
+	}
+
+	/**
+	 * @return the query profiler of the sending device's record store, or {@code null} if query profiling was not enabled
+	 */
+	public SQLiteQueryProfiler getSenderQueryProfiler()
+	{
+		return senderQueryProfiler;
+	}
+
+	/**
+	 * @return the query profiler of the receiving device's record store, or {@code null} if query profiling was not enabled
+	 */
+	public SQLiteQueryProfiler getReceiverQueryProfiler()
+	{
+		return receiverQueryProfiler;
+	}
+
+	/**
+	 * @return the index advisor of the sending device's record store, or {@code null} if it was not enabled
+	 */
+	public IndexAdvisor getSenderIndexAdvisor()
+	{
+		return senderIndexAdvisor;
+	}
+
+	/**
+	 * @return the index advisor of the receiving device's record store, or {@code null} if it was not enabled
+	 */
+	public IndexAdvisor getReceiverIndexAdvisor()
+	{
+		return receiverIndexAdvisor;
+	}
+
+	public File getRunFolder()
+	{
+		return runFolder;
+	}
+
+	public boolean isBinarySMS()
+	{
+		return binarySMS;
+	}
+
+	public long getSeed()
+	{
+		return seed;
+	}
+
+	/**
+	 * @return total number of receivers the records were sent to
+	 */
+	public int getNumberOfReceivers()
+	{
+		return numberOfReceivers;
+	}
+
+	/**
+	 * @return whether the records were sent to all receivers at once
+	 */
+	public boolean isFanOut()
+	{
+		return fanOut;
+	}
+
+	/**
+	 * @return whether a replay round was run
+	 */
+	public boolean isReplay()
+	{
+		return replayDuplicateFraction >= 0.0d;
+	}
+
+	/**
+	 * @return the number of duplicate records sent in the replay round
+	 */
+	public int getReplayDuplicates()
+	{
+		return replayDuplicates;
+	}
+
+	/**
+	 * @return whether the receiving device skipped received records which were already stored
+	 */
+	public boolean isReceivedRecordsFilter()
+	{
+		return receivedRecordsFilter;
+	}
+
+	/**
+	 * @return the number of received records the receiving device skipped because they were already stored
+	 */
+	public long getReceiptFilterDuplicates()
+	{
+		Long duplicates = receiverMetrics != null ? receiverMetrics.counters.get(ReceivedRecordsFilter.METRIC_DUPLICATES) : null;
+		return duplicates != null ? duplicates.longValue() : 0;
+	}
+
+	/**
+	 * @return the number of records the receiving device's record store was asked to store (i.e. insert or update)
+	 */
+	public long getReceiverStoreCalls()
+	{
+		Metrics.HistogramSnapshot stores = receiverMetrics != null ? receiverMetrics.timers.get(SQLRecordStore.METRIC_STORE) : null;
+		return stores != null ? stores.count : 0;
+	}
+
+	/**
+	 * @return whether the first batch of records was uploaded to a {@link LoopbackGeoKeyServer}
+	 */
+	public boolean isUpload()
+	{
+		return uploadLatencyMS >= 0;
+	}
+
+	/**
+	 * @return the simulated server latency (in milliseconds) used by the upload phase
+	 */
+	public long getUploadLatencyMS()
+	{
+		return uploadLatencyMS;
+	}
+
+	/**
+	 * @return whether the upload phase used the streaming upload path
+	 */
+	public boolean isStreamingUpload()
+	{
+		return streamingUpload;
+	}
+
+	/**
+	 * @return number of CSV rows (i.e. records) received by the server
+	 */
+	public long getUploadedRows()
+	{
+		return uploadedRows;
+	}
+
+	/**
+	 * @return number of (distinct) attachments received by the server
+	 */
+	public int getUploadedAttachments()
+	{
+		return uploadedAttachments;
+	}
+
+	/**
+	 * @return number of attachments which should have been uploaded
+	 */
+	public int getExpectedAttachments()
+	{
+		return expectedAttachments;
+	}
+
+	/**
+	 * @return number of attachment uploads rejected by the server
+	 */
+	public int getRejectedAttachments()
+	{
+		return rejectedAttachments;
+	}
+
+	/**
+	 * @return number of payloads which were not uploaded without errors
+	 */
+	public int getUploadFailedPayloads()
+	{
+		return uploadFailedPayloads;
+	}
+
+	/**
+	 * @return number of HTTP requests received by the server
+	 */
+	public int getUploadRequests()
+	{
+		return uploadRequests;
+	}
+
+	/**
+	 * @return whether attachments were uploaded in resumable chunks
+	 */
+	public boolean isResumableUpload()
+	{
+		return resumableUpload;
+	}
+
+	/**
+	 * @return size (in bytes) of each synthetic attachment file
+	 */
+	public int getAttachmentSize()
+	{
+		return attachmentSize;
+	}
+
+	/**
+	 * @return total size (in bytes) of the attachments received by the server
+	 */
+	public long getUploadedAttachmentBytes()
+	{
+		return uploadedAttachmentBytes;
+	}
+
+	/**
+	 * @return total number of attachment bytes received by the server, including those of uploads (or chunks) which were rejected or dropped
+	 */
+	public long getUploadMediaBytesReceived()
+	{
+		return uploadMediaBytesReceived;
+	}
+
+	/**
+	 * @return number of connections dropped by the server
+	 */
+	public int getUploadDroppedConnections()
+	{
+		return uploadDroppedConnections;
+	}
+
+	/**
+	 * @return number of attachment chunks accepted by the server
+	 */
+	public int getUploadChunks()
+	{
+		return uploadChunks;
+	}
+
+	/**
+	 * @return whether SMS messages were delivered in random order (and possibly duplicated)
+	 */
+	public boolean isSMSDisorder()
+	{
+		return duplicateProbability >= 0.0d;
+	}
+
+	/**
+	 * @return the number of SMS messages which were delivered twice
+	 */
+	public int getDuplicatesDelivered()
+	{
+		return duplicatesDelivered;
+	}
+
+	/**
+	 * @return the number of resend request and expiry deadlines still pending (for incomplete SMS transmissions) on both devices after all messages were delivered
+	 */
+	public int getPendingSMSTimers()
+	{
+		return pendingSMSTimers;
+	}
+
+	/**
+	 * {@link JavaCollectorClient} which only logs warnings and errors, and which can provide synthetic attachments for records.
+	 */
+	static private final class QuietCollectorClient extends JavaCollectorClient
+	{
+
+		private File attachmentsFolder;
+		private int attachmentsPerRecord;
+		private int attachmentSize;
+		private long attachmentsSeed;
+
+		public QuietCollectorClient(File sapelliFolder, File downloadsFolder, String identifier)
+		{
+			super(sapelliFolder, downloadsFolder, identifier);
+		}
+
+		/**
+		 * @param folder folder to create attachment files in, or {@code null} to stop providing synthetic attachments
+		 * @param perRecord number of attachments per record
+		 * @param size size (in bytes) of each attachment file
+		 * @param seed seed for the contents of the attachment files
+		 */
+		public void setSyntheticAttachments(File folder, int perRecord, int size, long seed)
+		{
+			this.attachmentsFolder = folder;
+			this.attachmentsPerRecord = perRecord;
+			this.attachmentSize = size;
+			this.attachmentsSeed = seed;
+		}
+
+		/**
+		 * Synthetic attachments are associated with the first field of the record's form, their files are created when first needed.
+		 *
+		 * @see uk.ac.ucl.excites.sapelli.collector.CollectorClient#getRecordAttachments(uk.ac.ucl.excites.sapelli.storage.model.Record)
+		 */
+		@Override
+		public List<? extends CollectorAttachment<?>> getRecordAttachments(Record record)
+		{
+			if(attachmentsFolder == null || attachmentsPerRecord == 0)
+				return super.getRecordAttachments(record);
+			Project project = getProject(record.getSchema().model);
+			Form form = project != null ? project.getForm(record.getSchema()) : null;
+			if(form == null || form.getFields().isEmpty())
+				return Collections.<CollectorAttachment<?>> emptyList();
+			List<SyntheticAttachment> attachments = new ArrayList<SyntheticAttachment>(attachmentsPerRecord);
+			for(int a = 0; a < attachmentsPerRecord; a++)
+			{
+				File file = new File(attachmentsFolder, form.id + "_" + Form.GetStartTime(record).getMsSinceEpoch() + "_" + a + ".jpg");
+				if(!file.exists())
+					try
+					{
+						createFile(file, Form.GetStartTime(record).getMsSinceEpoch() + a);
+					}
+					catch(IOException ioE)
+					{
+						logError("Could not create attachment file", ioE);
+						continue;
+					}
+				attachments.add(new SyntheticAttachment(form.getField(0), record, file));
+			}
+			return attachments;
+		}
+
+		private void createFile(File file, long salt) throws IOException
+		{
+			if(!attachmentsFolder.exists() && !attachmentsFolder.mkdirs())
+				throw new IOException("Could not create folder " + attachmentsFolder.getAbsolutePath());
+			byte[] bytes = new byte[attachmentSize];
+			new Random(attachmentsSeed ^ salt).nextBytes(bytes);
+			OutputStream out = new FileOutputStream(file);
+			try
+			{
+				out.write(bytes);
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+
+		@Override
+		public void logInfo(String msg)
+		{
+			// ignore
+		}
+
+	}
+
+	/**
+	 * Attachment with synthetic (random) contents.
+	 */
+	static private final class SyntheticAttachment extends CollectorAttachment<Field>
+	{
+
+		public SyntheticAttachment(Field field, Record record, File file)
+		{
+			super(field, record, file);
+		}
+
+		@Override
+		public String getMimeType()
+		{
+			return "image/jpeg";
+		}
+
+	}
+
+}
@@ -0,0 +1,536 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.collector.loadtest;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import uk.ac.ucl.excites.sapelli.collector.model.Form;
+import uk.ac.ucl.excites.sapelli.collector.model.Project;
+import uk.ac.ucl.excites.sapelli.shared.io.FileHelpers;
+import uk.ac.ucl.excites.sapelli.shared.util.BinaryHelpers;
+import uk.ac.ucl.excites.sapelli.storage.model.Attachment;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.util.TimeStampUtils;
+import uk.ac.ucl.excites.sapelli.storage.util.UnknownModelException;
+import uk.ac.ucl.excites.sapelli.transmission.TransmissionClient;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.geokey.GeoKeyServer;
+import uk.ac.ucl.excites.sapelli.transmission.protocol.geokey.GeoKeyClient;
+import uk.ac.ucl.excites.sapelli.transmission.protocol.http.MultipartFormWriter;
+import uk.ac.ucl.excites.sapelli.transmission.protocol.http.ResumableUploader;
+
+/**
+ * {@link GeoKeyClient} which uploads the records of a single project to a {@link LoopbackGeoKeyServer}, using plain {@link HttpURLConnection}s
+ * with chunked request bodies.
+ *
+ * In streaming mode {@link #getModelSession(long)} returns a {@link GeoKeyClient.StreamingModelSession}, otherwise a session which only
+ * supports the file-based upload path (temporary CSV files & sequential attachment uploads without retries). In resumable mode the
+ * streaming session also uploads attachments in chunks, using the protocol of {@link ResumableUploader}.
+ */
+public class LoopbackGeoKeyClient extends GeoKeyClient
+{
+
+	// STATIC -------------------------------------------------------
+	static private final int CHUNK_SIZE = 16 * 1024;
+	static private final Charset UTF8 = Charset.forName("UTF-8");
+	static private final String PATH_SAPELLI_PROJECT = PATH_API_GEOKEY_SAPELLI + "projects/1/";
+	static private final String PATH_GEOKEY_PROJECT = PATH_API_GEOKEY + "projects/1/";
+	static private final String JSON_KEY_UPLOAD_ID = "upload_id";
+	static private final String JSON_KEY_OFFSET = "offset";
+	static private final int HTTP_CONFLICT = 409;
+	static private final int HTTP_UNPROCESSABLE_ENTITY = 422;
+
+	// DYNAMIC ------------------------------------------------------
+	private final Project project;
+	private final URL baseURL;
+	private final File tempFolder;
+	private final boolean streaming;
+	private final boolean resumable;
+	private final GeoKeyServer server;
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	/**
+	 * @param client
+	 * @param project the project whose records are uploaded
+	 * @param baseURL base URL of the server
+	 * @param tempFolder folder for temporary CSV files
+	 * @param streaming whether to use the streaming upload path
+	 * @param resumable whether to upload attachments in chunks (requires streaming)
+	 */
+	public LoopbackGeoKeyClient(TransmissionClient client, Project project, URL baseURL, File tempFolder, boolean streaming, boolean resumable)
+	{
+		super(client);
+		if(resumable && !streaming)
+			throw new IllegalArgumentException("Resumable uploads require the streaming upload path");
+		this.project = project;
+		this.baseURL = baseURL;
+		this.tempFolder = tempFolder;
+		this.streaming = streaming;
+		this.resumable = resumable;
+		this.server = GeoKeyServer.CreateNew("Loopback", baseURL.toString(), null, null);
+	}
+
+	@Override
+	public boolean connectAndLogin(GeoKeyServer server)
+	{
+		return true;
+	}
+
+	@Override
+	public void disconnect()
+	{
+		// nothing to do
+	}
+
+	@Override
+	public void logout()
+	{
+		// nothing to do
+	}
+
+	@Override
+	public boolean isUserLoggedIn()
+	{
+		return true;
+	}
+
+	@Override
+	public GeoKeyServer getServer()
+	{
+		return server;
+	}
+
+	@Override
+	protected File getTempFolder()
+	{
+		return tempFolder;
+	}
+
+	/**
+	 * @return whether the streaming upload path is used
+	 */
+	public boolean isStreaming()
+	{
+		return streaming;
+	}
+
+	/**
+	 * @return whether attachments are uploaded in chunks
+	 */
+	public boolean isResumable()
+	{
+		return resumable;
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.transmission.protocol.geokey.GeoKeyClient#getModelSession(long)
+	 */
+	@Override
+	protected ModelSession getModelSession(long modelID) throws UnknownModelException, IllegalAccessException
+	{
+		if(modelID != project.getModel().id)
+			throw new UnknownModelException(modelID, null);
+		return resumable ? new ResumableSession() : (streaming ? new StreamingSession() : new Session());
+	}
+
+	/**
+	 * POSTs a multipart/form-data request (with a chunked body) and parses the JSON response.
+	 *
+	 * @param path
+	 * @param body writes the parts of the request body
+	 * @return the response, or {@code null} if the server responded with an error status
+	 * @throws IOException
+	 */
+	private JsonNode post(String path, RequestBody body) throws IOException
+	{
+		HttpURLConnection connection = (HttpURLConnection) new URL(baseURL, path).openConnection();
+		String boundary = MultipartFormWriter.CreateBoundary();
+		connection.setDoOutput(true);
+		connection.setRequestMethod("POST");
+		connection.setChunkedStreamingMode(CHUNK_SIZE);
+		connection.setRequestProperty("Content-Type", MultipartFormWriter.GetContentType(boundary));
+		OutputStream out = connection.getOutputStream();
+		try
+		{
+			MultipartFormWriter form = new MultipartFormWriter(out, boundary);
+			body.writeTo(form);
+			form.finish();
+		}
+		finally
+		{
+			out.close();
+		}
+		boolean ok = connection.getResponseCode() == HttpURLConnection.HTTP_OK;
+		InputStream in = ok ? connection.getInputStream() : connection.getErrorStream();
+		try
+		{
+			String response = in != null ? IOUtils.toString(in, UTF8) : null; // reading the whole response allows the connection to be reused
+			return ok && response != null ? mapper.readTree(response) : null;
+		}
+		finally
+		{
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Sends a request with a raw (fixed-length) body, or without a body, and parses the JSON response.
+	 *
+	 * @param method
+	 * @param path
+	 * @param body may be {@code null}
+	 * @param length length of the body
+	 * @return the response
+	 * @throws IOException
+	 */
+	private Response send(String method, String path, byte[] body, int length) throws IOException
+	{
+		HttpURLConnection connection = (HttpURLConnection) new URL(baseURL, path).openConnection();
+		connection.setRequestMethod(method);
+		if(body != null)
+		{
+			connection.setDoOutput(true);
+			connection.setFixedLengthStreamingMode(length);
+			connection.setRequestProperty("Content-Type", "application/octet-stream");
+			OutputStream out = connection.getOutputStream();
+			try
+			{
+				out.write(body, 0, length);
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		int status = connection.getResponseCode();
+		InputStream in = status < HttpURLConnection.HTTP_BAD_REQUEST ? connection.getInputStream() : connection.getErrorStream();
+		try
+		{
+			String response = in != null ? IOUtils.toString(in, UTF8) : null;
+			return new Response(status, response != null && !response.isEmpty() ? mapper.readTree(response) : null);
+		}
+		finally
+		{
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * A response status & its (JSON) body.
+	 */
+	static private final class Response
+	{
+
+		final int status;
+		final JsonNode json;
+
+		public Response(int status, JsonNode json)
+		{
+			this.status = status;
+			this.json = json;
+		}
+
+		/**
+		 * @return the offset held by the server
+		 * @throws IOException when the response holds no offset
+		 */
+		public long getOffset() throws IOException
+		{
+			if(json == null || !json.has(JSON_KEY_OFFSET))
+				throw new IOException("Unexpected response (status " + status + ")");
+			return json.get(JSON_KEY_OFFSET).asLong();
+		}
+
+	}
+
+	/**
+	 * Writes the parts of a request body.
+	 */
+	private interface RequestBody
+	{
+
+		public void writeTo(MultipartFormWriter form) throws IOException;
+
+	}
+
+	/**
+	 * Session which only supports the file-based upload path.
+	 */
+	private class Session implements ModelSession
+	{
+
+		private final ConcurrentMap<String, Integer> observationIDs = new ConcurrentHashMap<String, Integer>();
+
+		/* (non-Javadoc)
+		 * @see uk.ac.ucl.excites.sapelli.transmission.protocol.geokey.GeoKeyClient.ModelSession#uploadCSV(java.io.File, boolean, boolean)
+		 */
+		@Override
+		public boolean uploadCSV(final File csvFile, boolean deleteUponSuccess, boolean deleteUponFailure)
+		{
+			boolean success = false;
+			try
+			{
+				JsonNode response = post(PATH_SAPELLI_PROJECT + "csv_upload/", new RequestBody()
+				{
+					@Override
+					public void writeTo(MultipartFormWriter form) throws IOException
+					{
+						form.writeFilePart(PARAMETER_KEY_CVS_FILE, csvFile, "text/csv");
+					}
+				});
+				success = response != null && response.has(JSON_KEY_ADDED);
+			}
+			catch(IOException ioE)
+			{
+				client.logError("Could not upload CSV file", ioE);
+			}
+			if(success ? deleteUponSuccess : deleteUponFailure)
+				FileUtils.deleteQuietly(csvFile);
+			return success;
+		}
+
+		/* (non-Javadoc)
+		 * @see uk.ac.ucl.excites.sapelli.transmission.protocol.geokey.GeoKeyClient.ModelSession#uploadAttachments(uk.ac.ucl.excites.sapelli.storage.model.Record, java.util.List)
+		 */
+		@Override
+		public boolean uploadAttachments(Record record, List<? extends Attachment> attachments)
+		{
+			boolean success = true;
+			for(Attachment attachment : attachments)
+				success &= uploadAttachment(record, attachment);
+			return success;
+		}
+
+		/**
+		 * @param record
+		 * @param attachment
+		 * @return whether or not uploading was successful
+		 */
+		public boolean uploadAttachment(final Record record, final Attachment attachment)
+		{
+			try
+			{
+				// Get contribution id:
+				Integer contributionID = getContributionID(record);
+				if(contributionID == null)
+					return false;
+				
+				// Upload file:
+				final String name = FileHelpers.trimFileExtensionAndDot(attachment.file.getName());
+				JsonNode response = post(PATH_GEOKEY_PROJECT + "contributions/" + contributionID + "/media/", new RequestBody()
+				{
+					@Override
+					public void writeTo(MultipartFormWriter form) throws IOException
+					{
+						form.writeFilePart(PARAMETER_KEY_FILE, attachment.file, attachment.getMimeType());
+						form.writeField(PARAMETER_KEY_NAME, name);
+						form.writeField(PARAMETER_KEY_DESC, "Uploaded by load test");
+					}
+				});
+				return response != null && response.has(JSON_KEY_NAME);
+			}
+			catch(IOException ioE)
+			{
+				client.logError("Could not upload media file: " + attachment.file.getName(), ioE);
+				return false;
+			}
+		}
+
+		/**
+		 * Looks up the contribution (observation) ID of the given record, once per record (the attachments of a record may be uploaded concurrently).
+		 *
+		 * @param record
+		 * @return the contribution ID, or {@code null} if the server did not find the contribution
+		 * @throws IOException
+		 */
+		protected Integer getContributionID(Record record) throws IOException
+		{
+			final String startTime = TimeStampUtils.getISOTimestamp(Form.GetStartTime(record), true);
+			final String deviceID = Long.toString(Form.GetDeviceID(record));
+			String key = startTime + "/" + deviceID;
+			synchronized(record)
+			{
+				Integer contributionID = observationIDs.get(key);
+				if(contributionID == null)
+				{
+					JsonNode response = post(PATH_SAPELLI_PROJECT + "find_observation/" + record.getSchema().getModelSchemaNumber() + "/", new RequestBody()
+					{
+						@Override
+						public void writeTo(MultipartFormWriter form) throws IOException
+						{
+							form.writeField("sap_rec_StartTime", startTime);
+							form.writeField("sap_rec_DeviceID", deviceID);
+						}
+					});
+					if(response == null || !response.has(JSON_KEY_OBSERVATION_ID))
+						return null;
+					contributionID = response.get(JSON_KEY_OBSERVATION_ID).asInt();
+					observationIDs.put(key, contributionID);
+				}
+				return contributionID;
+			}
+		}
+
+	}
+
+	/**
+	 * Session which supports the streaming upload path.
+	 */
+	private class StreamingSession extends Session implements StreamingModelSession
+	{
+
+		/* (non-Javadoc)
+		 * @see uk.ac.ucl.excites.sapelli.transmission.protocol.geokey.GeoKeyClient.StreamingModelSession#uploadCSV(java.lang.String, uk.ac.ucl.excites.sapelli.transmission.protocol.geokey.GeoKeyClient.CSVBody)
+		 */
+		@Override
+		public boolean uploadCSV(final String fileName, final CSVBody body)
+		{
+			try
+			{
+				JsonNode response = post(PATH_SAPELLI_PROJECT + "csv_upload/", new RequestBody()
+				{
+					@Override
+					public void writeTo(MultipartFormWriter form) throws IOException
+					{
+						form.startFilePart(PARAMETER_KEY_CVS_FILE, fileName, "text/csv");
+						Writer out = new BufferedWriter(new OutputStreamWriter(form.getOutputStream(), UTF8), CHUNK_SIZE);
+						body.writeTo(out);
+						out.flush(); // but don't close
+					}
+				});
+				return response != null && response.has(JSON_KEY_ADDED);
+			}
+			catch(IOException ioE)
+			{
+				client.logError("Could not upload CSV data", ioE);
+				return false;
+			}
+		}
+
+	}
+
+	/**
+	 * Session which supports the streaming upload path, with attachments being uploaded in chunks.
+	 */
+	private class ResumableSession extends StreamingSession implements ResumableModelSession
+	{
+
+		/* (non-Javadoc)
+		 * @see uk.ac.ucl.excites.sapelli.transmission.protocol.geokey.GeoKeyClient.ResumableModelSession#getAttachmentEndpoint(uk.ac.ucl.excites.sapelli.storage.model.Record, uk.ac.ucl.excites.sapelli.storage.model.Attachment)
+		 */
+		@Override
+		public ResumableUploader.Endpoint getAttachmentEndpoint(Record record, Attachment attachment) throws IOException
+		{
+			Integer contributionID = getContributionID(record);
+			return contributionID != null ? new ChunkedUploadEndpoint(PATH_GEOKEY_PROJECT + "contributions/" + contributionID + "/media/uploads/") : null;
+		}
+
+	}
+
+	/**
+	 * Endpoint for chunked uploads of the media files of a single contribution.
+	 */
+	private class ChunkedUploadEndpoint implements ResumableUploader.Endpoint
+	{
+
+		private final String uploadsPath;
+
+		public ChunkedUploadEndpoint(String uploadsPath)
+		{
+			this.uploadsPath = uploadsPath;
+		}
+
+		/* (non-Javadoc)
+		 * @see uk.ac.ucl.excites.sapelli.transmission.protocol.http.ResumableUploader.Endpoint#open(java.lang.String, long, byte[])
+		 */
+		@Override
+		public String open(String fileName, final long size, final byte[] hash) throws IOException
+		{
+			final String name = FileHelpers.trimFileExtensionAndDot(fileName);
+			JsonNode response = post(uploadsPath, new RequestBody()
+			{
+				@Override
+				public void writeTo(MultipartFormWriter form) throws IOException
+				{
+					form.writeField(PARAMETER_KEY_NAME, name);
+					form.writeField(LoopbackGeoKeyServer.PARAMETER_SIZE, Long.toString(size));
+					form.writeField(LoopbackGeoKeyServer.PARAMETER_HASH, BinaryHelpers.toHexadecimealString(hash));
+				}
+			});
+			if(response == null || !response.has(JSON_KEY_UPLOAD_ID))
+				throw new IOException("Could not open upload of " + fileName);
+			return response.get(JSON_KEY_UPLOAD_ID).asText();
+		}
+
+		/* (non-Javadoc)
+		 * @see uk.ac.ucl.excites.sapelli.transmission.protocol.http.ResumableUploader.Endpoint#getOffset(java.lang.String)
+		 */
+		@Override
+		public long getOffset(String uploadID) throws IOException
+		{
+			Response response = send("GET", uploadsPath + uploadID + "/", null, 0);
+			return response.status == HttpURLConnection.HTTP_NOT_FOUND ? -1 : response.getOffset();
+		}
+
+		/* (non-Javadoc)
+		 * @see uk.ac.ucl.excites.sapelli.transmission.protocol.http.ResumableUploader.Endpoint#putChunk(java.lang.String, long, byte[], int)
+		 */
+		@Override
+		public long putChunk(String uploadID, long offset, byte[] bytes, int length) throws IOException
+		{
+			Response response = send("PUT", uploadsPath + uploadID + "/?" + LoopbackGeoKeyServer.PARAMETER_OFFSET + "=" + offset, bytes, length);
+			if(response.status != HttpURLConnection.HTTP_OK && response.status != HTTP_CONFLICT)
+				throw new IOException("Chunk rejected (status " + response.status + ")");
+			return response.getOffset();
+		}
+
+		/* (non-Javadoc)
+		 * @see uk.ac.ucl.excites.sapelli.transmission.protocol.http.ResumableUploader.Endpoint#complete(java.lang.String)
+		 */
+		@Override
+		public boolean complete(String uploadID) throws IOException
+		{
+			Response response = send("POST", uploadsPath + uploadID + "/" + LoopbackGeoKeyServer.PATH_COMPLETE, new byte[0], 0);
+			if(response.status == HTTP_UNPROCESSABLE_ENTITY)
+				return false;
+			if(response.status != HttpURLConnection.HTTP_OK)
+				throw new IOException("Could not complete upload (status " + response.status + ")");
+			return true;
+		}
+
+	}
+
+}
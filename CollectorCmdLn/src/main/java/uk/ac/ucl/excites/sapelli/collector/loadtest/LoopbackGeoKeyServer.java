@@ -0,0 +1,520 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.collector.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import uk.ac.ucl.excites.sapelli.shared.util.BinaryHelpers;
+import uk.ac.ucl.excites.sapelli.transmission.protocol.http.ResumableUploader;
+
+/**
+ * In-process stand-in for a GeoKey server (with the geokey-sapelli extension), listening on the loopback interface.
+ *
+ * It accepts the requests made when records are uploaded (CSV uploads, observation look-ups & media file uploads),
+ * counts what it receives, and responds after a fixed simulated latency. Requests are handled concurrently.
+ *
+ * Besides whole-file media uploads it supports the chunked protocol of {@link ResumableUploader}: an upload is opened
+ * (with the file's size & SHA-256 hash), its chunks are PUT in order at their offset, and completing the upload verifies
+ * the hash. Chunks are hashed as they arrive, so the server does not keep file contents.
+ *
+ * After {@link #setAttachmentFailures(long, double)} has been called media file uploads and chunks are rejected (with
+ * HTTP 503) with the given probability, to exercise retries. After {@link #setConnectionDrops(long, double)} has been
+ * called connections drop at random points of the bodies of media file uploads and chunks, at a constant rate per byte
+ * (so larger requests are more likely to be interrupted): the bytes before the drop point count as received, nothing is
+ * stored, and no response is sent.
+ */
+public class LoopbackGeoKeyServer implements HttpHandler
+{
+
+	// STATIC -------------------------------------------------------
+	static public final String PATH_CSV_UPLOAD = "/csv_upload/";
+	static public final String PATH_FIND_OBSERVATION = "/find_observation/";
+	static public final String PATH_MEDIA = "/media/";
+	static public final String PATH_MEDIA_UPLOADS = PATH_MEDIA + "uploads/";
+	static public final String PATH_COMPLETE = "complete/";
+
+	static public final String PARAMETER_CSV_FILE = "csv_file";
+	static public final String PARAMETER_FILE = "file";
+	static public final String PARAMETER_NAME = "name";
+	static public final String PARAMETER_START_TIME = "sap_rec_StartTime";
+	static public final String PARAMETER_DEVICE_ID = "sap_rec_DeviceID";
+	static public final String PARAMETER_SIZE = "size";
+	static public final String PARAMETER_HASH = "hash";
+	static public final String PARAMETER_OFFSET = "offset";
+
+	static private final double BYTES_PER_MIB = 1024 * 1024;
+	static private final Charset BYTE_CHARSET = Charset.forName("ISO-8859-1"); // maps every byte to a single char and back
+	static private final Charset UTF8 = Charset.forName("UTF-8");
+	static private final String BOUNDARY_PARAMETER = "boundary=";
+	static private final String HEADERS_END = "\r\n\r\n";
+	static private final String NAME_PARAMETER = "name=\"";
+
+	static
+	{
+		// Without TCP_NODELAY every request with a streamed (chunked) body stalls on delayed ACKs (~40 ms), dwarfing the simulated latency:
+		if(System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", Boolean.TRUE.toString());
+	}
+
+	// DYNAMIC ------------------------------------------------------
+	private final long latencyMS;
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	private Random failures = null;
+	private double failureProbability;
+	private Random drops = null;
+	private double dropRatePerByte;
+
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger csvUploads = new AtomicInteger();
+	private final AtomicLong csvRows = new AtomicLong();
+	private final AtomicInteger observationLookups = new AtomicInteger();
+	private final AtomicInteger rejectedAttachments = new AtomicInteger();
+	private final AtomicLong attachmentBytes = new AtomicLong();
+	private final AtomicLong mediaBytesReceived = new AtomicLong();
+	private final AtomicInteger droppedConnections = new AtomicInteger();
+	private final AtomicInteger chunks = new AtomicInteger();
+	private final AtomicInteger uploadIDs = new AtomicInteger();
+	private final Map<String, Upload> uploads = new ConcurrentHashMap<String, Upload>();
+	private final Map<String, Integer> observationIDs = new HashMap<String, Integer>();
+	private final Set<String> attachments = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * @param latencyMS time (in milliseconds) to wait before responding to each request
+	 * @throws IOException
+	 */
+	public LoopbackGeoKeyServer(long latencyMS) throws IOException
+	{
+		if(latencyMS < 0)
+			throw new IllegalArgumentException("Latency cannot be negative");
+		this.latencyMS = latencyMS;
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		this.executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.createContext("/", this);
+	}
+
+	/**
+	 * @param seed
+	 * @param failureProbability probability with which each media file upload is rejected
+	 */
+	public void setAttachmentFailures(long seed, double failureProbability)
+	{
+		this.failures = new Random(seed);
+		this.failureProbability = failureProbability;
+	}
+
+	/**
+	 * @param seed
+	 * @param probabilityPerMiB probability with which a connection is dropped while receiving 1 MiB of media data (must be in [0, 1))
+	 */
+	public void setConnectionDrops(long seed, double probabilityPerMiB)
+	{
+		if(probabilityPerMiB < 0.0d || probabilityPerMiB >= 1.0d)
+			throw new IllegalArgumentException("Invalid drop probability: " + probabilityPerMiB);
+		this.drops = new Random(seed);
+		this.dropRatePerByte = -Math.log(1.0d - probabilityPerMiB) / BYTES_PER_MIB;
+	}
+
+	public void start()
+	{
+		server.start();
+	}
+
+	public void stop()
+	{
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return the base URL of the server
+	 * @throws IOException
+	 */
+	public URL getURL() throws IOException
+	{
+		return new URL("http", server.getAddress().getHostString(), server.getAddress().getPort(), "/");
+	}
+
+	/* (non-Javadoc)
+	 * @see com.sun.net.httpserver.HttpHandler#handle(com.sun.net.httpserver.HttpExchange)
+	 */
+	@Override
+	public void handle(HttpExchange exchange) throws IOException
+	{
+		try
+		{
+			requests.incrementAndGet();
+			String path = exchange.getRequestURI().getPath();
+			String method = exchange.getRequestMethod();
+			InputStream in = exchange.getRequestBody();
+			byte[] body = IOUtils.toByteArray(in);
+			in.close();
+			boolean media = path.endsWith(PATH_MEDIA) || (path.contains(PATH_MEDIA_UPLOADS) && "PUT".equals(method));
+			if(media)
+			{
+				long dropPoint = getDropPoint();
+				mediaBytesReceived.addAndGet(Math.min(dropPoint, body.length));
+				if(dropPoint < body.length)
+				{
+					droppedConnections.incrementAndGet();
+					throw new IOException("Simulated connection drop"); // closes the connection without responding
+				}
+			}
+			Map<String, String> parts = readMultipartBody(exchange, new String(body, BYTE_CHARSET));
+			Thread.sleep(latencyMS);
+			if(path.contains(PATH_MEDIA_UPLOADS))
+				handleChunkedUpload(exchange, method, path, parts, body);
+			else if(path.endsWith(PATH_CSV_UPLOAD))
+			{
+				String csv = parts.get(PARAMETER_CSV_FILE);
+				if(csv == null)
+					respond(exchange, 400, "{\"error\": \"No CSV file\"}");
+				else
+				{
+					int rows = countLines(csv) - 1; // minus header
+					csvUploads.incrementAndGet();
+					csvRows.addAndGet(rows);
+					respond(exchange, 200, "{\"added\": " + rows + ", \"updated\": 0, \"ignored_duplicates\": 0, \"ignored_no_loc\": 0}");
+				}
+			}
+			else if(path.contains(PATH_FIND_OBSERVATION))
+			{
+				observationLookups.incrementAndGet();
+				String key = parts.get(PARAMETER_START_TIME) + "/" + parts.get(PARAMETER_DEVICE_ID);
+				int observationID;
+				synchronized(observationIDs)
+				{
+					Integer id = observationIDs.get(key);
+					if(id == null)
+						observationIDs.put(key, id = observationIDs.size() + 1);
+					observationID = id;
+				}
+				respond(exchange, 200, "{\"observation_id\": " + observationID + "}");
+			}
+			else if(path.endsWith(PATH_MEDIA))
+			{
+				String file = parts.get(PARAMETER_FILE);
+				String name = parts.get(PARAMETER_NAME);
+				if(file == null || name == null)
+					respond(exchange, 400, "{\"error\": \"No file or name\"}");
+				else if(isFailure())
+				{
+					rejectedAttachments.incrementAndGet();
+					respond(exchange, 503, "{\"error\": \"Service unavailable\"}");
+				}
+				else
+				{
+					attachments.add(path + name);
+					attachmentBytes.addAndGet(file.length());
+					respond(exchange, 200, "{\"name\": \"" + name + "\"}");
+				}
+			}
+			else
+				respond(exchange, 404, "{\"error\": \"Not found\"}");
+		}
+		catch(InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Handles the requests of the chunked upload protocol.
+	 *
+	 * @param exchange
+	 * @param method
+	 * @param path
+	 * @param parts
+	 * @param body
+	 * @throws IOException
+	 */
+	private void handleChunkedUpload(HttpExchange exchange, String method, String path, Map<String, String> parts, byte[] body) throws IOException
+	{
+		int u = path.indexOf(PATH_MEDIA_UPLOADS);
+		String rest = path.substring(u + PATH_MEDIA_UPLOADS.length());
+		if(rest.isEmpty())
+		{	// Open upload:
+			String name = parts.get(PARAMETER_NAME);
+			String size = parts.get(PARAMETER_SIZE);
+			String hash = parts.get(PARAMETER_HASH);
+			if(name == null || size == null || hash == null)
+			{
+				respond(exchange, 400, "{\"error\": \"No name, size or hash\"}");
+				return;
+			}
+			String uploadID = "u" + uploadIDs.incrementAndGet();
+			uploads.put(uploadID, new Upload(path.substring(0, u) + PATH_MEDIA + name, Long.parseLong(size), BinaryHelpers.hexadecimealStringToByteArray(hash)));
+			respond(exchange, 200, "{\"upload_id\": \"" + uploadID + "\"}");
+			return;
+		}
+		boolean complete = rest.endsWith(PATH_COMPLETE);
+		String uploadID = rest.substring(0, rest.indexOf('/'));
+		Upload upload = uploads.get(uploadID);
+		if(upload == null)
+		{
+			respond(exchange, 404, "{\"error\": \"No such upload\"}");
+			return;
+		}
+		synchronized(upload)
+		{
+			if(complete)
+			{	// Verify & store:
+				uploads.remove(uploadID);
+				if(upload.received != upload.size || !Arrays.equals(upload.digest.digest(), upload.hash))
+					respond(exchange, 422, "{\"error\": \"Hash mismatch\"}");
+				else
+				{
+					attachments.add(upload.key);
+					attachmentBytes.addAndGet(upload.size);
+					respond(exchange, 200, "{\"name\": \"" + upload.key.substring(upload.key.lastIndexOf('/') + 1) + "\"}");
+				}
+			}
+			else if("PUT".equals(method))
+			{	// Chunk:
+				String query = exchange.getRequestURI().getQuery();
+				long offset = query != null && query.startsWith(PARAMETER_OFFSET + "=") ? Long.parseLong(query.substring(PARAMETER_OFFSET.length() + 1)) : -1;
+				if(isFailure())
+				{
+					rejectedAttachments.incrementAndGet();
+					respond(exchange, 503, "{\"error\": \"Service unavailable\"}");
+				}
+				else if(offset != upload.received || offset + body.length > upload.size)
+					respond(exchange, 409, "{\"offset\": " + upload.received + "}");
+				else
+				{
+					upload.digest.update(body);
+					upload.received += body.length;
+					chunks.incrementAndGet();
+					respond(exchange, 200, "{\"offset\": " + upload.received + "}");
+				}
+			}
+			else
+				// Status:
+				respond(exchange, 200, "{\"offset\": " + upload.received + "}");
+		}
+	}
+
+	/**
+	 * @return the number of bytes of a request body after which the connection is dropped (exponentially distributed), or {@link Long#MAX_VALUE} if connections are not dropped
+	 */
+	private long getDropPoint()
+	{
+		if(drops == null || dropRatePerByte == 0.0d)
+			return Long.MAX_VALUE;
+		synchronized(drops)
+		{
+			return (long) Math.min(-Math.log(1.0d - drops.nextDouble()) / dropRatePerByte, Long.MAX_VALUE);
+		}
+	}
+
+	private boolean isFailure()
+	{
+		if(failures == null)
+			return false;
+		synchronized(failures)
+		{
+			return failures.nextDouble() < failureProbability;
+		}
+	}
+
+	/**
+	 * @param exchange
+	 * @param body the request body, decoded byte-per-char
+	 * @return the (byte-preserving) contents of the parts of the multipart/form-data request body, by part name
+	 * @throws IOException
+	 */
+	private Map<String, String> readMultipartBody(HttpExchange exchange, String body) throws IOException
+	{
+		Map<String, String> parts = new HashMap<String, String>();
+		String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+		int b = contentType != null ? contentType.indexOf(BOUNDARY_PARAMETER) : -1;
+		if(b < 0)
+			return parts;
+		String delimiter = "--" + contentType.substring(b + BOUNDARY_PARAMETER.length());
+		int start = body.indexOf(delimiter);
+		while(start >= 0)
+		{
+			start += delimiter.length();
+			int end = body.indexOf("\r\n" + delimiter, start);
+			int headersEnd = body.indexOf(HEADERS_END, start);
+			if(end < 0 || headersEnd < 0 || headersEnd > end)
+				break;
+			String headers = body.substring(start, headersEnd);
+			int n = headers.indexOf(NAME_PARAMETER);
+			if(n >= 0)
+				parts.put(headers.substring(n + NAME_PARAMETER.length(), headers.indexOf('"', n + NAME_PARAMETER.length())), body.substring(headersEnd + HEADERS_END.length(), end));
+			start = end + 2;
+		}
+		return parts;
+	}
+
+	private int countLines(String str)
+	{
+		int lines = 0;
+		for(int i = 0; i < str.length(); i++)
+			if(str.charAt(i) == '\n')
+				lines++;
+		return lines;
+	}
+
+	private void respond(HttpExchange exchange, int status, String json) throws IOException
+	{
+		byte[] bytes = json.getBytes(UTF8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	/**
+	 * @return the total number of requests received
+	 */
+	public int getNumberOfRequests()
+	{
+		return requests.get();
+	}
+
+	public int getNumberOfCSVUploads()
+	{
+		return csvUploads.get();
+	}
+
+	/**
+	 * @return the total number of (non-header) CSV rows received
+	 */
+	public long getNumberOfCSVRows()
+	{
+		return csvRows.get();
+	}
+
+	public int getNumberOfObservationLookups()
+	{
+		return observationLookups.get();
+	}
+
+	/**
+	 * @return the number of distinct media files received
+	 */
+	public int getNumberOfAttachments()
+	{
+		return attachments.size();
+	}
+
+	/**
+	 * @return the number of media file uploads which were rejected
+	 */
+	public int getNumberOfRejectedAttachments()
+	{
+		return rejectedAttachments.get();
+	}
+
+	/**
+	 * @return the total size (in bytes) of all accepted media files
+	 */
+	public long getAttachmentBytes()
+	{
+		return attachmentBytes.get();
+	}
+
+	/**
+	 * @return the total number of bytes received in media file uploads (whole multipart bodies) and chunks, including those of requests which were rejected or dropped
+	 */
+	public long getMediaBytesReceived()
+	{
+		return mediaBytesReceived.get();
+	}
+
+	/**
+	 * @return the number of connections which were dropped
+	 */
+	public int getNumberOfDroppedConnections()
+	{
+		return droppedConnections.get();
+	}
+
+	/**
+	 * @return the number of chunks which were accepted
+	 */
+	public int getNumberOfChunks()
+	{
+		return chunks.get();
+	}
+
+	/**
+	 * A chunked upload in progress, of which the received bytes are hashed as they arrive.
+	 */
+	static private final class Upload
+	{
+
+		final String key;
+		final long size;
+		final byte[] hash;
+		final MessageDigest digest;
+		long received = 0;
+
+		public Upload(String key, long size, byte[] hash)
+		{
+			this.key = key;
+			this.size = size;
+			this.hash = hash;
+			try
+			{
+				this.digest = MessageDigest.getInstance(ResumableUploader.HASH_ALGORITHM);
+			}
+			catch(NoSuchAlgorithmException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+
+	}
+
+}
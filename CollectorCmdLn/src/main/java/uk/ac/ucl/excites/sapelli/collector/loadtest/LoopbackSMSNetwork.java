@@ -0,0 +1,220 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.collector.loadtest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import com.google.i18n.phonenumbers.Phonenumber.PhoneNumber;
+
+import uk.ac.ucl.excites.sapelli.storage.types.TimeStamp;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.Message;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.SMSCorrespondent;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.binary.BinaryMessage;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.text.TextMessage;
+import uk.ac.ucl.excites.sapelli.transmission.protocol.sms.SMSClient;
+import uk.ac.ucl.excites.sapelli.transmission.util.TransmissionSendingException;
+
+/**
+ * In-memory stand-in for the mobile network, delivering SMS messages between {@link LoopbackTransmissionController}s
+ * which are registered under a phone number.
+ *
+ * Sent messages are only queued, they are delivered by explicit calls of {@link #deliverNext()}. This keeps delivery
+ * out of the sending controller's call stack (as on a real network) and lets callers time each delivery separately.
+ *
+ * By default messages are delivered in the order in which they were sent. After {@link #setDisorder(long, double)} has
+ * been called they are delivered in random order, and parts of multi-part transmissions are sometimes delivered twice.
+ *
+ * Messages sent to a "sink" phone number (see {@link #addSink(String)}) are reported as sent and delivered, but then dropped.
+ */
+public class LoopbackSMSNetwork
+{
+
+	private final Map<PhoneNumber, LoopbackTransmissionController> controllers = new HashMap<PhoneNumber, LoopbackTransmissionController>();
+	private final Set<PhoneNumber> sinks = new HashSet<PhoneNumber>();
+	private final List<InFlightMessage> inFlight = new ArrayList<InFlightMessage>();
+
+	private Random disorder = null;
+	private double duplicateProbability;
+	private int duplicatesDelivered = 0;
+
+	/**
+	 * @param controller
+	 */
+	public void register(LoopbackTransmissionController controller)
+	{
+		controllers.put(SMSCorrespondent.toPhoneNumber(controller.phoneNumber), controller);
+	}
+
+	/**
+	 * Registers a phone number which accepts all messages without receiving them (i.e. a receiver which never responds).
+	 *
+	 * @param phoneNumber
+	 */
+	public void addSink(String phoneNumber)
+	{
+		sinks.add(SMSCorrespondent.toPhoneNumber(phoneNumber));
+	}
+
+	/**
+	 * Makes the network deliver in-flight messages in random order, and deliver parts of multi-part transmissions a
+	 * second time (straight after the first delivery) with the given probability, as long as other parts of the same
+	 * transmission are still in flight (such that duplicates always arrive before the transmission is complete).
+	 *
+	 * @param seed
+	 * @param duplicateProbability in [0, 1]
+	 */
+	public void setDisorder(long seed, double duplicateProbability)
+	{
+		if(duplicateProbability < 0.0d || duplicateProbability > 1.0d)
+			throw new IllegalArgumentException("Invalid duplicate probability: " + duplicateProbability);
+		this.disorder = new Random(seed);
+		this.duplicateProbability = duplicateProbability;
+	}
+
+	/**
+	 * @return the number of messages which have been delivered twice
+	 */
+	public int getDuplicatesDelivered()
+	{
+		return duplicatesDelivered;
+	}
+
+	/**
+	 * @param sender
+	 * @return an {@link SMSClient} which queues messages sent by the given controller
+	 */
+	public SMSClient getClientFor(final LoopbackTransmissionController sender)
+	{
+		return new SMSClient()
+		{
+			@Override
+			public boolean send(SMSCorrespondent receiver, BinaryMessage binarySMS) throws TransmissionSendingException
+			{
+				return enqueue(sender, receiver, binarySMS);
+			}
+
+			@Override
+			public boolean send(SMSCorrespondent receiver, TextMessage textSMS) throws TransmissionSendingException
+			{
+				return enqueue(sender, receiver, textSMS);
+			}
+		};
+	}
+
+	private boolean enqueue(LoopbackTransmissionController sender, SMSCorrespondent receiver, Message<?, ?> msg) throws TransmissionSendingException
+	{
+		LoopbackTransmissionController destination = controllers.get(receiver.getPhoneNumber());
+		if(destination == null && !sinks.contains(receiver.getPhoneNumber()))
+			throw new TransmissionSendingException("Unknown phone number: " + receiver.getPhoneNumberInternational());
+		try
+		{
+			// Capture content now, like a real SMS client would:
+			inFlight.add(new InFlightMessage(sender, destination, msg, receiver.isBinary(), msg.getContent()));
+			return true;
+		}
+		catch(Exception e)
+		{
+			throw new TransmissionSendingException("Could not get message content", e);
+		}
+	}
+
+	/**
+	 * @return whether or not there are messages waiting to be delivered
+	 */
+	public boolean hasInFlightMessages()
+	{
+		return !inFlight.isEmpty();
+	}
+
+	/**
+	 * Delivers the oldest queued message (or a random one, see {@link #setDisorder(long, double)}): the sending side is informed that the message was sent and delivered and
+	 * the receiving side receives it (which may cause it to queue responses).
+	 *
+	 * @return the controller which received the message, or {@code null} if there were no messages to deliver or the message was sent to a sink
+	 * @throws Exception when the receiving controller fails to handle the message
+	 */
+	public LoopbackTransmissionController deliverNext() throws Exception
+	{
+		if(inFlight.isEmpty())
+			return null;
+		InFlightMessage ifm = inFlight.remove(disorder == null ? 0 : disorder.nextInt(inFlight.size()));
+
+		// Sending side callbacks:
+		ifm.message.getTransmission().getSentCallback().onSent(ifm.message.getPartNumber());
+		ifm.message.getTransmission().getSentCallback().onDelivered(ifm.message.getPartNumber());
+
+		// Receiving side:
+		if(ifm.to == null)
+			return null; // sink
+		receive(ifm);
+		if(disorder != null && disorder.nextDouble() < duplicateProbability && isSiblingInFlight(ifm))
+		{
+			receive(ifm);
+			duplicatesDelivered++;
+		}
+		return ifm.to;
+	}
+
+	private void receive(InFlightMessage ifm) throws Exception
+	{
+		SMSCorrespondent sender = ifm.to.getSendingCorrespondentFor(SMSCorrespondent.toPhoneNumber(ifm.from.phoneNumber), ifm.binary);
+		ifm.to.receiveSMS(ifm.binary ?
+			new BinaryMessage(sender, (byte[]) ifm.content, TimeStamp.now()) :
+			new TextMessage(sender, (String) ifm.content, TimeStamp.now()));
+	}
+
+	/**
+	 * @param ifm
+	 * @return whether another part of the same transmission is still in flight
+	 */
+	private boolean isSiblingInFlight(InFlightMessage ifm)
+	{
+		for(InFlightMessage other : inFlight)
+			if(other.message.getTransmission() == ifm.message.getTransmission())
+				return true;
+		return false;
+	}
+
+	static private final class InFlightMessage
+	{
+
+		final LoopbackTransmissionController from;
+		final LoopbackTransmissionController to;
+		final Message<?, ?> message;
+		final boolean binary;
+		final Object content;
+
+		public InFlightMessage(LoopbackTransmissionController from, LoopbackTransmissionController to, Message<?, ?> message, boolean binary, Object content)
+		{
+			this.from = from;
+			this.to = to;
+			this.message = message;
+			this.binary = binary;
+			this.content = content;
+		}
+
+	}
+
+}
@@ -0,0 +1,163 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.collector.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.joda.time.DateTime;
+
+import uk.ac.ucl.excites.sapelli.collector.io.FileStorageProvider;
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.shared.io.FileStorageException;
+import uk.ac.ucl.excites.sapelli.shared.util.Logger;
+import uk.ac.ucl.excites.sapelli.shared.util.Logger.OverflowPolicy;
+import uk.ac.ucl.excites.sapelli.storage.types.TimeStamp;
+import uk.ac.ucl.excites.sapelli.transmission.TransmissionClient;
+import uk.ac.ucl.excites.sapelli.transmission.control.TransmissionController;
+import uk.ac.ucl.excites.sapelli.transmission.model.Correspondent;
+import uk.ac.ucl.excites.sapelli.transmission.model.Payload;
+import uk.ac.ucl.excites.sapelli.transmission.model.Transmission;
+import uk.ac.ucl.excites.sapelli.transmission.protocol.geokey.GeoKeyClient;
+import uk.ac.ucl.excites.sapelli.transmission.protocol.sms.SMSClient;
+
+/**
+ * {@link TransmissionController} which sends SMS messages over a {@link LoopbackSMSNetwork} instead of a real network.
+ *
+ * Resend requests are never scheduled through {@link #scheduleSMSResendRequest(int, TimeStamp)} because the loopback network
+ * does not lose messages (the {@link LoadTest} enables the SMS timer wheels instead), and GeoKey is not supported.
+ */
+public class LoopbackTransmissionController extends TransmissionController
+{
+
+	public final String phoneNumber;
+
+	private final FileStorageProvider fileStorageProvider;
+	private final SMSClient smsClient;
+
+	private PhaseStats outgoingTransmissionStats;
+	private boolean outgoingTransmissionLapPending;
+
+	/**
+	 * @param client
+	 * @param fileStorageProvider
+	 * @param network
+	 * @param phoneNumber international phone number of this "device"
+	 * @throws DBException
+	 */
+	public LoopbackTransmissionController(TransmissionClient client, FileStorageProvider fileStorageProvider, LoopbackSMSNetwork network, String phoneNumber) throws DBException
+	{
+		super(client);
+		this.phoneNumber = phoneNumber;
+		this.fileStorageProvider = fileStorageProvider;
+		this.smsClient = network.getClientFor(this);
+		network.register(this);
+		initialise();
+	}
+
+	/**
+	 * Times outgoing transmissions as laps on the given {@link PhaseStats}: the creation of each transmission (after the first)
+	 * ends the lap of the previous one, the lap of the last one is ended by {@link #finishOutgoingTransmissionLaps(int)}.
+	 * The caller must have called {@link PhaseStats#startLaps()}, so the lap of the first transmission includes whatever
+	 * preceded its creation (e.g. querying the records to send).
+	 *
+	 * @param stats may be {@code null} to stop timing
+	 */
+	public void setOutgoingTransmissionStats(PhaseStats stats)
+	{
+		this.outgoingTransmissionStats = stats;
+		this.outgoingTransmissionLapPending = false;
+	}
+
+	/**
+	 * Ends the lap of the last outgoing transmission, if there is one.
+	 *
+	 * @param items number of items to attribute to the final lap
+	 */
+	public void finishOutgoingTransmissionLaps(int items)
+	{
+		if(outgoingTransmissionStats != null && outgoingTransmissionLapPending)
+			outgoingTransmissionStats.lap(items);
+		outgoingTransmissionLapPending = false;
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.transmission.control.TransmissionController#createOutgoingTransmission(uk.ac.ucl.excites.sapelli.transmission.model.Payload, uk.ac.ucl.excites.sapelli.transmission.model.Correspondent)
+	 */
+	@Override
+	protected Transmission<?> createOutgoingTransmission(Payload payload, Correspondent receiver)
+	{
+		if(outgoingTransmissionStats != null)
+		{
+			if(outgoingTransmissionLapPending)
+				outgoingTransmissionStats.lap(0); // ends the lap of the previous transmission
+			outgoingTransmissionLapPending = true;
+		}
+		return super.createOutgoingTransmission(payload, receiver);
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.transmission.control.TransmissionController#getLogsFolder()
+	 */
+	@Override
+	protected File getLogsFolder() throws FileStorageException
+	{
+		return fileStorageProvider.getLogsFolder(true);
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.transmission.control.TransmissionController#createLogger(java.io.File)
+	 */
+	@Override
+	protected Logger createLogger(File logsFolder) throws FileStorageException, IOException
+	{
+		return new Logger(logsFolder.getAbsolutePath(), LOG_FILENAME_PREFIX + DateTime.now().toString("yyyy-MM-dd"), true, false, Logger.DEFAULT_ASYNC_BUFFER_CAPACITY, OverflowPolicy.BLOCK); // don't echo to System.out, it would drown the report
+	}
+
+	@Override
+	public SMSClient getSMSClient()
+	{
+		return smsClient;
+	}
+
+	@Override
+	public GeoKeyClient getGeoKeyClient()
+	{
+		return null; // not supported
+	}
+
+	@Override
+	public void scheduleSMSResendRequest(int localID, TimeStamp time)
+	{
+		// never needed
+	}
+
+	@Override
+	protected void cancelSMSResendRequest(int localID)
+	{
+		// never needed
+	}
+
+	@Override
+	protected String getApplicationInfo()
+	{
+		return getClass().getSimpleName() + " (" + phoneNumber + ")";
+	}
+
+}
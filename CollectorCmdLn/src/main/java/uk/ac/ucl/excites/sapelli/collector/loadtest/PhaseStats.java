@@ -0,0 +1,174 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.collector.loadtest;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Collects the durations of the operations performed during one phase of a {@link LoadTest} and computes
+ * throughput and latency percentiles from them.
+ *
+ * An "operation" is phase-specific (e.g. storing a single record, or sending a whole transmission), each operation
+ * may involve any number of "items" (usually records).
+ */
+public class PhaseStats
+{
+
+	// STATIC -------------------------------------------------------
+	static public final double[] PERCENTILES = { 50.0d, 90.0d, 99.0d };
+
+	static private final double NANOS_PER_MS = 1000000.0d;
+
+	// DYNAMIC ------------------------------------------------------
+	public final String name;
+	public final String operation;
+
+	private long[] durationsNS = new long[64];
+	private int numberOfOperations = 0;
+	private long numberOfItems = 0;
+	private long totalNS = 0;
+
+	private long lapStartedAt = -1;
+
+	/**
+	 * @param name name of the phase
+	 * @param operation description of a single operation (used in reports)
+	 */
+	public PhaseStats(String name, String operation)
+	{
+		this.name = name;
+		this.operation = operation;
+	}
+
+	/**
+	 * @param durationNS duration of the operation in nanoseconds
+	 * @param items number of items (e.g. records) handled by the operation
+	 */
+	public void add(long durationNS, int items)
+	{
+		if(numberOfOperations == durationsNS.length)
+			durationsNS = Arrays.copyOf(durationsNS, durationsNS.length * 2);
+		durationsNS[numberOfOperations++] = durationNS;
+		numberOfItems += items;
+		totalNS += durationNS;
+	}
+
+	/**
+	 * Starts timing a series of back-to-back operations, the end of each of which is marked by calling {@link #lap(int)}.
+	 */
+	public void startLaps()
+	{
+		lapStartedAt = System.nanoTime();
+	}
+
+	/**
+	 * Marks the end of the current operation (and the start of the next one) in a series started by {@link #startLaps()}.
+	 *
+	 * @param items number of items handled by the operation which has just ended
+	 */
+	public void lap(int items)
+	{
+		if(lapStartedAt < 0)
+			throw new IllegalStateException("startLaps() has not been called");
+		long now = System.nanoTime();
+		add(now - lapStartedAt, items);
+		lapStartedAt = now;
+	}
+
+	/**
+	 * Stops the current series of laps without recording the time since the last call of {@link #lap(int)}.
+	 */
+	public void stopLaps()
+	{
+		lapStartedAt = -1;
+	}
+
+	public int getNumberOfOperations()
+	{
+		return numberOfOperations;
+	}
+
+	public long getNumberOfItems()
+	{
+		return numberOfItems;
+	}
+
+	/**
+	 * @return the sum of all operation durations, in milliseconds
+	 */
+	public double getTotalMS()
+	{
+		return totalNS / NANOS_PER_MS;
+	}
+
+	/**
+	 * @return number of items handled per second of (summed) operation time
+	 */
+	public double getItemsPerSecond()
+	{
+		return totalNS == 0 ? 0.0d : numberOfItems * (1000.0d * NANOS_PER_MS) / totalNS;
+	}
+
+	/**
+	 * @return number of operations per second of (summed) operation time
+	 */
+	public double getOperationsPerSecond()
+	{
+		return totalNS == 0 ? 0.0d : numberOfOperations * (1000.0d * NANOS_PER_MS) / totalNS;
+	}
+
+	/**
+	 * Uses the nearest-rank method.
+	 *
+	 * @param percentile in (0, 100]
+	 * @return the given percentile of the operation durations, in milliseconds, or 0 if no operations have been recorded
+	 */
+	public double getPercentileMS(double percentile)
+	{
+		if(percentile <= 0.0d || percentile > 100.0d)
+			throw new IllegalArgumentException("Invalid percentile: " + percentile);
+		if(numberOfOperations == 0)
+			return 0.0d;
+		long[] sorted = Arrays.copyOf(durationsNS, numberOfOperations);
+		Arrays.sort(sorted);
+		int rank = (int) Math.ceil(percentile / 100.0d * numberOfOperations);
+		return sorted[Math.max(rank, 1) - 1] / NANOS_PER_MS;
+	}
+
+	/**
+	 * @return the longest operation duration, in milliseconds
+	 */
+	public double getMaxMS()
+	{
+		return getPercentileMS(100.0d);
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder bldr = new StringBuilder();
+		bldr.append(String.format(Locale.ROOT, "%-8s %6d %-16s %8d items %10.1f ms %10.1f items/s", name, numberOfOperations, operation + "(s)", numberOfItems, getTotalMS(), getItemsPerSecond()));
+		for(double p : PERCENTILES)
+			bldr.append(String.format(Locale.ROOT, "  p%.0f=%.3f ms", p, getPercentileMS(p)));
+		bldr.append(String.format(Locale.ROOT, "  max=%.3f ms", getMaxMS()));
+		return bldr.toString();
+	}
+
+}
@@ -0,0 +1,202 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.collector.loadtest;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import uk.ac.ucl.excites.sapelli.collector.model.Form;
+import uk.ac.ucl.excites.sapelli.storage.model.Column;
+import uk.ac.ucl.excites.sapelli.storage.model.ListColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.BooleanColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.ByteArrayColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.FloatColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.ForeignKeyColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.IntegerColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.LosslessFlagColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.StringColumn;
+import uk.ac.ucl.excites.sapelli.storage.types.Location;
+import uk.ac.ucl.excites.sapelli.storage.types.LocationColumn;
+import uk.ac.ucl.excites.sapelli.storage.types.Orientation;
+import uk.ac.ucl.excites.sapelli.storage.types.OrientationColumn;
+import uk.ac.ucl.excites.sapelli.storage.types.TimeStamp;
+import uk.ac.ucl.excites.sapelli.storage.types.TimeStampColumn;
+
+/**
+ * Generates synthetic, but valid, records for the {@link Form}s of a Collector project.
+ *
+ * Values are drawn from a seeded {@link Random}, so a given seed always produces the same records, except for the
+ * StartTime column: all records get distinct start times (so primary keys are unique), counting back from the
+ * moment the generator was created. Non-optional foreign keys point to the most recently generated record of the
+ * referenced schema, meaning forms should be generated in project order (parent forms first).
+ */
+public class RecordGenerator
+{
+
+	// STATIC -------------------------------------------------------
+	static public final long DEVICE_ID = 123456789L;
+
+	static private final int MAX_STRING_CHARS = 64;
+	static private final int MAX_BYTES_LENGTH = 64;
+	static private final int MAX_LIST_LENGTH = 8;
+	static private final char[] STRING_CHARS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 .,-".toCharArray();
+
+	/**
+	 * Maximum duration (in milliseconds) of a synthetic form session (i.e. time between StartTime and EndTime)
+	 */
+	static private final int MAX_SESSION_DURATION_MS = 10 * 60 * 1000;
+
+	// DYNAMIC ------------------------------------------------------
+	private final Random random;
+	private final long baseTime;
+	private long recordCounter = 0;
+
+	private final Map<Schema, Record> lastRecords = new HashMap<Schema, Record>();
+
+	public RecordGenerator(long seed)
+	{
+		this.random = new Random(seed);
+		this.baseTime = System.currentTimeMillis() - MAX_SESSION_DURATION_MS;
+	}
+
+	/**
+	 * @param form a form which produces records
+	 * @return a new record for the given form, filled with random values
+	 * @throws IllegalStateException when a non-optional foreign key cannot be set because no record of the referenced schema has been generated
+	 */
+	@SuppressWarnings("unchecked")
+	public Record generate(Form form) throws IllegalStateException
+	{
+		Schema schema = form.getSchema();
+		Record record = schema.createRecord();
+
+		// Fixed columns:
+		TimeStamp startTime = new TimeStamp(baseTime - recordCounter++); // distinct start time for every record (goes back in time so the high bound is never exceeded)
+		Form.COLUMN_TIMESTAMP_START.storeValue(record, startTime);
+		Form.COLUMN_DEVICE_ID.storeValue(record, DEVICE_ID);
+		if(schema.containsColumn(Form.COLUMN_TIMESTAMP_END))
+			Form.COLUMN_TIMESTAMP_END.storeValue(record, startTime.shift(random.nextInt(MAX_SESSION_DURATION_MS)));
+
+		// Field columns:
+		for(Column<?> column : schema.getColumns(false))
+		{
+			if(column.equals(Form.COLUMN_TIMESTAMP_START) || column.equals(Form.COLUMN_TIMESTAMP_END) || column.equals(Form.COLUMN_DEVICE_ID) || column instanceof LosslessFlagColumn)
+				continue;
+			Object value = createValue(column);
+			if(value != null && !((Column<Object>) column).isValidValueObject(value, true))
+				value = null;
+			if(value == null && !column.optional)
+				throw new IllegalStateException("Cannot generate a value for non-optional column " + column.name + " of form " + form.id);
+			((Column<Object>) column).storeObject(record, value);
+		}
+
+		lastRecords.put(schema, record);
+		return record;
+	}
+
+	/**
+	 * @param column
+	 * @return a random value, or {@code null} for unsupported column types
+	 */
+	@SuppressWarnings("unchecked")
+	private Object createValue(Column<?> column)
+	{
+		if(column instanceof IntegerColumn)
+		{
+			IntegerColumn intCol = (IntegerColumn) column;
+			long range = intCol.getMaxValue() - intCol.getMinValue();
+			if(range < 0 || range >= Integer.MAX_VALUE) // overflow or very large range
+				return Long.valueOf(intCol.getMinValue() + (random.nextInt() & Integer.MAX_VALUE));
+			return Long.valueOf(intCol.getMinValue() + random.nextInt((int) range + 1));
+		}
+		if(column instanceof FloatColumn)
+		{
+			FloatColumn floatCol = (FloatColumn) column;
+			double value = random.nextDouble() * 1000.0d;
+			if(floatCol.isSigned() && random.nextBoolean())
+				value = -value;
+			return Double.valueOf(floatCol.isDoublePrecision() ? value : (float) value);
+		}
+		if(column instanceof BooleanColumn)
+			return Boolean.valueOf(random.nextBoolean());
+		if(column instanceof StringColumn)
+		{
+			char[] chars = new char[random.nextInt(Math.min(((StringColumn) column).getMaximumChars(), MAX_STRING_CHARS) + 1)];
+			for(int c = 0; c < chars.length; c++)
+				chars[c] = STRING_CHARS[random.nextInt(STRING_CHARS.length)];
+			return new String(chars);
+		}
+		if(column instanceof ByteArrayColumn)
+		{
+			byte[] bytes = new byte[random.nextInt(MAX_BYTES_LENGTH + 1)];
+			random.nextBytes(bytes);
+			return bytes;
+		}
+		if(column instanceof TimeStampColumn)
+		{
+			TimeStampColumn tsCol = (TimeStampColumn) column;
+			long value = baseTime - (long) (random.nextDouble() * 365 * 24 * 60 * 60 * 1000L); // within the last year
+			if(tsCol.getLowBound() != null)
+				value = Math.max(value, tsCol.getLowBound().getMsSinceEpoch());
+			return new TimeStamp(value);
+		}
+		if(column instanceof LocationColumn)
+			return new Location(
+				(random.nextDouble() - 0.5d) * 180.0d,
+				(random.nextDouble() - 0.5d) * 360.0d,
+				Double.valueOf(random.nextDouble() * 1000.0d),
+				Float.valueOf(random.nextFloat() * 360.0f),
+				Float.valueOf(random.nextFloat() * 10.0f),
+				Float.valueOf(random.nextFloat() * 50.0f),
+				Long.valueOf(baseTime),
+				Location.PROVIDER_GPS);
+		if(column instanceof OrientationColumn)
+			return new Orientation(
+				Float.valueOf(random.nextFloat() * 360.0f),
+				Float.valueOf((random.nextFloat() - 0.5f) * 360.0f),
+				Float.valueOf((random.nextFloat() - 0.5f) * 180.0f));
+		if(column instanceof ListColumn)
+		{
+			ListColumn<?, Object> listCol = (ListColumn<?, Object>) column;
+			int length = listCol.getMinimumLength() + random.nextInt(Math.max(Math.min(listCol.getMaximumLength(), MAX_LIST_LENGTH) - listCol.getMinimumLength(), 0) + 1);
+			List<Object> list = (List<Object>) listCol.getNewList(length);
+			for(int i = 0; i < length; i++)
+			{
+				Object element = createValue(listCol.getSingleColumn());
+				if(element == null)
+					return null;
+				list.add(element);
+			}
+			return list;
+		}
+		if(column instanceof ForeignKeyColumn)
+		{
+			if(column.optional)
+				return null; // leave optional relationships unset
+			Record foreignRecord = lastRecords.get(((ForeignKeyColumn) column).getForeignSchema());
+			return foreignRecord != null ? foreignRecord.getReference() : null;
+		}
+		return null; // unsupported column type
+	}
+
+}
@@ -49,6 +49,7 @@ import uk.ac.ucl.excites.sapelli.storage.model.Record;
 import uk.ac.ucl.excites.sapelli.storage.model.Schema;
 import uk.ac.ucl.excites.sapelli.storage.util.UnknownModelException;
 import uk.ac.ucl.excites.sapelli.transmission.TransmissionClient;
+import uk.ac.ucl.excites.sapelli.transmission.db.PackedTransmissionPartsUpgradeStep;
 import uk.ac.ucl.excites.sapelli.transmission.model.Correspondent;
 import uk.ac.ucl.excites.sapelli.transmission.model.Payload;
 
@@ -73,7 +74,15 @@ public abstract class CollectorClient extends TransmissionClient
 	 */
 	static public final int COLLECTOR_RECORDSTORE_V3 = 3;
 	
-	static public final int CURRENT_COLLECTOR_RECORDSTORE_VERSION = COLLECTOR_RECORDSTORE_V3;
+	/**
+	 * Version in which all parts of a transmission are stored in a single record.
+	 * 
+	 * @see PackedTransmissionPartsUpgradeStep
+	 * @see CollectorSQLRecordStoreUpgrader
+	 */
+	static public final int COLLECTOR_RECORDSTORE_V4 = 4;
+	
+	static public final int CURRENT_COLLECTOR_RECORDSTORE_VERSION = COLLECTOR_RECORDSTORE_V4;
 	
 	/**
 	 * Flag indicating that a Schema has been defined at the Collector layer of the Sapelli Library.
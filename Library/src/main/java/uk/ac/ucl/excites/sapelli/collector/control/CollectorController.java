@@ -55,6 +55,7 @@ import uk.ac.ucl.excites.sapelli.shared.io.FileStorageException;
 import uk.ac.ucl.excites.sapelli.shared.util.CollectionUtils;
 import uk.ac.ucl.excites.sapelli.shared.util.ExceptionHelpers;
 import uk.ac.ucl.excites.sapelli.shared.util.Logger;
+import uk.ac.ucl.excites.sapelli.shared.util.Logger.OverflowPolicy;
 import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
 import uk.ac.ucl.excites.sapelli.storage.model.Record;
 import uk.ac.ucl.excites.sapelli.storage.model.RecordReference;
@@ -1091,7 +1092,7 @@ public abstract class CollectorController<CUI extends CollectorUI<?, ?>> impleme
 	
 	protected Logger createLogger() throws FileStorageException, IOException
 	{
-		return new Logger(fileStorageProvider.getProjectLogsFolder(project, true).getAbsolutePath(), LOG_PREFIX, true);
+		return new Logger(fileStorageProvider.getProjectLogsFolder(project, true).getAbsolutePath(), LOG_PREFIX, true, true, Logger.DEFAULT_ASYNC_BUFFER_CAPACITY, OverflowPolicy.BLOCK); // async: keep disk I/O off the UI thread
 	}
 	
 }
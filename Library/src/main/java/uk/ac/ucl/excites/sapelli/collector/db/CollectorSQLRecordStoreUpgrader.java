@@ -34,6 +34,7 @@ import uk.ac.ucl.excites.sapelli.storage.model.Column;
 import uk.ac.ucl.excites.sapelli.storage.model.Model;
 import uk.ac.ucl.excites.sapelli.storage.model.Record;
 import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.transmission.db.PackedTransmissionPartsUpgradeStep;
 
 /**
  * @author mstevens
@@ -48,7 +49,9 @@ public class CollectorSQLRecordStoreUpgrader extends SQLRecordStoreUpgrader impl
 				fileStorageProvider.getOldDBVersionsFolder(false),
 				// Steps:
 				//	v2->v3:
-				new CollectorBeta17UpgradeStep(client, fileStorageProvider)
+				new CollectorBeta17UpgradeStep(client, fileStorageProvider),
+				//	v3->v4:
+				new PackedTransmissionPartsUpgradeStep<CollectorClient>(client, CollectorClient.COLLECTOR_RECORDSTORE_V3, CollectorClient.COLLECTOR_RECORDSTORE_V4)
 				/*...*/);
 	}
 
@@ -27,7 +27,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -53,6 +53,7 @@ import uk.ac.ucl.excites.sapelli.shared.io.BitOutputStream;
 import uk.ac.ucl.excites.sapelli.shared.io.BitWrapInputStream;
 import uk.ac.ucl.excites.sapelli.shared.io.BitWrapOutputStream;
 import uk.ac.ucl.excites.sapelli.shared.util.CollectionUtils;
+import uk.ac.ucl.excites.sapelli.shared.util.WarningKeeper.WarningKeeperImpl;
 import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
 import uk.ac.ucl.excites.sapelli.storage.db.RecordStoreWrapper;
 import uk.ac.ucl.excites.sapelli.storage.db.exceptions.DBConstraintException;
@@ -175,6 +176,11 @@ public class ProjectRecordStore extends ProjectStore implements FormSchemaInfoPr
 		COLLECTOR_MANAGEMENT_MODEL.seal();
 	}
 			
+	/**
+	 * Default number of most recently used projects to keep in memory, see {@link #ProjectRecordStore(CollectorClient, FileStorageProvider, int)}.
+	 */
+	static public final int DEFAULT_CACHED_PROJECTS = 5;
+			
 	// DYNAMICS--------------------------------------------
 	private final CollectorClient client;
 	private final RecordStoreWrapper<CollectorClient> rsWrapper;
@@ -189,11 +195,33 @@ public class ProjectRecordStore extends ProjectStore implements FormSchemaInfoPr
 	 */
 	public ProjectRecordStore(CollectorClient client, FileStorageProvider fileStorageProvider) throws DBException
 	{
+		this(client, fileStorageProvider, DEFAULT_CACHED_PROJECTS);
+	}
+	
+	/**
+	 * @param client
+	 * @param fileStorageProvider
+	 * @param cachedProjects the maximum number of (most recently used) projects to keep in memory; evicted projects are reloaded, from their snapshot, when needed again
+	 * @throws DBException
+	 */
+	public ProjectRecordStore(CollectorClient client, FileStorageProvider fileStorageProvider, final int cachedProjects) throws DBException
+	{
+		if(cachedProjects < 0)
+			throw new IllegalArgumentException("cachedProjects cannot be negative");
 		this.client = client;
 		this.rsWrapper = new RecordStoreWrapper<CollectorClient>(client);
 		this.transmissionStore = client.transmissionStoreHandle.getStore(this);
 		this.fileStorageProvider = fileStorageProvider;
-		this.cache = new HashMap<Long, Project>();
+		this.cache = Collections.synchronizedMap(new LinkedHashMap<Long, Project>(cachedProjects + 1, 0.75f, true) // access order
+		{
+			private static final long serialVersionUID = 2L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Project> eldest)
+			{
+				return size() > cachedProjects;
+			}
+		});
 	}
 	
 	private Record getProjectRecord(Project project)
@@ -302,10 +330,13 @@ public class ProjectRecordStore extends ProjectStore implements FormSchemaInfoPr
 		// First check the cache:
 		project = cache.get(getCacheKey(projDescr));
 		
-		// Parse project if we didn't get it from the cache: 
+		// Load project (from snapshot or by parsing the XML) if we didn't get it from the cache: 
 		if(project == null)
 		{
-			project = ProjectLoader.ParseProjectXMLInFolder(getProjectFolder(projDescr), this); // pass this as FormSchemaInfoProvider
+			WarningKeeperImpl snapshotWarnings = new WarningKeeperImpl();
+			project = ProjectLoader.LoadProjectInFolder(getProjectFolder(projDescr), projDescr, this, snapshotWarnings); // pass this as FormSchemaInfoProvider
+			for(String warning : snapshotWarnings.getWarnings())
+				client.logWarning(warning);
 			// Check if we have a project:
 			if(project == null)
 				// If not, delete the project:
@@ -19,26 +19,45 @@
 package uk.ac.ucl.excites.sapelli.collector.load;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 import uk.ac.ucl.excites.sapelli.collector.io.FileStorageProvider;
 import uk.ac.ucl.excites.sapelli.collector.load.parse.ProjectParser;
 import uk.ac.ucl.excites.sapelli.collector.load.process.PostProcessTask;
 import uk.ac.ucl.excites.sapelli.collector.load.process.PostProcessor;
 import uk.ac.ucl.excites.sapelli.collector.model.Project;
+import uk.ac.ucl.excites.sapelli.collector.model.ProjectDescriptor;
 import uk.ac.ucl.excites.sapelli.shared.io.FileHelpers;
 import uk.ac.ucl.excites.sapelli.shared.io.FileStorageException;
+import uk.ac.ucl.excites.sapelli.shared.io.StreamHelpers;
 import uk.ac.ucl.excites.sapelli.shared.io.Unzipper;
 import uk.ac.ucl.excites.sapelli.shared.util.ErrorKeeper;
+import uk.ac.ucl.excites.sapelli.shared.util.ExceptionHelpers;
 import uk.ac.ucl.excites.sapelli.shared.util.WarningKeeper;
+import uk.ac.ucl.excites.sapelli.shared.util.WarningKeeper.WarningKeeperImpl;
 import uk.ac.ucl.excites.sapelli.storage.model.Schema;
 
 /**
@@ -52,6 +71,28 @@ public class ProjectLoader implements WarningKeeper, ErrorKeeper
 	// STATICS -----------------------------------------------------------
 	static public final String[] SAPELLI_FILE_EXTENSIONS = { "sap", "sapelli", "excites", "zip" };
 	static public final String PROJECT_FILE = "PROJECT.xml";
+	
+	/**
+	 * Maximum number of threads used to extract the contents of a Sapelli file in parallel, see {@link #load(File)}.
+	 */
+	static public final int MAX_EXTRACTION_THREADS = 4;
+	static private final long EXTRACTION_ABORT_TIMEOUT_S = 10;
+	static private final String STAGING_FOLDER_PREFIX = ".installing-";
+	
+	/**
+	 * Staging folders which have not been modified for this long are assumed to be left behind by an installation
+	 * which was interrupted (e.g. because the process was killed) and are deleted, see {@link #createStagingFolder()}.
+	 */
+	static public final long STALE_STAGING_FOLDER_AGE_MS = 60 * 60 * 1000; // 1 hour
+	
+	static private final FileFilter STAGING_FOLDER_FILTER = new FileFilter()
+	{
+		@Override
+		public boolean accept(File file)
+		{
+			return file.isDirectory() && file.getName().startsWith(STAGING_FOLDER_PREFIX);
+		}
+	};
 
 	/**
 	 * Checks if the given file has a support sapelli file extension
@@ -112,6 +153,60 @@ public class ProjectLoader implements WarningKeeper, ErrorKeeper
 		return ParseProjectXML(GetProjectXMLFile(folder), fsiProvider);
 	}
 	
+	/**
+	 * Loads the project installed in the given folder. If the folder holds an up-to-date {@link ProjectSnapshot} the project is read from
+	 * there, otherwise the {@value #PROJECT_FILE} file is parsed (see {@link #ParseProjectXMLInFolder(File, FormSchemaInfoProvider)})
+	 * and a new snapshot is written to speed up subsequent loads.
+	 * Problems with the snapshot are reported as warnings, no exceptions are thrown.
+	 * 
+	 * @param folder folder in which the {@value #PROJECT_FILE} file resides
+	 * @param descriptor descriptor of the project which is expected to be installed in the folder
+	 * @param fsiProvider a {@link FormSchemaInfoProvider}, or {@code null}
+	 * @param warnings {@link WarningKeeper} to report problems with reading or writing the snapshot to, or {@code null}
+	 * @return a {@link Project} instance or {@code null} in case something went wrong
+	 */
+	static public Project LoadProjectInFolder(File folder, ProjectDescriptor descriptor, FormSchemaInfoProvider fsiProvider, WarningKeeper warnings)
+	{
+		// Try snapshot first:
+		try
+		{
+			Project project = ProjectSnapshot.Read(folder, descriptor);
+			if(project != null)
+				return project;
+		}
+		catch(IOException e)
+		{
+			if(warnings != null)
+				warnings.addWarning(e.getMessage());
+		}
+		
+		// Fall back to parsing the XML:
+		Project project = ParseProjectXMLInFolder(folder, fsiProvider);
+		if(project != null && project.getID() == descriptor.getID() && project.getFingerPrint() == descriptor.getFingerPrint())
+			WriteSnapshot(folder, project, warnings);
+		return project;
+	}
+	
+	/**
+	 * Writes a {@link ProjectSnapshot} of the given project, failure to do so is reported as a warning (the XML will be parsed instead).
+	 * 
+	 * @param folder
+	 * @param project
+	 * @param warnings may be {@code null}
+	 */
+	static private void WriteSnapshot(File folder, Project project, WarningKeeper warnings)
+	{
+		try
+		{
+			ProjectSnapshot.Write(folder, project);
+		}
+		catch(IOException e)
+		{
+			if(warnings != null)
+				warnings.addWarning("Failed to write project snapshot to " + ProjectSnapshot.GetSnapshotFile(folder).getAbsolutePath() + ": " + e.getMessage());
+		}
+	}
+	
 	/**
 	 * @param folder folder in which the {@value #PROJECT_FILE} file resides
 	 * @return the {@value #PROJECT_FILE} {@link File}
@@ -178,6 +273,7 @@ public class ProjectLoader implements WarningKeeper, ErrorKeeper
 	private final PostProcessor postProcessor;
 	private List<String> warnings;
 	private List<String> errors;
+	private Map<PostProcessTask, Long> postProcessingTimes;
 
 	private final ProjectParser parser;
 
@@ -207,18 +303,108 @@ public class ProjectLoader implements WarningKeeper, ErrorKeeper
 	/**
 	 * Extract the given sapelli file (provided as a File object) and parses the PROJECT.xml; returns the resulting Project object.
 	 * 
+	 * Because the file allows random access the resource entries are extracted in parallel (using at most {@link #MAX_EXTRACTION_THREADS} threads),
+	 * straight into a staging folder next to the final installation folder, while the PROJECT.xml entry is parsed on the calling thread.
+	 * 
 	 * @param sapelliFile
 	 * @return the loaded Project
 	 * @throws Exception
 	 */
 	public Project load(File sapelliFile) throws Exception
 	{
-		return load(FileHelpers.openInputStream(sapelliFile, true));
+		clearWarnings();
+		clearErrors();
+		Project project = null;
+		File stagingFolder = null;
+		ZipFile zipFile = null;
+		ExecutorService executor = null;
+		try
+		{
+			// STEP 0 - Open the Sapelli file & create the staging folder:
+			try
+			{
+				zipFile = new ZipFile(sapelliFile);
+			}
+			catch(IOException ioe)
+			{
+				throw new Exception("Sapelli file is not a valid ZIP archive or does not contain any files.", ioe);
+			}
+			stagingFolder = createStagingFolder();
+			
+			// STEP 1 - Extract the content of the Sapelli file into the staging folder, in parallel:
+			executor = Executors.newFixedThreadPool(Math.min(MAX_EXTRACTION_THREADS, Math.max(1, zipFile.size())));
+			List<Future<File>> extractions = new ArrayList<Future<File>>(zipFile.size());
+			ZipEntry projectXMLEntry = null;
+			for(Enumeration<? extends ZipEntry> entries = zipFile.entries(); entries.hasMoreElements();)
+			{
+				ZipEntry entry = entries.nextElement();
+				if(IsProjectXMLEntry(entry))
+					projectXMLEntry = entry;
+				extractions.add(executor.submit(new EntryExtractor(zipFile, entry, stagingFolder)));
+			}
+			if(projectXMLEntry == null)
+				throw new Exception(extractions.isEmpty() ? "Sapelli file is not a valid ZIP archive or does not contain any files." : PROJECT_FILE + " not found in Sapelli file.");
+			
+			// STEP 2 & 3 - Meanwhile, parse PROJECT.xml and check if project is acceptable:
+			InputStream projectXMLInput = zipFile.getInputStream(projectXMLEntry);
+			try
+			{
+				project = parseAndCheck(projectXMLInput);
+			}
+			finally
+			{
+				StreamHelpers.SilentClose(projectXMLInput);
+			}
+			
+			// Wait for the extraction to finish:
+			for(Future<File> extraction : extractions)
+			{
+				try
+				{
+					extraction.get();
+				}
+				catch(ExecutionException ee)
+				{
+					throw new Exception("Error on extracting contents of Sapelli file.", ee.getCause());
+				}
+			}
+		}
+		catch(Exception e)
+		{
+			// Stop extraction & delete staging folder:
+			if(executor != null)
+			{
+				executor.shutdownNow();
+				executor.awaitTermination(EXTRACTION_ABORT_TIMEOUT_S, TimeUnit.SECONDS);
+			}
+			FileUtils.deleteQuietly(stagingFolder);
+			
+			// Re-throw Exception:
+			throw e;
+		}
+		finally
+		{
+			if(executor != null)
+				executor.shutdown();
+			if(zipFile != null)
+				try
+				{
+					zipFile.close(); // (ZipFile only implements Closeable as of Android API level 19)
+				}
+				catch(IOException ignore) {}
+		}
+		
+		// STEP 4, 5 & 6:
+		return install(project, stagingFolder);
 	}
 	
 	/**
 	 * Extract the given sapelli file (provided as an InputStream) and parses the PROJECT.xml; returns the resulting Project object.
 	 * 
+	 * The archive is processed in a single pass: entries are written straight into a staging folder next to the final installation folder
+	 * and the PROJECT.xml entry is parsed, and the project checked, as soon as it is encountered, so unacceptable projects are rejected
+	 * without extracting the remaining entries (if PROJECT.xml comes first in the archive, as is the case for files made by the Packager).
+	 * 
 	 * @param sapelliFileInputStream
 	 * @return the loaded Project
 	 * @throws Exception
@@ -228,49 +414,167 @@ public class ProjectLoader implements WarningKeeper, ErrorKeeper
 		clearWarnings();
 		clearErrors();
 		Project project = null;
-		File extractFolder = null;
+		File stagingFolder = null;
+		ZipInputStream zipInput = null;
 		try
 		{
-			// STEP 0 - Create the extraction folder:
-			extractFolder = new File(fileStorageProvider.getTempFolder(true), "" + System.currentTimeMillis());
-			if(!FileHelpers.createDirectory(extractFolder))
-				throw new FileStorageException("Could not create folder to extract project file into.");
+			// STEP 0 - Create the staging folder:
+			stagingFolder = createStagingFolder();
 			
-			// STEP 1 - Extract the content of the Sapelli file to a new subfolder of the temp folder:
-			try
-			{
-				if(Unzipper.unzip(sapelliFileInputStream, extractFolder) == 0)
-					throw new Exception("Sapelli file is not a valid ZIP archive or does not contain any files.");
-			}
-			catch(IOException ioe)
+			// STEP 1, 2 & 3 - Extract the content of the Sapelli file into the staging folder, parsing & checking PROJECT.xml on the way:
+			zipInput = new ZipInputStream(sapelliFileInputStream);
+			int entryCount = 0;
+			for(ZipEntry entry = nextEntry(zipInput); entry != null; entry = nextEntry(zipInput))
 			{
-				throw new Exception("Error on extracting contents of Sapelli file.", ioe.getCause());
+				entryCount++;
+				if(IsProjectXMLEntry(entry))
+				{
+					byte[] projectXMLBytes;
+					try
+					{
+						projectXMLBytes = IOUtils.toByteArray(zipInput);
+						Unzipper.extract(entry, new ByteArrayInputStream(projectXMLBytes), stagingFolder);
+					}
+					catch(IOException ioe)
+					{
+						throw new Exception("Error on extracting contents of Sapelli file.", ioe);
+					}
+					project = parseAndCheck(new ByteArrayInputStream(projectXMLBytes));
+				}
+				else
+				{
+					try
+					{
+						Unzipper.extract(entry, zipInput, stagingFolder);
+					}
+					catch(IOException ioe)
+					{
+						throw new Exception("Error on extracting contents of Sapelli file.", ioe);
+					}
+				}
 			}
+			if(project == null)
+				throw new Exception(entryCount == 0 ? "Sapelli file is not a valid ZIP archive or does not contain any files." : PROJECT_FILE + " not found in Sapelli file.");
+		}
+		catch(Exception e)
+		{
+			// Delete staging folder:
+			FileUtils.deleteQuietly(stagingFolder);
 			
-			// STEP 2 - Parse PROJECT.xml:
-			try
-			{	
-				project = parser.parseProject(new File(extractFolder.getAbsolutePath() + File.separator + PROJECT_FILE));
-			}
-			catch(Exception e)
-			{
-				// Copy error:
-				addError(e.getLocalizedMessage());
-
-				throw new Exception("Error on parsing " + PROJECT_FILE, e);
-			}
-			// Copy parser warnings:
-			addWarnings(parser.getWarnings());
+			// Re-throw Exception:
+			throw e;
+		}
+		finally
+		{
+			StreamHelpers.SilentClose(zipInput);
+		}
+		
+		// STEP 4, 5 & 6:
+		return install(project, stagingFolder);
+	}
+	
+	/**
+	 * @param zipInput
+	 * @return the next entry, or {@code null} if there are no more
+	 * @throws Exception
+	 */
+	private ZipEntry nextEntry(ZipInputStream zipInput) throws Exception
+	{
+		try
+		{
+			return zipInput.getNextEntry();
+		}
+		catch(IOException ioe)
+		{
+			throw new Exception("Error on extracting contents of Sapelli file.", ioe);
+		}
+	}
+	
+	/**
+	 * @param entry
+	 * @return whether the given entry is the {@value #PROJECT_FILE} file in the root of the archive
+	 */
+	static private boolean IsProjectXMLEntry(ZipEntry entry)
+	{
+		return !entry.isDirectory() && PROJECT_FILE.equalsIgnoreCase(entry.getName());
+	}
+	
+	/**
+	 * Creates a new, empty staging folder in the projects folder. Because it resides on the same volume as the installation folders
+	 * the extracted files only need to be renamed, rather than copied, upon installation.
+	 * Stale staging folders (see {@link #STALE_STAGING_FOLDER_AGE_MS}) are deleted first.
+	 * 
+	 * @return the staging folder
+	 * @throws FileStorageException
+	 */
+	private File createStagingFolder() throws FileStorageException
+	{
+		File projectsFolder = fileStorageProvider.getProjectsFolder(true);
+		
+		// Sweep stale staging folders:
+		File[] stagingFolders = projectsFolder.listFiles(STAGING_FOLDER_FILTER);
+		if(stagingFolders != null)
+			for(File stagingFolder : stagingFolders)
+				if(stagingFolder.lastModified() < System.currentTimeMillis() - STALE_STAGING_FOLDER_AGE_MS)
+					FileUtils.deleteQuietly(stagingFolder);
+		
+		File stagingFolder = new File(projectsFolder, STAGING_FOLDER_PREFIX + System.currentTimeMillis());
+		if(!FileHelpers.createDirectory(stagingFolder))
+			throw new FileStorageException("Could not create folder to extract project file into.");
+		return stagingFolder;
+	}
+	
+	/**
+	 * Parses the PROJECT.xml provided by the given input stream and checks whether the project is acceptable.
+	 * 
+	 * @param projectXMLInput
+	 * @return the parsed Project
+	 * @throws Exception
+	 */
+	private Project parseAndCheck(InputStream projectXMLInput) throws Exception
+	{
+		// STEP 2 - Parse PROJECT.xml:
+		Project project;
+		try
+		{	
+			project = parser.parseProject(projectXMLInput);
+		}
+		catch(Exception e)
+		{
+			// Copy error:
+			addError(e.getLocalizedMessage());
 
-			// STEP 3 - Check if project is acceptable:
-			checkProject(project); // throws IllegalArgumentException if something is wrong
+			throw new Exception("Error on parsing " + PROJECT_FILE, e);
+		}
+		// Copy parser warnings:
+		addWarnings(parser.getWarnings());
 
-			// STEP 4 - Create move extracted files to project folder:
+		// STEP 3 - Check if project is acceptable:
+		checkProject(project); // throws IllegalArgumentException if something is wrong
+		
+		return project;
+	}
+	
+	/**
+	 * Moves the extracted files from the staging folder into the project folder and runs post-processing tasks.
+	 * In case of failure the project folder is deleted.
+	 * 
+	 * @param project
+	 * @param stagingFolder
+	 * @return the installed Project
+	 * @throws Exception
+	 */
+	private Project install(Project project, File stagingFolder) throws Exception
+	{
+		File installFolder = null;
+		try
+		{
+			// STEP 4 - Move extracted files to project folder (by renaming the staging folder if possible):
 			try
 			{
-				File installFolder = fileStorageProvider.getProjectInstallationFolder(project, true);
-				FileHelpers.moveDirectory(extractFolder, installFolder);
-				extractFolder = installFolder;
+				installFolder = fileStorageProvider.getProjectInstallationFolder(project, false);
+				if(installFolder.exists() || !FileHelpers.createParentDirectory(installFolder) || !stagingFolder.renameTo(installFolder))
+					FileHelpers.moveDirectory(stagingFolder, installFolder); // merges with existing folder & falls back to copying
 			}
 			catch(Exception e)
 			{
@@ -280,11 +584,15 @@ public class ProjectLoader implements WarningKeeper, ErrorKeeper
 			// STEP 5 - Run post-processing tasks:
 			List<PostProcessTask> tasks = parser.getPostProcessingTasks();
 			runPostProcessingTasks(project, tasks);
+			
+			// STEP 6 - Write compiled snapshot to speed up future loads (failure is not fatal, the XML will be parsed instead):
+			WriteSnapshot(installFolder, project, this);
 		}
 		catch(Exception e)
 		{
-			// Delete temp or install folder:
-			FileUtils.deleteQuietly(extractFolder);
+			// Delete staging & install folder:
+			FileUtils.deleteQuietly(stagingFolder);
+			FileUtils.deleteQuietly(installFolder);
 			
 			// Re-throw Exception:
 			throw e;
@@ -354,37 +662,97 @@ public class ProjectLoader implements WarningKeeper, ErrorKeeper
 	}
 
 	/**
-	 * Run post-processing tasks:
+	 * Run post-processing tasks.
+	 * 
+	 * Tasks which are not thread-safe (see {@link PostProcessTask#isThreadSafe()}) are executed first, in order, on the calling thread.
+	 * The thread-safe ones are then executed on a pool of at most {@link PostProcessor#getMaxConcurrentTasks()} threads.
+	 * Each task reports warnings to its own {@link WarningKeeper}, these are copied to the loader's warnings in task order once all tasks
+	 * have finished. Failing tasks do not stop the others from running, but their errors are collected and an exception is thrown at the end.
+	 * The execution time of each task is recorded, see {@link #getPostProcessingTimes()}.
 	 *
 	 * @param project a {@link Project}
 	 * @param tasks   List of {@link PostProcessTask}
-	 * @throws Exception exception
+	 * @throws Exception when one or more tasks failed (with the first failure as the cause)
 	 */
-	private void runPostProcessingTasks(Project project, List<PostProcessTask> tasks) throws Exception
+	private void runPostProcessingTasks(final Project project, List<PostProcessTask> tasks) throws Exception
 	{
+		postProcessingTimes = new LinkedHashMap<PostProcessTask, Long>();
 		if(!tasks.isEmpty())
 		{
 			if(postProcessor != null)
 			{
 				postProcessor.initialise(project);
+				
+				// Sort tasks, wrapping each in a runner:
+				List<PostProcessTaskRunner> runners = new ArrayList<PostProcessTaskRunner>(tasks.size());
+				List<PostProcessTaskRunner> concurrentRunners = new ArrayList<PostProcessTaskRunner>(tasks.size());
 				for(PostProcessTask task : tasks)
 				{
-					try
+					PostProcessTaskRunner runner = new PostProcessTaskRunner(task, project);
+					runners.add(runner);
+					if(task.isThreadSafe())
+						concurrentRunners.add(runner);
+				}
+				
+				ExecutorService executor = null;
+				try
+				{
+					// Run non-thread-safe tasks on this thread, in order: 
+					for(PostProcessTaskRunner runner : runners)
+						if(!runner.task.isThreadSafe())
+							runner.run();
+
+					// Run thread-safe tasks concurrently (if allowed & worthwhile):
+					int maxThreads = Math.min(postProcessor.getMaxConcurrentTasks(), concurrentRunners.size());
+					if(maxThreads > 1)
 					{
-						task.execute(postProcessor, project, this);
+						executor = Executors.newFixedThreadPool(maxThreads);
+						List<Future<?>> futures = new ArrayList<Future<?>>(concurrentRunners.size());
+						for(PostProcessTaskRunner runner : concurrentRunners)
+							futures.add(executor.submit(runner));
+						for(Future<?> future : futures)
+							future.get(); // runners catch task exceptions themselves
 					}
-					catch(Exception e)
+					else
+						for(PostProcessTaskRunner runner : concurrentRunners)
+							runner.run();
+				}
+				finally
+				{
+					if(executor != null)
+						executor.shutdownNow();
+					postProcessor.freeResources();
+				}
+				
+				// Aggregate timings, warnings & failures (in task order):
+				Exception firstFailure = null;
+				int failures = 0;
+				for(PostProcessTaskRunner runner : runners)
+				{
+					postProcessingTimes.put(runner.task, runner.durationMS);
+					addWarnings(runner.getWarnings());
+					if(runner.failure != null)
 					{
-						throw new Exception("Error on executing post-processing task", e);
+						addError("Post-processing task " + runner.task + " failed: " + ExceptionHelpers.getMessageAndCause(runner.failure));
+						if(failures++ == 0)
+							firstFailure = runner.failure;
 					}
 				}
-
-				postProcessor.freeResources();
+				if(firstFailure != null)
+					throw new Exception("Error on executing post-processing task" + (failures > 1 ? "s (" + failures + " of " + tasks.size() + " failed)" : ""), firstFailure);
 			}
 			else
 				addWarning("Unable to perform " + tasks.size() + " post-processing");
 		}
 	}
+	
+	/**
+	 * @return the execution times (in milliseconds) of the post-processing tasks run by the last {@link #load(InputStream)} or {@link #loadProjectFile(InputStream)} call, in task order
+	 */
+	public Map<PostProcessTask, Long> getPostProcessingTimes()
+	{
+		return postProcessingTimes != null ? Collections.unmodifiableMap(postProcessingTimes) : Collections.<PostProcessTask, Long> emptyMap();
+	}
 
 	/**
 	 * @param project
@@ -498,6 +866,73 @@ public class ProjectLoader implements WarningKeeper, ErrorKeeper
 		errors = null;
 	}
 
+	/**
+	 * Extracts a single entry from a {@link ZipFile}.
+	 */
+	static private final class EntryExtractor implements Callable<File>
+	{
+		
+		private final ZipFile zipFile;
+		private final ZipEntry entry;
+		private final File extractionFolder;
+		
+		public EntryExtractor(ZipFile zipFile, ZipEntry entry, File extractionFolder)
+		{
+			this.zipFile = zipFile;
+			this.entry = entry;
+			this.extractionFolder = extractionFolder;
+		}
+		
+		@Override
+		public File call() throws IOException
+		{
+			InputStream entryInput = entry.isDirectory() ? null : zipFile.getInputStream(entry);
+			try
+			{
+				return Unzipper.extract(entry, entryInput, extractionFolder);
+			}
+			finally
+			{
+				StreamHelpers.SilentClose(entryInput);
+			}
+		}
+		
+	}
+	
+	/**
+	 * Executes a single {@link PostProcessTask}, keeping its warnings, failure and execution time.
+	 */
+	private final class PostProcessTaskRunner extends WarningKeeperImpl implements Runnable
+	{
+		
+		final PostProcessTask task;
+		final Project project;
+		long durationMS;
+		Exception failure;
+		
+		public PostProcessTaskRunner(PostProcessTask task, Project project)
+		{
+			this.task = task;
+			this.project = project;
+		}
+		
+		@Override
+		public void run()
+		{
+			long startTime = System.currentTimeMillis();
+			try
+			{
+				task.execute(postProcessor, project, this);
+			}
+			catch(Exception e)
+			{
+				failure = e;
+			}
+			durationMS = System.currentTimeMillis() - startTime;
+		}
+		
+	}
+	
 	/**
 	 * Callback interface for checking Project acceptance
 	 * 
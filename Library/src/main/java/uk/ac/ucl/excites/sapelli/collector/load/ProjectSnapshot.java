@@ -0,0 +1,476 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ *
+ * Copyright 2012-2016 University College London - ExCiteS group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.collector.load;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamField;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+
+import uk.ac.ucl.excites.sapelli.collector.model.Form;
+import uk.ac.ucl.excites.sapelli.collector.model.Project;
+import uk.ac.ucl.excites.sapelli.collector.model.ProjectDescriptor;
+import uk.ac.ucl.excites.sapelli.shared.compression.CompressorFactory;
+import uk.ac.ucl.excites.sapelli.shared.compression.CompressorFactory.Compression;
+import uk.ac.ucl.excites.sapelli.shared.io.StreamHelpers;
+import uk.ac.ucl.excites.sapelli.shared.util.xml.XMLHasher;
+
+/**
+ * Helper class to write and read "compiled" project snapshots: compressed Java object serialisations of fully parsed {@link Project}s,
+ * stored next to the {@value ProjectLoader#PROJECT_FILE} file in the project installation folder. Reading a snapshot is considerably
+ * faster than parsing the XML and (re)generating all forms, choice trees, dictionaries and schemas.
+ *
+ * A snapshot starts with an uncompressed header which holds the project ID, the project fingerprint (computed by {@link XMLHasher})
+ * and the size of the {@value ProjectLoader#PROJECT_FILE} file it was created from. A snapshot is only used when this header matches the
+ * given {@link ProjectDescriptor} and the XML file on disk, and when the serialised structure of every class in the object graph
+ * still matches the structure of the corresponding class in the running code. In all other cases the snapshot is considered stale
+ * and callers should fall back to parsing the XML (see {@link ProjectLoader#LoadProjectInFolder(File, ProjectDescriptor, FormSchemaInfoProvider, uk.ac.ucl.excites.sapelli.shared.util.WarningKeeper)}).
+ *
+ * The header is followed by a block holding the project itself, without the {@link Form.Contents} (fields, start field & triggers) of
+ * its forms, which are stored in separate blocks, one per form. Reading a snapshot only reads the project block; the contents of each
+ * form are loaded from the snapshot when the form is first used (see {@link Form#getContents()}). Objects which the form contents
+ * share with the project (e.g. the forms themselves and the columns of their schemas) are written as references into the project block.
+ */
+public final class ProjectSnapshot
+{
+
+	// STATICS -----------------------------------------------------------
+	static public final String SNAPSHOT_FILE = "PROJECT.snapshot";
+
+	static private final byte[] MAGIC_BYTES = "SapelliProjectSnapshot".getBytes(Charset.forName("UTF-8"));
+	static private final byte FORMAT_VERSION = 2;
+	static private final int HEADER_SIZE = MAGIC_BYTES.length + 1 + 4 + 4 + 8; // bytes
+	static private final Compression COMPRESSION = Compression.DEFLATE;
+
+	/**
+	 * @param folder folder in which the {@value #SNAPSHOT_FILE} file resides
+	 * @return the {@value #SNAPSHOT_FILE} {@link File}
+	 */
+	static public File GetSnapshotFile(File folder)
+	{
+		return new File(folder, SNAPSHOT_FILE);
+	}
+
+	/**
+	 * Writes a snapshot of the given project to the {@value #SNAPSHOT_FILE} file in the given folder, replacing any existing one.
+	 * The snapshot is first written to a temporary file which is only renamed once complete, so a failure or crash cannot leave a half-written snapshot behind.
+	 *
+	 * @param folder folder in which the project's {@value ProjectLoader#PROJECT_FILE} file resides
+	 * @param project the project to write a snapshot of, assumed to have been parsed from the {@value ProjectLoader#PROJECT_FILE} file in the folder
+	 * @throws IOException when the snapshot could not be written
+	 */
+	static public void Write(File folder, Project project) throws IOException
+	{
+		File snapshotFile = GetSnapshotFile(folder);
+		File tempFile = new File(folder, SNAPSHOT_FILE + ".tmp");
+		DataOutputStream out = null;
+		try
+		{
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+
+			// Header:
+			out.write(MAGIC_BYTES);
+			out.writeByte(FORMAT_VERSION);
+			out.writeInt(project.getID());
+			out.writeInt(project.getFingerPrint());
+			out.writeLong(ProjectLoader.GetProjectXMLFile(folder).length());
+
+			// Project block (without form contents):
+			ByteArrayOutputStream block = new ByteArrayOutputStream();
+			ProjectObjectOutputStream projectOut = new ProjectObjectOutputStream(CompressorFactory.getCompressorOutputStream(COMPRESSION, block));
+			projectOut.writeObject(project);
+			projectOut.writeSharedObjects();
+			projectOut.close();
+			WriteBlock(block, out);
+
+			// Form contents blocks:
+			Set<Object> writtenContentsObjects = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+			for(Form form : project.getForms())
+			{
+				block.reset();
+				ObjectOutputStream contentsOut = new ContentsObjectOutputStream(CompressorFactory.getCompressorOutputStream(COMPRESSION, block), projectOut.sharedObjects, writtenContentsObjects);
+				contentsOut.writeObject(form.getContents());
+				contentsOut.close();
+				WriteBlock(block, out);
+			}
+			out.close();
+			out = null;
+
+			// Replace existing snapshot:
+			FileUtils.deleteQuietly(snapshotFile);
+			if(!tempFile.renameTo(snapshotFile))
+				throw new IOException("Could not rename " + tempFile.getName() + " to " + snapshotFile.getName());
+		}
+		finally
+		{
+			StreamHelpers.SilentClose(out);
+			FileUtils.deleteQuietly(tempFile);
+		}
+	}
+
+	static private void WriteBlock(ByteArrayOutputStream block, DataOutput out) throws IOException
+	{
+		out.writeInt(block.size());
+		out.write(block.toByteArray());
+	}
+
+	/**
+	 * Reads the {@link Project} from the {@value #SNAPSHOT_FILE} file in the given folder, provided it exists and is up-to-date.
+	 * The contents of the forms are not read yet, they are loaded from the snapshot when needed.
+	 * Stale or corrupt snapshots are deleted.
+	 *
+	 * @param folder folder in which the project's {@value ProjectLoader#PROJECT_FILE} and {@value #SNAPSHOT_FILE} files reside
+	 * @param descriptor descriptor of the expected project (only ID and fingerprint are checked)
+	 * @return the {@link Project} instance, or {@code null} if there is no snapshot
+	 * @throws IOException when the snapshot was stale or corrupt (and has been deleted)
+	 */
+	static public Project Read(File folder, ProjectDescriptor descriptor) throws IOException
+	{
+		File snapshotFile = GetSnapshotFile(folder);
+		if(!snapshotFile.isFile())
+			return null;
+		DataInputStream in = null;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+
+			// Header:
+			long xmlFileSize = ProjectLoader.GetProjectXMLFile(folder).length();
+			CheckHeader(in, descriptor, xmlFileSize);
+
+			// Project block:
+			int blockSize = in.readInt();
+			SnapshotObjectInputStream projectIn = new SnapshotObjectInputStream(ReadBlock(in, blockSize), null);
+			Project project = (Project) projectIn.readObject();
+			@SuppressWarnings("unchecked")
+			List<Object> sharedObjects = (List<Object>) projectIn.readObject();
+			projectIn.close();
+			if(project.getID() != descriptor.getID() || project.getFingerPrint() != descriptor.getFingerPrint()) // just in case
+				throw new IOException("Snapshot does not match project");
+
+			// Locate form contents blocks (without reading them):
+			List<Form> forms = project.getForms();
+			long[] contentsOffsets = new long[forms.size()];
+			long offset = HEADER_SIZE + 4 + blockSize;
+			for(int f = 0; f < contentsOffsets.length; f++)
+			{
+				contentsOffsets[f] = offset;
+				blockSize = in.readInt();
+				if(in.skipBytes(blockSize) != blockSize)
+					throw new IOException("Snapshot is truncated");
+				offset += 4 + blockSize;
+			}
+			if(in.read() != -1)
+				throw new IOException("Snapshot holds more blocks than the project has forms");
+
+			// Let the forms load their contents from the snapshot when needed:
+			FormContentsLoader contentsLoader = new FormContentsLoader(snapshotFile, descriptor, xmlFileSize, contentsOffsets, sharedObjects);
+			for(Form form : forms)
+				form.setContentsLoader(contentsLoader);
+			return project;
+		}
+		catch(Exception e)
+		{	// Stale or corrupt snapshot, delete it (it will be replaced after the XML has been parsed):
+			StreamHelpers.SilentClose(in);
+			in = null;
+			FileUtils.deleteQuietly(snapshotFile);
+			throw new IOException("Discarded stale or corrupt project snapshot " + snapshotFile.getAbsolutePath() + " (" + e.getClass().getSimpleName() + ": " + e.getMessage() + ")", e);
+		}
+		finally
+		{
+			StreamHelpers.SilentClose(in);
+		}
+	}
+
+	/**
+	 * @param in
+	 * @param descriptor
+	 * @param xmlFileSize
+	 * @throws IOException when the header is invalid or does not match the given project descriptor and XML file size
+	 */
+	static private void CheckHeader(DataInput in, ProjectDescriptor descriptor, long xmlFileSize) throws IOException
+	{
+		byte[] magic = new byte[MAGIC_BYTES.length];
+		in.readFully(magic);
+		if(!Arrays.equals(magic, MAGIC_BYTES))
+			throw new IOException("Not a project snapshot");
+		if(in.readByte() != FORMAT_VERSION)
+			throw new IOException("Unsupported snapshot format version");
+		if(	in.readInt() != descriptor.getID() ||
+			in.readInt() != descriptor.getFingerPrint() ||
+			in.readLong() != xmlFileSize)
+			throw new IOException("Snapshot does not match project (or " + ProjectLoader.PROJECT_FILE + " file)");
+	}
+
+	static private InputStream ReadBlock(DataInput in, int blockSize) throws IOException
+	{
+		byte[] block = new byte[blockSize];
+		in.readFully(block);
+		return CompressorFactory.getCompressorInputStream(COMPRESSION, new ByteArrayInputStream(block));
+	}
+
+	/**
+	 * @param obj
+	 * @return whether the given object is an immutable value, which does not need to be shared across blocks
+	 */
+	static private boolean IsValue(Object obj)
+	{
+		return obj instanceof String || obj instanceof Number || obj instanceof Boolean || obj instanceof Character || obj instanceof Enum;
+	}
+
+	private ProjectSnapshot() {}
+
+	/**
+	 * Loads the {@link Form.Contents} of the forms of a project which was read from a snapshot.
+	 * The snapshot is reopened on every call, after checking that it has not been replaced in the meantime.
+	 */
+	static private final class FormContentsLoader implements Form.ContentsLoader
+	{
+
+		private final File snapshotFile;
+		private final ProjectDescriptor descriptor;
+		private final long xmlFileSize;
+		private final long[] contentsOffsets;
+		private final List<Object> sharedObjects;
+
+		public FormContentsLoader(File snapshotFile, ProjectDescriptor descriptor, long xmlFileSize, long[] contentsOffsets, List<Object> sharedObjects)
+		{
+			this.snapshotFile = snapshotFile;
+			this.descriptor = descriptor;
+			this.xmlFileSize = xmlFileSize;
+			this.contentsOffsets = contentsOffsets;
+			this.sharedObjects = sharedObjects;
+		}
+
+		/* (non-Javadoc)
+		 * @see uk.ac.ucl.excites.sapelli.collector.model.Form.ContentsLoader#loadContents(uk.ac.ucl.excites.sapelli.collector.model.Form)
+		 */
+		@Override
+		public Form.Contents loadContents(Form form) throws Exception
+		{
+			RandomAccessFile file = new RandomAccessFile(snapshotFile, "r");
+			try
+			{
+				CheckHeader(file, descriptor, xmlFileSize);
+				file.seek(contentsOffsets[form.getPosition()]);
+				SnapshotObjectInputStream contentsIn = new SnapshotObjectInputStream(ReadBlock(file, file.readInt()), sharedObjects);
+				Form.Contents contents = (Form.Contents) contentsIn.readObject();
+				contentsIn.close();
+				return contents;
+			}
+			finally
+			{
+				file.close();
+			}
+		}
+
+	}
+
+	/**
+	 * Indicates an object which was written as part of the project block, by its index in the list of shared objects.
+	 */
+	static private final class SharedObjectReference implements Serializable
+	{
+
+		private static final long serialVersionUID = 2L;
+
+		private final int index;
+
+		public SharedObjectReference(int index)
+		{
+			this.index = index;
+		}
+
+	}
+
+	/**
+	 * An {@link ObjectOutputStream} which keeps track of the (non-value) objects it writes, so that they can be shared with the form contents blocks.
+	 */
+	static private final class ProjectObjectOutputStream extends ObjectOutputStream
+	{
+
+		private final Map<Object, Integer> sharedObjects = new IdentityHashMap<Object, Integer>();
+		private final List<Object> sharedObjectList = new ArrayList<Object>();
+		private boolean sharing = true;
+
+		public ProjectObjectOutputStream(OutputStream out) throws IOException
+		{
+			super(out);
+			enableReplaceObject(true);
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.ObjectOutputStream#replaceObject(java.lang.Object)
+		 */
+		@Override
+		protected Object replaceObject(Object obj) throws IOException
+		{
+			if(sharing && !IsValue(obj) && !sharedObjects.containsKey(obj))
+			{
+				sharedObjects.put(obj, sharedObjectList.size());
+				sharedObjectList.add(obj);
+			}
+			return obj;
+		}
+
+		/**
+		 * Writes the list of shared objects. Because all of them have been written before the list only holds references to them,
+		 * which allows the reading side to reconstruct the indexes in the list.
+		 *
+		 * @throws IOException
+		 */
+		public void writeSharedObjects() throws IOException
+		{
+			sharing = false;
+			writeObject(sharedObjectList);
+		}
+
+	}
+
+	/**
+	 * An {@link ObjectOutputStream} which writes objects that were written as part of the project block as {@link SharedObjectReference}s.
+	 * It refuses to write objects which were already written as part of the contents of another form, because these would
+	 * no longer be shared once the contents of each form are read separately.
+	 */
+	static private final class ContentsObjectOutputStream extends ObjectOutputStream
+	{
+
+		private final Map<Object, Integer> sharedObjects;
+		private final Set<Object> writtenContentsObjects;
+
+		public ContentsObjectOutputStream(OutputStream out, Map<Object, Integer> sharedObjects, Set<Object> writtenContentsObjects) throws IOException
+		{
+			super(out);
+			this.sharedObjects = sharedObjects;
+			this.writtenContentsObjects = writtenContentsObjects;
+			enableReplaceObject(true);
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.ObjectOutputStream#replaceObject(java.lang.Object)
+		 */
+		@Override
+		protected Object replaceObject(Object obj) throws IOException
+		{
+			Integer index = sharedObjects.get(obj);
+			if(index != null)
+				return new SharedObjectReference(index);
+			if(!IsValue(obj) && !writtenContentsObjects.add(obj))
+				throw new NotSerializableException(obj.getClass().getName() + " instance is shared by the contents of several forms");
+			return obj;
+		}
+
+	}
+
+	/**
+	 * An {@link ObjectInputStream} which refuses to deserialise instances of classes of which the serialisable fields (names and types) differ
+	 * from those recorded in the stream. This is necessary because all model classes share a fixed {@code serialVersionUID}, meaning the
+	 * default checks would let a snapshot written by an older version of the code (silently) produce half-initialised objects.
+	 * When reading form contents it also resolves {@link SharedObjectReference}s.
+	 */
+	static private final class SnapshotObjectInputStream extends ObjectInputStream
+	{
+
+		private final List<Object> sharedObjects;
+
+		/**
+		 * @param in
+		 * @param sharedObjects objects read from the project block, or {@code null} when reading the project block itself
+		 * @throws IOException
+		 */
+		public SnapshotObjectInputStream(InputStream in, List<Object> sharedObjects) throws IOException
+		{
+			super(in);
+			this.sharedObjects = sharedObjects;
+			if(sharedObjects != null)
+				enableResolveObject(true);
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.ObjectInputStream#resolveClass(java.io.ObjectStreamClass)
+		 */
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass streamDesc) throws IOException, ClassNotFoundException
+		{
+			Class<?> clazz = super.resolveClass(streamDesc);
+			ObjectStreamClass localDesc = ObjectStreamClass.lookup(clazz);
+			if(localDesc == null || !haveSameStructure(streamDesc.getFields(), localDesc.getFields()))
+				throw new InvalidClassException(clazz.getName(), "class structure has changed since snapshot was written");
+			return clazz;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.ObjectInputStream#resolveObject(java.lang.Object)
+		 */
+		@Override
+		protected Object resolveObject(Object obj) throws IOException
+		{
+			if(obj instanceof SharedObjectReference)
+				return sharedObjects.get(((SharedObjectReference) obj).index);
+			return obj;
+		}
+
+		/**
+		 * @param streamFields
+		 * @param localFields
+		 * @return whether or not both arrays hold fields with the same names and types (both are sorted in canonical order by {@link ObjectStreamClass})
+		 */
+		private boolean haveSameStructure(ObjectStreamField[] streamFields, ObjectStreamField[] localFields)
+		{
+			if(streamFields.length != localFields.length)
+				return false;
+			for(int f = 0; f < streamFields.length; f++)
+				if(	!streamFields[f].getName().equals(localFields[f].getName()) ||
+					streamFields[f].getTypeCode() != localFields[f].getTypeCode() ||
+					(streamFields[f].getTypeString() != null && !streamFields[f].getTypeString().equals(localFields[f].getTypeString())))
+					return false;
+			return true;
+		}
+
+	}
+
+}
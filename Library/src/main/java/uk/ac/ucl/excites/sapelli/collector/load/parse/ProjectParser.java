@@ -31,6 +31,7 @@ import org.xml.sax.SAXException;
 
 import uk.ac.ucl.excites.sapelli.collector.load.FormSchemaInfoProvider;
 import uk.ac.ucl.excites.sapelli.collector.load.process.PostProcessTask;
+import uk.ac.ucl.excites.sapelli.collector.load.process.TTVSynthesisTask;
 import uk.ac.ucl.excites.sapelli.collector.model.Form;
 import uk.ac.ucl.excites.sapelli.collector.model.Project;
 import uk.ac.ucl.excites.sapelli.collector.model.fields.Relationship;
@@ -104,6 +105,7 @@ public class ProjectParser extends DocumentParser
 	private HashMap<Relationship, String> relationshipToFormID;
 	private HashMap<Relationship, List<ConstraintDescription>> relationshipToConstraints;
 	private List<PostProcessTask> postProcessingTasks; 
+	private HashMap<String, TTVSynthesisTask> ttvTasksByAudioFile;
 
 	public ProjectParser()
 	{
@@ -185,6 +187,8 @@ public class ProjectParser extends DocumentParser
 			relationshipToConstraints.clear();
 		if(postProcessingTasks != null)
 			postProcessingTasks.clear();
+		if(ttvTasksByAudioFile != null)
+			ttvTasksByAudioFile.clear();
 		
 		// Get XML hash:
 		UnclosableBufferedInputStream ubInput = new UnclosableBufferedInputStream(input); // decorate stream to avoid it from being closed and to ensure we can use mark/reset
@@ -448,10 +452,27 @@ public class ProjectParser extends DocumentParser
 	/**
 	 * Called from {@link FormParser}
 	 * 
+	 * A {@link TTVSynthesisTask} is ignored if a task to generate the same audio file was added before, because
+	 * thread-safe tasks may run concurrently and two of them must never write the same file.
+	 * 
 	 * @param task
 	 */
 	/*package*/ void addPostProcessingTask(PostProcessTask task)
 	{
+		if(task instanceof TTVSynthesisTask)
+		{
+			TTVSynthesisTask ttvTask = (TTVSynthesisTask) task;
+			if(ttvTasksByAudioFile == null)
+				ttvTasksByAudioFile = new HashMap<String, TTVSynthesisTask>();
+			TTVSynthesisTask previous = ttvTasksByAudioFile.get(ttvTask.getAudioFileRelativePath());
+			if(previous != null)
+			{	// the same file is already being generated:
+				if(!previous.getTextToSynthesise().equals(ttvTask.getTextToSynthesise()))
+					addWarning("Texts \"" + previous.getTextToSynthesise() + "\" and \"" + ttvTask.getTextToSynthesise() + "\" map to the same audio file (" + ttvTask.getAudioFileRelativePath() + "), only the former will be synthesised.");
+				return;
+			}
+			ttvTasksByAudioFile.put(ttvTask.getAudioFileRelativePath(), ttvTask);
+		}
 		if(postProcessingTasks == null)
 			postProcessingTasks = new ArrayList<PostProcessTask>();
 		postProcessingTasks.add(task);
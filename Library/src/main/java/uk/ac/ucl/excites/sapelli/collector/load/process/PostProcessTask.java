@@ -30,4 +30,13 @@ public interface PostProcessTask
 
 	public void execute(PostProcessor executor, Project project, WarningKeeper warningKeeper) throws Exception;
 	
+	/**
+	 * Indicates whether the task is independent of all other tasks and may therefore be executed concurrently with them
+	 * (provided the {@link PostProcessor} allows it, see {@link PostProcessor#getMaxConcurrentTasks()}).
+	 * Tasks which are not thread-safe are always executed sequentially, on the loading thread, before all thread-safe ones.
+	 * 
+	 * @return whether or not the task is thread-safe
+	 */
+	public boolean isThreadSafe();
+	
 }
@@ -38,6 +38,15 @@ public interface PostProcessor
 	 */
 	public void initialise(Project project);
 	
+	/**
+	 * Returns the maximum number of thread-safe tasks (see {@link PostProcessTask#isThreadSafe()}) this post-processor can execute concurrently.
+	 * When this is greater than 1 the execute() methods may be called from multiple threads at once, but never before {@link #initialise(Project)}
+	 * has returned nor after {@link #freeResources()} was called.
+	 * 
+	 * @return the maximum number of concurrently executed tasks, 1 meaning all tasks are executed sequentially
+	 */
+	public int getMaxConcurrentTasks();
+	
 	/**
 	 * @param ttsTask
 	 * @param project
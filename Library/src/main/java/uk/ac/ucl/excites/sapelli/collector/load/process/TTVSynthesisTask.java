@@ -74,5 +74,23 @@ public class TTVSynthesisTask implements PostProcessTask
 	{
 		executor.execute(this, project, warningKeeper);
 	}
+	
+	/**
+	 * Each synthesis job writes to its own audio file (the ProjectParser drops tasks for files which are already being generated),
+	 * so it can safely run concurrently with other tasks.
+	 * 
+	 * @see uk.ac.ucl.excites.sapelli.collector.load.process.PostProcessTask#isThreadSafe()
+	 */
+	@Override
+	public boolean isThreadSafe()
+	{
+		return true;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + " (" + audioFileRelativePath + ")";
+	}
 
 }
@@ -41,6 +41,8 @@ import uk.ac.ucl.excites.sapelli.storage.model.Column;
 public abstract class Field extends JumpSource
 {
 	
+	private static final long serialVersionUID = 2L;
+	
 	//Statics----------------------------------------------
 	static public final int MAX_ID_LENGTH = Form.MAX_ID_LENGTH;
 	
@@ -19,6 +19,7 @@
 package uk.ac.ucl.excites.sapelli.collector.model;
 
 import java.io.File;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -51,9 +52,11 @@ import uk.ac.ucl.excites.sapelli.storage.util.ModelFullException;
  * @author mstevens, Michalis Vitos
  *
  */
-public class Form implements WarningKeeper
+public class Form implements WarningKeeper, Serializable
 {
 
+	private static final long serialVersionUID = 2L;
+	
 	// Statics--------------------------------------------------------
 	public static final boolean END_TIME_DEFAULT = false;
 
@@ -138,10 +141,9 @@ public class Form implements WarningKeeper
 
 	private transient List<String> warnings;
 	
-	// Fields
-	private Field startField;
-	private final List<Field> fields;
-	private List<Trigger> triggers;
+	// Fields & triggers (may be loaded lazily, see getContents()):
+	private transient volatile Contents contents;
+	private transient ContentsLoader contentsLoader;
 	
 	/**
 	 * Default form language 
@@ -206,7 +208,7 @@ public class Form implements WarningKeeper
 		this.project = project;
 		this.id = trimmedID;
 		
-		this.fields = new ArrayList<Field>();
+		this.contents = new Contents();
 		this.position = (short) project.getForms().size();
 		project.addForm(this); //!!!
 		
@@ -224,20 +226,75 @@ public class Form implements WarningKeeper
 		return project;
 	}
 
+	/**
+	 * Returns the contents (i.e. fields, start field & triggers) of the form. When the form was restored from
+	 * a project snapshot they are only loaded upon the first call of this method (or of any method which needs them).
+	 * 
+	 * @return the contents of the form
+	 * @throws IllegalStateException when the contents could not be loaded
+	 */
+	public Contents getContents() throws IllegalStateException
+	{
+		Contents loaded = contents;
+		if(loaded == null)
+			synchronized(this)
+			{
+				loaded = contents;
+				if(loaded == null)
+				{
+					if(contentsLoader == null)
+						throw new IllegalStateException("Contents of form " + id + " are not available.");
+					try
+					{
+						loaded = contentsLoader.loadContents(this);
+					}
+					catch(Exception e)
+					{
+						throw new IllegalStateException("Could not load contents of form " + id + ".", e);
+					}
+					contents = loaded;
+					contentsLoader = null; // no longer needed
+				}
+			}
+		return loaded;
+	}
+	
+	/**
+	 * @return whether or not the contents of the form have been loaded
+	 */
+	public boolean isContentsLoaded()
+	{
+		return contents != null;
+	}
+	
+	/**
+	 * Sets the loader used to load the contents of a form which was deserialised (the contents are not serialised along with the form).
+	 * 
+	 * @param contentsLoader
+	 * @throws IllegalStateException when the contents of the form have already been loaded
+	 */
+	public synchronized void setContentsLoader(ContentsLoader contentsLoader) throws IllegalStateException
+	{
+		if(contents != null)
+			throw new IllegalStateException("Contents of form " + id + " are already loaded.");
+		this.contentsLoader = contentsLoader;
+	}
+	
 	/**
 	 * @param f
 	 * @throws IllegalStateException when the maximum number of forms is reached
 	 */
 	public void addField(Field f) throws IllegalStateException
 	{
-		 if(fields.size() == MAX_FIELDS)
+		List<Field> fields = getContents().fields;
+		if(fields.size() == MAX_FIELDS)
 			throw new IllegalStateException("Maximum number of fields reached");
 		fields.add(f);
 	}
 
 	public int getFieldPosition(Field field)
 	{
-		return fields.indexOf(field.getRoot());
+		return getContents().fields.indexOf(field.getRoot());
 	}
 
 	/**
@@ -259,6 +316,7 @@ public class Form implements WarningKeeper
 			if(currentPos < 0)
 				// This field is not part of the form (it is likely part of a page):
 				return null; // don't throw an exception here
+			List<Field> fields = getContents().fields;
 			if(currentPos + 1 < fields.size())
 				nextF = fields.get(currentPos + 1); // go to next field in the form
 			else
@@ -294,7 +352,7 @@ public class Form implements WarningKeeper
 	 */
 	public List<Field> getFields()
 	{
-		return Collections.unmodifiableList(fields);
+		return Collections.unmodifiableList(getContents().fields);
 	}
 	
 	/**
@@ -304,6 +362,7 @@ public class Form implements WarningKeeper
 	public int getNumberOfFields(boolean recurse)
 	{
 		// Top-level fields:
+		List<Field> fields = getContents().fields;
 		int total = fields.size();
 		// Fields contained in Pages:
 		if(recurse)
@@ -322,7 +381,7 @@ public class Form implements WarningKeeper
 	 */
 	public Field getField(String fieldID)
 	{
-		for(Field f : fields)
+		for(Field f : getContents().fields)
 			if(f.id.equalsIgnoreCase(fieldID)) // field IDs are treated as case insensitive
 				return f;
 		return null;
@@ -338,7 +397,7 @@ public class Form implements WarningKeeper
 	{
 		try
 		{
-			return fields.get(fieldPosition);
+			return getContents().fields.get(fieldPosition);
 		}
 		catch(IndexOutOfBoundsException e)
 		{
@@ -351,7 +410,7 @@ public class Form implements WarningKeeper
 	 */
 	public Field getStartField()
 	{
-		return startField;
+		return getContents().startField;
 	}
 
 	/**
@@ -359,14 +418,15 @@ public class Form implements WarningKeeper
 	 */
 	public void setStartField(Field startField)
 	{
-		this.startField = startField;
+		getContents().startField = startField;
 	}
 
 	public void addTrigger(Trigger trigger)
 	{
-		if(triggers == null)
-			 triggers = new ArrayList<Trigger>();
-		triggers.add(trigger);
+		Contents formContents = getContents();
+		if(formContents.triggers == null)
+			formContents.triggers = new ArrayList<Trigger>();
+		formContents.triggers.add(trigger);
 	}
 
 	/**
@@ -374,6 +434,7 @@ public class Form implements WarningKeeper
 	 */
 	public List<Trigger> getTriggers()
 	{
+		List<Trigger> triggers = getContents().triggers;
 		return triggers != null ? triggers : Collections.<Trigger> emptyList();
 	}
 
@@ -541,7 +602,7 @@ public class Form implements WarningKeeper
 	public List<LocationField> getLocationFields()
 	{
 		List<LocationField> locFields = new ArrayList<LocationField>();
-		for(Field f : fields)
+		for(Field f : getContents().fields)
 			if(f instanceof LocationField)
 				locFields.add((LocationField) f);
 		return locFields;
@@ -739,7 +800,7 @@ public class Form implements WarningKeeper
 		
 		// Generate columns for top-level fields:
 		List<Column<?>> fieldDefinedColumns = new ArrayList<Column<?>>();
-		for(Field f : fields)
+		for(Field f : getContents().fields)
 			/*	Important: do *NOT* check noColumn here and do *NOT* replace the call
 			 *  to Field#addColumnTo(List<Column<?>>) by a call to Field#getColumn()! 
 			 *  The reason (in both cases) is that composite fields like Pages, do not
@@ -894,7 +955,7 @@ public class Form implements WarningKeeper
 			control.addFiles(filesSet, fileStorageProvider);
 		
 		// Add files for fields:
-		for(Field field : fields)
+		for(Field field : getContents().fields)
 			field.addFiles(filesSet, fileStorageProvider);
 	}
 	
@@ -917,8 +978,8 @@ public class Form implements WarningKeeper
 					this.producesRecords == that.producesRecords &&
 					this.skipOnBack == that.skipOnBack &&
 					(this.schema != null ? this.schema.equals(that.schema, true, true, false) : that.schema == null) &&
-					(this.startField != null ? this.startField.equals(that.startField) : that.startField == null) &&
-					this.fields.equals(that.fields) &&
+					(this.getStartField() != null ? this.getStartField().equals(that.getStartField()) : that.getStartField() == null) &&
+					this.getContents().fields.equals(that.getContents().fields) &&
 					this.getTriggers().equals(that.getTriggers()) &&
 					(this.shortcutImageRelativePath != null ? this.shortcutImageRelativePath.equals(that.shortcutImageRelativePath) : that.shortcutImageRelativePath == null) &&
 					this.clickAnimation == that.clickAnimation &&
@@ -946,9 +1007,9 @@ public class Form implements WarningKeeper
 		hash = 31 * hash + (int) position;
 		hash = 31 * hash + (producesRecords ? 0 : 1);
 		hash = 31 * hash + (skipOnBack ? 0 : 1);
-		hash = 31 * hash + (startField == null ? 0 : startField.hashCode());
-		hash = 31 * hash + fields.hashCode();
-		hash = 31 * hash + (triggers == null ? 0 : triggers.hashCode());
+		hash = 31 * hash + (getStartField() == null ? 0 : getStartField().hashCode());
+		hash = 31 * hash + getContents().fields.hashCode();
+		hash = 31 * hash + (getContents().triggers == null ? 0 : getContents().triggers.hashCode());
 		hash = 31 * hash + (shortcutImageRelativePath == null ? 0 : shortcutImageRelativePath.hashCode());
 		hash = 31 * hash + (clickAnimation ? 0 : 1);
 		hash = 31 * hash + screenTransition.ordinal();
@@ -965,4 +1026,36 @@ public class Form implements WarningKeeper
 		return hash;
 	}
 
+	/**
+	 * The fields, start field & triggers of a {@link Form}. These are not serialised along with the form itself, instead a project
+	 * snapshot stores them separately so they can be loaded only when the form is actually used (see {@link ContentsLoader}).
+	 */
+	static public final class Contents implements Serializable
+	{
+		
+		private static final long serialVersionUID = 2L;
+		
+		private final List<Field> fields = new ArrayList<Field>();
+		private Field startField;
+		private List<Trigger> triggers;
+		
+		private Contents() {}
+		
+	}
+	
+	/**
+	 * Loads the {@link Contents} of a deserialised {@link Form}.
+	 */
+	static public interface ContentsLoader
+	{
+		
+		/**
+		 * @param form
+		 * @return the contents of the given form
+		 * @throws Exception
+		 */
+		public Contents loadContents(Form form) throws Exception;
+		
+	}
+	
 }
@@ -43,6 +43,8 @@ public class Project extends ProjectDescriptor
 {
 	
 	//STATICS-------------------------------------------------------------
+	private static final long serialVersionUID = 2L;
+	
 	static public final String DEFAULT_DEFAULT_LANGUAGE = "en"; // the default "default language" to set if there isn't one specified (English)
 	
 	static public final boolean DEFAULT_LOGGING = true;
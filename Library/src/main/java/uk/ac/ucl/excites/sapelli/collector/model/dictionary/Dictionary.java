@@ -18,6 +18,7 @@
 
 package uk.ac.ucl.excites.sapelli.collector.model.dictionary;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -30,9 +31,11 @@ import uk.ac.ucl.excites.sapelli.shared.util.StringUtils;
  * @author mstevens
  *
  */
-public class Dictionary<I extends DictionaryItem>
+public class Dictionary<I extends DictionaryItem> implements Serializable
 {
 
+	private static final long serialVersionUID = 2L;
+	
 	static public final int UNKNOWN_INDEX = -1;
 	static public final List<String> DOC_HEADERS;
 	static
@@ -42,7 +45,11 @@ public class Dictionary<I extends DictionaryItem>
 		DOC_HEADERS.add("VALUE");
 	}
 	
-	protected final Map<I, Integer> itemToIndex;
+	/**
+	 * Not serialised because items may (indirectly) refer back to this Dictionary, in which case their hashCode()
+	 * would be computed on half-deserialised objects. Instead the map is lazily rebuilt from {@link #indexed}, see {@link #getItemToIndex()}.
+	 */
+	private transient Map<I, Integer> itemToIndex;
 	protected final List<I> indexed;
 	
 	public Dictionary()
@@ -51,18 +58,32 @@ public class Dictionary<I extends DictionaryItem>
 		this.indexed = new ArrayList<I>();
 	}
 	
+	/**
+	 * @return the item-to-index map, rebuilt from the indexed list if this Dictionary was deserialised
+	 */
+	protected Map<I, Integer> getItemToIndex()
+	{
+		if(itemToIndex == null)
+		{
+			itemToIndex = new HashMap<I, Integer>();
+			for(int i = 0; i < indexed.size(); i++)
+				itemToIndex.put(indexed.get(i), Integer.valueOf(i));
+		}
+		return itemToIndex;
+	}
+	
 	public void addItem(I item)
 	{
-		if(item != null && item.getValue() != null && !item.getValue().isEmpty() && !itemToIndex.containsKey(item))
+		if(item != null && item.getValue() != null && !item.getValue().isEmpty() && !getItemToIndex().containsKey(item))
 		{
 			indexed.add(item); //adds at the end of the list
-			itemToIndex.put(item, Integer.valueOf(indexed.size() - 1));
+			getItemToIndex().put(item, Integer.valueOf(indexed.size() - 1));
 		}
 	}
 	
 	public int lookupIndex(DictionaryItem item)
 	{
-		Integer idx = itemToIndex.get(item);
+		Integer idx = getItemToIndex().get(item);
 		return (idx != null ? idx : UNKNOWN_INDEX);
 	}
 	
@@ -132,7 +153,7 @@ public class Dictionary<I extends DictionaryItem>
 		if(obj instanceof Dictionary<?>)
 		{
 			Dictionary<?> that = (Dictionary<?>) obj;
-			return	this.itemToIndex.equals(that.itemToIndex) &&
+			return	this.getItemToIndex().equals(that.getItemToIndex()) &&
 					this.indexed.equals(that.indexed);
 		}
 		else
@@ -143,7 +164,7 @@ public class Dictionary<I extends DictionaryItem>
 	public int hashCode()
 	{
 		int hash = 1;
-		hash = 31 * hash + itemToIndex.hashCode();
+		hash = 31 * hash + getItemToIndex().hashCode();
 		hash = 31 * hash + indexed.hashCode();
 		return hash;
 	}
@@ -33,6 +33,8 @@ import uk.ac.ucl.excites.sapelli.shared.util.Objects;
 public abstract class AVField extends MediaField
 {
 
+	private static final long serialVersionUID = 2L;
+	
 	protected String startRecImageRelativePath;
 	protected String stopRecImageRelativePath;
 	
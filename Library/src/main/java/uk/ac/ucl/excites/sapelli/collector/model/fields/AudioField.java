@@ -31,6 +31,8 @@ public class AudioField extends AVField
 {
 
 	// STATICS-------------------------------------------------------
+	private static final long serialVersionUID = 2L;
+	
 	static public final boolean DEFAULT_USE_NATIVE_APP = false;
 	
 	static public final String MEDIA_TYPE_3GPP = "MEDIA_TYPE_3GPP";
@@ -35,6 +35,8 @@ public class BelongsToField extends Relationship
 {
 
 	//STATICS -------------------------------------------------------
+	private static final long serialVersionUID = 2L;
+	
 	static public final String PARAMETER_EDIT = "edit";
 	static public final String PARAMETER_WAITING_FOR_RELATED_FORM = "watingForRelatedForm";
 	
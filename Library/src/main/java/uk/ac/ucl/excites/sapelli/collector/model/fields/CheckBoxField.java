@@ -34,6 +34,8 @@ import uk.ac.ucl.excites.sapelli.storage.model.columns.BooleanColumn;
 public class CheckBoxField extends Field
 {
 
+	private static final long serialVersionUID = 2L;
+	
 	static public final String ID_PREFIX = "chbx";
 	
 	static public final boolean DEFAULT_INITIAL_VALUE = false; // not ticked by default
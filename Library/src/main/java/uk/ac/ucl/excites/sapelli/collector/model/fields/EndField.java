@@ -34,6 +34,8 @@ import uk.ac.ucl.excites.sapelli.storage.model.Column;
  */
 public class EndField extends UILessField
 {
+	private static final long serialVersionUID = 2L;
+	
 	// Backwards compatibility with v1.x projects:
 	static public final String END = "_END";
 	static public final String CANCEL = "_CANCEL";
@@ -34,6 +34,8 @@ import uk.ac.ucl.excites.sapelli.storage.model.Column;
 public class HtmlField extends Field
 {
 
+	private static final long serialVersionUID = 2L;
+	
 	static public final String ID_PREFIX = "html";
 
 	//Defaults:
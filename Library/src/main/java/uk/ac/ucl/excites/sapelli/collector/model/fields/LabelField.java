@@ -33,6 +33,8 @@ import uk.ac.ucl.excites.sapelli.storage.model.Column;
 public class LabelField extends Field
 {
 
+	private static final long serialVersionUID = 2L;
+	
 	static public final String ID_PREFIX = "lbl";
 	static public final float DEFAULT_TEXT_SIZE_SCALE = 1.0f; // same as surrounding text  
 	static public final boolean DEFAULT_TEXT_CENTERED = false;
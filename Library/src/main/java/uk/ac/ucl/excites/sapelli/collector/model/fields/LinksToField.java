@@ -35,6 +35,8 @@ import uk.ac.ucl.excites.sapelli.storage.model.Column;
 public class LinksToField extends Relationship
 {
 
+	private static final long serialVersionUID = 2L;
+	
 	/**
 	 * @param form
 	 * @param id
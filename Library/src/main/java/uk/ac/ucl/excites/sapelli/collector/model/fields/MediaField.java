@@ -65,6 +65,8 @@ public abstract class MediaField extends Field
 {
 
 	// STATIC -------------------------------------------------------
+	private static final long serialVersionUID = 2L;
+	
 	//static public final int DEFAULT_MIN = 0;
 	
 	static public final int DEFAULT_MAX = 255; //column will use 1 byte (up to 255 items)
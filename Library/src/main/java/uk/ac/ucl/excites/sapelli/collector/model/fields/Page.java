@@ -38,6 +38,8 @@ import uk.ac.ucl.excites.sapelli.storage.model.Column;
 public class Page extends Field
 {
 	
+	private static final long serialVersionUID = 2L;
+	
 	private final List<Field> fields;
 	
 	/**
@@ -36,6 +36,8 @@ public class PhotoField extends MediaField
 {
 
 	// STATICS-------------------------------------------------------
+	private static final long serialVersionUID = 2L;
+	
 	static public final String MEDIA_TYPE_JPEG = "PHOTO_JPEG";
 	static public final String EXTENSION_JPEG = "jpg";
 	static public final String MIME_TYPE_JPEG = "image/jpeg";
@@ -52,6 +52,8 @@ public abstract class Relationship extends UILessField
 {
 
 	//STATICS -------------------------------------------------------
+	private static final long serialVersionUID = 2L;
+	
 	static public final boolean DEFAULT_HOLD_FOREIGN_RECORD = false;
 	
 	// Dynamics------------------------------------------------------
@@ -40,6 +40,8 @@ import uk.ac.ucl.excites.sapelli.storage.model.columns.StringColumn;
 public class TextBoxField extends Field
 {
 
+	private static final long serialVersionUID = 2L;
+	
 	static public final String ID_PREFIX = "txt";
 
 	/**
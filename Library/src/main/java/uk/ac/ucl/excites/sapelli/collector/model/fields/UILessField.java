@@ -29,6 +29,8 @@ import uk.ac.ucl.excites.sapelli.collector.ui.fields.FieldUI;
 public abstract class UILessField extends Field
 {
 
+	private static final long serialVersionUID = 2L;
+	
 	/**
 	 * @param form
 	 * @param id
@@ -30,6 +30,8 @@ public class VideoField extends AVField
 {
 
 	// STATICS-------------------------------------------------------
+	private static final long serialVersionUID = 2L;
+	
 	static public final String MEDIA_TYPE_MP4 = "VIDEO_MP4";
 	static public final String EXTENSION_MP4 = "mp4";
 	static public final String MIME_TYPE_MP4 = "video/mp4";
@@ -18,6 +18,7 @@
 
 package uk.ac.ucl.excites.sapelli.collector.util;
 
+import java.io.Serializable;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -60,10 +61,12 @@ import uk.ac.ucl.excites.sapelli.shared.collections.SingletonQueue;
  * 
  * @author mstevens
  */
-public final class ColumnOptionalityAdvisor
+public final class ColumnOptionalityAdvisor implements Serializable
 {
 
 	// STATICS-------------------------------------------------------
+	private static final long serialVersionUID = 2L;
+	
 	static public ColumnOptionalityAdvisor Analyse(final Form form)
 	{
 		//System.out.println("Analysing form: " + form.id);
@@ -0,0 +1,240 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.shared.collections;
+
+/**
+ * A Bloom filter: a compact, probabilistic set of byte[] keys.
+ * 
+ * {@link #mightContain(byte[])} never returns {@code false} for a key which has been {@link #put(byte[])}, but may return
+ * {@code true} for a key which has not (a "false positive"). The probability of the latter stays close to the one the filter
+ * was created for as long as the number of keys put does not exceed its capacity.
+ * 
+ * The k bit positions of a key are derived from two 64 bit hashes of it (h1 + i * h2, for i in [0, k)).
+ * 
+ * Not thread-safe.
+ */
+public final class BloomFilter
+{
+
+	// STATIC -------------------------------------------------------
+	static private final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	static private final long FNV_PRIME = 0x100000001b3L;
+	
+	static private final int MAX_HASH_FUNCTIONS = 32;
+	
+	/**
+	 * @param capacity
+	 * @param falsePositiveProbability
+	 * @return the optimal number of bits for the given capacity and false positive probability (always a multiple of 64)
+	 */
+	static public int GetOptimalNumberOfBits(int capacity, double falsePositiveProbability)
+	{
+		if(capacity < 1)
+			throw new IllegalArgumentException("Capacity must be at least 1");
+		if(falsePositiveProbability <= 0.0d || falsePositiveProbability >= 1.0d)
+			throw new IllegalArgumentException("False positive probability must be in (0, 1)");
+		double bits = -capacity * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2));
+		if(bits > Integer.MAX_VALUE - Long.SIZE)
+			throw new IllegalArgumentException("Filter would be too large");
+		return (((int) Math.ceil(bits) + Long.SIZE - 1) / Long.SIZE) * Long.SIZE;
+	}
+	
+	/**
+	 * @param capacity
+	 * @param numberOfBits
+	 * @return the optimal number of hash functions for the given capacity and number of bits
+	 */
+	static public int GetOptimalNumberOfHashFunctions(int capacity, int numberOfBits)
+	{
+		return Math.max(1, Math.min(MAX_HASH_FUNCTIONS, (int) Math.round((double) numberOfBits / capacity * Math.log(2))));
+	}
+	
+	/**
+	 * Murmur3 64 bit finaliser.
+	 * 
+	 * @param h
+	 * @return
+	 */
+	static private long Mix(long h)
+	{
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+	
+	// DYNAMIC ------------------------------------------------------
+	private final int capacity;
+	private final int numberOfHashFunctions;
+	private final long[] words;
+	private int size;
+	
+	/**
+	 * Creates an empty filter.
+	 * 
+	 * @param capacity the number of keys the filter is meant to hold
+	 * @param falsePositiveProbability the false positive probability when the filter holds {@code capacity} keys, in (0, 1)
+	 */
+	public BloomFilter(int capacity, double falsePositiveProbability)
+	{
+		this.capacity = capacity;
+		int numberOfBits = GetOptimalNumberOfBits(capacity, falsePositiveProbability);
+		this.numberOfHashFunctions = GetOptimalNumberOfHashFunctions(capacity, numberOfBits);
+		this.words = new long[numberOfBits / Long.SIZE];
+		this.size = 0;
+	}
+	
+	/**
+	 * Recreates a filter from the values returned by {@link #getCapacity()}, {@link #getNumberOfHashFunctions()}, {@link #getSize()} and {@link #toBytes()}.
+	 * 
+	 * @param capacity
+	 * @param numberOfHashFunctions
+	 * @param size
+	 * @param bytes
+	 */
+	public BloomFilter(int capacity, int numberOfHashFunctions, int size, byte[] bytes)
+	{
+		if(capacity < 1 || numberOfHashFunctions < 1 || numberOfHashFunctions > MAX_HASH_FUNCTIONS || size < 0 || bytes == null || bytes.length == 0 || bytes.length % (Long.SIZE / Byte.SIZE) != 0)
+			throw new IllegalArgumentException("Invalid Bloom filter parameters");
+		this.capacity = capacity;
+		this.numberOfHashFunctions = numberOfHashFunctions;
+		this.size = size;
+		this.words = new long[bytes.length / (Long.SIZE / Byte.SIZE)];
+		for(int b = 0; b < bytes.length; b++)
+			words[b >>> 3] |= (bytes[b] & 0xFFL) << ((b & 7) * Byte.SIZE);
+	}
+	
+	/**
+	 * Adds the given key.
+	 * 
+	 * @param key
+	 * @return {@code true} if the filter changed (meaning the key was definitely not in it before), {@code false} otherwise
+	 */
+	public boolean put(byte[] key)
+	{
+		long h1 = hash(key, FNV_OFFSET_BASIS);
+		long h2 = hash(key, h1) | 1L;
+		long numberOfBits = (long) words.length * Long.SIZE;
+		boolean changed = false;
+		for(int i = 0; i < numberOfHashFunctions; i++)
+		{
+			int bit = (int) (((h1 + i * h2) & Long.MAX_VALUE) % numberOfBits);
+			long mask = 1L << bit;
+			if((words[bit >>> 6] & mask) == 0)
+			{
+				words[bit >>> 6] |= mask;
+				changed = true;
+			}
+		}
+		if(changed)
+			size++;
+		return changed;
+	}
+	
+	/**
+	 * @param key
+	 * @return {@code false} if the key has definitely not been put, {@code true} if it probably has
+	 */
+	public boolean mightContain(byte[] key)
+	{
+		long h1 = hash(key, FNV_OFFSET_BASIS);
+		long h2 = hash(key, h1) | 1L;
+		long numberOfBits = (long) words.length * Long.SIZE;
+		for(int i = 0; i < numberOfHashFunctions; i++)
+		{
+			int bit = (int) (((h1 + i * h2) & Long.MAX_VALUE) % numberOfBits);
+			if((words[bit >>> 6] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * FNV-1a over the key bytes, starting from the given seed, followed by a Murmur3 finaliser.
+	 * 
+	 * @param key
+	 * @param seed
+	 * @return
+	 */
+	private long hash(byte[] key, long seed)
+	{
+		long h = seed;
+		for(byte b : key)
+		{
+			h ^= b & 0xFF;
+			h *= FNV_PRIME;
+		}
+		return Mix(h);
+	}
+	
+	public void clear()
+	{
+		for(int w = 0; w < words.length; w++)
+			words[w] = 0L;
+		size = 0;
+	}
+	
+	/**
+	 * @return the number of keys the filter is meant to hold
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+	
+	/**
+	 * @return the (approximate) number of distinct keys put, keys which were (falsely) found to be present already are not counted
+	 */
+	public int getSize()
+	{
+		return size;
+	}
+	
+	/**
+	 * @return whether more keys have been put than the filter is meant to hold (meaning false positives are getting more likely than intended)
+	 */
+	public boolean isOverloaded()
+	{
+		return size > capacity;
+	}
+	
+	public int getNumberOfHashFunctions()
+	{
+		return numberOfHashFunctions;
+	}
+	
+	public int getNumberOfBits()
+	{
+		return words.length * Long.SIZE;
+	}
+	
+	/**
+	 * @return the bits of the filter (little-endian)
+	 */
+	public byte[] toBytes()
+	{
+		byte[] bytes = new byte[words.length * (Long.SIZE / Byte.SIZE)];
+		for(int b = 0; b < bytes.length; b++)
+			bytes[b] = (byte) (words[b >>> 3] >>> ((b & 7) * Byte.SIZE));
+		return bytes;
+	}
+	
+}
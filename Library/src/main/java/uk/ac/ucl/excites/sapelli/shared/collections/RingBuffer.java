@@ -0,0 +1,138 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ *
+ * Copyright 2012-2016 University College London - ExCiteS group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.shared.collections;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free, multi-producer/single-consumer ring buffer.
+ *
+ * Any number of threads may call {@link #offer(Object)} concurrently, but {@link #poll()} must only ever be called by a single
+ * (consumer) thread at a time. Each slot carries a sequence number which tells producers whether the slot is free for the
+ * position they claimed and tells the consumer whether the element at its position has been published.
+ *
+ * @param <E> element type
+ */
+public final class RingBuffer<E>
+{
+
+	private final int mask;
+	private final AtomicReferenceArray<E> elements;
+	private final AtomicLongArray sequences;
+
+	/**
+	 * Next position to be claimed by a producer.
+	 */
+	private final AtomicLong tail = new AtomicLong(0);
+
+	/**
+	 * Next position to be consumed, only accessed by the consumer (volatile only for {@link #size()}).
+	 */
+	private volatile long head = 0;
+
+	/**
+	 * @param minimumCapacity the capacity is the smallest power of 2 which is greater than or equal to this value
+	 */
+	public RingBuffer(int minimumCapacity)
+	{
+		if(minimumCapacity < 1 || minimumCapacity > 1 << 30)
+			throw new IllegalArgumentException("Invalid capacity: " + minimumCapacity);
+		int capacity = Integer.highestOneBit(minimumCapacity);
+		if(capacity < minimumCapacity)
+			capacity <<= 1;
+		this.mask = capacity - 1;
+		this.elements = new AtomicReferenceArray<E>(capacity);
+		this.sequences = new AtomicLongArray(capacity);
+		for(int i = 0; i < capacity; i++)
+			sequences.set(i, i);
+	}
+
+	/**
+	 * Adds an element, may be called by multiple threads concurrently.
+	 *
+	 * @param element
+	 * @return {@code true} if the element was added, {@code false} if the buffer is full
+	 */
+	public boolean offer(E element)
+	{
+		if(element == null)
+			throw new NullPointerException("Cannot add null element");
+		long pos = tail.get();
+		while(true)
+		{
+			long diff = sequences.get((int) (pos & mask)) - pos;
+			if(diff == 0)
+			{	// slot is free for this position, try to claim it:
+				if(tail.compareAndSet(pos, pos + 1))
+					break;
+				pos = tail.get();
+			}
+			else if(diff < 0)
+				return false; // slot still holds an element from the previous round: buffer is full
+			else
+				pos = tail.get(); // another producer claimed this position
+		}
+		int index = (int) (pos & mask);
+		elements.lazySet(index, element);
+		sequences.set(index, pos + 1); // publish
+		return true;
+	}
+
+	/**
+	 * Removes the oldest element, must only be called by the (single) consumer thread.
+	 *
+	 * @return the oldest element, or {@code null} if the buffer is empty (or the oldest element has not been completely published yet)
+	 */
+	public E poll()
+	{
+		long pos = head;
+		int index = (int) (pos & mask);
+		if(sequences.get(index) != pos + 1)
+			return null;
+		E element = elements.get(index);
+		elements.lazySet(index, null);
+		head = pos + 1;
+		sequences.set(index, pos + mask + 1); // free slot for the next round
+		return element;
+	}
+
+	/**
+	 * @return the (approximate) number of elements in the buffer
+	 */
+	public int size()
+	{
+		return (int) Math.max(0, Math.min(tail.get() - head, mask + 1));
+	}
+
+	public boolean isEmpty()
+	{
+		return size() == 0;
+	}
+
+	/**
+	 * @return the capacity
+	 */
+	public int capacity()
+	{
+		return mask + 1;
+	}
+
+}
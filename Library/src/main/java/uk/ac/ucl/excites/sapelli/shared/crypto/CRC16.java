@@ -0,0 +1,178 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.shared.crypto;
+
+import uk.ac.ucl.excites.sapelli.shared.io.BitArray;
+import uk.ac.ucl.excites.sapelli.shared.io.BitOutputStream;
+
+/**
+ * Incremental CRC16 computation, producing the same values as {@link CRC16Digest} (and {@link Hashing#getCRC16Hash(byte[])}).
+ * 
+ * Byte ranges are processed 8 bytes at a time using "slice-by-8" lookup tables. Input may also be fed bit by bit (most
+ * significant bit of each byte first), for instance by a {@link BitOutputStream} (see {@link BitOutputStream#setCRC16Tap(CRC16)}),
+ * or straight from a {@link BitArray} without converting it to a byte array first. A trailing incomplete byte is padded
+ * with 0s, as {@link BitArray#toByteArray()} does.
+ */
+public final class CRC16
+{
+
+	// STATIC -------------------------------------------------------
+	static private final int BUFFER_SIZE = 256;
+	
+	/**
+	 * TABLES[k][b] holds the CRC of byte b followed by k 0-bytes.
+	 */
+	static private final int[][] TABLES = new int[8][];
+	static
+	{
+		TABLES[0] = CRC16Digest.CRC16_TABLE;
+		for(int k = 1; k < TABLES.length; k++)
+		{
+			TABLES[k] = new int[256];
+			for(int b = 0; b < 256; b++)
+				TABLES[k][b] = (TABLES[k - 1][b] >>> 8) ^ TABLES[0][TABLES[k - 1][b] & 0xff];
+		}
+	}
+	
+	/**
+	 * @param bytes
+	 * @return the CRC16 of the given bytes
+	 */
+	static public int Compute(byte[] bytes)
+	{
+		return new CRC16().update(bytes, 0, bytes.length).getValue();
+	}
+	
+	/**
+	 * @param bits
+	 * @return the CRC16 of the given bits (which is the CRC16 of {@code bits.toByteArray()})
+	 */
+	static public int Compute(BitArray bits)
+	{
+		return new CRC16().update(bits).getValue();
+	}
+	
+	// DYNAMIC ------------------------------------------------------
+	private int crc = 0x0000;
+	private int pendingByte = 0;
+	private int pendingBits = 0;
+	private byte[] buffer;
+	
+	/**
+	 * @param bit
+	 * @return this CRC16
+	 */
+	public CRC16 update(boolean bit)
+	{
+		pendingByte = (pendingByte << 1) | (bit ? 1 : 0);
+		if(++pendingBits == Byte.SIZE)
+		{
+			crc = (crc >>> 8) ^ TABLES[0][(crc ^ pendingByte) & 0xff];
+			pendingByte = 0;
+			pendingBits = 0;
+		}
+		return this;
+	}
+	
+	/**
+	 * @param b
+	 * @return this CRC16
+	 */
+	public CRC16 update(byte b)
+	{
+		if(pendingBits == 0)
+			crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xff];
+		else
+			for(int i = 7; i >= 0; i--) // MSB first
+				update((b & (1 << i)) != 0);
+		return this;
+	}
+	
+	/**
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @return this CRC16
+	 */
+	public CRC16 update(byte[] bytes, int offset, int length)
+	{
+		int end = offset + length;
+		if(offset < 0 || length < 0 || end > bytes.length)
+			throw new IndexOutOfBoundsException("Invalid range: offset " + offset + ", length " + length + " (array length: " + bytes.length + ")");
+		int b = offset;
+		if(pendingBits == 0)
+		{
+			int c = crc;
+			final int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3], t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+			for(; b + 8 <= end; b += 8)
+				c =	t7[(c ^ bytes[b]) & 0xff] ^
+					t6[((c >>> 8) ^ bytes[b + 1]) & 0xff] ^
+					t5[bytes[b + 2] & 0xff] ^
+					t4[bytes[b + 3] & 0xff] ^
+					t3[bytes[b + 4] & 0xff] ^
+					t2[bytes[b + 5] & 0xff] ^
+					t1[bytes[b + 6] & 0xff] ^
+					t0[bytes[b + 7] & 0xff];
+			crc = c;
+		}
+		for(; b < end; b++)
+			update(bytes[b]);
+		return this;
+	}
+	
+	/**
+	 * @param bits
+	 * @return this CRC16
+	 */
+	public CRC16 update(BitArray bits)
+	{
+		if(pendingBits != 0)
+		{	// not byte-aligned
+			for(int i = 0; i < bits.length(); i++)
+				update(bits.get(i));
+			return this;
+		}
+		int fullBytes = bits.length() / Byte.SIZE;
+		if(buffer == null || buffer.length < Math.min(BUFFER_SIZE, fullBytes))
+			buffer = new byte[Math.min(BUFFER_SIZE, fullBytes)];
+		for(int byteOffset = 0; byteOffset < fullBytes; byteOffset += buffer.length)
+			update(buffer, 0, bits.toByteArray(byteOffset, buffer, fullBytes - byteOffset));
+		for(int i = fullBytes * Byte.SIZE; i < bits.length(); i++)
+			update(bits.get(i));
+		return this;
+	}
+	
+	/**
+	 * @return the CRC16 (unsigned 16 bit int) of the input so far, with a trailing incomplete byte padded with 0s
+	 */
+	public int getValue()
+	{
+		if(pendingBits == 0)
+			return crc;
+		return (crc >>> 8) ^ TABLES[0][(crc ^ (pendingByte << (Byte.SIZE - pendingBits))) & 0xff];
+	}
+	
+	public void reset()
+	{
+		crc = 0x0000;
+		pendingByte = 0;
+		pendingBits = 0;
+	}
+	
+}
@@ -27,6 +27,8 @@ import java.security.MessageDigest;
  * 
  * Uses irreducible polynomial: x^16 + x^15 + x^2 + 1
  * 
+ * For incremental computation over bytes, bits or {@link uk.ac.ucl.excites.sapelli.shared.io.BitArray}s, see {@link CRC16}.
+ * 
  * TODO register this MessageDigest class with system so we can get an instance using MessageDigest.getInstance("CRC16");
  * 
  * @author mstevens
@@ -71,7 +73,7 @@ public class CRC16Digest extends MessageDigest
 	@Override
 	protected void engineUpdate(byte[] input, int offset, int len)
 	{
-		for(int b = offset; b < len; b++)
+		for(int b = offset; b < offset + len; b++)
 			engineUpdate(input[b]);
 	}
 
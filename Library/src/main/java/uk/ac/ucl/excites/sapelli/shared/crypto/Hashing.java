@@ -118,11 +118,7 @@ public final class Hashing
 	
 	static public int getCRC16Hash(byte[] byteArray)
 	{
-		HashResult result = digest(CRC16Digest.NAME, new ByteArrayInputStream(byteArray));
-		if(result == null)
-			return 0;
-		else
-			return (result.hash[0] & 0xFF) << 8 | (result.hash[1] & 0xFF);
+		return CRC16.Compute(byteArray);
 	}
 	
 	/**
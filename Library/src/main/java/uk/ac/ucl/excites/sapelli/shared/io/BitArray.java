@@ -153,12 +153,43 @@ public class BitArray implements Iterable<Boolean>
 	public byte[] toByteArray()
 	{
 		byte[] bytes = new byte[BinaryHelpers.bytesNeeded(length)];
-		for(int i = 0; i < length; i++)
-			if(bits.get(i))
-				bytes[i / Byte.SIZE] |= 1 << (7 - (i % 8)); // MSB is read first
+		toByteArray(0, bytes, bytes.length);
 		return bytes;
 	}
 	
+	/**
+	 * Puts (a range of) the bytes returned by {@link #toByteArray()} in the given array, without creating a byte array
+	 * for all bits.
+	 * 
+	 * @param byteOffset index of the first byte to put
+	 * @param destination array to put the bytes in, starting from index 0
+	 * @param maxBytes maximum number of bytes to put
+	 * @return the number of bytes put in the destination
+	 */
+	public int toByteArray(int byteOffset, byte[] destination, int maxBytes)
+	{
+		int count = Math.max(0, Math.min(Math.min(maxBytes, destination.length), BinaryHelpers.bytesNeeded(length) - byteOffset));
+		for(int b = 0; b < count; b++)
+			destination[b] = 0;
+		int to = Math.min(length, (byteOffset + count) * Byte.SIZE);
+		for(int i = bits.nextSetBit(byteOffset * Byte.SIZE); i >= 0 && i < to; i = bits.nextSetBit(i + 1)) // only visit set bits
+			destination[i / Byte.SIZE - byteOffset] |= 1 << (7 - (i % 8)); // MSB is read first
+		return count;
+	}
+	
+	/**
+	 * Sets the bits which are set in this array in the given {@link BitSet}, starting from the given offset.
+	 * Bits which are not set in this array are left unchanged in the destination.
+	 * 
+	 * @param destination
+	 * @param offset index in the destination corresponding to the first bit of this array
+	 */
+	public void copyTo(BitSet destination, int offset)
+	{
+		for(int i = bits.nextSetBit(0); i >= 0 && i < length; i = bits.nextSetBit(i + 1)) // only visit set bits
+			destination.set(offset + i);
+	}
+	
 	/**
 	 * Writes the bits to a {@link BitOutputStream}
 	 * 
@@ -215,7 +246,7 @@ public class BitArray implements Iterable<Boolean>
 			to = this.length;
 		BitArray sub = new BitArray(to - offset);
 		for(int i = offset; i < to; i++)
-			sub.set(i, this.get(i));
+			sub.set(i - offset, this.get(i));
 		return sub;
 	}
 	
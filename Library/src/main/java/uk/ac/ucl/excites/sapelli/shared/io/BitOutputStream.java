@@ -23,6 +23,7 @@ import java.io.OutputStream;
 import java.math.BigInteger;
 import java.nio.charset.Charset;
 
+import uk.ac.ucl.excites.sapelli.shared.crypto.CRC16;
 import uk.ac.ucl.excites.sapelli.shared.util.BigIntegerUtils;
 
 /**
@@ -44,6 +45,7 @@ public abstract class BitOutputStream extends OutputStream
 	//DYNAMIC
 	private boolean closed;
 	private int numberOfBitsWritten;
+	private CRC16 crc16Tap;
 	
 	public BitOutputStream()
 	{
@@ -67,9 +69,22 @@ public abstract class BitOutputStream extends OutputStream
 			throw new CapacityReachedException();
 		writeBit(bit);
 		numberOfBitsWritten++;
+		if(crc16Tap != null)
+			crc16Tap.update(bit);
 		return bit;
 	}
 	
+	/**
+	 * Makes the stream feed all bits written from now on to the given {@link CRC16}, so it can be computed while writing
+	 * rather than in an additional pass over the output.
+	 * 
+	 * @param crc16 may be {@code null} to stop feeding
+	 */
+	public void setCRC16Tap(CRC16 crc16)
+	{
+		this.crc16Tap = crc16;
+	}
+	
 	/**
 	 * @param bit bit (true = 1; false = 0) to be written
 	 * @throws IOException
@@ -22,6 +22,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -92,6 +93,49 @@ public final class Unzipper
 		}
 	}
 
+	/**
+	 * Extracts a single entry into the given folder. The entry input stream is not closed.
+	 * Extraction stops (with an {@link InterruptedIOException}) when the calling thread is interrupted.
+	 * 
+	 * @param entry the {@link ZipEntry} to extract
+	 * @param entryInput stream providing the contents of the entry (ignored for directory entries)
+	 * @param extractionFolder folder to extract into
+	 * @return the extracted file or folder
+	 * @throws IOException when the entry could not be written, or when its name points outside of the extraction folder
+	 */
+	static public File extract(ZipEntry entry, InputStream entryInput, File extractionFolder) throws IOException
+	{
+		File target = new File(extractionFolder, entry.getName());
+		if(!target.getCanonicalPath().startsWith(extractionFolder.getCanonicalPath() + File.separator))
+			throw new IOException("Entry is outside of extraction folder: " + entry.getName());
+		if(entry.isDirectory())
+		{
+			if(!FileHelpers.createDirectory(target) && !target.isDirectory()) // (folder may have been created concurrently)
+				throw new IOException("Could not create folder: " + target.getAbsolutePath());
+		}
+		else
+		{
+			if(!FileHelpers.createParentDirectory(target) && !target.getParentFile().isDirectory()) // (parent may have been created concurrently)
+				throw new IOException("Could not create folder: " + target.getParent());
+			FileOutputStream fout = new FileOutputStream(target, false);
+			try
+			{
+				byte[] buffer = new byte[8192];
+				for(int c = entryInput.read(buffer); c != -1; c = entryInput.read(buffer))
+				{
+					if(Thread.currentThread().isInterrupted())
+						throw new InterruptedIOException("Extraction of " + entry.getName() + " interrupted");
+					fout.write(buffer, 0, c);
+				}
+			}
+			finally
+			{
+				fout.close();
+			}
+		}
+		return target;
+	}
+
 	public static InputStream getInputStreamForFileInZip(InputStream zipFileStream, String filename) throws IOException
 	{
 		ZipInputStream zin = new ZipInputStream(zipFileStream);
@@ -20,14 +20,25 @@ package uk.ac.ucl.excites.sapelli.shared.util;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import org.joda.time.DateTime;
 
+import uk.ac.ucl.excites.sapelli.shared.collections.RingBuffer;
 import uk.ac.ucl.excites.sapelli.shared.io.FileHelpers;
 import uk.ac.ucl.excites.sapelli.shared.io.text.FileWriter;
 
 
 /**
+ * Class to write log files.
+ * 
+ * By default lines are formatted and written synchronously, on the calling thread. In asynchronous mode (see
+ * {@link #Logger(String, String, boolean, boolean, int, OverflowPolicy)}) callers only capture the time and fields of each
+ * line and enqueue them in a lock-free {@link RingBuffer}, from which a single background thread formats and writes them
+ * to the file (and output stream) in batches.
+ * 
  * @author Michalis Vitos, mstevens, benelliott
  *
  */
@@ -37,9 +48,42 @@ public class Logger
 	public static final String FIELD_SEPARATOR = ";";
 	public static final String LOG_EXTENSION = ".log";
 	
+	/**
+	 * What to do when a line is added while the buffer of an asynchronous Logger is full.
+	 */
+	static public enum OverflowPolicy
+	{
+		/**
+		 * Wait until the writer thread has made room (no lines are lost).
+		 */
+		BLOCK,
+		
+		/**
+		 * Discard the line (the number of discarded lines is logged once there is room again).
+		 */
+		DROP
+	}
+	
+	static public final int DEFAULT_ASYNC_BUFFER_CAPACITY = 512;
+	
+	static private final long BLOCKED_PRODUCER_PARK_NS = 1000000; // 1 ms
+	static private final long WRITER_IDLE_TIMEOUT_NS = 10000000000L; // 10 s
+	static private final long WRITER_STOP_TIMEOUT_MS = 5000;
+	static private final long NO_TIME = -1;
+	
 	private FileWriter fileWriter;
 	protected final boolean printToOutputStream;
 	
+	// Asynchronous mode only:
+	private final RingBuffer<LogEvent> asyncBuffer;
+	private final OverflowPolicy overflowPolicy;
+	private final AtomicInteger droppedEvents;
+	private final AtomicBoolean writerIdle;
+	private final AtomicBoolean writerRunning;
+	private final Writer writer;
+	private volatile Thread writerThread;
+	private volatile boolean closing = false;
+	
 	/**
 	 * 
 	 * @param folderPath path to the folder in which the log file is saved
@@ -61,10 +105,51 @@ public class Logger
 	 * @throws IOException from file system I/O
 	 */
 	public Logger(String folderPath, String baseFileName, boolean timestampFilename, boolean printToOutputStream) throws IOException
+	{
+		this(folderPath, baseFileName, timestampFilename, printToOutputStream, 0, null);
+	}
+	
+	/**
+	 * 
+	 * @param folderPath path to the folder in which the log file is saved
+	 * @param baseFileName base filename for the log file
+	 * @param timestampFilename whether or not to suffix the base filename with a timestamp (precise to the second of file creation)
+	 * @param printToOutputStream whether or not to also echo log statements to the standard output stream (e.g. System.out or Android Logcat)
+	 * @param asyncBufferCapacity when > 0 the Logger works asynchronously, using a buffer which can hold (at least) this many lines; when <= 0 it works synchronously
+	 * @param overflowPolicy what to do when the buffer is full (ignored in synchronous mode)
+	 * @throws IOException from file system I/O
+	 */
+	public Logger(String folderPath, String baseFileName, boolean timestampFilename, boolean printToOutputStream, int asyncBufferCapacity, OverflowPolicy overflowPolicy) throws IOException
 	{
 		this.fileWriter = new FileWriter(folderPath + File.separator + baseFileName + (timestampFilename ? TimeUtils.getTimestampForFileName() : "") + LOG_EXTENSION);
 		this.printToOutputStream = printToOutputStream;
 		fileWriter.open(FileHelpers.FILE_EXISTS_STRATEGY_APPEND, FileHelpers.FILE_DOES_NOT_EXIST_STRATEGY_CREATE);
+		if(asyncBufferCapacity > 0)
+		{
+			this.asyncBuffer = new RingBuffer<LogEvent>(asyncBufferCapacity);
+			this.overflowPolicy = overflowPolicy != null ? overflowPolicy : OverflowPolicy.BLOCK;
+			this.droppedEvents = new AtomicInteger(0);
+			this.writerIdle = new AtomicBoolean(false);
+			this.writerRunning = new AtomicBoolean(false);
+			this.writer = new Writer();
+		}
+		else
+		{
+			this.asyncBuffer = null;
+			this.overflowPolicy = null;
+			this.droppedEvents = null;
+			this.writerIdle = null;
+			this.writerRunning = null;
+			this.writer = null;
+		}
+	}
+	
+	/**
+	 * @return whether or not this Logger works asynchronously
+	 */
+	public boolean isAsync()
+	{
+		return asyncBuffer != null;
 	}
 
 	/**
@@ -109,18 +194,30 @@ public class Logger
 	 * @param fields
 	 */
 	public void addLine(boolean timestamp, String... fields)
+	{
+		if(asyncBuffer != null)
+		{
+			enqueue(new LogEvent(timestamp ? System.currentTimeMillis() : NO_TIME, fields, true));
+			return;
+		}
+		
+		String line = format(timestamp ? System.currentTimeMillis() : NO_TIME, fields);
+		
+		// To stream:
+		printToOutputStream(line);
+		// To file:
+		writeLine(line);
+	}
+	
+	private String format(long time, String[] fields)
 	{
 		TransactionalStringBuilder bff = new TransactionalStringBuilder(FIELD_SEPARATOR);
-		if(timestamp)
-			bff.append(getTime());
+		if(time != NO_TIME)
+			bff.append(getTime(time));
 		if(fields != null)
 			for(String field : fields)
 				bff.append(field);
-		
-		// To stream:
-		printToOutputStream(bff.toString());
-		// To file:
-		writeLine(bff.toString());
+		return bff.toString();
 	}
 
 	/**
@@ -130,7 +227,10 @@ public class Logger
 	{
 		// To stream: nope, don't reproduce blank lines on System.out
 		// To file:
-		writeLine("");
+		if(asyncBuffer != null)
+			enqueue(new LogEvent(NO_TIME, null, false));
+		else
+			writeLine("");
 	}
 	
 	/**
@@ -146,6 +246,49 @@ public class Logger
 		close();
 	}
 	
+	/**
+	 * Adds an event to the buffer of an asynchronous Logger, applying the {@link OverflowPolicy} if the buffer is full.
+	 * 
+	 * @param event
+	 */
+	private void enqueue(LogEvent event)
+	{
+		if(closing)
+			throw new IllegalStateException("Logger has been closed.");
+		while(!asyncBuffer.offer(event))
+		{
+			if(overflowPolicy == OverflowPolicy.DROP)
+			{
+				droppedEvents.incrementAndGet();
+				return;
+			}
+			// Wake up writer & wait a bit:
+			if(!startWriter())
+				LockSupport.unpark(writerThread);
+			LockSupport.parkNanos(BLOCKED_PRODUCER_PARK_NS);
+		}
+		// Start writer if it is not running, or wake it up if it is idle:
+		if(!startWriter() && writerIdle.get() && writerIdle.compareAndSet(true, false))
+			LockSupport.unpark(writerThread);
+	}
+	
+	/**
+	 * Starts a writer thread unless one is running already. The writer thread stops after being idle for a while,
+	 * so an asynchronous Logger which is no longer used does not keep a thread (nor itself) alive.
+	 * 
+	 * @return whether or not a new writer thread was started
+	 */
+	private boolean startWriter()
+	{
+		if(!writerRunning.compareAndSet(false, true))
+			return false;
+		Thread thread = new Thread(writer, "Logger writer");
+		thread.setDaemon(true);
+		writerThread = thread;
+		thread.start();
+		return true;
+	}
+	
 	private void writeLine(String str)
 	{
 		if(fileWriter == null || !fileWriter.isWritable())
@@ -171,22 +314,160 @@ public class Logger
 	 */
 	public void close()
 	{
-		if(fileWriter != null)
+		if(asyncBuffer != null)
+		{
+			boolean stop;
+			synchronized(this)
+			{
+				stop = !closing;
+				closing = true;
+			}
+			if(stop)
+				stopWriter();
+		}
+		synchronized(this)
 		{
-			fileWriter.dispose();
-			fileWriter = null;
+			if(fileWriter != null)
+			{
+				fileWriter.dispose();
+				fileWriter = null;
+			}
 		}
 	}
 
+	/**
+	 * Takes over the buffer from the writer thread, waiting for a running writer to finish first, and writes out any lines left behind.
+	 * Ownership of the buffer is claimed through {@link #writerRunning}, which is never released again, so a producer which passed
+	 * the closing check in {@link #enqueue(LogEvent)} cannot start a second consumer while (or after) we drain the buffer.
+	 */
+	private void stopWriter()
+	{
+		long deadline = System.currentTimeMillis() + WRITER_STOP_TIMEOUT_MS;
+		while(!writerRunning.compareAndSet(false, true))
+		{	// A writer is running, wake it up and wait for it to stop:
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0)
+				return; // give up, the writer keeps the buffer
+			Thread thread = writerThread;
+			if(thread == Thread.currentThread())
+				return; // called by the writer itself, it will drain the buffer before stopping
+			if(thread != null && thread.isAlive())
+			{
+				LockSupport.unpark(thread);
+				try
+				{
+					thread.join(remaining);
+				}
+				catch(InterruptedException ie)
+				{
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			else
+				Thread.yield(); // a new writer is being started
+		}
+		writer.drain(); // write out anything left behind
+	}
+
 	/**
 	 * Return the time in two formats, one in ISO8601 and one in "pretty ISO" format ("yyyy-MM-dd HH:mm:ss"), which should be correctly interpreted by (most)
 	 * Excel installations.
 	 * 
 	 * @return
 	 */
-	private String getTime()
+	private String getTime(long time)
+	{
+		return TimeUtils.ISOWithMSFormatter.print(new DateTime(time));
+	}
+	
+	/**
+	 * A line to be written by an asynchronous Logger.
+	 */
+	static private final class LogEvent
+	{
+		
+		final long time;
+		final String[] fields;
+		final boolean echo;
+		
+		public LogEvent(long time, String[] fields, boolean echo)
+		{
+			this.time = time;
+			this.fields = fields;
+			this.echo = echo;
+		}
+		
+	}
+	
+	/**
+	 * Background task of an asynchronous Logger: drains the buffer and writes the lines in batches, one file write per batch.
+	 * Parks when there is nothing to write, until woken up by {@link Logger#enqueue(LogEvent)} or {@link Logger#close()},
+	 * and stops after being idle for {@link Logger#WRITER_IDLE_TIMEOUT_NS} nanoseconds.
+	 */
+	private final class Writer implements Runnable
 	{
-		return TimeUtils.ISOWithMSFormatter.print(DateTime.now());
+		
+		private final StringBuilder batch = new StringBuilder(8192);
+		
+		@Override
+		public void run()
+		{
+			while(true)
+			{
+				if(drain() > 0)
+					continue;
+				if(closing)
+				{
+					drain(); // last lines
+					writerRunning.set(false);
+					return;
+				}
+				writerIdle.set(true);
+				long idleStart = System.nanoTime();
+				if(asyncBuffer.isEmpty() && !closing)
+					LockSupport.parkNanos(this, WRITER_IDLE_TIMEOUT_NS);
+				writerIdle.set(false);
+				if(asyncBuffer.isEmpty() && !closing && System.nanoTime() - idleStart >= WRITER_IDLE_TIMEOUT_NS)
+				{	// Idle for too long, stop (unless a line was added in the meantime):
+					writerRunning.set(false);
+					if(asyncBuffer.isEmpty() || !writerRunning.compareAndSet(false, true))
+						return;
+					writerThread = Thread.currentThread();
+				}
+			}
+		}
+		
+		/**
+		 * @return the number of events written
+		 */
+		private int drain()
+		{
+			int count = 0;
+			LogEvent event;
+			while(count < asyncBuffer.capacity() && (event = asyncBuffer.poll()) != null)
+			{
+				String line = format(event.time, event.fields);
+				if(event.echo)
+					printToOutputStream(line);
+				batch.append(line).append('\n');
+				count++;
+			}
+			int dropped = droppedEvents.getAndSet(0);
+			if(dropped > 0)
+				batch.append(format(System.currentTimeMillis(), new String[] { "Logger", dropped + " line(s) dropped because the buffer was full" })).append('\n');
+			if(batch.length() > 0)
+			{
+				synchronized(Logger.this)
+				{
+					if(fileWriter != null && fileWriter.isWritable())
+						fileWriter.write(batch.toString());
+				}
+				batch.setLength(0);
+			}
+			return count;
+		}
+		
 	}
 
 }
@@ -0,0 +1,511 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.shared.util;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lightweight, dependency-free registry of named metrics for instrumenting hot paths: counters, gauges, histograms and timers.
+ * 
+ * Metrics are created lazily (on first lookup) and are thread-safe; callers may hold on to them to avoid repeated lookups.
+ * When a registry is {@link #DISABLED} all lookups return shared no-op instances, so instrumented code costs little more than a method call.
+ * 
+ * Histograms use HDR-style log-linear buckets (every power of 2 is split into {@link Histogram#SUB_BUCKETS} equal sub-buckets), which keeps
+ * recording lock- and allocation-free and bounds the relative error of reported percentiles to 1/{@link Histogram#SUB_BUCKETS}.
+ */
+public final class Metrics
+{
+
+	// STATIC -------------------------------------------------------
+	/**
+	 * A registry which records nothing.
+	 */
+	static public final Metrics DISABLED = new Metrics(false);
+
+	static private final double NANOS_PER_MS = 1000000.0d;
+
+	// DYNAMIC ------------------------------------------------------
+	private final boolean enabled;
+	private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+	private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+	private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+
+	public Metrics()
+	{
+		this(true);
+	}
+
+	private Metrics(boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return whether this registry records anything
+	 */
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * @param name
+	 * @return the counter with the given name (created if needed)
+	 */
+	public Counter counter(String name)
+	{
+		if(!enabled)
+			return Counter.NOOP;
+		Counter counter = counters.get(name);
+		if(counter == null)
+		{
+			Counter newCounter = new Counter();
+			counter = counters.putIfAbsent(name, newCounter);
+			if(counter == null)
+				counter = newCounter;
+		}
+		return counter;
+	}
+
+	/**
+	 * @param name
+	 * @return the gauge with the given name (created if needed)
+	 */
+	public Gauge gauge(String name)
+	{
+		if(!enabled)
+			return Gauge.NOOP;
+		Gauge gauge = gauges.get(name);
+		if(gauge == null)
+		{
+			Gauge newGauge = new Gauge();
+			gauge = gauges.putIfAbsent(name, newGauge);
+			if(gauge == null)
+				gauge = newGauge;
+		}
+		return gauge;
+	}
+
+	/**
+	 * @param name
+	 * @return the histogram with the given name (created if needed)
+	 */
+	public Histogram histogram(String name)
+	{
+		if(!enabled)
+			return Histogram.NOOP;
+		Histogram histogram = histograms.get(name);
+		if(histogram == null)
+		{
+			Histogram newHistogram = new Histogram();
+			histogram = histograms.putIfAbsent(name, newHistogram);
+			if(histogram == null)
+				histogram = newHistogram;
+		}
+		return histogram;
+	}
+
+	/**
+	 * @param name
+	 * @return the timer with the given name (created if needed)
+	 */
+	public Timer timer(String name)
+	{
+		if(!enabled)
+			return Timer.NOOP;
+		Timer timer = timers.get(name);
+		if(timer == null)
+		{
+			Timer newTimer = new Timer();
+			timer = timers.putIfAbsent(name, newTimer);
+			if(timer == null)
+				timer = newTimer;
+		}
+		return timer;
+	}
+
+	/**
+	 * Resets all metrics to their initial state (the metrics themselves remain registered).
+	 */
+	public void reset()
+	{
+		for(Counter counter : counters.values())
+			counter.value.set(0);
+		for(Gauge gauge : gauges.values())
+			gauge.value.set(0);
+		for(Histogram histogram : histograms.values())
+			histogram.reset();
+		for(Timer timer : timers.values())
+			timer.histogram.reset();
+	}
+
+	/**
+	 * @return a point-in-time copy of all metrics
+	 */
+	public Snapshot snapshot()
+	{
+		return new Snapshot(this);
+	}
+
+	/**
+	 * A monotonically increasing count.
+	 */
+	static public class Counter
+	{
+
+		static final Counter NOOP = new Counter()
+		{
+			@Override
+			public void add(long delta) { /* no-op */ }
+		};
+
+		final AtomicLong value = new AtomicLong();
+
+		private Counter() {}
+
+		public void increment()
+		{
+			add(1);
+		}
+
+		public void add(long delta)
+		{
+			value.addAndGet(delta);
+		}
+
+		public long get()
+		{
+			return value.get();
+		}
+
+	}
+
+	/**
+	 * An instantaneous value.
+	 */
+	static public class Gauge
+	{
+
+		static final Gauge NOOP = new Gauge()
+		{
+			@Override
+			public void set(long newValue) { /* no-op */ }
+		};
+
+		final AtomicLong value = new AtomicLong();
+
+		private Gauge() {}
+
+		public void set(long newValue)
+		{
+			value.set(newValue);
+		}
+
+		public long get()
+		{
+			return value.get();
+		}
+
+	}
+
+	/**
+	 * Records the distribution of non-negative long values in log-linear buckets.
+	 * 
+	 * Values below {@link #SUB_BUCKETS} each have their own bucket, larger values fall in one of {@link #SUB_BUCKETS}
+	 * equally sized buckets per power of 2. Reported percentiles are the upper bound of the bucket holding the requested rank.
+	 */
+	static public class Histogram
+	{
+
+		static final Histogram NOOP = new Histogram()
+		{
+			@Override
+			public void record(long value) { /* no-op */ }
+		};
+
+		static public final int SUB_BUCKET_BITS = 4;
+		static public final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+		static private final int NUMBER_OF_BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+		/**
+		 * @param value non-negative value
+		 * @return the index of the bucket holding the value
+		 */
+		static int BucketIndex(long value)
+		{
+			if(value < SUB_BUCKETS)
+				return (int) value;
+			int exponent = (Long.SIZE - 1) - Long.numberOfLeadingZeros(value); // >= SUB_BUCKET_BITS
+			return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+		}
+
+		/**
+		 * @param index
+		 * @return the largest value which falls in the bucket with the given index
+		 */
+		static long BucketUpperBound(int index)
+		{
+			if(index < SUB_BUCKETS)
+				return index;
+			int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+			long lowerBound = (1L << exponent) + ((long) (index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS));
+			return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+		}
+
+		private final AtomicLongArray buckets = new AtomicLongArray(NUMBER_OF_BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+		private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+		private Histogram() {}
+
+		/**
+		 * @param value negative values are recorded as 0
+		 */
+		public void record(long value)
+		{
+			if(value < 0)
+				value = 0;
+			buckets.incrementAndGet(BucketIndex(value));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+			long current;
+			while(value < (current = min.get()) && !min.compareAndSet(current, value));
+			while(value > (current = max.get()) && !max.compareAndSet(current, value));
+		}
+
+		void reset()
+		{
+			for(int b = 0; b < NUMBER_OF_BUCKETS; b++)
+				buckets.set(b, 0);
+			count.set(0);
+			sum.set(0);
+			min.set(Long.MAX_VALUE);
+			max.set(Long.MIN_VALUE);
+		}
+
+		/**
+		 * @return a point-in-time copy of the histogram
+		 */
+		public HistogramSnapshot snapshot()
+		{
+			long[] counts = new long[NUMBER_OF_BUCKETS];
+			for(int b = 0; b < NUMBER_OF_BUCKETS; b++)
+				counts[b] = buckets.get(b);
+			return new HistogramSnapshot(counts, count.get(), sum.get(), min.get(), max.get());
+		}
+
+	}
+
+	/**
+	 * Records durations (in nanoseconds) in a {@link Histogram}.
+	 * 
+	 * Usage:
+	 * <pre>
+	 * long start = timer.start();
+	 * try { ... } finally { timer.stop(start); }
+	 * </pre>
+	 */
+	static public class Timer
+	{
+
+		static final Timer NOOP = new Timer()
+		{
+			@Override
+			public long start()
+			{
+				return 0;
+			}
+
+			@Override
+			public void stop(long start) { /* no-op */ }
+
+			@Override
+			public void record(long durationNS) { /* no-op */ }
+		};
+
+		final Histogram histogram = new Histogram();
+
+		private Timer() {}
+
+		/**
+		 * @return the start time to pass to {@link #stop(long)}
+		 */
+		public long start()
+		{
+			return System.nanoTime();
+		}
+
+		/**
+		 * @param start value returned by {@link #start()}
+		 */
+		public void stop(long start)
+		{
+			histogram.record(System.nanoTime() - start);
+		}
+
+		/**
+		 * @param durationNS duration in nanoseconds
+		 */
+		public void record(long durationNS)
+		{
+			histogram.record(durationNS);
+		}
+
+		/**
+		 * @return a point-in-time copy of the recorded durations (in nanoseconds)
+		 */
+		public HistogramSnapshot snapshot()
+		{
+			return histogram.snapshot();
+		}
+
+	}
+
+	/**
+	 * A point-in-time copy of a {@link Histogram}.
+	 */
+	static public final class HistogramSnapshot
+	{
+
+		private final long[] counts;
+		public final long count;
+		public final long sum;
+		public final long min;
+		public final long max;
+
+		private HistogramSnapshot(long[] counts, long count, long sum, long min, long max)
+		{
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.min = count == 0 ? 0 : min;
+			this.max = count == 0 ? 0 : max;
+		}
+
+		public double getMean()
+		{
+			return count == 0 ? 0.0d : (double) sum / count;
+		}
+
+		/**
+		 * Uses the nearest-rank method.
+		 * 
+		 * @param percentile in (0, 100]
+		 * @return the upper bound of the bucket holding the value at the given percentile (never more than the maximum), or 0 if nothing has been recorded
+		 */
+		public long getPercentile(double percentile)
+		{
+			if(percentile <= 0.0d || percentile > 100.0d)
+				throw new IllegalArgumentException("Invalid percentile: " + percentile);
+			long rank = Math.max((long) Math.ceil(percentile / 100.0d * count), 1);
+			long seen = 0;
+			for(int b = 0; b < counts.length; b++)
+				if((seen += counts[b]) >= rank)
+					return Math.min(Histogram.BucketUpperBound(b), max);
+			return max;
+		}
+
+	}
+
+	/**
+	 * A point-in-time copy of all metrics in a registry, sorted by name.
+	 */
+	static public final class Snapshot
+	{
+
+		static private final double[] PERCENTILES = { 50.0d, 90.0d, 99.0d };
+
+		public final SortedMap<String, Long> counters;
+		public final SortedMap<String, Long> gauges;
+		public final SortedMap<String, HistogramSnapshot> histograms;
+		
+		/**
+		 * Timer values are in nanoseconds.
+		 */
+		public final SortedMap<String, HistogramSnapshot> timers;
+
+		private Snapshot(Metrics metrics)
+		{
+			SortedMap<String, Long> counters = new TreeMap<String, Long>();
+			for(Map.Entry<String, Counter> entry : metrics.counters.entrySet())
+				counters.put(entry.getKey(), entry.getValue().get());
+			this.counters = Collections.unmodifiableSortedMap(counters);
+			SortedMap<String, Long> gauges = new TreeMap<String, Long>();
+			for(Map.Entry<String, Gauge> entry : metrics.gauges.entrySet())
+				gauges.put(entry.getKey(), entry.getValue().get());
+			this.gauges = Collections.unmodifiableSortedMap(gauges);
+			SortedMap<String, HistogramSnapshot> histograms = new TreeMap<String, HistogramSnapshot>();
+			for(Map.Entry<String, Histogram> entry : metrics.histograms.entrySet())
+				histograms.put(entry.getKey(), entry.getValue().snapshot());
+			this.histograms = Collections.unmodifiableSortedMap(histograms);
+			SortedMap<String, HistogramSnapshot> timers = new TreeMap<String, HistogramSnapshot>();
+			for(Map.Entry<String, Timer> entry : metrics.timers.entrySet())
+				timers.put(entry.getKey(), entry.getValue().snapshot());
+			this.timers = Collections.unmodifiableSortedMap(timers);
+		}
+
+		public boolean isEmpty()
+		{
+			return counters.isEmpty() && gauges.isEmpty() && histograms.isEmpty() && timers.isEmpty();
+		}
+
+		/**
+		 * @return a human-readable dump of all metrics (one per line, timer durations in milliseconds)
+		 */
+		@Override
+		public String toString()
+		{
+			StringBuilder bldr = new StringBuilder();
+			for(Map.Entry<String, Long> entry : counters.entrySet())
+				bldr.append(String.format(Locale.ROOT, "counter   %-40s %d%n", entry.getKey(), entry.getValue()));
+			for(Map.Entry<String, Long> entry : gauges.entrySet())
+				bldr.append(String.format(Locale.ROOT, "gauge     %-40s %d%n", entry.getKey(), entry.getValue()));
+			for(Map.Entry<String, HistogramSnapshot> entry : histograms.entrySet())
+			{
+				HistogramSnapshot h = entry.getValue();
+				bldr.append(String.format(Locale.ROOT, "histogram %-40s count=%d mean=%.1f min=%d", entry.getKey(), h.count, h.getMean(), h.min));
+				for(double p : PERCENTILES)
+					bldr.append(String.format(Locale.ROOT, " p%.0f=%d", p, h.getPercentile(p)));
+				bldr.append(String.format(Locale.ROOT, " max=%d%n", h.max));
+			}
+			for(Map.Entry<String, HistogramSnapshot> entry : timers.entrySet())
+			{
+				HistogramSnapshot t = entry.getValue();
+				bldr.append(String.format(Locale.ROOT, "timer     %-40s count=%d total=%.1f ms mean=%.3f ms", entry.getKey(), t.count, t.sum / NANOS_PER_MS, t.getMean() / NANOS_PER_MS));
+				for(double p : PERCENTILES)
+					bldr.append(String.format(Locale.ROOT, " p%.0f=%.3f ms", p, t.getPercentile(p) / NANOS_PER_MS));
+				bldr.append(String.format(Locale.ROOT, " max=%.3f ms%n", t.max / NANOS_PER_MS));
+			}
+			return bldr.toString();
+		}
+
+	}
+
+}
@@ -47,6 +47,7 @@ import uk.ac.ucl.excites.sapelli.shared.io.BitWrapInputStream;
 import uk.ac.ucl.excites.sapelli.shared.io.BitWrapOutputStream;
 import uk.ac.ucl.excites.sapelli.shared.io.StreamHelpers;
 import uk.ac.ucl.excites.sapelli.shared.util.Console;
+import uk.ac.ucl.excites.sapelli.shared.util.Metrics;
 import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
 import uk.ac.ucl.excites.sapelli.storage.model.Attachment;
 import uk.ac.ucl.excites.sapelli.storage.model.Model;
@@ -265,6 +266,8 @@ public abstract class StorageClient implements StorageObserver, Console
 	// DYNAMICS -----------------------------------------------------
 	private final List<StorageObserver> observers = new LinkedList<StorageObserver>();
 	
+	private volatile Metrics metrics = Metrics.DISABLED;
+	
 	public final StoreHandle<RecordStore> recordStoreHandle = new StoreHandle<RecordStore>(this, new StoreCreator<RecordStore>()
 	{
 		@Override
@@ -282,6 +285,34 @@ public abstract class StorageClient implements StorageObserver, Console
 	 */
 	protected abstract void createAndSetRecordStore(StoreSetter<RecordStore> setter) throws DBException;
 	
+	/**
+	 * @return the metrics registry used to instrument the stores, transmissions & exports of this client, {@link Metrics#DISABLED} unless {@link #enableMetrics()} has been called
+	 */
+	public final Metrics getMetrics()
+	{
+		return metrics;
+	}
+	
+	/**
+	 * Starts recording metrics (if this was not already the case).
+	 * 
+	 * @return the (new or existing) metrics registry
+	 */
+	public final synchronized Metrics enableMetrics()
+	{
+		if(!metrics.isEnabled())
+			metrics = new Metrics();
+		return metrics;
+	}
+	
+	/**
+	 * Stops recording metrics, previously recorded metrics are discarded.
+	 */
+	public final synchronized void disableMetrics()
+	{
+		metrics = Metrics.DISABLED;
+	}
+	
 	/**
 	 * @param record should not be {@code null}
 	 * @return a {@link List} with {@link Attachment}s associated with the given record, note that the attachment files do *not* necessarily exist
@@ -429,6 +429,24 @@ public abstract class RecordStore extends Store
 	 * @return a {@link List} of {@link Record}s, possibly empty, never {@code null}
 	 */
 	public abstract List<Record> retrieveRecords(RecordsQuery query);
+	
+	/**
+	 * Retrieve {@link Record}s by query and pass them, one by one, to the given {@link RecordHandler}.
+	 * 
+	 * The default implementation simply iterates over the result of {@link #retrieveRecords(RecordsQuery)},
+	 * subclasses may override this method to avoid holding the entire result in memory.
+	 * 
+	 * @param query
+	 * @param handler
+	 * @return whether all matching records were passed to the handler ({@code true}), or the handler asked to stop early ({@code false})
+	 */
+	public boolean retrieveRecords(RecordsQuery query, RecordHandler handler)
+	{
+		for(Record record : retrieveRecords(query))
+			if(!handler.handle(record))
+				return false;
+		return true;
+	}
 
 	/**
 	 * Retrieve {@link RecordReference}s by query
@@ -664,6 +682,20 @@ public abstract class RecordStore extends Store
 		this.loggingEnabled = loggingEnabled;
 	}
 
+	/**
+	 * Callback interface for {@link RecordStore#retrieveRecords(RecordsQuery, RecordHandler)}.
+	 */
+	public interface RecordHandler
+	{
+		
+		/**
+		 * @param record a retrieved record, never {@code null}
+		 * @return whether or not to continue passing records to this handler
+		 */
+		public boolean handle(Record record);
+		
+	}
+	
 	/**
 	 * A task to execute upon roll-back of open transaction(s)
 	 * 
@@ -0,0 +1,399 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.storage.db.sql;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Observes the "shapes" of the queries run against the tables of a {@link SQLRecordStore} and recommends secondary indexes
+ * for shapes which are used frequently but which cannot be served by any existing index (meaning the database has to
+ * fall back to a full table scan).
+ * 
+ * A {@link QueryShape} consists of the columns that are compared for equality, the column used in a range comparison and the
+ * columns used for ordering, considering only the top-level conjunction of the query's constraints (columns which only
+ * appear under an OR or NOT cannot be used to look up rows in a single index). An index is considered to serve a shape if
+ * its first column is one of the shape's equality columns or, in absence of those, its range column or first order column.
+ * Once a shape which is not served by any index has been observed {@code threshold} times a {@link Recommendation} is
+ * made for an index on the shape's equality columns, followed by its range column or, if there is none, its order columns.
+ * 
+ * The advisor also keeps track of how many observed queries each (schema-defined, primary key or advised) index could
+ * serve, such that unused indexes can be spotted.
+ * 
+ * Columns are identified by their sanitised SQL names. All methods are synchronised.
+ * 
+ * @see SQLRecordStore#enableIndexAdvisor(int, boolean)
+ */
+public final class IndexAdvisor
+{
+
+	// STATIC -------------------------------------------------------
+	static public final int DEFAULT_THRESHOLD = 50;
+	
+	static public final String ADVISED_INDEX_NAME_PREFIX = "Advised";
+	
+	// DYNAMIC ------------------------------------------------------
+	public final int threshold;
+	public final boolean autoCreate;
+	
+	private final Map<String, TableStats> tables = new TreeMap<String, TableStats>();
+	
+	/**
+	 * @param threshold number of times an unserved query shape must be observed before an index is recommended for it
+	 * @param autoCreate whether or not recommended indexes should be created automatically
+	 */
+	public IndexAdvisor(int threshold, boolean autoCreate)
+	{
+		if(threshold < 1)
+			throw new IllegalArgumentException("Threshold must be at least 1");
+		this.threshold = threshold;
+		this.autoCreate = autoCreate;
+	}
+	
+	/**
+	 * @param table sanitised table name
+	 * @return whether the indexes of the given table have been registered
+	 */
+	public synchronized boolean isTableRegistered(String table)
+	{
+		return tables.containsKey(table);
+	}
+	
+	/**
+	 * Registers an existing index. Must be called for all indexes of a table (including the primary key) before queries on it are observed.
+	 * 
+	 * @param table sanitised table name
+	 * @param indexName
+	 * @param columns sanitised names of the indexed columns, in index order
+	 */
+	public synchronized void registerIndex(String table, String indexName, List<String> columns)
+	{
+		if(!columns.isEmpty())
+			getTableStats(table).indexes.put(indexName, new IndexUsage(table, indexName, columns, false));
+	}
+	
+	/**
+	 * @param table sanitised table name
+	 * @param shape
+	 * @return a new recommendation if this observation caused the threshold to be reached for an unserved shape, {@code null} otherwise
+	 */
+	public synchronized Recommendation observe(String table, QueryShape shape)
+	{
+		TableStats stats = getTableStats(table);
+		stats.queries++;
+		if(shape.isEmpty())
+			return null; // nothing an index could help with
+		
+		// Count usage of the indexes which can serve the shape:
+		boolean served = false;
+		for(IndexUsage usage : stats.indexes.values())
+			if(shape.isServedBy(usage.columns))
+			{
+				usage.hits++;
+				served = true;
+			}
+		if(served)
+			return null;
+		
+		// Count unserved shape:
+		String key = shape.toString();
+		Recommendation recommendation = stats.unserved.get(key);
+		if(recommendation == null)
+		{
+			recommendation = new Recommendation(table, shape.getCandidateColumns());
+			stats.unserved.put(key, recommendation);
+		}
+		return ++recommendation.observations == threshold ? recommendation : null;
+	}
+	
+	/**
+	 * Marks the given recommendation as implemented, the advised index will be registered and used to serve subsequent observations.
+	 * 
+	 * @param recommendation
+	 */
+	public synchronized void indexCreated(Recommendation recommendation)
+	{
+		recommendation.created = true;
+		getTableStats(recommendation.table).indexes.put(recommendation.getIndexName(), new IndexUsage(recommendation.table, recommendation.getIndexName(), recommendation.columns, true));
+	}
+	
+	private TableStats getTableStats(String table)
+	{
+		TableStats stats = tables.get(table);
+		if(stats == null)
+		{
+			stats = new TableStats();
+			tables.put(table, stats);
+		}
+		return stats;
+	}
+	
+	/**
+	 * @return all recommendations for which the threshold has been reached, including those that have been implemented
+	 */
+	public synchronized List<Recommendation> getRecommendations()
+	{
+		List<Recommendation> recommendations = new ArrayList<Recommendation>();
+		for(TableStats stats : tables.values())
+			for(Recommendation recommendation : stats.unserved.values())
+				if(recommendation.observations >= threshold)
+					recommendations.add(recommendation.copy());
+		return recommendations;
+	}
+	
+	/**
+	 * @return usage statistics of all registered indexes
+	 */
+	public synchronized List<IndexUsage> getIndexUsage()
+	{
+		List<IndexUsage> usages = new ArrayList<IndexUsage>();
+		for(TableStats stats : tables.values())
+			for(IndexUsage usage : stats.indexes.values())
+				usages.add(usage.copy());
+		return usages;
+	}
+	
+	/**
+	 * Forgets all observations, recommendations and registered indexes.
+	 */
+	public synchronized void reset()
+	{
+		tables.clear();
+	}
+	
+	/**
+	 * @return a textual report of recommendations and index usage
+	 */
+	@Override
+	public synchronized String toString()
+	{
+		StringBuilder bldr = new StringBuilder();
+		bldr.append(String.format(Locale.ROOT, "Index advisor (threshold: %d, auto-create: %b):%n", threshold, autoCreate));
+		for(Map.Entry<String, TableStats> entry : tables.entrySet())
+		{
+			TableStats stats = entry.getValue();
+			bldr.append(String.format(Locale.ROOT, "  %s (%d queries):%n", entry.getKey(), stats.queries));
+			for(IndexUsage usage : stats.indexes.values())
+				bldr.append("    ").append(usage).append(String.format("%n"));
+			for(Recommendation recommendation : stats.unserved.values())
+				if(recommendation.observations >= threshold)
+					bldr.append("    ").append(recommendation).append(String.format("%n"));
+		}
+		return bldr.toString();
+	}
+	
+	/**
+	 * Per-table observations.
+	 */
+	static private final class TableStats
+	{
+		
+		long queries = 0;
+		final Map<String, IndexUsage> indexes = new LinkedHashMap<String, IndexUsage>();
+		final Map<String, Recommendation> unserved = new LinkedHashMap<String, Recommendation>();
+		
+	}
+	
+	/**
+	 * The columns of a query which an index could be used for.
+	 */
+	static public final class QueryShape
+	{
+		
+		private final SortedSet<String> equalityColumns = new TreeSet<String>(); // sorted so that the order of the constraints does not matter
+		private String rangeColumn = null;
+		private final List<String> orderColumns = new ArrayList<String>();
+		
+		public void addEqualityColumn(String column)
+		{
+			equalityColumns.add(column);
+		}
+		
+		/**
+		 * Only the first range column is retained, as an index lookup can use at most one.
+		 * 
+		 * @param column
+		 */
+		public void addRangeColumn(String column)
+		{
+			if(rangeColumn == null)
+				rangeColumn = column;
+		}
+		
+		public void addOrderColumn(String column)
+		{
+			orderColumns.add(column);
+		}
+		
+		public boolean isEmpty()
+		{
+			return equalityColumns.isEmpty() && rangeColumn == null && orderColumns.isEmpty();
+		}
+		
+		/**
+		 * @param indexColumns
+		 * @return whether an index on the given columns can be used to look up (or order) the rows of a query of this shape
+		 */
+		public boolean isServedBy(List<String> indexColumns)
+		{
+			String first = indexColumns.get(0);
+			if(!equalityColumns.isEmpty())
+				return equalityColumns.contains(first);
+			if(rangeColumn != null)
+				return rangeColumn.equals(first);
+			return orderColumns.get(0).equals(first);
+		}
+		
+		/**
+		 * @return the columns of an index which would serve this shape
+		 */
+		public List<String> getCandidateColumns()
+		{
+			List<String> columns = new ArrayList<String>(equalityColumns);
+			if(rangeColumn != null)
+			{
+				if(!columns.contains(rangeColumn))
+					columns.add(rangeColumn);
+			}
+			else
+				for(String orderCol : orderColumns)
+					if(!columns.contains(orderCol))
+						columns.add(orderCol);
+			return columns;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return "eq" + equalityColumns + " range[" + (rangeColumn != null ? rangeColumn : "") + "] order" + orderColumns;
+		}
+		
+	}
+	
+	/**
+	 * Recommendation for an index on a table.
+	 */
+	static public final class Recommendation
+	{
+		
+		public final String table;
+		public final List<String> columns;
+		private long observations = 0;
+		private boolean created = false;
+		
+		private Recommendation(String table, List<String> columns)
+		{
+			this.table = table;
+			this.columns = Collections.unmodifiableList(columns);
+		}
+		
+		private Recommendation copy()
+		{
+			Recommendation copy = new Recommendation(table, columns);
+			copy.observations = observations;
+			copy.created = created;
+			return copy;
+		}
+		
+		/**
+		 * @return an (unsanitised) name for the advised index, e.g. "Advised-Correspondent_ID-Received"
+		 */
+		public String getIndexName()
+		{
+			StringBuilder bldr = new StringBuilder(ADVISED_INDEX_NAME_PREFIX);
+			for(String column : columns)
+				bldr.append('-').append(column.replace("\"", ""));
+			return bldr.toString();
+		}
+		
+		/**
+		 * @return number of times the unserved shape was observed (before the index was created)
+		 */
+		public long getObservations()
+		{
+			return observations;
+		}
+		
+		/**
+		 * @return whether the advised index has been created
+		 */
+		public boolean isCreated()
+		{
+			return created;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return String.format(Locale.ROOT, "%s index on %s%s (unserved queries: %d)", created ? "Created" : "Recommended", table, columns, observations);
+		}
+		
+	}
+	
+	/**
+	 * Usage statistics of an index.
+	 */
+	static public final class IndexUsage
+	{
+		
+		public final String table;
+		public final String indexName;
+		public final List<String> columns;
+		public final boolean advised;
+		private long hits = 0;
+		
+		private IndexUsage(String table, String indexName, List<String> columns, boolean advised)
+		{
+			this.table = table;
+			this.indexName = indexName;
+			this.columns = Collections.unmodifiableList(new ArrayList<String>(columns));
+			this.advised = advised;
+		}
+		
+		private IndexUsage copy()
+		{
+			IndexUsage copy = new IndexUsage(table, indexName, columns, advised);
+			copy.hits = hits;
+			return copy;
+		}
+		
+		/**
+		 * @return number of observed queries the index could serve
+		 */
+		public long getHits()
+		{
+			return hits;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return String.format(Locale.ROOT, "%s%s%s used by %d queries", indexName, columns, advised ? " (advised)" : "", hits);
+		}
+		
+	}
+
+}
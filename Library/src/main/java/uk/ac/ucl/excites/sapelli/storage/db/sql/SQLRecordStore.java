@@ -32,6 +32,7 @@ import java.util.Set;
 
 import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
 import uk.ac.ucl.excites.sapelli.shared.util.CollectionUtils;
+import uk.ac.ucl.excites.sapelli.shared.util.Metrics;
 import uk.ac.ucl.excites.sapelli.shared.util.Objects;
 import uk.ac.ucl.excites.sapelli.shared.util.TransactionalStringBuilder;
 import uk.ac.ucl.excites.sapelli.storage.StorageClient;
@@ -102,6 +103,16 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 	// STATIC ------------------------------------------------------------
 	static protected final String SPACE = " ";
 	
+	// Metric names (see StorageClient#enableMetrics()):
+	static public final String METRIC_STORE = "storage.sql.store";
+	static public final String METRIC_INSERT = "storage.sql.insert";
+	static public final String METRIC_DELETE = "storage.sql.delete";
+	static public final String METRIC_SELECT = "storage.sql.select";
+	static public final String METRIC_SELECT_STREAMING = "storage.sql.select.streaming";
+	static public final String METRIC_SELECT_REFERENCES = "storage.sql.select.references";
+	static public final String METRIC_SELECT_SINGLE = "storage.sql.select.single";
+	static public final String METRIC_SELECTED_RECORDS = "storage.sql.selected.records";
+	
 	// DYNAMIC -----------------------------------------------------------
 	private STable modelsTable;
 	private STable schemataTable;
@@ -146,6 +157,8 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 	 */
 	private final Set<String> protectedTables = new HashSet<String>();
 	
+	private volatile IndexAdvisor indexAdvisor = null;
+	
 	/**
 	 * @param client
 	 * @param valuePlaceHolder - may be null if no parameters are to be used on (all) SQL statements/queries (only literal values)
@@ -283,6 +296,36 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 		return super.isStorable(record, isInitialising()); // allow storing of meta records only during initialisation/upgrade
 	}
 	
+	/**
+	 * Starts (or restarts) observing the queries run against record tables in order to recommend, and optionally create, secondary indexes.
+	 * 
+	 * Advised indexes are created on the database level only (i.e. they are not added to the {@link Schema}, which is sealed), and remain
+	 * in the database after the advisor is disabled.
+	 * 
+	 * @param threshold number of times a query shape which cannot be served by an existing index must be observed before an index is recommended for it
+	 * @param autoCreate whether or not recommended indexes should be created automatically
+	 * @return the (new) advisor
+	 * @see IndexAdvisor
+	 */
+	public IndexAdvisor enableIndexAdvisor(int threshold, boolean autoCreate)
+	{
+		indexAdvisor = new IndexAdvisor(threshold, autoCreate);
+		return indexAdvisor;
+	}
+	
+	public void disableIndexAdvisor()
+	{
+		indexAdvisor = null;
+	}
+	
+	/**
+	 * @return the current index advisor, or {@code null} if it is disabled
+	 */
+	public IndexAdvisor getIndexAdvisor()
+	{
+		return indexAdvisor;
+	}
+	
 	protected abstract void executeSQL(String sql) throws DBException;
 	
 	protected abstract int executeSQLReturnAffectedRows(String sql) throws DBException;
@@ -640,7 +683,16 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 	@Override
 	protected Boolean doStore(Record record) throws DBException, IllegalStateException
 	{
-		return getTable(record.getSchema(), true).store(record, true); // getTable() will create table in db if it is not there
+		Metrics.Timer timer = client.getMetrics().timer(METRIC_STORE);
+		long start = timer.start();
+		try
+		{
+			return getTable(record.getSchema(), true).store(record, true); // getTable() will create table in db if it is not there
+		}
+		finally
+		{
+			timer.stop(start);
+		}
 	}
 	
 	/* (non-Javadoc)
@@ -649,7 +701,17 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 	@Override
 	protected boolean doInsert(Record record) throws DBPrimaryKeyException, DBConstraintException, DBException, IllegalStateException
 	{
-		Boolean inserted = getTable(record.getSchema(), true).store(record, false); // getTable() will create table in db if it is not there
+		Metrics.Timer timer = client.getMetrics().timer(METRIC_INSERT);
+		long start = timer.start();
+		Boolean inserted;
+		try
+		{
+			inserted = getTable(record.getSchema(), true).store(record, false); // getTable() will create table in db if it is not there
+		}
+		finally
+		{
+			timer.stop(start);
+		}
 		if(inserted == null)
 			return false; // record was already stored with identical values
 		if(inserted) // new record was inserted
@@ -661,8 +723,17 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 	@Override
 	protected boolean doDelete(Record record) throws DBException
 	{
-		STable table = getTable(record.getSchema(), false); // no need to create the table in the db if it isn't there!
-		return table.isInDB() && table.delete(record);
+		Metrics.Timer timer = client.getMetrics().timer(METRIC_DELETE);
+		long start = timer.start();
+		try
+		{
+			STable table = getTable(record.getSchema(), false); // no need to create the table in the db if it isn't there!
+			return table.isInDB() && table.delete(record);
+		}
+		finally
+		{
+			timer.stop(start);
+		}
 	}
 	
 	/**
@@ -675,9 +746,18 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 	@Override
 	public void delete(RecordReference recordRef) throws DBException
 	{
-		STable table = getTable(recordRef.getReferencedSchema(), false); // no need to create the table in the db if it isn't there!
-		if(table.isInDB() && table.delete(recordRef))
-			client.storageEvent(RecordOperation.Deleted, recordRef, this); // inform client
+		Metrics.Timer timer = client.getMetrics().timer(METRIC_DELETE);
+		long start = timer.start();
+		try
+		{
+			STable table = getTable(recordRef.getReferencedSchema(), false); // no need to create the table in the db if it isn't there!
+			if(table.isInDB() && table.delete(recordRef))
+				client.storageEvent(RecordOperation.Deleted, recordRef, this); // inform client
+		}
+		finally
+		{
+			timer.stop(start);
+		}
 	}
 	
 	/**
@@ -719,19 +799,79 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 	 */
 	@Override
 	public List<Record> retrieveRecords(RecordsQuery query)
+	{
+		Metrics metrics = client.getMetrics();
+		Metrics.Timer timer = metrics.timer(METRIC_SELECT);
+		long start = timer.start();
+		try
+		{
+			// Get schemata:
+			Collection<Schema> schemata = getSchemata(query.getSource());
+			
+			// Retrieve records:
+			List<Record> records = retrieveRecordValueSets(query, schemata, recordSelectRunner);
+			
+			// Apply cross-schema sorting if needed:
+			if(query.isOrdered() && schemata.size() > 1)
+				query.getOrder().sort(records);
+			
+			// Return result:
+			metrics.counter(METRIC_SELECTED_RECORDS).add(records.size());
+			return records;
+		}
+		finally
+		{
+			timer.stop(start);
+		}
+	}
+	
+	/**
+	 * Unless cross-schema sorting is required, records are passed to the handler straight from the
+	 * per-table result sets, without the whole result ever being held in memory.
+	 * 
+	 * @see uk.ac.ucl.excites.sapelli.storage.db.RecordStore#retrieveRecords(uk.ac.ucl.excites.sapelli.storage.queries.RecordsQuery, uk.ac.ucl.excites.sapelli.storage.db.RecordStore.RecordHandler)
+	 */
+	@Override
+	public boolean retrieveRecords(RecordsQuery query, RecordHandler handler)
+	{
+		Metrics.Timer timer = client.getMetrics().timer(METRIC_SELECT_STREAMING);
+		long start = timer.start();
+		try
+		{
+			return retrieveRecordsStreaming(query, handler);
+		}
+		finally
+		{
+			timer.stop(start);
+		}
+	}
+	
+	private boolean retrieveRecordsStreaming(RecordsQuery query, RecordHandler handler)
 	{
 		// Get schemata:
 		Collection<Schema> schemata = getSchemata(query.getSource());
 		
-		// Retrieve records:
-		List<Record> records = retrieveRecordValueSets(query, schemata, recordSelectRunner);
-		
-		// Apply cross-schema sorting if needed:
+		// Check if cross-schema sorting is needed:
 		if(query.isOrdered() && schemata.size() > 1)
-			query.getOrder().sort(records);
+			return super.retrieveRecords(query, handler); // sorting requires all records to be retrieved first
 		
-		// Return result:
-		return records;
+		// Run subqueries for each schema in the query, or all known schemata (if the query is for "any" schema):
+		for(Schema s : schemata)
+		{
+			try
+			{
+				STable table = getTable(s, false);
+				if(!table.isInDB())
+					continue; // table does no exist in DB, so there are no records to retrieve
+				if(!table.select(query, handler))
+					return false; // handler asked to stop
+			}
+			catch(DBException dbE)
+			{
+				client.logError("Error in retrieveRecords(RecordsQuery, RecordHandler)", dbE);
+			}
+		}
+		return true;
 	}
 	
 	/* (non-Javadoc)
@@ -739,6 +879,20 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 	 */
 	@Override
 	public List<RecordReference> retrieveRecordReferences(RecordsQuery query)
+	{
+		Metrics.Timer timer = client.getMetrics().timer(METRIC_SELECT_REFERENCES);
+		long start = timer.start();
+		try
+		{
+			return doRetrieveRecordReferences(query);
+		}
+		finally
+		{
+			timer.stop(start);
+		}
+	}
+	
+	private List<RecordReference> doRetrieveRecordReferences(RecordsQuery query)
 	{
 		// Get schemata:
 		Collection<Schema> schemata = getSchemata(query.getSource());
@@ -803,6 +957,20 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 	 */
 	@Override
 	public Record retrieveRecord(SingleRecordQuery query)
+	{
+		Metrics.Timer timer = client.getMetrics().timer(METRIC_SELECT_SINGLE);
+		long start = timer.start();
+		try
+		{
+			return doRetrieveRecord(query);
+		}
+		finally
+		{
+			timer.stop(start);
+		}
+	}
+	
+	private Record doRetrieveRecord(SingleRecordQuery query)
 	{
 		List<Record> candidates = null;
 		// Run subqueries for each schema in the query, or all known schemata (if the query is for "any" schema):
@@ -1326,6 +1494,7 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 		@SuppressWarnings("unchecked")
 		public int delete(RecordsQuery query) throws DBException
 		{
+			adviseIndexes(query);
 			return executeSQLReturnAffectedRows(new RecordsDeleteHelper((STable) this, query).getQuery());
 		}
 		
@@ -1340,9 +1509,26 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 		@SuppressWarnings("unchecked")
 		public List<Record> select(RecordsQuery query) throws DBException
 		{
+			adviseIndexes(query);
 			return executeRecordSelection(new RecordValueSetSelectHelper<Record>((STable) this, recordSelectionProjection, query));
 		}
 		
+		/**
+		 * Selects {@link Record}s from the database table based on a {@link RecordsQuery} and passes them to the given {@link RecordHandler}.
+		 * Assumes the table exists in the database!
+		 * 
+		 * @param query
+		 * @param handler
+		 * @return whether all selected records were passed to the handler ({@code true}), or the handler asked to stop early ({@code false})
+		 * @throws DBException
+		 */
+		@SuppressWarnings("unchecked")
+		public boolean select(RecordsQuery query, RecordHandler handler) throws DBException
+		{
+			adviseIndexes(query);
+			return executeRecordSelection(new RecordValueSetSelectHelper<Record>((STable) this, recordSelectionProjection, query), handler);
+		}
+		
 		/**
 		 * Selects {@link RecordReference}s from the database table based on a {@link RecordsQuery}.
 		 * Assumes the table exists in the database!
@@ -1354,6 +1540,7 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 		@SuppressWarnings("unchecked")
 		public List<RecordReference> selectReferences(RecordsQuery query) throws DBException
 		{
+			adviseIndexes(query);
 			return executeRecordSelection(new RecordValueSetSelectHelper<RecordReference>((STable) this, recordReferenceSelectionProjection, query));
 		}
 		
@@ -1387,6 +1574,78 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 			return results != null /* just in case */ && !results.isEmpty() ? results.get(0) : null;
 		}
 		
+		/**
+		 * Passes the shape of the given query to the {@link IndexAdvisor} (if enabled) and creates the
+		 * recommended index if the observation causes its threshold to be reached and auto-creation is enabled.
+		 * Failure to create an index is logged but does not affect the query.
+		 * 
+		 * @param query
+		 */
+		@SuppressWarnings("unchecked")
+		protected void adviseIndexes(RecordsQuery query)
+		{
+			IndexAdvisor advisor = indexAdvisor;
+			if(advisor == null)
+				return;
+			if(!advisor.isTableRegistered(sanitisedName))
+				registerIndexes(advisor);
+			IndexAdvisor.Recommendation recommendation = advisor.observe(sanitisedName, new QueryShapeHelper((STable) this, query).shape);
+			if(recommendation != null && advisor.autoCreate)
+			{
+				try
+				{
+					executeSQL(generateCreateAdvisedIndexStatement(recommendation));
+					advisor.indexCreated(recommendation);
+				}
+				catch(DBException e)
+				{
+					client.logError("Failed to create advised index " + recommendation.getIndexName() + " on table " + sanitisedName, e);
+				}
+			}
+		}
+		
+		/**
+		 * Registers the indexes of the schema (including the primary key) with the given advisor.
+		 * 
+		 * @param advisor
+		 */
+		private void registerIndexes(IndexAdvisor advisor)
+		{
+			for(Index idx : schema.getIndexes(true))
+			{
+				List<String> idxColumns = new ArrayList<String>();
+				for(Column<?> idxCol : idx.getColumns(false))
+				{
+					List<SColumn> idxSCols = getSQLColumns(idxCol);
+					if(idxSCols != null)
+						for(SColumn idxSCol : idxSCols)
+							if(idxSCol != null)
+								idxColumns.add(idxSCol.sanitisedName);
+				}
+				advisor.registerIndex(sanitisedName, idx.getName(), idxColumns);
+			}
+		}
+		
+		/**
+		 * @param recommendation
+		 * @return sql statement to create the advised index (if it does not exist yet)
+		 */
+		protected String generateCreateAdvisedIndexStatement(IndexAdvisor.Recommendation recommendation)
+		{
+			TransactionalStringBuilder bldr = new TransactionalStringBuilder(SPACE);
+			bldr.append("CREATE INDEX IF NOT EXISTS");
+			bldr.append(sanitiseIdentifier(getUnsanitisedName() + "_" + recommendation.getIndexName()));
+			bldr.append("ON");
+			bldr.append(sanitisedName);
+			bldr.append("(");
+			bldr.openTransaction(", ");
+			for(String column : recommendation.columns)
+				bldr.append(column);
+			bldr.commitTransaction(false);
+			bldr.append(");", false);
+			return bldr.toString();
+		}
+		
 		/**
 		 * @return true if the table is empty (i.e. containing 0 records) or does not exist in the DB
 		 * @throws DBException
@@ -1445,6 +1704,23 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 		 */
 		protected abstract <R extends RecordValueSet<?>> List<R> executeRecordSelection(RecordValueSetSelectHelper<R> recordValueSetSelectHelper) throws DBException;
 		
+		/**
+		 * Default implementation first selects all records and then passes them to the handler.
+		 * Subclasses should override this to pass records on as they are read from the result set.
+		 * 
+		 * @param recordSelectHelper
+		 * @param handler
+		 * @return whether all selected records were passed to the handler ({@code true}), or the handler asked to stop early ({@code false})
+		 * @throws DBException
+		 */
+		protected boolean executeRecordSelection(RecordValueSetSelectHelper<Record> recordSelectHelper, RecordHandler handler) throws DBException
+		{
+			for(Record record : executeRecordSelection(recordSelectHelper))
+				if(!handler.handle(record))
+					return false;
+			return true;
+		}
+		
 		/**
 		 * Release any resources associated with this table
 		 */
@@ -2539,6 +2815,106 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 
 	}
 	
+	/**
+	 * Helper class which determines the {@link IndexAdvisor.QueryShape} of a {@link RecordsQuery} on a table.
+	 * 
+	 * Only the top-level conjunction of constraints is considered: columns compared under an OR or NOT, with a
+	 * bit flag constraint, or with other columns contribute nothing because an index lookup could not be used for them.
+	 */
+	protected class QueryShapeHelper implements ConstraintVisitor
+	{
+		
+		protected final STable table;
+		public final IndexAdvisor.QueryShape shape = new IndexAdvisor.QueryShape();
+		
+		public QueryShapeHelper(STable table, RecordsQuery query)
+		{
+			this.table = table;
+			// WHERE:
+			Constraint.Accept(query.getConstraints(), this);
+			// ORDER BY:
+			for(Order.Ordering ordering : query.getOrder().getOrderings())
+			{
+				if(!(ordering instanceof Order.ColumnOrdering))
+					continue; // skip ModelSchemaOrderings
+				for(SColumn sqlCol : getSQLColumns(((Order.ColumnOrdering) ordering).getBy(), true))
+					shape.addOrderColumn(sqlCol.sanitisedName);
+			}
+		}
+		
+		/**
+		 * @param cp
+		 * @param valueComparison whether the column is compared with a (non-null) value, rather than with null
+		 * @return the SColumn(s) which a constraint or ordering on the given column translates to
+		 */
+		private List<SColumn> getSQLColumns(ColumnPointer<?> cp, boolean valueComparison)
+		{
+			List<SColumn> sqlCols = new ArrayList<SColumn>();
+			SColumn sqlCol = table.getSQLColumn(cp);
+			if(sqlCol != null && !(sqlCol.isBoolColForAllOptionalValueSetCol() && valueComparison))
+				sqlCols.add(sqlCol);
+			else if(cp.getColumn() instanceof ValueSetColumn<?, ?>)
+			{	// Composite column (which is split up in the SQLTable):
+				CollectionUtils.addAllIgnoreNull(sqlCols, table.getSQLColumns((ValueSetColumn<?, ?>) cp.getColumn()));
+			}
+			return sqlCols;
+		}
+		
+		@Override
+		public void visit(AndConstraint andConstr)
+		{
+			for(Constraint subConstr : andConstr.getSubConstraints())
+				subConstr.accept(this);
+		}
+		
+		@Override
+		public void visit(OrConstraint orConstr)
+		{
+			// does not contribute
+		}
+		
+		@Override
+		public void visit(NotConstraint notConstr)
+		{
+			// does not contribute
+		}
+		
+		@Override
+		public void visit(EqualityConstraint equalityConstr)
+		{
+			if(equalityConstr.isEqual())
+				for(SColumn sqlCol : getSQLColumns(equalityConstr.getColumnPointer(), equalityConstr.getValue() != null))
+					shape.addEqualityColumn(sqlCol.sanitisedName);
+		}
+		
+		@Override
+		public void visit(RuleConstraint ruleConstr)
+		{
+			if(ruleConstr.isRHSColumn() || ruleConstr.getComparison() == Comparison.NOT_EQUAL)
+				return;
+			SColumn lhsSCol = table.getSQLColumn(ruleConstr.getLHSColumnPointer());
+			if(lhsSCol == null)
+				return;
+			if(ruleConstr.getComparison() == Comparison.EQUAL)
+				shape.addEqualityColumn(lhsSCol.sanitisedName);
+			else
+				shape.addRangeColumn(lhsSCol.sanitisedName);
+		}
+		
+		@Override
+		public void visit(BitFlagConstraint bitFlagConstr)
+		{
+			// does not contribute
+		}
+		
+		@Override
+		public void visit(DummyConstraint dummyConstr)
+		{
+			// does not contribute
+		}
+		
+	}
+	
 	/**
 	 * Interface that provides the projection(String) for different kinds of SELECT queries, used by SelectHelper.
 	 * 
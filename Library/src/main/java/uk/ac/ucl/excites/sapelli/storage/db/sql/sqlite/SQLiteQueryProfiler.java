@@ -0,0 +1,347 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Records the execution times of the SQL statements run by a {@link SQLiteRecordStore}, aggregated per "shape" (i.e. normalised SQL).
+ * 
+ * Executions which take longer than a threshold are considered "slow". For those the actual SQL and bound arguments are kept
+ * (up to a maximum number of samples per shape), and the {@code EXPLAIN QUERY PLAN} output is captured (once per shape).
+ * 
+ * Note that query plans are obtained with unbound parameters. Because SQLite plans prepared statements without looking at the
+ * parameter values (unless it was compiled with SQLITE_ENABLE_STAT4) this normally yields the plan that was actually used.
+ * 
+ * All methods are synchronised.
+ * 
+ * @see SQLiteRecordStore#enableQueryProfiling(long)
+ * @see <a href="https://www.sqlite.org/eqp.html">EXPLAIN QUERY PLAN</a>
+ */
+public final class SQLiteQueryProfiler
+{
+
+	// STATIC -------------------------------------------------------
+	static public final int DEFAULT_MAX_SAMPLES_PER_SHAPE = 5;
+	
+	static private final double NANOS_PER_MS = 1000000.0d;
+	
+	static private final Pattern STRING_LITERAL_PATTERN = Pattern.compile("'(?:[^']|'')*'");
+	static private final Pattern NUMBER_LITERAL_PATTERN = Pattern.compile("(?<![\\w.])\\d+(?:\\.\\d+)?(?![\\w.])");
+	static private final Pattern PARAMETER_LIST_PATTERN = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)+\\s*\\)");
+	static private final Pattern WHITESPACE_PATTERN = Pattern.compile("\\s+");
+	
+	/**
+	 * Normalises the given SQL so that statements which only differ in literal values, the length of parameter lists or whitespace have the same shape.
+	 * 
+	 * @param sql
+	 * @return the shape of the SQL statement
+	 */
+	static public String Normalise(String sql)
+	{
+		String shape = STRING_LITERAL_PATTERN.matcher(sql).replaceAll("?");
+		shape = NUMBER_LITERAL_PATTERN.matcher(shape).replaceAll("?");
+		shape = PARAMETER_LIST_PATTERN.matcher(shape).replaceAll("(?, ...)");
+		shape = WHITESPACE_PATTERN.matcher(shape).replaceAll(" ").trim();
+		return shape;
+	}
+	
+	// DYNAMIC ------------------------------------------------------
+	private final long slowThresholdNS;
+	private final int maxSamplesPerShape;
+	private final Map<String, Shape> shapes = new HashMap<String, Shape>();
+	
+	/**
+	 * @param slowThresholdMS executions which take at least this many milliseconds are considered slow (0 means all executions are)
+	 */
+	public SQLiteQueryProfiler(long slowThresholdMS)
+	{
+		this(slowThresholdMS, DEFAULT_MAX_SAMPLES_PER_SHAPE);
+	}
+	
+	/**
+	 * @param slowThresholdMS executions which take at least this many milliseconds are considered slow (0 means all executions are)
+	 * @param maxSamplesPerShape maximum number of slow executions to keep per shape (the most recent ones are kept)
+	 */
+	public SQLiteQueryProfiler(long slowThresholdMS, int maxSamplesPerShape)
+	{
+		if(slowThresholdMS < 0)
+			throw new IllegalArgumentException("Threshold cannot be negative");
+		if(maxSamplesPerShape < 0)
+			throw new IllegalArgumentException("maxSamplesPerShape cannot be negative");
+		this.slowThresholdNS = slowThresholdMS * (long) NANOS_PER_MS;
+		this.maxSamplesPerShape = maxSamplesPerShape;
+	}
+	
+	/**
+	 * @return the threshold (in milliseconds) above which executions are considered slow
+	 */
+	public long getSlowThresholdMS()
+	{
+		return slowThresholdNS / (long) NANOS_PER_MS;
+	}
+	
+	/**
+	 * Records an execution of the given SQL statement.
+	 * 
+	 * @param sql
+	 * @param durationNS
+	 * @return whether the execution was slow, if it was the caller should follow up with a call of {@link #recordSlowExecution(String, long, List, List)}
+	 */
+	public synchronized boolean record(String sql, long durationNS)
+	{
+		String shapeSQL = Normalise(sql);
+		Shape shape = shapes.get(shapeSQL);
+		if(shape == null)
+		{
+			shape = new Shape(shapeSQL);
+			shapes.put(shapeSQL, shape);
+		}
+		shape.executions++;
+		shape.totalNS += durationNS;
+		if(durationNS > shape.maxNS)
+			shape.maxNS = durationNS;
+		return durationNS >= slowThresholdNS;
+	}
+	
+	/**
+	 * @param sql
+	 * @return whether the query plan for the shape of the given SQL still needs to be captured
+	 */
+	public synchronized boolean needsQueryPlan(String sql)
+	{
+		Shape shape = shapes.get(Normalise(sql));
+		return shape == null || shape.queryPlan == null;
+	}
+	
+	/**
+	 * Records the details of a slow execution of the given SQL statement, which must have been passed to {@link #record(String, long)} first.
+	 * 
+	 * @param sql
+	 * @param durationNS
+	 * @param arguments the bound arguments, as SQL literals
+	 * @param queryPlan the {@code EXPLAIN QUERY PLAN} output (one String per row), may be null if it was already captured or could not be obtained
+	 */
+	public synchronized void recordSlowExecution(String sql, long durationNS, List<String> arguments, List<String> queryPlan)
+	{
+		Shape shape = shapes.get(Normalise(sql));
+		if(shape == null)
+			throw new IllegalStateException("Execution was not recorded");
+		shape.slowExecutions++;
+		if(queryPlan != null && shape.queryPlan == null)
+			shape.queryPlan = Collections.unmodifiableList(new ArrayList<String>(queryPlan));
+		if(maxSamplesPerShape > 0)
+		{
+			if(shape.samples.size() == maxSamplesPerShape)
+				shape.samples.removeFirst();
+			shape.samples.addLast(new SlowExecution(sql, arguments, durationNS, System.currentTimeMillis()));
+		}
+	}
+	
+	/**
+	 * @return statistics for all shapes, in descending order of total execution time
+	 */
+	public synchronized List<QueryStats> getStats()
+	{
+		List<QueryStats> stats = new ArrayList<QueryStats>(shapes.size());
+		for(Shape shape : shapes.values())
+			stats.add(new QueryStats(shape));
+		Collections.sort(stats, new Comparator<QueryStats>()
+		{
+			@Override
+			public int compare(QueryStats lhs, QueryStats rhs)
+			{
+				return lhs.totalNS == rhs.totalNS ? 0 : (lhs.totalNS > rhs.totalNS ? -1 : 1);
+			}
+		});
+		return stats;
+	}
+	
+	/**
+	 * @return statistics for all shapes with at least 1 slow execution, in descending order of total execution time
+	 */
+	public List<QueryStats> getSlowQueryStats()
+	{
+		List<QueryStats> slow = new ArrayList<QueryStats>();
+		for(QueryStats stats : getStats())
+			if(stats.slowExecutions > 0)
+				slow.add(stats);
+		return slow;
+	}
+	
+	/**
+	 * Discards all recorded statistics.
+	 */
+	public synchronized void reset()
+	{
+		shapes.clear();
+	}
+	
+	/**
+	 * @return a human-readable report of all slow queries
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder bldr = new StringBuilder();
+		for(QueryStats stats : getSlowQueryStats())
+			bldr.append(stats.toString());
+		return bldr.toString();
+	}
+	
+	/**
+	 * Mutable aggregate for a single shape.
+	 */
+	static private final class Shape
+	{
+		
+		final String shape;
+		long executions = 0;
+		long slowExecutions = 0;
+		long totalNS = 0;
+		long maxNS = 0;
+		List<String> queryPlan = null;
+		final Deque<SlowExecution> samples = new ArrayDeque<SlowExecution>();
+		
+		Shape(String shape)
+		{
+			this.shape = shape;
+		}
+		
+	}
+	
+	/**
+	 * Statistics for a single SQL shape.
+	 */
+	static public final class QueryStats
+	{
+		
+		public final String shape;
+		public final long executions;
+		public final long slowExecutions;
+		public final long totalNS;
+		public final long maxNS;
+		
+		/**
+		 * {@code EXPLAIN QUERY PLAN} output (one String per row), or {@code null} if there have not been any slow executions
+		 */
+		public final List<String> queryPlan;
+		
+		/**
+		 * The most recent slow executions, oldest first
+		 */
+		public final List<SlowExecution> samples;
+		
+		private QueryStats(Shape shape)
+		{
+			this.shape = shape.shape;
+			this.executions = shape.executions;
+			this.slowExecutions = shape.slowExecutions;
+			this.totalNS = shape.totalNS;
+			this.maxNS = shape.maxNS;
+			this.queryPlan = shape.queryPlan;
+			this.samples = Collections.unmodifiableList(new ArrayList<SlowExecution>(shape.samples));
+		}
+		
+		public double getTotalMS()
+		{
+			return totalNS / NANOS_PER_MS;
+		}
+		
+		public double getMeanMS()
+		{
+			return executions == 0 ? 0.0d : totalNS / NANOS_PER_MS / executions;
+		}
+		
+		public double getMaxMS()
+		{
+			return maxNS / NANOS_PER_MS;
+		}
+		
+		/**
+		 * @return whether the query plan contains a full table scan (i.e. a SCAN step which does not use an index)
+		 */
+		public boolean hasFullScan()
+		{
+			if(queryPlan != null)
+				for(String step : queryPlan)
+					if(step.startsWith("SCAN ") && !step.contains(" USING "))
+						return true;
+			return false;
+		}
+		
+		@Override
+		public String toString()
+		{
+			StringBuilder bldr = new StringBuilder();
+			bldr.append(String.format(Locale.ROOT, "%s%n  executions=%d slow=%d total=%.1f ms mean=%.3f ms max=%.3f ms%s%n", shape, executions, slowExecutions, getTotalMS(), getMeanMS(), getMaxMS(), hasFullScan() ? " FULL SCAN" : ""));
+			if(queryPlan != null)
+				for(String step : queryPlan)
+					bldr.append("  plan: ").append(step).append(String.format("%n"));
+			for(SlowExecution sample : samples)
+				bldr.append(String.format(Locale.ROOT, "  sample: %.3f ms, arguments: %s%n", sample.getDurationMS(), sample.arguments));
+			return bldr.toString();
+		}
+		
+	}
+	
+	/**
+	 * A single slow execution.
+	 */
+	static public final class SlowExecution
+	{
+		
+		public final String sql;
+		
+		/**
+		 * Bound arguments, as SQL literals
+		 */
+		public final List<String> arguments;
+		public final long durationNS;
+		
+		/**
+		 * Time at which the execution was recorded (ms since the epoch)
+		 */
+		public final long recordedAt;
+		
+		private SlowExecution(String sql, List<String> arguments, long durationNS, long recordedAt)
+		{
+			this.sql = sql;
+			this.arguments = arguments != null ? Collections.unmodifiableList(new ArrayList<String>(arguments)) : Collections.<String> emptyList();
+			this.durationNS = durationNS;
+			this.recordedAt = recordedAt;
+		}
+		
+		public double getDurationMS()
+		{
+			return durationNS / NANOS_PER_MS;
+		}
+		
+	}
+	
+}
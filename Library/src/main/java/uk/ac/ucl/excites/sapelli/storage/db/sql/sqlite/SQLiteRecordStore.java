@@ -110,6 +110,7 @@ public abstract class SQLiteRecordStore extends SQLRecordStore<SQLiteRecordStore
 	
 	// Dynamics---------------------------------------------
 	private final SQLiteTableFactory factory;
+	private volatile SQLiteQueryProfiler queryProfiler = null;
 	
 	/**
 	 * @param client
@@ -298,6 +299,94 @@ public abstract class SQLiteRecordStore extends SQLRecordStore<SQLiteRecordStore
 	 */
 	protected abstract SQLiteCursor executeQuery(String sql, List<SQLiteColumn<?, ?>> paramCols, List<? extends Object> sapArguments) throws DBException;
 	
+	/**
+	 * Starts (or restarts) timing all statements run against record tables, slow ones are captured with their arguments & query plan.
+	 * 
+	 * @param slowThresholdMS statements which take at least this many milliseconds are considered slow
+	 * @return the (new) profiler
+	 * @see SQLiteQueryProfiler
+	 */
+	public SQLiteQueryProfiler enableQueryProfiling(long slowThresholdMS)
+	{
+		queryProfiler = new SQLiteQueryProfiler(slowThresholdMS);
+		return queryProfiler;
+	}
+	
+	public void disableQueryProfiling()
+	{
+		queryProfiler = null;
+	}
+	
+	/**
+	 * @return the current profiler, or {@code null} if query profiling is disabled
+	 */
+	public SQLiteQueryProfiler getQueryProfiler()
+	{
+		return queryProfiler;
+	}
+	
+	/**
+	 * Records the execution of a statement with the query profiler (if enabled).
+	 * 
+	 * @param start value of {@link System#nanoTime()} before the statement was executed
+	 * @param sql
+	 * @param paramCols
+	 * @param sapArguments the bound arguments, may be null if they were retrieved from recordOrReference
+	 * @param recordOrReference the record(reference) from which the bound arguments were retrieved, may be null if sapArguments is not
+	 */
+	protected void profile(long start, String sql, List<SQLiteColumn<?, ?>> paramCols, List<? extends Object> sapArguments, RecordValueSet<?> recordOrReference)
+	{
+		SQLiteQueryProfiler profiler = queryProfiler;
+		if(profiler == null)
+			return;
+		long durationNS = System.nanoTime() - start;
+		if(!profiler.record(sql, durationNS))
+			return; // not slow
+		// Get arguments:
+		List<String> arguments = new ArrayList<String>();
+		if(paramCols != null)
+			for(int p = 0; p < paramCols.size(); p++)
+				arguments.add(sapArguments != null ?
+								paramCols.get(p).sapelliObjectToLiteral(sapArguments.get(p), true) :
+								paramCols.get(p).retrieveAsLiteral(recordOrReference, true));
+		// Get query plan (once per shape):
+		profiler.recordSlowExecution(sql, durationNS, arguments, profiler.needsQueryPlan(sql) ? explainQueryPlan(sql) : null);
+	}
+	
+	/**
+	 * Note: the query plan is obtained with unbound parameters.
+	 * 
+	 * @param sql
+	 * @return the detail column of each row returned by {@code EXPLAIN QUERY PLAN}, or {@code null} if the query plan could not be obtained
+	 * @see <a href="https://www.sqlite.org/eqp.html">EXPLAIN QUERY PLAN</a>
+	 */
+	protected List<String> explainQueryPlan(String sql)
+	{
+		SQLiteCursor cursor = null;
+		try
+		{
+			SQLiteStringColumn<String> detailCol = new SQLiteStringColumn<String>(this, "detail", null, null);
+			cursor = executeQuery(	"EXPLAIN QUERY PLAN " + sql,
+									Collections.<SQLiteColumn<?, ?>> emptyList(),
+									Collections.<String> emptyList());
+			List<String> plan = new ArrayList<String>();
+			if(cursor != null)
+				while(cursor.moveToNext())
+					CollectionUtils.addIgnoreNull(plan, detailCol.getValueOrNull(cursor, 3)); // detail is the 4th column
+			return plan;
+		}
+		catch(Exception e)
+		{
+			client.logError("Error in explainQueryPlan()", e);
+			return null;
+		}
+		finally
+		{
+			if(cursor != null)
+				cursor.close();
+		}
+	}
+	
 	@SuppressWarnings("unused")
 	protected String getQueryLogMessage(String sql, List<SQLiteColumn<?, ?>> paramCols, List<? extends Object> sapArguments) throws DBException
 	{
@@ -474,7 +563,10 @@ public abstract class SQLiteRecordStore extends SQLRecordStore<SQLiteRecordStore
 			statement.retrieveAndBindAll(recordOrReference);
 			
 			//	Execute:
-			return statement.executeLongQuery();
+			long start = System.nanoTime();
+			Long result = statement.executeLongQuery();
+			profile(start, statement.getSQL(), statement.paramCols, null, recordOrReference);
+			return result;
 		}
 		
 		/* (non-Javadoc)
@@ -517,7 +609,9 @@ public abstract class SQLiteRecordStore extends SQLRecordStore<SQLiteRecordStore
 				startTransaction();
 			
 			// Execute:
+			long start = System.nanoTime();
 			long rowID = insertStatement.executeInsert();
+			profile(start, insertStatement.getSQL(), insertStatement.paramCols, null, record);
 			
 			// Perform various checks & set autoIncr PK value if needed:
 			if(boundROWID != null)
@@ -577,7 +671,10 @@ public abstract class SQLiteRecordStore extends SQLRecordStore<SQLiteRecordStore
 			updateStatement.retrieveAndBindAll(record);
 			
 			// Execute:
-			return updateStatement.executeUpdate() == 1;
+			long start = System.nanoTime();
+			int affected = updateStatement.executeUpdate();
+			profile(start, updateStatement.getSQL(), updateStatement.paramCols, null, record);
+			return affected == 1;
 		}
 		
 		public synchronized void upsert(Record record) throws DBException
@@ -599,7 +696,10 @@ public abstract class SQLiteRecordStore extends SQLRecordStore<SQLiteRecordStore
 			deleteStatement.retrieveAndBindAll(recordOrReference);
 			
 			// Execute:
-			return deleteStatement.executeDelete() == 1;
+			long start = System.nanoTime();
+			int affected = deleteStatement.executeDelete();
+			profile(start, deleteStatement.getSQL(), deleteStatement.paramCols, null, recordOrReference);
+			return affected == 1;
 		}
 		
 		/* (non-Javadoc)
@@ -607,6 +707,7 @@ public abstract class SQLiteRecordStore extends SQLRecordStore<SQLiteRecordStore
 		 */
 		public synchronized int delete(RecordsQuery query) throws DBException
 		{
+			adviseIndexes(query);
 			RecordsDeleteHelper deleteHelper = new RecordsDeleteHelper(this, query);
 			SQLiteStatement deleteByQStatement = generateStatement(deleteHelper.getQuery(), deleteHelper.getParameterColumns());
 			
@@ -614,7 +715,9 @@ public abstract class SQLiteRecordStore extends SQLRecordStore<SQLiteRecordStore
 			deleteByQStatement.bindAll(deleteHelper.getSapArguments());
 			
 			// Execute:
+			long start = System.nanoTime();
 			int affected = deleteByQStatement.executeDelete();
+			profile(start, deleteHelper.getQuery(), deleteHelper.getParameterColumns(), deleteHelper.getSapArguments(), null);
 			
 			// Close statement:
 			deleteByQStatement.close();
@@ -630,6 +733,7 @@ public abstract class SQLiteRecordStore extends SQLRecordStore<SQLiteRecordStore
 		protected <R extends RecordValueSet<?>> List<R> executeRecordSelection(RecordValueSetSelectHelper<R> recordValueSetSelectHelper) throws DBException
 		{
 			SQLiteCursor cursor = null;
+			long start = System.nanoTime();
 			try
 			{
 				// Execute query (also binds parameters) to get cursor:
@@ -656,6 +760,43 @@ public abstract class SQLiteRecordStore extends SQLRecordStore<SQLiteRecordStore
 			{
 				if(cursor != null)
 					cursor.close(); // !!!
+				profile(start, recordValueSetSelectHelper.getQuery(), recordValueSetSelectHelper.getParameterColumns(), recordValueSetSelectHelper.getSapArguments(), null);
+			}
+		}
+		
+		/* (non-Javadoc)
+		 * @see uk.ac.ucl.excites.sapelli.storage.db.sql.SQLRecordStore.SQLTable#executeRecordSelection(uk.ac.ucl.excites.sapelli.storage.db.sql.SQLRecordStore.RecordValueSetSelectHelper, uk.ac.ucl.excites.sapelli.storage.db.RecordStore.RecordHandler)
+		 */
+		@Override
+		protected boolean executeRecordSelection(RecordValueSetSelectHelper<Record> recordSelectHelper, RecordHandler handler) throws DBException
+		{
+			SQLiteCursor cursor = null;
+			long start = System.nanoTime(); // (time includes handling of the records)
+			try
+			{
+				// Execute query (also binds parameters) to get cursor:
+				cursor = executeQuery(recordSelectHelper.getQuery(), recordSelectHelper.getParameterColumns(), recordSelectHelper.getSapArguments());
+				// Deal with cursor:
+				if(cursor == null || !cursor.hasRow())
+					// No results:
+					return true;
+				// Process cursor rows, creating records and passing them to the handler one at a time:
+				while(cursor.moveToNext())
+				{
+					Record record = recordSelectHelper.projection.createRecordValueSet();
+					int i = 0;
+					for(SQLiteColumn<?, ?> sqliteCol : recordSelectHelper.projection.getProjectionColumns())
+						sqliteCol.store(record, cursor, i++);
+					if(!handler.handle(record))
+						return false;
+				}
+				return true;
+			}
+			finally
+			{
+				if(cursor != null)
+					cursor.close(); // !!!
+				profile(start, recordSelectHelper.getQuery(), recordSelectHelper.getParameterColumns(), recordSelectHelper.getSapArguments(), null);
 			}
 		}
 		
@@ -665,7 +806,11 @@ public abstract class SQLiteRecordStore extends SQLRecordStore<SQLiteRecordStore
 		@Override
 		public synchronized long getRecordCount() throws DBException
 		{
-			return countStatementHandle.getStatement().executeLongQuery();
+			SQLiteStatement countStatement = countStatementHandle.getStatement();
+			long start = System.nanoTime();
+			Long count = countStatement.executeLongQuery();
+			profile(start, countStatement.getSQL(), null, null, null);
+			return count;
 		}
 		
 		@Override
@@ -858,8 +1003,8 @@ public abstract class SQLiteRecordStore extends SQLRecordStore<SQLiteRecordStore
 			PrimaryKey pk = table.schema.getPrimaryKey();
 			if(!pk.isMultiColumn())
 			{
-				SQLiteColumn<?, ?> pkSQLiteColumn = table.getSQLColumn(pk.getColumns(false).get(0));
-				if(pkSQLiteColumn.type.equalsIgnoreCase(SQLiteIntegerColumn.SQLITE_DATA_TYPE))
+				SQLiteColumn<?, ?> pkSQLiteColumn = table.getSQLColumn(pk.getColumns(false).get(0)); // null if the column is a composite (e.g. a ForeignKeyColumn), which maps to several SQLite columns
+				if(pkSQLiteColumn != null && pkSQLiteColumn.type.equalsIgnoreCase(SQLiteIntegerColumn.SQLITE_DATA_TYPE))
 					table.rowidAliasColumn = (SQLiteIntegerColumn<?>) pkSQLiteColumn;
 			}
 		}
@@ -86,7 +86,7 @@ public class SQLiteBlobColumn<SapType> extends SQLiteRecordStore.SQLiteColumn<by
 	protected String sqlToLiteral(byte[] value, boolean quotedIfNeeded)
 	{
 		if(value != null)
-			return 'x' + SQLiteRecordStore.QUOTE_CHAR + Hex.encodeHexString(value) + SQLiteRecordStore.QUOTE_CHAR;
+			return "x" + SQLiteRecordStore.QUOTE_CHAR + Hex.encodeHexString(value) + SQLiteRecordStore.QUOTE_CHAR;
 		else
 			return SQLiteRecordStore.NULL_STRING;
 	}
@@ -42,6 +42,19 @@ public class ExportResult
 		return new ExportResult(exportedRecords, folder.getAbsolutePath(), files, null, 0);
 	}
 	
+	/**
+	 * For use by streaming exports, which do not keep hold of the exported records.
+	 * 
+	 * @param numberOfExportedRecords
+	 * @param folder
+	 * @param files
+	 * @return
+	 */
+	static public ExportResult Success(int numberOfExportedRecords, File folder, List<File> files)
+	{
+		return new ExportResult(null, numberOfExportedRecords, folder.getAbsolutePath(), files, null, 0);
+	}
+	
 	static public ExportResult PartialFailure(List<Record> exportedRecords, String destination, Exception reason, int numberOfUnexportedRecords)
 	{
 		return new ExportResult(exportedRecords, destination, null, reason, numberOfUnexportedRecords);
@@ -52,6 +65,21 @@ public class ExportResult
 		return new ExportResult(exportedRecords, folder.getAbsolutePath(), files, reason, numberOfUnexportedRecords);
 	}
 	
+	/**
+	 * For use by streaming exports, which do not keep hold of the exported records.
+	 * 
+	 * @param numberOfExportedRecords
+	 * @param folder
+	 * @param files
+	 * @param reason
+	 * @param numberOfUnexportedRecords
+	 * @return
+	 */
+	static public ExportResult PartialFailure(int numberOfExportedRecords, File folder, List<File> files, Exception reason, int numberOfUnexportedRecords)
+	{
+		return new ExportResult(null, numberOfExportedRecords, folder.getAbsolutePath(), files, reason, numberOfUnexportedRecords);
+	}
+	
 	static public ExportResult Failure(String destination, Exception reason, int numberOfUnexportedRecords)
 	{
 		return new ExportResult(null, destination, null, reason, numberOfUnexportedRecords);
@@ -69,6 +97,7 @@ public class ExportResult
 	
 	// DYNAMICS------------------------------------------------------
 	private final List<Record> exportedRecords;
+	private final int numberOfExportedRecords;
 	private final String destination;
 	private final List<File> files;
 	private final Exception failureReason;
@@ -81,8 +110,22 @@ public class ExportResult
 	 * @param failureReason
 	 */
 	private ExportResult(List<Record> exportedRecords, String destination, List<File> files, Exception failureReason, int numberOfUnexportedRecords)
+	{
+		this(exportedRecords, exportedRecords != null ? exportedRecords.size() : 0, destination, files, failureReason, numberOfUnexportedRecords);
+	}
+	
+	/**
+	 * @param exportedRecords may be null
+	 * @param numberOfExportedRecords
+	 * @param destination
+	 * @param files
+	 * @param failureReason
+	 * @param numberOfUnexportedRecords
+	 */
+	private ExportResult(List<Record> exportedRecords, int numberOfExportedRecords, String destination, List<File> files, Exception failureReason, int numberOfUnexportedRecords)
 	{
 		this.exportedRecords = exportedRecords;
+		this.numberOfExportedRecords = numberOfExportedRecords;
 		this.destination = destination;
 		this.files = files;
 		this.failureReason = failureReason;
@@ -94,11 +137,11 @@ public class ExportResult
 	 */
 	public int getNumberedOfExportedRecords()
 	{
-		return getExportedRecords().size();
+		return numberOfExportedRecords;
 	}
 
 	/**
-	 * @return the successfully exported records
+	 * @return the successfully exported records (empty for streaming exports, which only keep count)
 	 */
 	public List<Record> getExportedRecords()
 	{
@@ -35,7 +35,11 @@ public interface Exporter
 	static public enum Format
 	{
 		XML,
-		CSV
+		CSV,
+		/**
+		 * Compressed binary format, see {@link uk.ac.ucl.excites.sapelli.storage.eximport.binary.BinaryRecordsExporter}
+		 */
+		BINARY
 	}
 	
 	/**
@@ -45,4 +49,20 @@ public interface Exporter
 	 */
 	public ExportResult export(List<Record> records, String description);
 	
+	/**
+	 * Callback interface for reporting the progress of an export.
+	 */
+	public interface ProgressCallback
+	{
+		
+		/**
+		 * Called on the thread which started the export.
+		 * 
+		 * @param exportedCount number of records exported so far
+		 * @param totalCount total number of (exportable) records to export
+		 */
+		public void exportProgress(int exportedCount, int totalCount);
+		
+	}
+	
 }
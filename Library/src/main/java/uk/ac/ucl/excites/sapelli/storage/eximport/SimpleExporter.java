@@ -20,11 +20,14 @@ package uk.ac.ucl.excites.sapelli.storage.eximport;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.joda.time.DateTime;
 
 import uk.ac.ucl.excites.sapelli.shared.io.FileStorageException;
 import uk.ac.ucl.excites.sapelli.shared.io.text.FileWriter;
+import uk.ac.ucl.excites.sapelli.shared.util.Metrics;
 import uk.ac.ucl.excites.sapelli.storage.visitors.SimpleSchemaTraverser;
 
 /**
@@ -36,12 +39,29 @@ import uk.ac.ucl.excites.sapelli.storage.visitors.SimpleSchemaTraverser;
  */
 public abstract class SimpleExporter extends SimpleSchemaTraverser implements Exporter
 {
+	
+	// STATIC -------------------------------------------------------
+	/**
+	 * Creates a bounded pool of worker threads for parallel exports.
+	 * 
+	 * @param maxThreads maximum number of worker threads
+	 * @param numberOfTasks number of tasks that will be submitted (no more threads than this are started)
+	 * @return
+	 */
+	static protected ExecutorService CreateExecutor(int maxThreads, int numberOfTasks)
+	{
+		return Executors.newFixedThreadPool(Math.max(1, Math.min(maxThreads, numberOfTasks)));
+	}
+	
+	// DYNAMIC ------------------------------------------------------
 
 	protected File exportFolder;
 	protected boolean forceExportUnexportable = false;
 	
 	protected FileWriter writer = null;
 	
+	protected Metrics metrics = Metrics.DISABLED;
+	
 	/**
 	 * @return the forceExportUnexportable
 	 */
@@ -58,6 +78,29 @@ public abstract class SimpleExporter extends SimpleSchemaTraverser implements Ex
 		this.forceExportUnexportable = forceExportUnexportable;
 	}
 	
+	/**
+	 * @param metrics the metrics registry in which to record export durations & numbers of exported records (may be null)
+	 */
+	public void setMetrics(Metrics metrics)
+	{
+		this.metrics = metrics != null ? metrics : Metrics.DISABLED;
+	}
+	
+	/**
+	 * Records the duration of a (completed) export in the timer with the given name, and the number of exported records in the counter with the same name plus ".records".
+	 * 
+	 * @param metricName
+	 * @param start value returned by {@link Metrics.Timer#start()} at the start of the export
+	 * @param result
+	 * @return the given result
+	 */
+	protected ExportResult recordMetrics(String metricName, long start, ExportResult result)
+	{
+		metrics.timer(metricName).stop(start);
+		metrics.counter(metricName + ".records").add(result.getNumberedOfExportedRecords());
+		return result;
+	}
+	
 	protected abstract void openWriter(String description, DateTime timestamp) throws IOException, FileStorageException;
 	
 	protected abstract void closeWriter();
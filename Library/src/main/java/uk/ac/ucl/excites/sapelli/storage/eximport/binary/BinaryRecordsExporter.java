@@ -0,0 +1,413 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ *
+ * Copyright 2012-2016 University College London - ExCiteS group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.storage.eximport.binary;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
+
+import uk.ac.ucl.excites.sapelli.shared.compression.CompressorFactory;
+import uk.ac.ucl.excites.sapelli.shared.compression.CompressorFactory.Compression;
+import uk.ac.ucl.excites.sapelli.shared.io.BitOutputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.BitWrapOutputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.FileHelpers;
+import uk.ac.ucl.excites.sapelli.shared.io.FileStorageException;
+import uk.ac.ucl.excites.sapelli.shared.io.StreamHelpers;
+import uk.ac.ucl.excites.sapelli.shared.util.Metrics;
+import uk.ac.ucl.excites.sapelli.shared.util.TimeUtils;
+import uk.ac.ucl.excites.sapelli.storage.StorageClient;
+import uk.ac.ucl.excites.sapelli.storage.eximport.ExportResult;
+import uk.ac.ucl.excites.sapelli.storage.eximport.Exporter;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.util.UnexportableRecordsException;
+
+/**
+ * Class to export {@link Record}s to compact, self-describing binary files, which can be re-imported by {@link BinaryRecordsImporter}.
+ *
+ * <p>File layout (all multi-byte numbers are big-endian, as written by {@link DataOutputStream}):<br/>
+ * 	- header: {@link #MAGIC_BYTES}, format version (byte), exportedAt time (UTF), {@link Compression} mode name (UTF), number of models (int);<br/>
+ * 	- for each model: model ID (long), length (int) of the serialised model (see {@link StorageClient#serialiseModel(Model)}; 0 if unavailable), serialised model bytes;<br/>
+ * 	- any number of blocks, each: {@link #BLOCK_MARKER}, model ID (long), model schema number (int), number of records (int), length (int) of the block data, block data;<br/>
+ * 	- {@link #END_MARKER}.<br/>
+ * The data of each block holds up to {@link #DEFAULT_BLOCK_SIZE} records of the same schema, each losslessly encoded using
+ * {@link Record#writeToBitStream(BitOutputStream)}, back to back, and compressed as a whole using the file's compression mode.
+ * Because blocks are independent they can be encoded (and decoded) in parallel, and a file can be read as a stream.</p>
+ */
+public class BinaryRecordsExporter implements Exporter
+{
+
+	// STATIC -------------------------------------------------------
+	static public final String FILE_EXTENSION = "srb";
+
+	static public final byte[] MAGIC_BYTES = "SapelliRecords".getBytes(Charset.forName("UTF-8"));
+
+	static public final byte FORMAT_VERSION = 1;
+
+	static public final byte BLOCK_MARKER = 1;
+
+	static public final byte END_MARKER = 0;
+
+	static public final Compression DEFAULT_COMPRESSION = Compression.DEFLATE;
+
+	/**
+	 * Maximum number of records per block.
+	 */
+	static public final int DEFAULT_BLOCK_SIZE = 1024;
+
+	/**
+	 * Maximum number of blocks (per worker thread) encoded ahead of the one being written during a parallel export.
+	 */
+	static public final int MAX_BLOCKS_AHEAD_PER_THREAD = 2;
+
+	/**
+	 * Name of the timer (and, with ".records" appended, of the counter) in which exports are recorded, see {@link #setMetrics(Metrics)}.
+	 */
+	static public final String METRIC_EXPORT = "export.binary";
+
+	// DYNAMIC ------------------------------------------------------
+	private final File exportFolder;
+	private final StorageClient client;
+	private final Compression compression;
+	private final int blockSize;
+	private boolean forceExportUnexportable = false;
+	private Metrics metrics = null;
+
+	/**
+	 * @param exportFolder
+	 * @param client used to serialise models into the file header, may be null (in which case the models must be known to the importing client)
+	 */
+	public BinaryRecordsExporter(File exportFolder, StorageClient client)
+	{
+		this(exportFolder, client, DEFAULT_COMPRESSION, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param exportFolder
+	 * @param client used to serialise models into the file header, may be null (in which case the models must be known to the importing client)
+	 * @param compression
+	 * @param blockSize maximum number of records per block
+	 */
+	public BinaryRecordsExporter(File exportFolder, StorageClient client, Compression compression, int blockSize)
+	{
+		if(exportFolder == null)
+			throw new NullPointerException("Provide a non-null export folder!");
+		if(blockSize < 1)
+			throw new IllegalArgumentException("Block size must be at least 1");
+		this.exportFolder = exportFolder;
+		this.client = client;
+		this.compression = compression != null ? compression : DEFAULT_COMPRESSION;
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * @return the forceExportUnexportable
+	 */
+	public boolean isForceExportUnexportable()
+	{
+		return forceExportUnexportable;
+	}
+
+	/**
+	 * @param forceExportUnexportable the forceExportUnexportable to set
+	 */
+	public void setForceExportUnexportable(boolean forceExportUnexportable)
+	{
+		this.forceExportUnexportable = forceExportUnexportable;
+	}
+
+	/**
+	 * @param metrics the metrics registry in which to record export durations & numbers of exported records, when null (the default) that of the client is used (if there is one)
+	 */
+	public void setMetrics(Metrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.storage.eximport.Exporter#export(java.util.List, java.lang.String)
+	 */
+	@Override
+	public ExportResult export(List<Record> records, String description)
+	{
+		return export(records, description, 1, null);
+	}
+
+	/**
+	 * Parallel export, in which blocks are encoded & compressed by tasks running on a bounded pool of worker threads.
+	 * The blocks are written to the file in order, so the output is identical to that of {@link #export(List, String)}.
+	 *
+	 * @param records
+	 * @param description - may be null or empty
+	 * @param maxThreads maximum number of worker threads, when {@code <= 1} all blocks are encoded on the calling thread
+	 * @param callback may be null, otherwise it is informed (on the calling thread) each time a block of records has been written
+	 * @return
+	 */
+	public ExportResult export(List<Record> records, String description, int maxThreads, ProgressCallback callback)
+	{
+		Metrics metrics = this.metrics != null ? this.metrics : (client != null ? client.getMetrics() : Metrics.DISABLED);
+		Metrics.Timer timer = metrics.timer(METRIC_EXPORT);
+		long start = timer.start();
+		ExportResult result = doExport(records, description, maxThreads, callback);
+		timer.stop(start);
+		metrics.counter(METRIC_EXPORT + ".records").add(result.getNumberedOfExportedRecords());
+		return result;
+	}
+
+	private ExportResult doExport(List<Record> records, String description, int maxThreads, ProgressCallback callback)
+	{
+		if(records == null || records.isEmpty())
+			return ExportResult.NothingToExport();
+
+		// Split exportable records into blocks (per schema) & gather models:
+		List<List<Record>> blocks = getBlocks(records);
+		Set<Model> models = new LinkedHashSet<Model>();
+		int totalCount = 0;
+		for(List<Record> block : blocks)
+		{
+			models.add(block.get(0).getSchema().model);
+			totalCount += block.size();
+		}
+		if(blocks.isEmpty())
+			return getResult(records.size(), Collections.<Record> emptyList(), null, null);
+
+		// Encode blocks on worker threads (unless we are to do everything on this thread), with no more than maxInFlight blocks submitted ahead of the one being written:
+		ExecutorService executor = maxThreads > 1 ? Executors.newFixedThreadPool(Math.min(maxThreads, blocks.size())) : null;
+		int maxInFlight = Math.max(1, maxThreads) * MAX_BLOCKS_AHEAD_PER_THREAD;
+		Deque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>(maxInFlight);
+		int submitted = 0;
+
+		// Write file:
+		File exportFile = getExportFile(description, DateTime.now());
+		DataOutputStream out = null;
+		List<Record> exported = new ArrayList<Record>(totalCount);
+		try
+		{
+			if(!FileHelpers.createDirectory(exportFolder))
+				throw new FileStorageException("Export folder (" + exportFolder + ") does not exist and could not be created!");
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(exportFile)));
+			writeHeader(out, models);
+			for(int b = 0; b < blocks.size(); b++)
+			{
+				List<Record> block = blocks.get(b);
+				byte[] blockData;
+				if(executor != null)
+					try
+					{
+						while(submitted < blocks.size() && inFlight.size() < maxInFlight)
+							inFlight.addLast(submitEncodeTask(executor, blocks.get(submitted++)));
+						blockData = inFlight.removeFirst().get();
+					}
+					catch(ExecutionException ee)
+					{
+						throw ee.getCause() instanceof Exception ? (Exception) ee.getCause() : ee;
+					}
+				else
+					blockData = encodeBlock(block);
+				Schema schema = block.get(0).getSchema();
+				out.writeByte(BLOCK_MARKER);
+				out.writeLong(schema.getModelID());
+				out.writeInt(schema.getModelSchemaNumber());
+				out.writeInt(block.size());
+				out.writeInt(blockData.length);
+				out.write(blockData);
+				exported.addAll(block);
+				if(callback != null)
+					callback.exportProgress(exported.size(), totalCount);
+			}
+			out.writeByte(END_MARKER);
+			out.close();
+			out = null;
+			// Result...
+			return getResult(records.size(), exported, exportFile, null);
+		}
+		catch(Exception e)
+		{
+			if(e instanceof InterruptedException)
+				Thread.currentThread().interrupt();
+			return getResult(records.size(), exported, exportFile, e);
+		}
+		finally
+		{
+			if(executor != null)
+				executor.shutdownNow();
+			StreamHelpers.SilentClose(out);
+		}
+	}
+
+	private File getExportFile(String description, DateTime timestamp)
+	{
+		return new File(
+			exportFolder + File.separator +
+			FileHelpers.makeValidFileName(
+				"Records_" + (description != null && !description.isEmpty() ? description + "_" : "") +
+				TimeUtils.getTimestampForFileName(timestamp) + "." + FILE_EXTENSION));
+	}
+
+	/**
+	 * Groups the exportable records by schema, in blocks of at most {@link #blockSize} records.
+	 *
+	 * @param records
+	 * @return
+	 */
+	private List<List<Record>> getBlocks(List<Record> records)
+	{
+		List<List<Record>> blocks = new ArrayList<List<Record>>();
+		List<Record> block = null;
+		for(Record r : sortBySchema(records))
+		{
+			// Skip unexportable records unless force not to:
+			if(!forceExportUnexportable && !r.getSchema().hasFlags(StorageClient.SCHEMA_FLAG_EXPORTABLE))
+				continue;
+			if(block == null || block.size() == blockSize || !block.get(0).getSchema().equals(r.getSchema()))
+			{
+				block = new ArrayList<Record>(blockSize);
+				blocks.add(block);
+			}
+			block.add(r);
+		}
+		return blocks;
+	}
+
+	private List<Record> sortBySchema(List<Record> records)
+	{
+		List<Record> sorted = new ArrayList<Record>(records);
+		Collections.sort(sorted, new Comparator<Record>()
+		{
+			Schema.Comparator schemaComparator = new Schema.Comparator();
+
+			@Override
+			public int compare(Record r1, Record r2)
+			{
+				return schemaComparator.compare(r1.getSchema(), r2.getSchema());
+			}
+		});
+		return sorted;
+	}
+
+	private void writeHeader(DataOutputStream out, Set<Model> models) throws IOException
+	{
+		out.write(MAGIC_BYTES);
+		out.writeByte(FORMAT_VERSION);
+		out.writeUTF(ExportedAtFormatter.print(DateTime.now()));
+		out.writeUTF(compression.name());
+		out.writeInt(models.size());
+		for(Model model : models)
+		{
+			byte[] serialisedModel = null;
+			if(client != null)
+				try
+				{
+					serialisedModel = client.serialiseModel(model);
+				}
+				catch(Exception e)
+				{
+					// the importing client will have to know the model
+				}
+			out.writeLong(model.id);
+			out.writeInt(serialisedModel != null ? serialisedModel.length : 0);
+			if(serialisedModel != null)
+				out.write(serialisedModel);
+		}
+	}
+
+	private Future<byte[]> submitEncodeTask(ExecutorService executor, final List<Record> block)
+	{
+		return executor.submit(new Callable<byte[]>()
+		{
+			@Override
+			public byte[] call() throws IOException
+			{
+				return encodeBlock(block);
+			}
+		});
+	}
+
+	/**
+	 * Encodes the given records, which must all be of the same schema, and compresses the result.
+	 *
+	 * @param block
+	 * @return
+	 * @throws IOException
+	 */
+	private byte[] encodeBlock(List<Record> block) throws IOException
+	{
+		ByteArrayOutputStream rawOut = new ByteArrayOutputStream();
+		BitOutputStream out = null;
+		try
+		{
+			out = new BitWrapOutputStream(CompressorFactory.getCompressorOutputStream(compression, rawOut));
+			for(Record r : block)
+				r.writeToBitStream(out);
+			out.close(); // pads up to byte boundary & finishes compression
+			return rawOut.toByteArray();
+		}
+		finally
+		{
+			StreamHelpers.SilentClose(out);
+		}
+	}
+
+	private ExportResult getResult(int totalCount, List<Record> exported, File exportFile, Exception failure)
+	{
+		if(failure == null && exported.size() == totalCount)
+			return ExportResult.Success(exported, exportFolder, Collections.singletonList(exportFile));
+		else if(failure == null)
+		{
+			int unexportedCount = totalCount - exported.size();
+			if(exported.isEmpty())
+				return ExportResult.Failure(exportFolder, new UnexportableRecordsException(unexportedCount), unexportedCount);
+			return ExportResult.PartialFailure(exported, exportFolder, Collections.singletonList(exportFile), new UnexportableRecordsException(unexportedCount), unexportedCount);
+		}
+		else
+		{
+			failure.printStackTrace(System.err);
+			if(!exported.isEmpty())
+				return ExportResult.PartialFailure(exported, exportFolder, Collections.singletonList(exportFile), failure, totalCount - exported.size());
+			else
+			{
+				if(exportFile != null)
+					FileUtils.deleteQuietly(exportFile);
+				return ExportResult.Failure(exportFolder, failure, totalCount);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,355 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ *
+ * Copyright 2012-2016 University College London - ExCiteS group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.storage.eximport.binary;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import uk.ac.ucl.excites.sapelli.shared.compression.CompressorFactory;
+import uk.ac.ucl.excites.sapelli.shared.compression.CompressorFactory.Compression;
+import uk.ac.ucl.excites.sapelli.shared.io.BitInputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.BitWrapInputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.FileHelpers;
+import uk.ac.ucl.excites.sapelli.shared.io.StreamHelpers;
+import uk.ac.ucl.excites.sapelli.shared.util.ExceptionHelpers;
+import uk.ac.ucl.excites.sapelli.shared.util.WarningKeeper.WarningKeeperImpl;
+import uk.ac.ucl.excites.sapelli.storage.StorageClient;
+import uk.ac.ucl.excites.sapelli.storage.db.RecordStore.RecordHandler;
+import uk.ac.ucl.excites.sapelli.storage.eximport.Exporter;
+import uk.ac.ucl.excites.sapelli.storage.eximport.Importer;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.types.TimeStamp;
+import uk.ac.ucl.excites.sapelli.storage.util.UnknownModelException;
+
+/**
+ * Class to import {@link Record}s from binary files generated by {@link BinaryRecordsExporter} (see there for a description of the file layout).
+ *
+ * Models are looked up via the {@link StorageClient} first; only when it does not know a model the serialised copy in the file header is used.
+ */
+public class BinaryRecordsImporter extends WarningKeeperImpl implements Importer
+{
+
+	// STATIC -------------------------------------------------------
+	/**
+	 * Maximum number of blocks (per worker thread) read ahead of the ones being handled, see {@link #importInto(File, RecordHandler, int)}.
+	 */
+	static public final int MAX_BLOCKS_AHEAD_PER_THREAD = 2;
+
+	// DYNAMIC ------------------------------------------------------
+	protected final StorageClient client;
+
+	protected TimeStamp exportedAt;
+	protected int handledCount;
+
+	public BinaryRecordsImporter(StorageClient client)
+	{
+		this.client = client;
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.storage.eximport.Importer#importFrom(java.io.File)
+	 */
+	@Override
+	public List<Record> importFrom(File file) throws Exception
+	{
+		return importFrom(file, 1);
+	}
+
+	/**
+	 * @param file
+	 * @param maxThreads maximum number of blocks decoded concurrently
+	 * @return
+	 * @throws Exception
+	 * @see #importInto(File, RecordHandler, int)
+	 */
+	public List<Record> importFrom(File file, int maxThreads) throws Exception
+	{
+		final List<Record> records = new ArrayList<Record>();
+		importInto(file, new RecordHandler()
+		{
+			@Override
+			public boolean handle(Record record)
+			{
+				records.add(record);
+				return true;
+			}
+		}, maxThreads);
+		return records;
+	}
+
+	/**
+	 * Streaming import: blocks are read one by one and decoded (decompressed & deserialised) by tasks running on a bounded
+	 * pool of worker threads, while the decoded records are passed, in file order, to the given handler on the calling thread.
+	 * At most {@code maxThreads * }{@link #MAX_BLOCKS_AHEAD_PER_THREAD} blocks are held in memory at any time.
+	 *
+	 * Blocks of unknown models, or which cannot be decoded, are skipped and reported as warnings. Importing stops early if the handler returns {@code false}.
+	 *
+	 * @param file
+	 * @param handler
+	 * @param maxThreads maximum number of blocks decoded concurrently, when {@code <= 1} all blocks are decoded on the calling thread
+	 * @return the number of records passed to the handler
+	 * @throws Exception when the file cannot be read or is not a valid binary records export
+	 */
+	public int importInto(File file, RecordHandler handler, int maxThreads) throws Exception
+	{
+		clearWarnings();
+		exportedAt = null;
+		handledCount = 0;
+
+		DataInputStream in = null;
+		ExecutorService executor = maxThreads > 1 ? Executors.newFixedThreadPool(maxThreads) : null;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(FileHelpers.openInputStream(file, true)));
+
+			// Header:
+			byte[] magic = new byte[BinaryRecordsExporter.MAGIC_BYTES.length];
+			in.readFully(magic);
+			if(!Arrays.equals(magic, BinaryRecordsExporter.MAGIC_BYTES))
+				throw new IOException(file.getName() + " is not a binary records export");
+			byte version = in.readByte();
+			if(version > BinaryRecordsExporter.FORMAT_VERSION)
+				throw new IOException("Unsupported binary records export format version: " + version + " (highest supported version: " + BinaryRecordsExporter.FORMAT_VERSION + ").");
+			String exportedAtStr = in.readUTF();
+			try
+			{
+				exportedAt = new TimeStamp(Exporter.ExportedAtFormatter.withOffsetParsed().parseDateTime(exportedAtStr));
+			}
+			catch(Exception e)
+			{
+				addWarning("Error upon parsing exportedAt time: " + exportedAtStr);
+			}
+			final Compression compression = Compression.valueOf(in.readUTF());
+			Map<Long, Model> models = new HashMap<Long, Model>();
+			for(int m = in.readInt(); m > 0; m--)
+			{
+				long modelID = in.readLong();
+				byte[] serialisedModel = new byte[in.readInt()];
+				in.readFully(serialisedModel);
+				Model model = getModel(modelID, serialisedModel);
+				if(model != null)
+					models.put(modelID, model);
+			}
+
+			// Blocks:
+			LinkedList<PendingBlock> pending = new LinkedList<PendingBlock>();
+			int maxPending = Math.max(1, maxThreads) * MAX_BLOCKS_AHEAD_PER_THREAD;
+			int blockNo = 0;
+			while(true)
+			{
+				byte marker;
+				try
+				{
+					marker = in.readByte();
+				}
+				catch(EOFException eofe)
+				{
+					addWarning("File is truncated, records after block #" + blockNo + " are missing");
+					break;
+				}
+				if(marker == BinaryRecordsExporter.END_MARKER)
+					break;
+				if(marker != BinaryRecordsExporter.BLOCK_MARKER)
+					throw new IOException("Invalid block marker (" + marker + ") at block #" + (blockNo + 1));
+				blockNo++;
+
+				// Read block:
+				long modelID = in.readLong();
+				int modelSchemaNo = in.readInt();
+				final int numberOfRecords = in.readInt();
+				final byte[] blockData = new byte[in.readInt()];
+				in.readFully(blockData);
+
+				// Find schema:
+				Model model = models.get(modelID);
+				if(model == null)
+				{
+					addWarning("Skipping block #" + blockNo + " (" + numberOfRecords + " records) because model " + modelID + " is unknown");
+					continue;
+				}
+				final Schema schema;
+				try
+				{
+					schema = model.getSchema(modelSchemaNo);
+				}
+				catch(IndexOutOfBoundsException ioobe)
+				{
+					addWarning("Skipping block #" + blockNo + " (" + numberOfRecords + " records) because model " + modelID + " has no schema #" + modelSchemaNo);
+					continue;
+				}
+
+				// Decode block:
+				Callable<List<Record>> decoder = new Callable<List<Record>>()
+				{
+					@Override
+					public List<Record> call() throws IOException
+					{
+						return decodeBlock(schema, numberOfRecords, blockData, compression);
+					}
+				};
+				if(executor != null)
+					pending.add(new PendingBlock(blockNo, executor.submit(decoder)));
+				else
+				{
+					FutureTask<List<Record>> task = new FutureTask<List<Record>>(decoder);
+					task.run();
+					pending.add(new PendingBlock(blockNo, task));
+				}
+
+				// Hand over records of oldest block(s):
+				while(pending.size() >= maxPending)
+					if(!handOver(pending.removeFirst(), handler))
+						return handledCount;
+			}
+
+			// Hand over records of remaining blocks:
+			while(!pending.isEmpty())
+				if(!handOver(pending.removeFirst(), handler))
+					break;
+			return handledCount;
+		}
+		finally
+		{
+			if(executor != null)
+				executor.shutdownNow();
+			StreamHelpers.SilentClose(in);
+		}
+	}
+
+	/**
+	 * Waits for the given block to be decoded and passes its records to the handler.
+	 *
+	 * @param block
+	 * @param handler
+	 * @return whether or not the handler wants more records
+	 * @throws InterruptedException
+	 */
+	private boolean handOver(PendingBlock block, RecordHandler handler) throws InterruptedException
+	{
+		List<Record> records;
+		try
+		{
+			records = block.records.get();
+		}
+		catch(ExecutionException ee)
+		{
+			addWarning("Skipping block #" + block.blockNo + " because it could not be decoded: " + ExceptionHelpers.getMessageAndCause(ee.getCause()));
+			return true;
+		}
+		for(Record record : records)
+		{
+			handledCount++;
+			if(!handler.handle(record))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param modelID
+	 * @param serialisedModel may be empty
+	 * @return the model, or {@code null} if it is unknown and could not be deserialised
+	 */
+	private Model getModel(long modelID, byte[] serialisedModel)
+	{
+		try
+		{
+			return client.getModel(modelID);
+		}
+		catch(UnknownModelException ume)
+		{
+			if(serialisedModel.length > 0)
+				try
+				{
+					return client.deserialiseModel(serialisedModel);
+				}
+				catch(Exception e)
+				{
+					addWarning("Could not deserialise model " + modelID + ": " + ExceptionHelpers.getMessageAndCause(e));
+				}
+			return null;
+		}
+	}
+
+	static private List<Record> decodeBlock(Schema schema, int numberOfRecords, byte[] blockData, Compression compression) throws IOException
+	{
+		List<Record> records = new ArrayList<Record>(numberOfRecords);
+		BitInputStream in = null;
+		try
+		{
+			in = new BitWrapInputStream(CompressorFactory.getCompressorInputStream(compression, new ByteArrayInputStream(blockData)));
+			for(int r = 0; r < numberOfRecords; r++)
+			{
+				Record record = schema.createRecord();
+				record.readFromBitStream(in, true);
+				records.add(record);
+			}
+			return records;
+		}
+		finally
+		{
+			StreamHelpers.SilentClose(in);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.storage.eximport.Importer#getLastImportExportedAtTime()
+	 */
+	@Override
+	public TimeStamp getLastImportExportedAtTime()
+	{
+		return exportedAt;
+	}
+
+	/**
+	 * A block which is being, or has been, decoded.
+	 */
+	static private final class PendingBlock
+	{
+
+		final int blockNo;
+		final Future<List<Record>> records;
+
+		public PendingBlock(int blockNo, Future<List<Record>> records)
+		{
+			this.blockNo = blockNo;
+			this.records = records;
+		}
+
+	}
+
+}
@@ -18,23 +18,40 @@
 
 package uk.ac.ucl.excites.sapelli.storage.eximport.csv;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.Charsets;
+import org.apache.commons.io.FileUtils;
 import org.joda.time.DateTime;
 
 import uk.ac.ucl.excites.sapelli.shared.io.FileHelpers;
 import uk.ac.ucl.excites.sapelli.shared.io.FileStorageException;
+import uk.ac.ucl.excites.sapelli.shared.io.StreamHelpers;
 import uk.ac.ucl.excites.sapelli.shared.io.text.FileWriter;
+import uk.ac.ucl.excites.sapelli.shared.io.text.UnicodeBOM;
 import uk.ac.ucl.excites.sapelli.shared.util.StringUtils;
 import uk.ac.ucl.excites.sapelli.shared.util.TimeUtils;
 import uk.ac.ucl.excites.sapelli.storage.StorageClient;
+import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
+import uk.ac.ucl.excites.sapelli.storage.db.RecordStore.RecordHandler;
 import uk.ac.ucl.excites.sapelli.storage.eximport.ExportResult;
 import uk.ac.ucl.excites.sapelli.storage.eximport.SimpleExporter;
 import uk.ac.ucl.excites.sapelli.storage.eximport.helpers.ExportHelper;
@@ -48,6 +65,7 @@ import uk.ac.ucl.excites.sapelli.storage.model.Schema;
 import uk.ac.ucl.excites.sapelli.storage.model.ValueSet;
 import uk.ac.ucl.excites.sapelli.storage.model.ValueSetColumn;
 import uk.ac.ucl.excites.sapelli.storage.model.columns.StringColumn;
+import uk.ac.ucl.excites.sapelli.storage.queries.RecordsQuery;
 import uk.ac.ucl.excites.sapelli.storage.util.ColumnPointer;
 import uk.ac.ucl.excites.sapelli.storage.util.UnexportableRecordsException;
 
@@ -144,6 +162,16 @@ public class CSVRecordsExporter extends SimpleExporter
 	
 	static /*package*/ final String NON_NULL_SUB_VALUESET = Boolean.TRUE.toString();
 	
+	/**
+	 * Size (in chars) of the buffer used by streaming exports, see {@link #export(RecordStore, RecordsQuery, String)} & {@link #export(Iterator, String)}.
+	 */
+	static public final int STREAMING_WRITE_BUFFER_SIZE = 64 * 1024;
+	
+	/**
+	 * Name of the timer (and, with ".records" appended, of the counter) in which exports are recorded, see {@link #setMetrics(uk.ac.ucl.excites.sapelli.shared.util.Metrics)}.
+	 */
+	static public final String METRIC_EXPORT = "export.csv";
+	
 	// DYNAMICS------------------------------------------------------
 	private final Separator separator;
 	private final char[] avoidChars;
@@ -183,15 +211,36 @@ public class CSVRecordsExporter extends SimpleExporter
 	
 	@Override
 	protected void openWriter(String description, DateTime timestamp) throws IOException, FileStorageException
+	{
+		writer = new FileWriter(getExportFile(description, timestamp).getAbsolutePath(), Charsets.UTF_8);
+		writer.open(FileHelpers.FILE_EXISTS_STRATEGY_REPLACE, FileHelpers.FILE_DOES_NOT_EXIST_STRATEGY_CREATE);	
+	}
+	
+	/**
+	 * @param description
+	 * @param timestamp
+	 * @return the CSV file to export to
+	 * @throws FileStorageException when the export folder does not exist and could not be created
+	 */
+	private File getExportFile(String description, DateTime timestamp) throws FileStorageException
 	{
 		if(!FileHelpers.createDirectory(exportFolder))
 			throw new FileStorageException("Export folder (" + exportFolder + ") does not exist and could not be created!");
-		writer = new FileWriter(
+		return new File(
 			exportFolder + File.separator +
 			FileHelpers.makeValidFileName(
 				"Records_" + description + "_" +
-				TimeUtils.getTimestampForFileName(timestamp) + "." + FILE_EXTENSION), Charsets.UTF_8);
-		writer.open(FileHelpers.FILE_EXISTS_STRATEGY_REPLACE, FileHelpers.FILE_DOES_NOT_EXIST_STRATEGY_CREATE);	
+				TimeUtils.getTimestampForFileName(timestamp) + "." + FILE_EXTENSION));
+	}
+	
+	/**
+	 * @param description - may be null or empty
+	 * @param schema
+	 * @return the description to use in the name of the file records of the given schema are exported to
+	 */
+	private String getFileDescription(String description, Schema schema)
+	{
+		return (description != null && !description.isEmpty() ? description + "_" : "") + schema.getName();
 	}
 	
 	private void deleteFile()
@@ -219,6 +268,12 @@ public class CSVRecordsExporter extends SimpleExporter
 	 */
 	@Override
 	public ExportResult export(List<Record> records, String description)
+	{
+		long start = metrics.timer(METRIC_EXPORT).start();
+		return recordMetrics(METRIC_EXPORT, start, doExport(records, description));
+	}
+	
+	private ExportResult doExport(List<Record> records, String description)
 	{
 		if(records == null || records.isEmpty())
 			return ExportResult.NothingToExport();
@@ -227,6 +282,123 @@ public class CSVRecordsExporter extends SimpleExporter
 		DateTime timestamp = DateTime.now();
 		
 		// Group records by schema & filter out records of unexportable schemata:
+		Map<Schema, List<Record>> recordsBySchema = groupBySchema(records);
+		
+		// Export each group to a separate CSV file:
+		List<Record> exported = new ArrayList<Record>();
+		List<File> csvFiles = new ArrayList<File>();
+		valueStringProvider.reset();
+		for(Map.Entry<Schema, List<Record>> entry : recordsBySchema.entrySet())
+		{
+			try
+			{
+				csvFiles.add(exportSchema(entry.getKey(), entry.getValue(), description, timestamp));
+			}
+			catch(Exception e)
+			{
+				return getResult(records.size(), exported, csvFiles, e);
+			}
+			
+			// Add records exported for current schema to overall exported list:
+			exported.addAll(entry.getValue());
+			// TODO mark record as exported?
+		}
+		// Result...
+		return getResult(records.size(), exported, csvFiles, null);
+	}
+	
+	/**
+	 * Parallel export, in which the CSV file for each schema is written by a separate task on a bounded pool of worker threads.
+	 * 
+	 * @param records
+	 * @param description - may be null or empty
+	 * @param maxThreads maximum number of worker threads
+	 * @param callback may be null, otherwise it is informed (on the calling thread) each time a schema's CSV file has been completed
+	 * @return
+	 */
+	public ExportResult export(List<Record> records, String description, int maxThreads, ProgressCallback callback)
+	{
+		long start = metrics.timer(METRIC_EXPORT).start();
+		return recordMetrics(METRIC_EXPORT, start, doExport(records, description, maxThreads, callback));
+	}
+	
+	private ExportResult doExport(List<Record> records, final String description, int maxThreads, ProgressCallback callback)
+	{
+		if(records == null || records.isEmpty())
+			return ExportResult.NothingToExport();
+		
+		// Timestamp for filenames (shared by all tasks):
+		final DateTime timestamp = DateTime.now();
+		
+		// Group records by schema & filter out records of unexportable schemata:
+		Map<Schema, List<Record>> recordsBySchema = groupBySchema(records);
+		int totalCount = 0;
+		for(List<Record> recordsForSchema : recordsBySchema.values())
+			totalCount += recordsForSchema.size();
+		
+		// Submit a task per schema, each with its own exporter instance (exporters are not thread-safe):
+		ExecutorService executor = CreateExecutor(maxThreads, recordsBySchema.size());
+		CompletionService<File> completionService = new ExecutorCompletionService<File>(executor);
+		Map<Future<File>, List<Record>> tasks = new HashMap<Future<File>, List<Record>>();
+		for(Map.Entry<Schema, List<Record>> entry : recordsBySchema.entrySet())
+		{
+			final Schema schema = entry.getKey();
+			final List<Record> recordsForSchema = entry.getValue();
+			final CSVRecordsExporter worker = new CSVRecordsExporter(exportFolder, separator);
+			worker.setForceExportUnexportable(forceExportUnexportable);
+			tasks.put(completionService.submit(new Callable<File>()
+			{
+				@Override
+				public File call() throws Exception
+				{
+					return worker.exportSchema(schema, recordsForSchema, description, timestamp);
+				}
+			}), recordsForSchema);
+		}
+		
+		// Collect results as tasks complete:
+		List<Record> exported = new ArrayList<Record>();
+		List<File> csvFiles = new ArrayList<File>();
+		Exception failure = null;
+		try
+		{
+			for(int t = 0; t < tasks.size(); t++)
+			{
+				Future<File> completed = completionService.take();
+				try
+				{
+					csvFiles.add(completed.get());
+					exported.addAll(tasks.get(completed));
+					if(callback != null)
+						callback.exportProgress(exported.size(), totalCount);
+				}
+				catch(ExecutionException ee)
+				{
+					if(failure == null)
+						failure = ee.getCause() instanceof Exception ? (Exception) ee.getCause() : ee;
+				}
+			}
+		}
+		catch(InterruptedException ie)
+		{
+			failure = ie;
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		
+		// Result...
+		return getResult(records.size(), exported, csvFiles, failure);
+	}
+	
+	/**
+	 * @param records
+	 * @return map of records grouped by schema, with records of unexportable schemata left out unless {@link #forceExportUnexportable} is {@code true}
+	 */
+	private Map<Schema, List<Record>> groupBySchema(List<Record> records)
+	{
 		Map<Schema, List<Record>> recordsBySchema = new HashMap<Schema, List<Record>>();
 		for(Record r : records)
 		{
@@ -244,35 +416,48 @@ public class CSVRecordsExporter extends SimpleExporter
 			}
 			recordsForSchema.add(r);
 		}
-		
-		// Export each group to a separate CSV file:
-		List<Record> exported = new ArrayList<Record>();
-		List<Record> exportedForSchema = new ArrayList<Record>();
-		List<File> csvFiles = new ArrayList<File>();
-		valueStringProvider.reset();
-		for(Map.Entry<Schema, List<Record>> entry : recordsBySchema.entrySet())
+		return recordsBySchema;
+	}
+	
+	/**
+	 * Exports the given records, all of the given schema, to a new CSV file.
+	 * If anything goes wrong the file is deleted.
+	 * 
+	 * @param schema
+	 * @param records
+	 * @param description
+	 * @param timestamp
+	 * @return the CSV file
+	 * @throws Exception
+	 */
+	private File exportSchema(Schema schema, List<Record> records, String description, DateTime timestamp) throws Exception
+	{
+		try
 		{
-			try
-			{
-				Schema schema =  entry.getKey();
-				openWriter((description != null && !description.isEmpty() ? description + "_" : "") + schema.getName(), timestamp);
+			openWriter(getFileDescription(description, schema), timestamp);
 
-				// Construct column list:
-				getColumnPointers(schema);
-				
-				// Write header:
+			// Construct column list:
+			getColumnPointers(schema);
+			
+			// Write header:
+			writer.write(getHeader(schema, columnPointers, timestamp));
+			
+			// Write records:
+			for(Record r : records)
+			{
 				writer.openTransaction(); // output will be buffered
 				try
 				{
-					// Column names (separated by the separator):
+					boolean first = true;
 					for(ColumnPointer<?> cp : columnPointers)
-						writer.write((!writer.isTransactionBufferEmpty() ? separator.getSeparatorChar() : "") + cp.getQualifiedColumnName());
-					// Postfix (assuming separator is ,): ,modelID=XXXXXXXXXXXXXXXX,modelSchemaNumber=YY,schemaName="abcdef",
-					writer.write(	separator.getSeparatorChar() + Schema.ATTRIBUTE_MODEL_ID + "=" + schema.getModelID() +
-									separator.getSeparatorChar() + Schema.ATTRIBUTE_MODEL_SCHEMA_NUMBER + "=" + schema.getModelSchemaNumber() +
-									separator.getSeparatorChar() + Schema.ATTRIBUTE_SCHEMA_NAME + "=" + escapeAndQuote(schema.getName(), true) +
-									separator.getSeparatorChar() + ATTRIBUTE_EXPORTED_AT + "=" + ExportedAtFormatter.print(timestamp) +
-									separator.getSeparatorChar());
+					{
+						if(!first)
+							writer.write(separator.getSeparatorChar());
+						else
+							first = false;							
+						writer.write(valueStringProvider.getValueString(cp.getColumn(), cp.getValueSet(r, false), ""));
+						// will write nothing (i.e. "") when the value is not set (i.e. null value is represented by an empty String)
+					}
 					writer.write(LINE_ENDING);
 				}
 				catch(Exception e)
@@ -281,61 +466,147 @@ public class CSVRecordsExporter extends SimpleExporter
 					throw e;
 				}
 				writer.commitTransaction(); // write out buffer
-				
-				// Write records:
-				for(Record r : entry.getValue())
-				{
-					writer.openTransaction(); // output will be buffered
-					try
-					{
-						boolean first = true;
-						for(ColumnPointer<?> cp : columnPointers)
-						{
-							if(!first)
-								writer.write(separator.getSeparatorChar());
-							else
-								first = false;							
-							writer.write(valueStringProvider.getValueString(cp.getColumn(), cp.getValueSet(r, false), ""));
-							// will write nothing (i.e. "") when the value is not set (i.e. null value is represented by an empty String)
-						}
-						writer.write(LINE_ENDING);
-					}
-					catch(Exception e)
-					{
-						writer.rollbackTransaction(); // !!!
-						throw e;
-					}
-					writer.commitTransaction(); // write out buffer
-					exportedForSchema.add(r);
-				}
-				csvFiles.add(writer.getFile());
-				closeWriter();
 			}
-			catch(Exception e)
-			{
-				e.printStackTrace(System.err);
-				deleteFile();
-				if(!exported.isEmpty())
-					return ExportResult.PartialFailure(exported, exportFolder, csvFiles, e, records.size() - exported.size());
-				else
-					return ExportResult.Failure(exportFolder, e, records.size());
-			}
-			
-			// Move records exported for current schema to overall exported list:
-			exported.addAll(exportedForSchema);
-			exportedForSchema.clear();
-			// TODO mark record as exported?
+			File csvFile = writer.getFile();
+			closeWriter();
+			return csvFile;
 		}
-		// Result...
-		if(exported.size() == records.size())
+		catch(Exception e)
+		{
+			e.printStackTrace(System.err);
+			deleteFile();
+			throw e;
+		}
+	}
+	
+	/**
+	 * @param totalCount total number of records passed to the exporter
+	 * @param exported
+	 * @param csvFiles
+	 * @param failure may be null
+	 * @return
+	 */
+	private ExportResult getResult(int totalCount, List<Record> exported, List<File> csvFiles, Exception failure)
+	{
+		if(failure != null)
+		{
+			if(!exported.isEmpty())
+				return ExportResult.PartialFailure(exported, exportFolder, csvFiles, failure, totalCount - exported.size());
+			else
+				return ExportResult.Failure(exportFolder, failure, totalCount);
+		}
+		if(exported.size() == totalCount)
 			return ExportResult.Success(exported, exportFolder, csvFiles);
 		else
 		{
-			int unexportedCount = records.size() - exported.size();
+			int unexportedCount = totalCount - exported.size();
 			return ExportResult.PartialFailure(exported, exportFolder, csvFiles, new UnexportableRecordsException(unexportedCount), unexportedCount);
 		}
 	}
 	
+	/**
+	 * Streaming export of the records selected by the given query.
+	 * 
+	 * Records are passed from the {@link RecordStore} to the exporter one by one and are written out, through
+	 * a large buffer, to the CSV file for their schema without ever holding the whole selection in memory.
+	 * The result only holds the number of exported records, not the records themselves.
+	 * 
+	 * @param recordStore
+	 * @param query
+	 * @param description - may be null or empty
+	 * @return
+	 */
+	public ExportResult export(RecordStore recordStore, RecordsQuery query, String description)
+	{
+		long start = metrics.timer(METRIC_EXPORT).start();
+		StreamingExport export = new StreamingExport(description);
+		recordStore.retrieveRecords(query, export);
+		return recordMetrics(METRIC_EXPORT, start, export.finish());
+	}
+	
+	/**
+	 * Streaming export of the records provided by the given iterator.
+	 * 
+	 * The records do not need to be grouped by schema, each schema's CSV file is kept open until the iterator is exhausted.
+	 * The result only holds the number of exported records, not the records themselves.
+	 * 
+	 * @param records
+	 * @param description - may be null or empty
+	 * @return
+	 * @see #export(RecordStore, RecordsQuery, String)
+	 */
+	public ExportResult export(Iterator<Record> records, String description)
+	{
+		long start = metrics.timer(METRIC_EXPORT).start();
+		StreamingExport export = new StreamingExport(description);
+		while(records.hasNext())
+			if(!export.handle(records.next()))
+				break;
+		return recordMetrics(METRIC_EXPORT, start, export.finish());
+	}
+	
+	/**
+	 * Streaming export of the given records, all of the given schema, to the given writer (e.g. the body of an HTTP request) rather than to a file.
+	 * 
+	 * The header and a line per record are written straight to the writer, which is flushed but not closed.
+	 * Unlike the file-based exports no records are left out on the basis of their schema's flags.
+	 * 
+	 * @param schema
+	 * @param records
+	 * @param out
+	 * @return the number of exported records
+	 * @throws IllegalArgumentException when one of the records is not of the given schema
+	 * @throws IOException when writing fails
+	 */
+	public int export(Schema schema, Iterable<Record> records, Writer out) throws IllegalArgumentException, IOException
+	{
+		long start = metrics.timer(METRIC_EXPORT).start();
+		valueStringProvider.reset();
+		SchemaStream stream = new SchemaStream(schema, DateTime.now(), out);
+		try
+		{
+			for(Record record : records)
+			{
+				if(record.getSchema() != schema)
+					throw new IllegalArgumentException("Record is not of " + schema.toString());
+				stream.write(record);
+			}
+			out.flush();
+		}
+		finally
+		{
+			metrics.timer(METRIC_EXPORT).stop(start);
+			metrics.counter(METRIC_EXPORT + ".records").add(stream.count);
+		}
+		return stream.count;
+	}
+	
+	/**
+	 * @param schema
+	 * @param columnPointers
+	 * @param timestamp
+	 * @return the header line (including line ending) for a CSV file containing records of the given schema
+	 */
+	private String getHeader(Schema schema, List<ColumnPointer<?>> columnPointers, DateTime timestamp)
+	{
+		StringBuilder bldr = new StringBuilder();
+		// Column names (separated by the separator):
+		for(ColumnPointer<?> cp : columnPointers)
+		{
+			if(bldr.length() > 0)
+				bldr.append(separator.getSeparatorChar());
+			bldr.append(cp.getQualifiedColumnName());
+		}
+		// Postfix (assuming separator is ,): ,modelID=XXXXXXXXXXXXXXXX,modelSchemaNumber=YY,schemaName="abcdef",
+		bldr.append(separator.getSeparatorChar()).append(Schema.ATTRIBUTE_MODEL_ID).append('=').append(schema.getModelID());
+		bldr.append(separator.getSeparatorChar()).append(Schema.ATTRIBUTE_MODEL_SCHEMA_NUMBER).append('=').append(schema.getModelSchemaNumber());
+		bldr.append(separator.getSeparatorChar()).append(Schema.ATTRIBUTE_SCHEMA_NAME).append('=').append(escapeAndQuote(schema.getName(), true));
+		bldr.append(separator.getSeparatorChar()).append(ATTRIBUTE_EXPORTED_AT).append('=').append(ExportedAtFormatter.print(timestamp));
+		bldr.append(separator.getSeparatorChar());
+		bldr.append(LINE_ENDING);
+		return bldr.toString();
+	}
+	
 	protected List<ColumnPointer<?>> getColumnPointers(Schema schema)
 	{
 		columnPointers.clear();
@@ -388,6 +659,163 @@ public class CSVRecordsExporter extends SimpleExporter
 		return true; // split up foreign keys in subcolumns
 	}
 	
+	/**
+	 * Helper class which performs a streaming export, receiving records one at a time.
+	 */
+	private class StreamingExport implements RecordHandler
+	{
+		
+		private final String description;
+		private final DateTime timestamp = DateTime.now(); // timestamp for filenames
+		private final Map<Schema, SchemaStream> streams = new LinkedHashMap<Schema, SchemaStream>();
+		private int unexportedCount = 0;
+		private Exception failure = null;
+		
+		public StreamingExport(String description)
+		{
+			this.description = description;
+			valueStringProvider.reset();
+		}
+		
+		@Override
+		public boolean handle(Record record)
+		{
+			Schema schema = record.getSchema();
+			// Skip unexportable records unless forced not to:
+			if(!forceExportUnexportable && !schema.hasFlags(StorageClient.SCHEMA_FLAG_EXPORTABLE))
+			{
+				unexportedCount++;
+				return true;
+			}
+			SchemaStream stream = streams.get(schema);
+			try
+			{
+				if(stream == null)
+				{
+					stream = new SchemaStream(schema, description, timestamp);
+					streams.put(schema, stream);
+				}
+				stream.write(record);
+				return true;
+			}
+			catch(Exception e)
+			{
+				e.printStackTrace(System.err);
+				failure = e;
+				unexportedCount++;
+				if(stream != null)
+				{	// all records written to the file so far are lost:
+					stream.delete();
+					unexportedCount += stream.count;
+					streams.remove(schema);
+				}
+				return false; // stop
+			}
+		}
+		
+		public ExportResult finish()
+		{
+			int exportedCount = 0;
+			List<File> csvFiles = new ArrayList<File>();
+			for(SchemaStream stream : streams.values())
+			{
+				try
+				{
+					stream.close();
+					exportedCount += stream.count;
+					csvFiles.add(stream.file);
+				}
+				catch(IOException ioE)
+				{
+					ioE.printStackTrace(System.err);
+					if(failure == null)
+						failure = ioE;
+					stream.delete();
+					unexportedCount += stream.count;
+				}
+			}
+			streams.clear();
+			
+			// Result...
+			if(exportedCount == 0 && unexportedCount == 0)
+				return ExportResult.NothingToExport();
+			if(failure != null)
+			{
+				if(exportedCount > 0)
+					return ExportResult.PartialFailure(exportedCount, exportFolder, csvFiles, failure, unexportedCount);
+				else
+					return ExportResult.Failure(exportFolder, failure, unexportedCount);
+			}
+			if(unexportedCount == 0)
+				return ExportResult.Success(exportedCount, exportFolder, csvFiles);
+			else
+				return ExportResult.PartialFailure(exportedCount, exportFolder, csvFiles, new UnexportableRecordsException(unexportedCount), unexportedCount);
+		}
+		
+	}
+	
+	/**
+	 * A CSV file, written to through a large buffer, holding records of a single schema (or, when there is no file, a writer given by the caller).
+	 */
+	private class SchemaStream
+	{
+		
+		public final File file;
+		private final Writer out;
+		private final List<ColumnPointer<?>> columnPointers;
+		public int count = 0;
+		
+		public SchemaStream(Schema schema, String description, DateTime timestamp) throws IOException, FileStorageException
+		{
+			this.columnPointers = new ArrayList<ColumnPointer<?>>(getColumnPointers(schema));
+			this.file = getExportFile(getFileDescription(description, schema), timestamp);
+			this.out = new BufferedWriter(UnicodeBOM.GetWriter(new FileOutputStream(file), Charset.forName("UTF-8")), STREAMING_WRITE_BUFFER_SIZE);
+			out.write(getHeader(schema, columnPointers, timestamp));
+		}
+		
+		/**
+		 * @param schema
+		 * @param timestamp
+		 * @param out writer to use instead of a file
+		 * @throws IOException
+		 */
+		public SchemaStream(Schema schema, DateTime timestamp, Writer out) throws IOException
+		{
+			this.columnPointers = new ArrayList<ColumnPointer<?>>(getColumnPointers(schema));
+			this.file = null;
+			this.out = out;
+			out.write(getHeader(schema, columnPointers, timestamp));
+		}
+		
+		public void write(Record record) throws IOException
+		{
+			boolean first = true;
+			for(ColumnPointer<?> cp : columnPointers)
+			{
+				if(!first)
+					out.write(separator.getSeparatorChar());
+				else
+					first = false;
+				out.write(valueStringProvider.getValueString(cp.getColumn(), cp.getValueSet(record, false), ""));
+				// will write nothing (i.e. "") when the value is not set (i.e. null value is represented by an empty String)
+			}
+			out.write(LINE_ENDING);
+			count++;
+		}
+		
+		public void close() throws IOException
+		{
+			out.close(); // also flushes
+		}
+		
+		public void delete()
+		{
+			StreamHelpers.SilentClose(out);
+			FileUtils.deleteQuietly(file);
+		}
+		
+	}
+	
 	/**
 	 * Helper class which creates String representations, escaped and quoted as necessary, of column values.
 	 * 
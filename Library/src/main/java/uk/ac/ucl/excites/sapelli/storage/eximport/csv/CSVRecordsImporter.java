@@ -18,13 +18,16 @@
 
 package uk.ac.ucl.excites.sapelli.storage.eximport.csv;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import org.apache.commons.compress.utils.Charsets;
 
@@ -33,6 +36,7 @@ import uk.ac.ucl.excites.sapelli.shared.util.ExceptionHelpers;
 import uk.ac.ucl.excites.sapelli.shared.util.StringUtils;
 import uk.ac.ucl.excites.sapelli.shared.util.WarningKeeper.WarningKeeperImpl;
 import uk.ac.ucl.excites.sapelli.storage.StorageClient;
+import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
 import uk.ac.ucl.excites.sapelli.storage.eximport.Exporter;
 import uk.ac.ucl.excites.sapelli.storage.eximport.Importer;
 import uk.ac.ucl.excites.sapelli.storage.eximport.csv.CSVRecordsExporter.Separator;
@@ -59,6 +63,20 @@ public class CSVRecordsImporter extends WarningKeeperImpl implements Importer
 	// STATIC -------------------------------------------------------
 	static private final char DOUBLE_QUOTE = '"';
 	
+	/**
+	 * Size (in chars) of the buffer through which files are read.
+	 */
+	static public final int READ_BUFFER_SIZE = 64 * 1024;
+	
+	/**
+	 * Maximum number of parsed batches waiting to be stored, see {@link #importInto(File, Schema, RecordStore, int)}.
+	 */
+	static public final int MAX_QUEUED_BATCHES = 2;
+	
+	static private final int NO_BATCHES = 0;
+	
+	static private final List<Record> END_OF_IMPORT = Collections.emptyList();
+	
 	// DYNAMIC ------------------------------------------------------
 	protected final StorageClient client;
 
@@ -73,6 +91,9 @@ public class CSVRecordsImporter extends WarningKeeperImpl implements Importer
 	protected List<Record> records;
 	protected int rowCount;
 	
+	private int batchSize;
+	private BlockingQueue<List<Record>> batchQueue;
+	
 	public CSVRecordsImporter(StorageClient client)
 	{
 		super();
@@ -97,6 +118,106 @@ public class CSVRecordsImporter extends WarningKeeperImpl implements Importer
 	 * @see {@link #importFrom(File)}
 	 */
 	public List<Record> importFrom(File csvFile, Schema fallbackSchema) throws Exception
+	{
+		// (Re)initialise data structures:
+		initialise(fallbackSchema, NO_BATCHES, null);
+		
+		// Parse the file:
+		parse(csvFile);
+		
+		// Return parsed records:
+		return records;
+	}
+	
+	/**
+	 * High-throughput import which stores the parsed records in the given {@link RecordStore} as parsing progresses.
+	 * 
+	 * The file is parsed on a separate thread, which hands records over in batches of (at most) {@code batchSize}.
+	 * Each batch is stored, in its own transaction, on the calling thread (which is assumed to be allowed to use the
+	 * RecordStore), so storing overlaps with parsing and at most a few batches are held in memory at any time.
+	 * 
+	 * @param csvFile
+	 * @param fallbackSchema may be null
+	 * @param recordStore
+	 * @param batchSize maximum number of records stored per transaction
+	 * @return the number of records stored
+	 * @throws Exception in case of a parsing or storage problem, batches stored before the problem occurred are not rolled back
+	 */
+	public int importInto(final File csvFile, Schema fallbackSchema, RecordStore recordStore, int batchSize) throws Exception
+	{
+		if(batchSize < 1)
+			throw new IllegalArgumentException("Batch size must be at least 1");
+		
+		// (Re)initialise data structures:
+		final BlockingQueue<List<Record>> queue = new ArrayBlockingQueue<List<Record>>(MAX_QUEUED_BATCHES);
+		initialise(fallbackSchema, batchSize, queue);
+		
+		// Parse the file on a separate thread:
+		final Exception[] parseError = { null };
+		Thread parser = new Thread(getClass().getSimpleName() + "-" + csvFile.getName())
+		{
+			@Override
+			public void run()
+			{
+				boolean aborted = false;
+				try
+				{
+					parse(csvFile);
+					emitBatch(); // remaining records
+				}
+				catch(InterruptedException ie)
+				{
+					aborted = true; // storing was aborted
+				}
+				catch(Exception e)
+				{
+					parseError[0] = e;
+				}
+				finally
+				{
+					// Signal the end of the import, unless storing was aborted (then nobody is taking from the queue, which may be full):
+					if(!aborted)
+						try
+						{
+							queue.put(END_OF_IMPORT); // throws immediately if we were interrupted in the meantime
+						}
+						catch(InterruptedException ignore) {}
+				}
+			}
+		};
+		parser.start();
+		
+		// Store batches as they arrive:
+		int stored = 0;
+		try
+		{
+			List<Record> batch;
+			while((batch = queue.take()) != END_OF_IMPORT)
+			{
+				recordStore.store(batch); // in its own transaction
+				stored += batch.size();
+			}
+		}
+		catch(Exception e)
+		{
+			parser.interrupt(); // stop parsing
+			throw e;
+		}
+		finally
+		{
+			parser.join();
+		}
+		if(parseError[0] != null)
+			throw parseError[0];
+		return stored;
+	}
+	
+	/**
+	 * @param fallbackSchema may be null
+	 * @param batchSize {@link #NO_BATCHES} or the size of batches to emit
+	 * @param batchQueue queue to emit batches to, may be null if batchSize is {@link #NO_BATCHES}
+	 */
+	private void initialise(Schema fallbackSchema, int batchSize, BlockingQueue<List<Record>> batchQueue)
 	{
 		// Allocate a new records list:
 		records = new ArrayList<Record>(); // (don't reuse old one as this object is returned)
@@ -108,51 +229,120 @@ public class CSVRecordsImporter extends WarningKeeperImpl implements Importer
 		exportedAt = null;
 		schema = fallbackSchema;
 		columnPointers = fallbackSchema == null ? null : CSVRecordsExporter.GetColumnPointers(fallbackSchema);
-		
-		// Parse the file:
-		parse(csvFile);
-		
-		// Return parsed records:
-		return records;
+		this.batchSize = batchSize;
+		this.batchQueue = batchQueue;
+	}
+	
+	/**
+	 * Hands the records parsed so far over to the batch queue (if there are any) and allocates a new records list.
+	 * 
+	 * @throws InterruptedException
+	 */
+	private void emitBatch() throws InterruptedException
+	{
+		if(records.isEmpty())
+			return;
+		batchQueue.put(records);
+		records = new ArrayList<Record>(batchSize);
 	}
 
+	/**
+	 * Scans the file through a large char buffer. The header row is collected as a whole (its last char tells us the separator),
+	 * after that values are split off as soon as unquoted separators are encountered, avoiding the creation of row Strings.
+	 * Line endings inside quoted values do not end the row.
+	 * 
+	 * @param csvFile
+	 * @throws Exception
+	 */
 	private void parse(File csvFile) throws Exception
 	{
 		try(UnicodeBOMInputStream input = new UnicodeBOMInputStream(new FileInputStream(csvFile));
-			BufferedReader reader = new BufferedReader(input.getReader(Charsets.UTF_8)))
+			Reader reader = input.getReader(Charsets.UTF_8))
 		{
-			int r;
-			int dqCount = 0;
-			StringBuilder rowBldr = new StringBuilder();
-			while((r = reader.read()) != -1)
+			char[] buffer = new char[READ_BUFFER_SIZE];
+			StringBuilder bldr = new StringBuilder(); // holds the whole header row, or the current value of a record row
+			List<String> values = new ArrayList<String>();
+			boolean splitValues = false;
+			char separatorChar = 0;
+			boolean inQuotes = false;
+			int read;
+			while((read = reader.read(buffer, 0, buffer.length)) != -1)
 			{
-				char c = (char) r;
-				if(c == DOUBLE_QUOTE)
-				{	// count the number of double quotes we've passed
-					dqCount++;
-					// Append char:
-					rowBldr.append(c); // !!!
+				int start = 0; // start of the chars which have not been appended to bldr yet
+				for(int i = 0; i < read; i++)
+				{
+					char c = buffer[i];
+					if(c == DOUBLE_QUOTE)
+						inQuotes = !inQuotes;
+					else if(!inQuotes && c == CSVRecordsExporter.LINE_ENDING)
+					{	// we are not inside a quoted value so this is an actual row line break
+						bldr.append(buffer, start, i - start);
+						start = i + 1;
+						if(splitValues)
+						{
+							endValues(bldr, values);
+							parseRow(values);
+							values.clear();
+						}
+						else
+						{
+							String row = bldr.toString();
+							bldr.setLength(0); // reset builder!
+							// Parse row:
+							parseRow(row);
+							// Once we know the separator we can split values on the fly:
+							if(separator != null)
+							{
+								splitValues = true;
+								separatorChar = separator.getSeparatorChar();
+							}
+						}
+					}
+					else if(splitValues && !inQuotes && c == separatorChar)
+					{	// we are not inside a quoted value so this is an actual separator
+						bldr.append(buffer, start, i - start);
+						start = i + 1;
+						values.add(bldr.toString());
+						bldr.setLength(0); // reset builder!
+					}
 				}
-				else if(c == CSVRecordsExporter.LINE_ENDING && dqCount % 2 == 0)
-				{	// if dqCount is even this means we are not inside a quoted value and this is an actual row line break
-					String row = rowBldr.toString();
-					rowBldr.setLength(0); // reset line builder!
-					// Parse row:
-					parseRow(row);
+				bldr.append(buffer, start, read - start);
+			}
+			// Deal with last row if it was not terminated by a line ending:
+			if(bldr.length() > 0 || !values.isEmpty())
+			{
+				if(splitValues)
+				{
+					endValues(bldr, values);
+					parseRow(values);
 				}
 				else
-				{	
-					// Append char:
-					rowBldr.append(c); // !!!
-				}
+					parseRow(bldr.toString());
 			}
 		}
+		catch(InterruptedException ie)
+		{
+			throw ie;
+		}
 		catch(Exception e) // only for unrecoverable errors
 		{
 			throw new Exception("Error upon parsing CSV file (" + (csvFile != null ? csvFile.getName() : "null") + ")!", e); 
 		}
 	}
 	
+	/**
+	 * Adds the last value of a row, unless the row ended with a separator (same behaviour as {@link #splitRow(String)}).
+	 * 
+	 * @param bldr
+	 * @param values
+	 */
+	private void endValues(StringBuilder bldr, List<String> values)
+	{
+		if(bldr.length() > 0 || values.isEmpty())
+			values.add(bldr.toString());
+		bldr.setLength(0); // reset builder!
+	}
+	
 	private void parseRow(String row) throws Exception
 	{
 		// Increase row counter:
@@ -169,41 +359,59 @@ public class CSVRecordsImporter extends WarningKeeperImpl implements Importer
 				if(schema != null && columnPointers != null)
 				{	// we were given a fallback schema, so perhaps this was a record row (and not a header row)...
 					headerError = e;
-					rowCount--;
-					parseRow(row); // try parsing as record row
+					if(separator == null)
+						separator = CSVRecordsExporter.DEFAULT_SEPARATOR;
+					parseRecordRow(splitRow(row)); // try parsing as record row
 				}
 				else
 					throw e;
 			}
 		}
 		else
-		{	// Record row...
-			if(schema == null || columnPointers == null)
-				throw new Exception("Cannot parse record rows if no schema is known.");
-			Record parsedRecord = null;
-			try
-			{
-				parsedRecord = parseRecordRow(row); 
-			}
-			catch(Exception e)
-			{
-				if(rowCount == 1 && headerError != null)
-					// we already had trouble when parsing this as a header row, throw that exception instead of a new one:
-					throw headerError;
-				addWarning("Error on parsing record (line #" + rowCount + "): " + ExceptionHelpers.getMessageAndCause(e));
-			}
-			if(parsedRecord != null)
-			{
-				// Set missing required values to default (recursively):
-				parsedRecord.resetEmptyColumns(true, true);
-				
-				// Recursive "filledness" check:
-				if(!parsedRecord.isFilled(true))
-					addWarning("Imported record (line #" + rowCount + ") is incomplete: " + parsedRecord.toString(false));
-				
-				// Add parsed record:
-				records.add(parsedRecord);
-			}
+			// Record row...
+			parseRecordRow(splitRow(row));
+	}
+	
+	private void parseRow(List<String> valueStrings) throws Exception
+	{
+		// Increase row counter:
+		rowCount++; // !!!
+		
+		// Record row...
+		parseRecordRow(valueStrings);
+	}
+	
+	private void parseRecordRow(List<String> valueStrings) throws Exception
+	{
+		if(schema == null || columnPointers == null)
+			throw new Exception("Cannot parse record rows if no schema is known.");
+		Record parsedRecord = null;
+		try
+		{
+			parsedRecord = parseRecordValues(valueStrings); 
+		}
+		catch(Exception e)
+		{
+			if(rowCount == 1 && headerError != null)
+				// we already had trouble when parsing this as a header row, throw that exception instead of a new one:
+				throw headerError;
+			addWarning("Error on parsing record (line #" + rowCount + "): " + ExceptionHelpers.getMessageAndCause(e));
+		}
+		if(parsedRecord != null)
+		{
+			// Set missing required values to default (recursively):
+			parsedRecord.resetEmptyColumns(true, true);
+			
+			// Recursive "filledness" check:
+			if(!parsedRecord.isFilled(true))
+				addWarning("Imported record (line #" + rowCount + ") is incomplete: " + parsedRecord.toString(false));
+			
+			// Add parsed record:
+			records.add(parsedRecord);
+			
+			// Hand over batch if full:
+			if(batchSize != NO_BATCHES && records.size() >= batchSize)
+				emitBatch();
 		}
 	}
 	
@@ -312,14 +520,11 @@ public class CSVRecordsImporter extends WarningKeeperImpl implements Importer
 		}
 	}
 	
-	private Record parseRecordRow(String line) throws Exception
+	private Record parseRecordValues(List<String> valueStrings) throws Exception
 	{
 		// Create new, initialised record:
 		Record record = helper.initialise(schema.createRecord());
 		
-		// Get list of values to parse:
-		List<String> valueStrings = splitRow(line);
-				
 		// Check number of columns/values:
 		if(columnPointers.size() != valueStrings.size()) // String is expected to contain as many values as separators
 			throw new Exception("CSV record row has unexpected number of values (expected: " + columnPointers.size() + "; found: " + valueStrings.size() + ")!");
@@ -20,10 +20,16 @@ package uk.ac.ucl.excites.sapelli.storage.eximport.xml;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.Charsets;
 import org.apache.commons.lang3.StringEscapeUtils;
@@ -117,6 +123,21 @@ public class XMLRecordsExporter extends SimpleExporter
 	
 	static public CompositeMode DEFAULT_COMPOSITE_MODE = CompositeMode.Flat;
 	
+	/**
+	 * Number of records formatted by each task of a parallel export.
+	 */
+	static public final int PARALLEL_CHUNK_SIZE = 256;
+	
+	/**
+	 * Maximum number of chunks (per worker thread) formatted ahead of the one being written during a parallel export.
+	 */
+	static public final int MAX_CHUNKS_AHEAD_PER_THREAD = 2;
+	
+	/**
+	 * Name of the timer (and, with ".records" appended, of the counter) in which exports are recorded, see {@link #setMetrics(uk.ac.ucl.excites.sapelli.shared.util.Metrics)}.
+	 */
+	static public final String METRIC_EXPORT = "export.xml";
+	
 	// DYNAMIC ------------------------------------------------------
 	private final CompositeMode compositeMode;
 	private final XMLExportHelper helper = new XMLExportHelper();
@@ -124,6 +145,11 @@ public class XMLRecordsExporter extends SimpleExporter
 	private int tabs = 0;
 	private Record currentRecord = null;
 	
+	/**
+	 * Only non-null while formatting a chunk of records for a parallel export.
+	 */
+	private StringBuilder chunkBuffer = null;
+	
 	/**
 	 * @param exportFolder
 	 */
@@ -172,21 +198,18 @@ public class XMLRecordsExporter extends SimpleExporter
 	
 	@Override
 	public ExportResult export(List<Record> records, String description)
+	{
+		long start = metrics.timer(METRIC_EXPORT).start();
+		return recordMetrics(METRIC_EXPORT, start, doExport(records, description));
+	}
+	
+	private ExportResult doExport(List<Record> records, String description)
 	{
 		if(records == null || records.isEmpty())
 			return ExportResult.NothingToExport();
 		
 		// Sort records by Schema (& Model):
-		Collections.sort(records, new Comparator<Record>()
-		{
-			Schema.Comparator schemaComparator = new Schema.Comparator();
-			
-			@Override
-			public int compare(Record r1, Record r2)
-			{
-				return schemaComparator.compare(r1.getSchema(), r2.getSchema());
-			}
-		});
+		sortBySchema(records);
 		
 		// Export:
 		List<Record> exported = new ArrayList<Record>();
@@ -205,32 +228,13 @@ public class XMLRecordsExporter extends SimpleExporter
 				writer.openTransaction(); // output will be buffered
 				try
 				{
-					//Open tag:
-					writer.writeLine(StringUtils.addTabsFront(
-						"<" + Record.TAG_RECORD + " " +
-						Schema.ATTRIBUTE_SCHEMA_NAME + "=\"" + XMLUtils.escapeCharacters(r.getSchema().getName()) + "\" " +
-						Schema.ATTRIBUTE_MODEL_ID + "=\"" + r.getSchema().getModelID() + "\" " +
-						Schema.ATTRIBUTE_MODEL_SCHEMA_NUMBER + "=\"" + r.getSchema().getModelSchemaNumber() + "\"" +
-						">", tabs));
-				
-					// Indent:
-					tabs++;
-				
-					// Traverse columns:
-					currentRecord = r;
-					traverse(r.getSchema());
-				
-					// Unindent:
-					tabs--;
-				
-					//Close tag:
-					writer.writeLine(StringUtils.addTabsFront("</" + Record.TAG_RECORD + ">", tabs));
+					writeRecord(r);
 				}
 				catch(Exception e)
 				{
 					writer.rollbackTransaction(); // !!!
 					tabs = 1;
-					writer.writeLine(XMLUtils.comment("Exception on exporting record: " + e.toString() + (e.getMessage() != null ? " [" + e.getMessage() + "]" : ""), tabs));
+					writer.writeLine(getExceptionComment(e));
 					throw e; //!!!
 				}
 				writer.commitTransaction(); // write out buffer
@@ -238,27 +242,240 @@ public class XMLRecordsExporter extends SimpleExporter
 				// TODO mark record as exported?
 			}
 			// Result...
-			if(exported.size() == records.size())
-				return ExportResult.Success(exported, exportFolder, Collections.singletonList(writer.getFile()));
-			else
+			return getResult(records.size(), exported);
+		}
+		catch(Exception e)
+		{
+			return getResult(records.size(), exported, e);
+		}
+		finally
+		{
+			closeWriter();
+		}
+	}
+	
+	/**
+	 * Parallel export, in which the records are formatted in chunks by tasks running on a bounded pool of worker threads.
+	 * The formatted chunks are written to the XML file in order, so the output is identical to that of {@link #export(List, String)}.
+	 * 
+	 * @param records
+	 * @param description - may be null or empty
+	 * @param maxThreads maximum number of worker threads
+	 * @param callback may be null, otherwise it is informed (on the calling thread) each time a chunk of records has been written
+	 * @return
+	 */
+	public ExportResult export(List<Record> records, String description, int maxThreads, ProgressCallback callback)
+	{
+		long start = metrics.timer(METRIC_EXPORT).start();
+		return recordMetrics(METRIC_EXPORT, start, doExport(records, description, maxThreads, callback));
+	}
+	
+	private ExportResult doExport(List<Record> records, String description, int maxThreads, ProgressCallback callback)
+	{
+		if(records == null || records.isEmpty())
+			return ExportResult.NothingToExport();
+		
+		// Sort records by Schema (& Model):
+		sortBySchema(records);
+		
+		// Split exportable records into chunks:
+		List<List<Record>> chunks = new ArrayList<List<Record>>();
+		List<Record> chunk = null;
+		int totalCount = 0;
+		for(Record r : records)
+		{
+			// Skip unexportable records unless force not to:
+			if(!forceExportUnexportable && !r.getSchema().hasFlags(StorageClient.SCHEMA_FLAG_EXPORTABLE))
+				continue;
+			if(chunk == null || chunk.size() == PARALLEL_CHUNK_SIZE)
+			{
+				chunk = new ArrayList<Record>(PARALLEL_CHUNK_SIZE);
+				chunks.add(chunk);
+			}
+			chunk.add(r);
+			totalCount++;
+		}
+		
+		// Format chunks on the worker threads and write them out in order, with no more than maxInFlight chunks submitted ahead of the one being written:
+		ExecutorService executor = CreateExecutor(maxThreads, chunks.size());
+		int maxInFlight = Math.max(1, maxThreads) * MAX_CHUNKS_AHEAD_PER_THREAD;
+		Deque<Future<FormattedChunk>> inFlight = new ArrayDeque<Future<FormattedChunk>>(maxInFlight);
+		int submitted = 0;
+		List<Record> exported = new ArrayList<Record>();
+		try
+		{
+			openWriter(description, DateTime.now());
+			while(submitted < chunks.size() || !inFlight.isEmpty())
 			{
-				int unexportedCount = records.size() - exported.size();
-				return ExportResult.PartialFailure(exported, exportFolder, Collections.singletonList(writer.getFile()), new UnexportableRecordsException(unexportedCount), unexportedCount);
+				while(submitted < chunks.size() && inFlight.size() < maxInFlight)
+					inFlight.addLast(submitFormatTask(executor, chunks.get(submitted++)));
+				FormattedChunk fc;
+				try
+				{
+					fc = inFlight.removeFirst().get();
+				}
+				catch(ExecutionException ee)
+				{
+					throw ee.getCause() instanceof Exception ? (Exception) ee.getCause() : ee;
+				}
+				writer.write(fc.xml);
+				exported.addAll(fc.formattedRecords);
+				if(callback != null)
+					callback.exportProgress(exported.size(), totalCount);
+				if(fc.failure != null)
+					throw fc.failure; //!!!
 			}
+			// Result...
+			return getResult(records.size(), exported);
 		}
 		catch(Exception e)
 		{
-			e.printStackTrace(System.err);
-			if(!exported.isEmpty())
-				return ExportResult.PartialFailure(exported, exportFolder, Collections.singletonList(writer.getFile()), e, records.size() - exported.size());
-			else
-				return ExportResult.Failure(exportFolder, e, records.size());
+			if(e instanceof InterruptedException)
+				Thread.currentThread().interrupt();
+			return getResult(records.size(), exported, e);
 		}
 		finally
 		{
+			executor.shutdownNow();
 			closeWriter();
 		}
 	}
+	
+	/**
+	 * Submits a task which formats the given chunk of records, using its own exporter instance (exporters are not thread-safe).
+	 * 
+	 * @param executor
+	 * @param recordsInChunk
+	 * @return
+	 */
+	private Future<FormattedChunk> submitFormatTask(ExecutorService executor, final List<Record> recordsInChunk)
+	{
+		final XMLRecordsExporter worker = new XMLRecordsExporter(exportFolder, compositeMode);
+		return executor.submit(new Callable<FormattedChunk>()
+		{
+			@Override
+			public FormattedChunk call()
+			{
+				return worker.format(recordsInChunk);
+			}
+		});
+	}
+	
+	private void sortBySchema(List<Record> records)
+	{
+		Collections.sort(records, new Comparator<Record>()
+		{
+			Schema.Comparator schemaComparator = new Schema.Comparator();
+			
+			@Override
+			public int compare(Record r1, Record r2)
+			{
+				return schemaComparator.compare(r1.getSchema(), r2.getSchema());
+			}
+		});
+	}
+	
+	/**
+	 * Formats the given records into a String, rather than writing them to the file.
+	 * Formatting stops at the first record that cannot be exported.
+	 * 
+	 * @param records
+	 * @return
+	 */
+	private FormattedChunk format(List<Record> records)
+	{
+		chunkBuffer = new StringBuilder();
+		helper.reset();
+		tabs = 1;
+		currentRecord = null;
+		List<Record> formatted = new ArrayList<Record>(records.size());
+		try
+		{
+			for(Record r : records)
+			{
+				int rollbackLength = chunkBuffer.length();
+				try
+				{
+					writeRecord(r);
+				}
+				catch(Exception e)
+				{
+					chunkBuffer.setLength(rollbackLength); // !!!
+					tabs = 1;
+					writeLine(getExceptionComment(e));
+					return new FormattedChunk(chunkBuffer.toString(), formatted, e);
+				}
+				formatted.add(r);
+			}
+			return new FormattedChunk(chunkBuffer.toString(), formatted, null);
+		}
+		finally
+		{
+			chunkBuffer = null;
+		}
+	}
+	
+	private void writeRecord(Record r)
+	{
+		//Open tag:
+		writeLine(StringUtils.addTabsFront(
+			"<" + Record.TAG_RECORD + " " +
+			Schema.ATTRIBUTE_SCHEMA_NAME + "=\"" + XMLUtils.escapeCharacters(r.getSchema().getName()) + "\" " +
+			Schema.ATTRIBUTE_MODEL_ID + "=\"" + r.getSchema().getModelID() + "\" " +
+			Schema.ATTRIBUTE_MODEL_SCHEMA_NUMBER + "=\"" + r.getSchema().getModelSchemaNumber() + "\"" +
+			">", tabs));
+	
+		// Indent:
+		tabs++;
+	
+		// Traverse columns:
+		currentRecord = r;
+		traverse(r.getSchema());
+	
+		// Unindent:
+		tabs--;
+	
+		//Close tag:
+		writeLine(StringUtils.addTabsFront("</" + Record.TAG_RECORD + ">", tabs));
+	}
+	
+	/**
+	 * Writes a line either to the chunk buffer (when formatting a chunk for a parallel export) or to the file.
+	 * 
+	 * @param line
+	 */
+	private void writeLine(String line)
+	{
+		if(chunkBuffer != null)
+			chunkBuffer.append(line).append('\n');
+		else
+			writer.writeLine(line);
+	}
+	
+	private String getExceptionComment(Exception e)
+	{
+		return XMLUtils.comment("Exception on exporting record: " + e.toString() + (e.getMessage() != null ? " [" + e.getMessage() + "]" : ""), tabs);
+	}
+	
+	private ExportResult getResult(int totalCount, List<Record> exported)
+	{
+		if(exported.size() == totalCount)
+			return ExportResult.Success(exported, exportFolder, Collections.singletonList(writer.getFile()));
+		else
+		{
+			int unexportedCount = totalCount - exported.size();
+			return ExportResult.PartialFailure(exported, exportFolder, Collections.singletonList(writer.getFile()), new UnexportableRecordsException(unexportedCount), unexportedCount);
+		}
+	}
+	
+	private ExportResult getResult(int totalCount, List<Record> exported, Exception failure)
+	{
+		failure.printStackTrace(System.err);
+		if(!exported.isEmpty())
+			return ExportResult.PartialFailure(exported, exportFolder, Collections.singletonList(writer.getFile()), failure, totalCount - exported.size());
+		else
+			return ExportResult.Failure(exportFolder, failure, totalCount);
+	}
 
 	/**
 	 * Here we ensure that parent tags are inserted for ValueSetColumns when in nester or flat mode.
@@ -279,11 +496,11 @@ public class XMLRecordsExporter extends SimpleExporter
 		ValueSet<?> subRecord = valueSetCol.cast(getColumnPointer().retrieveValue(currentRecord));
 		if(subRecord == null)
 		{	// Subrecord is null: write null comment
-			writer.writeLine(StringUtils.addTabsFront(getNullColumnComment(valueSetCol.getName()), tabs));
+			writeLine(StringUtils.addTabsFront(getNullColumnComment(valueSetCol.getName()), tabs));
 		}
 		else if(compositeMode == CompositeMode.Nested)
 		{	// If in nested tags mode and subrecord is not null, open parent tag (with empty attribute if necessary):
-			writer.writeLine(StringUtils.addTabsFront(
+			writeLine(StringUtils.addTabsFront(
 				"<" + valueSetCol.getName() + (subRecord.isEmpty() ? " " + ATTRIBUTE_VALUESETCOLUMN_EMPTY + "=\"" + Boolean.TRUE.toString() + "\"" : "") + ">",
 				tabs));
 			tabs++;
@@ -291,7 +508,7 @@ public class XMLRecordsExporter extends SimpleExporter
 		else if(/*compositeMode == CompositeMode.Flat && */subRecord.isEmpty())
 		{	// if in flat tags mode and subrecord is not null but empty(!), write collapsed parent tag
 			//	(with empty attribute, even though the parser doesn't strictly need that in this case): 
-			writer.writeLine(StringUtils.addTabsFront(
+			writeLine(StringUtils.addTabsFront(
 				"<" + valueSetCol.getName() + " " + ATTRIBUTE_VALUESETCOLUMN_EMPTY + "=\"" + Boolean.TRUE.toString() + "\"/>",
 				tabs));
 		}
@@ -310,7 +527,7 @@ public class XMLRecordsExporter extends SimpleExporter
 		if(compositeMode == CompositeMode.Nested && getColumnPointer().retrieveValue(currentRecord) != null)
 		{	// Close parent tag:
 			tabs--;
-			writer.writeLine(StringUtils.addTabsFront("</" + valueSetCol.getName() + ">", tabs));
+			writeLine(StringUtils.addTabsFront("</" + valueSetCol.getName() + ">", tabs));
 		}
 		
 		// Pop columnStack:
@@ -331,11 +548,11 @@ public class XMLRecordsExporter extends SimpleExporter
 		String columnName = (compositeMode == CompositeMode.Flat ? leafColumnPointer.getQualifiedColumnName() : leafColumn.getName());
 		String tagContent = helper.getValueString(leafColumn, valueSet, null);
 		if(tagContent == null)
-			writer.writeLine(StringUtils.addTabsFront(getNullColumnComment(columnName), tabs));
+			writeLine(StringUtils.addTabsFront(getNullColumnComment(columnName), tabs));
 		else if(tagContent.isEmpty())
-			writer.writeLine(StringUtils.addTabsFront("<" + columnName + "/>", tabs)); // collapsed tag
+			writeLine(StringUtils.addTabsFront("<" + columnName + "/>", tabs)); // collapsed tag
 		else
-			writer.writeLine(StringUtils.addTabsFront("<" + columnName + ">" + tagContent + "</" + columnName + ">", tabs));
+			writeLine(StringUtils.addTabsFront("<" + columnName + ">" + tagContent + "</" + columnName + ">", tabs));
 	}
 	
 	private String getNullColumnComment(String columnName)
@@ -379,6 +596,30 @@ public class XMLRecordsExporter extends SimpleExporter
 		return true;
 	}
 	
+	/**
+	 * The XML representation of a chunk of records, formatted for a parallel export.
+	 */
+	static private final class FormattedChunk
+	{
+		
+		public final String xml;
+		public final List<Record> formattedRecords;
+		public final Exception failure;
+		
+		/**
+		 * @param xml
+		 * @param formattedRecords
+		 * @param failure may be null
+		 */
+		public FormattedChunk(String xml, List<Record> formattedRecords, Exception failure)
+		{
+			this.xml = xml;
+			this.formattedRecords = formattedRecords;
+			this.failure = failure;
+		}
+		
+	}
+	
 	/**
 	 * Helper class which creates String representations, escaped as necessary, of column values.
 	 * 
@@ -19,11 +19,23 @@
 package uk.ac.ucl.excites.sapelli.storage.eximport.xml;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.xml.sax.SAXException;
 
@@ -32,6 +44,8 @@ import uk.ac.ucl.excites.sapelli.shared.util.ExceptionHelpers;
 import uk.ac.ucl.excites.sapelli.shared.util.xml.DocumentParser;
 import uk.ac.ucl.excites.sapelli.shared.util.xml.XMLAttributes;
 import uk.ac.ucl.excites.sapelli.storage.StorageClient;
+import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
+import uk.ac.ucl.excites.sapelli.storage.db.RecordStore.RecordHandler;
 import uk.ac.ucl.excites.sapelli.storage.eximport.Exporter;
 import uk.ac.ucl.excites.sapelli.storage.eximport.Importer;
 import uk.ac.ucl.excites.sapelli.storage.eximport.SimpleExporter;
@@ -87,12 +101,35 @@ import uk.ac.ucl.excites.sapelli.storage.util.UnknownModelException;
  * <p>In both cases the result is that whatever CDATA the ValueSetColumn tag contains will be ignored. Instead the empty String ("") is
  * passed to {@link XMLImportHelper#parseAndStoreValue(Column, String, ValueSet)} which ensures an empty sub-ValueSet is inserted.
  * This allows us to maintain the difference between {@code null} and empty (i.e. with all {@code null} values) sub-ValueSets. 
+ * </p>
+ * <p>Besides {@link #importFrom(File)}, which returns all records in a list, records can also be pushed to a {@link RecordHandler}
+ * (or stored in a {@link RecordStore} in batches) as soon as their closing tag is parsed, such that memory use no longer grows with
+ * the size of the file. Models resolved while importing are cached for the lifetime of the importer, across files.
+ * </p>
  * 
  * @author mstevens
  */
 public class XMLRecordsImporter extends DocumentParser implements Importer
 {
 	
+	// STATIC -------------------------------------------------------
+	/**
+	 * Maximum number of parsed batches (per worker thread) waiting to be stored, see {@link #importInto(List, RecordStore, int, int)}.
+	 */
+	static public final int MAX_QUEUED_BATCHES_PER_THREAD = 2;
+
+	static private final Object FILE_DONE = new Object();
+
+	static private final FileFilter XML_FILE_FILTER = new FileFilter()
+	{
+		@Override
+		public boolean accept(File file)
+		{
+			return file.isFile() && file.getName().toLowerCase().endsWith("." + XMLRecordsExporter.FILE_EXTENSION);
+		}
+	};
+
+	// DYNAMIC ------------------------------------------------------
 	protected final StorageClient client;
 	protected final Map<Long, Model> modelCache;
 	
@@ -102,8 +139,9 @@ public class XMLRecordsImporter extends DocumentParser implements Importer
 	protected final XMLImportHelper helper;
 	
 	protected TimeStamp exportedAt;
-	protected List<Record> records;
+	protected RecordHandler recordHandler;
 	protected int recordTagCount;
+	protected int handledCount;
 	
 	protected Record currentRecord;
 	protected boolean v1xExport;
@@ -111,10 +149,19 @@ public class XMLRecordsImporter extends DocumentParser implements Importer
 	protected ColumnPointer<?> currentCP;
 
 	public XMLRecordsImporter(StorageClient client)
+	{
+		this(client, new ConcurrentHashMap<Long, Model>());
+	}
+
+	/**
+	 * @param client
+	 * @param modelCache model cache, possibly shared with other importers (in which case it must be thread-safe)
+	 */
+	protected XMLRecordsImporter(StorageClient client, Map<Long, Model> modelCache)
 	{
 		super();
 		this.client = client;
-		this.modelCache = new HashMap<Long, Model>();
+		this.modelCache = modelCache;
 		this.tagColumnDepths = new Stack<Integer>();
 		this.ignoreTags = new Stack<String>();
 		this.cdataStringBldr = new StringBuilder();
@@ -127,10 +174,35 @@ public class XMLRecordsImporter extends DocumentParser implements Importer
 	@Override
 	public List<Record> importFrom(File xmlFile) throws UnknownModelException, IndexOutOfBoundsException, Exception
 	{
-		// Allocate a new records list:
-		records = new ArrayList<Record>(); // (don't reuse old one as this object is returned) 
+		final List<Record> records = new ArrayList<Record>();
+		importInto(xmlFile, new RecordHandler()
+		{
+			@Override
+			public boolean handle(Record record)
+			{
+				records.add(record);
+				return true;
+			}
+		});
+		return records;
+	}
 
+	/**
+	 * Streaming import: each parsed record is passed to the given handler as soon as its closing tag is reached,
+	 * instead of being collected in a list. Parsing stops early if the handler returns {@code false}.
+	 *
+	 * @param xmlFile
+	 * @param handler
+	 * @return the number of records passed to the handler
+	 * @throws UnknownModelException
+	 * @throws IndexOutOfBoundsException
+	 * @throws Exception
+	 */
+	public int importInto(File xmlFile, RecordHandler handler) throws UnknownModelException, IndexOutOfBoundsException, Exception
+	{
 		// (Re)initialise data structures:
+		recordHandler = handler;
+		handledCount = 0;
 		exportedAt = null;
 		recordTagCount = 0;
 		ignoreTags.clear();
@@ -140,10 +212,213 @@ public class XMLRecordsImporter extends DocumentParser implements Importer
 		currentCP = null;
 		
 		// Parse the file:
-		parse(open(xmlFile));
+		try
+		{
+			parse(open(xmlFile));
+		}
+		catch(ImportStoppedException ise)
+		{
+			// the handler asked us to stop
+		}
+		finally
+		{
+			recordHandler = null;
+		}
 		
-		// Return parsed records:
-		return records;
+		// Return number of handled records:
+		return handledCount;
+	}
+
+	/**
+	 * Streaming import which stores the parsed records in the given {@link RecordStore}, in batches of (at most)
+	 * {@code batchSize} records, each batch in its own transaction.
+	 *
+	 * @param xmlFile
+	 * @param recordStore
+	 * @param batchSize maximum number of records stored per transaction
+	 * @return the number of records stored
+	 * @throws Exception in case of a parsing or storage problem, batches stored before the problem occurred are not rolled back
+	 */
+	public int importInto(File xmlFile, final RecordStore recordStore, final int batchSize) throws Exception
+	{
+		if(batchSize < 1)
+			throw new IllegalArgumentException("Batch size must be at least 1");
+
+		final List<Record> batch = new ArrayList<Record>(batchSize);
+		final Exception[] storeError = { null };
+		int count = importInto(xmlFile, new RecordHandler()
+		{
+			@Override
+			public boolean handle(Record record)
+			{
+				batch.add(record);
+				if(batch.size() == batchSize)
+				{
+					try
+					{
+						recordStore.store(batch);
+					}
+					catch(Exception e)
+					{
+						storeError[0] = e;
+						return false;
+					}
+					batch.clear();
+				}
+				return true;
+			}
+		});
+		if(storeError[0] != null)
+			throw storeError[0];
+
+		// Store remaining records:
+		if(!batch.isEmpty())
+			recordStore.store(batch);
+
+		return count;
+	}
+
+	/**
+	 * Imports all XML files in the given directory (not recursively) into the given {@link RecordStore}, using up to {@code maxThreads} parser threads.
+	 *
+	 * @param directory
+	 * @param recordStore
+	 * @param batchSize maximum number of records stored per transaction
+	 * @param maxThreads maximum number of files parsed concurrently
+	 * @return the number of records stored
+	 * @throws Exception
+	 * @see #importInto(List, RecordStore, int, int)
+	 */
+	public int importDirectory(File directory, RecordStore recordStore, int batchSize, int maxThreads) throws Exception
+	{
+		File[] xmlFiles = directory.listFiles(XML_FILE_FILTER);
+		if(xmlFiles == null)
+			throw new IllegalArgumentException("Cannot list files in " + directory.getAbsolutePath());
+		Arrays.sort(xmlFiles);
+		return importInto(Arrays.asList(xmlFiles), recordStore, batchSize, maxThreads);
+	}
+
+	/**
+	 * Imports the given XML files into the given {@link RecordStore}, parsing up to {@code maxThreads} files concurrently.
+	 *
+	 * Parsing happens on worker threads, which hand records over in batches of (at most) {@code batchSize}. All batches are stored,
+	 * each in its own transaction, on the calling thread, which is assumed to be the only one allowed to use the RecordStore.
+	 * Models which are not yet in the (shared) {@link #modelCache} are also looked up on the calling thread, for the same reason.
+	 *
+	 * A file which cannot be parsed does not stop the others from being imported; the problem is reported as a warning instead.
+	 * Warnings raised while parsing a file are prefixed with its name. Afterwards {@link #getLastImportExportedAtTime()} returns
+	 * the exportedAt time of the last file in the list which had one.
+	 *
+	 * @param xmlFiles
+	 * @param recordStore
+	 * @param batchSize maximum number of records stored per transaction
+	 * @param maxThreads maximum number of files parsed concurrently
+	 * @return the number of records stored
+	 * @throws Exception in case of a storage problem, batches stored before the problem occurred are not rolled back
+	 */
+	@SuppressWarnings("unchecked")
+	public int importInto(List<File> xmlFiles, RecordStore recordStore, int batchSize, int maxThreads) throws Exception
+	{
+		if(batchSize < 1)
+			throw new IllegalArgumentException("Batch size must be at least 1");
+		clearWarnings();
+		exportedAt = null;
+		if(xmlFiles.isEmpty())
+			return 0;
+
+		// Start parsing files on worker threads:
+		int numberOfThreads = Math.max(1, Math.min(maxThreads, xmlFiles.size()));
+		BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(numberOfThreads * MAX_QUEUED_BATCHES_PER_THREAD);
+		AtomicBoolean aborted = new AtomicBoolean(false);
+		ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+		List<FileImporter> importers = new ArrayList<FileImporter>(xmlFiles.size());
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>(xmlFiles.size());
+		for(File xmlFile : xmlFiles)
+		{
+			FileImporter importer = new FileImporter(xmlFile, batchSize, queue, aborted);
+			importers.add(importer);
+			results.add(executor.submit(importer));
+		}
+
+		// Store batches & run model look-ups as they arrive:
+		int stored = 0;
+		try
+		{
+			int done = 0;
+			while(done < xmlFiles.size())
+			{
+				Object item = queue.take();
+				if(item == FILE_DONE)
+					done++;
+				else if(item instanceof FutureTask)
+					((FutureTask<?>) item).run();
+				else
+				{
+					List<Record> batch = (List<Record>) item;
+					recordStore.store(batch);
+					stored += batch.size();
+				}
+			}
+		}
+		catch(Exception e)
+		{
+			aborted.set(true);
+			executor.shutdownNow();
+			throw e;
+		}
+		executor.shutdown();
+
+		// Gather problems & warnings:
+		for(int f = 0; f < xmlFiles.size(); f++)
+		{
+			FileImporter importer = importers.get(f);
+			try
+			{
+				results.get(f).get();
+			}
+			catch(ExecutionException ee)
+			{
+				addWarning("Could not import records from " + importer.xmlFile.getName() + ": " + ExceptionHelpers.getMessageAndCause(ee.getCause()));
+			}
+			for(String warning : importer.getWarnings())
+				addWarning(importer.xmlFile.getName() + ": " + warning);
+			if(importer.exportedAt != null)
+				exportedAt = importer.exportedAt;
+		}
+
+		return stored;
+	}
+
+	/**
+	 * @param schemaID
+	 * @param schemaVersion
+	 * @return the v1.x schema
+	 * @throws Exception
+	 */
+	protected Schema getSchemaV1(int schemaID, int schemaVersion) throws Exception
+	{
+		// we don't use a cache here because all calls to getSchemaV1() are effectively handled by ProjectRecordStore, which has its own caching mechanism
+		return client.getSchemaV1(schemaID, schemaVersion);
+	}
+
+	/**
+	 * @param modelID
+	 * @param modelSchemaNo
+	 * @param schemaName may be null
+	 * @return the schema
+	 * @throws Exception
+	 */
+	protected Schema getSchema(long modelID, int modelSchemaNo, String schemaName) throws Exception
+	{
+		// Try to find model in cache first:
+		Model model = modelCache.get(modelID);
+		if(model != null)
+			return model.getSchema(modelSchemaNo);
+		// Not found, query via client:
+		Schema schema = client.getSchema(modelID, modelSchemaNo, schemaName);
+		// Cache the model:
+		modelCache.put(modelID, schema.model);
+		return schema;
 	}
 
 	@Override
@@ -190,8 +465,7 @@ public class XMLRecordsImporter extends DocumentParser implements Importer
 					//	Get schema:
 					int schemaID = attributes.getRequiredInteger(Record.TAG_RECORD, Schema.V1X_ATTRIBUTE_SCHEMA_ID, "because this is a v1.x record");
 					int schemaVersion = attributes.getInteger(Schema.V1X_ATTRIBUTE_SCHEMA_VERSION, Schema.V1X_DEFAULT_SCHEMA_VERSION);
-					schema = client.getSchemaV1(schemaID, schemaVersion);
-					// we don't use a cache here because all calls to getSchemaV1() are effectively handled by ProjectRecordStore, which has its own caching mechanism  
+					schema = getSchemaV1(schemaID, schemaVersion);
 				}
 				else
 				{	// This records was exported by Sapelli v2.x 
@@ -199,18 +473,7 @@ public class XMLRecordsImporter extends DocumentParser implements Importer
 					//	Get schema:
 					long modelID = attributes.getRequiredLong(Record.TAG_RECORD, Schema.ATTRIBUTE_MODEL_ID);
 					int modelSchemaNo = attributes.getRequiredInteger(Record.TAG_RECORD, Schema.ATTRIBUTE_MODEL_SCHEMA_NUMBER);
-					// 	Try to find model in cache first:
-					if(modelCache.containsKey(modelID))
-					{	// Found it...
-						schema = modelCache.get(modelID).getSchema(modelSchemaNo);
-					}
-					else
-					{	// Not found, query via client:
-						String schemaName = attributes.getString(Schema.ATTRIBUTE_SCHEMA_NAME, null, false, false);
-						schema = client.getSchema(modelID, modelSchemaNo, schemaName);
-						// Cache the model:
-						modelCache.put(modelID, schema.model);
-					}
+					schema = getSchema(modelID, modelSchemaNo, attributes.getString(Schema.ATTRIBUTE_SCHEMA_NAME, null, false, false));
 				}
 				
 				// This is valid <Record> tag, try to get a new, initialised record instance:
@@ -303,11 +566,12 @@ public class XMLRecordsImporter extends DocumentParser implements Importer
 			if(!currentRecord.isFilled(true)) // recursive "filledness" check
 				addWarning("Imported record (#" + recordTagCount + ") is incomplete: " + currentRecord.toString(false));
 			
-			// Add parsed record:
-			records.add(currentRecord);
-			
-			// And forget about it:
-			currentRecord = null;
+			// Hand over parsed record:
+			Record record = currentRecord;
+			currentRecord = null; // and forget about it
+			handledCount++;
+			if(!recordHandler.handle(record))
+				throw new ImportStoppedException();
 		}
 		// Columns:
 		else if(currentCP != null && currentRecord != null && ignoreTags.isEmpty()) // currentCP not being null also implies there is a currentRecord and tagColumnDepths is not empty
@@ -403,4 +667,156 @@ public class XMLRecordsImporter extends DocumentParser implements Importer
 
 	}
 
+	/**
+	 * Thrown to stop parsing when the {@link RecordHandler} does not want any more records.
+	 */
+	static private final class ImportStoppedException extends SAXException
+	{
+
+		private static final long serialVersionUID = 2L;
+
+		public ImportStoppedException()
+		{
+			super("Import stopped by record handler");
+		}
+
+	}
+
+	/**
+	 * Worker which parses a single file, as part of {@link XMLRecordsImporter#importInto(List, RecordStore, int, int)}, and hands batches
+	 * of records (and model look-ups) over to the importing thread through the given queue.
+	 */
+	private final class FileImporter extends XMLRecordsImporter implements Callable<Integer>, RecordHandler
+	{
+
+		private final File xmlFile;
+		private final int batchSize;
+		private final BlockingQueue<Object> queue;
+		private final AtomicBoolean aborted;
+
+		private List<Record> batch;
+		private boolean interrupted = false;
+
+		public FileImporter(File xmlFile, int batchSize, BlockingQueue<Object> queue, AtomicBoolean aborted)
+		{
+			super(XMLRecordsImporter.this.client, XMLRecordsImporter.this.modelCache);
+			this.xmlFile = xmlFile;
+			this.batchSize = batchSize;
+			this.queue = queue;
+			this.aborted = aborted;
+		}
+
+		@Override
+		public Integer call() throws Exception
+		{
+			try
+			{
+				batch = new ArrayList<Record>(batchSize);
+				int count = importInto(xmlFile, this);
+				if(interrupted)
+					throw new InterruptedException();
+				// Hand over remaining records:
+				if(!batch.isEmpty())
+					handOver(batch);
+				return count;
+			}
+			finally
+			{
+				batch = null;
+				try
+				{
+					handOver(FILE_DONE);
+				}
+				catch(InterruptedException ignore) {}
+			}
+		}
+
+		@Override
+		public boolean handle(Record record)
+		{
+			batch.add(record);
+			if(batch.size() == batchSize)
+			{
+				try
+				{
+					handOver(batch);
+				}
+				catch(InterruptedException ie)
+				{
+					interrupted = true;
+					return false;
+				}
+				batch = new ArrayList<Record>(batchSize);
+			}
+			return true;
+		}
+
+		/**
+		 * Puts the given item in the queue, waiting for space to become available unless the import has been aborted.
+		 *
+		 * @param item
+		 * @throws InterruptedException when the import was aborted
+		 */
+		private void handOver(Object item) throws InterruptedException
+		{
+			while(!queue.offer(item, 100, TimeUnit.MILLISECONDS))
+				if(aborted.get())
+					throw new InterruptedException();
+		}
+
+		/**
+		 * Model look-ups may involve the client's stores, so we let the importing thread do them.
+		 *
+		 * @see uk.ac.ucl.excites.sapelli.storage.eximport.xml.XMLRecordsImporter#getSchema(long, int, java.lang.String)
+		 */
+		@Override
+		protected Schema getSchema(final long modelID, final int modelSchemaNo, final String schemaName) throws Exception
+		{
+			// Try to find model in (shared) cache first:
+			Model model = modelCache.get(modelID);
+			if(model != null)
+				return model.getSchema(modelSchemaNo);
+			// Not found, look it up on importing thread:
+			return lookUp(new Callable<Schema>()
+			{
+				@Override
+				public Schema call() throws Exception
+				{
+					return FileImporter.super.getSchema(modelID, modelSchemaNo, schemaName);
+				}
+			});
+		}
+
+		/* (non-Javadoc)
+		 * @see uk.ac.ucl.excites.sapelli.storage.eximport.xml.XMLRecordsImporter#getSchemaV1(int, int)
+		 */
+		@Override
+		protected Schema getSchemaV1(final int schemaID, final int schemaVersion) throws Exception
+		{
+			return lookUp(new Callable<Schema>()
+			{
+				@Override
+				public Schema call() throws Exception
+				{
+					return FileImporter.super.getSchemaV1(schemaID, schemaVersion);
+				}
+			});
+		}
+
+		private Schema lookUp(Callable<Schema> lookUp) throws Exception
+		{
+			FutureTask<Schema> task = new FutureTask<Schema>(lookUp);
+			handOver(task);
+			try
+			{
+				return task.get();
+			}
+			catch(ExecutionException ee)
+			{
+				throw ee.getCause() instanceof Exception ? (Exception) ee.getCause() : ee;
+			}
+		}
+
+	}
+
 }
@@ -277,7 +277,7 @@ public class RecordsQuery extends Query<List<Record>>
 		
 		// Limit:
 		if(limit != NO_LIMIT)
-			records = records.subList(0, limit);
+			records = records.subList(0, Math.min(limit, records.size()));
 		
 		return records;
 	}
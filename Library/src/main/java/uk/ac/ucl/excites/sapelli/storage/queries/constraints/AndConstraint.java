@@ -28,6 +28,8 @@ import uk.ac.ucl.excites.sapelli.storage.model.Record;
 public class AndConstraint extends CompositeConstraint
 {
 
+	private static final long serialVersionUID = 2L;
+	
 	public AndConstraint(Constraint... constraints)
 	{
 		super(constraints);
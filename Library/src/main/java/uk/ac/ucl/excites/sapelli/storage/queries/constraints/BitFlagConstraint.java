@@ -31,6 +31,8 @@ import uk.ac.ucl.excites.sapelli.storage.util.ColumnPointer;
 public class BitFlagConstraint extends Constraint
 {
 
+	private static final long serialVersionUID = 2L;
+	
 	private final ColumnPointer<IntegerColumn> flagsColumnPointer;
 	private final int flagsPattern;
 	
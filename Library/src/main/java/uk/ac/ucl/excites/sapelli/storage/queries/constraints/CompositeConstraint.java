@@ -29,6 +29,8 @@ import java.util.List;
 public abstract class CompositeConstraint extends Constraint
 {
 
+	private static final long serialVersionUID = 2L;
+	
 	private List<Constraint> constraints;
 
 	/**
@@ -18,6 +18,7 @@
 
 package uk.ac.ucl.excites.sapelli.storage.queries.constraints;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -30,10 +31,12 @@ import uk.ac.ucl.excites.sapelli.storage.model.Record;
  * 
  * @author mstevens
  */
-public abstract class Constraint
+public abstract class Constraint implements Serializable
 {
 
 	// STATICS-------------------------------------------------------
+	private static final long serialVersionUID = 2L;
+	
 	static public Constraint Reduce(Constraint constraint)
 	{
 		return constraint != null ? constraint.reduce() : null;
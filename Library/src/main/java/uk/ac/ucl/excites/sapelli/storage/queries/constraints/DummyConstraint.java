@@ -28,6 +28,8 @@ import uk.ac.ucl.excites.sapelli.storage.model.Record;
 public class DummyConstraint extends Constraint
 {
 
+	private static final long serialVersionUID = 2L;
+	
 	/**
 	 * A DummyConstraint instance which accepts all records.
 	 */
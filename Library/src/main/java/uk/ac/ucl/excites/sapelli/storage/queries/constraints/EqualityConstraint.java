@@ -32,6 +32,8 @@ import uk.ac.ucl.excites.sapelli.storage.util.InvalidValueException;
 public class EqualityConstraint extends Constraint
 {
 	// STATICS-------------------------------------------------------
+	private static final long serialVersionUID = 2L;
+	
 	static public EqualityConstraint IsNull(Column<?> column)
 	{
 		return IsNull(new ColumnPointer<Column<?>>(column));
@@ -28,6 +28,8 @@ import uk.ac.ucl.excites.sapelli.storage.model.Record;
 public class NotConstraint extends Constraint
 {
 
+	private static final long serialVersionUID = 2L;
+	
 	private final Constraint negatedConstraint;
 	
 	/*package*/ NotConstraint(Constraint negatedConstraint)
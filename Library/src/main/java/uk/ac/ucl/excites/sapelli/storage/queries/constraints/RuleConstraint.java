@@ -37,6 +37,8 @@ public class RuleConstraint extends Constraint
 {
 	
 	// STATICS-------------------------------------------------------
+	private static final long serialVersionUID = 2L;
+	
 	static public enum Comparison
 	{
 		SMALLER, 			/* < */
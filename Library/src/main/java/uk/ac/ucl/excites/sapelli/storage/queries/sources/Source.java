@@ -38,6 +38,8 @@ public abstract class Source extends Constraint
 {
 
 	// STATICS ------------------------------------------------------
+	private static final long serialVersionUID = 2L;
+	
 	/**
 	 * A Source which matches any Schema.
 	 */
@@ -31,6 +31,8 @@ public class SourceByFlags extends Source
 {
 
 	// STATICS ------------------------------------------------------
+	private static final long serialVersionUID = 2L;
+	
 	static /*package*/ final boolean BY_MATCH = true;
 	static /*package*/ final boolean BY_MISMATCH = !BY_MATCH;
 	
@@ -35,6 +35,8 @@ public class SourceBySchemata extends Source
 {
 
 	// STATICS ------------------------------------------------------
+	private static final long serialVersionUID = 2L;
+	
 	static /*package*/ final boolean BY_INCLUSION = true;
 	static /*package*/ final boolean BY_EXCLUSION = !BY_INCLUSION;
 	
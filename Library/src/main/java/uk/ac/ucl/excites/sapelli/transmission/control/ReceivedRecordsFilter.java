@@ -0,0 +1,239 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.transmission.control;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import uk.ac.ucl.excites.sapelli.shared.collections.BloomFilter;
+import uk.ac.ucl.excites.sapelli.shared.util.Metrics;
+import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.RecordReference;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.queries.RecordsQuery;
+import uk.ac.ucl.excites.sapelli.transmission.db.TransmissionStore;
+
+/**
+ * Keeps, per schema, a {@link BloomFilter} over the primary key values of the records received by a {@link TransmissionController},
+ * so that records which are received again (e.g. because a transmission was resent after its acknowledgement got lost) need not be
+ * stored again.
+ * 
+ * A record whose key is definitely not in the filter is stored as usual. A record whose key might be in the filter is compared
+ * with the stored version and only skipped if it is identical to it, so the filter never causes a record to be lost: a missing,
+ * outdated or falsely positive filter only costs performance.
+ * 
+ * Filters are persisted in the {@link TransmissionStore}, and rebuilt from the record store (from the keys of all records of the
+ * schema) when missing. A filter which holds more keys than its capacity is rebuilt with twice the capacity.
+ * Because every persist rewrites the whole filter, changes are only persisted once enough keys have been added or enough time
+ * has passed since the last persist (see {@link #persistIfDue()}), and when {@link #persist()} is called explicitly. Keys which
+ * were lost because they had not been persisted yet only cause the records concerned to be stored again if they are re-received.
+ * 
+ * Not thread-safe.
+ */
+public final class ReceivedRecordsFilter
+{
+
+	// STATIC -------------------------------------------------------
+	static public final int DEFAULT_CAPACITY = 10000;
+	static public final double DEFAULT_FALSE_POSITIVE_PROBABILITY = 0.01d;
+	static public final int DEFAULT_PERSIST_AFTER_KEYS = 1000;
+	static public final long DEFAULT_PERSIST_AFTER_MS = 60 * 1000; // 1 minute
+	
+	static public final String METRIC_DEFINITELY_NEW = "transmission.receipt.filter.new";
+	static public final String METRIC_POSSIBLY_STORED = "transmission.receipt.filter.possible";
+	static public final String METRIC_DUPLICATES = "transmission.receipt.filter.duplicates";
+	static public final String METRIC_REBUILDS = "transmission.receipt.filter.rebuilds";
+	
+	// DYNAMIC ------------------------------------------------------
+	private final TransmissionStore transmissionStore;
+	private final RecordStore recordStore;
+	private final Metrics metrics;
+	private final int initialCapacity;
+	private final double falsePositiveProbability;
+	private final int persistAfterKeys;
+	private final long persistAfterMS;
+	
+	private final Map<Schema, BloomFilter> filters = new HashMap<Schema, BloomFilter>();
+	private final Set<Schema> changed = new HashSet<Schema>();
+	private int unpersistedKeys = 0;
+	private boolean overloaded = false;
+	private long lastPersistedAt;
+	
+	/**
+	 * @param transmissionStore
+	 * @param recordStore
+	 * @param metrics
+	 * @param initialCapacity capacity of new filters (rebuilt filters get at least twice the number of keys they hold)
+	 * @param falsePositiveProbability in (0, 1)
+	 */
+	public ReceivedRecordsFilter(TransmissionStore transmissionStore, RecordStore recordStore, Metrics metrics, int initialCapacity, double falsePositiveProbability)
+	{
+		this(transmissionStore, recordStore, metrics, initialCapacity, falsePositiveProbability, DEFAULT_PERSIST_AFTER_KEYS, DEFAULT_PERSIST_AFTER_MS);
+	}
+	
+	/**
+	 * @param transmissionStore
+	 * @param recordStore
+	 * @param metrics
+	 * @param initialCapacity capacity of new filters (rebuilt filters get at least twice the number of keys they hold)
+	 * @param falsePositiveProbability in (0, 1)
+	 * @param persistAfterKeys number of added keys after which {@link #persistIfDue()} persists the changed filters
+	 * @param persistAfterMS time (in milliseconds) after the last persist after which {@link #persistIfDue()} persists the changed filters
+	 */
+	public ReceivedRecordsFilter(TransmissionStore transmissionStore, RecordStore recordStore, Metrics metrics, int initialCapacity, double falsePositiveProbability, int persistAfterKeys, long persistAfterMS)
+	{
+		BloomFilter.GetOptimalNumberOfBits(initialCapacity, falsePositiveProbability); // validates arguments
+		if(persistAfterKeys < 1 || persistAfterMS < 0)
+			throw new IllegalArgumentException("Invalid persisting interval");
+		this.transmissionStore = transmissionStore;
+		this.recordStore = recordStore;
+		this.metrics = metrics;
+		this.initialCapacity = initialCapacity;
+		this.falsePositiveProbability = falsePositiveProbability;
+		this.persistAfterKeys = persistAfterKeys;
+		this.persistAfterMS = persistAfterMS;
+		this.lastPersistedAt = System.currentTimeMillis();
+	}
+	
+	/**
+	 * @param received
+	 * @return the received records which are not already stored with identical values (in the original order)
+	 * @throws Exception when the key of a record cannot be encoded
+	 */
+	public List<Record> removeStored(List<Record> received) throws Exception
+	{
+		List<Record> toStore = new ArrayList<Record>(received.size());
+		int definitelyNew = 0, possiblyStored = 0;
+		for(Record record : received)
+		{
+			RecordReference reference = record.getReference();
+			if(!getFilter(record.getSchema()).mightContain(reference.toBytes(true)))
+				definitelyNew++;
+			else
+			{	// Exact check:
+				possiblyStored++;
+				Record stored = recordStore.retrieveRecord(reference);
+				if(stored != null && record.hasEqualValues(stored))
+					continue; // duplicate
+			}
+			toStore.add(record);
+		}
+		metrics.counter(METRIC_DEFINITELY_NEW).add(definitelyNew);
+		metrics.counter(METRIC_POSSIBLY_STORED).add(possiblyStored);
+		metrics.counter(METRIC_DUPLICATES).add(received.size() - toStore.size());
+		return toStore;
+	}
+	
+	/**
+	 * Adds the keys of the given (now stored) records to the filters of their schemata.
+	 * 
+	 * @param stored
+	 * @throws Exception when the key of a record cannot be encoded
+	 */
+	public void add(List<Record> stored) throws Exception
+	{
+		for(Record record : stored)
+		{
+			BloomFilter filter = getFilter(record.getSchema());
+			if(filter.put(record.getReference().toBytes(true)))
+			{
+				changed.add(record.getSchema());
+				unpersistedKeys++;
+				overloaded |= filter.isOverloaded();
+			}
+		}
+	}
+	
+	/**
+	 * Persists the changed filters if at least {@code persistAfterKeys} keys have been added, or at least {@code persistAfterMS}
+	 * milliseconds have passed, since the last persist, or if a filter has become overloaded (so it gets rebuilt).
+	 * 
+	 * @return whether or not the filters were persisted
+	 */
+	public boolean persistIfDue()
+	{
+		if(changed.isEmpty() || (!overloaded && unpersistedKeys < persistAfterKeys && System.currentTimeMillis() - lastPersistedAt < persistAfterMS))
+			return false;
+		persist();
+		return true;
+	}
+	
+	/**
+	 * Stores the filters which have changed since they were loaded, built or last persisted (rebuilding overloaded ones first).
+	 */
+	public void persist()
+	{
+		for(Schema schema : changed)
+		{
+			BloomFilter filter = filters.get(schema);
+			if(filter.isOverloaded())
+				filters.put(schema, filter = rebuild(schema, filter.getCapacity() * 2));
+			transmissionStore.storeReceivedRecordsFilter(schema, filter);
+		}
+		changed.clear();
+		unpersistedKeys = 0;
+		overloaded = false;
+		lastPersistedAt = System.currentTimeMillis();
+	}
+	
+	/**
+	 * @param schema
+	 * @return the (loaded or built) filter for the given schema
+	 */
+	private BloomFilter getFilter(Schema schema)
+	{
+		BloomFilter filter = filters.get(schema);
+		if(filter == null)
+		{
+			filter = transmissionStore.retrieveReceivedRecordsFilter(schema);
+			if(filter == null)
+			{
+				filter = rebuild(schema, initialCapacity);
+				changed.add(schema);
+			}
+			filters.put(schema, filter);
+		}
+		return filter;
+	}
+	
+	/**
+	 * @param schema
+	 * @param minimumCapacity
+	 * @return a new filter holding the keys of all stored records of the given schema
+	 */
+	private BloomFilter rebuild(Schema schema, int minimumCapacity)
+	{
+		metrics.counter(METRIC_REBUILDS).increment();
+		List<RecordReference> references = recordStore.retrieveRecordReferences(new RecordsQuery(schema));
+		BloomFilter filter = new BloomFilter(Math.max(minimumCapacity, references.size() * 2), falsePositiveProbability);
+		for(RecordReference reference : references)
+			try
+			{
+				filter.put(reference.toBytes(true));
+			}
+			catch(Exception ignore) {} // (key will never be found, so the record will simply be stored again if it is received)
+		return filter;
+	}
+	
+}
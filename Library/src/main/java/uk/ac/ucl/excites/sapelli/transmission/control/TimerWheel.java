@@ -0,0 +1,279 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.transmission.control;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A hashed timer wheel which tracks one deadline per key.
+ *
+ * Time is divided in ticks of a fixed duration, and each deadline is put in the slot of the tick in which it falls
+ * (modulo the number of slots). Scheduling and cancelling are O(1), and advancing the wheel by one tick only visits the
+ * deadlines which hash to that tick's slot. Deadlines never fire early, but may fire up to one tick late.
+ *
+ * The wheel does not read the clock itself: the current time is passed to {@link #advance(long, Collection)}, which
+ * makes it usable with a simulated clock. When driven by a real clock, the caller can use the expiry times returned by
+ * {@link #schedule(Object, long)} and {@link #getNextExpiryTime()} to only advance the wheel when a deadline is due,
+ * instead of on every tick. The class is not thread-safe.
+ *
+ * @param <K> key type
+ */
+public final class TimerWheel<K>
+{
+
+	// STATIC -------------------------------------------------------
+	static public final long DEFAULT_TICK_MS = 1000;
+	static public final int DEFAULT_NUMBER_OF_SLOTS = 4096;
+
+	// DYNAMIC ------------------------------------------------------
+	private final long tickMS;
+	private final long startMS;
+	private final int mask;
+	private final Entry<K>[] slots;
+	private final Map<K, Entry<K>> entries = new HashMap<K, Entry<K>>();
+
+	/**
+	 * Last tick which has been processed.
+	 */
+	private long currentTick = 0;
+
+	/**
+	 * @param tickMS duration of a tick in milliseconds
+	 * @param minimumNumberOfSlots the number of slots is the smallest power of 2 which is greater than or equal to this value
+	 * @param startMS current time, in milliseconds
+	 */
+	@SuppressWarnings("unchecked")
+	public TimerWheel(long tickMS, int minimumNumberOfSlots, long startMS)
+	{
+		if(tickMS < 1)
+			throw new IllegalArgumentException("Invalid tick duration: " + tickMS);
+		if(minimumNumberOfSlots < 1 || minimumNumberOfSlots > 1 << 30)
+			throw new IllegalArgumentException("Invalid number of slots: " + minimumNumberOfSlots);
+		int numberOfSlots = Integer.highestOneBit(minimumNumberOfSlots);
+		if(numberOfSlots < minimumNumberOfSlots)
+			numberOfSlots <<= 1;
+		this.tickMS = tickMS;
+		this.startMS = startMS;
+		this.mask = numberOfSlots - 1;
+		this.slots = (Entry<K>[]) new Entry<?>[numberOfSlots];
+	}
+
+	/**
+	 * Schedules (or reschedules) the deadline of the given key. Deadlines which have already passed fire on the next tick.
+	 *
+	 * @param key
+	 * @param deadlineMS
+	 * @return the time (in milliseconds) from which {@link #advance(long, Collection)} expires the deadline
+	 */
+	public long schedule(K key, long deadlineMS)
+	{
+		if(key == null)
+			throw new NullPointerException("Key cannot be null");
+		Entry<K> entry = entries.get(key);
+		if(entry != null)
+			unlink(entry);
+		else
+		{
+			entry = new Entry<K>(key);
+			entries.put(key, entry);
+		}
+		entry.deadlineMS = deadlineMS;
+		long ticks = deadlineMS <= startMS ? 0 : (deadlineMS - startMS + tickMS - 1) / tickMS; // round up, so deadlines never fire early
+		entry.deadlineTick = Math.max(ticks, currentTick + 1);
+		link(entry);
+		return getExpiryTime(entry);
+	}
+
+	/**
+	 * @param key
+	 * @return whether a deadline was scheduled for the given key
+	 */
+	public boolean cancel(K key)
+	{
+		Entry<K> entry = entries.remove(key);
+		if(entry == null)
+			return false;
+		unlink(entry);
+		return true;
+	}
+
+	/**
+	 * @param key
+	 * @return the deadline scheduled for the given key (in milliseconds), or {@code null} if there is none
+	 */
+	public Long getDeadline(K key)
+	{
+		Entry<K> entry = entries.get(key);
+		return entry != null ? Long.valueOf(entry.deadlineMS) : null;
+	}
+
+	/**
+	 * Looks up the earliest expiry time by visiting all scheduled deadlines, so it is meant to be called after advancing
+	 * the wheel, rather than after each (re)scheduling.
+	 *
+	 * @return the earliest time (in milliseconds) from which {@link #advance(long, Collection)} expires a deadline, or {@code null} if there are none
+	 */
+	public Long getNextExpiryTime()
+	{
+		Entry<K> next = null;
+		for(Entry<K> entry : entries.values())
+			if(next == null || entry.deadlineTick < next.deadlineTick)
+				next = entry;
+		return next != null ? Long.valueOf(getExpiryTime(next)) : null;
+	}
+
+	/**
+	 * @param entry
+	 * @return the start time of the tick in which the given entry expires
+	 */
+	private long getExpiryTime(Entry<K> entry)
+	{
+		return startMS + entry.deadlineTick * tickMS;
+	}
+
+	/**
+	 * Removes the keys whose deadline has passed and adds them to the given collection (in no particular order).
+	 *
+	 * @param nowMS current time, in milliseconds
+	 * @param expired collection to add the keys of expired deadlines to
+	 * @return the number of expired deadlines
+	 */
+	public int advance(long nowMS, Collection<? super K> expired)
+	{
+		long nowTick = nowMS <= startMS ? 0 : (nowMS - startMS) / tickMS;
+		if(nowTick <= currentTick)
+			return 0;
+		int count = 0;
+		if(nowTick - currentTick > mask)
+		{	// (at least) a full turn, visit every slot once:
+			for(int s = 0; s < slots.length; s++)
+				count += expire(s, nowTick, expired);
+		}
+		else
+			for(long t = currentTick + 1; t <= nowTick; t++)
+				count += expire((int) (t & mask), nowTick, expired);
+		currentTick = nowTick;
+		return count;
+	}
+
+	/**
+	 * @param slot
+	 * @param nowTick
+	 * @param expired
+	 * @return the number of expired deadlines in the given slot
+	 */
+	private int expire(int slot, long nowTick, Collection<? super K> expired)
+	{
+		int count = 0;
+		Entry<K> entry = slots[slot];
+		while(entry != null)
+		{
+			Entry<K> next = entry.next;
+			if(entry.deadlineTick <= nowTick) // entries of later turns stay in the slot
+			{
+				unlink(entry);
+				entries.remove(entry.key);
+				expired.add(entry.key);
+				count++;
+			}
+			entry = next;
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of scheduled deadlines
+	 */
+	public int size()
+	{
+		return entries.size();
+	}
+
+	public boolean isEmpty()
+	{
+		return entries.isEmpty();
+	}
+
+	public void clear()
+	{
+		for(int s = 0; s < slots.length; s++)
+			slots[s] = null;
+		entries.clear();
+	}
+
+	/**
+	 * @return the tick duration in milliseconds
+	 */
+	public long getTickMS()
+	{
+		return tickMS;
+	}
+
+	/**
+	 * @return the number of slots
+	 */
+	public int getNumberOfSlots()
+	{
+		return slots.length;
+	}
+
+	private void link(Entry<K> entry)
+	{
+		int slot = (int) (entry.deadlineTick & mask);
+		entry.prev = null;
+		entry.next = slots[slot];
+		if(entry.next != null)
+			entry.next.prev = entry;
+		slots[slot] = entry;
+	}
+
+	private void unlink(Entry<K> entry)
+	{
+		if(entry.prev != null)
+			entry.prev.next = entry.next;
+		else
+			slots[(int) (entry.deadlineTick & mask)] = entry.next;
+		if(entry.next != null)
+			entry.next.prev = entry.prev;
+		entry.prev = null;
+		entry.next = null;
+	}
+
+	/**
+	 * A scheduled deadline, node of the doubly-linked list of its slot.
+	 */
+	static private final class Entry<K>
+	{
+
+		final K key;
+		long deadlineMS;
+		long deadlineTick;
+		Entry<K> prev;
+		Entry<K> next;
+
+		public Entry(K key)
+		{
+			this.key = key;
+		}
+
+	}
+
+}
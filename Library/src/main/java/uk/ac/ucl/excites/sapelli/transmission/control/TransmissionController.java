@@ -20,9 +20,16 @@ package uk.ac.ucl.excites.sapelli.transmission.control;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.joda.time.DateTime;
 
@@ -33,6 +40,8 @@ import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
 import uk.ac.ucl.excites.sapelli.shared.io.FileStorageException;
 import uk.ac.ucl.excites.sapelli.shared.util.ExceptionHelpers;
 import uk.ac.ucl.excites.sapelli.shared.util.Logger;
+import uk.ac.ucl.excites.sapelli.shared.util.Logger.OverflowPolicy;
+import uk.ac.ucl.excites.sapelli.shared.util.Metrics;
 import uk.ac.ucl.excites.sapelli.shared.util.StringUtils;
 import uk.ac.ucl.excites.sapelli.shared.util.TransactionalStringBuilder;
 import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
@@ -51,6 +60,7 @@ import uk.ac.ucl.excites.sapelli.transmission.model.content.ModelAccessUnauthori
 import uk.ac.ucl.excites.sapelli.transmission.model.content.ModelQueryPayload;
 import uk.ac.ucl.excites.sapelli.transmission.model.content.ModelRequestPayload;
 import uk.ac.ucl.excites.sapelli.transmission.model.content.NoSuchTransmissionPayload;
+import uk.ac.ucl.excites.sapelli.transmission.model.content.RecordValueBitsCache;
 import uk.ac.ucl.excites.sapelli.transmission.model.content.RecordsPayload;
 import uk.ac.ucl.excites.sapelli.transmission.model.content.ResendRequestPayload;
 import uk.ac.ucl.excites.sapelli.transmission.model.content.ResponsePayload;
@@ -81,6 +91,20 @@ public abstract class TransmissionController implements StoreHandle.StoreUser
 	
 	static protected final String LOG_FILENAME_PREFIX = "Transmission_";
 	
+	// Metric names (see StorageClient#enableMetrics()):
+	static public final String METRIC_SEND_RECORDS = "transmission.send.records";
+	static public final String METRIC_STORE_AND_SEND = "transmission.send";
+	static public final String METRIC_SENT = "transmission.sent";
+	static public final String METRIC_SENT_RECORDS = "transmission.sent.records";
+	static public final String METRIC_SEND_FAILURES = "transmission.send.failures";
+	static public final String METRIC_RECEIVE_SMS = "transmission.receive.sms";
+	static public final String METRIC_RECEIVE = "transmission.receive";
+	static public final String METRIC_RECEIVED = "transmission.received";
+	
+	// SMS timers (see startSMSTimers()):
+	static public final long DEFAULT_SMS_TIMERS_TICK_MS = 60 * 1000; // 1 minute (resend requests are hours apart)
+	static public final int DEFAULT_SMS_TIMERS_NUMBER_OF_SLOTS = 1024;
+	
 	static public enum ModelQueryStatus
 	{
 		Pending,
@@ -104,6 +128,19 @@ public abstract class TransmissionController implements StoreHandle.StoreUser
 	// Logger:
 	private Logger logger;
 	
+	// SMS timers (null unless enabled):
+	private TimerWheel<Integer> smsResendTimers;
+	private TimerWheel<Integer> smsExpiryTimers;
+	private boolean smsTimersWakeUps = false; // whether wake-ups are requested when deadlines are due (see startSMSTimers())
+	private Long smsTimersWakeUpMS; // time of the requested wake-up, or null if there is none
+	
+	// In-process wake-ups for the SMS timers (see scheduleSMSTimersWakeUp(TimeStamp)):
+	private ScheduledExecutorService smsTimersTicker;
+	private ScheduledFuture<?> smsTimersWakeUp;
+	
+	// Filter for received records (null unless enabled):
+	private ReceivedRecordsFilter receivedRecordsFilter;
+	
 	public TransmissionController(TransmissionClient client) throws DBException
 	{
 		// Client:
@@ -157,7 +194,7 @@ public abstract class TransmissionController implements StoreHandle.StoreUser
 	 */
 	protected Logger createLogger(File logsFolder) throws FileStorageException, IOException
 	{
-		return new Logger(logsFolder.getAbsolutePath(), LOG_FILENAME_PREFIX + DateTime.now().toString("yyyy-MM-dd"), true);
+		return new Logger(logsFolder.getAbsolutePath(), LOG_FILENAME_PREFIX + DateTime.now().toString("yyyy-MM-dd"), true, true, Logger.DEFAULT_ASYNC_BUFFER_CAPACITY, OverflowPolicy.BLOCK); // async: keep disk I/O off the SMS receiving path
 	}
 	
 	/**
@@ -180,9 +217,68 @@ public abstract class TransmissionController implements StoreHandle.StoreUser
 	
 	public synchronized void sendRecords(Model model, Correspondent receiver)
 	{
-		// Retrieve records of given model that need to be sent to given receiver:
-		List<Record> recsToSend = transmissionStore.retrieveRecordsToTransmitNow(receiver, model);
-		addLogLine("Records to send: " + recsToSend.size());
+		Metrics.Timer timer = transmissionClient.getMetrics().timer(METRIC_SEND_RECORDS);
+		long start = timer.start();
+		try
+		{
+			// Retrieve records of given model that need to be sent to given receiver:
+			List<Record> recsToSend = transmissionStore.retrieveRecordsToTransmitNow(receiver, model);
+			addLogLine("Records to send: " + recsToSend.size());
+			
+			doSendRecords(receiver, recsToSend, new RecordValueBitsCache(receiver.favoursLosslessPayload()));
+		}
+		finally
+		{
+			timer.stop(start);
+		}
+	}
+	
+	/**
+	 * Sends the records of the given model which need to be sent to each of the given receivers.
+	 * 
+	 * Unlike calling {@link #sendRecords(Model, Correspondent)} for each receiver, records which are to be sent
+	 * to several receivers are only retrieved from the store, and their values only encoded, once.
+	 * 
+	 * @param model
+	 * @param receivers
+	 */
+	public synchronized void sendRecords(Model model, Collection<? extends Correspondent> receivers)
+	{
+		Metrics.Timer timer = transmissionClient.getMetrics().timer(METRIC_SEND_RECORDS);
+		long start = timer.start();
+		try
+		{
+			// Retrieve records of given model that need to be sent to each receiver:
+			Map<Correspondent, List<Record>> recsToSendByReceiver = transmissionStore.retrieveRecordsToTransmitNow(receivers, model);
+			
+			// Value encodings are shared among receivers which favour the same (lossless or lossy) encoding:
+			RecordValueBitsCache losslessCache = null;
+			RecordValueBitsCache lossyCache = null;
+			for(Map.Entry<Correspondent, List<Record>> entry : recsToSendByReceiver.entrySet())
+			{
+				Correspondent receiver = entry.getKey();
+				addLogLine("Records to send to " + receiver.getName() + ": " + entry.getValue().size());
+				RecordValueBitsCache cache;
+				if(receiver.favoursLosslessPayload())
+					cache = losslessCache != null ? losslessCache : (losslessCache = new RecordValueBitsCache(true));
+				else
+					cache = lossyCache != null ? lossyCache : (lossyCache = new RecordValueBitsCache(false));
+				doSendRecords(receiver, entry.getValue(), cache);
+			}
+		}
+		finally
+		{
+			timer.stop(start);
+		}
+	}
+	
+	/**
+	 * @param receiver
+	 * @param recsToSend
+	 * @param valueBitsCache cache of encoded record values, must match the receiver's {@link Correspondent#favoursLosslessPayload()}
+	 */
+	private void doSendRecords(Correspondent receiver, List<Record> recsToSend, RecordValueBitsCache valueBitsCache)
+	{
 
 		// Create RecordsPayloads & Transmissions (add as many records as possible to each):
 		RecordsPayload payload = null;
@@ -199,6 +295,7 @@ public abstract class TransmissionController implements StoreHandle.StoreUser
 			{
 				// Create a new Payload...
 				payload = new RecordsPayload(receiver.favoursLosslessPayload());
+				payload.setValueBitsCache(valueBitsCache);
 
 				// ... and a new Transmission:
 				createOutgoingTransmission(payload, receiver);
@@ -238,8 +335,11 @@ public abstract class TransmissionController implements StoreHandle.StoreUser
 			
 			// Associate the transmittables with the transmission:
 			if(sent)
+			{
 				for(Record recBeingSent : payload.getRecords())
 					transmissionStore.storeTransmittableRecord(receiver, recBeingSent.getReference(), payload.getTransmission());
+				transmissionClient.getMetrics().counter(METRIC_SENT_RECORDS).add(payload.getRecords().size());
+			}
 			
 			// Make payload null so a new was is created in the next iteration:
 			payload = null;
@@ -328,6 +428,9 @@ public abstract class TransmissionController implements StoreHandle.StoreUser
 	 */
 	private boolean storeAndSend(Transmission<?> transmission)
 	{
+		Metrics metrics = transmissionClient.getMetrics();
+		Metrics.Timer timer = metrics.timer(METRIC_STORE_AND_SEND);
+		long start = timer.start();
 		try
 		{
 			// Prepare transmission for storage & sending:
@@ -343,13 +446,19 @@ public abstract class TransmissionController implements StoreHandle.StoreUser
 			transmission.send(this);
 			
 			// Success:
+			metrics.counter(METRIC_SENT).increment();
 			return true;
 		}
 		catch(Exception e)
 		{
 			transmissionClient.logError("Error upon preparing/storing/sending transmission", e);
+			metrics.counter(METRIC_SEND_FAILURES).increment();
 			return false;
 		}
+		finally
+		{
+			timer.stop(start);
+		}
 	}
 	
 	protected void storeAndSendResponse(ResponsePayload payload)
@@ -381,7 +490,23 @@ public abstract class TransmissionController implements StoreHandle.StoreUser
 	 * @throws TransmissionReceivingException when something goes wrong
 	 */
 	protected synchronized void doReceive(Transmission<?> transmission) throws TransmissionReceivingException
-	{	
+	{
+		Metrics metrics = transmissionClient.getMetrics();
+		Metrics.Timer timer = metrics.timer(METRIC_RECEIVE);
+		long start = timer.start();
+		try
+		{
+			receiveComplete(transmission);
+			metrics.counter(METRIC_RECEIVED).increment();
+		}
+		finally
+		{
+			timer.stop(start);
+		}
+	}
+	
+	private void receiveComplete(Transmission<?> transmission) throws TransmissionReceivingException
+	{
 		addLogLine(	"INCOMING", "Transmission", transmission.getType().toString(),
 					"From: " + transmission.getCorrespondent());
 
@@ -433,6 +558,8 @@ public abstract class TransmissionController implements StoreHandle.StoreUser
 	 */
 	public synchronized void receiveSMS(Message<?, ?> msg) throws Exception
 	{
+		Metrics.Timer timer = transmissionClient.getMetrics().timer(METRIC_RECEIVE_SMS);
+		long start = timer.start();
 		try
 		{
 			// Receive the message:
@@ -446,12 +573,12 @@ public abstract class TransmissionController implements StoreHandle.StoreUser
 			if(!smsTrans.isComplete())
 			{	// Transmission incomplete, we need to wait for more parts and schedule a resend request (in case they don't come):
 				addLogLine("INCOMING", "Transmission incomplete (got " + smsTrans.getCurrentNumberOfParts() + "/" + smsTrans.getTotalNumberOfParts() + " parts) waiting for others...");
-				scheduleSMSResendRequest(smsTrans.getLocalID(), smsTrans.getNextResendRequestSendingTime());
+				scheduleSMSResendRequest(smsTrans);
 			}	
 			else
 			{	// Transmission is complete ...
 				if(smsTrans.getTotalNumberOfParts() > 1) // ... and consisted of more than one part:
-					cancelSMSResendRequest(smsTrans.getLocalID()); // cancel any pending resend requests
+					cancelSMSTimers(smsTrans.getLocalID()); // cancel any pending resend requests
 				// Further (payload) receiving work:
 				doReceive(smsReceiver.transmission);
 			}
@@ -461,6 +588,10 @@ public abstract class TransmissionController implements StoreHandle.StoreUser
 			addLogLine("ERROR", "Upon SMS message reception", ExceptionHelpers.getMessageAndCause(e));
 			throw e;
 		}
+		finally
+		{
+			timer.stop(start);
+		}
 	}
 
 	/**
@@ -507,15 +638,273 @@ public abstract class TransmissionController implements StoreHandle.StoreUser
 		
 		boolean atLeast1 = false;
 		for(SMSTransmission<?> incomplete : incompleteSMSTs)
+			atLeast1 |= scheduleSMSResendRequest(incomplete);
+		return atLeast1;
+	}
+	
+	/**
+	 * Schedules the next resend request for the given incomplete SMSTransmission, either on the timer wheels (if enabled,
+	 * see {@link #enableSMSTimers(long, int, long)}) or through {@link #scheduleSMSResendRequest(int, TimeStamp)}.
+	 * 
+	 * @param smsTrans an incomplete SMSTransmission
+	 * @return whether a request was scheduled (i.e. {@code false} if no more requests are allowed)
+	 */
+	public synchronized boolean scheduleSMSResendRequest(SMSTransmission<?> smsTrans)
+	{
+		TimeStamp sendReqAt = smsTrans.getNextResendRequestSendingTime();
+		if(smsResendTimers != null)
 		{
-			TimeStamp sendReqAt = incomplete.getNextResendRequestSendingTime();
 			if(sendReqAt != null)
+				requestSMSTimersWakeUp(smsResendTimers.schedule(smsTrans.getLocalID(), sendReqAt.getMsSinceEpoch()));
+			else
+				smsResendTimers.cancel(smsTrans.getLocalID());
+			TimeStamp expireAt = smsTrans.getExpiryTime();
+			if(expireAt != null)
+				requestSMSTimersWakeUp(smsExpiryTimers.schedule(smsTrans.getLocalID(), expireAt.getMsSinceEpoch()));
+		}
+		else if(sendReqAt != null)
+			scheduleSMSResendRequest(smsTrans.getLocalID(), sendReqAt);
+		return sendReqAt != null;
+	}
+	
+	/**
+	 * @param localID local ID of an SMSTransmission which needs no more resend requests
+	 */
+	protected void cancelSMSTimers(int localID)
+	{
+		if(smsResendTimers != null)
+		{
+			smsResendTimers.cancel(localID);
+			smsExpiryTimers.cancel(localID);
+		}
+		else
+			cancelSMSResendRequest(localID);
+	}
+	
+	/**
+	 * Makes this controller keep track of resend request and expiry deadlines of incomplete SMSTransmissions on in-memory
+	 * {@link TimerWheel}s driven by the system clock, instead of through {@link #scheduleSMSResendRequest(int, TimeStamp)}
+	 * (which is then no longer called). The wheels are rebuilt from all incomplete SMSTransmissions in the store, so this
+	 * is meant to be called whenever the controller starts up. Rather than one alarm per transmission, there is at most one
+	 * pending wake-up (see {@link #scheduleSMSTimersWakeUp(TimeStamp)}), for the earliest deadline, upon which all due
+	 * deadlines are handled in one batch.
+	 * 
+	 * @return the number of incomplete SMSTransmissions for which a resend request was scheduled
+	 */
+	public synchronized int startSMSTimers()
+	{
+		return startSMSTimers(DEFAULT_SMS_TIMERS_TICK_MS, DEFAULT_SMS_TIMERS_NUMBER_OF_SLOTS);
+	}
+	
+	/**
+	 * @param tickMS see {@link TimerWheel#TimerWheel(long, int, long)}
+	 * @param numberOfSlots see {@link TimerWheel#TimerWheel(long, int, long)}
+	 * @return the number of incomplete SMSTransmissions for which a resend request was scheduled
+	 * @see #startSMSTimers()
+	 */
+	public synchronized int startSMSTimers(long tickMS, int numberOfSlots)
+	{
+		smsTimersWakeUps = false; // no wake-up requests while the wheels are being filled
+		int scheduled = enableSMSTimers(tickMS, numberOfSlots, System.currentTimeMillis());
+		smsTimersWakeUps = true;
+		updateSMSTimersWakeUp();
+		return scheduled;
+	}
+	
+	/**
+	 * Handles the SMS timer deadlines which are due according to the system clock. To be called upon a wake-up
+	 * requested through {@link #scheduleSMSTimersWakeUp(TimeStamp)}.
+	 * 
+	 * @return the number of deadlines which have passed
+	 * @throws IllegalStateException when the SMS timers have not been enabled
+	 */
+	public synchronized int onSMSTimersWakeUp() throws IllegalStateException
+	{
+		smsTimersWakeUpMS = null;
+		return advanceSMSTimers(System.currentTimeMillis());
+	}
+	
+	/**
+	 * Makes this controller keep track of resend request and expiry deadlines of incomplete SMSTransmissions on in-memory
+	 * {@link TimerWheel}s instead of through {@link #scheduleSMSResendRequest(int, TimeStamp)} (which is then no longer
+	 * called). The wheels are filled with all incomplete SMSTransmissions in the store, and expired deadlines are handled
+	 * (in batches) upon each call of {@link #advanceSMSTimers(long)}, which makes it possible to drive the wheels with a
+	 * simulated clock. To drive them with the system clock use {@link #startSMSTimers()} instead.
+	 * 
+	 * @param tickMS see {@link TimerWheel#TimerWheel(long, int, long)}
+	 * @param numberOfSlots see {@link TimerWheel#TimerWheel(long, int, long)}
+	 * @param nowMS current time, in milliseconds
+	 * @return the number of incomplete SMSTransmissions for which a resend request was scheduled
+	 */
+	public synchronized int enableSMSTimers(long tickMS, int numberOfSlots, long nowMS)
+	{
+		smsResendTimers = new TimerWheel<Integer>(tickMS, numberOfSlots, nowMS);
+		smsExpiryTimers = new TimerWheel<Integer>(tickMS, numberOfSlots, nowMS);
+		int scheduled = 0;
+		for(SMSTransmission<?> incomplete : transmissionStore.retrieveIncompleteSMSTransmissions())
+			if(scheduleSMSResendRequest(incomplete))
+				scheduled++;
+		addLogLine("SMS timers enabled, resend requests scheduled for " + scheduled + " incomplete SMS transmissions");
+		return scheduled;
+	}
+	
+	/**
+	 * Sends the resend requests and expires the incomplete SMSTransmissions whose deadlines have passed.
+	 * 
+	 * @param nowMS current time, in milliseconds
+	 * @return the number of deadlines which have passed
+	 * @throws IllegalStateException when the SMS timers have not been enabled
+	 */
+	public synchronized int advanceSMSTimers(long nowMS) throws IllegalStateException
+	{
+		if(smsResendTimers == null)
+			throw new IllegalStateException("SMS timers are not enabled");
+		List<Integer> due = new ArrayList<Integer>();
+		
+		// Resend requests:
+		smsResendTimers.advance(nowMS, due);
+		for(Integer localID : due)
+			sendSMSResendRequest(localID, true); // the deadline has passed according to the given time, which may differ from the system clock
+		int count = due.size();
+		
+		// Expiry:
+		due.clear();
+		if(smsExpiryTimers.advance(nowMS, due) > 0)
+		{
+			for(Integer localID : due)
+				smsResendTimers.cancel(localID);
+			onSMSTransmissionsExpired(due);
+		}
+		updateSMSTimersWakeUp();
+		return count + due.size();
+	}
+	
+	/**
+	 * Requests a wake-up at the given time, unless wake-ups are not needed or an earlier one is pending already.
+	 * 
+	 * @param atMS time at which a deadline becomes due
+	 */
+	private void requestSMSTimersWakeUp(long atMS)
+	{
+		if(smsTimersWakeUps && (smsTimersWakeUpMS == null || atMS < smsTimersWakeUpMS))
+		{
+			smsTimersWakeUpMS = atMS;
+			scheduleSMSTimersWakeUp(new TimeStamp(atMS));
+		}
+	}
+	
+	/**
+	 * Requests a wake-up for the earliest deadline on the wheels, or cancels the pending one if there are no deadlines.
+	 * Cancelled deadlines are not taken into account until this method is called, which only costs a superfluous wake-up.
+	 */
+	private void updateSMSTimersWakeUp()
+	{
+		if(!smsTimersWakeUps)
+			return;
+		Long nextResend = smsResendTimers.getNextExpiryTime();
+		Long nextExpiry = smsExpiryTimers.getNextExpiryTime();
+		smsTimersWakeUpMS = nextResend == null ? nextExpiry : (nextExpiry == null ? nextResend : Long.valueOf(Math.min(nextResend, nextExpiry)));
+		if(smsTimersWakeUpMS != null)
+			scheduleSMSTimersWakeUp(new TimeStamp(smsTimersWakeUpMS));
+		else
+			cancelSMSTimersWakeUp();
+	}
+	
+	/**
+	 * Requests {@link #onSMSTimersWakeUp()} to be called at the given time, replacing any previously requested wake-up.
+	 * 
+	 * By default this uses a (daemon) thread of this controller, so wake-ups only happen as long as it is in use. Subclasses
+	 * for platforms on which processes may be killed while idle should override this method and {@link #cancelSMSTimersWakeUp()}
+	 * to use a system alarm, and call {@link #startSMSTimers()} and {@link #onSMSTimersWakeUp()} when it goes off.
+	 * 
+	 * @param time at which the next SMS timer deadline is due (may have passed already)
+	 */
+	protected void scheduleSMSTimersWakeUp(TimeStamp time)
+	{
+		if(smsTimersTicker == null)
+			smsTimersTicker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "TransmissionController-SMS-timers");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		if(smsTimersWakeUp != null)
+			smsTimersWakeUp.cancel(false);
+		smsTimersWakeUp = smsTimersTicker.schedule(new Runnable()
+		{
+			@Override
+			public void run()
 			{
-				scheduleSMSResendRequest(incomplete.getLocalID(), sendReqAt);
-				atLeast1 = true;
+				try
+				{
+					synchronized(TransmissionController.this)
+					{
+						if(smsTimersTicker != null) // (null if the controller was discarded in the meantime)
+							onSMSTimersWakeUp();
+					}
+				}
+				catch(Exception e)
+				{
+					addLogLine("ERROR", "Upon handling SMS timers", ExceptionHelpers.getMessageAndCause(e));
+				}
 			}
+		}, Math.max(0, time.getMsSinceEpoch() - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Cancels the wake-up requested through {@link #scheduleSMSTimersWakeUp(TimeStamp)}, if any.
+	 */
+	protected void cancelSMSTimersWakeUp()
+	{
+		if(smsTimersWakeUp != null)
+		{
+			smsTimersWakeUp.cancel(false);
+			smsTimersWakeUp = null;
 		}
-		return atLeast1;
+	}
+	
+	/**
+	 * @return the number of pending resend request deadlines, or 0 if the SMS timers have not been enabled
+	 */
+	public synchronized int getNumberOfPendingSMSResendRequests()
+	{
+		return smsResendTimers != null ? smsResendTimers.size() : 0;
+	}
+	
+	/**
+	 * @return the number of incomplete SMSTransmissions waiting to expire, or 0 if the SMS timers have not been enabled
+	 */
+	public synchronized int getNumberOfPendingSMSExpiries()
+	{
+		return smsExpiryTimers != null ? smsExpiryTimers.size() : 0;
+	}
+	
+	/**
+	 * Called by {@link #advanceSMSTimers(long)} for the incomplete SMSTransmissions which have expired (meaning no more
+	 * resend requests will be sent and the missing parts are no longer expected). May be overridden, by default it only logs.
+	 * 
+	 * @param localIDs local IDs of the expired SMSTransmissions
+	 */
+	protected void onSMSTransmissionsExpired(List<Integer> localIDs)
+	{
+		for(Integer localID : localIDs)
+			addLogLine("INCOMING", "Incomplete SMS transmission expired (local ID: " + localID + ")");
+	}
+	
+	/**
+	 * Makes the (default) payload receiver skip received records which are already stored with identical values,
+	 * using a {@link ReceivedRecordsFilter} to avoid looking up records which are definitely new.
+	 * 
+	 * @param capacity see {@link ReceivedRecordsFilter#ReceivedRecordsFilter(TransmissionStore, RecordStore, Metrics, int, double)}
+	 * @param falsePositiveProbability see {@link ReceivedRecordsFilter#ReceivedRecordsFilter(TransmissionStore, RecordStore, Metrics, int, double)}
+	 */
+	public synchronized void enableReceivedRecordsFilter(int capacity, double falsePositiveProbability)
+	{
+		receivedRecordsFilter = new ReceivedRecordsFilter(transmissionStore, recordStore, transmissionClient.getMetrics(), capacity, falsePositiveProbability);
 	}
 	
 	/**
@@ -664,8 +1053,17 @@ public abstract class TransmissionController implements StoreHandle.StoreUser
 			}
 			try
 			{
-				// Store received records...
-				recordStore.store(recordsPayload.getRecords());
+				// Store received records (skipping those which are already stored, if the filter is enabled)...
+				List<Record> records = recordsPayload.getRecords();
+				if(receivedRecordsFilter != null)
+					records = receivedRecordsFilter.removeStored(records);
+				if(!records.isEmpty())
+					recordStore.store(records);
+				if(receivedRecordsFilter != null)
+				{
+					receivedRecordsFilter.add(records);
+					receivedRecordsFilter.persistIfDue();
+				}
 			}
 			catch (Exception e)
 			{
@@ -813,7 +1211,7 @@ public abstract class TransmissionController implements StoreHandle.StoreUser
 				{
 					SMSTransmission<?> incompleteSMST = (SMSTransmission<?>) transmissionStore.retrieveTransmission(true, noSuchTransmissionPayload.getOriginalSubjectSendingSideID());
 					addLogLine("Canceling furter resend requests for received SMSTransmission (localID: " + incompleteSMST.getLocalID() + ")");
-					cancelSMSResendRequest(incompleteSMST.getLocalID());
+					cancelSMSTimers(incompleteSMST.getLocalID());
 					incompleteSMST.setNumberOfSentResendRequests(SMSTransmission.MAX_RESEND_REQUESTS + 1);
 					transmissionStore.store(incompleteSMST);
 				}
@@ -935,6 +1333,17 @@ public abstract class TransmissionController implements StoreHandle.StoreUser
 	
 	public void discard()
 	{
+		synchronized(this)
+		{
+			if(receivedRecordsFilter != null)
+				receivedRecordsFilter.persist(); // store changes which were not yet due to be persisted
+			if(smsTimersTicker != null)
+			{	// stop in-process wake-ups (wake-ups requested from the platform by subclasses are kept):
+				smsTimersTicker.shutdownNow();
+				smsTimersTicker = null;
+				smsTimersWakeUp = null;
+			}
+		}
 		transmissionClient.recordStoreHandle.doneUsing(this);
 		transmissionClient.transmissionStoreHandle.doneUsing(this);
 	}
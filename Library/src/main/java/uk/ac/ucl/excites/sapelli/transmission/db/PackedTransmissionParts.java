@@ -0,0 +1,194 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.transmission.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.ac.ucl.excites.sapelli.storage.types.TimeStamp;
+
+/**
+ * Packs all parts of a transmission into a single byte array (stored in the {@link TransmissionStore#TRANSMISSION_PART_SET_COLUMN_PARTS}
+ * column), and keeps a bitmap of the part numbers held (stored in the {@link TransmissionStore#TRANSMISSION_PART_SET_COLUMN_RECEIVED_PARTS}
+ * column), so that the parts of a transmission can be retrieved and updated with a single record, and its completeness can
+ * be checked without unpacking any part.
+ * 
+ * Packed format (big-endian): a format version byte, followed by every part, in ascending part number order, as:
+ * part number (unsigned short), a byte with flags indicating which time stamps are present, the present time stamps
+ * (sent, delivered, received; in ms since the epoch, as longs), body bit length (int) and body bytes.
+ * 
+ * Bitmap format: bit {@code (p - 1) % 8} of byte {@code (p - 1) / 8} (least significant bit first) is set if part {@code p} is held.
+ */
+final class PackedTransmissionParts
+{
+
+	// STATIC -------------------------------------------------------
+	static final int FORMAT_VERSION = 1;
+	
+	static private final int FLAG_SENT_AT = 1;
+	static private final int FLAG_DELIVERED_AT = 2;
+	static private final int FLAG_RECEIVED_AT = 4;
+	
+	/**
+	 * @param bitmap as returned by {@link #getReceivedParts()}
+	 * @param totalParts
+	 * @return an array holding, at index {@code p - 1}, whether part {@code p} is held
+	 */
+	static public boolean[] GetReceivedParts(byte[] bitmap, int totalParts)
+	{
+		boolean[] received = new boolean[totalParts];
+		for(int p = 0; p < totalParts && (p >>> 3) < bitmap.length; p++)
+			received[p] = (bitmap[p >>> 3] & (1 << (p & 7))) != 0;
+		return received;
+	}
+	
+	/**
+	 * @param packed as returned by {@link #toBytes()}
+	 * @return the unpacked parts, in ascending part number order
+	 * @throws IllegalArgumentException when the bytes are not in the packed format
+	 */
+	static public List<Part> Unpack(byte[] packed) throws IllegalArgumentException
+	{
+		try
+		{
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(packed));
+			int version = in.readUnsignedByte();
+			if(version != FORMAT_VERSION)
+				throw new IllegalArgumentException("Unsupported packed parts format version: " + version);
+			List<Part> parts = new ArrayList<Part>();
+			while(in.available() > 0)
+			{
+				int partNumber = in.readUnsignedShort();
+				int flags = in.readUnsignedByte();
+				TimeStamp sentAt = (flags & FLAG_SENT_AT) != 0 ? new TimeStamp(in.readLong()) : null;
+				TimeStamp deliveredAt = (flags & FLAG_DELIVERED_AT) != 0 ? new TimeStamp(in.readLong()) : null;
+				TimeStamp receivedAt = (flags & FLAG_RECEIVED_AT) != 0 ? new TimeStamp(in.readLong()) : null;
+				int bodyBitLength = in.readInt();
+				byte[] body = new byte[(bodyBitLength + Byte.SIZE - 1) / Byte.SIZE];
+				in.readFully(body);
+				parts.add(new Part(partNumber, sentAt, deliveredAt, receivedAt, body, bodyBitLength));
+			}
+			return parts;
+		}
+		catch(IOException e)
+		{
+			throw new IllegalArgumentException("Truncated packed parts", e);
+		}
+	}
+	
+	// DYNAMIC ------------------------------------------------------
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	private final DataOutputStream out = new DataOutputStream(bytes);
+	private final byte[] receivedParts;
+	private int lastPartNumber = 0;
+	
+	/**
+	 * @param totalParts
+	 */
+	public PackedTransmissionParts(int totalParts)
+	{
+		this.receivedParts = new byte[(totalParts + Byte.SIZE - 1) / Byte.SIZE];
+		bytes.write(FORMAT_VERSION);
+	}
+	
+	/**
+	 * Adds a part, parts must be added in ascending part number order.
+	 * 
+	 * @param partNumber a value from [1, totalParts]
+	 * @param sentAt may be null
+	 * @param deliveredAt may be null
+	 * @param receivedAt may be null
+	 * @param body
+	 * @param bodyBitLength number of bits used in the body, only the bytes holding these bits are packed
+	 */
+	public void add(int partNumber, TimeStamp sentAt, TimeStamp deliveredAt, TimeStamp receivedAt, byte[] body, int bodyBitLength)
+	{
+		if(partNumber <= lastPartNumber || partNumber > receivedParts.length * Byte.SIZE)
+			throw new IllegalArgumentException("Invalid or out-of-order part number: " + partNumber);
+		int bodyLength = (bodyBitLength + Byte.SIZE - 1) / Byte.SIZE;
+		if(bodyBitLength < 0 || body.length < bodyLength)
+			throw new IllegalArgumentException("Body is shorter than its bit length");
+		lastPartNumber = partNumber;
+		receivedParts[(partNumber - 1) >>> 3] |= 1 << ((partNumber - 1) & 7);
+		try
+		{
+			out.writeShort(partNumber);
+			out.writeByte((sentAt != null ? FLAG_SENT_AT : 0) | (deliveredAt != null ? FLAG_DELIVERED_AT : 0) | (receivedAt != null ? FLAG_RECEIVED_AT : 0));
+			if(sentAt != null)
+				out.writeLong(sentAt.getMsSinceEpoch());
+			if(deliveredAt != null)
+				out.writeLong(deliveredAt.getMsSinceEpoch());
+			if(receivedAt != null)
+				out.writeLong(receivedAt.getMsSinceEpoch());
+			out.writeInt(bodyBitLength);
+			out.write(body, 0, bodyLength); // (any trailing bytes beyond the bit length are dropped)
+		}
+		catch(IOException ioe)
+		{
+			throw new IllegalStateException(ioe); // cannot happen when writing to a ByteArrayOutputStream
+		}
+	}
+	
+	/**
+	 * @return the bitmap of the part numbers which have been added
+	 */
+	public byte[] getReceivedParts()
+	{
+		return receivedParts;
+	}
+	
+	/**
+	 * @return the packed parts
+	 */
+	public byte[] toBytes()
+	{
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * An unpacked part.
+	 */
+	static public final class Part
+	{
+		
+		public final int partNumber;
+		public final TimeStamp sentAt;
+		public final TimeStamp deliveredAt;
+		public final TimeStamp receivedAt;
+		public final byte[] body;
+		public final int bodyBitLength;
+		
+		public Part(int partNumber, TimeStamp sentAt, TimeStamp deliveredAt, TimeStamp receivedAt, byte[] body, int bodyBitLength)
+		{
+			this.partNumber = partNumber;
+			this.sentAt = sentAt;
+			this.deliveredAt = deliveredAt;
+			this.receivedAt = receivedAt;
+			this.body = body;
+			this.bodyBitLength = bodyBitLength;
+		}
+		
+	}
+
+}
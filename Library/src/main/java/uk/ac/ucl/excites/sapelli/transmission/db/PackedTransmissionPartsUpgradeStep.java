@@ -0,0 +1,53 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.transmission.db;
+
+import uk.ac.ucl.excites.sapelli.storage.db.sql.SQLRecordStore;
+import uk.ac.ucl.excites.sapelli.storage.db.sql.SQLRecordStoreUpgrader.UpgradeOperations;
+import uk.ac.ucl.excites.sapelli.storage.db.sql.SQLRecordStoreUpgrader.UpgradeStep;
+import uk.ac.ucl.excites.sapelli.transmission.TransmissionClient;
+
+/**
+ * UpgradeStep which packs the parts of all stored transmissions, which used to be stored as one record per part, into
+ * a single record per transmission (see {@link TransmissionStore#MigrateLegacyPartRecords(uk.ac.ucl.excites.sapelli.storage.db.RecordStore)}).
+ */
+public class PackedTransmissionPartsUpgradeStep<C extends TransmissionClient> extends UpgradeStep<C>
+{
+
+	/**
+	 * @param client
+	 * @param fromVersion
+	 * @param toVersion
+	 */
+	public PackedTransmissionPartsUpgradeStep(C client, int fromVersion, int toVersion)
+	{
+		super(client, fromVersion, toVersion);
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.storage.db.sql.SQLRecordStoreUpgrader.UpgradeStep#apply(uk.ac.ucl.excites.sapelli.storage.db.sql.SQLRecordStore, uk.ac.ucl.excites.sapelli.storage.db.sql.SQLRecordStoreUpgrader.UpgradeOperations)
+	 */
+	@Override
+	public void apply(SQLRecordStore<?, ?, ?> recordStore, UpgradeOperations upgradeOperations) throws Exception
+	{
+		int migrated = TransmissionStore.MigrateLegacyPartRecords(recordStore);
+		client.logInfo("Packed the parts of " + migrated + " transmission(s) into part set records");
+	}
+
+}
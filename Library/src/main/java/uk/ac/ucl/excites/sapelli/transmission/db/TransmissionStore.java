@@ -18,9 +18,12 @@
 
 package uk.ac.ucl.excites.sapelli.transmission.db;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -29,6 +32,7 @@ import org.apache.commons.io.Charsets;
 
 import com.google.i18n.phonenumbers.Phonenumber.PhoneNumber;
 
+import uk.ac.ucl.excites.sapelli.shared.collections.BloomFilter;
 import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
 import uk.ac.ucl.excites.sapelli.shared.io.BitArray;
 import uk.ac.ucl.excites.sapelli.shared.util.CollectionUtils;
@@ -74,6 +78,7 @@ import uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.binary.BinaryM
 import uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.binary.BinarySMSTransmission;
 import uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.text.TextMessage;
 import uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.text.TextSMSTransmission;
+import uk.ac.ucl.excites.sapelli.transmission.protocol.http.ResumableUpload;
 import uk.ac.ucl.excites.sapelli.transmission.util.UnknownCorrespondentException;
 
 /**
@@ -164,7 +169,7 @@ public class TransmissionStore extends RecordStoreWrapper<TransmissionClient>
 			schema.seal(); // !!!
 		}
 	}
-	//	Transmission Part schemas:
+	//	Legacy Transmission Part schemas (one record per part, replaced by the Transmission Part Set schemas below and only still read to access parts stored by earlier versions, see MigrateLegacyPartRecords(RecordStore)):
 	static final public Schema OUTGOING_TRANSMISSION_PART_SCHEMA = TransmissionClient.CreateSchemaWithSuffixedTableName(TRANSMISSION_MANAGEMENT_MODEL, "Outgoing" + Transmission.class.getSimpleName() + "Part", "s");
 	static final public Schema INCOMING_TRANSMISSION_PART_SCHEMA = TransmissionClient.CreateSchemaWithSuffixedTableName(TRANSMISSION_MANAGEMENT_MODEL, "Incoming" + Transmission.class.getSimpleName() + "Part", "s");
 	//	Transmission Part columns:
@@ -215,6 +220,57 @@ public class TransmissionStore extends RecordStoreWrapper<TransmissionClient>
 	static public final ColumnPointer<IntegerColumn> TRANSMITTABLE_RECORDS_CP_TRANSMISSION_ID = new ColumnPointer<IntegerColumn>(TRANSMITTABLE_RECORDS_SCHEMA, TRANSMISSION_COLUMN_ID);
 	static public final ColumnPointer<IntegerColumn> TRANSMITTABLE_RECORDS_CP_MODEL_ID = new ColumnPointer<IntegerColumn>(TRANSMITTABLE_RECORDS_SCHEMA, Model.MODEL_ID_COLUMN);
 	static public final ColumnPointer<IntegerColumn> TRANSMITTABLE_RECORDS_CP_SCHEMA_NUMBER = new ColumnPointer<IntegerColumn>(TRANSMITTABLE_RECORDS_SCHEMA, Model.SCHEMA_SCHEMA_NUMBER_COLUMN);
+	//	Received Records Filter schema (Bloom filters over the PK values of received records, one per user schema):
+	static final public Schema RECEIVED_RECORDS_FILTER_SCHEMA = TransmissionClient.CreateSchemaWithSuffixedTableName(TRANSMISSION_MANAGEMENT_MODEL, "Received" + Record.class.getSimpleName() + "sFilter", "s");
+	//		Columns:
+	static public final ForeignKeyColumn RECEIVED_RECORDS_FILTER_COLUMN_SCHEMA = RECEIVED_RECORDS_FILTER_SCHEMA.addColumn(new ForeignKeyColumn(Model.SCHEMA_SCHEMA, false));
+	static public final IntegerColumn RECEIVED_RECORDS_FILTER_COLUMN_CAPACITY = RECEIVED_RECORDS_FILTER_SCHEMA.addColumn(new IntegerColumn("Capacity", false, false, Integer.SIZE));
+	static public final IntegerColumn RECEIVED_RECORDS_FILTER_COLUMN_HASH_FUNCTIONS = RECEIVED_RECORDS_FILTER_SCHEMA.addColumn(new IntegerColumn("HashFunctions", false, false, Integer.SIZE));
+	static public final IntegerColumn RECEIVED_RECORDS_FILTER_COLUMN_SIZE = RECEIVED_RECORDS_FILTER_SCHEMA.addColumn(new IntegerColumn("Size", false, false, Integer.SIZE));
+	static public final ByteArrayColumn RECEIVED_RECORDS_FILTER_COLUMN_BITS = RECEIVED_RECORDS_FILTER_SCHEMA.addColumn(new ByteArrayColumn("Bits", false));
+	//		Set PK and seal:
+	static
+	{
+		RECEIVED_RECORDS_FILTER_SCHEMA.setPrimaryKey(PrimaryKey.WithColumnNames(RECEIVED_RECORDS_FILTER_COLUMN_SCHEMA), true /*seal!*/);
+	}
+	//	Resumable Uploads schema (progress of chunked file uploads, one per receiver & file):
+	static final public Schema RESUMABLE_UPLOADS_SCHEMA = TransmissionClient.CreateSchemaWithSuffixedTableName(TRANSMISSION_MANAGEMENT_MODEL, "ResumableUpload", "s");
+	static final public int RESUMABLE_UPLOAD_FILE_PATH_MAX_LENGTH_CHARS = 1024;
+	static final public int RESUMABLE_UPLOAD_ID_MAX_LENGTH_CHARS = 256;
+	//		Columns:
+	static public final ForeignKeyColumn RESUMABLE_UPLOADS_COLUMN_RECEIVER = RESUMABLE_UPLOADS_SCHEMA.addColumn(new ForeignKeyColumn(CORRESPONDENT_SCHEMA, false));
+	static public final StringColumn RESUMABLE_UPLOADS_COLUMN_FILE_PATH = RESUMABLE_UPLOADS_SCHEMA.addColumn(StringColumn.ForCharacterCount("FilePath", false, RESUMABLE_UPLOAD_FILE_PATH_MAX_LENGTH_CHARS));
+	static public final IntegerColumn RESUMABLE_UPLOADS_COLUMN_FILE_SIZE = RESUMABLE_UPLOADS_SCHEMA.addColumn(new IntegerColumn("FileSize", false, true, Long.SIZE));
+	static public final ByteArrayColumn RESUMABLE_UPLOADS_COLUMN_HASH = RESUMABLE_UPLOADS_SCHEMA.addColumn(new ByteArrayColumn("Hash", false));
+	static public final StringColumn RESUMABLE_UPLOADS_COLUMN_UPLOAD_ID = RESUMABLE_UPLOADS_SCHEMA.addColumn(StringColumn.ForCharacterCount("UploadID", true, RESUMABLE_UPLOAD_ID_MAX_LENGTH_CHARS));
+	static public final IntegerColumn RESUMABLE_UPLOADS_COLUMN_OFFSET = RESUMABLE_UPLOADS_SCHEMA.addColumn(new IntegerColumn("Offset", false, true, Long.SIZE));
+	static public final IntegerColumn RESUMABLE_UPLOADS_COLUMN_CHUNK_SIZE = RESUMABLE_UPLOADS_SCHEMA.addColumn(new IntegerColumn("ChunkSize", false, false, Integer.SIZE));
+	//		Set PK and seal:
+	static
+	{
+		RESUMABLE_UPLOADS_SCHEMA.setPrimaryKey(PrimaryKey.WithColumnNames(RESUMABLE_UPLOADS_COLUMN_RECEIVER, RESUMABLE_UPLOADS_COLUMN_FILE_PATH), true /*seal!*/);
+	}
+	//	Transmission Part Set schemas (all parts of a transmission packed into a single record, see PackedTransmissionParts):
+	static final public Schema OUTGOING_TRANSMISSION_PART_SET_SCHEMA = TransmissionClient.CreateSchemaWithSuffixedTableName(TRANSMISSION_MANAGEMENT_MODEL, "Outgoing" + Transmission.class.getSimpleName() + "PartSet", "s");
+	static final public Schema INCOMING_TRANSMISSION_PART_SET_SCHEMA = TransmissionClient.CreateSchemaWithSuffixedTableName(TRANSMISSION_MANAGEMENT_MODEL, "Incoming" + Transmission.class.getSimpleName() + "PartSet", "s");
+	//		Columns:
+	static final public ForeignKeyColumn TRANSMISSION_PART_SET_COLUMN_OUTGOING_TRANSMISSION = new ForeignKeyColumn(OUTGOING_TRANSMISSION_SCHEMA, false);
+	static final public ForeignKeyColumn TRANSMISSION_PART_SET_COLUMN_INCOMING_TRANSMISSION = new ForeignKeyColumn(INCOMING_TRANSMISSION_SCHEMA, false);
+	static final public ByteArrayColumn TRANSMISSION_PART_SET_COLUMN_RECEIVED_PARTS = new ByteArrayColumn("ReceivedParts", false); // bitmap of the parts held
+	static final public ByteArrayColumn TRANSMISSION_PART_SET_COLUMN_PARTS = new ByteArrayColumn("Parts", false); // packed parts
+	//		Add columns, set PKs & seal:
+	static
+	{
+		for(Schema schema : new Schema[] { OUTGOING_TRANSMISSION_PART_SET_SCHEMA, INCOMING_TRANSMISSION_PART_SET_SCHEMA } )
+		{
+			ForeignKeyColumn tFKCol = schema == OUTGOING_TRANSMISSION_PART_SET_SCHEMA ? TRANSMISSION_PART_SET_COLUMN_OUTGOING_TRANSMISSION : TRANSMISSION_PART_SET_COLUMN_INCOMING_TRANSMISSION;
+			schema.addColumn(tFKCol);
+			schema.addColumn(TRANSMISSION_COLUMN_NUMBER_OF_PARTS);
+			schema.addColumn(TRANSMISSION_PART_SET_COLUMN_RECEIVED_PARTS);
+			schema.addColumn(TRANSMISSION_PART_SET_COLUMN_PARTS);
+			schema.setPrimaryKey(PrimaryKey.WithColumnNames(tFKCol), true /*seal!*/);
+		}
+	}
 	//	Seal the model:
 	static
 	{
@@ -228,6 +284,101 @@ public class TransmissionStore extends RecordStoreWrapper<TransmissionClient>
 		return TimeStamp.setLocalTimeZone(column.retrieveValue(record));
 	}
 	
+	/**
+	 * @param incoming if {@code true} we are dealing with transmissions that were received on the local device, if {@code false} we are dealing with transmissions created for sending from the local device to other ones
+	 * @return the schema to use to create/store/retrieve the Record holding all parts of such a Transmission
+	 */
+	static private Schema GetTransmissionPartSetSchema(boolean incoming)
+	{
+		return incoming ? INCOMING_TRANSMISSION_PART_SET_SCHEMA : OUTGOING_TRANSMISSION_PART_SET_SCHEMA;
+	}
+	
+	/**
+	 * @param tRecRef reference to a transmission record
+	 * @param totalParts
+	 * @param packedParts
+	 * @return a part set record holding the given parts of the referenced transmission
+	 */
+	static private Record CreatePartSetRecord(RecordReference tRecRef, int totalParts, PackedTransmissionParts packedParts)
+	{
+		return GetTransmissionPartSetSchema(tRecRef.getReferencedSchema() == INCOMING_TRANSMISSION_SCHEMA).createRecord(
+			tRecRef,
+			totalParts,
+			packedParts.getReceivedParts(),
+			packedParts.toBytes());
+	}
+	
+	/**
+	 * Packs the parts of all transmissions which are still stored as one record per part (in the legacy {@link #OUTGOING_TRANSMISSION_PART_SCHEMA}
+	 * and {@link #INCOMING_TRANSMISSION_PART_SCHEMA} tables) into part set records. To be used when upgrading databases (see
+	 * {@link PackedTransmissionPartsUpgradeStep}), the parts of transmissions which have not been migrated this way are still
+	 * read (but not migrated) upon retrieval.
+	 * 
+	 * @param recordStore
+	 * @return the number of transmissions whose parts were migrated
+	 * @throws DBException
+	 */
+	static public int MigrateLegacyPartRecords(RecordStore recordStore) throws DBException
+	{
+		int migrated = 0;
+		for(Schema tSchema : new Schema[] { OUTGOING_TRANSMISSION_SCHEMA, INCOMING_TRANSMISSION_SCHEMA })
+			for(Record tRec : recordStore.retrieveRecords(new RecordsQuery(tSchema)))
+			{
+				Record tPartSetRec = PackLegacyPartRecords(recordStore, tRec);
+				if(tPartSetRec == null)
+					continue;
+				Schema tPartSchema = tSchema == INCOMING_TRANSMISSION_SCHEMA ? INCOMING_TRANSMISSION_PART_SCHEMA : OUTGOING_TRANSMISSION_PART_SCHEMA;
+				
+				// Replace legacy part records by the part set record:
+				recordStore.startTransaction();
+				try
+				{
+					if(recordStore.retrieveRecord(tPartSetRec.getReference()) == null) // unless the transmission has been stored again since (its part set record then holds the legacy parts as well)
+						recordStore.store(tPartSetRec);
+					recordStore.delete(new RecordsQuery(Source.From(tPartSchema), tRec.getRecordQueryConstraint()));
+				}
+				catch(DBException e)
+				{
+					recordStore.rollbackTransactions();
+					throw e;
+				}
+				recordStore.commitTransaction();
+				migrated++;
+			}
+		return migrated;
+	}
+	
+	/**
+	 * Packs the legacy part records of the given transmission into a part set record, which is not stored.
+	 * 
+	 * @param recordStore
+	 * @param tRec a transmission record
+	 * @return the (unstored) part set record, or {@code null} if the transmission has no legacy part records
+	 * @throws DBException
+	 */
+	static private Record PackLegacyPartRecords(RecordStore recordStore, Record tRec) throws DBException
+	{
+		boolean incoming = tRec.getSchema() == INCOMING_TRANSMISSION_SCHEMA;
+		Schema tPartSchema = incoming ? INCOMING_TRANSMISSION_PART_SCHEMA : OUTGOING_TRANSMISSION_PART_SCHEMA;
+		
+		// Query for legacy part records:
+		List<Record> tPartRecs = recordStore.retrieveRecords(new RecordsQuery(Source.From(tPartSchema), Order.AscendingBy(TRANSMISSION_PART_COLUMN_NUMBER), tRec.getRecordQueryConstraint()));
+		if(tPartRecs.isEmpty())
+			return null;
+		
+		// Pack them:
+		int totalParts = TRANSMISSION_COLUMN_NUMBER_OF_PARTS.retrieveValue(tRec).intValue();
+		PackedTransmissionParts packedParts = new PackedTransmissionParts(totalParts);
+		for(Record tPartRec : tPartRecs)
+			packedParts.add(TRANSMISSION_PART_COLUMN_NUMBER.retrieveValue(tPartRec).intValue(),
+							COLUMN_SENT_AT.retrieveValue(tPartRec),
+							TRANSMISSION_PART_COLUMN_DELIVERED_AT.retrieveValue(tPartRec),
+							COLUMN_RECEIVED_AT.retrieveValue(tPartRec),
+							TRANSMISSION_PART_COLUMN_BODY.retrieveValue(tPartRec),
+							TRANSMISSION_PART_COLUMN_BODY_BIT_LENGTH.retrieveValue(tPartRec).intValue());
+		return CreatePartSetRecord(tRec.getReference(), totalParts, packedParts);
+	}
+	
 	// DYNAMICS--------------------------------------------
 	private final Map<Integer, Transmission<?>> outCache;
 	private final Map<Integer, Transmission<?>> inCache;
@@ -424,6 +575,9 @@ public class TransmissionStore extends RecordStoreWrapper<TransmissionClient>
 			// Get record reference:
 			RecordReference cRecRef = CORRESPONDENT_SCHEMA.createRecordReference(correspondent.getLocalID());
 				
+			// Delete resumable uploads to the correspondent:
+			recordStore.delete(new RecordsQuery(RESUMABLE_UPLOADS_SCHEMA, cRecRef.getRecordQueryConstraint()));
+			
 			// Delete transmission part records:
 			recordStore.delete(cRecRef);
 		}
@@ -467,7 +621,7 @@ public class TransmissionStore extends RecordStoreWrapper<TransmissionClient>
 			// Use TransmissionRecordGenerator to create a transmission record and part record(s):
 			List<Record> records = generator.generate(transmission);
 			if(records.size() < 2)
-				throw new IllegalStateException("No transmission (part) record(s) generated!");
+				throw new IllegalStateException("No transmission (part set) record(s) generated!");
 			Record tRec = records.get(0);
 			
 			// Set foreign key for Correspondent record (possibly first storing/updating it):
@@ -487,14 +641,10 @@ public class TransmissionStore extends RecordStoreWrapper<TransmissionClient>
 				// Set local transmissionID in object as on the record: 
 				transmission.setLocalID(TRANSMISSION_COLUMN_ID.retrieveValue(tRec).intValue());
 			
-			// Store part records:
-			ForeignKeyColumn tFKCol = transmission.incoming ? TRANSMISSION_PART_COLUMN_INCOMING_TRANSMISSION : TRANSMISSION_PART_COLUMN_OUTGOING_TRANSMISSION;
-			RecordReference tRecRef = tRec.getReference();
-			for(Record tPartRec : records.subList(1, records.size()))
-			{
-				tFKCol.storeValue(tPartRec, tRecRef); // set foreign key!
-				recordStore.store(tPartRec);
-			}
+			// Store part set record (holding all parts):
+			Record tPartSetRec = records.get(1);
+			(transmission.incoming ? TRANSMISSION_PART_SET_COLUMN_INCOMING_TRANSMISSION : TRANSMISSION_PART_SET_COLUMN_OUTGOING_TRANSMISSION).storeValue(tPartSetRec, tRec.getReference()); // set foreign key!
+			recordStore.store(tPartSetRec);
 			
 			// Put/update in cache:
 			getCache(transmission.incoming).put(transmission.getLocalID(), transmission);
@@ -607,8 +757,22 @@ public class TransmissionStore extends RecordStoreWrapper<TransmissionClient>
 		// Query for correspondent record:
 		Record cRec = TRANSMISSION_COLUMN_CORRESPONDENT.isValuePresent(tRec) ? recordStore.retrieveRecord(TRANSMISSION_COLUMN_CORRESPONDENT.retrieveValue(tRec)) : null;
 		
-		// Query for part records:		
-		List<Record> tPartRecs = recordStore.retrieveRecords(new RecordsQuery(Source.From(getTransmissionPartSchema(incoming)), Order.AscendingBy(TRANSMISSION_PART_COLUMN_NUMBER), tRec.getRecordQueryConstraint()));
+		// Query for part set record (or, if there is none, for legacy part records) & unpack parts:
+		Record tPartSetRec = recordStore.retrieveRecord(GetTransmissionPartSetSchema(incoming).createRecordReference(tRec.getReference()));
+		if(tPartSetRec == null)
+		{
+			try
+			{
+				tPartSetRec = PackLegacyPartRecords(recordStore, tRec);
+			}
+			catch(DBException e)
+			{
+				throw new IllegalStateException("Could not retrieve legacy part records of transmission (local ID: " + localID + ")", e);
+			}
+		}
+		List<PackedTransmissionParts.Part> parts = tPartSetRec != null ?
+			PackedTransmissionParts.Unpack(TRANSMISSION_PART_SET_COLUMN_PARTS.retrieveValue(tPartSetRec)) :
+			Collections.<PackedTransmissionParts.Part> emptyList();
 		
 		// Instantiate Transmissions & Messages:
 		switch(type)
@@ -617,31 +781,30 @@ public class TransmissionStore extends RecordStoreWrapper<TransmissionClient>
 				// create a new SMSTransmission object:
 				BinarySMSTransmission binarySMST =  new BinarySMSTransmission(client, this.<SMSCorrespondent> correspondentFromRecord(cRec), incoming, localID, remoteID, payloadType, payloadHash, sentAt, receivedAt, (BinarySMSTransmission) response, numberOfSentResendRequests, lastResendReqSentAt);
 				// add each part we got from the query:
-				for(Record tPartRec : tPartRecs)
+				for(PackedTransmissionParts.Part part : parts)
 					binarySMST.addPart(new BinaryMessage(	binarySMST,
-															TRANSMISSION_PART_COLUMN_NUMBER.retrieveValue(tPartRec).intValue(),
+															part.partNumber,
 															totalParts,
-															retrieveTimeStamp(COLUMN_SENT_AT, tPartRec),
-															retrieveTimeStamp(TRANSMISSION_PART_COLUMN_DELIVERED_AT, tPartRec),
-															retrieveTimeStamp(COLUMN_RECEIVED_AT, tPartRec),
-															BitArray.FromBytes(	TRANSMISSION_PART_COLUMN_BODY.retrieveValue(tPartRec),
-																				TRANSMISSION_PART_COLUMN_BODY_BIT_LENGTH.retrieveValue(tPartRec).intValue())));
+															part.sentAt,
+															part.deliveredAt,
+															part.receivedAt,
+															BitArray.FromBytes(part.body, part.bodyBitLength)));
 				return binarySMST;
 			case TEXTUAL_SMS:
 				// create a new SMSTransmission object:
 				TextSMSTransmission textSMST = new TextSMSTransmission(client, this.<SMSCorrespondent> correspondentFromRecord(cRec), incoming, localID, remoteID, payloadType, payloadHash, sentAt, receivedAt, (TextSMSTransmission) response, numberOfSentResendRequests, lastResendReqSentAt);
 				// add each part we got from the query:
-				for(Record tPartRec : tPartRecs)
+				for(PackedTransmissionParts.Part part : parts)
 					textSMST.addPart(new TextMessage(	textSMST,
-														TRANSMISSION_PART_COLUMN_NUMBER.retrieveValue(tPartRec).intValue(),
+														part.partNumber,
 														totalParts,
-														retrieveTimeStamp(COLUMN_SENT_AT, tPartRec),
-														retrieveTimeStamp(TRANSMISSION_PART_COLUMN_DELIVERED_AT, tPartRec),
-														retrieveTimeStamp(COLUMN_RECEIVED_AT, tPartRec),
-														BytesToString(TRANSMISSION_PART_COLUMN_BODY.retrieveValue(tPartRec))));
+														part.sentAt,
+														part.deliveredAt,
+														part.receivedAt,
+														BytesToString(part.body)));
 				return textSMST;
 			case GeoKey:
-				return new GeoKeyTransmission(client, this.<GeoKeyServer> correspondentFromRecord(cRec), incoming, localID, remoteID, payloadType, payloadHash, lastResendReqSentAt, receivedAt, (GeoKeyTransmission) response, TRANSMISSION_PART_COLUMN_BODY.retrieveValue(tPartRecs.get(0)));
+				return new GeoKeyTransmission(client, this.<GeoKeyServer> correspondentFromRecord(cRec), incoming, localID, remoteID, payloadType, payloadHash, lastResendReqSentAt, receivedAt, (GeoKeyTransmission) response, parts.get(0).body);
 			default:
 				throw new IllegalStateException("Unsupported transmission type");
 		}
@@ -754,6 +917,38 @@ public class TransmissionStore extends RecordStoreWrapper<TransmissionClient>
 		return (SMSTransmission<?>) retrieveTransmissionByQuery(getTransmissionsQuery(incoming, binary ? Type.BINARY_SMS : Type.TEXTUAL_SMS, localID, null, null, null, numberOfParts), true);
 	}
 
+	/**
+	 * Retrieves which parts of an incoming or outgoing transmission are held in the store, without retrieving the transmission
+	 * itself nor unpacking its parts. On the receiving side this reveals with a single record lookup whether the transmission
+	 * is complete, or which parts are missing.
+	 * 
+	 * @param incoming if {@code true} the transmission was received on the local device, if {@code false} it was created for sending from the local device to another one
+	 * @param localID
+	 * @return an array holding, at index {@code p - 1}, whether part {@code p} has been received (or, on the sending side, created), or {@code null} if no such transmission was found or an error occurred (check log output).
+	 */
+	public synchronized boolean[] retrieveReceivedParts(boolean incoming, int localID)
+	{
+		try
+		{
+			RecordReference tRecRef = getTransmissionSchema(incoming).createRecordReference(localID);
+			Record tPartSetRec = recordStore.retrieveRecord(GetTransmissionPartSetSchema(incoming).createRecordReference(tRecRef));
+			if(tPartSetRec == null)
+			{	// Unknown transmission, or one with legacy part records:
+				Record tRec = recordStore.retrieveRecord(tRecRef);
+				if(tRec == null || (tPartSetRec = PackLegacyPartRecords(recordStore, tRec)) == null)
+					return null;
+			}
+			return PackedTransmissionParts.GetReceivedParts(
+				TRANSMISSION_PART_SET_COLUMN_RECEIVED_PARTS.retrieveValue(tPartSetRec),
+				TRANSMISSION_COLUMN_NUMBER_OF_PARTS.retrieveValue(tPartSetRec).intValue());
+		}
+		catch(Exception e)
+		{
+			client.logError("Error retrieving received parts of " + (incoming ? "received" : "sent") + " transmission with local ID = " + localID + ".", e);
+			return null;
+		}
+	}
+	
 	/**
 	 * Returns a list of received but incomplete SMSTransmissions.
 	 * 
@@ -816,7 +1011,8 @@ public class TransmissionStore extends RecordStoreWrapper<TransmissionClient>
 			}
 			else
 			{	// Really delete from db:
-				//	Delete transmission part records:
+				//	Delete transmission part set record (and any legacy part records):
+				recordStore.delete(GetTransmissionPartSetSchema(transmission.incoming).createRecordReference(tRecRef));
 				recordStore.delete(new RecordsQuery(Source.From(getTransmissionPartSchema(transmission.incoming)), tRecRef.getRecordQueryConstraint()));
 				
 				//	Delete transmission record:
@@ -871,6 +1067,136 @@ public class TransmissionStore extends RecordStoreWrapper<TransmissionClient>
 		}
 	}
 	
+	/**
+	 * Stores the Bloom filter over the primary key values of the received records of the given schema
+	 * (see {@link uk.ac.ucl.excites.sapelli.transmission.control.ReceivedRecordsFilter}).
+	 * 
+	 * @param schema
+	 * @param filter
+	 */
+	public void storeReceivedRecordsFilter(Schema schema, BloomFilter filter)
+	{
+		try
+		{
+			recordStore.store(RECEIVED_RECORDS_FILTER_SCHEMA.createRecord(
+				// Schema column (= Model ID + Schema#):
+				schema.getMetaRecordReference(),
+				// Capacity, HashFunctions & Size columns:
+				filter.getCapacity(),
+				filter.getNumberOfHashFunctions(),
+				filter.getSize(),
+				// Bits column:
+				filter.toBytes()));
+		}
+		catch(Exception e)
+		{
+			client.logError("Error upon storing received records filter", e);
+		}
+	}
+	
+	/**
+	 * @param schema
+	 * @return the stored Bloom filter over the primary key values of the received records of the given schema, or {@code null} if there is none (or it is unreadable)
+	 */
+	public BloomFilter retrieveReceivedRecordsFilter(Schema schema)
+	{
+		Record filterRec = recordStore.retrieveRecord(RECEIVED_RECORDS_FILTER_SCHEMA.createRecordReference(schema.getMetaRecordReference()));
+		if(filterRec == null)
+			return null;
+		try
+		{
+			return new BloomFilter(
+				RECEIVED_RECORDS_FILTER_COLUMN_CAPACITY.retrieveValue(filterRec).intValue(),
+				RECEIVED_RECORDS_FILTER_COLUMN_HASH_FUNCTIONS.retrieveValue(filterRec).intValue(),
+				RECEIVED_RECORDS_FILTER_COLUMN_SIZE.retrieveValue(filterRec).intValue(),
+				RECEIVED_RECORDS_FILTER_COLUMN_BITS.retrieveValue(filterRec));
+		}
+		catch(Exception e)
+		{
+			client.logError("Error upon reading received records filter", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Stores the progress of a resumable upload. Uploads which have not been started (i.e. which have no hash yet) are not stored.
+	 * 
+	 * @param upload
+	 */
+	public void storeResumableUpload(ResumableUpload upload)
+	{
+		if(upload.getHash() == null)
+			return;
+		try
+		{
+			recordStore.store(RESUMABLE_UPLOADS_SCHEMA.createRecord(
+				// Receiver column (first store/update the Correspondent if necessary):
+				getCorrespondentRecordReference(upload.getReceiver(), true, false),
+				// FilePath column:
+				upload.getFile().getAbsolutePath(),
+				// FileSize, Hash, UploadID, Offset & ChunkSize columns:
+				upload.getSize(),
+				upload.getHash(),
+				upload.getUploadID(),
+				upload.getOffset(),
+				upload.getChunkSize()));
+		}
+		catch(Exception e)
+		{
+			client.logError("Error upon storing resumable upload", e);
+		}
+	}
+	
+	/**
+	 * @param receiver
+	 * @param file
+	 * @return the stored progress of the upload of the given file to the given receiver, or {@code null} if there is none
+	 */
+	public ResumableUpload retrieveResumableUpload(Correspondent receiver, File file)
+	{
+		try
+		{
+			RecordReference receiverRecRef = getCorrespondentRecordReference(receiver, false, false);
+			if(receiverRecRef == null)
+				return null; // receiver was never stored, so neither was the upload
+			Record uploadRec = recordStore.retrieveRecord(RESUMABLE_UPLOADS_SCHEMA.createRecordReference(receiverRecRef, file.getAbsolutePath()));
+			if(uploadRec == null)
+				return null;
+			return new ResumableUpload(
+				receiver,
+				file,
+				RESUMABLE_UPLOADS_COLUMN_FILE_SIZE.retrieveValue(uploadRec).longValue(),
+				RESUMABLE_UPLOADS_COLUMN_HASH.retrieveValue(uploadRec),
+				RESUMABLE_UPLOADS_COLUMN_UPLOAD_ID.retrieveValue(uploadRec),
+				RESUMABLE_UPLOADS_COLUMN_OFFSET.retrieveValue(uploadRec).longValue(),
+				RESUMABLE_UPLOADS_COLUMN_CHUNK_SIZE.retrieveValue(uploadRec).intValue());
+		}
+		catch(Exception e)
+		{
+			client.logError("Error upon retrieving resumable upload", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Deletes the stored progress of the given upload (e.g. because it has been completed).
+	 * 
+	 * @param upload
+	 */
+	public void deleteResumableUpload(ResumableUpload upload)
+	{
+		try
+		{
+			RecordReference receiverRecRef = getCorrespondentRecordReference(upload.getReceiver(), false, false);
+			if(receiverRecRef != null)
+				recordStore.delete(RESUMABLE_UPLOADS_SCHEMA.createRecordReference(receiverRecRef, upload.getFile().getAbsolutePath()));
+		}
+		catch(Exception e)
+		{
+			client.logError("Error upon deleting resumable upload", e);
+		}
+	}
+	
 	/**
 	 * Removes all entries relating to the referenced Record from the TransmittableRecords table (possibly for multiple receivers). 
 	 * 
@@ -902,7 +1228,7 @@ public class TransmissionStore extends RecordStoreWrapper<TransmissionClient>
 	 */
 	public List<Record> retrieveTransmittableRecordsWithoutTransmission(Correspondent correspondent, Model model)
 	{
-		return retrieveTransmittableUserRecords(correspondent, model, EqualityConstraint.IsNull(TRANSMITTABLE_RECORDS_COLUMN_TRANSMISSION));
+		return retrieveTransmittableUserRecords(correspondent, model, EqualityConstraint.IsNull(TRANSMITTABLE_RECORDS_COLUMN_TRANSMISSION), null);
 	}
 	
 	/**
@@ -915,7 +1241,7 @@ public class TransmissionStore extends RecordStoreWrapper<TransmissionClient>
 	 */
 	public List<Record> retrieveTransmittableRecordsWithTransmission(Correspondent correspondent, Model model)
 	{
-		return retrieveTransmittableUserRecords(correspondent, model, EqualityConstraint.IsNotNull(TRANSMITTABLE_RECORDS_COLUMN_TRANSMISSION));
+		return retrieveTransmittableUserRecords(correspondent, model, EqualityConstraint.IsNotNull(TRANSMITTABLE_RECORDS_COLUMN_TRANSMISSION), null);
 	}
 	
 	/**
@@ -930,7 +1256,7 @@ public class TransmissionStore extends RecordStoreWrapper<TransmissionClient>
 	 */
 	public List<Record> retrieveTransmittableRecordsWithTransmission(Model model, Transmission<?> transmission)
 	{
-		return retrieveTransmittableUserRecords(transmission.getCorrespondent(), model, getTransmissionSchema(false).createRecordReference(transmission.getLocalID()).getRecordQueryConstraint());
+		return retrieveTransmittableUserRecords(transmission.getCorrespondent(), model, getTransmissionSchema(false).createRecordReference(transmission.getLocalID()).getRecordQueryConstraint(), null);
 	}
 	
 	/**
@@ -939,14 +1265,45 @@ public class TransmissionStore extends RecordStoreWrapper<TransmissionClient>
 	 * @return
 	 */
 	public synchronized List<Record> retrieveRecordsToTransmitNow(Correspondent receiver, Model model)
+	{
+		return retrieveRecordsToTransmitNow(receiver, model, null);
+	}
+	
+	/**
+	 * Retrieves the records to transmit now to each of the given receivers.
+	 * User records which are to be sent to more than one receiver are only queried for once, and the lists
+	 * of different receivers share the same Record instances (meaning encodings of their values can be shared
+	 * as well, see {@link uk.ac.ucl.excites.sapelli.transmission.model.content.RecordValueBitsCache}).
+	 * 
+	 * @param receivers
+	 * @param model
+	 * @return map with the records to transmit now to each receiver (in the iteration order of the given receivers)
+	 */
+	public synchronized Map<Correspondent, List<Record>> retrieveRecordsToTransmitNow(Collection<? extends Correspondent> receivers, Model model)
+	{
+		Map<Correspondent, List<Record>> recsToSendByReceiver = new LinkedHashMap<Correspondent, List<Record>>();
+		Map<RecordReference, Record> userRecs = new HashMap<RecordReference, Record>();
+		for(Correspondent receiver : receivers)
+			if(!recsToSendByReceiver.containsKey(receiver))
+				recsToSendByReceiver.put(receiver, retrieveRecordsToTransmitNow(receiver, model, userRecs));
+		return recsToSendByReceiver;
+	}
+	
+	/**
+	 * @param receiver
+	 * @param model
+	 * @param userRecs previously retrieved user records, to be reused and added to (may be null)
+	 * @return
+	 */
+	private List<Record> retrieveRecordsToTransmitNow(Correspondent receiver, Model model, Map<RecordReference, Record> userRecs)
 	{
 		List<Record> recsToSend = new ArrayList<Record>();
 		
 		// Query for unsent (as in, not associated with a transmission) records for the given receiver & model:
-		CollectionUtils.addAllIgnoreNull(recsToSend, retrieveTransmittableRecordsWithoutTransmission(receiver, model));
+		CollectionUtils.addAllIgnoreNull(recsToSend, retrieveTransmittableUserRecords(receiver, model, EqualityConstraint.IsNull(TRANSMITTABLE_RECORDS_COLUMN_TRANSMISSION), userRecs));
 		
 		//Also include transmittable records which have a transmission which was never sent or for which we haven't received a response since the timeout:
-		CollectionUtils.addAllIgnoreNull(recsToSend, retrieveTransmittableRecordsForResending(receiver, model));
+		CollectionUtils.addAllIgnoreNull(recsToSend, retrieveTransmittableRecordsForResending(receiver, model, userRecs));
 		
 		return recsToSend;
 	}
@@ -993,6 +1350,17 @@ public class TransmissionStore extends RecordStoreWrapper<TransmissionClient>
 	 * @return
 	 */
 	public synchronized List<Record> retrieveTransmittableRecordsForResending(Correspondent correspondent, Model model)
+	{
+		return retrieveTransmittableRecordsForResending(correspondent, model, null);
+	}
+	
+	/**
+	 * @param correspondent
+	 * @param model
+	 * @param userRecsCache previously retrieved user records, to be reused and added to (may be null)
+	 * @return
+	 */
+	private List<Record> retrieveTransmittableRecordsForResending(Correspondent correspondent, Model model, Map<RecordReference, Record> userRecsCache)
 	{
 		// Get all unreceived transmittables with an assigned transmission:
 		Map<RecordReference, List<Record>> tRecRef2toSendRecs =  retrieveUnreceivedTransmittablesWithTransmission(correspondent, model);
@@ -1013,7 +1381,7 @@ public class TransmissionStore extends RecordStoreWrapper<TransmissionClient>
 			{
 				// Get user records for resending:
 				for(Record toSendRec : entry.getValue())
-					CollectionUtils.addIgnoreNull(userRecs, getUserRecordFromTransmittable(toSendRec, model));
+					CollectionUtils.addIgnoreNull(userRecs, getUserRecordFromTransmittable(toSendRec, model, userRecsCache));
 				// Delete transmission if there was one:
 				if(transmission != null)
 					deleteTransmission(transmission, true /*deleting by hiding*/);
@@ -1117,9 +1485,10 @@ public class TransmissionStore extends RecordStoreWrapper<TransmissionClient>
 	 * @param correspondent
 	 * @param model
 	 * @param contraint - may be null
+	 * @param userRecsCache previously retrieved user records, to be reused and added to (may be null)
 	 * @return
 	 */
-	private List<Record> retrieveTransmittableUserRecords(Correspondent correspondent, Model model, Constraint contraint)
+	private List<Record> retrieveTransmittableUserRecords(Correspondent correspondent, Model model, Constraint contraint, Map<RecordReference, Record> userRecsCache)
 	{
 		// Query for ToSend records:
 		List<Record> toSendRecs = retrieveTransmittableRecords(correspondent, model, Order.By(TRANSMITTABLE_RECORDS_CP_SCHEMA_NUMBER), contraint);
@@ -1127,7 +1496,7 @@ public class TransmissionStore extends RecordStoreWrapper<TransmissionClient>
 		// Query for the actual records being referred to:
 		List<Record> userRecs = new ArrayList<Record>(toSendRecs.size());
 		for(Record toSendRec : toSendRecs)
-			CollectionUtils.addIgnoreNull(userRecs, getUserRecordFromTransmittable(toSendRec, model));
+			CollectionUtils.addIgnoreNull(userRecs, getUserRecordFromTransmittable(toSendRec, model, userRecsCache));
 		
 		// Return result:
 		return userRecs;
@@ -1155,10 +1524,24 @@ public class TransmissionStore extends RecordStoreWrapper<TransmissionClient>
 		}
 	}
 	
-	private Record getUserRecordFromTransmittable(Record toSendRecord, Model recycleModel)
+	/**
+	 * @param toSendRecord
+	 * @param recycleModel
+	 * @param userRecsCache previously retrieved user records, to be reused and added to (may be null)
+	 * @return
+	 */
+	private Record getUserRecordFromTransmittable(Record toSendRecord, Model recycleModel, Map<RecordReference, Record> userRecsCache)
 	{
-		// Query for & return user record:
-		return recordStore.retrieveRecord(getUserRecordReferenceFromTransmittable(toSendRecord, recycleModel));
+		RecordReference userRecRef = getUserRecordReferenceFromTransmittable(toSendRecord, recycleModel);
+		if(userRecsCache == null || userRecRef == null)
+			// Query for & return user record:
+			return recordStore.retrieveRecord(userRecRef);
+		if(userRecsCache.containsKey(userRecRef))
+			return userRecsCache.get(userRecRef);
+		// Query for, remember & return user record:
+		Record userRec = recordStore.retrieveRecord(userRecRef);
+		userRecsCache.put(userRecRef, userRec);
+		return userRec;
 	}
 	
 	/**
@@ -1209,19 +1592,20 @@ public class TransmissionStore extends RecordStoreWrapper<TransmissionClient>
 	{
 
 		private Record tRecord;
-		private final List<Record> tPartRecords = new ArrayList<Record>();
+		private Record tPartSetRecord;
+		private PackedTransmissionParts packedParts;
 		
 		/**
 		 * @param transmission
-		 * @return a {@link List} of {@link Record}s, the first one of which is the tranmission record, the following ones are the transmission part records
+		 * @return a {@link List} of {@link Record}s, the first one of which is the tranmission record, the second one is the transmission part set record
 		 */
 		public List<Record> generate(Transmission<?> transmission)
 		{	
 			// Create new transmission record:
 			tRecord = getTransmissionSchema(transmission.incoming).createRecord();
 			
-			// wipe part recs:
-			tPartRecords.clear();
+			// wipe part set rec:
+			tPartSetRecord = null;
 			
 			// Set values of all columns will be set except for Correspondent & NumberOfParts:
 			if(transmission.isLocalIDSet())
@@ -1245,19 +1629,27 @@ public class TransmissionStore extends RecordStoreWrapper<TransmissionClient>
 			// Use double dispatch for type-specific work:
 			transmission.handle(this);
 			
-			// Return list with tRecord and tPartRecords:
-			List<Record> result = new ArrayList<Record>(tPartRecords.size() + 1);
+			// Return list with tRecord and tPartSetRecord:
+			List<Record> result = new ArrayList<Record>(2);
 			result.add(tRecord);
-			result.addAll(tPartRecords);
+			if(tPartSetRecord != null)
+				result.add(tPartSetRecord);
 			return result;
 		}
 		
-		private Record newPartRecord(Transmission<?> transmission, int partNumber)
+		private void startPartSet(Transmission<?> transmission, int totalParts)
 		{
-			Record tPartRec = getTransmissionPartSchema(transmission.incoming).createRecord();
-			tPartRecords.add(tPartRec);
-			TRANSMISSION_PART_COLUMN_NUMBER.storeValue(tPartRec, partNumber);
-			return tPartRec;
+			// Foreign key is set upon storage:
+			tPartSetRecord = GetTransmissionPartSetSchema(transmission.incoming).createRecord();
+			TRANSMISSION_COLUMN_NUMBER_OF_PARTS.storeValue(tPartSetRecord, totalParts);
+			packedParts = new PackedTransmissionParts(totalParts);
+		}
+		
+		private void finishPartSet()
+		{
+			TRANSMISSION_PART_SET_COLUMN_RECEIVED_PARTS.storeValue(tPartSetRecord, packedParts.getReceivedParts());
+			TRANSMISSION_PART_SET_COLUMN_PARTS.storeValue(tPartSetRecord, packedParts.toBytes());
+			packedParts = null;
 		}
 		
 		private void handleSMS(SMSTransmission<?> smsT)
@@ -1269,17 +1661,11 @@ public class TransmissionStore extends RecordStoreWrapper<TransmissionClient>
 				TRANSMISSION_COLUMN_NUMBER_OF_RESEND_REQS_SENT.storeValue(tRecord, smsT.getNumberOfSentResendRequests());
 				TRANSMISSION_COLUMN_LAST_RESEND_REQS_SENT_AT.storeValue(tRecord, smsT.getLastResendRequestSentAt());
 			}
-			// Make records for the parts...
+			// Pack the parts (in ascending part number order) into the part set record:
+			startPartSet(smsT, smsT.getTotalNumberOfParts());
 			for(Message<?, ?> msg : smsT.getParts())
-			{
-				Record tPartRec = newPartRecord(smsT, msg.getPartNumber()); // adds to the tPartRecords list as well
-				
-				// Set columns (except for foreign key):
-				COLUMN_SENT_AT.storeValue(tPartRec, msg.getSentAt());
-				TRANSMISSION_PART_COLUMN_DELIVERED_AT.storeValue(tPartRec, msg.getDeliveredAt());
-				COLUMN_RECEIVED_AT.storeValue(tPartRec, msg.getReceivedAt());
-				msg.handle(this); // will set part body and body bit length
-			}
+				msg.handle(this); // will pack the part
+			finishPartSet();
 		}
 		
 		@Override
@@ -1298,13 +1684,19 @@ public class TransmissionStore extends RecordStoreWrapper<TransmissionClient>
 		public void handle(BinaryMessage binMsg)
 		{
 			BitArray bits = binMsg.getBody();
-			setPartBody(bits.toByteArray(), bits.length());
+			packPart(binMsg, bits.toByteArray(), bits.length());
 		}
 
 		@Override
 		public void handle(TextMessage txtMsg)
 		{
-			setPartBody(StringToBytes(txtMsg.getBody()));
+			byte[] bodyBytes = StringToBytes(txtMsg.getBody());
+			packPart(txtMsg, bodyBytes, bodyBytes.length * Byte.SIZE);
+		}
+		
+		private void packPart(Message<?, ?> msg, byte[] bodyBytes, int bitLength)
+		{
+			packedParts.add(msg.getPartNumber(), msg.getSentAt(), msg.getDeliveredAt(), msg.getReceivedAt(), bodyBytes, bitLength);
 		}
 		
 		@Override
@@ -1319,24 +1711,10 @@ public class TransmissionStore extends RecordStoreWrapper<TransmissionClient>
 				// TRANSMISSION_COLUMN_LAST_RESEND_REQS_SENT_AT remains null
 			}
 			
-			// Create a single transmission part (only used to store the body):
-			newPartRecord(geoKeyT, 1); // adds to the list as well
-			setPartBody(geoKeyT.getBody()); // will set part body and body bit length
-		}
-		
-		private void setPartBody(byte[] bodyBytes)
-		{
-			setPartBody(bodyBytes, bodyBytes.length * Byte.SIZE);
-		}
-		
-		private void setPartBody(byte[] bodyBytes, int bitLength)
-		{
-			// Last tPartRec in the list:
-			Record tPartRec = tPartRecords.get(tPartRecords.size() - 1);
-			
-			// Set body & body bit length columns:
-			TRANSMISSION_PART_COLUMN_BODY.storeValue(tPartRec, bodyBytes);
-			TRANSMISSION_PART_COLUMN_BODY_BIT_LENGTH.storeValue(tPartRec, bitLength);
+			// Pack a single transmission part (only used to store the body):
+			startPartSet(geoKeyT, 1);
+			packedParts.add(1, null, null, null, geoKeyT.getBody(), geoKeyT.getBody().length * Byte.SIZE);
+			finishPartSet();
 		}
 
 	}
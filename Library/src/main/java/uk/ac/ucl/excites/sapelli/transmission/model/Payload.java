@@ -22,6 +22,7 @@ import java.io.IOException;
 
 import uk.ac.ucl.excites.sapelli.shared.compression.CompressorFactory;
 import uk.ac.ucl.excites.sapelli.shared.compression.CompressorFactory.Compression;
+import uk.ac.ucl.excites.sapelli.shared.crypto.CRC16;
 import uk.ac.ucl.excites.sapelli.shared.io.BitArray;
 import uk.ac.ucl.excites.sapelli.shared.io.BitArrayInputStream;
 import uk.ac.ucl.excites.sapelli.shared.io.BitArrayOutputStream;
@@ -29,6 +30,7 @@ import uk.ac.ucl.excites.sapelli.shared.io.BitInputStream;
 import uk.ac.ucl.excites.sapelli.shared.io.BitOutputStream;
 import uk.ac.ucl.excites.sapelli.shared.io.StreamHelpers;
 import uk.ac.ucl.excites.sapelli.shared.util.IntegerRangeMapping;
+import uk.ac.ucl.excites.sapelli.shared.util.Metrics;
 import uk.ac.ucl.excites.sapelli.storage.types.TimeStamp;
 import uk.ac.ucl.excites.sapelli.transmission.TransmissionClient;
 import uk.ac.ucl.excites.sapelli.transmission.model.content.AckPayload;
@@ -67,6 +69,11 @@ public abstract class Payload
 	
 	static public final int MAX_BUILTIN_TYPES = (int) Math.pow(2, PAYLOAD_TYPE_SIZE - 1); // = 16
 	
+	// Metric names (see StorageClient#enableMetrics()):
+	static public final String METRIC_SERIALISE = "payload.serialise";
+	static public final String METRIC_DESERIALISE = "payload.deserialise";
+	static public final String METRIC_DECODE_FAILURES = "payload.decode.failures";
+	
 	static public Payload New(BuiltinType type)
 	{
 		switch(type)
@@ -227,14 +234,28 @@ public abstract class Payload
 	}
 	
 	public BitArray serialise() throws IOException, TransmissionCapacityExceededException
+	{
+		return serialise(null);
+	}
+	
+	/**
+	 * @param crc16 when not {@code null} the serialised bits are fed to it while they are written (see {@link BitOutputStream#setCRC16Tap(CRC16)})
+	 * @return the serialised payload bits
+	 * @throws IOException
+	 * @throws TransmissionCapacityExceededException
+	 */
+	public BitArray serialise(CRC16 crc16) throws IOException, TransmissionCapacityExceededException
 	{
 		if(this.transmission == null)
 			throw new IllegalStateException("Cannot serialise before transmission has been set!");
 	
+		Metrics.Timer timer = transmission.client.getMetrics().timer(METRIC_SERIALISE);
+		long start = timer.start();
 		BitArrayOutputStream bitstream = null;
 		try
 		{
 			bitstream = new BitArrayOutputStream();
+			bitstream.setCRC16Tap(crc16);
 		
 			// Serialise payload data:
 			write(bitstream);
@@ -246,6 +267,7 @@ public abstract class Payload
 		finally
 		{
 			StreamHelpers.SilentClose(bitstream);
+			timer.stop(start);
 		}
 	}
 	
@@ -259,12 +281,17 @@ public abstract class Payload
 	public void deserialise(BitArray payloadBits)
 	{
 		decodeException = null; // wipe any previous exception 
+		if(this.transmission == null)
+		{	// don't throw!
+			decodeException = new PayloadDecodeException(this, new IllegalStateException("Cannot deserialise before transmission has been set!"));
+			return;
+		}
+		Metrics metrics = transmission.client.getMetrics();
+		Metrics.Timer timer = metrics.timer(METRIC_DESERIALISE);
+		long start = timer.start();
 		BitArrayInputStream bitstream = null;
 		try
 		{
-			if(this.transmission == null)
-				throw new IllegalStateException("Cannot deserialise before transmission has been set!");
-			
 			bitstream = new BitArrayInputStream(payloadBits);
 			
 			// Deserialise payload data:
@@ -274,10 +301,12 @@ public abstract class Payload
 		{
 			// don't throw!
 			decodeException = (e instanceof PayloadDecodeException) ? (PayloadDecodeException) e : new PayloadDecodeException(this, e);
+			metrics.counter(METRIC_DECODE_FAILURES).increment();
 		}
 		finally
 		{
 			StreamHelpers.SilentClose(bitstream);
+			timer.stop(start);
 		}
 	}
 	
@@ -21,11 +21,13 @@ package uk.ac.ucl.excites.sapelli.transmission.model;
 import java.io.EOFException;
 import java.io.IOException;
 
-import uk.ac.ucl.excites.sapelli.shared.crypto.Hashing;
+import uk.ac.ucl.excites.sapelli.shared.crypto.CRC16;
 import uk.ac.ucl.excites.sapelli.shared.io.BitArray;
 import uk.ac.ucl.excites.sapelli.shared.io.BitArrayInputStream;
 import uk.ac.ucl.excites.sapelli.shared.io.BitArrayOutputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.StreamHelpers;
 import uk.ac.ucl.excites.sapelli.shared.util.IntegerRangeMapping;
+import uk.ac.ucl.excites.sapelli.shared.util.Metrics;
 import uk.ac.ucl.excites.sapelli.shared.util.Objects;
 import uk.ac.ucl.excites.sapelli.storage.types.TimeStamp;
 import uk.ac.ucl.excites.sapelli.transmission.TransmissionClient;
@@ -122,6 +124,12 @@ public abstract class Transmission<C extends Correspondent>
 	
 	static public final int MINIMUM_RESEND_TIMEOUT_MS = 90 * 1000; // 90 seconds
 	
+	// Metric names (see StorageClient#enableMetrics()):
+	static public final String METRIC_PREPARE = "transmission.prepare";
+	static public final String METRIC_PREPARE_SIMULATION = "transmission.prepare.simulation";
+	static public final String METRIC_PAYLOAD_BITS = "transmission.payload.bits";
+	static public final String METRIC_UNWRAP_AND_DECODE = "transmission.unwrapAndDecode";
+	
 	// DYNAMICS------------------------------------------------------
 	public final TransmissionClient client;
 	
@@ -534,6 +542,20 @@ public abstract class Transmission<C extends Correspondent>
 	 * @throws TransmissionSendingException
 	 */
 	private void prepare(boolean simulation) throws TransmissionCapacityExceededException, TransmissionSendingException
+	{
+		Metrics.Timer timer = client.getMetrics().timer(simulation ? METRIC_PREPARE_SIMULATION : METRIC_PREPARE);
+		long start = timer.start();
+		try
+		{
+			doPrepare(simulation);
+		}
+		finally
+		{
+			timer.stop(start);
+		}
+	}
+	
+	private void doPrepare(boolean simulation) throws TransmissionCapacityExceededException, TransmissionSendingException
 	{
 		//Some checks:
 		if(payload == null || payloadType == null)
@@ -556,15 +578,19 @@ public abstract class Transmission<C extends Correspondent>
 				// Write payload type:
 				Payload.PAYLOAD_TYPE_FIELD.write(payload.getType(), bitstream);
 				
-				// Get serialised payload bits:
-				BitArray payloadBits = payload.serialise();
+				// Get serialised payload bits, computing their hash along the way:
+				CRC16 payloadCRC = new CRC16();
+				BitArray payloadBits = payload.serialise(payloadCRC);
 				
 				// Capacity check:
 				if(payloadBits.length() > getMaxPayloadBits())
 					throw new TransmissionCapacityExceededException("Payload is too large for the associated transmission (size: " + payloadBits.length() + " bits; max for this type of transmission: " + getMaxPayloadBits() + " bits");
 				
-				// Compute & store payload hash:
-				this.payloadHash = computePayloadHash(payloadBits);
+				if(!simulation)
+					client.getMetrics().histogram(METRIC_PAYLOAD_BITS).record(payloadBits.length());
+				
+				// Store payload hash:
+				this.payloadHash = payloadCRC.getValue();
 				
 				// Write payload bits length:
 				payloadBitsLengthField.write(payloadBits.length(), bitstream);
@@ -614,6 +640,8 @@ public abstract class Transmission<C extends Correspondent>
 		}
 		
 		// Decode transmission & payload:
+		Metrics.Timer timer = client.getMetrics().timer(METRIC_UNWRAP_AND_DECODE);
+		long start = timer.start();
 		try
 		{
 			// Unwrap (reassemble/decode) body:
@@ -665,6 +693,43 @@ public abstract class Transmission<C extends Correspondent>
 				throw (TransmissionReceivingException) e;
 			throw new TransmissionReceivingException(this, "Transmission could not be received/decoded", e);
 		}
+		finally
+		{
+			timer.stop(start);
+		}
+	}
+	
+	/**
+	 * Reads the payload type from the header at the start of the body, which may be incomplete (e.g. when not all parts of a
+	 * multi-part transmission have been received yet), such that the payload type is known (and stored) before the body as a
+	 * whole can be decoded.
+	 * 
+	 * Does nothing if the payload type is already known, or if the header is incomplete or invalid (in which case {@link #receive()}
+	 * will report the problem once the transmission is complete).
+	 * 
+	 * @param bodyStart the first bits of the body
+	 */
+	protected void readPayloadTypeEarly(BitArray bodyStart)
+	{
+		if(isPayloadTypeSet() || bodyStart.length() < FORMAT_VERSION_FIELD.size() + Payload.PAYLOAD_TYPE_SIZE)
+			return;
+		BitArrayInputStream bitstream = new BitArrayInputStream(bodyStart);
+		try
+		{
+			if(FORMAT_VERSION_FIELD.readShort(bitstream) > HIGHEST_SUPPORTED_FORMAT)
+				return;
+			int type = Payload.PAYLOAD_TYPE_FIELD.readInt(bitstream);
+			Payload.GetPayloadTypeString(type); // throws IllegalArgumentException if the type is invalid
+			payloadType = type;
+		}
+		catch(Exception ignore)
+		{
+			// header incomplete or invalid, leave it to receive()
+		}
+		finally
+		{
+			StreamHelpers.SilentClose(bitstream);
+		}
 	}
 	
 	/**
@@ -712,7 +777,7 @@ public abstract class Transmission<C extends Correspondent>
 	
 	protected int computePayloadHash(BitArray payloadBits)
 	{
-		return Hashing.getCRC16Hash(payloadBits.toByteArray());
+		return CRC16.Compute(payloadBits);
 	}
 	
 	public abstract boolean isComplete();
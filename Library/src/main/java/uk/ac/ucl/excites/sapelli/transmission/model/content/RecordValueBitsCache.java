@@ -0,0 +1,109 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.transmission.model.content;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import uk.ac.ucl.excites.sapelli.shared.io.BitArray;
+import uk.ac.ucl.excites.sapelli.storage.model.Column;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+
+/**
+ * Caches the binary encodings of record values (as produced by {@link Column#retrieveValueAsBits(uk.ac.ucl.excites.sapelli.storage.model.ValueSet, boolean)}),
+ * so that each value is encoded only once, no matter how many times it is written to a {@link RecordsPayload}.
+ * 
+ * A {@link RecordsPayload} re-encodes all of its records each time one is added (to check the transmission's capacity), and
+ * when the same records are sent to several receivers they end up in several payloads. Payloads which share a cache
+ * (see {@link RecordsPayload#setValueBitsCache(RecordValueBitsCache)}) avoid encoding values again in both cases.
+ * 
+ * Records are identified by identity, and must not be modified while they are cached.
+ */
+public final class RecordValueBitsCache
+{
+
+	private final boolean lossless;
+	private final Map<Record, Map<Column<?>, BitArray>> bitsByRecord = new IdentityHashMap<Record, Map<Column<?>, BitArray>>();
+	
+	/**
+	 * @param lossless whether values are to be encoded losslessly (must match the payloads using the cache)
+	 */
+	public RecordValueBitsCache(boolean lossless)
+	{
+		this.lossless = lossless;
+	}
+	
+	/**
+	 * @param record
+	 * @param column a top-level column of the record's schema
+	 * @return the encoded value of the given column in the given record
+	 * @throws IOException when the value cannot be encoded
+	 */
+	public BitArray getValueBits(Record record, Column<?> column) throws IOException
+	{
+		Map<Column<?>, BitArray> recordBits = bitsByRecord.get(record);
+		if(recordBits == null)
+		{
+			recordBits = new HashMap<Column<?>, BitArray>();
+			bitsByRecord.put(record, recordBits);
+		}
+		BitArray bits = recordBits.get(column);
+		if(bits == null)
+		{
+			try
+			{
+				bits = column.retrieveValueAsBits(record, lossless);
+			}
+			catch(IOException ioe)
+			{
+				throw ioe;
+			}
+			catch(Exception e)
+			{
+				throw new IOException("Could not encode value of column " + column.name, e);
+			}
+			recordBits.put(column, bits);
+		}
+		return bits;
+	}
+	
+	/**
+	 * @return whether values are encoded losslessly
+	 */
+	public boolean isLossless()
+	{
+		return lossless;
+	}
+	
+	/**
+	 * @return the number of records of which values are cached
+	 */
+	public int getNumberOfRecords()
+	{
+		return bitsByRecord.size();
+	}
+	
+	public void clear()
+	{
+		bitsByRecord.clear();
+	}
+	
+}
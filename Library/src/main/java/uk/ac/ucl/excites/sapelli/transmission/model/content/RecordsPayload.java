@@ -37,6 +37,7 @@ import uk.ac.ucl.excites.sapelli.shared.io.BitInputStream;
 import uk.ac.ucl.excites.sapelli.shared.io.BitOutputStream;
 import uk.ac.ucl.excites.sapelli.shared.io.StreamHelpers;
 import uk.ac.ucl.excites.sapelli.shared.util.IntegerRangeMapping;
+import uk.ac.ucl.excites.sapelli.shared.util.Metrics;
 import uk.ac.ucl.excites.sapelli.storage.model.Column;
 import uk.ac.ucl.excites.sapelli.storage.model.Model;
 import uk.ac.ucl.excites.sapelli.storage.model.Record;
@@ -96,6 +97,12 @@ public class RecordsPayload extends Payload
 	 */
 	static private final boolean DEFAULT_LOSSLESS_ENCODING = false; 
 	
+	// Metric names (see StorageClient#enableMetrics()):
+	static public final String METRIC_ENCODE = "payload.records.encode";
+	static public final String METRIC_COMPRESS = "payload.records.compress";
+	static public final String METRIC_DECOMPRESS = "payload.records.decompress";
+	static public final String METRIC_DECODE = "payload.records.decode";
+	
 	// DYNAMIC---------------------------------------------
 	protected Model model;
 	protected final Map<Schema, List<Record>> recordsBySchema;
@@ -105,6 +112,11 @@ public class RecordsPayload extends Payload
 	 */
 	protected boolean lossless;
 	
+	/**
+	 * Encoded record values (only used on the sending side, created when first needed unless a shared one is set).
+	 */
+	private RecordValueBitsCache valueBitsCache;
+	
 	public RecordsPayload()
 	{
 		this(DEFAULT_LOSSLESS_ENCODING);
@@ -186,6 +198,20 @@ public class RecordsPayload extends Payload
 		}
 	}
 	
+	/**
+	 * Makes the payload use the given cache of encoded record values, which may be shared with other payloads for the same
+	 * records (e.g. when sending them to several receivers).
+	 * 
+	 * @param valueBitsCache
+	 * @throws IllegalArgumentException when the cache uses a different encoding (lossless or lossy) than this payload
+	 */
+	public void setValueBitsCache(RecordValueBitsCache valueBitsCache) throws IllegalArgumentException
+	{
+		if(valueBitsCache != null && valueBitsCache.isLossless() != lossless)
+			throw new IllegalArgumentException("Cache encodes values " + (valueBitsCache.isLossless() ? "losslessly" : "lossyly") + ", payload does not");
+		this.valueBitsCache = valueBitsCache;
+	}
+	
 	/**
 	 * @return records grouped by schema
 	 */
@@ -296,9 +322,16 @@ public class RecordsPayload extends Payload
 			}
 
 			// Encode records ---------------------------------------
+			Metrics metrics = transmission.client.getMetrics();
+			Metrics.Timer encodeTimer = metrics.timer(METRIC_ENCODE);
+			long start = encodeTimer.start();
 			BitArray recordsBits = encodeRecords(schemataInT);
+			encodeTimer.stop(start);
 			// Compress record bits with various compression modes:
+			Metrics.Timer compressTimer = metrics.timer(METRIC_COMPRESS);
+			start = compressTimer.start();
 			byte[][] comprResults = Compress(recordsBits, COMPRESSION_MODES);
+			compressTimer.stop(start);
 			// Determine most space-efficient compression mode:
 			int bestComprIdx = 0;
 			for(int c = 1; c < COMPRESSION_MODES.length; c++)
@@ -359,18 +392,25 @@ public class RecordsPayload extends Payload
 		int compressionMode = COMPRESSION_FLAG_FIELD.readInt(in);
 
 		// Read BODY: encoded records, possibly compressed ----------
+		Metrics metrics = transmission.client.getMetrics();
 		BitArray recordsBits;
 		if(COMPRESSION_MODES[compressionMode] == Compression.NONE)
 			recordsBits = in.readBitArray(in.bitsAvailable()); // not compressed: read as bits
 		else
 		{	// Read compressed data as bytes & decompress them:
+			Metrics.Timer decompressTimer = metrics.timer(METRIC_DECOMPRESS);
+			long start = decompressTimer.start();
 			byte[] recordBytes = Decompress(in.readBytes(in.available()), COMPRESSION_MODES[compressionMode]);
+			decompressTimer.stop(start);
 			// Convert to bit array:
 			recordsBits = BitArray.FromBytes(recordBytes);
 		}
 		
 		// Decode records:
+		Metrics.Timer decodeTimer = metrics.timer(METRIC_DECODE);
+		long start = decodeTimer.start();
 		decodeRecords(schemataInT, recordsBits);
+		decodeTimer.stop(start);
 	}
 	
 	/**
@@ -382,6 +422,8 @@ public class RecordsPayload extends Payload
 	protected BitArray encodeRecords(Schema[] schemataInT) throws IOException, TransmissionCapacityExceededException
 	{
 		BitArrayOutputStream out = null;
+		if(valueBitsCache == null)
+			valueBitsCache = new RecordValueBitsCache(lossless);
 		try
 		{
 			out = new BitArrayOutputStream();
@@ -415,7 +457,7 @@ public class RecordsPayload extends Payload
 						{	// Get values of first record:
 							for(Column<?> c : schema.getColumns(false))
 								if(!nonTransmittableColumns.contains(c)) // ignore non-transmittable columns
-									factoredOutValues.put(c, c.retrieveValueAsBits(records.get(0), lossless)); // treat all columns as potentially factored-out
+									factoredOutValues.put(c, valueBitsCache.getValueBits(records.get(0), c)); // treat all columns as potentially factored-out
 							first = false;
 						}
 						else
@@ -423,7 +465,7 @@ public class RecordsPayload extends Payload
 							for(Iterator<Map.Entry<Column<?>, BitArray>> it = factoredOutValues.entrySet().iterator(); it.hasNext();) // use an iterator so we can remove in the for-loop
 							{
 								Map.Entry<Column<?>, BitArray> entry = it.next();
-								if(!entry.getValue().equals(entry.getKey().retrieveValueAsBits(r, lossless)))
+								if(!entry.getValue().equals(valueBitsCache.getValueBits(r, entry.getKey())))
 									it.remove(); // value mismatch -> this column can not be factored out
 							}
 							if(factoredOutValues.isEmpty())
@@ -459,8 +501,10 @@ public class RecordsPayload extends Payload
 				// Write record data, skipping ...
 				Set<Column<?>> skipColumns = new HashSet<Column<?>>(nonTransmittableColumns); 	// ... non-transmittable,
 				skipColumns.addAll(factoredOutValues.keySet());									// factored-out, ...
+				List<Column<?>> writeColumns = schema.getColumns(false /* ... and virtual columns */, skipColumns);
 				for(Record r : recordsBySchema.get(schema))
-					r.writeToBitStream(out, false /* ... and virtual columns */, skipColumns, lossless);
+					for(Column<?> c : writeColumns)
+						out.write(valueBitsCache.getValueBits(r, c)); // same bits as r.writeToBitStream(out, false, skipColumns, lossless)
 			}
 			
 			// Close the stream & return bits:
@@ -142,7 +142,7 @@ public class ResendRequestPayload extends ResponsePayload
 			store(incompleteT);
 			
 			// Schedule next request (won't do anything if max reached):
-			controller.scheduleSMSResendRequest(incompleteT.getLocalID(), incompleteT.getNextResendRequestSendingTime());
+			controller.scheduleSMSResendRequest(incompleteT);
 		}
 		
 	}
@@ -365,6 +365,24 @@ public abstract class SMSTransmission<M extends Message<M, ?>> extends Transmiss
 		return prev.shift(GetResendDelayMS(numberOfSentResendRequests + 1));
 	}
 	
+	/**
+	 * The expiry time assumes all remaining resend requests are sent on time, and gives the response to the last one as
+	 * long to arrive as the delay before it.
+	 * 
+	 * @return time at which to give up on this (incomplete) transmission, or null if it is complete
+	 */
+	public TimeStamp getExpiryTime()
+	{
+		if(isComplete())
+			return null;
+		
+		long delayMS = GetResendDelayMS(MAX_RESEND_REQUESTS); // time to wait for a response to the last request
+		for(int r = numberOfSentResendRequests + 1; r <= MAX_RESEND_REQUESTS; r++)
+			delayMS += GetResendDelayMS(r);
+		
+		return TimeStamp.Latest(getLastReceivedPart().getReceivedAt(), lastResendRequestSentAt).shift(delayMS);
+	}
+	
 	/* (non-Javadoc)
 	 * @see uk.ac.ucl.excites.sapelli.transmission.model.Transmission#getApproprateResentTimeout()
 	 */
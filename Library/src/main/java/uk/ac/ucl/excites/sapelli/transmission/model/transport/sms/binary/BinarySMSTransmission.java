@@ -19,6 +19,7 @@
 package uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.binary;
 
 import java.io.IOException;
+import java.util.BitSet;
 
 import uk.ac.ucl.excites.sapelli.shared.io.BitArray;
 import uk.ac.ucl.excites.sapelli.shared.io.BitArrayInputStream;
@@ -48,6 +49,15 @@ public class BinarySMSTransmission extends SMSTransmission<BinaryMessage>
 	
 	
 	// DYNAMIC ------------------------------------------------------
+	/**
+	 * Body bits of the contiguous run of parts starting from the first one (receiving side only), which grows as parts are added.
+	 * 
+	 * Note: these fields deliberately have no initialisers, because {@link #addPart(BinaryMessage)} is already called by the super constructor.
+	 */
+	private BitSet reassembledBits;
+	private int reassembledLength;
+	private int reassembledParts;
+	
 	/**
 	 * To be called on the sending side.
 	 *
@@ -93,11 +103,44 @@ public class BinarySMSTransmission extends SMSTransmission<BinaryMessage>
 		super(client, correspondent, received, localID, remoteID, payloadType, payloadHash, sentAt, receivedAt, response, numberOfSentResentRequests, lastResendReqSentAt);
 	}
 	
+	/**
+	 * On the receiving side the body of a new part which extends the contiguous run of parts (starting from the first one) is
+	 * appended to the reassembled body straight away, together with any parts that were received out of order and directly
+	 * follow it. Duplicate parts and parts that arrive ahead of a gap are only added to the (sorted) set of parts.
+	 * Once the start of the body is available the payload type is read from it.
+	 * 
+	 * @see uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.SMSTransmission#addPart(uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.Message)
+	 */
+	@Override
+	public void addPart(BinaryMessage msg)
+	{
+		int numberOfParts = parts.size();
+		super.addPart(msg);
+		if(incoming && parts.size() > numberOfParts /*not a duplicate*/ && msg.getPartNumber() == MIN_PART_NUMBER + reassembledParts)
+		{
+			if(reassembledBits == null)
+				reassembledBits = new BitSet(msg.getTotalParts() * BinaryMessage.MAX_BODY_SIZE_BITS);
+			for(BinaryMessage part : parts.tailSet(msg))
+			{
+				if(part.getPartNumber() != MIN_PART_NUMBER + reassembledParts)
+					break; // gap
+				BitArray body = part.getBody();
+				body.copyTo(reassembledBits, reassembledLength);
+				reassembledLength += body.length();
+				reassembledParts++;
+			}
+			readPayloadTypeEarly(new BitArray(reassembledBits, reassembledLength));
+		}
+	}
+	
 	@Override
 	protected void wrap(BitArray bodyBits) throws TransmissionCapacityExceededException, IOException
 	{
 		// Clear previously generated messages (!!!)
 		parts.clear();
+		reassembledBits = null;
+		reassembledLength = 0;
+		reassembledParts = 0;
 		
 		// Capacity check:
 		if(bodyBits.length() > MAX_BODY_SIZE_BITS)
@@ -114,6 +157,10 @@ public class BinarySMSTransmission extends SMSTransmission<BinaryMessage>
 	@Override
 	protected BitArray unwrap() throws IOException
 	{
+		// Use incrementally reassembled body if possible:
+		if(reassembledBits != null && reassembledParts == parts.size())
+			return new BitArray(reassembledBits, reassembledLength);
+		// Concatenate part bodies:
 		BitArrayOutputStream stream = new BitArrayOutputStream();
 		for(BinaryMessage part : parts)
 			stream.write(part.getBody());
@@ -0,0 +1,180 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.text;
+
+import java.io.IOException;
+import java.util.BitSet;
+
+import uk.ac.ucl.excites.sapelli.shared.io.BitArray;
+import uk.ac.ucl.excites.sapelli.transmission.util.TransmissionCapacityExceededException;
+
+/**
+ * Table-driven implementation of the body encoding algorithm of {@link TextSMSTransmission}, which converts between
+ * the body bits and a String of characters from the {@link Encoding#GSM_0338_CHAR_TABLE} alphabet, avoiding {@code ESC}
+ * by means of the {@code SP}-escaping mechanism described in the {@link TextSMSTransmission} class javadoc.
+ * 
+ * Both directions work on primitive arrays in bulk: bits are read from the big-endian byte representation of the
+ * {@link BitArray} through a 16 bit window, characters are looked up by index (encoding) or through the array-based
+ * reverse table (decoding, see {@link Decoding#ReverseLookup(char)}), and decoded bits are set directly in a {@link BitSet}.
+ * 
+ * 
+ * @see TextSMSTransmission#wrap(BitArray)
+ * @see TextSMSTransmission#unwrap()
+ */
+public final class BodyCodec
+{
+	
+	private BodyCodec(){ /*do not instantiate*/ }
+	
+	static private final int BITS_PER_CHAR = TextSMSTransmission.BITS_PER_CHAR;
+	
+	static private final int ESCAPE_BIT_SHIFT = BITS_PER_CHAR - 1;
+	
+	static private final int NO_ESCAPE = -1;
+	
+	/**
+	 * @param bits
+	 * @return the minimum number of characters needed to encode the given number of bits (not taking escaping into account)
+	 */
+	static public int MinNumberOfCharactersNeededFor(int bits)
+	{
+		return (bits + BITS_PER_CHAR - 1) / BITS_PER_CHAR;
+	}
+	
+	/**
+	 * Encodes the given bits as a String of GSM 03.38 characters, which never contains {@code ESC}.
+	 * If the number of bits is not a multiple of 7 (or 6 after an escaped character) trailing 0s are inserted.
+	 * 
+	 * @param bodyBits
+	 * @param maxChars maximum length of the encoded String
+	 * @return the encoded String
+	 * @throws TransmissionCapacityExceededException when more than {@code maxChars} characters are needed
+	 */
+	static public String Encode(BitArray bodyBits, int maxChars) throws TransmissionCapacityExceededException
+	{
+		final int numberOfBits = bodyBits.length();
+		final byte[] bytes = bodyBits.toByteArray(); // bits beyond the length are 0, which provides the trailing 0s
+		final char[] chars = new char[Math.min(maxChars, numberOfBits / (BITS_PER_CHAR - 1) + 2)]; // every character holds at least 6 bits, plus possibly a final one holding only an escape bit
+		int length = 0;
+		int bitPos = 0;
+		int escapeBit = NO_ESCAPE;
+		while(bitPos < numberOfBits || escapeBit != NO_ESCAPE)
+		{
+			// Check if there is room for one more character:
+			if(length == maxChars)
+				throw new TransmissionCapacityExceededException("Maximum body size (" + maxChars + " characters) exceeded by at least " + MinNumberOfCharactersNeededFor(Math.max(numberOfBits - bitPos, 0) + (escapeBit == NO_ESCAPE ? 0 : 1)) + " characters");
+			// Read 7 bits, or 6 bits preceded by the escape bit for the previous character:
+			int c;
+			if(escapeBit == NO_ESCAPE)
+			{
+				c = ReadBits(bytes, bitPos, BITS_PER_CHAR);
+				bitPos += BITS_PER_CHAR;
+			}
+			else
+			{
+				c = (escapeBit << ESCAPE_BIT_SHIFT) | ReadBits(bytes, bitPos, BITS_PER_CHAR - 1);
+				bitPos += BITS_PER_CHAR - 1;
+			}
+			// Escaping for current character (see TextSMSTransmission class javadoc):
+			switch(c)
+			{
+				case Encoding.ESCAPE_ESC :
+					escapeBit = 1;
+					c = Encoding.ESCAPE_SP; // write SP instead of ESC
+					break;
+				case Encoding.ESCAPE_SP :
+					escapeBit = 0;
+					break;
+				default :
+					escapeBit = NO_ESCAPE;
+			}
+			// Write character:
+			chars[length++] = Encoding.GSM_0338_CHAR_TABLE[c];
+		}
+		return new String(chars, 0, length);
+	}
+	
+	/**
+	 * @param bytes big-endian bytes
+	 * @param bitPos position of the first bit to read
+	 * @param numberOfBits number of bits to read (at most 7)
+	 * @return the unsigned integer value of the bits, bits beyond the end of the array are read as 0
+	 */
+	static private int ReadBits(byte[] bytes, int bitPos, int numberOfBits)
+	{
+		int byteIdx = bitPos >>> 3;
+		int window =	(byteIdx < bytes.length ? (bytes[byteIdx] & 0xFF) << 8 : 0) |
+						(byteIdx + 1 < bytes.length ? bytes[byteIdx + 1] & 0xFF : 0);
+		return (window >>> (16 - (bitPos & 7) - numberOfBits)) & ((1 << numberOfBits) - 1);
+	}
+	
+	/**
+	 * Decodes a String produced by {@link #Encode(BitArray, int)} (or a concatenation of its parts).
+	 * 
+	 * @param body
+	 * @return the body bits, possibly with some additional padding at the end (trailing 0s)
+	 * @throws IOException when the body contains characters outside of the alphabet
+	 */
+	static public BitArray Decode(CharSequence body) throws IOException
+	{
+		final int numberOfChars = body.length();
+		final BitSet bits = new BitSet(numberOfChars * BITS_PER_CHAR);
+		int bitPos = 0;
+		boolean prevPrevSP = false;
+		boolean prevSP = false;
+		for(int i = 0; i < numberOfChars; i++)
+		{
+			int c = Decoding.ReverseLookup(body.charAt(i));
+			if(c < 0)
+				throw new IOException("Invalid character in message body: " + body.charAt(i));
+			boolean currSP = (c == Encoding.ESCAPE_SP);
+			if(!prevSP)
+			{
+				if(!currSP)
+					bitPos = WriteBits(bits, bitPos, c, BITS_PER_CHAR); // write all 7 bits for current
+			}
+			else
+			{	// Previous character was SP, the first bit of the current one tells us whether it stood for ESC or SP:
+				int prevBits = BITS_PER_CHAR - (prevPrevSP ? 1 : 0);
+				bitPos = WriteBits(bits, bitPos, ((c >>> ESCAPE_BIT_SHIFT) == 1 ? Encoding.ESCAPE_ESC : Encoding.ESCAPE_SP) & ((1 << prevBits) - 1), prevBits); // write 7 or 6 bits for previous
+				if(!currSP)
+					bitPos = WriteBits(bits, bitPos, c & ((1 << ESCAPE_BIT_SHIFT) - 1), BITS_PER_CHAR - 1); // write 6 remaining bits for current
+			}
+			prevPrevSP = prevSP;
+			prevSP = currSP;
+		}
+		return new BitArray(bits, bitPos);
+	}
+	
+	/**
+	 * @param bits
+	 * @param bitPos position at which to write the first (most significant) bit
+	 * @param value
+	 * @param numberOfBits
+	 * @return the position after the last written bit
+	 */
+	static private int WriteBits(BitSet bits, int bitPos, int value, int numberOfBits)
+	{
+		for(int b = numberOfBits - 1; b >= 0; b--, bitPos++)
+			if(((value >>> b) & 1) != 0)
+				bits.set(bitPos);
+		return bitPos;
+	}
+	
+}
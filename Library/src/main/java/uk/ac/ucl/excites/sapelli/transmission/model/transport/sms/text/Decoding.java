@@ -18,6 +18,7 @@
 
 package uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.text;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -51,6 +52,37 @@ public final class Decoding
 		GSM_0338_REVERSE_CHAR_TABLE = Collections.unmodifiableMap(map);
 	}
 	
+	/**
+	 * Array-based equivalent of {@link #GSM_0338_REVERSE_CHAR_TABLE}, indexed by character and holding -1 for
+	 * characters which are not part of the alphabet (or are ESC). Avoids boxing and hashing on the hot path.
+	 * 
+	 * @see #ReverseLookup(char)
+	 */
+	static private final byte[] GSM_0338_REVERSE_CHAR_ARRAY;
+	static
+	{
+		char maxChar = 0;
+		for(char c : Encoding.GSM_0338_CHAR_TABLE)
+			if(c > maxChar)
+				maxChar = c;
+		final byte[] array = new byte[maxChar + 1];
+		Arrays.fill(array, (byte) -1);
+		for(int c = 0; c < Encoding.GSM_0338_CHAR_TABLE.length; c++)
+			if(c != Encoding.ESCAPE_ESC)
+				array[Encoding.GSM_0338_CHAR_TABLE[c]] = (byte) c;
+		GSM_0338_REVERSE_CHAR_ARRAY = array;
+	}
+	
+	/**
+	 * @param c
+	 * @return the 7 bits unsigned integer value the given character represents in the body portion of the SMS content String, or -1 if it is not part of the {@link Encoding#GSM_0338_CHAR_TABLE} alphabet (or is ESC)
+	 * @see #GSM_0338_REVERSE_CHAR_TABLE
+	 */
+	static public int ReverseLookup(char c)
+	{
+		return c < GSM_0338_REVERSE_CHAR_ARRAY.length ? GSM_0338_REVERSE_CHAR_ARRAY[c] : -1;
+	}
+	
 	/**
 	 * Reverse look-up table which maps 64 characters from the {@link Encoding#GSM_0338_CHAR_TABLE} alphabet back to
 	 * the 6 bits unsigned integer values they represent when occurring in the header portion of the SMS content String.
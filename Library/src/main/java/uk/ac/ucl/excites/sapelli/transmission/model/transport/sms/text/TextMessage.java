@@ -134,7 +134,7 @@ public class TextMessage extends Message<TextMessage, String>
 		
 		// Check content against alphabet (if it contains characters outside the basic GSM_0338 alphabet it is definitely not a Sapelli message):
 		for(int h = 0; h < HEADER_SIZE_CHARS; h++)
-			if(Decoding.GSM_0338_REVERSE_CHAR_TABLE.get(content.charAt(h)) == null)
+			if(Decoding.ReverseLookup(content.charAt(h)) < 0)
 				throw new InvalidMessageException("Message content contains invalid characters.");
 		
 		BitArrayOutputStream hdrFieldBitsOut = null;
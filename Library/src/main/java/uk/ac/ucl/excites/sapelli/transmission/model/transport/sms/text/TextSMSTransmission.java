@@ -21,10 +21,6 @@ package uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.text;
 import java.io.IOException;
 
 import uk.ac.ucl.excites.sapelli.shared.io.BitArray;
-import uk.ac.ucl.excites.sapelli.shared.io.BitArrayInputStream;
-import uk.ac.ucl.excites.sapelli.shared.io.BitArrayOutputStream;
-import uk.ac.ucl.excites.sapelli.shared.io.BitInputStream;
-import uk.ac.ucl.excites.sapelli.shared.io.StreamHelpers;
 import uk.ac.ucl.excites.sapelli.storage.types.TimeStamp;
 import uk.ac.ucl.excites.sapelli.transmission.TransmissionClient;
 import uk.ac.ucl.excites.sapelli.transmission.model.Payload;
@@ -41,7 +37,7 @@ import uk.ac.ucl.excites.sapelli.transmission.util.TransmissionCapacityExceededE
  * The encoding is performed using 2 algorithms (both designed by Matthias Stevens):
  * <ul>
  * <li>one for the message header: see {@link TextMessage}, {@link TextMessage#getContent()} and {@link TextMessage#TextMessage(SMSCorrespondent, String, TimeStamp)}</li>
- * <li>and another one for the body: see {@link #wrap(BitArray)} and {@link #unwrap()}.</li>
+ * <li>and another one for the body: see {@link #wrap(BitArray)}, {@link #unwrap()} and {@link BodyCodec}.</li>
  * </ul>
  * Both encoding algorithms are designed to avoid ever producing the reserved {@code ESC} character, which plays a role in the SMS alphabet extension mechanism.
  * Avoidance of this character is achieved by different strategies for the header and body:
@@ -119,11 +115,6 @@ public class TextSMSTransmission extends SMSTransmission<TextMessage>
 		super(client, correspondent, received, localID, remoteID, payloadType, payloadHash, sentAt, receivedAt, response, numberOfSentResentRequests, lastResendReqSentAt);
 	}
 	
-	private int minNumberOfCharactersNeededFor(int bits)
-	{
-		return (bits + BITS_PER_CHAR - 1) / BITS_PER_CHAR;
-	}
-	
 	@Override
 	protected void wrap(BitArray bodyBits) throws TransmissionCapacityExceededException, IOException
 	{
@@ -131,57 +122,13 @@ public class TextSMSTransmission extends SMSTransmission<TextMessage>
 		parts.clear(); //!!!
 		
 		// Rough body length check (does not taking escaping into account, hence the "at least"):
-		if(minNumberOfCharactersNeededFor(bodyBits.length()) > MAX_BODY_CHARS)
-			throw new TransmissionCapacityExceededException("Maximum body size (" + MAX_BODY_CHARS + " characters) exceeded by at least " + minNumberOfCharactersNeededFor(bodyBits.length()) + " characters");
+		if(BodyCodec.MinNumberOfCharactersNeededFor(bodyBits.length()) > MAX_BODY_CHARS)
+			throw new TransmissionCapacityExceededException("Maximum body size (" + MAX_BODY_CHARS + " characters) exceeded by at least " + BodyCodec.MinNumberOfCharactersNeededFor(bodyBits.length()) + " characters");
 		
 		// Convert transmission body from BitArray to String:
-		StringBuilder bld = new StringBuilder();
-		BitInputStream bitsIn = null;
-		try
-		{
-			bitsIn = new BitArrayInputStream(bodyBits);
-			Boolean escapeBit = null;
-			while(bitsIn.bitsAvailable() + (escapeBit == null ? 0 : 1) > 0)
-			{
-				// Check if there is room for one more character:
-				if(bld.length() + 1 > MAX_BODY_CHARS)					
-					throw new TransmissionCapacityExceededException("Maximum body size (" + MAX_BODY_CHARS + " characters) exceeded by at least " + minNumberOfCharactersNeededFor(bitsIn.bitsAvailable() + (escapeBit == null ? 0 : 1)) + " characters");
-				// Read 7, 6 or less bits and shift them to the right to fill 7 or 6 bits:
-				int readBits = Math.min(bitsIn.bitsAvailable(), BITS_PER_CHAR - (escapeBit == null ? 0 : 1));
-				int c = (readBits > 0 ? (int) bitsIn.readInteger(readBits, false) : 0) << (BITS_PER_CHAR - (escapeBit == null ? 0 : 1) - readBits); // insert trailing 0s if less than 7 or 6 bits were read
-				// Insert escape bit for previous character in most significant position (if needed):
-				if(escapeBit != null)
-					c += escapeBit ? (1 << (BITS_PER_CHAR - 1)) : 0;
-				/* Escaping for current character:
-				 * 	The escaping mechanism is only concerned with the characters ESC & SP.
-				 * 	The only "illegal" character is ESC, to avoid it we replace it by SP.
-				 * 	A normal occurrence of SP will stay SP. To differentiate both we insert
-				 * 	an "escapeBit" as the first bit of the next character (shifting the real
-				 * 	data bits over 1 position), the state of which indicates whether the
-				 * 	preceding character was ESC (escapeBit = 1) or SP (escapeBit = 0). */
-				switch(c)
-				{
-					case Encoding.ESCAPE_ESC :		// ESC:
-						escapeBit = true;	//	escapeBit = 1 (true)
-						c = Encoding.ESCAPE_SP;		//	write SP instead of ESC
-						break;
-					case Encoding.ESCAPE_SP :		// SP:
-						escapeBit = false;	//	escapeBit = 0 (false)
-						break;
-					default :
-						escapeBit = null;	// character doesn't need escaping
-				}
-				// Write character:
-				bld.append(Encoding.GSM_0338_CHAR_TABLE[c]);
-			}
-		}
-		finally
-		{
-			StreamHelpers.SilentClose(bitsIn);
-		}
+		String transmissionBodyStr = BodyCodec.Encode(bodyBits, MAX_BODY_CHARS);
 			
 		// Split up transmission body string in parts (each becoming the body of a separate TextMessage):
-		String transmissionBodyStr = bld.toString();
 		int partsTotal = (transmissionBodyStr.length() + TextMessage.MAX_BODY_CHARS - 1) / TextMessage.MAX_BODY_CHARS;
 		for(int p = 0; p < partsTotal; p++)
 			parts.add(new TextMessage(this, p + 1, partsTotal, transmissionBodyStr.substring(p * TextMessage.MAX_BODY_CHARS, Math.min((p + 1) * TextMessage.MAX_BODY_CHARS, transmissionBodyStr.length()))));
@@ -191,43 +138,12 @@ public class TextSMSTransmission extends SMSTransmission<TextMessage>
 	protected BitArray unwrap() throws IOException
 	{
 		// Assemble transmission body String from message body Strings:
-		StringBuilder blr = new StringBuilder();
+		StringBuilder blr = new StringBuilder(parts.size() * TextMessage.MAX_BODY_CHARS);
 		for(TextMessage part : parts)
 			blr.append(part.getBody());
-		String transmissionBodyStr = blr.toString();
-
+		
 		// Convert transmission body from String to BitArray:
-		BitArrayOutputStream bitsOut = new BitArrayOutputStream();
-		try
-		{
-			boolean prevPrevSP = false;
-			boolean prevSP = false;
-			for(int i = 0, n = transmissionBodyStr.length(); i < n; i++)
-			{
-				int c = Decoding.GSM_0338_REVERSE_CHAR_TABLE.get(transmissionBodyStr.charAt(i));
-				boolean currSP = (c == Encoding.ESCAPE_SP);
-				if(!prevSP)
-				{
-					if(!currSP)
-						bitsOut.write(c, BITS_PER_CHAR, false); // write all 7 bits for current
-				}
-				else // prevSP = true
-				{
-					boolean escapeBit = ((c >> (BITS_PER_CHAR - 1)) == 1);
-					bitsOut.write((escapeBit ? Encoding.ESCAPE_ESC : Encoding.ESCAPE_SP) % (1 << (BITS_PER_CHAR - (prevPrevSP ? 1 : 0))), (BITS_PER_CHAR - (prevPrevSP ? 1 : 0)), false); // write 7 or 6 bits for previous
-					if(!currSP)
-						bitsOut.write(c % (1 << (BITS_PER_CHAR - 1)), BITS_PER_CHAR - 1, false); // write 6 remaining bits for current
-				}
-				prevPrevSP = prevSP;
-				prevSP = currSP;
-			}
-			bitsOut.close();
-			return bitsOut.toBitArray(); // return transmission body bits, possibly with some additional padding at the end (trailing 0s), this will be ignored in Transmission#receive()
-		}
-		finally
-		{
-			bitsOut.close();
-		}
+		return BodyCodec.Decode(blr); // return transmission body bits, possibly with some additional padding at the end (trailing 0s), this will be ignored in Transmission#receive()
 	}
 	
 	protected int getMaxBodyBits()
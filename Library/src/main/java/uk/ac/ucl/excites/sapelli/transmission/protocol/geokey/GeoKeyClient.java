@@ -19,17 +19,34 @@
 package uk.ac.ucl.excites.sapelli.transmission.protocol.geokey;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import uk.ac.ucl.excites.sapelli.shared.db.StoreHandle.StoreOperation;
+import uk.ac.ucl.excites.sapelli.shared.db.StoreHandle.StoreOperationWithReturn;
 import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.shared.util.Metrics;
 import uk.ac.ucl.excites.sapelli.storage.eximport.ExportResult;
 import uk.ac.ucl.excites.sapelli.storage.eximport.csv.CSVRecordsExporter;
 import uk.ac.ucl.excites.sapelli.storage.eximport.csv.CSVRecordsExporter.Separator;
 import uk.ac.ucl.excites.sapelli.storage.model.Attachment;
 import uk.ac.ucl.excites.sapelli.storage.model.Record;
 import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.StorageClient;
 import uk.ac.ucl.excites.sapelli.storage.util.UnknownModelException;
 import uk.ac.ucl.excites.sapelli.transmission.TransmissionClient;
 import uk.ac.ucl.excites.sapelli.transmission.db.TransmissionStore;
@@ -43,6 +60,8 @@ import uk.ac.ucl.excites.sapelli.transmission.model.content.RecordsPayload;
 import uk.ac.ucl.excites.sapelli.transmission.model.content.ResendRequestPayload;
 import uk.ac.ucl.excites.sapelli.transmission.model.transport.geokey.GeoKeyServer;
 import uk.ac.ucl.excites.sapelli.transmission.model.transport.geokey.GeoKeyTransmission;
+import uk.ac.ucl.excites.sapelli.transmission.protocol.http.ResumableUpload;
+import uk.ac.ucl.excites.sapelli.transmission.protocol.http.ResumableUploader;
 
 public abstract class GeoKeyClient implements Payload.Handler
 {
@@ -86,14 +105,63 @@ public abstract class GeoKeyClient implements Payload.Handler
 	 */
 	static protected final CSVRecordsExporter.Separator CSV_SEPARATOR = Separator.COMMA;
 	
+	static public final int DEFAULT_ATTACHMENT_UPLOAD_THREADS = 4;
+	static public final int DEFAULT_ATTACHMENT_UPLOAD_ATTEMPTS = 3;
+	static public final long DEFAULT_ATTACHMENT_RETRY_DELAY_MS = 1000;
+	
+	/**
+	 * Interval at which the progress of resumable attachment uploads is written to the {@link TransmissionStore}.
+	 */
+	static public final long RESUMABLE_PROGRESS_STORE_INTERVAL_MS = 500;
+	
+	/**
+	 * Name of the timer in which CSV uploads (including CSV generation) are recorded.
+	 */
+	static public final String METRIC_UPLOAD_CSV = "transmission.geokey.upload.csv";
+	
+	/**
+	 * Name of the timer in which the uploading of all attachments of a payload is recorded.
+	 */
+	static public final String METRIC_UPLOAD_ATTACHMENTS = "transmission.geokey.upload.attachments";
+	
+	/**
+	 * Name of the counter of attachment upload attempts which were retried (streaming sessions only).
+	 */
+	static public final String METRIC_ATTACHMENT_RETRIES = METRIC_UPLOAD_ATTACHMENTS + ".retries";
+	
+	/**
+	 * Name of the counter of attachments which could not be uploaded after all attempts (streaming sessions only).
+	 */
+	static public final String METRIC_ATTACHMENT_FAILURES = METRIC_UPLOAD_ATTACHMENTS + ".failures";
+	
 	// DYNAMIC ----------------------------------------------------------------
 	protected final TransmissionClient client;
 	
+	private int attachmentUploadThreads = DEFAULT_ATTACHMENT_UPLOAD_THREADS;
+	private int attachmentUploadAttempts = DEFAULT_ATTACHMENT_UPLOAD_ATTEMPTS;
+	private long attachmentRetryDelayMS = DEFAULT_ATTACHMENT_RETRY_DELAY_MS;
+	
 	public GeoKeyClient(TransmissionClient client)
 	{
 		this.client = client;
 	}
 	
+	/**
+	 * Only applies to {@link StreamingModelSession}s.
+	 * 
+	 * @param threads maximum number of attachments of a payload which are uploaded concurrently (must be >= 1)
+	 * @param attempts maximum number of times the uploading of each attachment is attempted (must be >= 1)
+	 * @param retryDelayMS delay before the first retry of a failed attachment upload, doubled for every further retry (must be >= 0)
+	 */
+	public void setAttachmentUploadPolicy(int threads, int attempts, long retryDelayMS)
+	{
+		if(threads < 1 || attempts < 1 || retryDelayMS < 0)
+			throw new IllegalArgumentException("Invalid attachment upload policy");
+		this.attachmentUploadThreads = threads;
+		this.attachmentUploadAttempts = attempts;
+		this.attachmentRetryDelayMS = retryDelayMS;
+	}
+	
 	/**
 	 * Connects to given server and logs-in the user if there are user credentials.
 	 * 
@@ -217,10 +285,16 @@ public abstract class GeoKeyClient implements Payload.Handler
 		// Check session:
 		if(session == null)
 			success = false;
+		else if(session instanceof StreamingModelSession)
+			success = uploadStreaming((StreamingModelSession) session, recordsPayload);
 		else
 		{
+			Metrics metrics = client.getMetrics();
+			
 			// Upload records (as CSV) per Schema:
+			long start = metrics.timer(METRIC_UPLOAD_CSV).start();
 			CSVRecordsExporter exporter = new CSVRecordsExporter(getTempFolder(), CSV_SEPARATOR);
+			exporter.setMetrics(client.getMetrics());
 			for(Map.Entry<Schema, List<Record>> entry : recordsPayload.getRecordsBySchema().entrySet())
 			{
 				// Generate CSV file:
@@ -229,8 +303,10 @@ public abstract class GeoKeyClient implements Payload.Handler
 				// Upload if CSV was generated:
 				success &= result.wasSuccessful() && session.uploadCSV(result.getFiles().get(0), true, true);
 			}
+			metrics.timer(METRIC_UPLOAD_CSV).stop(start);
 			
 			// Upload attachments:
+			start = metrics.timer(METRIC_UPLOAD_ATTACHMENTS).start();
 			for(Record record : recordsPayload.getRecords())
 			{
 				// Get files:
@@ -240,11 +316,252 @@ public abstract class GeoKeyClient implements Payload.Handler
 				if(attachments != null && !attachments.isEmpty())
 					success &= session.uploadAttachments(record, attachments);
 			}
+			metrics.timer(METRIC_UPLOAD_ATTACHMENTS).stop(start);
 		}
 		
 		if(!success)
 			throw new Exception("Failed to handle RecordsPayload without errors.");
 	}
+	
+	/**
+	 * Uploads the records of the payload as CSV rows which are generated straight into the request body (no temporary CSV files),
+	 * followed by their attachments, which are uploaded concurrently (on at most {@link #attachmentUploadThreads} threads) with
+	 * each file being retried separately.
+	 * 
+	 * @param session
+	 * @param recordsPayload
+	 * @return whether or not all records and attachments were uploaded
+	 * @throws InterruptedException
+	 */
+	private boolean uploadStreaming(final StreamingModelSession session, RecordsPayload recordsPayload) throws InterruptedException
+	{
+		boolean success = true;
+		Metrics metrics = client.getMetrics();
+		
+		// Upload records (as CSV) per Schema:
+		long start = metrics.timer(METRIC_UPLOAD_CSV).start();
+		final CSVRecordsExporter exporter = new CSVRecordsExporter(getTempFolder(), CSV_SEPARATOR);
+		exporter.setMetrics(metrics);
+		for(final Map.Entry<Schema, List<Record>> entry : recordsPayload.getRecordsBySchema().entrySet())
+		{
+			if(!entry.getKey().hasFlags(StorageClient.SCHEMA_FLAG_EXPORTABLE))
+				continue; // nothing to upload
+			success &= session.uploadCSV("for_upload_" + entry.getKey().getName() + "." + CSVRecordsExporter.FILE_EXTENSION, new CSVBody()
+			{
+				@Override
+				public void writeTo(Writer out) throws IOException
+				{
+					exporter.export(entry.getKey(), entry.getValue(), out);
+				}
+			});
+		}
+		metrics.timer(METRIC_UPLOAD_CSV).stop(start);
+		
+		// Collect attachments:
+		List<Attachment> attachments = new ArrayList<Attachment>();
+		for(Record record : recordsPayload.getRecords())
+		{
+			List<? extends Attachment> recordAttachments = client.getRecordAttachments(record);
+			if(recordAttachments != null)
+				attachments.addAll(recordAttachments);
+		}
+		if(attachments.isEmpty())
+			return success;
+		
+		// Resumable uploads report their progress through a queue, as only this thread may use the TransmissionStore:
+		final ResumableModelSession resumableSession = session instanceof ResumableModelSession ? (ResumableModelSession) session : null;
+		final ResumableUploader uploader = resumableSession != null ? new ResumableUploader(metrics) : null;
+		final Queue<ResumableUpload> progressUpdates = new ConcurrentLinkedQueue<ResumableUpload>();
+		
+		// Upload attachments on a bounded pool of worker threads:
+		start = metrics.timer(METRIC_UPLOAD_ATTACHMENTS).start();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(attachmentUploadThreads, attachments.size()));
+		try
+		{
+			CompletionService<Boolean> completionService = new ExecutorCompletionService<Boolean>(executor);
+			for(final Attachment attachment : attachments)
+			{
+				final ResumableUpload upload = resumableSession != null ? retrieveResumableUpload(attachment.file) : null;
+				completionService.submit(new Callable<Boolean>()
+				{
+					@Override
+					public Boolean call() throws Exception
+					{
+						if(upload != null)
+							return uploadAttachment(resumableSession, attachment, uploader, upload, progressUpdates);
+						else
+							return uploadAttachment(session, attachment);
+					}
+				});
+			}
+			for(int a = 0; a < attachments.size();)
+			{
+				Future<Boolean> result = completionService.poll(RESUMABLE_PROGRESS_STORE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+				if(resumableSession != null)
+					storeResumableUploads(progressUpdates);
+				if(result == null)
+					continue; // no upload finished yet
+				a++;
+				try
+				{
+					success &= result.get();
+				}
+				catch(ExecutionException ee)
+				{
+					client.logError("Error upon uploading attachment", ee.getCause());
+					success = false;
+				}
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+			metrics.timer(METRIC_UPLOAD_ATTACHMENTS).stop(start);
+		}
+		return success;
+	}
+	
+	/**
+	 * Uploads a single attachment, making up to {@link #attachmentUploadAttempts} attempts with exponentially increasing delays in between.
+	 * 
+	 * @param session
+	 * @param attachment
+	 * @return whether or not the attachment was uploaded
+	 * @throws InterruptedException
+	 */
+	private boolean uploadAttachment(StreamingModelSession session, Attachment attachment) throws InterruptedException
+	{
+		Metrics metrics = client.getMetrics();
+		long delayMS = attachmentRetryDelayMS;
+		for(int attempt = 1; true; attempt++)
+		{
+			try
+			{
+				if(session.uploadAttachment(attachment.record, attachment))
+					return true;
+			}
+			catch(Exception e)
+			{
+				client.logError("Error upon uploading " + attachment.toString() + " (attempt " + attempt + ")", e);
+			}
+			if(attempt >= attachmentUploadAttempts)
+			{
+				metrics.counter(METRIC_ATTACHMENT_FAILURES).increment();
+				client.logError("Giving up uploading " + attachment.toString() + " after " + attempt + " attempts");
+				return false;
+			}
+			metrics.counter(METRIC_ATTACHMENT_RETRIES).increment();
+			Thread.sleep(delayMS);
+			delayMS *= 2;
+		}
+	}
+	
+	/**
+	 * Uploads a single attachment in chunks, resuming from the progress held by the given upload. Attempts which made progress
+	 * before being interrupted are resumed right away, up to {@link #attachmentUploadAttempts} attempts which made no progress
+	 * are made, with exponentially increasing delays in between.
+	 * 
+	 * @param session
+	 * @param attachment
+	 * @param uploader
+	 * @param upload
+	 * @param progressUpdates queue to which snapshots of the progress are added, to be stored by the calling thread
+	 * @return whether or not the attachment was uploaded
+	 * @throws InterruptedException
+	 */
+	private boolean uploadAttachment(ResumableModelSession session, Attachment attachment, ResumableUploader uploader, ResumableUpload upload, final Queue<ResumableUpload> progressUpdates) throws InterruptedException
+	{
+		Metrics metrics = client.getMetrics();
+		ResumableUploader.ProgressListener listener = new ResumableUploader.ProgressListener()
+		{
+			@Override
+			public void onProgress(ResumableUpload upload)
+			{
+				progressUpdates.offer(new ResumableUpload(upload));
+			}
+		};
+		long delayMS = attachmentRetryDelayMS;
+		for(int attempt = 1; true; attempt++)
+		{
+			long offset = upload.getOffset();
+			try
+			{
+				ResumableUploader.Endpoint endpoint = session.getAttachmentEndpoint(attachment.record, attachment);
+				if(endpoint != null)
+				{
+					if(uploader.upload(upload, attachment.file.getName(), endpoint, listener))
+						return true;
+					metrics.counter(METRIC_ATTACHMENT_FAILURES).increment();
+					client.logError("Giving up uploading " + attachment.toString() + " because the server keeps rejecting its content hash");
+					return false;
+				}
+			}
+			catch(Exception e)
+			{
+				client.logError("Error upon uploading " + attachment.toString() + " (attempt " + attempt + ", " + upload.getOffset() + "/" + upload.getSize() + " bytes acknowledged)", e);
+			}
+			metrics.counter(METRIC_ATTACHMENT_RETRIES).increment();
+			if(upload.getOffset() > offset)
+			{	// the attempt made progress, resume right away:
+				attempt = 0;
+				delayMS = attachmentRetryDelayMS;
+				continue;
+			}
+			if(attempt >= attachmentUploadAttempts)
+			{
+				metrics.counter(METRIC_ATTACHMENT_FAILURES).increment();
+				client.logError("Giving up uploading " + attachment.toString() + " after " + attempt + " attempts without progress (it will be resumed in a later session)");
+				return false;
+			}
+			Thread.sleep(delayMS);
+			delayMS *= 2;
+		}
+	}
+	
+	/**
+	 * @param file
+	 * @return the stored progress of the upload of the given file to the current server, or a new upload if there is none
+	 */
+	private ResumableUpload retrieveResumableUpload(final File file)
+	{
+		final GeoKeyServer server = getServer();
+		ResumableUpload upload = client.transmissionStoreHandle.executeWithReturnNoEx(new StoreOperationWithReturn<TransmissionStore, ResumableUpload, DBException>()
+		{
+			@Override
+			public ResumableUpload execute(TransmissionStore store) throws DBException
+			{
+				return store.retrieveResumableUpload(server, file);
+			}
+		});
+		return upload != null ? upload : new ResumableUpload(server, file, ResumableUploader.DEFAULT_INITIAL_CHUNK_SIZE);
+	}
+	
+	/**
+	 * Stores (or, once completed, deletes) the latest progress of each upload in the queue.
+	 * 
+	 * @param progressUpdates
+	 */
+	private void storeResumableUploads(Queue<ResumableUpload> progressUpdates)
+	{
+		final Map<File, ResumableUpload> latest = new LinkedHashMap<File, ResumableUpload>();
+		ResumableUpload upload;
+		while((upload = progressUpdates.poll()) != null)
+			latest.put(upload.getFile(), upload);
+		if(latest.isEmpty())
+			return;
+		client.transmissionStoreHandle.executeNoEx(new StoreOperation<TransmissionStore, DBException>()
+		{
+			@Override
+			public void execute(TransmissionStore store) throws DBException
+			{
+				for(ResumableUpload upload : latest.values())
+					if(upload.isCompleted())
+						store.deleteResumableUpload(upload);
+					else
+						store.storeResumableUpload(upload);
+			}
+		});
+	}
 
 	/* (non-Javadoc)
 	 * @see uk.ac.ucl.excites.sapelli.transmission.model.Payload.Handler#handle(uk.ac.ucl.excites.sapelli.transmission.model.content.ModelQueryPayload)
@@ -314,4 +631,68 @@ public abstract class GeoKeyClient implements Payload.Handler
 		
 	}
 	
+	/**
+	 * A {@link ModelSession} which can upload CSV data while it is being generated, and which can upload single attachments concurrently.
+	 * 
+	 * When {@link #getModelSession(long)} returns a StreamingModelSession no temporary CSV files are created and attachments are
+	 * uploaded in parallel, with failed uploads being retried per file.
+	 */
+	protected interface StreamingModelSession extends ModelSession
+	{
+		
+		/**
+		 * @param fileName name under which to upload the CSV data
+		 * @param body writes the CSV data, to be called while the request body is being sent
+		 * @return whether or not uploading was successful
+		 */
+		public boolean uploadCSV(String fileName, CSVBody body);
+		
+		/**
+		 * Uploads a single attachment, may be called by multiple threads concurrently.
+		 * 
+		 * @param record
+		 * @param attachment
+		 * @return whether or not uploading was successful (the upload may be retried if not)
+		 */
+		public boolean uploadAttachment(Record record, Attachment attachment);
+		
+	}
+	
+	/**
+	 * A {@link StreamingModelSession} which can upload attachments in chunks, such that interrupted uploads can be resumed.
+	 * 
+	 * The progress of each attachment upload is kept in the {@link TransmissionStore}, so uploads are also resumed across sessions.
+	 * 
+	 * Note that GeoKey servers do not (yet) offer a chunked upload endpoint, so only the loopback client & server used for
+	 * load testing implement this interface.
+	 */
+	protected interface ResumableModelSession extends StreamingModelSession
+	{
+		
+		/**
+		 * May be called by multiple threads concurrently.
+		 * 
+		 * @param record
+		 * @param attachment
+		 * @return the endpoint to upload the given attachment to, or {@code null} if it cannot be uploaded (the upload may be retried)
+		 * @throws IOException
+		 */
+		public ResumableUploader.Endpoint getAttachmentEndpoint(Record record, Attachment attachment) throws IOException;
+		
+	}
+	
+	/**
+	 * Writes CSV data to the body of an upload request.
+	 */
+	protected interface CSVBody
+	{
+		
+		/**
+		 * @param out the writer to write the CSV data to, must not be closed
+		 * @throws IOException
+		 */
+		public void writeTo(Writer out) throws IOException;
+		
+	}
+	
 }
@@ -18,11 +18,61 @@
 
 package uk.ac.ucl.excites.sapelli.transmission.protocol.http;
 
+import java.io.IOException;
+import java.util.List;
+
 /**
+ * Sends {@link HTTPRequest}s and receives their {@link HTTPResponse}s.
+ * 
+ * @see PooledHTTPClient
+ * 
  * @author mstevens
- *
  */
 public interface HTTPClient
 {
 
+	/**
+	 * Sends a single request and waits for its response.
+	 * 
+	 * @param request
+	 * @return the response
+	 * @throws IOException when no response could be received
+	 */
+	public HTTPResponse execute(HTTPRequest request) throws IOException;
+	
+	/**
+	 * Sends a queue of requests, possibly concurrently and/or pipelined, and waits until all of them have been dealt with.
+	 * Requests to the same host are sent in queue order, but their responses may be reported in any order.
+	 * 
+	 * @param requests
+	 * @param callback informed of the outcome of each request, calls are serialised
+	 * @throws InterruptedException
+	 */
+	public void executeAll(List<HTTPRequest> requests, Callback callback) throws InterruptedException;
+	
+	/**
+	 * Closes all connections held by the client and releases its resources.
+	 */
+	public void close();
+	
+	/**
+	 * Informed of the outcome of each request sent by {@link HTTPClient#executeAll(List, Callback)}.
+	 */
+	public interface Callback
+	{
+		
+		/**
+		 * @param request
+		 * @param response
+		 */
+		public void onResponse(HTTPRequest request, HTTPResponse response);
+		
+		/**
+		 * @param request
+		 * @param cause
+		 */
+		public void onFailure(HTTPRequest request, IOException cause);
+		
+	}
+
 }
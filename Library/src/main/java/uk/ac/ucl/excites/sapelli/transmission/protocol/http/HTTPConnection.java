@@ -0,0 +1,451 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.transmission.protocol.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A single HTTP/1.1 connection to a host, over a plain or TLS socket. Requests are written and responses are read
+ * separately, which allows several requests to be pipelined (i.e. written before the first response is read).
+ * 
+ * Not thread-safe: a connection is used by one thread at a time.
+ */
+final class HTTPConnection
+{
+
+	// STATIC -------------------------------------------------------
+	static private final String CRLF = "\r\n";
+	static private final Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
+	static private final int BUFFER_SIZE = 8 * 1024;
+	static private final int MAX_LINE_LENGTH = 8 * 1024;
+	static private final int MAX_HEADERS = 100;
+	
+	static private final String HEADER_HOST = "Host";
+	static private final String HEADER_CONTENT_LENGTH = "Content-Length";
+	static private final String HEADER_CONNECTION = "Connection";
+	static private final String HEADER_TRANSFER_ENCODING = "Transfer-Encoding";
+	
+	/**
+	 * @param name
+	 * @return whether the given header is set by the connection itself
+	 */
+	static boolean IsManagedHeader(String name)
+	{
+		return	HEADER_HOST.equalsIgnoreCase(name) || HEADER_CONTENT_LENGTH.equalsIgnoreCase(name) ||
+				HEADER_CONNECTION.equalsIgnoreCase(name) || HEADER_TRANSFER_ENCODING.equalsIgnoreCase(name);
+	}
+	
+	/**
+	 * @param url
+	 * @return the key identifying the host (scheme, name & port) the given URL points to
+	 */
+	static String GetHostKey(URL url)
+	{
+		return url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ":" + GetPort(url);
+	}
+	
+	static private int GetPort(URL url)
+	{
+		return url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+	}
+	
+	/**
+	 * Opens a connection to the host the given URL points to. For https URLs the server's certificate must be trusted by the
+	 * given factory and must match the host name.
+	 * 
+	 * @param url
+	 * @param connectTimeoutMS
+	 * @param readTimeoutMS
+	 * @param sslSocketFactory used for https URLs
+	 * @param maxBodyBytes maximum size of response bodies
+	 * @return the connection
+	 * @throws IOException
+	 */
+	static HTTPConnection Open(URL url, int connectTimeoutMS, int readTimeoutMS, SSLSocketFactory sslSocketFactory, int maxBodyBytes) throws IOException
+	{
+		boolean tls = "https".equalsIgnoreCase(url.getProtocol());
+		Socket socket = new Socket();
+		try
+		{
+			socket.setTcpNoDelay(true); // requests are written in full & flushed, so there is nothing to gain from Nagle's algorithm
+			socket.setKeepAlive(true);
+			socket.setSoTimeout(readTimeoutMS);
+			socket.connect(new InetSocketAddress(url.getHost(), GetPort(url)), connectTimeoutMS);
+			if(tls)
+			{
+				SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(socket, url.getHost(), GetPort(url), true);
+				socket = sslSocket; // closing it also closes the plain socket
+				boolean verifiedInHandshake = EnableHostnameVerification(sslSocket);
+				sslSocket.startHandshake();
+				if(!verifiedInHandshake && !HttpsURLConnection.getDefaultHostnameVerifier().verify(url.getHost(), sslSocket.getSession()))
+					throw new SSLPeerUnverifiedException("Server certificate does not match host name " + url.getHost());
+			}
+			return new HTTPConnection(GetHostKey(url), socket, maxBodyBytes);
+		}
+		catch(IOException | RuntimeException e)
+		{
+			socket.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Makes the TLS handshake check that the server's certificate matches the host name (the check {@link HttpsURLConnection}
+	 * does, but which plain {@link SSLSocket}s skip).
+	 * 
+	 * @param sslSocket
+	 * @return whether the check will be done during the handshake, {@code false} on platforms which do not support it (Android before API level 24)
+	 */
+	static private boolean EnableHostnameVerification(SSLSocket sslSocket)
+	{
+		try
+		{
+			SSLParameters parameters = sslSocket.getSSLParameters();
+			parameters.setEndpointIdentificationAlgorithm("HTTPS");
+			sslSocket.setSSLParameters(parameters);
+			return true;
+		}
+		catch(NoSuchMethodError e)
+		{
+			return false;
+		}
+	}
+	
+	// DYNAMIC ------------------------------------------------------
+	final String hostKey;
+	private final Socket socket;
+	private final InputStream in;
+	private final OutputStream out;
+	private final int maxBodyBytes;
+	
+	private boolean reusable = true;
+	private int requestsWritten = 0;
+	private int responsesRead = 0;
+	private long idleSinceNS;
+	
+	private HTTPConnection(String hostKey, Socket socket, int maxBodyBytes) throws IOException
+	{
+		this.hostKey = hostKey;
+		this.socket = socket;
+		this.in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+		this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+		this.maxBodyBytes = maxBodyBytes;
+		this.idleSinceNS = System.nanoTime();
+	}
+	
+	/**
+	 * Writes a request to the (buffered) output, {@link #flush()} must be called to make sure it is sent.
+	 * 
+	 * @param request
+	 * @param keepAlive whether the connection should be kept open after the response
+	 * @throws IOException
+	 */
+	void write(HTTPRequest request, boolean keepAlive) throws IOException
+	{
+		URL url = request.getURL();
+		StringBuilder bldr = new StringBuilder(256);
+		String path = url.getPath().isEmpty() ? "/" : url.getPath();
+		bldr.append(request.getMethod()).append(' ').append(path);
+		if(url.getQuery() != null)
+			bldr.append('?').append(url.getQuery());
+		bldr.append(" HTTP/1.1").append(CRLF);
+		bldr.append(HEADER_HOST).append(": ").append(url.getHost());
+		if(url.getPort() != -1 && url.getPort() != url.getDefaultPort())
+			bldr.append(':').append(url.getPort());
+		bldr.append(CRLF);
+		for(Map.Entry<String, String> header : request.getHeaders().entrySet())
+			bldr.append(header.getKey()).append(": ").append(header.getValue()).append(CRLF);
+		byte[] body = request.getBody();
+		if(body != null || HTTPRequest.METHOD_POST.equals(request.getMethod()) || HTTPRequest.METHOD_PUT.equals(request.getMethod()))
+			bldr.append(HEADER_CONTENT_LENGTH).append(": ").append(body != null ? body.length : 0).append(CRLF);
+		if(!keepAlive)
+		{
+			bldr.append(HEADER_CONNECTION).append(": close").append(CRLF);
+			reusable = false;
+		}
+		bldr.append(CRLF);
+		out.write(bldr.toString().getBytes(HEADER_CHARSET));
+		if(body != null)
+			out.write(body);
+		requestsWritten++;
+	}
+	
+	void flush() throws IOException
+	{
+		out.flush();
+	}
+	
+	/**
+	 * Reads the response to the oldest request for which no response has been read yet.
+	 * 
+	 * @param request that request
+	 * @return the response
+	 * @throws BodyTooLargeException when the response body exceeds the maximum size (the connection cannot be used any further)
+	 * @throws IOException
+	 */
+	HTTPResponse read(HTTPRequest request) throws IOException
+	{
+		HTTPResponse response;
+		do
+		{
+			// Status line:
+			String statusLine = readLine();
+			if(statusLine == null)
+				throw new EOFException("Connection closed before response");
+			String[] statusParts = statusLine.split(" ", 3);
+			if(statusParts.length < 2 || !statusParts[0].startsWith("HTTP/"))
+				throw new IOException("Invalid status line: " + statusLine);
+			int status;
+			try
+			{
+				status = Integer.parseInt(statusParts[1]);
+			}
+			catch(NumberFormatException nfe)
+			{
+				throw new IOException("Invalid status line: " + statusLine);
+			}
+			boolean http10 = "HTTP/1.0".equals(statusParts[0]);
+			
+			// Headers:
+			Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+			String line;
+			while((line = readLine()) != null && !line.isEmpty())
+			{
+				int colon = line.indexOf(':');
+				if(colon <= 0 || headers.size() >= MAX_HEADERS)
+					throw new IOException("Invalid response header: " + line);
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+				String previous = headers.get(name);
+				headers.put(name, previous == null ? value : previous + ", " + value);
+			}
+			if(line == null)
+				throw new EOFException("Connection closed in response headers");
+			
+			// Connection persistence (RFC 7230, section 6.3):
+			String connection = headers.get(HEADER_CONNECTION);
+			if(connection != null ? connection.toLowerCase().contains("close") : http10)
+				reusable = false;
+			
+			// Body (RFC 7230, section 3.3.3):
+			byte[] body;
+			String transferEncoding = headers.get(HEADER_TRANSFER_ENCODING);
+			String contentLength = headers.get(HEADER_CONTENT_LENGTH);
+			if(HTTPRequest.METHOD_HEAD.equals(request.getMethod()) || (status >= 100 && status < 200) || status == 204 || status == 304)
+				body = new byte[0];
+			else if(transferEncoding != null && transferEncoding.toLowerCase().endsWith("chunked"))
+				body = readChunkedBody();
+			else if(contentLength != null)
+			{
+				long length;
+				try
+				{
+					length = Long.parseLong(contentLength.trim());
+				}
+				catch(NumberFormatException nfe)
+				{
+					throw new IOException("Invalid Content-Length: " + contentLength);
+				}
+				checkBodySize(length);
+				body = readFully((int) length);
+			}
+			else
+			{	// body is delimited by the closing of the connection:
+				reusable = false;
+				body = readUntilClosed();
+			}
+			response = new HTTPResponse(status, statusParts.length > 2 ? statusParts[2] : "", headers, body);
+		}
+		while(response.getStatus() >= 100 && response.getStatus() < 200); // skip interim responses
+		responsesRead++;
+		idleSinceNS = System.nanoTime();
+		return response;
+	}
+	
+	private byte[] readChunkedBody() throws IOException
+	{
+		ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+		while(true)
+		{
+			String sizeLine = readLine();
+			if(sizeLine == null)
+				throw new EOFException("Connection closed in chunked body");
+			int semicolon = sizeLine.indexOf(';'); // ignore chunk extensions
+			int size;
+			try
+			{
+				size = Integer.parseInt((semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim(), 16);
+			}
+			catch(NumberFormatException nfe)
+			{
+				throw new IOException("Invalid chunk size: " + sizeLine);
+			}
+			if(size == 0)
+				break;
+			checkBodySize((long) bodyBytes.size() + size);
+			bodyBytes.write(readFully(size));
+			if(!"".equals(readLine()))
+				throw new IOException("Missing CRLF after chunk");
+		}
+		// Skip trailers:
+		String line;
+		while((line = readLine()) != null && !line.isEmpty());
+		return bodyBytes.toByteArray();
+	}
+	
+	private byte[] readFully(int length) throws IOException
+	{
+		if(length < 0)
+			throw new IOException("Invalid body length: " + length);
+		byte[] bytes = new byte[length];
+		int read = 0;
+		while(read < length)
+		{
+			int r = in.read(bytes, read, length - read);
+			if(r < 0)
+				throw new EOFException("Connection closed in body");
+			read += r;
+		}
+		return bytes;
+	}
+	
+	private byte[] readUntilClosed() throws IOException
+	{
+		ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int r;
+		while((r = in.read(buffer)) >= 0)
+		{
+			checkBodySize((long) bodyBytes.size() + r);
+			bodyBytes.write(buffer, 0, r);
+		}
+		return bodyBytes.toByteArray();
+	}
+	
+	private void checkBodySize(long size) throws BodyTooLargeException
+	{
+		if(size > maxBodyBytes)
+		{
+			reusable = false; // the rest of the body is left unread
+			throw new BodyTooLargeException(maxBodyBytes);
+		}
+	}
+	
+	/**
+	 * @return the next line (without line end), or {@code null} if the connection was closed before any byte of it was read
+	 * @throws IOException
+	 */
+	private String readLine() throws IOException
+	{
+		StringBuilder bldr = new StringBuilder();
+		int b;
+		while((b = in.read()) != '\n')
+		{
+			if(b < 0)
+			{
+				if(bldr.length() == 0)
+					return null;
+				throw new EOFException("Connection closed in line");
+			}
+			if(bldr.length() >= MAX_LINE_LENGTH)
+				throw new IOException("Line too long");
+			bldr.append((char) b); // ISO-8859-1
+		}
+		int length = bldr.length();
+		if(length > 0 && bldr.charAt(length - 1) == '\r')
+			bldr.setLength(length - 1);
+		return bldr.toString();
+	}
+	
+	/**
+	 * @return whether the connection can be used for further requests
+	 */
+	boolean isReusable()
+	{
+		return reusable && !socket.isClosed();
+	}
+	
+	/**
+	 * @return whether any response has been read from this connection
+	 */
+	boolean hasBeenUsed()
+	{
+		return responsesRead > 0;
+	}
+	
+	/**
+	 * @return the number of requests written for which no response has been read (yet)
+	 */
+	int getOutstandingRequests()
+	{
+		return requestsWritten - responsesRead;
+	}
+	
+	/**
+	 * @return the time (as given by {@link System#nanoTime()}) at which the connection was opened or last read a response
+	 */
+	long getIdleSinceNS()
+	{
+		return idleSinceNS;
+	}
+	
+	void close()
+	{
+		reusable = false;
+		try
+		{
+			socket.close();
+		}
+		catch(IOException ignore) {}
+	}
+	
+	/**
+	 * Thrown when a response body exceeds the maximum size.
+	 */
+	static final class BodyTooLargeException extends IOException
+	{
+		
+		private static final long serialVersionUID = 2L;
+		
+		public BodyTooLargeException(int maxBodyBytes)
+		{
+			super("Response body exceeds maximum size of " + maxBodyBytes + " bytes");
+		}
+		
+	}
+
+}
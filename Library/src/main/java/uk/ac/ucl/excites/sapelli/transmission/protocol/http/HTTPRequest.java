@@ -0,0 +1,165 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.transmission.protocol.http;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An HTTP request to be sent by an {@link HTTPClient}. The body (if any) is held in memory.
+ */
+public final class HTTPRequest
+{
+
+	// STATIC -------------------------------------------------------
+	static public final String METHOD_GET = "GET";
+	static public final String METHOD_HEAD = "HEAD";
+	static public final String METHOD_POST = "POST";
+	static public final String METHOD_PUT = "PUT";
+	static public final String METHOD_DELETE = "DELETE";
+	static public final String METHOD_OPTIONS = "OPTIONS";
+	
+	/**
+	 * @param url
+	 * @return a GET request for the given URL
+	 */
+	static public HTTPRequest Get(URL url)
+	{
+		return new HTTPRequest(METHOD_GET, url);
+	}
+	
+	/**
+	 * @param url
+	 * @param body
+	 * @param contentType
+	 * @return a POST request for the given URL, with the given body
+	 */
+	static public HTTPRequest Post(URL url, byte[] body, String contentType)
+	{
+		return new HTTPRequest(METHOD_POST, url).setBody(body, contentType);
+	}
+	
+	/**
+	 * @param url
+	 * @param body
+	 * @param contentType
+	 * @return a PUT request for the given URL, with the given body
+	 */
+	static public HTTPRequest Put(URL url, byte[] body, String contentType)
+	{
+		return new HTTPRequest(METHOD_PUT, url).setBody(body, contentType);
+	}
+	
+	// DYNAMIC ------------------------------------------------------
+	private final String method;
+	private final URL url;
+	private final Map<String, String> headers = new LinkedHashMap<String, String>();
+	private byte[] body;
+	
+	/**
+	 * @param method
+	 * @param url must be an http or https URL
+	 */
+	public HTTPRequest(String method, URL url)
+	{
+		if(method == null || method.isEmpty())
+			throw new IllegalArgumentException("Invalid method");
+		if(!"http".equalsIgnoreCase(url.getProtocol()) && !"https".equalsIgnoreCase(url.getProtocol()))
+			throw new IllegalArgumentException("Unsupported protocol: " + url.getProtocol());
+		this.method = method.toUpperCase();
+		this.url = url;
+	}
+	
+	public String getMethod()
+	{
+		return method;
+	}
+	
+	public URL getURL()
+	{
+		return url;
+	}
+	
+	/**
+	 * Sets a request header. The Host, Content-Length & Connection headers are managed by the {@link HTTPClient} and cannot be set.
+	 * 
+	 * @param name
+	 * @param value
+	 * @return the request itself
+	 */
+	public HTTPRequest setHeader(String name, String value)
+	{
+		if(HTTPConnection.IsManagedHeader(name))
+			throw new IllegalArgumentException("Header " + name + " is managed by the client");
+		headers.put(name, value);
+		return this;
+	}
+	
+	/**
+	 * @return the headers set on the request (unmodifiable)
+	 */
+	public Map<String, String> getHeaders()
+	{
+		return Collections.unmodifiableMap(headers);
+	}
+	
+	/**
+	 * @param body
+	 * @param contentType may be {@code null}
+	 * @return the request itself
+	 */
+	public HTTPRequest setBody(byte[] body, String contentType)
+	{
+		this.body = body;
+		if(contentType != null)
+			headers.put("Content-Type", contentType);
+		return this;
+	}
+	
+	/**
+	 * @return the body, or {@code null} if there is none
+	 */
+	public byte[] getBody()
+	{
+		return body;
+	}
+	
+	/**
+	 * Idempotent requests (RFC 7231, section 4.2.2) are resent automatically when the connection they were sent on fails.
+	 * 
+	 * @return whether the request's method is idempotent
+	 */
+	public boolean isIdempotent()
+	{
+		return	METHOD_GET.equals(method) || METHOD_HEAD.equals(method) || METHOD_PUT.equals(method) ||
+				METHOD_DELETE.equals(method) || METHOD_OPTIONS.equals(method);
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return method + " " + url;
+	}
+
+}
@@ -0,0 +1,125 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.transmission.protocol.http;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The response to an {@link HTTPRequest}, with its body held in memory.
+ */
+public final class HTTPResponse
+{
+
+	// STATIC -------------------------------------------------------
+	static private final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+	
+	// DYNAMIC ------------------------------------------------------
+	private final int status;
+	private final String reason;
+	private final Map<String, String> headers;
+	private final byte[] body;
+	
+	/**
+	 * @param status
+	 * @param reason
+	 * @param headers header values by (case-insensitive) name, a header which occurred more than once holds the comma-separated values
+	 * @param body
+	 */
+	public HTTPResponse(int status, String reason, Map<String, String> headers, byte[] body)
+	{
+		this.status = status;
+		this.reason = reason;
+		this.headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		this.headers.putAll(headers);
+		this.body = body;
+	}
+	
+	public int getStatus()
+	{
+		return status;
+	}
+	
+	public String getReason()
+	{
+		return reason;
+	}
+	
+	/**
+	 * @return whether the status is 2xx
+	 */
+	public boolean isSuccessful()
+	{
+		return status >= 200 && status < 300;
+	}
+	
+	/**
+	 * @param name case-insensitive
+	 * @return the header value, or {@code null} if there is no such header
+	 */
+	public String getHeader(String name)
+	{
+		return headers.get(name);
+	}
+	
+	/**
+	 * @return all headers (unmodifiable)
+	 */
+	public Map<String, String> getHeaders()
+	{
+		return Collections.unmodifiableMap(headers);
+	}
+	
+	/**
+	 * @return the body (empty if there was none)
+	 */
+	public byte[] getBody()
+	{
+		return body;
+	}
+	
+	/**
+	 * @return the body decoded using the charset given in the Content-Type header, or UTF-8 if there is none
+	 */
+	public String getBodyAsString()
+	{
+		Charset charset = DEFAULT_CHARSET;
+		String contentType = getHeader("Content-Type");
+		int c = contentType != null ? contentType.toLowerCase().indexOf("charset=") : -1;
+		if(c >= 0)
+			try
+			{
+				charset = Charset.forName(contentType.substring(c + "charset=".length()).replace("\"", "").trim());
+			}
+			catch(Exception ignore) {}
+		return new String(body, charset);
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return "HTTP " + status + " " + reason + " (" + body.length + " bytes)";
+	}
+
+}
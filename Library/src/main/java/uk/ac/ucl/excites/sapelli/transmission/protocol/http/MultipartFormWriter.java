@@ -0,0 +1,209 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.transmission.protocol.http;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Writes a multipart/form-data request body (RFC 2388) straight to an {@link OutputStream}, such as the body of a
+ * (chunked) HTTP request, without buffering parts in memory or on disk.
+ * 
+ * A file part is opened with {@link #startFilePart(String, String, String)} after which its content is written
+ * directly to {@link #getOutputStream()}, or it is copied from a file using {@link #writeFilePart(String, File, String)}.
+ * The body must be terminated by calling {@link #finish()}.
+ */
+public final class MultipartFormWriter
+{
+
+	// STATIC -------------------------------------------------------
+	static private final Charset CHARSET = Charset.forName("UTF-8");
+	static private final String LINE_END = "\r\n";
+	static private final String DASHES = "--";
+	static private final char[] BOUNDARY_CHARS = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+	static private final int BOUNDARY_LENGTH = 32;
+	static private final Random BOUNDARY_RANDOM = new Random();
+	
+	/**
+	 * @return a random boundary string which is extremely unlikely to occur in the content of any part
+	 */
+	static public String CreateBoundary()
+	{
+		char[] chars = new char[BOUNDARY_LENGTH];
+		synchronized(BOUNDARY_RANDOM)
+		{
+			for(int c = 0; c < chars.length; c++)
+				chars[c] = BOUNDARY_CHARS[BOUNDARY_RANDOM.nextInt(BOUNDARY_CHARS.length)];
+		}
+		return "SapelliBoundary" + new String(chars);
+	}
+	
+	/**
+	 * @param boundary
+	 * @return the value for the Content-Type header of a request with a multipart/form-data body using the given boundary
+	 */
+	static public String GetContentType(String boundary)
+	{
+		return "multipart/form-data; boundary=" + boundary;
+	}
+	
+	// DYNAMIC ------------------------------------------------------
+	private final OutputStream out;
+	private final String boundary;
+	private boolean partStarted = false;
+	private boolean finished = false;
+	
+	/**
+	 * @param out the stream to write the body to
+	 */
+	public MultipartFormWriter(OutputStream out)
+	{
+		this(out, CreateBoundary());
+	}
+	
+	/**
+	 * @param out the stream to write the body to
+	 * @param boundary
+	 */
+	public MultipartFormWriter(OutputStream out, String boundary)
+	{
+		if(out == null || boundary == null || boundary.isEmpty())
+			throw new NullPointerException("Stream & boundary cannot be null or empty!");
+		this.out = out;
+		this.boundary = boundary;
+	}
+	
+	/**
+	 * @return the value for the Content-Type header of the request
+	 */
+	public String getContentType()
+	{
+		return GetContentType(boundary);
+	}
+	
+	public String getBoundary()
+	{
+		return boundary;
+	}
+	
+	/**
+	 * @return the stream to write the content of the current file part to (must not be closed by the caller)
+	 */
+	public OutputStream getOutputStream()
+	{
+		return out;
+	}
+	
+	/**
+	 * @param name
+	 * @param value
+	 * @throws IOException
+	 */
+	public void writeField(String name, String value) throws IOException
+	{
+		startPart("Content-Disposition: form-data; name=\"" + escape(name) + "\"", null);
+		write(value);
+	}
+	
+	/**
+	 * Opens a file part, its content is to be written to {@link #getOutputStream()}.
+	 * 
+	 * @param name
+	 * @param fileName
+	 * @param contentType
+	 * @throws IOException
+	 */
+	public void startFilePart(String name, String fileName, String contentType) throws IOException
+	{
+		startPart("Content-Disposition: form-data; name=\"" + escape(name) + "\"; filename=\"" + escape(fileName) + "\"", contentType);
+	}
+	
+	/**
+	 * Writes a file part with the contents of the given file.
+	 * 
+	 * @param name
+	 * @param file
+	 * @param contentType
+	 * @return the number of bytes copied from the file
+	 * @throws IOException
+	 */
+	public long writeFilePart(String name, File file, String contentType) throws IOException
+	{
+		startFilePart(name, file.getName(), contentType);
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			return IOUtils.copyLarge(in, out);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+	
+	/**
+	 * Writes the closing boundary and flushes the stream (which is not closed).
+	 * 
+	 * @throws IOException
+	 */
+	public void finish() throws IOException
+	{
+		if(finished)
+			return;
+		if(partStarted)
+			write(LINE_END);
+		write(DASHES + boundary + DASHES + LINE_END);
+		out.flush();
+		finished = true;
+	}
+	
+	private void startPart(String contentDisposition, String contentType) throws IOException
+	{
+		if(finished)
+			throw new IllegalStateException("Body has already been finished");
+		StringBuilder bldr = new StringBuilder();
+		if(partStarted)
+			bldr.append(LINE_END); // end of the previous part's content
+		bldr.append(DASHES).append(boundary).append(LINE_END);
+		bldr.append(contentDisposition).append(LINE_END);
+		if(contentType != null)
+			bldr.append("Content-Type: ").append(contentType).append(LINE_END);
+		bldr.append(LINE_END);
+		write(bldr.toString());
+		partStarted = true;
+	}
+	
+	private void write(String str) throws IOException
+	{
+		out.write(str.getBytes(CHARSET));
+	}
+	
+	private String escape(String str)
+	{
+		return str.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+	}
+
+}
@@ -0,0 +1,674 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.transmission.protocol.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import uk.ac.ucl.excites.sapelli.shared.util.Metrics;
+
+/**
+ * Pure-Java {@link HTTPClient} which keeps connections alive and reuses them, avoiding a TCP (and TLS) handshake per request.
+ * 
+ * <ul>
+ * <li>Idle connections are kept in a pool of at most {@link #setPoolSize(int) poolSize} connections (over all hosts), the
+ * longest-idle one is closed when the pool is full. Connections which have been idle for longer than the
+ * {@link #setIdleTimeoutMS(long) idle timeout} are evicted whenever a connection is checked out or returned, or when
+ * {@link #evictIdleConnections()} is called. With a pool size of 0 every request is sent on a new connection.</li>
+ * <li>At most {@link #setMaxConnectionsPerHost(int) maxConnectionsPerHost} connections to the same host are in use at any
+ * time, further requests wait for one to become available.</li>
+ * <li>{@link #executeAll(List, Callback)} spreads the queued requests to each host over that many connections and pipelines
+ * up to {@link #setPipelineDepth(int) pipelineDepth} requests (with at most {@link #PIPELINE_MAX_BODY_BYTES} of bodies) per
+ * connection, i.e. writes them before reading the first response. Only idempotent requests are pipelined, others (e.g. POSTs)
+ * are sent on their own, as the server may close the connection after processing any number of pipelined requests.</li>
+ * <li>Certificates of https servers are checked against the host name, and response bodies larger than
+ * {@link #setMaxResponseBodyBytes(int) maxResponseBodyBytes} are rejected.</li>
+ * </ul>
+ * 
+ * When a connection fails, requests which got no response are resent (once) on a new connection if they are idempotent, or
+ * if the connection was a pooled one which the server had evidently closed before receiving anything. Other requests are
+ * reported as failed, as the server may have processed them, as are requests whose response body was too large.
+ * 
+ * The client is thread-safe, but should be configured before it is first used.
+ */
+public class PooledHTTPClient implements HTTPClient
+{
+
+	// STATIC -------------------------------------------------------
+	static public final int DEFAULT_POOL_SIZE = 8;
+	static public final long DEFAULT_IDLE_TIMEOUT_MS = 30 * 1000;
+	static public final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+	static public final int DEFAULT_PIPELINE_DEPTH = 4;
+	static public final int DEFAULT_CONNECT_TIMEOUT_MS = 15 * 1000;
+	static public final int DEFAULT_READ_TIMEOUT_MS = 30 * 1000;
+	static public final int DEFAULT_MAX_RESPONSE_BODY_BYTES = 16 * 1024 * 1024; // 16 MiB
+	
+	/**
+	 * Requests are only added to a pipeline while the total size of their bodies stays below this limit (a pipeline always
+	 * holds at least one request), so that client & server cannot both block on writing while the other is not reading.
+	 */
+	static public final int PIPELINE_MAX_BODY_BYTES = 64 * 1024;
+	
+	/**
+	 * Maximum number of times a request is sent.
+	 */
+	static private final int MAX_ATTEMPTS = 2;
+	
+	/**
+	 * Name of the counter of requests sent (including resent ones).
+	 */
+	static public final String METRIC_REQUESTS = "transmission.http.requests";
+	
+	/**
+	 * Name of the counter of requests which were resent after a connection failure.
+	 */
+	static public final String METRIC_RESENT = METRIC_REQUESTS + ".resent";
+	
+	/**
+	 * Name of the counter of connections which were opened.
+	 */
+	static public final String METRIC_CONNECTIONS_OPENED = "transmission.http.connections.opened";
+	
+	/**
+	 * Name of the counter of times a pooled connection was reused.
+	 */
+	static public final String METRIC_CONNECTIONS_REUSED = "transmission.http.connections.reused";
+	
+	/**
+	 * Name of the counter of idle connections which were closed because they timed out or the pool was full.
+	 */
+	static public final String METRIC_CONNECTIONS_EVICTED = "transmission.http.connections.evicted";
+	
+	// DYNAMIC ------------------------------------------------------
+	private int poolSize = DEFAULT_POOL_SIZE;
+	private long idleTimeoutNS = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_TIMEOUT_MS);
+	private int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+	private int pipelineDepth = DEFAULT_PIPELINE_DEPTH;
+	private int connectTimeoutMS = DEFAULT_CONNECT_TIMEOUT_MS;
+	private int readTimeoutMS = DEFAULT_READ_TIMEOUT_MS;
+	private int maxResponseBodyBytes = DEFAULT_MAX_RESPONSE_BODY_BYTES;
+	private SSLSocketFactory sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+	private Metrics metrics = Metrics.DISABLED;
+	
+	/**
+	 * Idle connections per host key, most recently used first (guarded by itself).
+	 */
+	private final Map<String, Deque<HTTPConnection>> idleConnections = new HashMap<String, Deque<HTTPConnection>>();
+	private int numberOfIdleConnections = 0;
+	
+	private final ConcurrentMap<String, Semaphore> hostPermits = new ConcurrentHashMap<String, Semaphore>();
+	private ExecutorService executor;
+	private volatile boolean closed = false;
+	
+	/**
+	 * @param poolSize maximum number of idle connections kept open (must be >= 0)
+	 */
+	public void setPoolSize(int poolSize)
+	{
+		if(poolSize < 0)
+			throw new IllegalArgumentException("Pool size cannot be negative");
+		this.poolSize = poolSize;
+	}
+	
+	/**
+	 * @param idleTimeoutMS time after which idle connections are closed (must be >= 0)
+	 */
+	public void setIdleTimeoutMS(long idleTimeoutMS)
+	{
+		if(idleTimeoutMS < 0)
+			throw new IllegalArgumentException("Idle timeout cannot be negative");
+		this.idleTimeoutNS = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMS);
+	}
+	
+	/**
+	 * @param maxConnectionsPerHost maximum number of connections to a single host which are in use at the same time (must be >= 1)
+	 */
+	public void setMaxConnectionsPerHost(int maxConnectionsPerHost)
+	{
+		if(maxConnectionsPerHost < 1)
+			throw new IllegalArgumentException("Maximum connections per host must be at least 1");
+		if(!hostPermits.isEmpty())
+			throw new IllegalStateException("Client is already in use");
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+	}
+	
+	/**
+	 * @param pipelineDepth maximum number of requests written to a connection before reading their responses (must be >= 1, 1 disables pipelining)
+	 */
+	public void setPipelineDepth(int pipelineDepth)
+	{
+		if(pipelineDepth < 1)
+			throw new IllegalArgumentException("Pipeline depth must be at least 1");
+		this.pipelineDepth = pipelineDepth;
+	}
+	
+	/**
+	 * @param connectTimeoutMS
+	 * @param readTimeoutMS
+	 */
+	public void setTimeouts(int connectTimeoutMS, int readTimeoutMS)
+	{
+		if(connectTimeoutMS < 0 || readTimeoutMS < 0)
+			throw new IllegalArgumentException("Timeouts cannot be negative");
+		this.connectTimeoutMS = connectTimeoutMS;
+		this.readTimeoutMS = readTimeoutMS;
+	}
+	
+	/**
+	 * @param maxResponseBodyBytes maximum size of response bodies, which are held in memory (must be >= 0)
+	 */
+	public void setMaxResponseBodyBytes(int maxResponseBodyBytes)
+	{
+		if(maxResponseBodyBytes < 0)
+			throw new IllegalArgumentException("Maximum response body size cannot be negative");
+		this.maxResponseBodyBytes = maxResponseBodyBytes;
+	}
+	
+	/**
+	 * @param sslSocketFactory the factory used for https connections, or {@code null} to use the platform default (which trusts the system's certificate authorities)
+	 */
+	public void setSSLSocketFactory(SSLSocketFactory sslSocketFactory)
+	{
+		this.sslSocketFactory = sslSocketFactory != null ? sslSocketFactory : (SSLSocketFactory) SSLSocketFactory.getDefault();
+	}
+	
+	/**
+	 * @param metrics the metrics to record requests & connection reuse in, or {@code null} to disable
+	 */
+	public void setMetrics(Metrics metrics)
+	{
+		this.metrics = metrics != null ? metrics : Metrics.DISABLED;
+	}
+	
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.transmission.protocol.http.HTTPClient#execute(uk.ac.ucl.excites.sapelli.transmission.protocol.http.HTTPRequest)
+	 */
+	@Override
+	public HTTPResponse execute(HTTPRequest request) throws IOException
+	{
+		for(int attempt = 1; true; attempt++)
+		{
+			HTTPConnection connection;
+			try
+			{
+				connection = acquire(request.getURL());
+			}
+			catch(InterruptedException ie)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a connection");
+			}
+			boolean reused = connection.hasBeenUsed();
+			try
+			{
+				metrics.counter(METRIC_REQUESTS).increment();
+				connection.write(request, poolSize > 0);
+				connection.flush();
+				HTTPResponse response = connection.read(request);
+				release(connection, true);
+				return response;
+			}
+			catch(IOException e)
+			{
+				release(connection, false);
+				if(attempt >= MAX_ATTEMPTS || e instanceof HTTPConnection.BodyTooLargeException || !(request.isIdempotent() || isStale(reused, 0, e)))
+					throw e;
+				metrics.counter(METRIC_RESENT).increment();
+			}
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.transmission.protocol.http.HTTPClient#executeAll(java.util.List, uk.ac.ucl.excites.sapelli.transmission.protocol.http.HTTPClient.Callback)
+	 */
+	@Override
+	public void executeAll(List<HTTPRequest> requests, final Callback callback) throws InterruptedException
+	{
+		// Serialise callback calls:
+		final Callback serialisedCallback = new Callback()
+		{
+			@Override
+			public synchronized void onResponse(HTTPRequest request, HTTPResponse response)
+			{
+				callback.onResponse(request, response);
+			}
+			
+			@Override
+			public synchronized void onFailure(HTTPRequest request, IOException cause)
+			{
+				callback.onFailure(request, cause);
+			}
+		};
+		
+		// Queue requests per host:
+		Map<String, Deque<Pending>> queues = new LinkedHashMap<String, Deque<Pending>>();
+		for(HTTPRequest request : requests)
+		{
+			String hostKey = HTTPConnection.GetHostKey(request.getURL());
+			Deque<Pending> queue = queues.get(hostKey);
+			if(queue == null)
+				queues.put(hostKey, queue = new LinkedBlockingDeque<Pending>());
+			queue.add(new Pending(request));
+		}
+		
+		// Create workers (each of which uses one connection at a time):
+		List<Callable<Void>> workers = new ArrayList<Callable<Void>>();
+		for(final Deque<Pending> queue : queues.values())
+		{
+			int numberOfWorkers = Math.min(maxConnectionsPerHost, (queue.size() + pipelineDepth - 1) / pipelineDepth);
+			for(int w = 0; w < numberOfWorkers; w++)
+				workers.add(new Callable<Void>()
+				{
+					@Override
+					public Void call() throws InterruptedException
+					{
+						sendQueued(queue, serialisedCallback);
+						return null;
+					}
+				});
+		}
+		
+		// Run workers:
+		if(workers.size() == 1)
+		{
+			try
+			{
+				workers.get(0).call();
+			}
+			catch(InterruptedException ie)
+			{
+				throw ie;
+			}
+			catch(Exception e)
+			{
+				throw new RuntimeException(e);
+			}
+		}
+		else if(!workers.isEmpty())
+			for(Future<Void> result : getExecutor().invokeAll(workers))
+				try
+				{
+					result.get();
+				}
+				catch(ExecutionException ee)
+				{
+					if(ee.getCause() instanceof RuntimeException)
+						throw (RuntimeException) ee.getCause();
+					if(ee.getCause() instanceof InterruptedException)
+						throw (InterruptedException) ee.getCause();
+					throw new RuntimeException(ee.getCause());
+				}
+	}
+	
+	/**
+	 * Sends the requests in the queue in pipelined batches, until the queue is empty. A batch holds either a single request, or
+	 * only idempotent ones.
+	 * 
+	 * @param queue
+	 * @param callback
+	 * @throws InterruptedException
+	 */
+	private void sendQueued(Deque<Pending> queue, Callback callback) throws InterruptedException
+	{
+		List<Pending> batch = new ArrayList<Pending>(pipelineDepth);
+		while(true)
+		{
+			// Take a batch:
+			batch.clear();
+			int bodyBytes = 0;
+			Pending pending;
+			while(batch.size() < pipelineDepth && bodyBytes < PIPELINE_MAX_BODY_BYTES && (pending = queue.pollFirst()) != null)
+			{
+				if(!batch.isEmpty() && !(pending.request.isIdempotent() && batch.get(0).request.isIdempotent()))
+				{	// not pipelined, leave it for the next batch:
+					queue.offerFirst(pending);
+					break;
+				}
+				batch.add(pending);
+				bodyBytes += pending.request.getBody() != null ? pending.request.getBody().length : 0;
+			}
+			if(batch.isEmpty())
+				return;
+			
+			// Get a connection:
+			HTTPConnection connection;
+			try
+			{
+				connection = acquire(batch.get(0).request.getURL());
+			}
+			catch(IOException e)
+			{	// nothing was sent, so every request may be retried (but failed connection attempts count towards the limit):
+				for(Pending p : batch)
+					p.attempts++;
+				requeueOrFail(batch, 0, queue, true, e, callback);
+				continue;
+			}
+			boolean reused = connection.hasBeenUsed();
+			
+			// Write all requests, then read the responses:
+			int answered = 0;
+			try
+			{
+				for(Pending p : batch)
+				{
+					p.attempts++;
+					metrics.counter(METRIC_REQUESTS).increment();
+					connection.write(p.request, poolSize > 0);
+				}
+				connection.flush();
+				while(answered < batch.size())
+				{
+					Pending p = batch.get(answered);
+					HTTPResponse response = connection.read(p.request);
+					answered++;
+					callback.onResponse(p.request, response);
+					if(!connection.isReusable())
+						break; // the server closes the connection after this response
+				}
+				// Requests which the server will not process because it closes the connection:
+				for(int i = batch.size() - 1; i >= answered; i--)
+				{
+					batch.get(i).attempts--;
+					queue.offerFirst(batch.get(i));
+				}
+				release(connection, true);
+			}
+			catch(IOException e)
+			{
+				release(connection, false);
+				if(e instanceof HTTPConnection.BodyTooLargeException)
+					callback.onFailure(batch.get(answered++).request, e); // resending will not make it any smaller
+				requeueOrFail(batch, answered, queue, isStale(reused, answered, e), e, callback);
+			}
+			catch(RuntimeException e)
+			{	// thrown by the callback
+				release(connection, false);
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Puts the unanswered requests of a batch back at the front of the queue (in order) if they may be resent, or reports them as failed.
+	 * 
+	 * @param batch
+	 * @param answered number of requests in the batch which have been answered
+	 * @param queue
+	 * @param unprocessed whether the server certainly did not process any of the unanswered requests
+	 * @param cause
+	 * @param callback
+	 */
+	private void requeueOrFail(List<Pending> batch, int answered, Deque<Pending> queue, boolean unprocessed, IOException cause, Callback callback)
+	{
+		for(int i = batch.size() - 1; i >= answered; i--)
+		{
+			Pending p = batch.get(i);
+			if(!closed && p.attempts < MAX_ATTEMPTS && (unprocessed || p.request.isIdempotent()))
+			{
+				metrics.counter(METRIC_RESENT).increment();
+				queue.offerFirst(p);
+			}
+			else
+				callback.onFailure(p.request, cause);
+		}
+	}
+	
+	/**
+	 * @param reused whether the connection had been used before
+	 * @param answered number of responses read in the current batch
+	 * @param cause
+	 * @return whether the failure indicates the server had closed the (pooled) connection before receiving anything
+	 */
+	private boolean isStale(boolean reused, int answered, IOException cause)
+	{
+		return reused && answered == 0 && (cause instanceof EOFException || cause instanceof SocketException);
+	}
+	
+	/**
+	 * Checks out a pooled connection to the host of the given URL, or opens a new one, waiting until the host's connection limit allows it.
+	 * 
+	 * @param url
+	 * @return the connection
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private HTTPConnection acquire(URL url) throws IOException, InterruptedException
+	{
+		if(closed)
+			throw new IOException("Client has been closed");
+		String hostKey = HTTPConnection.GetHostKey(url);
+		Semaphore permits = getHostPermits(hostKey);
+		permits.acquire();
+		try
+		{
+			synchronized(idleConnections)
+			{
+				evictIdleConnections(System.nanoTime());
+				Deque<HTTPConnection> idle = idleConnections.get(hostKey);
+				HTTPConnection connection;
+				while(idle != null && (connection = idle.pollFirst()) != null)
+				{
+					numberOfIdleConnections--;
+					if(connection.isReusable())
+					{
+						metrics.counter(METRIC_CONNECTIONS_REUSED).increment();
+						return connection;
+					}
+					connection.close();
+				}
+			}
+			HTTPConnection connection = HTTPConnection.Open(url, connectTimeoutMS, readTimeoutMS, sslSocketFactory, maxResponseBodyBytes);
+			metrics.counter(METRIC_CONNECTIONS_OPENED).increment();
+			return connection;
+		}
+		catch(IOException | RuntimeException e)
+		{
+			permits.release();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Returns a connection checked out with {@link #acquire(URL)}, keeping it in the pool if possible.
+	 * 
+	 * @param connection
+	 * @param reuse whether the connection may be reused (i.e. has not failed)
+	 */
+	private void release(HTTPConnection connection, boolean reuse)
+	{
+		try
+		{
+			if(reuse && !closed && poolSize > 0 && connection.isReusable() && connection.getOutstandingRequests() == 0)
+			{
+				synchronized(idleConnections)
+				{
+					Deque<HTTPConnection> idle = idleConnections.get(connection.hostKey);
+					if(idle == null)
+						idleConnections.put(connection.hostKey, idle = new ArrayDeque<HTTPConnection>());
+					idle.addFirst(connection);
+					numberOfIdleConnections++;
+					evictIdleConnections(System.nanoTime());
+				}
+			}
+			else
+				connection.close();
+		}
+		finally
+		{
+			getHostPermits(connection.hostKey).release();
+		}
+	}
+	
+	/**
+	 * Closes idle connections which have timed out.
+	 * 
+	 * @return the number of connections which were closed
+	 */
+	public int evictIdleConnections()
+	{
+		synchronized(idleConnections)
+		{
+			return evictIdleConnections(System.nanoTime());
+		}
+	}
+	
+	/**
+	 * Closes idle connections which have timed out, as well as the longest-idle ones while there are more than {@link #poolSize}.
+	 * Must be called while holding the lock on {@link #idleConnections}.
+	 * 
+	 * @param nowNS
+	 * @return the number of connections which were closed
+	 */
+	private int evictIdleConnections(long nowNS)
+	{
+		int evicted = 0;
+		// Timed out:
+		for(Iterator<Deque<HTTPConnection>> i = idleConnections.values().iterator(); i.hasNext();)
+		{
+			Deque<HTTPConnection> idle = i.next();
+			while(!idle.isEmpty() && nowNS - idle.peekLast().getIdleSinceNS() >= idleTimeoutNS)
+			{
+				idle.pollLast().close();
+				numberOfIdleConnections--;
+				evicted++;
+			}
+			if(idle.isEmpty())
+				i.remove();
+		}
+		// Pool overflow (longest-idle first):
+		while(numberOfIdleConnections > poolSize)
+		{
+			Deque<HTTPConnection> oldest = null;
+			for(Deque<HTTPConnection> idle : idleConnections.values())
+				if(oldest == null || idle.peekLast().getIdleSinceNS() < oldest.peekLast().getIdleSinceNS())
+					oldest = idle;
+			oldest.pollLast().close();
+			numberOfIdleConnections--;
+			evicted++;
+			if(oldest.isEmpty())
+				idleConnections.values().remove(oldest);
+		}
+		if(evicted > 0)
+			metrics.counter(METRIC_CONNECTIONS_EVICTED).add(evicted);
+		return evicted;
+	}
+	
+	/**
+	 * @return the number of idle connections in the pool
+	 */
+	public int getNumberOfIdleConnections()
+	{
+		synchronized(idleConnections)
+		{
+			return numberOfIdleConnections;
+		}
+	}
+	
+	private Semaphore getHostPermits(String hostKey)
+	{
+		Semaphore permits = hostPermits.get(hostKey);
+		if(permits == null)
+		{
+			Semaphore newPermits = new Semaphore(maxConnectionsPerHost, true);
+			permits = hostPermits.putIfAbsent(hostKey, newPermits);
+			if(permits == null)
+				permits = newPermits;
+		}
+		return permits;
+	}
+	
+	private synchronized ExecutorService getExecutor()
+	{
+		if(executor == null)
+			executor = Executors.newCachedThreadPool(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "PooledHTTPClient-worker");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		return executor;
+	}
+	
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.transmission.protocol.http.HTTPClient#close()
+	 */
+	@Override
+	public void close()
+	{
+		closed = true;
+		synchronized(idleConnections)
+		{
+			for(Deque<HTTPConnection> idle : idleConnections.values())
+				for(HTTPConnection connection : idle)
+					connection.close();
+			idleConnections.clear();
+			numberOfIdleConnections = 0;
+		}
+		synchronized(this)
+		{
+			if(executor != null)
+				executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * A queued request and the number of times it has been sent.
+	 */
+	static private final class Pending
+	{
+		
+		final HTTPRequest request;
+		int attempts = 0;
+		
+		public Pending(HTTPRequest request)
+		{
+			this.request = request;
+		}
+		
+	}
+
+}
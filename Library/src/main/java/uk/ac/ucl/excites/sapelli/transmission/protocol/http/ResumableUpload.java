@@ -0,0 +1,211 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.transmission.protocol.http;
+
+import java.io.File;
+
+import uk.ac.ucl.excites.sapelli.transmission.db.TransmissionStore;
+import uk.ac.ucl.excites.sapelli.transmission.model.Correspondent;
+
+/**
+ * The progress of the chunked upload of a file (e.g. an attachment) to a receiver, as tracked by a {@link ResumableUploader}
+ * and persisted in the {@link TransmissionStore} so the upload can be resumed after it has been interrupted.
+ * 
+ * The size and content hash are those of the file when the upload started, if the file has changed since then the upload
+ * starts over.
+ */
+public final class ResumableUpload
+{
+
+	private final Correspondent receiver;
+	private final File file;
+	private long size;
+	private byte[] hash;
+	private String uploadID;
+	private long offset;
+	private int chunkSize;
+	private boolean completed = false;
+	
+	/**
+	 * Whether the file has been checked against the size & hash (not persisted, so a file is re-checked once after every restart).
+	 */
+	private boolean verified = false;
+	
+	/**
+	 * Creates a new upload, which has not started yet.
+	 * 
+	 * @param receiver
+	 * @param file
+	 * @param chunkSize initial chunk size (in bytes)
+	 */
+	public ResumableUpload(Correspondent receiver, File file, int chunkSize)
+	{
+		this(receiver, file, -1, null, null, 0, chunkSize);
+	}
+	
+	/**
+	 * Called when retrieving an upload from the database.
+	 * 
+	 * @param receiver
+	 * @param file
+	 * @param size
+	 * @param hash
+	 * @param uploadID may be null
+	 * @param offset number of bytes acknowledged by the receiver
+	 * @param chunkSize
+	 */
+	public ResumableUpload(Correspondent receiver, File file, long size, byte[] hash, String uploadID, long offset, int chunkSize)
+	{
+		if(receiver == null || file == null)
+			throw new NullPointerException("Receiver & file cannot be null!");
+		this.receiver = receiver;
+		this.file = file;
+		this.size = size;
+		this.hash = hash;
+		this.uploadID = uploadID;
+		this.offset = offset;
+		this.chunkSize = chunkSize;
+	}
+	
+	/**
+	 * Copy constructor, used to hand snapshots of the progress to another thread.
+	 * 
+	 * @param other
+	 */
+	public ResumableUpload(ResumableUpload other)
+	{
+		this(other.receiver, other.file, other.size, other.hash, other.uploadID, other.offset, other.chunkSize);
+		this.completed = other.completed;
+		this.verified = other.verified;
+	}
+	
+	public Correspondent getReceiver()
+	{
+		return receiver;
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * @return the size of the file (in bytes) when the upload started, or -1 if it has not started
+	 */
+	public long getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the content hash of the file when the upload started, or {@code null} if it has not started
+	 */
+	public byte[] getHash()
+	{
+		return hash;
+	}
+
+	/**
+	 * @return the ID the receiver has assigned to the upload, or {@code null} if it has not been opened (yet)
+	 */
+	public String getUploadID()
+	{
+		return uploadID;
+	}
+
+	/**
+	 * @return the number of bytes acknowledged by the receiver
+	 */
+	public long getOffset()
+	{
+		return offset;
+	}
+
+	/**
+	 * @return the size (in bytes) of the next chunk to send
+	 */
+	public int getChunkSize()
+	{
+		return chunkSize;
+	}
+
+	/**
+	 * @return whether the upload has been completed (and verified by the receiver)
+	 */
+	public boolean isCompleted()
+	{
+		return completed;
+	}
+	
+	/**
+	 * Starts (or restarts) the upload of the given version of the file.
+	 * 
+	 * @param size
+	 * @param hash
+	 */
+	/*package*/ void start(long size, byte[] hash)
+	{
+		this.size = size;
+		this.hash = hash;
+		this.uploadID = null;
+		this.offset = 0;
+		this.completed = false;
+		this.verified = true;
+	}
+	
+	/*package*/ boolean isVerified()
+	{
+		return verified;
+	}
+	
+	/*package*/ void setVerified()
+	{
+		this.verified = true;
+	}
+	
+	/*package*/ void setUploadID(String uploadID)
+	{
+		this.uploadID = uploadID;
+	}
+	
+	/*package*/ void setOffset(long offset)
+	{
+		this.offset = offset;
+	}
+	
+	/*package*/ void setChunkSize(int chunkSize)
+	{
+		this.chunkSize = chunkSize;
+	}
+	
+	/*package*/ void setCompleted()
+	{
+		this.completed = true;
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return "ResumableUpload[" + file.getName() + ": " + offset + "/" + size + (completed ? ", completed" : "") + "]";
+	}
+
+}
@@ -0,0 +1,366 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.transmission.protocol.http;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import uk.ac.ucl.excites.sapelli.shared.crypto.Hashing;
+import uk.ac.ucl.excites.sapelli.shared.crypto.Hashing.HashResult;
+import uk.ac.ucl.excites.sapelli.shared.util.Metrics;
+
+/**
+ * Uploads files in chunks, such that an interrupted upload can be resumed from the last chunk acknowledged by the receiver,
+ * rather than from the start.
+ * 
+ * The progress of each upload is kept in a {@link ResumableUpload}, which callers are expected to persist (see
+ * {@link ProgressListener}). The chunk size is adapted to the observed throughput, such that sending a chunk takes about
+ * {@link #targetChunkDurationMS}, and is halved whenever a chunk fails. The receiver verifies the integrity of the assembled
+ * file against the SHA-256 hash which is sent when the upload is opened.
+ * 
+ * The uploader holds no per-upload state and may be used by several threads concurrently.
+ */
+public class ResumableUploader
+{
+
+	// STATIC -------------------------------------------------------
+	static public final String HASH_ALGORITHM = "SHA-256";
+	
+	static public final int DEFAULT_INITIAL_CHUNK_SIZE = 64 * 1024; // 64 KiB
+	static public final int DEFAULT_MIN_CHUNK_SIZE = 16 * 1024; // 16 KiB
+	static public final int DEFAULT_MAX_CHUNK_SIZE = 4 * 1024 * 1024; // 4 MiB
+	static public final long DEFAULT_TARGET_CHUNK_DURATION_MS = 2000;
+	
+	/**
+	 * Maximum number of consecutive chunks for which the receiver may acknowledge an offset which is not beyond the one the
+	 * chunk was sent from, before the upload is considered interrupted.
+	 */
+	static public final int MAX_STALLED_CHUNKS = 3;
+	
+	/**
+	 * Name of the counter of chunks which were acknowledged.
+	 */
+	static public final String METRIC_CHUNKS = "transmission.upload.resumable.chunks";
+	
+	/**
+	 * Name of the counter of bytes which were acknowledged.
+	 */
+	static public final String METRIC_BYTES = "transmission.upload.resumable.bytes";
+	
+	/**
+	 * Name of the counter of bytes which did not need to be sent again because an upload was resumed.
+	 */
+	static public final String METRIC_RESUMED_BYTES = "transmission.upload.resumable.resumed";
+	
+	/**
+	 * Name of the counter of chunks which failed.
+	 */
+	static public final String METRIC_INTERRUPTIONS = "transmission.upload.resumable.interruptions";
+	
+	/**
+	 * Name of the counter of uploads which were rejected by the receiver because of a hash mismatch.
+	 */
+	static public final String METRIC_HASH_MISMATCHES = "transmission.upload.resumable.hashmismatches";
+	
+	/**
+	 * Name of the histogram of chunk sizes.
+	 */
+	static public final String METRIC_CHUNK_SIZE = "transmission.upload.resumable.chunksize";
+	
+	/**
+	 * @param file
+	 * @return the SHA-256 hash of the file's content
+	 * @throws IOException
+	 */
+	static public byte[] Hash(File file) throws IOException
+	{
+		InputStream input = null;
+		try
+		{
+			input = new FileInputStream(file);
+			HashResult result = Hashing.digest(HASH_ALGORITHM, input);
+			if(result == null)
+				throw new IOException("Could not compute hash of " + file.getAbsolutePath());
+			return result.getHash();
+		}
+		finally
+		{
+			if(input != null)
+				input.close();
+		}
+	}
+	
+	// DYNAMIC ------------------------------------------------------
+	private final Metrics metrics;
+	private final int minChunkSize;
+	private final int maxChunkSize;
+	private final long targetChunkDurationNS;
+	
+	/**
+	 * @param metrics
+	 */
+	public ResumableUploader(Metrics metrics)
+	{
+		this(metrics, DEFAULT_MIN_CHUNK_SIZE, DEFAULT_MAX_CHUNK_SIZE, DEFAULT_TARGET_CHUNK_DURATION_MS);
+	}
+	
+	/**
+	 * @param metrics
+	 * @param minChunkSize minimum chunk size, in bytes (must be >= 1)
+	 * @param maxChunkSize maximum chunk size, in bytes (must be >= minChunkSize)
+	 * @param targetChunkDurationMS the time the sending of a single chunk should take (must be >= 1)
+	 */
+	public ResumableUploader(Metrics metrics, int minChunkSize, int maxChunkSize, long targetChunkDurationMS)
+	{
+		if(minChunkSize < 1 || maxChunkSize < minChunkSize || targetChunkDurationMS < 1)
+			throw new IllegalArgumentException("Invalid chunk size settings");
+		this.metrics = metrics != null ? metrics : Metrics.DISABLED;
+		this.minChunkSize = minChunkSize;
+		this.maxChunkSize = maxChunkSize;
+		this.targetChunkDurationNS = targetChunkDurationMS * 1000000L;
+	}
+	
+	/**
+	 * Makes a single attempt at completing the given upload, starting from the progress it holds. If the file has changed
+	 * since the upload was started, or the receiver no longer knows the upload, it starts over.
+	 * 
+	 * When an {@link IOException} is thrown the upload holds the progress acknowledged up to then, and the caller may retry
+	 * (immediately or in a later session) by calling this method again with the same (or a restored) upload.
+	 * 
+	 * @param upload the progress of the upload, updated as chunks are acknowledged
+	 * @param name the name under which to upload the file
+	 * @param endpoint the receiving end
+	 * @param listener notified whenever the progress has changed, may be {@code null}
+	 * @return {@code true} if the file was uploaded and verified by the receiver, {@code false} if the receiver kept rejecting its hash
+	 * @throws IOException when the file cannot be read or the upload was interrupted
+	 */
+	public boolean upload(ResumableUpload upload, String name, Endpoint endpoint, ProgressListener listener) throws IOException
+	{
+		if(upload.isCompleted())
+			return true;
+		File file = upload.getFile();
+		
+		// Check whether the file is still the one we started uploading:
+		if(!upload.isVerified())
+		{
+			long size = file.length();
+			byte[] hash = Hash(file);
+			if(upload.getHash() == null || upload.getSize() != size || !Arrays.equals(upload.getHash(), hash))
+				upload.start(size, hash); // (re)start
+			else
+				upload.setVerified();
+		}
+		upload.setChunkSize(clampChunkSize(upload.getChunkSize()));
+		
+		for(boolean restarted = false; true; restarted = true)
+		{
+			// Open or resume:
+			if(upload.getUploadID() != null)
+			{
+				long acknowledged = endpoint.getOffset(upload.getUploadID());
+				if(acknowledged < 0 || acknowledged > upload.getSize())
+					upload.start(upload.getSize(), upload.getHash()); // receiver no longer knows the upload
+				else
+				{
+					metrics.counter(METRIC_RESUMED_BYTES).add(acknowledged);
+					upload.setOffset(acknowledged); // the receiver is authoritative
+				}
+			}
+			if(upload.getUploadID() == null)
+			{
+				upload.setUploadID(endpoint.open(name, upload.getSize(), upload.getHash()));
+				notify(listener, upload);
+			}
+			
+			// Send chunks:
+			sendChunks(upload, endpoint, listener);
+			
+			// Complete:
+			if(endpoint.complete(upload.getUploadID()))
+			{
+				upload.setCompleted();
+				notify(listener, upload);
+				return true;
+			}
+			metrics.counter(METRIC_HASH_MISMATCHES).increment();
+			upload.start(upload.getSize(), upload.getHash()); // start over from scratch (once)
+			notify(listener, upload);
+			if(restarted)
+				return false;
+		}
+	}
+	
+	private void sendChunks(ResumableUpload upload, Endpoint endpoint, ProgressListener listener) throws IOException
+	{
+		if(upload.getOffset() >= upload.getSize())
+			return;
+		RandomAccessFile input = new RandomAccessFile(upload.getFile(), "r");
+		try
+		{
+			byte[] buffer = new byte[(int) Math.min(upload.getChunkSize(), upload.getSize())];
+			int stalledChunks = 0;
+			while(upload.getOffset() < upload.getSize())
+			{
+				int length = (int) Math.min(upload.getChunkSize(), upload.getSize() - upload.getOffset());
+				if(buffer.length < length)
+					buffer = new byte[length];
+				input.seek(upload.getOffset());
+				input.readFully(buffer, 0, length);
+				
+				// Send chunk:
+				long acknowledged;
+				long start = System.nanoTime();
+				try
+				{
+					acknowledged = endpoint.putChunk(upload.getUploadID(), upload.getOffset(), buffer, length);
+				}
+				catch(IOException e)
+				{
+					metrics.counter(METRIC_INTERRUPTIONS).increment();
+					upload.setChunkSize(clampChunkSize(upload.getChunkSize() / 2));
+					notify(listener, upload);
+					throw e;
+				}
+				long durationNS = System.nanoTime() - start;
+				if(acknowledged < 0 || acknowledged > upload.getSize())
+					throw new IOException("Receiver acknowledged invalid offset: " + acknowledged);
+				
+				// Adapt chunk size to the observed throughput:
+				if(acknowledged == upload.getOffset() + length)
+				{
+					metrics.counter(METRIC_CHUNKS).increment();
+					metrics.counter(METRIC_BYTES).add(length);
+					metrics.histogram(METRIC_CHUNK_SIZE).record(length);
+					if(length == upload.getChunkSize())
+						upload.setChunkSize(adaptChunkSize(length, durationNS));
+				}
+				//else: the receiver expects a different offset (e.g. an earlier acknowledgement was lost), which we take from it
+				boolean stalled = acknowledged <= upload.getOffset();
+				upload.setOffset(acknowledged);
+				notify(listener, upload);
+				
+				// Give up when the receiver keeps acknowledging no progress:
+				if(stalled)
+				{
+					metrics.counter(METRIC_INTERRUPTIONS).increment();
+					if(++stalledChunks >= MAX_STALLED_CHUNKS)
+						throw new IOException("Receiver acknowledged no progress for " + stalledChunks + " consecutive chunks (offset: " + acknowledged + ")");
+				}
+				else
+					stalledChunks = 0;
+			}
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+	
+	/**
+	 * Computes the size of the next chunk from the throughput of the last one, smoothed by averaging with the current size and
+	 * growing by at most a factor 2 per chunk.
+	 * 
+	 * @param chunkSize the size of the last (full) chunk
+	 * @param durationNS the time it took to send it
+	 * @return the size of the next chunk
+	 */
+	private int adaptChunkSize(int chunkSize, long durationNS)
+	{
+		double target = (double) chunkSize * targetChunkDurationNS / Math.max(durationNS, 1);
+		double next = Math.min((chunkSize + target) / 2, 2.0d * chunkSize);
+		return clampChunkSize((long) next);
+	}
+	
+	private int clampChunkSize(long chunkSize)
+	{
+		return (int) Math.max(minChunkSize, Math.min(maxChunkSize, chunkSize));
+	}
+	
+	private void notify(ProgressListener listener, ResumableUpload upload)
+	{
+		if(listener != null)
+			listener.onProgress(upload);
+	}
+	
+	/**
+	 * The receiving end of resumable uploads.
+	 */
+	public interface Endpoint
+	{
+		
+		/**
+		 * Opens a new upload.
+		 * 
+		 * @param name
+		 * @param size total size of the file, in bytes
+		 * @param hash SHA-256 hash of the file's content
+		 * @return the ID assigned to the upload by the receiver
+		 * @throws IOException
+		 */
+		public String open(String name, long size, byte[] hash) throws IOException;
+		
+		/**
+		 * @param uploadID
+		 * @return the number of bytes the receiver holds for the upload, or -1 if it does not know the upload (anymore)
+		 * @throws IOException
+		 */
+		public long getOffset(String uploadID) throws IOException;
+		
+		/**
+		 * Sends a chunk.
+		 * 
+		 * @param uploadID
+		 * @param offset position of the chunk in the file
+		 * @param bytes buffer holding the chunk
+		 * @param length length of the chunk
+		 * @return the number of bytes the receiver now holds for the upload
+		 * @throws IOException when the chunk could not be sent
+		 */
+		public long putChunk(String uploadID, long offset, byte[] bytes, int length) throws IOException;
+		
+		/**
+		 * Asks the receiver to verify the hash of, and store, the assembled file.
+		 * 
+		 * @param uploadID
+		 * @return {@code true} if the file was stored, {@code false} if its hash did not match (the receiver will have discarded the upload)
+		 * @throws IOException
+		 */
+		public boolean complete(String uploadID) throws IOException;
+		
+	}
+	
+	/**
+	 * Notified of changes to the progress of an upload, allowing it to be persisted. Notifications happen on the thread doing
+	 * the upload.
+	 */
+	public interface ProgressListener
+	{
+		
+		/**
+		 * @param upload
+		 */
+		public void onProgress(ResumableUpload upload);
+		
+	}
+
+}
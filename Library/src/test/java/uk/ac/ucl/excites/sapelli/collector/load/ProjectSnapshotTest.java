@@ -0,0 +1,152 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.collector.load;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ucl.excites.sapelli.collector.model.Field;
+import uk.ac.ucl.excites.sapelli.collector.model.Form;
+import uk.ac.ucl.excites.sapelli.collector.model.Project;
+import uk.ac.ucl.excites.sapelli.collector.model.fields.Page;
+import uk.ac.ucl.excites.sapelli.collector.model.fields.Relationship;
+import uk.ac.ucl.excites.sapelli.shared.io.FileHelpers;
+
+/**
+ * Tests for {@link ProjectSnapshot}.
+ */
+public class ProjectSnapshotTest
+{
+
+	static private final String PROJECT_XML =
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+		"<SapelliCollectorProject name=\"Snap\" id=\"4242\" version=\"1.0\">\n" +
+		"<Form id=\"Obs\" storeEndTime=\"true\">\n" +
+		" <Choice id=\"Species\" rows=\"2\" cols=\"2\">" +
+			"<Choice caption=\"Cat 0\" img=\"cat0.png\"><Choice value=\"v0_0\" img=\"i0_0.png\"/><Choice value=\"v0_1\" img=\"i0_1.png\"/></Choice>" +
+			"<Choice caption=\"Cat 1\" img=\"cat1.png\"><Choice value=\"v1_0\" img=\"i1_0.png\"/><Choice value=\"v1_1\" img=\"i1_1.png\"/></Choice>" +
+		"</Choice>\n" +
+		" <Text id=\"Notes\" optional=\"true\" caption=\"Notes\"/>\n" +
+		" <MultiList id=\"Habitat\" caption=\"Habitat\"><Item value=\"Forest\"><Item value=\"Pine\"/><Item value=\"Oak\" default=\"true\"/></Item><Item value=\"Grass\"/></MultiList>\n" +
+		" <Page id=\"Extra\"><Text id=\"Observer\" caption=\"Observer\"/><Text id=\"Count\" content=\"unsignedint\" caption=\"Count\"/></Page>\n" +
+		" <Photo id=\"Pic\" optional=\"true\"/>\n" +
+		" <Trigger key=\"Back\" jump=\"Notes\"/>\n" +
+		"</Form>\n" +
+		"<Form id=\"Visit\">\n" +
+		" <BelongsTo id=\"Obs\" form=\"Obs\"/>\n" +
+		" <Text id=\"Comment\" caption=\"Comment\"/>\n" +
+		"</Form>\n" +
+		"</SapelliCollectorProject>\n";
+	
+	private File folder;
+	private Project parsed;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		folder = FileHelpers.getSubDirectory(FileUtils.getTempDirectory(), "sapelli-test-" + System.nanoTime(), true);
+		FileUtils.writeStringToFile(ProjectLoader.GetProjectXMLFile(folder), PROJECT_XML, Charset.forName("UTF-8"));
+		parsed = ProjectLoader.ParseProjectXMLInFolder(folder);
+		assertNotNull(parsed);
+		ProjectSnapshot.Write(folder, parsed);
+	}
+	
+	@After
+	public void tearDown()
+	{
+		FileUtils.deleteQuietly(folder);
+	}
+	
+	@Test
+	public void formContentsAreLoadedLazily() throws Exception
+	{
+		Project read = ProjectSnapshot.Read(folder, parsed);
+		assertNotNull(read);
+		Form obs = read.getForm("Obs");
+		Form visit = read.getForm("Visit");
+		assertFalse(obs.isContentsLoaded());
+		assertFalse(visit.isContentsLoaded());
+		
+		// Schemas are available without loading the contents:
+		assertTrue(parsed.getForm("Obs").getSchema().equals(obs.getSchema(), true, true, false));
+		assertFalse(obs.isContentsLoaded());
+		
+		// Loading the contents of one form does not load those of the other:
+		assertEquals(parsed.getForm("Visit").getFields(), visit.getFields());
+		assertTrue(visit.isContentsLoaded());
+		assertFalse(obs.isContentsLoaded());
+		
+		// Objects shared with the project are not duplicated:
+		assertSame(obs, ((Relationship) visit.getField("Obs")).getRelatedForm());
+		for(Field field : visit.getFields())
+			assertSame(visit, field.form);
+		
+		assertEquals(parsed, read); // loads the remaining form
+		assertTrue(obs.isContentsLoaded());
+		for(Field field : obs.getFields())
+		{
+			assertSame(obs, field.form);
+			if(!(field instanceof Page))
+				assertNotNull(obs.getColumnFor(field));
+		}
+		assertSame(obs.getField("Notes"), obs.getTriggers().get(0).getJump());
+	}
+	
+	@Test
+	public void staleSnapshotIsDiscarded() throws Exception
+	{
+		FileUtils.writeStringToFile(ProjectLoader.GetProjectXMLFile(folder), PROJECT_XML + "\n", Charset.forName("UTF-8"));
+		try
+		{
+			ProjectSnapshot.Read(folder, parsed);
+			fail("Stale snapshot was read");
+		}
+		catch(IOException expected) {}
+		assertFalse(ProjectSnapshot.GetSnapshotFile(folder).exists());
+		assertNull(ProjectSnapshot.Read(folder, parsed));
+	}
+	
+	@Test
+	public void missingSnapshotFailsContentsLoading() throws Exception
+	{
+		Project read = ProjectSnapshot.Read(folder, parsed);
+		FileUtils.forceDelete(ProjectSnapshot.GetSnapshotFile(folder));
+		try
+		{
+			read.getForm("Obs").getFields();
+			fail("Contents were loaded without snapshot");
+		}
+		catch(IllegalStateException expected) {}
+	}
+	
+}
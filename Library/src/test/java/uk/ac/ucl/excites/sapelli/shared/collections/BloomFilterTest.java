@@ -0,0 +1,108 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.shared.collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link BloomFilter}.
+ */
+public class BloomFilterTest
+{
+	
+	static private final int CAPACITY = 10000;
+	static private final double FALSE_POSITIVE_PROBABILITY = 0.01d;
+	
+	static private byte[] Key(int i)
+	{
+		return ByteBuffer.allocate(4).putInt(i).array();
+	}
+	
+	@Test
+	public void noFalseNegatives()
+	{
+		BloomFilter filter = new BloomFilter(CAPACITY, FALSE_POSITIVE_PROBABILITY);
+		for(int i = 0; i < CAPACITY; i++)
+			filter.put(Key(i));
+		for(int i = 0; i < CAPACITY; i++)
+			assertTrue(filter.mightContain(Key(i)));
+	}
+	
+	@Test
+	public void falsePositiveRateIsNearTarget()
+	{
+		BloomFilter filter = new BloomFilter(CAPACITY, FALSE_POSITIVE_PROBABILITY);
+		for(int i = 0; i < CAPACITY; i++)
+			filter.put(Key(i));
+		int falsePositives = 0, tries = 100000;
+		for(int i = CAPACITY; i < CAPACITY + tries; i++)
+			if(filter.mightContain(Key(i)))
+				falsePositives++;
+		assertTrue("False positive rate: " + (double) falsePositives / tries, falsePositives < 2 * FALSE_POSITIVE_PROBABILITY * tries);
+	}
+	
+	@Test
+	public void sizeAndOverload()
+	{
+		BloomFilter filter = new BloomFilter(100, FALSE_POSITIVE_PROBABILITY);
+		assertTrue(filter.put(Key(1)));
+		assertFalse(filter.put(Key(1))); // already present
+		assertEquals(1, filter.getSize());
+		for(int i = 2; !filter.isOverloaded(); i++)
+			filter.put(Key(i));
+		assertTrue(filter.getSize() > filter.getCapacity());
+		filter.clear();
+		assertEquals(0, filter.getSize());
+		assertFalse(filter.mightContain(Key(1)));
+	}
+	
+	@Test
+	public void recreatedFilterIsIdentical()
+	{
+		BloomFilter filter = new BloomFilter(CAPACITY, FALSE_POSITIVE_PROBABILITY);
+		for(int i = 0; i < CAPACITY / 2; i++)
+			filter.put(Key(i * 7));
+		BloomFilter copy = new BloomFilter(filter.getCapacity(), filter.getNumberOfHashFunctions(), filter.getSize(), filter.toBytes());
+		assertEquals(filter.getNumberOfBits(), copy.getNumberOfBits());
+		assertEquals(filter.getSize(), copy.getSize());
+		assertArrayEquals(filter.toBytes(), copy.toBytes());
+		for(int i = 0; i < CAPACITY; i++)
+			assertEquals(filter.mightContain(Key(i)), copy.mightContain(Key(i)));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidFalsePositiveProbability()
+	{
+		new BloomFilter(CAPACITY, 1.0d);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidSerialisedFilter()
+	{
+		new BloomFilter(CAPACITY, 7, 0, new byte[3]);
+	}
+	
+}
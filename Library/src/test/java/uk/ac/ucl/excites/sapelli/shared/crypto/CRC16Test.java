@@ -0,0 +1,138 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.shared.crypto;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import uk.ac.ucl.excites.sapelli.shared.io.BitArray;
+import uk.ac.ucl.excites.sapelli.shared.io.BitArrayOutputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.StreamHelpers;
+
+/**
+ * Checks that all ways of computing a {@link CRC16} produce exactly the same hashes as {@link CRC16Digest}.
+ */
+public class CRC16Test
+{
+	
+	static private final long SEED = 20161019L;
+	static private final int CHECKED_BIT_LENGTHS = 4096;
+	static private final int LARGE_BYTES = 100000;
+	
+	@Test
+	public void randomInputsOfEverySize() throws Exception
+	{
+		Random random = new Random(SEED);
+		for(int length = 0; length <= CHECKED_BIT_LENGTHS; length++)
+			check(random, CreateBits(random, length));
+	}
+	
+	@Test
+	public void largeInput() throws Exception
+	{
+		Random random = new Random(SEED);
+		byte[] data = new byte[LARGE_BYTES];
+		random.nextBytes(data);
+		check(random, BitArray.FromBytes(data));
+	}
+	
+	@Test
+	public void resetStartsOver()
+	{
+		byte[] data = "123456789".getBytes();
+		CRC16 crc = new CRC16();
+		crc.update(data, 0, data.length);
+		crc.reset();
+		crc.update(data, 0, data.length);
+		assertEquals(CRC16.Compute(data), crc.getValue());
+	}
+	
+	/**
+	 * @param random
+	 * @param bits
+	 * @throws IOException
+	 */
+	static private void check(Random random, BitArray bits) throws IOException
+	{
+		int expected = Legacy(bits);
+		byte[] bytes = bits.toByteArray();
+		assertEquals("bytes, " + bits.length() + " bits", expected, CRC16.Compute(bytes));
+		assertEquals("bit array, " + bits.length() + " bits", expected, CRC16.Compute(bits));
+		assertEquals("tap, " + bits.length() + " bits", expected, Tap(bits));
+		
+		// Randomly split bytes:
+		CRC16 crc = new CRC16();
+		for(int offset = 0, chunk; offset < bytes.length; offset += chunk)
+			crc.update(bytes, offset, chunk = Math.min(random.nextInt(20) + 1, bytes.length - offset));
+		assertEquals("split bytes, " + bits.length() + " bits", expected, crc.getValue());
+		
+		// Randomly split bits (mixing single bits and bit arrays, so most arrays are fed unaligned):
+		crc.reset();
+		for(int offset = 0, chunk; offset < bits.length(); offset += chunk)
+		{
+			chunk = Math.min(random.nextInt(100) + 1, bits.length() - offset);
+			if(chunk == 1)
+				crc.update(bits.get(offset));
+			else
+				crc.update(bits.subArray(offset, chunk));
+		}
+		assertEquals("split bits, " + bits.length() + " bits", expected, crc.getValue());
+	}
+	
+	static private BitArray CreateBits(Random random, int length)
+	{
+		BitArray bits = new BitArray(length);
+		for(int b = 0; b < length; b++)
+			bits.set(b, random.nextBoolean());
+		return bits;
+	}
+	
+	/**
+	 * @param bits
+	 * @return the hash as computed by Transmission#computePayloadHash(BitArray) before {@link CRC16} was introduced
+	 */
+	static private int Legacy(BitArray bits)
+	{
+		CRC16Digest digest = new CRC16Digest();
+		digest.update(bits.toByteArray());
+		byte[] hash = digest.digest();
+		return (hash[0] & 0xFF) << 8 | (hash[1] & 0xFF);
+	}
+	
+	static private int Tap(BitArray bits) throws IOException
+	{
+		CRC16 crc = new CRC16();
+		BitArrayOutputStream out = new BitArrayOutputStream();
+		try
+		{
+			out.setCRC16Tap(crc);
+			out.write(bits);
+			return crc.getValue();
+		}
+		finally
+		{
+			StreamHelpers.SilentClose(out);
+		}
+	}
+	
+}
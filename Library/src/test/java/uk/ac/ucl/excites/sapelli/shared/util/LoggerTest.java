@@ -0,0 +1,128 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.shared.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ucl.excites.sapelli.shared.io.FileHelpers;
+import uk.ac.ucl.excites.sapelli.shared.util.Logger.OverflowPolicy;
+
+/**
+ * Tests for asynchronous {@link Logger}s.
+ */
+public class LoggerTest
+{
+	
+	static private final int PRODUCERS = 4;
+	static private final int ROUNDS = 50;
+	static private final int BUFFER_CAPACITY = 16;
+	static private final long TIMEOUT_MS = 30000;
+	
+	private File folder;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		folder = FileHelpers.getSubDirectory(FileUtils.getTempDirectory(), "sapelli-test-" + System.nanoTime(), true);
+	}
+	
+	@After
+	public void tearDown()
+	{
+		FileUtils.deleteQuietly(folder);
+	}
+	
+	@Test(timeout = TIMEOUT_MS)
+	public void writesAllLinesBeforeClosing() throws Exception
+	{
+		Logger logger = new Logger(folder.getAbsolutePath(), "all", false, false, BUFFER_CAPACITY, OverflowPolicy.BLOCK);
+		for(int i = 0; i < 1000; i++)
+			logger.addLine(false, "line", Integer.toString(i));
+		logger.close();
+		List<String> lines = readLines("all");
+		assertEquals(1000, lines.size());
+		for(int i = 0; i < lines.size(); i++)
+			assertEquals("line" + Logger.FIELD_SEPARATOR + i, lines.get(i));
+	}
+	
+	/**
+	 * Closes loggers while producers are still adding lines (and starting writers). Every line which was accepted
+	 * must be written once and in one piece, which would not be the case if two consumers drained the buffer at once.
+	 */
+	@Test(timeout = TIMEOUT_MS)
+	public void closingWhileProducersAreAddingLines() throws Exception
+	{
+		for(int r = 0; r < ROUNDS; r++)
+		{
+			final Logger logger = new Logger(folder.getAbsolutePath(), "round" + r, false, false, BUFFER_CAPACITY, OverflowPolicy.BLOCK);
+			final AtomicInteger accepted = new AtomicInteger();
+			final CountDownLatch started = new CountDownLatch(PRODUCERS);
+			Thread[] producers = new Thread[PRODUCERS];
+			for(int p = 0; p < PRODUCERS; p++)
+			{
+				final String producer = Integer.toString(p);
+				producers[p] = new Thread()
+				{
+					@Override
+					public void run()
+					{
+						started.countDown();
+						try
+						{
+							for(int i = 0; true; i++)
+							{
+								logger.addLine(false, producer, Integer.toString(i));
+								accepted.incrementAndGet();
+							}
+						}
+						catch(IllegalStateException closed) {}
+					}
+				};
+				producers[p].start();
+			}
+			started.await();
+			logger.close();
+			for(Thread producer : producers)
+				producer.join();
+			
+			List<String> lines = readLines("round" + r);
+			assertTrue(lines.size() <= accepted.get());
+			for(String line : lines)
+				assertTrue("Malformed line: " + line, line.matches("\\d+" + Logger.FIELD_SEPARATOR + "\\d+"));
+		}
+	}
+	
+	private List<String> readLines(String baseFileName) throws Exception
+	{
+		return FileUtils.readLines(new File(folder, baseFileName + Logger.LOG_EXTENSION), Charset.forName("UTF-8"));
+	}
+	
+}
@@ -0,0 +1,171 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.storage.db;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.ac.ucl.excites.sapelli.shared.db.StoreBackupper;
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.storage.StorageClient;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.RecordReference;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.IntegerColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.indexes.AutoIncrementingPrimaryKey;
+import uk.ac.ucl.excites.sapelli.storage.queries.RecordsQuery;
+import uk.ac.ucl.excites.sapelli.storage.queries.SingleRecordQuery;
+
+/**
+ * Simple in-memory {@link RecordStore} used by the unit tests.
+ * Transactions are not supported (i.e. nothing is rolled back) and queries are executed on all stored records.
+ * Auto-incrementing primary key values start from 1 (as in SQLite).
+ */
+public class MemoryRecordStore extends RecordStore
+{
+
+	private final Map<RecordReference, Record> records = new LinkedHashMap<RecordReference, Record>();
+	private final Map<Schema, Long> lastAutoIncrementIDs = new HashMap<Schema, Long>();
+	
+	public MemoryRecordStore(StorageClient client)
+	{
+		super(client, false);
+	}
+	
+	/**
+	 * @return the number of stored records
+	 */
+	public int getNumberOfRecords()
+	{
+		return records.size();
+	}
+	
+	@Override
+	protected void doStartTransaction() throws DBException
+	{
+		// does nothing
+	}
+	
+	@Override
+	protected void doCommitTransaction() throws DBException
+	{
+		// does nothing
+	}
+	
+	@Override
+	protected void doRollbackTransaction()
+	{
+		// does nothing
+	}
+	
+	@Override
+	protected Boolean doStore(Record record) throws DBException
+	{
+		setAutoIncrementingPrimaryKey(record);
+		Record previous = records.put(record.getReference(), record);
+		if(previous == null)
+			return Boolean.TRUE;
+		return previous.equals(record) ? null : Boolean.FALSE;
+	}
+	
+	@Override
+	protected boolean doInsert(Record record) throws DBException
+	{
+		setAutoIncrementingPrimaryKey(record);
+		if(records.containsKey(record.getReference()))
+			return false;
+		records.put(record.getReference(), record);
+		return true;
+	}
+	
+	/**
+	 * @param record a record to be inserted, gets the next value of its schema's auto-incrementing primary key (if it has one which is not set yet)
+	 */
+	private void setAutoIncrementingPrimaryKey(Record record)
+	{
+		Schema schema = record.getSchema();
+		if(!(schema.getPrimaryKey() instanceof AutoIncrementingPrimaryKey))
+			return;
+		IntegerColumn idColumn = ((AutoIncrementingPrimaryKey) schema.getPrimaryKey()).getColumn();
+		if(idColumn.isValuePresent(record))
+			return;
+		Long last = lastAutoIncrementIDs.get(schema);
+		long next = (last != null ? last : 0l) + 1;
+		idColumn.storeValue(record, next);
+		lastAutoIncrementIDs.put(schema, next);
+	}
+	
+	@Override
+	public List<Record> retrieveRecords(RecordsQuery query)
+	{
+		return query.execute(new ArrayList<Record>(records.values()));
+	}
+	
+	@Override
+	public List<RecordReference> retrieveRecordReferences(RecordsQuery query)
+	{
+		List<RecordReference> references = new ArrayList<RecordReference>();
+		for(Record record : retrieveRecords(query))
+			references.add(record.getReference());
+		return references;
+	}
+	
+	@Override
+	public Record retrieveRecord(SingleRecordQuery query)
+	{
+		return query.execute(new ArrayList<Record>(records.values()));
+	}
+	
+	@Override
+	public Model retrieveModel(long modelID)
+	{
+		return null;
+	}
+	
+	@Override
+	protected boolean doDelete(Record record) throws DBException
+	{
+		return records.remove(record.getReference()) != null;
+	}
+	
+	@Override
+	protected void closeConnection() throws DBException
+	{
+		records.clear();
+		lastAutoIncrementIDs.clear();
+	}
+	
+	@Override
+	protected void doBackup(StoreBackupper backuper, File destinationFolder) throws DBException
+	{
+		throw new DBException("Not supported");
+	}
+	
+	@Override
+	public boolean hasFullIndexSupport()
+	{
+		return false;
+	}
+	
+}
@@ -0,0 +1,137 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.storage.eximport.csv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.shared.io.FileHelpers;
+import uk.ac.ucl.excites.sapelli.storage.StorageClient;
+import uk.ac.ucl.excites.sapelli.storage.db.MemoryRecordStore;
+import uk.ac.ucl.excites.sapelli.storage.eximport.ExportResult;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.IntegerColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.StringColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.indexes.PrimaryKey;
+import uk.ac.ucl.excites.sapelli.transmission.TestTransmissionClient;
+
+/**
+ * Tests for {@link CSVRecordsImporter#importInto(File, Schema, uk.ac.ucl.excites.sapelli.storage.db.RecordStore, int)}.
+ */
+public class CSVRecordsImporterTest
+{
+
+	static private final long MODEL_ID = 1000; // well clear of the reserved (management) model IDs
+	static private final int RECORDS = 10000;
+	static private final int BATCH_SIZE = 100;
+	static private final long TIMEOUT_MS = 10000;
+	static private final long QUEUE_FILL_WAIT_MS = 500;
+	
+	private TestTransmissionClient client;
+	private File tempFolder;
+	private File csvFile;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		client = new TestTransmissionClient();
+		Model model = new Model(MODEL_ID, "CSVImportTest", StorageClient.SCHEMA_FLAG_EXPORTABLE);
+		Schema schema = new Schema(model, "Rows");
+		IntegerColumn idColumn = schema.addColumn(new IntegerColumn("ID", false, false, 32));
+		StringColumn nameColumn = schema.addColumn(new StringColumn("Name", false, 64));
+		schema.setPrimaryKey(PrimaryKey.WithColumnNames(idColumn), true);
+		model.seal();
+		client.addModel(model);
+		
+		List<Record> records = new ArrayList<Record>(RECORDS);
+		for(int r = 0; r < RECORDS; r++)
+		{
+			Record record = schema.createRecord();
+			idColumn.storeValue(record, r);
+			nameColumn.storeValue(record, "Row, \"number\" " + r);
+			records.add(record);
+		}
+		
+		tempFolder = FileHelpers.getSubDirectory(FileUtils.getTempDirectory(), "sapelli-test-" + System.nanoTime(), true);
+		ExportResult result = new CSVRecordsExporter(tempFolder).export(records, "Test");
+		assertTrue(result.wasSuccessful());
+		csvFile = result.getFiles().get(0);
+	}
+	
+	@After
+	public void tearDown()
+	{
+		FileUtils.deleteQuietly(tempFolder);
+	}
+	
+	@Test(timeout = TIMEOUT_MS)
+	public void importsAllRecords() throws Exception
+	{
+		MemoryRecordStore store = new MemoryRecordStore(client);
+		assertEquals(RECORDS, new CSVRecordsImporter(client).importInto(csvFile, null, store, BATCH_SIZE));
+		assertEquals(RECORDS, store.getNumberOfRecords());
+	}
+	
+	@Test(timeout = TIMEOUT_MS)
+	public void storeFailureAbortsImport() throws Exception
+	{
+		final int failingBatch = 3;
+		MemoryRecordStore store = new MemoryRecordStore(client)
+		{
+			private int stored = 0;
+			
+			@Override
+			protected Boolean doStore(Record record) throws DBException
+			{
+				if(stored++ == (failingBatch - 1) * BATCH_SIZE)
+				{
+					try
+					{	// give the parser time to fill up the queue and block:
+						Thread.sleep(QUEUE_FILL_WAIT_MS);
+					}
+					catch(InterruptedException ignore) {}
+					throw new DBException("Simulated storage failure");
+				}
+				return super.doStore(record);
+			}
+		};
+		try
+		{
+			new CSVRecordsImporter(client).importInto(csvFile, null, store, BATCH_SIZE);
+			fail("Storage failure was not reported");
+		}
+		catch(DBException expected) {}
+		// Batches stored before the failure are kept:
+		assertEquals((failingBatch - 1) * BATCH_SIZE, store.getNumberOfRecords());
+	}
+	
+}
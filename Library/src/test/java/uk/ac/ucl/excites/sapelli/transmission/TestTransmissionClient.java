@@ -0,0 +1,150 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.transmission;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.ac.ucl.excites.sapelli.shared.db.StoreHandle.StoreSetter;
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.storage.db.MemoryRecordStore;
+import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
+import uk.ac.ucl.excites.sapelli.storage.model.Attachment;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.util.UnknownModelException;
+import uk.ac.ucl.excites.sapelli.transmission.model.Correspondent;
+import uk.ac.ucl.excites.sapelli.transmission.model.Payload;
+
+/**
+ * Minimal {@link TransmissionClient} used by the unit tests, it only knows the models it is given.
+ * Its own {@link RecordStore} (used by stores such as the TransmissionStore) is a {@link MemoryRecordStore}.
+ */
+public class TestTransmissionClient extends TransmissionClient
+{
+
+	private final Map<Long, Model> models = new HashMap<Long, Model>();
+	
+	/**
+	 * @param model the model to make known to the client
+	 * @return the model
+	 */
+	public Model addModel(Model model)
+	{
+		models.put(model.id, model);
+		return model;
+	}
+	
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.storage.StorageClient#createAndSetRecordStore(uk.ac.ucl.excites.sapelli.shared.db.StoreHandle.StoreSetter)
+	 */
+	@Override
+	protected void createAndSetRecordStore(StoreSetter<RecordStore> setter) throws DBException
+	{
+		setter.setAndInitialise(new MemoryRecordStore(this));
+	}
+	
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.storage.StorageClient#getRecordAttachments(uk.ac.ucl.excites.sapelli.storage.model.Record)
+	 */
+	@Override
+	public List<? extends Attachment> getRecordAttachments(Record record)
+	{
+		return Collections.<Attachment> emptyList();
+	}
+	
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.storage.StorageClient#getClientModel(long)
+	 */
+	@Override
+	protected Model getClientModel(long modelID)
+	{
+		return models.get(modelID);
+	}
+	
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.storage.StorageClient#serialiseClientModel(uk.ac.ucl.excites.sapelli.storage.model.Model, java.io.OutputStream)
+	 */
+	@Override
+	protected void serialiseClientModel(Model model, OutputStream out) throws IOException, UnknownModelException
+	{
+		throw new UnknownModelException(model.id, null);
+	}
+	
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.storage.StorageClient#deserialiseClientModel(byte, java.io.InputStream)
+	 */
+	@Override
+	protected Model deserialiseClientModel(byte kind, InputStream in) throws Exception
+	{
+		return null;
+	}
+	
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.storage.StorageClient#getSchemaV1(int, int)
+	 */
+	@Override
+	public Schema getSchemaV1(int schemaID, int schemaVersion) throws UnknownModelException
+	{
+		throw new UnknownModelException(schemaID, schemaVersion);
+	}
+	
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.transmission.TransmissionClient#createCustomPayload(int)
+	 */
+	@Override
+	public Payload createCustomPayload(int nonBuiltinType)
+	{
+		return null;
+	}
+	
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.transmission.TransmissionClient#getReceiversFor(uk.ac.ucl.excites.sapelli.storage.model.Schema)
+	 */
+	@Override
+	public List<Correspondent> getReceiversFor(Schema schema)
+	{
+		return Collections.<Correspondent> emptyList();
+	}
+	
+	@Override
+	public void logError(String msg, Throwable throwable)
+	{
+		System.err.println("Error: " + msg + (throwable != null ? " (" + throwable.toString() + ")" : ""));
+	}
+	
+	@Override
+	public void logWarning(String msg)
+	{
+		// ignore
+	}
+	
+	@Override
+	public void logInfo(String msg)
+	{
+		// ignore
+	}
+	
+}
@@ -0,0 +1,197 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.transmission.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ucl.excites.sapelli.shared.collections.BloomFilter;
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.storage.StorageClient;
+import uk.ac.ucl.excites.sapelli.storage.db.MemoryRecordStore;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.IntegerColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.StringColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.indexes.PrimaryKey;
+import uk.ac.ucl.excites.sapelli.transmission.TestTransmissionClient;
+import uk.ac.ucl.excites.sapelli.transmission.db.TransmissionStore;
+
+/**
+ * Tests for {@link ReceivedRecordsFilter}.
+ */
+public class ReceivedRecordsFilterTest
+{
+	
+	static private final long MODEL_ID = 1001; // well clear of the reserved (management) model IDs
+	static private final int CAPACITY = 1000;
+	static private final double FALSE_POSITIVE_PROBABILITY = 0.01d;
+	static private final int BATCH_SIZE = 20;
+	static private final int PERSIST_AFTER_KEYS = 100;
+	static private final long NEVER = Long.MAX_VALUE;
+	
+	private TestTransmissionClient client;
+	private Schema schema;
+	private IntegerColumn idColumn;
+	private StringColumn valueColumn;
+	private MemoryRecordStore recordStore;
+	private CountingTransmissionStore transmissionStore;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		client = new TestTransmissionClient();
+		Model model = new Model(MODEL_ID, "ReceiptFilterTest", StorageClient.SCHEMA_FLAG_EXPORTABLE);
+		schema = new Schema(model, "Rows");
+		idColumn = schema.addColumn(new IntegerColumn("ID", false, false, 32));
+		valueColumn = schema.addColumn(new StringColumn("Value", false, 64));
+		schema.setPrimaryKey(PrimaryKey.WithColumnNames(idColumn), true);
+		model.seal();
+		client.addModel(model);
+		recordStore = new MemoryRecordStore(client);
+		transmissionStore = new CountingTransmissionStore(client);
+	}
+	
+	@Test
+	public void onlyIdenticalStoredRecordsAreRemoved() throws Exception
+	{
+		ReceivedRecordsFilter filter = new ReceivedRecordsFilter(transmissionStore, recordStore, client.getMetrics(), CAPACITY, FALSE_POSITIVE_PROBABILITY);
+		List<Record> first = createRecords(0, BATCH_SIZE, "a");
+		assertEquals(first, filter.removeStored(first)); // nothing stored yet
+		recordStore.store(first);
+		filter.add(first);
+		
+		List<Record> again = createRecords(0, BATCH_SIZE, "a");
+		assertTrue(filter.removeStored(again).isEmpty());
+		
+		List<Record> changed = createRecords(0, BATCH_SIZE, "b");
+		assertEquals(changed, filter.removeStored(changed));
+		
+		List<Record> mixed = new ArrayList<Record>(again);
+		List<Record> fresh = createRecords(BATCH_SIZE, BATCH_SIZE, "a");
+		mixed.addAll(fresh);
+		assertEquals(fresh, filter.removeStored(mixed));
+	}
+	
+	@Test
+	public void persistingIsBatchedByNumberOfKeys() throws Exception
+	{
+		ReceivedRecordsFilter filter = new ReceivedRecordsFilter(transmissionStore, recordStore, client.getMetrics(), CAPACITY, FALSE_POSITIVE_PROBABILITY, PERSIST_AFTER_KEYS, NEVER);
+		int batches = 3 * PERSIST_AFTER_KEYS / BATCH_SIZE;
+		for(int b = 0; b < batches; b++)
+		{
+			List<Record> batch = createRecords(b * BATCH_SIZE, BATCH_SIZE, "a");
+			recordStore.store(filter.removeStored(batch));
+			filter.add(batch);
+			assertEquals((b + 1) * BATCH_SIZE % PERSIST_AFTER_KEYS == 0, filter.persistIfDue());
+		}
+		assertEquals(3, transmissionStore.stores);
+		assertFalse(filter.persistIfDue()); // nothing changed since
+		
+		// Persisted filter holds all keys:
+		BloomFilter persisted = transmissionStore.retrieveReceivedRecordsFilter(schema);
+		assertNotNull(persisted);
+		for(Record record : createRecords(0, batches * BATCH_SIZE, "a"))
+			assertTrue(persisted.mightContain(record.getReference().toBytes(true)));
+	}
+	
+	@Test
+	public void explicitPersistStoresPendingChanges() throws Exception
+	{
+		ReceivedRecordsFilter filter = new ReceivedRecordsFilter(transmissionStore, recordStore, client.getMetrics(), CAPACITY, FALSE_POSITIVE_PROBABILITY, PERSIST_AFTER_KEYS, NEVER);
+		List<Record> batch = createRecords(0, BATCH_SIZE, "a");
+		recordStore.store(filter.removeStored(batch));
+		filter.add(batch);
+		assertFalse(filter.persistIfDue());
+		assertEquals(0, transmissionStore.stores);
+		filter.persist();
+		assertEquals(1, transmissionStore.stores);
+		
+		// A new filter is loaded from the store instead of rebuilt:
+		ReceivedRecordsFilter reloaded = new ReceivedRecordsFilter(transmissionStore, recordStore, client.getMetrics(), CAPACITY, FALSE_POSITIVE_PROBABILITY);
+		assertTrue(reloaded.removeStored(createRecords(0, BATCH_SIZE, "a")).isEmpty());
+		assertFalse(reloaded.persistIfDue());
+	}
+	
+	@Test
+	public void persistingIsDueAfterInterval() throws Exception
+	{
+		ReceivedRecordsFilter filter = new ReceivedRecordsFilter(transmissionStore, recordStore, client.getMetrics(), CAPACITY, FALSE_POSITIVE_PROBABILITY, PERSIST_AFTER_KEYS, 0);
+		List<Record> batch = createRecords(0, 1, "a");
+		filter.add(batch);
+		assertTrue(filter.persistIfDue());
+	}
+	
+	@Test
+	public void overloadedFilterIsPersistedAndRebuilt() throws Exception
+	{
+		int capacity = 50;
+		ReceivedRecordsFilter filter = new ReceivedRecordsFilter(transmissionStore, recordStore, client.getMetrics(), capacity, FALSE_POSITIVE_PROBABILITY, PERSIST_AFTER_KEYS, NEVER);
+		List<Record> batch = createRecords(0, capacity + BATCH_SIZE, "a");
+		recordStore.store(filter.removeStored(batch));
+		filter.add(batch);
+		assertTrue(filter.persistIfDue());
+		assertTrue(transmissionStore.retrieveReceivedRecordsFilter(schema).getCapacity() >= 2 * capacity);
+	}
+	
+	private List<Record> createRecords(int firstID, int count, String value)
+	{
+		Record[] records = new Record[count];
+		for(int r = 0; r < count; r++)
+		{
+			records[r] = schema.createRecord();
+			idColumn.storeValue(records[r], firstID + r);
+			valueColumn.storeValue(records[r], value);
+		}
+		return Arrays.asList(records);
+	}
+	
+	/**
+	 * Counts the number of times a filter is stored.
+	 */
+	static private class CountingTransmissionStore extends TransmissionStore
+	{
+		
+		int stores = 0;
+		
+		public CountingTransmissionStore(TestTransmissionClient client) throws DBException
+		{
+			super(client);
+		}
+		
+		@Override
+		public void storeReceivedRecordsFilter(Schema schema, BloomFilter filter)
+		{
+			stores++;
+			super.storeReceivedRecordsFilter(schema, filter);
+		}
+		
+	}
+	
+}
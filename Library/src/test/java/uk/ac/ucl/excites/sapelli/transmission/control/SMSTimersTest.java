@@ -0,0 +1,306 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.transmission.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.shared.io.FileStorageException;
+import uk.ac.ucl.excites.sapelli.storage.StorageClient;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.IntegerColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.StringColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.indexes.PrimaryKey;
+import uk.ac.ucl.excites.sapelli.storage.types.TimeStamp;
+import uk.ac.ucl.excites.sapelli.transmission.TestTransmissionClient;
+import uk.ac.ucl.excites.sapelli.transmission.TransmissionClient;
+import uk.ac.ucl.excites.sapelli.transmission.model.content.RecordsPayload;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.InvalidMessageException;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.SMSCorrespondent;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.SMSTransmission;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.binary.BinaryMessage;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.text.TextMessage;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.text.TextSMSTransmission;
+import uk.ac.ucl.excites.sapelli.transmission.protocol.geokey.GeoKeyClient;
+import uk.ac.ucl.excites.sapelli.transmission.protocol.sms.SMSClient;
+import uk.ac.ucl.excites.sapelli.transmission.util.TransmissionSendingException;
+
+/**
+ * Tests for the SMS timers of {@link TransmissionController} (see {@link TransmissionController#startSMSTimers()}),
+ * with an incomplete incoming text SMS transmission.
+ */
+public class SMSTimersTest
+{
+	
+	static private final long MODEL_ID = 1002; // well clear of the reserved (management) model IDs
+	static private final int RECORDS = 10;
+	
+	private TestTransmissionClient client;
+	private SMSCorrespondent sender;
+	private List<String> contents;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		client = new TestTransmissionClient();
+		Model model = new Model(MODEL_ID, "SMSTimersTest", StorageClient.SCHEMA_FLAG_EXPORTABLE | TransmissionClient.SCHEMA_FLAG_TRANSMITTABLE);
+		Schema schema = new Schema(model, "Rows");
+		IntegerColumn idColumn = schema.addColumn(new IntegerColumn("ID", false, false, 32));
+		StringColumn valueColumn = schema.addColumn(new StringColumn("Value", false, 64));
+		schema.setPrimaryKey(PrimaryKey.WithColumnNames(idColumn), true);
+		model.seal();
+		client.addModel(model);
+		sender = new SMSCorrespondent("Sender", "+447700900001", false);
+		
+		// Sending side (only used to obtain the contents of the parts):
+		TestTransmissionClient sendingClient = new TestTransmissionClient();
+		sendingClient.addModel(model);
+		RecordsPayload payload = new RecordsPayload(true);
+		TextSMSTransmission transmission = new TextSMSTransmission(sendingClient, new SMSCorrespondent("Receiver", "+447700900002", false), payload);
+		transmission.setLocalID(1);
+		for(int r = 0; r < RECORDS; r++)
+		{
+			Record record = schema.createRecord();
+			idColumn.storeValue(record, r);
+			valueColumn.storeValue(record, "Value of record number " + r + " which takes a few characters");
+			payload.addRecord(record);
+		}
+		transmission.prepare();
+		ContentCapturingSMSClient capturer = new ContentCapturingSMSClient();
+		for(TextMessage part : transmission.getParts())
+			part.send(capturer);
+		contents = capturer.contents;
+		assertTrue("Transmission should consist of several parts", contents.size() > 2);
+	}
+	
+	@Test
+	public void timersAreRebuiltFromStoreAndDriveResendRequests() throws Exception
+	{
+		// Receive the first part before the SMS timers are started, this schedules a resend request the old way:
+		TimeStamp receivedAt = TimeStamp.now();
+		TestController before = new TestController(client);
+		before.receiveSMS(new TextMessage(sender, contents.get(0), receivedAt));
+		assertEquals(1, before.resendRequestsScheduled);
+		
+		// Start up a new controller with SMS timers, they are rebuilt from the store:
+		TestController controller = new TestController(client);
+		assertEquals(1, controller.startSMSTimers());
+		assertEquals(0, controller.resendRequestsScheduled);
+		assertEquals(1, controller.getNumberOfPendingSMSResendRequests());
+		assertEquals(1, controller.getNumberOfPendingSMSExpiries());
+		assertEquals(1, controller.wakeUps.size());
+		long deadline = receivedAt.getMsSinceEpoch() + SMSTransmission.GetResendDelayMS(1);
+		long wakeUp = controller.wakeUps.get(0);
+		assertTrue("Wake-up should not be early", wakeUp >= deadline);
+		assertTrue("Wake-up should be at most one tick late", wakeUp < deadline + TransmissionController.DEFAULT_SMS_TIMERS_TICK_MS);
+		
+		// Nothing is due just before the wake-up:
+		assertEquals(0, controller.advanceSMSTimers(wakeUp - 1));
+		assertEquals(0, controller.sent.size());
+		
+		// Upon the wake-up the resend request is sent, and the next one is scheduled on the wheel:
+		controller.nowMS = wakeUp;
+		assertEquals(1, controller.advanceSMSTimers(wakeUp));
+		assertEquals(1, controller.sent.size());
+		assertEquals(sender, controller.sent.get(0));
+		assertEquals(1, controller.getNumberOfPendingSMSResendRequests());
+		assertEquals(0, controller.resendRequestsScheduled);
+		long nextWakeUp = controller.wakeUps.get(controller.wakeUps.size() - 1);
+		assertTrue(nextWakeUp >= wakeUp + SMSTransmission.GetResendDelayMS(2));
+		
+		// Receiving the other parts completes the transmission (which is acknowledged) and cancels its timers:
+		for(String content : contents.subList(1, contents.size()))
+			controller.receiveSMS(new TextMessage(sender, content));
+		assertEquals(0, controller.getNumberOfPendingSMSResendRequests());
+		assertEquals(0, controller.getNumberOfPendingSMSExpiries());
+		int sent = controller.sent.size();
+		
+		// The (now superfluous) wake-up does nothing but cancel further wake-ups:
+		assertEquals(0, controller.advanceSMSTimers(nextWakeUp));
+		assertEquals(sent, controller.sent.size());
+		assertEquals(1, controller.wakeUpCancellations);
+	}
+	
+	@Test
+	public void expiredTransmissionsAreReported() throws Exception
+	{
+		TimeStamp receivedAt = TimeStamp.now();
+		TestController controller = new TestController(client);
+		assertEquals(0, controller.startSMSTimers());
+		assertEquals(0, controller.wakeUps.size());
+		assertEquals(1, controller.wakeUpCancellations); // nothing to wake up for
+		
+		// Receive the first part once the SMS timers are started, this requests a wake-up:
+		controller.receiveSMS(new TextMessage(sender, contents.get(0), receivedAt));
+		assertEquals(0, controller.resendRequestsScheduled);
+		assertEquals(1, controller.wakeUps.size());
+		
+		// Jump past the expiry time, without the resend requests being sent (e.g. no SMS credit):
+		controller.failSending = true;
+		long expiry = receivedAt.getMsSinceEpoch();
+		expiry += SMSTransmission.GetResendDelayMS(SMSTransmission.MAX_RESEND_REQUESTS);
+		for(int r = 1; r <= SMSTransmission.MAX_RESEND_REQUESTS; r++)
+			expiry += SMSTransmission.GetResendDelayMS(r);
+		controller.nowMS = expiry + TransmissionController.DEFAULT_SMS_TIMERS_TICK_MS;
+		assertEquals(2, controller.advanceSMSTimers(controller.nowMS)); // the resend request & the expiry
+		assertEquals(1, controller.expired.size());
+		assertEquals(0, controller.getNumberOfPendingSMSResendRequests());
+		assertEquals(0, controller.getNumberOfPendingSMSExpiries());
+		assertEquals(2, controller.wakeUpCancellations);
+	}
+	
+	/**
+	 * Controller which records the (resend request) scheduling and wake-up requests instead of acting upon them,
+	 * and which "sends" SMS messages by keeping their receivers (using a simulated clock for the sending time).
+	 */
+	static private class TestController extends TransmissionController
+	{
+		
+		long nowMS = System.currentTimeMillis();
+		boolean failSending = false;
+		int resendRequestsScheduled = 0;
+		final List<Long> wakeUps = new ArrayList<Long>();
+		int wakeUpCancellations = 0;
+		final List<SMSCorrespondent> sent = new ArrayList<SMSCorrespondent>();
+		final List<Integer> expired = new ArrayList<Integer>();
+		
+		private final SMSClient smsClient = new SMSClient()
+		{
+			
+			@Override
+			public boolean send(SMSCorrespondent receiver, BinaryMessage binarySMS) throws TransmissionSendingException
+			{
+				throw new UnsupportedOperationException("Only text messages are supported");
+			}
+			
+			@Override
+			public boolean send(SMSCorrespondent receiver, TextMessage textSMS) throws TransmissionSendingException
+			{
+				if(failSending)
+					return false;
+				sent.add(receiver);
+				textSMS.getTransmission().getSentCallback().onSent(textSMS.getPartNumber(), new TimeStamp(nowMS));
+				return true;
+			}
+			
+		};
+		
+		public TestController(TransmissionClient client) throws DBException
+		{
+			super(client);
+		}
+		
+		@Override
+		protected File getLogsFolder() throws FileStorageException
+		{
+			throw new FileStorageException("No logging");
+		}
+		
+		@Override
+		public SMSClient getSMSClient()
+		{
+			return smsClient;
+		}
+		
+		@Override
+		public GeoKeyClient getGeoKeyClient()
+		{
+			return null;
+		}
+		
+		@Override
+		public void scheduleSMSResendRequest(int localID, TimeStamp time)
+		{
+			resendRequestsScheduled++;
+		}
+		
+		@Override
+		protected void cancelSMSResendRequest(int localID)
+		{
+			// ignore
+		}
+		
+		@Override
+		protected void scheduleSMSTimersWakeUp(TimeStamp time)
+		{
+			wakeUps.add(time.getMsSinceEpoch());
+		}
+		
+		@Override
+		protected void cancelSMSTimersWakeUp()
+		{
+			wakeUpCancellations++;
+		}
+		
+		@Override
+		protected void onSMSTransmissionsExpired(List<Integer> localIDs)
+		{
+			expired.addAll(localIDs);
+		}
+		
+		@Override
+		protected String getApplicationInfo()
+		{
+			return SMSTimersTest.class.getSimpleName();
+		}
+		
+	}
+	
+	/**
+	 * {@link SMSClient} which, instead of sending messages, keeps the contents of the {@link TextMessage}s "sent".
+	 */
+	static private class ContentCapturingSMSClient implements SMSClient
+	{
+		
+		final List<String> contents = new ArrayList<String>();
+		
+		@Override
+		public boolean send(SMSCorrespondent receiver, BinaryMessage binarySMS) throws TransmissionSendingException
+		{
+			throw new UnsupportedOperationException("Only text messages are supported");
+		}
+		
+		@Override
+		public boolean send(SMSCorrespondent receiver, TextMessage textSMS) throws TransmissionSendingException
+		{
+			try
+			{
+				contents.add(textSMS.getContent());
+				return true;
+			}
+			catch(InvalidMessageException ime)
+			{
+				throw new TransmissionSendingException("Invalid message", ime);
+			}
+		}
+		
+	}
+	
+}
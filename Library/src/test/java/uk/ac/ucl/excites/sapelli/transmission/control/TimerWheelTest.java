@@ -0,0 +1,146 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.transmission.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.SMSTransmission;
+
+/**
+ * Tests for {@link TimerWheel}, driven by a simulated clock.
+ */
+public class TimerWheelTest
+{
+
+	static private final long START_MS = 1451606400000L; // 2016-01-01T00:00Z
+	static private final long STEP_MS = 60 * 1000; // advance the simulated clock per minute
+	static private final long SPAN_MS;
+	static
+	{
+		long span = 0;
+		for(int r = 1; r <= SMSTransmission.MAX_RESEND_REQUESTS; r++)
+			span += SMSTransmission.GetResendDelayMS(r);
+		SPAN_MS = span;
+	}
+	static private final int PENDING = 10000;
+	static private final long SEED = 20160101L;
+	
+	/**
+	 * A third of the deadlines is rescheduled and another third is cancelled, every remaining deadline must fire
+	 * exactly once, never early and at most one tick late.
+	 */
+	@Test
+	public void deadlinesFireOnceAndOnTime()
+	{
+		Random random = new Random(SEED);
+		TimerWheel<Integer> wheel = new TimerWheel<Integer>(TimerWheel.DEFAULT_TICK_MS, TimerWheel.DEFAULT_NUMBER_OF_SLOTS, START_MS);
+		long[] expected = new long[PENDING];
+		for(int k = 0; k < PENDING; k++)
+			wheel.schedule(k, expected[k] = START_MS + (long) (random.nextDouble() * SPAN_MS));
+		for(int k = 0; k < PENDING; k++)
+			switch(k % 3)
+			{
+				case 1 :
+					wheel.schedule(k, expected[k] = START_MS + (long) (random.nextDouble() * SPAN_MS));
+					break;
+				case 2 :
+					expected[k] = -1;
+					assertTrue(wheel.cancel(k));
+					break;
+			}
+		assertEquals(PENDING - PENDING / 3, wheel.size());
+		
+		boolean[] fired = new boolean[PENDING];
+		List<Integer> expired = new ArrayList<Integer>();
+		for(long now = START_MS; !wheel.isEmpty(); now += STEP_MS)
+		{
+			expired.clear();
+			assertEquals(wheel.advance(now, expired), expired.size());
+			for(Integer k : expired)
+			{
+				assertTrue("Deadline " + k + " fired unexpectedly", expected[k] >= 0 && !fired[k]);
+				assertFalse("Deadline " + k + " fired early", expected[k] > now);
+				assertTrue("Deadline " + k + " fired late", expected[k] + STEP_MS + TimerWheel.DEFAULT_TICK_MS > now);
+				fired[k] = true;
+			}
+		}
+		for(int k = 0; k < PENDING; k++)
+			assertEquals("Deadline " + k, expected[k] >= 0, fired[k]);
+	}
+	
+	@Test
+	public void scheduleReturnsExpiryTime()
+	{
+		long tickMS = 1000;
+		TimerWheel<String> wheel = new TimerWheel<String>(tickMS, 16, START_MS);
+		assertEquals(START_MS + tickMS, wheel.schedule("past", START_MS - 5000)); // passed deadlines fire on the next tick
+		assertEquals(START_MS + 2 * tickMS, wheel.schedule("exact", START_MS + 2 * tickMS));
+		assertEquals(START_MS + 3 * tickMS, wheel.schedule("rounded", START_MS + 2 * tickMS + 1)); // never early
+		assertEquals(START_MS + 100 * tickMS, wheel.schedule("later turn", START_MS + 100 * tickMS));
+		
+		// Nothing expires before the returned time, everything expires from it:
+		List<String> expired = new ArrayList<String>();
+		assertEquals(0, wheel.advance(START_MS + tickMS - 1, expired));
+		assertEquals(1, wheel.advance(START_MS + tickMS, expired));
+		assertEquals(0, wheel.advance(START_MS + 2 * tickMS - 1, expired));
+		assertEquals(1, wheel.advance(START_MS + 2 * tickMS, expired));
+		assertEquals(2, expired.size());
+		assertTrue(expired.contains("past") && expired.contains("exact"));
+		assertEquals(0, wheel.advance(START_MS + 3 * tickMS - 1, expired));
+		assertEquals(1, wheel.advance(START_MS + 3 * tickMS, expired));
+		assertEquals(0, wheel.advance(START_MS + 100 * tickMS - 1, expired));
+		assertEquals(1, wheel.advance(START_MS + 100 * tickMS, expired));
+		assertTrue(wheel.isEmpty());
+	}
+	
+	@Test
+	public void nextExpiryTimeFollowsScheduleAndCancel()
+	{
+		long tickMS = 1000;
+		TimerWheel<Integer> wheel = new TimerWheel<Integer>(tickMS, 16, START_MS);
+		assertNull(wheel.getNextExpiryTime());
+		long late = wheel.schedule(1, START_MS + 50 * tickMS); // a later turn of the wheel
+		long early = wheel.schedule(2, START_MS + 20 * tickMS);
+		assertEquals(Long.valueOf(early), wheel.getNextExpiryTime());
+		
+		wheel.schedule(2, START_MS + 80 * tickMS); // rescheduled after the other one
+		assertEquals(Long.valueOf(late), wheel.getNextExpiryTime());
+		
+		assertTrue(wheel.cancel(1));
+		assertFalse(wheel.cancel(1));
+		assertEquals(Long.valueOf(START_MS + 80 * tickMS), wheel.getNextExpiryTime());
+		
+		List<Integer> expired = new ArrayList<Integer>();
+		assertEquals(1, wheel.advance(wheel.getNextExpiryTime(), expired));
+		assertEquals(2, expired.get(0).intValue());
+		assertNull(wheel.getNextExpiryTime());
+		assertNull(wheel.getDeadline(2));
+	}
+	
+}
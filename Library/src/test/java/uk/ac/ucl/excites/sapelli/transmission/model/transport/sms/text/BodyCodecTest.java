@@ -0,0 +1,223 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.transmission.model.transport.sms.text;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import uk.ac.ucl.excites.sapelli.shared.io.BitArray;
+import uk.ac.ucl.excites.sapelli.shared.io.BitArrayInputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.BitArrayOutputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.BitInputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.StreamHelpers;
+import uk.ac.ucl.excites.sapelli.transmission.util.TransmissionCapacityExceededException;
+
+/**
+ * Tests for {@link BodyCodec}: round trips, and equivalence with the bit stream based algorithm which
+ * {@link TextSMSTransmission} used before (see {@link #LegacyEncode(BitArray)} and {@link #LegacyDecode(String)}).
+ */
+public class BodyCodecTest
+{
+
+	static private final long SEED = 20161019L;
+	static private final int MAX_BITS = TextSMSTransmission.MAX_BODY_CHARS * TextSMSTransmission.BITS_PER_CHAR;
+	static private final int ALL_SIZES_UP_TO = 2 * TextMessage.MAX_BODY_CHARS * TextSMSTransmission.BITS_PER_CHAR;
+	static private final int LARGER_SIZES_STEP = 61; // prime, so all offsets within characters and bytes are covered
+	
+	@Test
+	public void randomBodies() throws Exception
+	{
+		Random random = new Random(SEED);
+		for(int length = 0; length <= ALL_SIZES_UP_TO; length++)
+			check(CreateBits(random, length));
+		for(int length = ALL_SIZES_UP_TO + LARGER_SIZES_STEP; length < MAX_BITS; length += LARGER_SIZES_STEP)
+			check(CreateBits(random, length));
+		check(CreateBits(random, MAX_BITS));
+	}
+	
+	/**
+	 * Bodies consisting of repeated ESC or SP characters exercise the escaping mechanism on every character.
+	 */
+	@Test
+	public void bodiesNeedingEscaping() throws Exception
+	{
+		for(int c : new int[] { Encoding.ESCAPE_ESC, Encoding.ESCAPE_SP, (1 << TextSMSTransmission.BITS_PER_CHAR) - 1, 0 })
+			for(int length = 0; length <= 4 * TextMessage.MAX_BODY_CHARS * TextSMSTransmission.BITS_PER_CHAR; length += 5)
+			{
+				BitArray bits = new BitArray(length);
+				for(int b = 0; b < length; b++)
+					bits.set(b, ((c >> (TextSMSTransmission.BITS_PER_CHAR - 1 - b % TextSMSTransmission.BITS_PER_CHAR)) & 1) == 1);
+				check(bits);
+			}
+	}
+	
+	@Test
+	public void encodedBodiesNeverContainEscape() throws Exception
+	{
+		Random random = new Random(SEED);
+		char esc = Encoding.GSM_0338_CHAR_TABLE[Encoding.ESCAPE_ESC];
+		for(int i = 0; i < 100; i++)
+			assertEquals(-1, BodyCodec.Encode(CreateBits(random, random.nextInt(MAX_BITS / 2)), TextSMSTransmission.MAX_BODY_CHARS).indexOf(esc));
+	}
+	
+	@Test(expected = TransmissionCapacityExceededException.class)
+	public void tooLargeBody() throws Exception
+	{
+		BodyCodec.Encode(new BitArray(MAX_BITS + 1), TextSMSTransmission.MAX_BODY_CHARS);
+	}
+	
+	@Test(expected = IOException.class)
+	public void escapeTableCharacterIsRejected() throws Exception
+	{
+		BodyCodec.Decode("abc" + Encoding.GSM_0338_CHAR_TABLE[Encoding.ESCAPE_ESC] + "def");
+	}
+	
+	/**
+	 * Checks that the given body is encoded like the legacy algorithm encodes it, and that it (and the legacy
+	 * encoding) decodes to the original bits followed by 0-padding only.
+	 * 
+	 * @param bits
+	 * @throws Exception
+	 */
+	static private void check(BitArray bits) throws Exception
+	{
+		String legacy;
+		try
+		{
+			legacy = LegacyEncode(bits);
+		}
+		catch(TransmissionCapacityExceededException tcee)
+		{	// escaping made this one too large, so must the new encoding:
+			try
+			{
+				BodyCodec.Encode(bits, TextSMSTransmission.MAX_BODY_CHARS);
+			}
+			catch(TransmissionCapacityExceededException expected)
+			{
+				return;
+			}
+			throw new AssertionError("Body of " + bits.length() + " bits should not fit");
+		}
+		String encoded = BodyCodec.Encode(bits, TextSMSTransmission.MAX_BODY_CHARS);
+		assertEquals("Encoding of " + bits.length() + " bits", legacy, encoded);
+		
+		BitArray decoded = BodyCodec.Decode(encoded);
+		assertEquals("Decoding of " + bits.length() + " bits", LegacyDecode(encoded), decoded);
+		assertTrue(decoded.length() >= bits.length());
+		for(int b = 0; b < decoded.length(); b++)
+			if(b < bits.length())
+				assertEquals("Bit " + b + " of " + bits.length(), bits.get(b), decoded.get(b));
+			else
+				assertFalse("Padding bit " + b + " of " + bits.length(), decoded.get(b));
+	}
+	
+	static private BitArray CreateBits(Random random, int length)
+	{
+		BitArray bits = new BitArray(length);
+		for(int b = 0; b < length; b++)
+			bits.set(b, random.nextBoolean());
+		return bits;
+	}
+	
+	/**
+	 * Body encoding as done by TextSMSTransmission#wrap(BitArray) before {@link BodyCodec} was introduced.
+	 */
+	static private String LegacyEncode(BitArray bodyBits) throws TransmissionCapacityExceededException, IOException
+	{
+		StringBuilder bld = new StringBuilder();
+		BitInputStream bitsIn = null;
+		try
+		{
+			bitsIn = new BitArrayInputStream(bodyBits);
+			Boolean escapeBit = null;
+			while(bitsIn.bitsAvailable() + (escapeBit == null ? 0 : 1) > 0)
+			{
+				if(bld.length() + 1 > TextSMSTransmission.MAX_BODY_CHARS)
+					throw new TransmissionCapacityExceededException("Maximum body size exceeded");
+				int readBits = Math.min(bitsIn.bitsAvailable(), TextSMSTransmission.BITS_PER_CHAR - (escapeBit == null ? 0 : 1));
+				int c = (readBits > 0 ? (int) bitsIn.readInteger(readBits, false) : 0) << (TextSMSTransmission.BITS_PER_CHAR - (escapeBit == null ? 0 : 1) - readBits);
+				if(escapeBit != null)
+					c += escapeBit ? (1 << (TextSMSTransmission.BITS_PER_CHAR - 1)) : 0;
+				switch(c)
+				{
+					case Encoding.ESCAPE_ESC :
+						escapeBit = true;
+						c = Encoding.ESCAPE_SP;
+						break;
+					case Encoding.ESCAPE_SP :
+						escapeBit = false;
+						break;
+					default :
+						escapeBit = null;
+				}
+				bld.append(Encoding.GSM_0338_CHAR_TABLE[c]);
+			}
+		}
+		finally
+		{
+			StreamHelpers.SilentClose(bitsIn);
+		}
+		return bld.toString();
+	}
+	
+	/**
+	 * Body decoding as done by TextSMSTransmission#unwrap() before {@link BodyCodec} was introduced.
+	 */
+	static private BitArray LegacyDecode(String transmissionBodyStr) throws IOException
+	{
+		BitArrayOutputStream bitsOut = new BitArrayOutputStream();
+		try
+		{
+			boolean prevPrevSP = false;
+			boolean prevSP = false;
+			for(int i = 0, n = transmissionBodyStr.length(); i < n; i++)
+			{
+				int c = Decoding.GSM_0338_REVERSE_CHAR_TABLE.get(transmissionBodyStr.charAt(i));
+				boolean currSP = (c == Encoding.ESCAPE_SP);
+				if(!prevSP)
+				{
+					if(!currSP)
+						bitsOut.write(c, TextSMSTransmission.BITS_PER_CHAR, false);
+				}
+				else
+				{
+					boolean escapeBit = ((c >> (TextSMSTransmission.BITS_PER_CHAR - 1)) == 1);
+					bitsOut.write((escapeBit ? Encoding.ESCAPE_ESC : Encoding.ESCAPE_SP) % (1 << (TextSMSTransmission.BITS_PER_CHAR - (prevPrevSP ? 1 : 0))), (TextSMSTransmission.BITS_PER_CHAR - (prevPrevSP ? 1 : 0)), false);
+					if(!currSP)
+						bitsOut.write(c % (1 << (TextSMSTransmission.BITS_PER_CHAR - 1)), TextSMSTransmission.BITS_PER_CHAR - 1, false);
+				}
+				prevPrevSP = prevSP;
+				prevSP = currSP;
+			}
+			bitsOut.close();
+			return bitsOut.toBitArray();
+		}
+		finally
+		{
+			bitsOut.close();
+		}
+	}
+	
+}
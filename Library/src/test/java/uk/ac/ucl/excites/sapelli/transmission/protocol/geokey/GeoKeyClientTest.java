@@ -0,0 +1,450 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.transmission.protocol.geokey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ucl.excites.sapelli.shared.db.StoreHandle.StoreUser;
+import uk.ac.ucl.excites.sapelli.shared.io.FileHelpers;
+import uk.ac.ucl.excites.sapelli.storage.StorageClient;
+import uk.ac.ucl.excites.sapelli.storage.model.Attachment;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.IntegerColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.StringColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.indexes.PrimaryKey;
+import uk.ac.ucl.excites.sapelli.storage.util.UnknownModelException;
+import uk.ac.ucl.excites.sapelli.transmission.TestTransmissionClient;
+import uk.ac.ucl.excites.sapelli.transmission.TransmissionClient;
+import uk.ac.ucl.excites.sapelli.transmission.db.TransmissionStore;
+import uk.ac.ucl.excites.sapelli.transmission.model.content.RecordsPayload;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.geokey.GeoKeyServer;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.geokey.GeoKeyTransmission;
+import uk.ac.ucl.excites.sapelli.transmission.protocol.http.ResumableUpload;
+import uk.ac.ucl.excites.sapelli.transmission.protocol.http.ResumableUploader;
+
+/**
+ * Tests for the streaming (and resumable) upload paths of {@link GeoKeyClient#handle(RecordsPayload)}, against in-process
+ * stand-in sessions which simulate latency and failures.
+ */
+public class GeoKeyClientTest implements StoreUser
+{
+	
+	static private final long MODEL_ID = 1003; // well clear of the reserved (management) model IDs
+	static private final int RECORDS = 12;
+	static private final int THREADS = 3;
+	static private final int ATTEMPTS = 3;
+	static private final long LATENCY_MS = 20;
+	static private final int FILE_SIZE = 100 * 1024;
+	
+	private File folder;
+	private File tempFolder;
+	private AttachmentsClient client;
+	private GeoKeyServer server;
+	private TransmissionStore transmissionStore;
+	private RecordsPayload payload;
+	private List<Attachment> attachments;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		folder = FileHelpers.getSubDirectory(FileUtils.getTempDirectory(), "sapelli-test-" + System.nanoTime(), true);
+		tempFolder = FileHelpers.getSubDirectory(folder, "temp", true);
+		client = new AttachmentsClient();
+		client.enableMetrics();
+		transmissionStore = client.transmissionStoreHandle.getStore(this); // keeps the in-memory store open in between uploads
+		server = GeoKeyServer.CreateNew("Test", "http://geokey.example.org/", null, null);
+		
+		Model model = new Model(MODEL_ID, "GeoKeyClientTest", StorageClient.SCHEMA_FLAG_EXPORTABLE | TransmissionClient.SCHEMA_FLAG_TRANSMITTABLE);
+		Schema schema = new Schema(model, "Rows");
+		IntegerColumn idColumn = schema.addColumn(new IntegerColumn("ID", false, false, 32));
+		StringColumn valueColumn = schema.addColumn(new StringColumn("Value", false, 64));
+		schema.setPrimaryKey(PrimaryKey.WithColumnNames(idColumn), true);
+		model.seal();
+		client.addModel(model);
+		
+		payload = new RecordsPayload(true);
+		new GeoKeyTransmission(client, server, payload);
+		attachments = new ArrayList<Attachment>();
+		byte[] content = new byte[FILE_SIZE];
+		for(int r = 0; r < RECORDS; r++)
+		{
+			Record record = schema.createRecord();
+			idColumn.storeValue(record, r);
+			valueColumn.storeValue(record, "Value " + r);
+			payload.addRecord(record);
+			
+			content[0] = (byte) r;
+			File file = new File(folder, "Photo" + r + ".jpg");
+			FileUtils.writeByteArrayToFile(file, content);
+			Attachment attachment = new Attachment(record, file)
+			{
+				@Override
+				public String getMimeType()
+				{
+					return "image/jpeg";
+				}
+			};
+			client.attachments.put(record, Collections.singletonList(attachment));
+			attachments.add(attachment);
+		}
+	}
+	
+	@After
+	public void tearDown()
+	{
+		client.transmissionStoreHandle.doneUsing(this);
+		FileUtils.deleteQuietly(folder);
+	}
+	
+	@Test
+	public void recordsAreStreamedAndAttachmentsUploadedConcurrently() throws Exception
+	{
+		StreamingSession session = new StreamingSession();
+		TestGeoKeyClient gkClient = new TestGeoKeyClient(client, session);
+		gkClient.handle(payload);
+		
+		// CSV was generated straight into the "request body" (no temporary files):
+		assertEquals(1, session.csvs.size());
+		String csv = session.csvs.values().iterator().next();
+		assertEquals(RECORDS + 1, csv.split("\r?\n").length); // header + rows
+		assertEquals(0, tempFolder.list().length);
+		
+		// All attachments were uploaded once, on at most THREADS threads:
+		assertEquals(RECORDS, session.uploaded.size());
+		for(Attachment attachment : attachments)
+			assertEquals(1, session.uploaded.get(attachment.file.getName()).intValue());
+		assertTrue(session.maxConcurrentUploads.get() > 1);
+		assertTrue(session.maxConcurrentUploads.get() <= THREADS);
+	}
+	
+	@Test
+	public void failedAttachmentsAreRetriedPerFile() throws Exception
+	{
+		StreamingSession session = new StreamingSession();
+		session.failures.put(attachments.get(0).file.getName(), new AtomicInteger(ATTEMPTS - 1)); // succeeds on the last attempt
+		session.failures.put(attachments.get(1).file.getName(), new AtomicInteger(1));
+		TestGeoKeyClient gkClient = new TestGeoKeyClient(client, session);
+		gkClient.handle(payload);
+		
+		assertEquals(RECORDS, session.uploaded.size());
+		assertEquals(ATTEMPTS - 1 + 1, client.getMetrics().counter(GeoKeyClient.METRIC_ATTACHMENT_RETRIES).get());
+		assertEquals(0, client.getMetrics().counter(GeoKeyClient.METRIC_ATTACHMENT_FAILURES).get());
+	}
+	
+	@Test
+	public void attachmentsFailingOnEveryAttemptFailThePayload() throws Exception
+	{
+		StreamingSession session = new StreamingSession();
+		session.failures.put(attachments.get(0).file.getName(), new AtomicInteger(Integer.MAX_VALUE));
+		TestGeoKeyClient gkClient = new TestGeoKeyClient(client, session);
+		try
+		{
+			gkClient.handle(payload);
+			fail("Handling should have failed");
+		}
+		catch(Exception expected) {}
+		assertEquals(RECORDS - 1, session.uploaded.size()); // the others were uploaded
+		assertEquals(ATTEMPTS - 1, client.getMetrics().counter(GeoKeyClient.METRIC_ATTACHMENT_RETRIES).get());
+		assertEquals(1, client.getMetrics().counter(GeoKeyClient.METRIC_ATTACHMENT_FAILURES).get());
+	}
+	
+	@Test
+	public void resumableUploadsAreResumedAcrossSessions() throws Exception
+	{
+		// First session, the connection drops halfway through every file:
+		ResumableSession session = new ResumableSession();
+		session.dropAfterBytesPerFile = FILE_SIZE / 2;
+		TestGeoKeyClient gkClient = new TestGeoKeyClient(client, session);
+		try
+		{
+			gkClient.handle(payload);
+			fail("Handling should have failed");
+		}
+		catch(Exception expected) {}
+		
+		// The progress of each upload has been stored:
+		for(Attachment attachment : attachments)
+		{
+			ResumableUpload upload = transmissionStore.retrieveResumableUpload(server, attachment.file);
+			assertNotNull(upload);
+			assertTrue(upload.getOffset() > 0 && upload.getOffset() <= FILE_SIZE / 2);
+			assertFalse(upload.isCompleted());
+		}
+		
+		// Second session, uploads are resumed and completed:
+		session.dropAfterBytesPerFile = Long.MAX_VALUE;
+		gkClient.handle(payload);
+		for(Attachment attachment : attachments)
+		{
+			assertTrue(session.completed.containsKey(attachment.file.getName()));
+			assertEquals(FILE_SIZE, session.receivedBytes.get(attachment.file.getName()).intValue()); // nothing was sent twice
+			assertNull(transmissionStore.retrieveResumableUpload(server, attachment.file)); // completed uploads are no longer stored
+		}
+		assertEquals(RECORDS, session.opened.get());
+	}
+	
+	static private void simulateLatency()
+	{
+		try
+		{
+			Thread.sleep(LATENCY_MS);
+		}
+		catch(InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Client which knows the attachments of the records.
+	 */
+	static private class AttachmentsClient extends TestTransmissionClient
+	{
+		
+		final Map<Record, List<Attachment>> attachments = new HashMap<Record, List<Attachment>>();
+		
+		@Override
+		public List<? extends Attachment> getRecordAttachments(Record record)
+		{
+			List<Attachment> recordAttachments = attachments.get(record);
+			return recordAttachments != null ? recordAttachments : Collections.<Attachment> emptyList();
+		}
+		
+	}
+	
+	private class TestGeoKeyClient extends GeoKeyClient
+	{
+		
+		private final ModelSession session;
+		
+		public TestGeoKeyClient(TransmissionClient client, ModelSession session)
+		{
+			super(client);
+			this.session = session;
+			setAttachmentUploadPolicy(THREADS, ATTEMPTS, 1);
+		}
+		
+		@Override
+		public boolean connectAndLogin(GeoKeyServer server)
+		{
+			return true;
+		}
+		
+		@Override
+		public void disconnect()
+		{
+			// does nothing
+		}
+		
+		@Override
+		public void logout()
+		{
+			// does nothing
+		}
+		
+		@Override
+		public boolean isUserLoggedIn()
+		{
+			return false;
+		}
+		
+		@Override
+		public GeoKeyServer getServer()
+		{
+			return server;
+		}
+		
+		@Override
+		protected File getTempFolder()
+		{
+			return tempFolder;
+		}
+		
+		@Override
+		protected ModelSession getModelSession(long modelID) throws UnknownModelException, IllegalAccessException
+		{
+			return session;
+		}
+		
+	}
+	
+	/**
+	 * Stand-in session which keeps the uploaded CSV data and counts attachment uploads, with simulated latency. Uploads of
+	 * the files in {@link #failures} fail the given number of times.
+	 */
+	static private class StreamingSession implements GeoKeyClient.StreamingModelSession
+	{
+		
+		final Map<String, String> csvs = new ConcurrentHashMap<String, String>();
+		final Map<String, Integer> uploaded = new ConcurrentHashMap<String, Integer>();
+		final Map<String, AtomicInteger> failures = new ConcurrentHashMap<String, AtomicInteger>();
+		final AtomicInteger concurrentUploads = new AtomicInteger();
+		final AtomicInteger maxConcurrentUploads = new AtomicInteger();
+		
+		@Override
+		public boolean uploadCSV(File csvFile, boolean deleteUponSuccess, boolean deleteUponFailure)
+		{
+			throw new UnsupportedOperationException("Streaming sessions should not be given CSV files");
+		}
+		
+		@Override
+		public boolean uploadAttachments(Record record, List<? extends Attachment> attachments)
+		{
+			throw new UnsupportedOperationException("Streaming sessions should upload attachments one by one");
+		}
+		
+		@Override
+		public boolean uploadCSV(String fileName, GeoKeyClient.CSVBody body)
+		{
+			StringWriter out = new StringWriter();
+			try
+			{
+				body.writeTo(out);
+			}
+			catch(IOException e)
+			{
+				return false;
+			}
+			simulateLatency();
+			csvs.put(fileName, out.toString());
+			return true;
+		}
+		
+		@Override
+		public boolean uploadAttachment(Record record, Attachment attachment)
+		{
+			int concurrent = concurrentUploads.incrementAndGet();
+			try
+			{
+				synchronized(maxConcurrentUploads)
+				{
+					maxConcurrentUploads.set(Math.max(maxConcurrentUploads.get(), concurrent));
+				}
+				simulateLatency();
+				String name = attachment.file.getName();
+				AtomicInteger remainingFailures = failures.get(name);
+				if(remainingFailures != null && remainingFailures.getAndDecrement() > 0)
+					return false;
+				synchronized(uploaded)
+				{
+					Integer count = uploaded.get(name);
+					uploaded.put(name, count == null ? 1 : count + 1);
+				}
+				return true;
+			}
+			finally
+			{
+				concurrentUploads.decrementAndGet();
+			}
+		}
+		
+	}
+	
+	/**
+	 * Stand-in session with in-memory chunked upload endpoints, which drop the connection once the given number of bytes
+	 * of a file has been received.
+	 */
+	static private class ResumableSession extends StreamingSession implements GeoKeyClient.ResumableModelSession
+	{
+		
+		volatile long dropAfterBytesPerFile = Long.MAX_VALUE;
+		final Map<String, ByteArrayOutputStream> uploads = new ConcurrentHashMap<String, ByteArrayOutputStream>();
+		final Map<String, byte[]> completed = new ConcurrentHashMap<String, byte[]>();
+		final Map<String, AtomicInteger> receivedBytes = new ConcurrentHashMap<String, AtomicInteger>();
+		final AtomicInteger opened = new AtomicInteger();
+		
+		@Override
+		public ResumableUploader.Endpoint getAttachmentEndpoint(Record record, final Attachment attachment) throws IOException
+		{
+			final String name = attachment.file.getName();
+			return new ResumableUploader.Endpoint()
+			{
+				@Override
+				public String open(String fileName, long size, byte[] hash) throws IOException
+				{
+					simulateLatency();
+					opened.incrementAndGet();
+					uploads.put(name, new ByteArrayOutputStream());
+					receivedBytes.put(name, new AtomicInteger());
+					return name;
+				}
+				
+				@Override
+				public long getOffset(String uploadID) throws IOException
+				{
+					ByteArrayOutputStream data = uploads.get(uploadID);
+					return data != null ? data.size() : -1;
+				}
+				
+				@Override
+				public long putChunk(String uploadID, long offset, byte[] bytes, int length) throws IOException
+				{
+					simulateLatency();
+					ByteArrayOutputStream data = uploads.get(uploadID);
+					if(data == null)
+						throw new IOException("Unknown upload");
+					if(offset != data.size())
+						return data.size();
+					if(data.size() + length > dropAfterBytesPerFile)
+						throw new IOException("Connection dropped");
+					data.write(bytes, 0, length);
+					receivedBytes.get(uploadID).addAndGet(length);
+					return data.size();
+				}
+				
+				@Override
+				public boolean complete(String uploadID) throws IOException
+				{
+					ByteArrayOutputStream data = uploads.remove(uploadID);
+					if(data == null)
+						throw new IOException("Unknown upload");
+					completed.put(uploadID, data.toByteArray());
+					return true;
+				}
+			};
+		}
+		
+	}
+	
+}
@@ -0,0 +1,131 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.transmission.protocol.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.Charset;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ucl.excites.sapelli.shared.io.FileHelpers;
+
+/**
+ * Tests for {@link MultipartFormWriter}.
+ */
+public class MultipartFormWriterTest
+{
+	
+	static private final Charset UTF8 = Charset.forName("UTF-8");
+	static private final String BOUNDARY = "TestBoundary";
+	
+	private File folder;
+	private ByteArrayOutputStream out;
+	private MultipartFormWriter form;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		folder = FileHelpers.getSubDirectory(FileUtils.getTempDirectory(), "sapelli-test-" + System.nanoTime(), true);
+		out = new ByteArrayOutputStream();
+		form = new MultipartFormWriter(out, BOUNDARY);
+	}
+	
+	@After
+	public void tearDown()
+	{
+		FileUtils.deleteQuietly(folder);
+	}
+	
+	@Test
+	public void writesFieldsAndFileParts() throws Exception
+	{
+		File file = new File(folder, "photo.jpg");
+		FileUtils.writeStringToFile(file, "JPEG bytes", UTF8);
+		
+		form.writeField("name", "Café");
+		assertEquals(10, form.writeFilePart("file", file, "image/jpeg"));
+		form.startFilePart("csv_file", "records.csv", "text/csv");
+		form.getOutputStream().write("a,b\r\n1,2\r\n".getBytes(UTF8));
+		form.finish();
+		
+		assertEquals(
+			"--TestBoundary\r\n" +
+			"Content-Disposition: form-data; name=\"name\"\r\n" +
+			"\r\n" +
+			"Café\r\n" +
+			"--TestBoundary\r\n" +
+			"Content-Disposition: form-data; name=\"file\"; filename=\"photo.jpg\"\r\n" +
+			"Content-Type: image/jpeg\r\n" +
+			"\r\n" +
+			"JPEG bytes\r\n" +
+			"--TestBoundary\r\n" +
+			"Content-Disposition: form-data; name=\"csv_file\"; filename=\"records.csv\"\r\n" +
+			"Content-Type: text/csv\r\n" +
+			"\r\n" +
+			"a,b\r\n1,2\r\n\r\n" +
+			"--TestBoundary--\r\n",
+			new String(out.toByteArray(), UTF8));
+	}
+	
+	@Test
+	public void escapesQuotesAndLineBreaksInNames() throws Exception
+	{
+		form.startFilePart("fi\"le", "a\r\nb.txt", null);
+		form.finish();
+		assertEquals(
+			"--TestBoundary\r\n" +
+			"Content-Disposition: form-data; name=\"fi%22le\"; filename=\"a%0D%0Ab.txt\"\r\n" +
+			"\r\n" +
+			"\r\n" +
+			"--TestBoundary--\r\n",
+			new String(out.toByteArray(), UTF8));
+	}
+	
+	@Test
+	public void emptyFormOnlyHasClosingBoundary() throws Exception
+	{
+		form.finish();
+		form.finish(); // only finishes once
+		assertEquals("--TestBoundary--\r\n", new String(out.toByteArray(), UTF8));
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void noPartsAfterFinishing() throws Exception
+	{
+		form.finish();
+		form.writeField("late", "value");
+	}
+	
+	@Test
+	public void contentTypeHoldsBoundary()
+	{
+		assertEquals("multipart/form-data; boundary=" + BOUNDARY, form.getContentType());
+		String boundary = MultipartFormWriter.CreateBoundary();
+		assertTrue(boundary.length() > 32 && !boundary.equals(MultipartFormWriter.CreateBoundary()));
+	}
+	
+}
@@ -0,0 +1,426 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.transmission.protocol.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ucl.excites.sapelli.shared.io.FileHelpers;
+
+/**
+ * Tests for {@link PooledHTTPClient} (and {@link HTTPConnection}) against a minimal HTTP/1.1 server on the loopback interface.
+ */
+public class PooledHTTPClientTest
+{
+	
+	static private final Charset ASCII = Charset.forName("US-ASCII");
+	static private final int REQUESTS = 12;
+	static private final int PIPELINE_DEPTH = 4;
+	static private final int MAX_BODY_BYTES = 1024;
+	static private final char[] KEYSTORE_PASSWORD = "sapelli".toCharArray();
+	
+	private File folder;
+	private PooledHTTPClient client;
+	private TestServer server;
+	
+	@Before
+	public void setUp() throws IOException
+	{
+		folder = FileHelpers.getSubDirectory(FileUtils.getTempDirectory(), "sapelli-test-" + System.nanoTime(), true);
+		client = new PooledHTTPClient();
+		client.setMaxConnectionsPerHost(1);
+		client.setPipelineDepth(PIPELINE_DEPTH);
+		client.setMaxResponseBodyBytes(MAX_BODY_BYTES);
+		client.setTimeouts(5000, 5000);
+	}
+	
+	@After
+	public void tearDown()
+	{
+		client.close();
+		if(server != null)
+			server.close();
+		FileUtils.deleteQuietly(folder);
+	}
+	
+	@Test
+	public void idempotentRequestsArePipelined() throws Exception
+	{
+		server = new TestServer(new ServerSocket(0, 50, InetAddress.getLoopbackAddress()), Response.SMALL);
+		List<HTTPRequest> requests = new ArrayList<HTTPRequest>();
+		for(int r = 0; r < REQUESTS; r++)
+			requests.add(HTTPRequest.Put(server.getURL("http", "/items/" + r), new byte[] { (byte) r }, "application/octet-stream"));
+		assertEquals(REQUESTS, executeAll(requests));
+		assertEquals(REQUESTS, server.requests.get());
+		assertTrue(server.pipelined.get());
+	}
+	
+	@Test
+	public void nonIdempotentRequestsAreNotPipelined() throws Exception
+	{
+		server = new TestServer(new ServerSocket(0, 50, InetAddress.getLoopbackAddress()), Response.SMALL);
+		List<HTTPRequest> requests = new ArrayList<HTTPRequest>();
+		for(int r = 0; r < REQUESTS; r++)
+		{
+			URL url = server.getURL("http", "/items/" + r);
+			requests.add(r % 3 == 0 ? HTTPRequest.Get(url) : HTTPRequest.Post(url, new byte[] { (byte) r }, "application/octet-stream"));
+		}
+		assertEquals(REQUESTS, executeAll(requests));
+		assertEquals(REQUESTS, server.requests.get());
+		assertFalse(server.pipelined.get());
+	}
+	
+	@Test
+	public void oversizedBodiesAreRejected() throws Exception
+	{
+		for(Response response : new Response[] { Response.LARGE_WITH_LENGTH, Response.LARGE_CHUNKED, Response.LARGE_UNTIL_CLOSED })
+		{
+			server = new TestServer(new ServerSocket(0, 50, InetAddress.getLoopbackAddress()), response);
+			
+			// Single request:
+			try
+			{
+				client.execute(HTTPRequest.Get(server.getURL("http", "/large")));
+				fail("Response body should have been rejected (" + response + ")");
+			}
+			catch(HTTPConnection.BodyTooLargeException expected) {}
+			assertEquals(1, server.requests.get()); // not resent
+			
+			// Queued requests:
+			List<HTTPRequest> requests = new ArrayList<HTTPRequest>();
+			for(int r = 0; r < PIPELINE_DEPTH; r++)
+				requests.add(HTTPRequest.Get(server.getURL("http", "/large/" + r)));
+			assertEquals(0, executeAll(requests));
+			
+			server.close();
+		}
+	}
+	
+	@Test
+	public void certificateMustMatchHostName() throws Exception
+	{
+		// Matching certificate:
+		SSLContext context = createSSLContext("localhost");
+		server = new TestServer(context.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getLoopbackAddress()), Response.SMALL);
+		client.setSSLSocketFactory(context.getSocketFactory());
+		assertEquals(200, client.execute(HTTPRequest.Get(server.getURL("https", "/"))).getStatus());
+		server.close();
+		
+		// Trusted certificate for another host:
+		context = createSSLContext("other.example.org");
+		server = new TestServer(context.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getLoopbackAddress()), Response.SMALL);
+		client.setSSLSocketFactory(context.getSocketFactory());
+		try
+		{
+			client.execute(HTTPRequest.Get(server.getURL("https", "/")));
+			fail("Certificate for another host should have been rejected");
+		}
+		catch(IOException expected) {}
+		assertEquals(0, server.requests.get());
+	}
+	
+	/**
+	 * @param requests
+	 * @return the number of responses received
+	 * @throws InterruptedException
+	 */
+	private int executeAll(List<HTTPRequest> requests) throws InterruptedException
+	{
+		final AtomicInteger responses = new AtomicInteger();
+		final AtomicInteger failures = new AtomicInteger();
+		client.executeAll(requests, new HTTPClient.Callback()
+		{
+			@Override
+			public void onResponse(HTTPRequest request, HTTPResponse response)
+			{
+				assertEquals(200, response.getStatus());
+				responses.incrementAndGet();
+			}
+			
+			@Override
+			public void onFailure(HTTPRequest request, IOException cause)
+			{
+				failures.incrementAndGet();
+			}
+		});
+		assertEquals(requests.size(), responses.get() + failures.get()); // each request is reported exactly once
+		return responses.get();
+	}
+	
+	/**
+	 * Creates a self-signed certificate for the given host name (using the JDK's keytool) and an SSL context which uses and trusts it.
+	 * 
+	 * @param hostName
+	 * @return the SSL context
+	 * @throws Exception
+	 */
+	private SSLContext createSSLContext(String hostName) throws Exception
+	{
+		File keytool = new File(new File(System.getProperty("java.home"), "bin"), "keytool");
+		Assume.assumeTrue("keytool is needed to create certificates", keytool.exists() || new File(keytool.getPath() + ".exe").exists());
+		File keyStoreFile = new File(folder, hostName + ".p12");
+		Process process = new ProcessBuilder(
+			keytool.getPath(), "-genkeypair", "-alias", "test", "-keyalg", "RSA", "-keysize", "2048", "-validity", "2",
+			"-dname", "CN=" + hostName, "-ext", "SAN=dns:" + hostName,
+			"-storetype", "PKCS12", "-keystore", keyStoreFile.getPath(),
+			"-storepass", new String(KEYSTORE_PASSWORD), "-keypass", new String(KEYSTORE_PASSWORD)).redirectErrorStream(true).start();
+		String output = new String(readAll(process.getInputStream()), ASCII);
+		assertEquals("keytool failed: " + output, 0, process.waitFor());
+		
+		KeyStore keyStore = KeyStore.getInstance("PKCS12");
+		InputStream in = new FileInputStream(keyStoreFile);
+		try
+		{
+			keyStore.load(in, KEYSTORE_PASSWORD);
+		}
+		finally
+		{
+			in.close();
+		}
+		KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagerFactory.init(keyStore, KEYSTORE_PASSWORD);
+		TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trustManagerFactory.init(keyStore);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+		return context;
+	}
+	
+	static private byte[] readAll(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int r;
+		while((r = in.read(buffer)) >= 0)
+			bytes.write(buffer, 0, r);
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Responses the test server can give.
+	 */
+	private enum Response
+	{
+		SMALL,
+		LARGE_WITH_LENGTH,
+		LARGE_CHUNKED,
+		LARGE_UNTIL_CLOSED
+	}
+	
+	/**
+	 * Minimal HTTP/1.1 server which gives the same response to every request, noting whether it received a request while
+	 * another one on the same connection had not been answered yet (i.e. whether requests were pipelined).
+	 */
+	static private class TestServer implements Runnable
+	{
+		
+		final ServerSocket serverSocket;
+		final Response response;
+		final AtomicInteger requests = new AtomicInteger();
+		final AtomicBoolean pipelined = new AtomicBoolean(false);
+		private final List<Socket> sockets = new ArrayList<Socket>();
+		
+		public TestServer(ServerSocket serverSocket, Response response)
+		{
+			this.serverSocket = serverSocket;
+			this.response = response;
+			Thread thread = new Thread(this, "PooledHTTPClientTest-server");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		
+		public URL getURL(String protocol, String path) throws IOException
+		{
+			return new URL(protocol, "localhost", serverSocket.getLocalPort(), path);
+		}
+		
+		@Override
+		public void run()
+		{
+			try
+			{
+				while(true)
+				{
+					final Socket socket = serverSocket.accept();
+					synchronized(sockets)
+					{
+						sockets.add(socket);
+					}
+					Thread thread = new Thread(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							serve(socket);
+						}
+					}, "PooledHTTPClientTest-connection");
+					thread.setDaemon(true);
+					thread.start();
+				}
+			}
+			catch(IOException closed) {}
+		}
+		
+		private void serve(Socket socket)
+		{
+			try
+			{
+				InputStream in = new BufferedInputStream(socket.getInputStream());
+				OutputStream out = socket.getOutputStream();
+				while(readRequest(in))
+				{
+					requests.incrementAndGet();
+					Thread.sleep(50); // give pipelined requests the time to arrive
+					if(in.available() > 0)
+						pipelined.set(true);
+					if(!respond(out))
+						break;
+				}
+			}
+			catch(Exception ignore) {}
+			finally
+			{
+				try
+				{
+					socket.close();
+				}
+				catch(IOException ignore) {}
+			}
+		}
+		
+		/**
+		 * @param in
+		 * @return whether a request was read, {@code false} if the connection was closed
+		 * @throws IOException
+		 */
+		private boolean readRequest(InputStream in) throws IOException
+		{
+			String line = readLine(in);
+			if(line == null)
+				return false;
+			int contentLength = 0;
+			while(!(line = readLine(in)).isEmpty())
+				if(line.toLowerCase().startsWith("content-length:"))
+					contentLength = Integer.parseInt(line.substring(line.indexOf(':') + 1).trim());
+			for(int b = 0; b < contentLength; b++)
+				in.read();
+			return true;
+		}
+		
+		/**
+		 * @param out
+		 * @return whether the connection stays open
+		 * @throws IOException
+		 */
+		private boolean respond(OutputStream out) throws IOException
+		{
+			byte[] body = new byte[response == Response.SMALL ? 2 : MAX_BODY_BYTES + 1];
+			switch(response)
+			{
+				case SMALL :
+				case LARGE_WITH_LENGTH :
+					out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes(ASCII));
+					out.write(body);
+					break;
+				case LARGE_CHUNKED :
+					out.write("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes(ASCII));
+					for(int c = 0; c < 2; c++)
+					{
+						out.write((Integer.toHexString(body.length) + "\r\n").getBytes(ASCII));
+						out.write(body);
+						out.write("\r\n".getBytes(ASCII));
+					}
+					out.write("0\r\n\r\n".getBytes(ASCII));
+					break;
+				case LARGE_UNTIL_CLOSED :
+					out.write("HTTP/1.1 200 OK\r\nConnection: close\r\n\r\n".getBytes(ASCII));
+					out.write(body);
+					out.flush();
+					return false;
+			}
+			out.flush();
+			return true;
+		}
+		
+		static private String readLine(InputStream in) throws IOException
+		{
+			StringBuilder bldr = new StringBuilder();
+			int b;
+			while((b = in.read()) != '\n')
+			{
+				if(b < 0)
+					return bldr.length() == 0 ? null : bldr.toString();
+				if(b != '\r')
+					bldr.append((char) b);
+			}
+			return bldr.toString();
+		}
+		
+		public void close()
+		{
+			try
+			{
+				serverSocket.close();
+			}
+			catch(IOException ignore) {}
+			synchronized(sockets)
+			{
+				for(Socket socket : sockets)
+					try
+					{
+						socket.close();
+					}
+					catch(IOException ignore) {}
+			}
+		}
+		
+	}
+	
+}
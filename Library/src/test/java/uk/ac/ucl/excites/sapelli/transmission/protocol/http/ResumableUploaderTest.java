@@ -0,0 +1,349 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2016 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.transmission.protocol.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ucl.excites.sapelli.shared.io.FileHelpers;
+import uk.ac.ucl.excites.sapelli.shared.util.Metrics;
+import uk.ac.ucl.excites.sapelli.transmission.model.Correspondent;
+import uk.ac.ucl.excites.sapelli.transmission.model.transport.geokey.GeoKeyServer;
+
+/**
+ * Tests for {@link ResumableUploader}, against an in-memory stand-in receiver which drops connections at random points.
+ */
+public class ResumableUploaderTest
+{
+	
+	static private final long SEED = 20160101L;
+	static private final int FILE_SIZE = 1024 * 1024 + 123;
+	static private final int MIN_CHUNK_SIZE = 4 * 1024;
+	static private final int MAX_CHUNK_SIZE = 64 * 1024;
+	static private final int MAX_ATTEMPTS = 1000;
+	
+	private File folder;
+	private File file;
+	private Correspondent receiver;
+	private Random random;
+	private Metrics metrics;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		folder = FileHelpers.getSubDirectory(FileUtils.getTempDirectory(), "sapelli-test-" + System.nanoTime(), true);
+		random = new Random(SEED);
+		file = new File(folder, "video.mp4");
+		writeRandomContent(file, FILE_SIZE);
+		receiver = GeoKeyServer.CreateNew("Test", "http://geokey.example.org/", null, null);
+		metrics = new Metrics();
+	}
+	
+	@After
+	public void tearDown()
+	{
+		FileUtils.deleteQuietly(folder);
+	}
+	
+	@Test
+	public void resumesAfterDroppedConnections() throws Exception
+	{
+		StandInReceiver endpoint = new StandInReceiver(0.2d);
+		ResumableUpload upload = new ResumableUpload(receiver, file, MIN_CHUNK_SIZE);
+		int interruptions = uploadWithRetries(new ResumableUploader(metrics, MIN_CHUNK_SIZE, MAX_CHUNK_SIZE, ResumableUploader.DEFAULT_TARGET_CHUNK_DURATION_MS), upload, endpoint);
+		
+		assertTrue("The stand-in should have dropped some connections", interruptions > 0);
+		assertTrue(upload.isCompleted());
+		assertEquals(FILE_SIZE, upload.getOffset());
+		assertEquals(1, endpoint.opened); // always resumed, never restarted
+		assertArrayEquals(FileUtils.readFileToByteArray(file), endpoint.completed.get(file.getName()));
+		assertEquals(interruptions, metrics.counter(ResumableUploader.METRIC_INTERRUPTIONS).get());
+		assertTrue(metrics.counter(ResumableUploader.METRIC_RESUMED_BYTES).get() > 0);
+	}
+	
+	@Test
+	public void restoredProgressIsResumed() throws Exception
+	{
+		StandInReceiver endpoint = new StandInReceiver(0);
+		endpoint.dropAfterBytes = FILE_SIZE / 2;
+		ResumableUploader uploader = new ResumableUploader(metrics, MIN_CHUNK_SIZE, MAX_CHUNK_SIZE, ResumableUploader.DEFAULT_TARGET_CHUNK_DURATION_MS);
+		ResumableUpload upload = new ResumableUpload(receiver, file, MIN_CHUNK_SIZE);
+		uploadInterrupted(uploader, upload, endpoint);
+		long offset = upload.getOffset();
+		assertTrue(offset > 0 && offset < FILE_SIZE);
+		
+		// Resume from the progress as it would be restored from the TransmissionStore (e.g. in a later session):
+		endpoint.dropAfterBytes = Long.MAX_VALUE;
+		ResumableUpload restored = new ResumableUpload(receiver, file, upload.getSize(), upload.getHash(), upload.getUploadID(), upload.getOffset(), upload.getChunkSize());
+		assertTrue(uploader.upload(restored, file.getName(), endpoint, null));
+		assertEquals(1, endpoint.opened);
+		assertEquals(FILE_SIZE, endpoint.receivedBytes); // nothing was sent twice
+		assertArrayEquals(FileUtils.readFileToByteArray(file), endpoint.completed.get(file.getName()));
+	}
+	
+	@Test
+	public void restartsWhenFileHasChanged() throws Exception
+	{
+		StandInReceiver endpoint = new StandInReceiver(0);
+		endpoint.dropAfterBytes = FILE_SIZE / 2;
+		ResumableUploader uploader = new ResumableUploader(metrics, MIN_CHUNK_SIZE, MAX_CHUNK_SIZE, ResumableUploader.DEFAULT_TARGET_CHUNK_DURATION_MS);
+		ResumableUpload upload = new ResumableUpload(receiver, file, MIN_CHUNK_SIZE);
+		uploadInterrupted(uploader, upload, endpoint);
+		
+		// Change the file and resume from the restored progress:
+		writeRandomContent(file, FILE_SIZE);
+		endpoint.dropAfterBytes = Long.MAX_VALUE;
+		ResumableUpload restored = new ResumableUpload(receiver, file, upload.getSize(), upload.getHash(), upload.getUploadID(), upload.getOffset(), upload.getChunkSize());
+		assertTrue(uploader.upload(restored, file.getName(), endpoint, null));
+		assertEquals(2, endpoint.opened);
+		assertArrayEquals(FileUtils.readFileToByteArray(file), endpoint.completed.get(file.getName()));
+	}
+	
+	@Test
+	public void restartsWhenReceiverForgotUpload() throws Exception
+	{
+		StandInReceiver endpoint = new StandInReceiver(0);
+		endpoint.dropAfterBytes = FILE_SIZE / 2;
+		ResumableUploader uploader = new ResumableUploader(metrics, MIN_CHUNK_SIZE, MAX_CHUNK_SIZE, ResumableUploader.DEFAULT_TARGET_CHUNK_DURATION_MS);
+		ResumableUpload upload = new ResumableUpload(receiver, file, MIN_CHUNK_SIZE);
+		uploadInterrupted(uploader, upload, endpoint);
+		
+		endpoint.uploads.clear();
+		endpoint.dropAfterBytes = Long.MAX_VALUE;
+		assertTrue(uploader.upload(upload, file.getName(), endpoint, null));
+		assertEquals(2, endpoint.opened);
+		assertArrayEquals(FileUtils.readFileToByteArray(file), endpoint.completed.get(file.getName()));
+	}
+	
+	@Test
+	public void givesUpWhenHashKeepsMismatching() throws Exception
+	{
+		StandInReceiver endpoint = new StandInReceiver(0);
+		endpoint.corrupt = true;
+		ResumableUpload upload = new ResumableUpload(receiver, file, MIN_CHUNK_SIZE);
+		assertFalse(new ResumableUploader(metrics, MIN_CHUNK_SIZE, MAX_CHUNK_SIZE, ResumableUploader.DEFAULT_TARGET_CHUNK_DURATION_MS).upload(upload, file.getName(), endpoint, null));
+		assertFalse(upload.isCompleted());
+		assertEquals(2, endpoint.opened); // started over once
+		assertEquals(2, metrics.counter(ResumableUploader.METRIC_HASH_MISMATCHES).get());
+		assertTrue(endpoint.completed.isEmpty());
+	}
+	
+	@Test
+	public void stalledReceiverInterruptsUpload() throws Exception
+	{
+		StandInReceiver endpoint = new StandInReceiver(0);
+		endpoint.stalled = true;
+		ResumableUpload upload = new ResumableUpload(receiver, file, MIN_CHUNK_SIZE);
+		try
+		{
+			new ResumableUploader(metrics, MIN_CHUNK_SIZE, MAX_CHUNK_SIZE, ResumableUploader.DEFAULT_TARGET_CHUNK_DURATION_MS).upload(upload, file.getName(), endpoint, null);
+			fail("Upload should have been interrupted");
+		}
+		catch(IOException expected) {}
+		assertEquals(ResumableUploader.MAX_STALLED_CHUNKS, endpoint.chunks);
+		assertEquals(0, upload.getOffset());
+	}
+	
+	@Test
+	public void chunkSizeAdaptsToThroughputAndFailures() throws Exception
+	{
+		// Fast receiver & long target duration, the chunk size grows up to the maximum:
+		StandInReceiver endpoint = new StandInReceiver(0);
+		ResumableUpload upload = new ResumableUpload(receiver, file, MIN_CHUNK_SIZE);
+		assertTrue(new ResumableUploader(metrics, MIN_CHUNK_SIZE, MAX_CHUNK_SIZE, 60 * 1000).upload(upload, file.getName(), endpoint, null));
+		assertEquals(MAX_CHUNK_SIZE, upload.getChunkSize());
+		
+		// The chunk size is halved when a chunk fails:
+		endpoint = new StandInReceiver(0);
+		endpoint.dropAfterBytes = 0;
+		upload = new ResumableUpload(receiver, file, MAX_CHUNK_SIZE);
+		uploadInterrupted(new ResumableUploader(metrics, MIN_CHUNK_SIZE, MAX_CHUNK_SIZE, 60 * 1000), upload, endpoint);
+		assertEquals(MAX_CHUNK_SIZE / 2, upload.getChunkSize());
+	}
+	
+	private void writeRandomContent(File file, int size) throws IOException
+	{
+		byte[] content = new byte[size];
+		random.nextBytes(content);
+		FileUtils.writeByteArrayToFile(file, content);
+	}
+	
+	/**
+	 * @return the number of interrupted attempts
+	 */
+	private int uploadWithRetries(ResumableUploader uploader, ResumableUpload upload, StandInReceiver endpoint) throws Exception
+	{
+		for(int attempt = 0; attempt < MAX_ATTEMPTS; attempt++)
+			try
+			{
+				assertTrue(uploader.upload(upload, file.getName(), endpoint, null));
+				return attempt;
+			}
+			catch(IOException interrupted)
+			{
+				assertTrue(upload.getOffset() <= endpoint.getOffset(upload.getUploadID())); // progress is never overestimated
+			}
+		fail("Upload did not complete after " + MAX_ATTEMPTS + " attempts");
+		return -1;
+	}
+	
+	private void uploadInterrupted(ResumableUploader uploader, ResumableUpload upload, StandInReceiver endpoint) throws Exception
+	{
+		try
+		{
+			uploader.upload(upload, file.getName(), endpoint, null);
+			fail("Upload should have been interrupted");
+		}
+		catch(IOException expected) {}
+	}
+	
+	/**
+	 * In-memory receiving end which drops connections (with the given probability per chunk) before, while or after
+	 * receiving a chunk.
+	 */
+	private class StandInReceiver implements ResumableUploader.Endpoint
+	{
+		
+		final double dropProbability;
+		long dropAfterBytes = Long.MAX_VALUE;
+		boolean corrupt = false;
+		boolean stalled = false;
+		
+		final Map<String, Upload> uploads = new HashMap<String, Upload>();
+		final Map<String, byte[]> completed = new HashMap<String, byte[]>();
+		int opened = 0;
+		int chunks = 0;
+		long receivedBytes = 0;
+		
+		public StandInReceiver(double dropProbability)
+		{
+			this.dropProbability = dropProbability;
+		}
+		
+		@Override
+		public String open(String name, long size, byte[] hash) throws IOException
+		{
+			String uploadID = "upload" + ++opened;
+			uploads.put(uploadID, new Upload(name, hash));
+			return uploadID;
+		}
+		
+		@Override
+		public long getOffset(String uploadID) throws IOException
+		{
+			Upload upload = uploads.get(uploadID);
+			return upload != null ? upload.data.size() : -1;
+		}
+		
+		@Override
+		public long putChunk(String uploadID, long offset, byte[] bytes, int length) throws IOException
+		{
+			chunks++;
+			Upload upload = uploads.get(uploadID);
+			if(upload == null)
+				throw new IOException("Unknown upload");
+			if(stalled || offset != upload.data.size())
+				return upload.data.size();
+			if(receivedBytes + length > dropAfterBytes)
+				throw new IOException("Connection dropped before receiving chunk");
+			if(random.nextDouble() < dropProbability)
+			{
+				switch(random.nextInt(3))
+				{
+					case 0 :
+						throw new IOException("Connection dropped before receiving chunk");
+					case 1 :
+						receive(upload, bytes, random.nextInt(length));
+						throw new IOException("Connection dropped while receiving chunk");
+					default :
+						receive(upload, bytes, length);
+						throw new IOException("Connection dropped before acknowledging chunk");
+				}
+			}
+			receive(upload, bytes, length);
+			return upload.data.size();
+		}
+		
+		private void receive(Upload upload, byte[] bytes, int length)
+		{
+			if(corrupt && length > 0)
+			{
+				bytes = Arrays.copyOf(bytes, length);
+				bytes[0] ^= 0xFF;
+			}
+			upload.data.write(bytes, 0, length);
+			receivedBytes += length;
+		}
+		
+		@Override
+		public boolean complete(String uploadID) throws IOException
+		{
+			Upload upload = uploads.remove(uploadID);
+			if(upload == null)
+				throw new IOException("Unknown upload");
+			byte[] data = upload.data.toByteArray();
+			try
+			{
+				if(!Arrays.equals(MessageDigest.getInstance(ResumableUploader.HASH_ALGORITHM).digest(data), upload.hash))
+					return false; // discarded
+			}
+			catch(Exception e)
+			{
+				throw new IOException(e);
+			}
+			completed.put(upload.name, data);
+			return true;
+		}
+		
+	}
+	
+	static private class Upload
+	{
+		
+		final String name;
+		final byte[] hash;
+		final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		
+		public Upload(String name, byte[] hash)
+		{
+			this.name = name;
+			this.hash = hash;
+		}
+		
+	}
+	
+}